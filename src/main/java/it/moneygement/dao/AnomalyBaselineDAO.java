@@ -0,0 +1,120 @@
+package it.moneygement.dao;
+
+import it.moneygement.db.DbConnection;
+import it.moneygement.model.Categories;
+import it.moneygement.utils.RollingBaseline;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * DAO per l'andamento recente degli importi delle spese di ogni utente e categoria (tabella anomaly_baseline).
+ *
+ * @author Stefano Bellan
+ */
+public class AnomalyBaselineDAO {
+
+    // --- QUERY SQL ---
+
+    private final String SELECT_BY_USER = "SELECT categoria, stato FROM anomaly_baseline WHERE user_id = ?;";
+
+    private final String UPSERT_BASELINE = "INSERT INTO anomaly_baseline (user_id, categoria, stato, aggiornata_il) VALUES (?, ?, ?, ?) " +
+            "ON CONFLICT (user_id, categoria) DO UPDATE SET stato = excluded.stato, aggiornata_il = excluded.aggiornata_il;";
+
+    private final String DELETE_BY_USER = "DELETE FROM anomaly_baseline WHERE user_id = ?;";
+
+    /**
+     * READ: Legge le baseline salvate di un utente.
+     *
+     * @param userId L'ID dell'utente.
+     * @return Le baseline per categoria (eventualmente nessuna), oppure null in caso di errore del database.
+     */
+    public Map<Categories, RollingBaseline> getBaselines(int userId) {
+        Map<Categories, RollingBaseline> baseline = new EnumMap<>(Categories.class);
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(userId).prepareStatement(SELECT_BY_USER)) {
+            pstmt.setInt(1, userId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    baseline.put(Categories.valueOf(rs.getString("categoria")), RollingBaseline.fromBytes(rs.getBytes("stato")));
+                }
+            }
+        } catch (SQLException | IllegalArgumentException ex) {
+            System.err.println("Errore lettura baseline delle spese: " + ex.getMessage());
+            return null;
+        }
+        return baseline;
+    }
+
+    /**
+     * CREATE/UPDATE: Salva le baseline di più utenti, con un'unica transazione per shard.
+     * <p>
+     * Viene chiamato dal salvataggio periodico in background: ogni transazione usa una connessione dedicata
+     * (vedi {@link DbConnection#apriConnessioneDedicata(int)}), che viene chiusa alla fine, così non include
+     * le scritture delle sessioni che nel frattempo usano la connessione condivisa.
+     * </p>
+     *
+     * @param perUtente Le baseline da salvare, per utente e categoria.
+     * @return Gli utenti le cui baseline sono state salvate (senza quelli degli shard in errore).
+     */
+    public Set<Integer> saveBaselines(Map<Integer, Map<Categories, byte[]>> perUtente) {
+        DbConnection db = DbConnection.getInstance();
+        Map<Integer, List<Integer>> perShard = new TreeMap<>();
+        for (Integer userId : perUtente.keySet()) {
+            perShard.computeIfAbsent(db.getShardIndex(userId), s -> new ArrayList<>()).add(userId);
+        }
+        Set<Integer> salvati = new HashSet<>();
+        String adesso = LocalDateTime.now().withNano(0).toString();
+        for (Map.Entry<Integer, List<Integer>> shard : perShard.entrySet()) {
+            try (Connection conn = db.apriConnessioneDedicata(shard.getKey())) {
+                conn.setAutoCommit(false);
+                try (PreparedStatement pstmt = conn.prepareStatement(UPSERT_BASELINE)) {
+                    for (Integer userId : shard.getValue()) {
+                        for (Map.Entry<Categories, byte[]> b : perUtente.get(userId).entrySet()) {
+                            pstmt.setInt(1, userId);
+                            pstmt.setString(2, b.getKey().name());
+                            pstmt.setBytes(3, b.getValue());
+                            pstmt.setString(4, adesso);
+                            pstmt.addBatch();
+                        }
+                    }
+                    pstmt.executeBatch();
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                }
+                salvati.addAll(shard.getValue());
+            } catch (SQLException ex) {
+                System.err.println("Errore salvataggio baseline delle spese: " + ex.getMessage());
+            }
+        }
+        return salvati;
+    }
+
+    /**
+     * DELETE: Elimina le baseline di un utente (es. quando cambia valuta base).
+     *
+     * @param userId L'ID dell'utente.
+     * @return true se il database ha eseguito la cancellazione.
+     */
+    public boolean deleteBaselines(int userId) {
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(userId).prepareStatement(DELETE_BY_USER)) {
+            pstmt.setInt(1, userId);
+            pstmt.executeUpdate();
+            return true;
+        } catch (SQLException ex) {
+            System.err.println("Errore cancellazione baseline delle spese: " + ex.getMessage());
+            return false;
+        }
+    }
+}
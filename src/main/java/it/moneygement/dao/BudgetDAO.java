@@ -0,0 +1,101 @@
+package it.moneygement.dao;
+
+import it.moneygement.db.DbConnection;
+import it.moneygement.model.Budget;
+import it.moneygement.model.BudgetPeriod;
+import it.moneygement.model.Categories;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DAO per i budget di spesa degli utenti.
+ *
+ * @author Stefano Bellan
+ */
+public class BudgetDAO {
+
+    // --- QUERY SQL ---
+
+    // INSERT o UPDATE: un utente ha un solo budget per categoria e periodo, salvarne un altro cambia il limite
+    private final String UPSERT_BUDGET = "INSERT INTO budget (user_id, categoria, periodo, limite) VALUES (?, ?, ?, ?) " +
+            "ON CONFLICT (user_id, categoria, periodo) DO UPDATE SET limite = excluded.limite RETURNING id;";
+
+    private final String SELECT_BY_USER = "SELECT * FROM budget WHERE user_id = ? ORDER BY categoria, periodo;";
+
+    private final String DELETE_BUDGET = "DELETE FROM budget WHERE user_id = ? AND categoria = ? AND periodo = ?;";
+
+    /**
+     * CREATE/UPDATE: Salva il budget di un utente, sostituendo il limite se esiste già un budget
+     * per la stessa categoria e lo stesso periodo. Imposta l'id del budget.
+     *
+     * @param b Il budget, con l'id dell'utente.
+     * @return true se il budget è stato salvato.
+     */
+    public boolean saveBudget(Budget b) {
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(b.getIdUtente()).prepareStatement(UPSERT_BUDGET)) {
+            pstmt.setInt(1, b.getIdUtente());
+            pstmt.setString(2, b.getCategoria().name());
+            pstmt.setString(3, b.getPeriodo().name());
+            pstmt.setDouble(4, b.getLimite());
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    b.setId(rs.getInt("id"));
+                    return true;
+                }
+            }
+        } catch (SQLException ex) {
+            System.err.println("Errore salvataggio budget: " + ex.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * READ: Recupera i budget di un utente.
+     *
+     * @param userId L'ID dell'utente.
+     * @return I budget (eventualmente nessuno), oppure null in caso di errore del database.
+     */
+    public List<Budget> getBudgetsByUserId(int userId) {
+        List<Budget> budget = new ArrayList<>();
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(userId).prepareStatement(SELECT_BY_USER)) {
+            pstmt.setInt(1, userId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    Budget b = new Budget(Categories.valueOf(rs.getString("categoria")),
+                            BudgetPeriod.valueOf(rs.getString("periodo")), rs.getDouble("limite"));
+                    b.setId(rs.getInt("id"));
+                    b.setIdUtente(rs.getInt("user_id"));
+                    budget.add(b);
+                }
+            }
+        } catch (SQLException ex) {
+            System.err.println("Errore lettura budget: " + ex.getMessage());
+            return null;
+        }
+        return budget;
+    }
+
+    /**
+     * DELETE: Elimina il budget di un utente per una categoria e un periodo.
+     *
+     * @param userId    L'ID dell'utente.
+     * @param categoria La categoria.
+     * @param periodo   Il periodo.
+     * @return true se il budget esisteva ed è stato eliminato.
+     */
+    public boolean deleteBudget(int userId, Categories categoria, BudgetPeriod periodo) {
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(userId).prepareStatement(DELETE_BUDGET)) {
+            pstmt.setInt(1, userId);
+            pstmt.setString(2, categoria.name());
+            pstmt.setString(3, periodo.name());
+            return pstmt.executeUpdate() > 0;
+        } catch (SQLException ex) {
+            System.err.println("Errore cancellazione budget: " + ex.getMessage());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package it.moneygement.dao;
+
+import it.moneygement.db.DbConnection;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * DAO per la tabella dei cambi ({@code exchange_rate}): per ogni valuta, quante unità valgono un euro.
+ * <p>
+ * La tabella viene caricata da file con {@code tools.ExchangeRateLoader} e serve alle query di aggregazione
+ * di {@link ExpenseDAO}, che convertono gli importi dentro SQL. In modalità shard ogni shard ne ha una copia
+ * identica (le query la leggono nello shard dell'utente), quindi per la lettura basta il primo shard.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class ExchangeRateDAO {
+
+    // --- QUERY SQL ---
+
+    private final String SELECT_RATES = "SELECT valuta, per_euro FROM exchange_rate;";
+
+    // INSERT o UPDATE: un nuovo tasso per una valuta già presente sostituisce il precedente
+    private static final String UPSERT_RATE = "INSERT INTO exchange_rate (valuta, per_euro, aggiornato_il) VALUES (?, ?, ?) " +
+            "ON CONFLICT (valuta) DO UPDATE SET per_euro = excluded.per_euro, aggiornato_il = excluded.aggiornato_il;";
+
+    // I nuovi tassi cambiano gli importi convertiti: le statistiche salvate vanno ricalcolate
+    private static final String INVALIDATE_STATS = "UPDATE expense_stats SET versione = versione + 1;";
+
+    /**
+     * READ: Legge tutti i tassi di cambio.
+     *
+     * @return I tassi (valuta → unità per un euro), oppure null in caso di errore del database.
+     */
+    public Map<String, Double> getRates() {
+        DbConnection db = DbConnection.getInstance();
+        Connection conn = db.isSharded() ? db.getShardConnections()[0] : db.getConnection();
+        Map<String, Double> tassi = new HashMap<>();
+        try (PreparedStatement pstmt = conn.prepareStatement(SELECT_RATES);
+             ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                tassi.put(rs.getString("valuta"), rs.getDouble("per_euro"));
+            }
+        } catch (SQLException ex) {
+            System.err.println("Errore lettura tassi di cambio: " + ex.getMessage());
+            return null;
+        }
+        return tassi;
+    }
+
+    /**
+     * CREATE/UPDATE: Salva i tassi di cambio indicati su un database (il database unico o uno shard),
+     * lasciando invariati quelli delle altre valute. Gli errori vengono rilanciati, perché il chiamante
+     * possa annullare la transazione. Invalida le statistiche mensili delle spese salvate sul database.
+     *
+     * @param conn       La connessione al database.
+     * @param tassi      I tassi (valuta → unità per un euro).
+     * @param aggiornati La data dei tassi.
+     * @return Il numero di tassi salvati.
+     * @throws SQLException in caso di errore del database.
+     */
+    public static int saveRates(Connection conn, Map<String, Double> tassi, LocalDate aggiornati) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(UPSERT_RATE)) {
+            for (Map.Entry<String, Double> tasso : tassi.entrySet()) {
+                pstmt.setString(1, tasso.getKey());
+                pstmt.setDouble(2, tasso.getValue());
+                pstmt.setString(3, aggiornati.toString());
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        }
+        try (PreparedStatement pstmt = conn.prepareStatement(INVALIDATE_STATS)) {
+            pstmt.executeUpdate();
+        }
+        return tassi.size();
+    }
+}
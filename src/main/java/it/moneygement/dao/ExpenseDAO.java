@@ -1,17 +1,36 @@
 package it.moneygement.dao;
 
 import it.moneygement.db.DbConnection;
+import it.moneygement.events.ChangeBus;
 import it.moneygement.exception.DatabaseException;
+import it.moneygement.exception.SpesaDuplicataException;
 import it.moneygement.model.Categories;
 import it.moneygement.model.Expense;
+import it.moneygement.model.ExpenseOrder;
+import it.moneygement.model.ExpenseUpdateResult;
+import it.moneygement.model.SeriesPoint;
+import it.moneygement.utils.Interner;
 
 import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.ObjDoubleConsumer;
 
 /**
  * DAO per la gestione delle Spese (Expense).
@@ -21,35 +40,174 @@ import java.util.List;
  */
 public class ExpenseDAO {
 
+    /**
+     * Formato con cui le date vengono salvate nella colonna 'data' (ISO-8601 a larghezza fissa, al secondo).
+     * A differenza di LocalDateTime.toString() non omette mai i secondi, quindi le date salvate
+     * dall'applicazione e dagli strumenti (es. generatore di dataset) sono sempre confrontabili come testo.
+     * Le frazioni di secondo non vengono salvate: una spesa riletta ha la data troncata al secondo, e due spese
+     * uguali nello stesso secondo hanno la stessa impronta. Le date salvate prima di questo formato vengono
+     * riscritte all'avvio da InitDatabase.
+     */
+    public static final DateTimeFormatter FORMATO_DATA = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+
+    // Indice univoco delle impronte delle spese, citato nel messaggio di errore di SQLite quando un aggiornamento lo viola
+    private static final String INDICE_IMPRONTA = "idx_expense_impronta";
+
     // --- QUERY SQL ---
 
-    // INSERT: Nota che inseriamo anche 'user_id' per collegare la spesa all'utente
-    private final String INSERT_EXPENSE = "INSERT INTO expense (nome_spesa, categoria, descrizione, importo, data, user_id) VALUES (?, ?, ?, ?, ?, ?);";
+    // INSERT: Nota che inseriamo anche 'user_id' per collegare la spesa all'utente.
+    // Il RETURNING restituisce l'id generato e la versione iniziale nella stessa istruzione.
+    // Una spesa con la stessa impronta di una già salvata (vedi INDICE_IMPRONTA) non viene inserita e non restituisce righe.
+    private final String INSERT_EXPENSE = "INSERT INTO expense (nome_spesa, categoria, descrizione, importo, data, user_id, valuta) VALUES (?, ?, ?, ?, ?, ?, ?) " +
+            "ON CONFLICT DO NOTHING RETURNING id, version;";
+
+    // Impronta di una spesa: utente, nome normalizzato, importo, valuta e istante. Stessa espressione dell'indice
+    // univoco idx_expense_impronta (vedi InitDatabase), così la ricerca usa l'indice.
+    private final String EXISTS_FINGERPRINT = "SELECT 1 FROM expense WHERE user_id = ? AND lower(trim(nome_spesa)) = lower(trim(?)) " +
+            "AND importo = ? AND valuta = ? AND data = ? LIMIT 1;";
+    // L'indice delle impronte è univoco (1) o no (0, database con doppioni già presenti)
+    private final String SELECT_FINGERPRINT_UNIQUE = "SELECT \"unique\" FROM pragma_index_list('expense') WHERE name = '" + INDICE_IMPRONTA + "';";
 
     // SELECT: Recupera tutte le spese DI UN CERTO UTENTE (WHERE user_id = ?)
     private final String SELECT_BY_USER = "SELECT * FROM expense WHERE user_id = ?;";
 
-    // UPDATE: Aggiorna una spesa esistente (identificata dal suo id)
-    private final String UPDATE_EXPENSE = "UPDATE expense SET nome_spesa = ?, categoria = ?, descrizione = ?, importo = ?, data = ? WHERE id = ?;";
+    // UPDATE CONDIZIONALE: Aggiorna la spesa solo se la versione letta dal client è ancora quella salvata.
+    // Il RETURNING restituisce la nuova versione senza bisogno di una SELECT aggiuntiva.
+    // Una valuta NULL lascia quella salvata, restituita insieme alla nuova versione.
+    private final String UPDATE_EXPENSE = "UPDATE expense SET nome_spesa = ?, categoria = ?, descrizione = ?, importo = ?, data = ?, valuta = COALESCE(?, valuta), version = version + 1 " +
+            "WHERE id = ? AND user_id = ? AND version = ? RETURNING version, valuta;";
+
+    // SELECT (By ID): Recupera una singola spesa di un utente (usata per restituire lo stato attuale in caso di conflitto)
+    private final String SELECT_BY_ID = "SELECT * FROM expense WHERE id = ? AND user_id = ?;";
 
-    // DELETE: Cancella una spesa specifica
-    private final String DELETE_EXPENSE = "DELETE FROM expense WHERE id = ?;";
+    // DELETE: Cancella una spesa specifica (solo se appartiene all'utente indicato)
+    // RETURNING restituisce la riga cancellata nella stessa istruzione, senza una lettura precedente
+    private final String DELETE_EXPENSE = "DELETE FROM expense WHERE id = ? AND user_id = ? RETURNING *;";
+
+    // OPERAZIONI MASSIVE: una sola istruzione per tutte le spese che soddisfano la condizione, sugli indici
+    // delle impronte (nome normalizzato) e di (user_id, data). La versione aumenta come negli aggiornamenti singoli.
+    private final String UPDATE_CATEGORY_BY_NAME = "UPDATE expense SET categoria = ?, version = version + 1 " +
+            "WHERE user_id = ? AND lower(trim(nome_spesa)) = lower(trim(?)) AND categoria <> ?;";
+    private final String DELETE_BY_RANGE = "DELETE FROM expense WHERE user_id = ? AND data >= ? AND data < ?";
+    // Spostamento delle date. SQLite controlla l'indice delle impronte riga per riga, nell'ordine in cui l'UPDATE
+    // visita le righe: una spesa si scontrerebbe con una spesa uguale dell'intervallo non ancora spostata (es. lo stesso
+    // caffè ogni giorno alla stessa ora spostato di un giorno). Solo le spese di queste catene vengono prima marcate
+    // con un '~' finale (quelle la cui data di arrivo o di partenza è occupata da una spesa uguale dell'intervallo),
+    // così non occupano più la loro data; poi un solo UPDATE sposta tutte le spese dell'intervallo e toglie il segno.
+    // Le altre spese vengono scritte una volta sola, e i trigger scattano una volta sola.
+    private final String MARK_CHAINS = "UPDATE expense AS e SET data = data || '~' WHERE e.user_id = ? AND e.data >= ? AND e.data < ? " +
+            "AND EXISTS (SELECT 1 FROM expense f WHERE f.user_id = e.user_id AND lower(trim(f.nome_spesa)) = lower(trim(e.nome_spesa)) " +
+            "AND f.importo = e.importo AND f.valuta = e.valuta AND f.data >= ? AND f.data < ? " +
+            "AND f.data IN (strftime('%Y-%m-%dT%H:%M:%S', e.data, ?), strftime('%Y-%m-%dT%H:%M:%S', e.data, ?)));";
+    private final String SHIFT_RANGE = "UPDATE expense SET data = strftime('%Y-%m-%dT%H:%M:%S', rtrim(data, '~'), ?), version = version + 1 " +
+            "WHERE user_id = ? AND data >= ? AND data < ?;";
 
     // SEARCH BY CATEGORY: Cerca una spesa in base alla categoria
     private final String SEARCH_BY_CATEGORY = "SELECT * FROM expense WHERE user_id = ? AND categoria = ?;";
 
+    // SELECT (Intervallo): Spese di un utente tra due istanti [da, a). Stessa query sul database
+    // principale e sui file di archivio, che hanno le stesse colonne.
+    private final String SELECT_BY_RANGE = "SELECT * FROM expense WHERE user_id = ? AND data >= ? AND data < ? ORDER BY data, id;";
+
+    // Anni archiviati che cadono nell'intervallo richiesto, con il file che li contiene
+    private final String SELECT_ARCHIVED_YEARS = "SELECT anno, file FROM archive_year WHERE anno BETWEEN ? AND ? ORDER BY anno;";
+    private final String SELECT_ALL_ARCHIVED_YEARS = "SELECT anno, file FROM archive_year ORDER BY anno;";
+    // Ricerca e cancellazione nei file di archivio, ordinati per (user_id, data, id): la ricerca per id
+    // scorre solo le spese archiviate dell'utente
+    private final String SELECT_ARCHIVED_BY_ID = "SELECT * FROM expense WHERE user_id = ? AND id = ?;";
+    private final String DELETE_ARCHIVED_BY_USER = "DELETE FROM expense WHERE user_id = ?;";
+    private final String UPDATE_ARCHIVED_COUNT = "UPDATE archive_year SET righe = righe - ? WHERE anno = ?;";
+
+    // Conversione nella valuta base dell'utente dentro le query di aggregazione: le spese vengono prima sommate
+    // per valuta (stesso costo di una somma in una sola valuta) e poi i pochi totali parziali vengono moltiplicati
+    // per il cambio, letto da exchange_rate con una ricerca per chiave. Il parametro è l'id dell'utente.
+    // Le spese in una valuta senza tasso (scritte da strumenti esterni: il service la rifiuta) restano fuori dai
+    // totali, come nel CurrencyConverter: sommarle senza conversione darebbe totali sbagliati di ordini di grandezza.
+    private static final String CAMBIO = " JOIN exchange_rate r ON r.valuta = s.valuta " +
+            "JOIN exchange_rate b ON b.valuta = (SELECT valuta FROM user WHERE id = ?)";
+    private static final String FATTORE = "(b.per_euro / r.per_euro)";
+    // Conversione nelle pagine ordinate per importo: le spese in una valuta senza tasso restano nella lista,
+    // con importo convertito 0 come nel CurrencyConverter
+    private static final String CAMBIO_PAGINA = " LEFT JOIN exchange_rate r ON r.valuta = e.valuta " +
+            "LEFT JOIN exchange_rate b ON b.valuta = (SELECT valuta FROM user WHERE id = ?)";
+    private static final String FATTORE_PAGINA = "COALESCE(b.per_euro / r.per_euro, 0)";
+
+    // Deduplicazione dei valori ripetuti nelle letture di molte spese (vedi mapRowToSharedExpense).
+    // Le dimensioni sono stime per una JVM a 64 bit con riferimenti compressi: una String con il suo array
+    // di byte (testi latini), e un LocalDateTime con il LocalDate e il LocalTime che contiene.
+    private static final Interner<String> TESTI = new Interner<>(16_384, t -> 40 + ((t.length() + 7) & ~7));
+    private static final Interner<LocalDateTime> DATE = new Interner<>(16_384, d -> 72);
+
+    // Fattori di conversione di tutte le valute nella valuta base di un utente (per i file di archivio,
+    // che non contengono la tabella dei cambi); le valute senza fattore restano fuori dai totali come in CAMBIO
+    private final String SELECT_FACTORS = "SELECT r.valuta, b.per_euro / r.per_euro AS fattore FROM exchange_rate r " +
+            "JOIN exchange_rate b ON b.valuta = (SELECT valuta FROM user WHERE id = ?);";
+
+    // Totali per categoria di un anno: riepiloghi degli anni archiviati (per valuta, vedi tools.ExpenseArchiver)
+    // e spese ancora nel database principale, convertiti con i cambi attuali
+    private final String SUM_SUMMARY_BY_CATEGORY = "SELECT s.categoria, SUM(s.totale * " + FATTORE + ") AS totale FROM (" +
+            "SELECT categoria, valuta, SUM(totale) AS totale FROM expense_summary WHERE user_id = ? AND anno = ? " +
+            "GROUP BY categoria, valuta) s" + CAMBIO + " GROUP BY s.categoria;";
+    // Totali giornalieri in un intervallo: i primi 10 caratteri della data sono il giorno (yyyy-MM-dd)
+    private final String SUM_BY_DAY = "SELECT s.giorno, SUM(s.totale * " + FATTORE + ") AS totale FROM (" +
+            "SELECT substr(data, 1, 10) AS giorno, valuta, SUM(importo) AS totale FROM expense " +
+            "WHERE user_id = ? AND data >= ? AND data < ? GROUP BY giorno, valuta) s" + CAMBIO + " GROUP BY s.giorno;";
+    // Stessa somma sui file di archivio, per valuta: la conversione usa i fattori letti dal database principale
+    private final String SUM_ARCHIVED_BY_DAY = "SELECT substr(data, 1, 10) AS giorno, valuta, SUM(importo) AS totale FROM expense " +
+            "WHERE user_id = ? AND data >= ? AND data < ? GROUP BY giorno, valuta;";
+
+    // Importi delle singole spese in un intervallo in ordine di data, già nella valuta base
+    // (per le statistiche di distribuzione e l'andamento recente delle categorie)
+    private final String SELECT_AMOUNTS = "SELECT s.categoria, s.importo * " + FATTORE + " AS importo FROM (" +
+            "SELECT categoria, valuta, importo, data FROM expense WHERE user_id = ? AND data >= ? AND data < ?) s" + CAMBIO + " ORDER BY s.data;";
+    private final String SELECT_ARCHIVED_AMOUNTS = "SELECT categoria, valuta, importo FROM expense WHERE user_id = ? AND data >= ? AND data < ? ORDER BY data;";
+    // Totale in centesimi e numero delle spese di un utente per nome e valuta (per costruire le classifiche
+    // dei nomi di spesa). Stessa query sul database principale e sui file di archivio.
+    private final String SELECT_NAME_TOTALS = "SELECT nome_spesa, valuta, SUM(CAST(ROUND(importo * 100) AS INTEGER)) AS centesimi, " +
+            "COUNT(*) AS numero FROM expense WHERE user_id = ? GROUP BY nome_spesa, valuta;";
+
+    // Totali giornalieri per categoria (solo spese non archiviate), per le previsioni di spesa
+    private final String SUM_BY_CATEGORY_AND_DAY = "SELECT s.categoria, s.giorno, SUM(s.totale * " + FATTORE + ") AS totale FROM (" +
+            "SELECT categoria, substr(data, 1, 10) AS giorno, valuta, SUM(importo) AS totale FROM expense " +
+            "WHERE user_id = ? AND data >= ? AND data < ? GROUP BY categoria, giorno, valuta) s" + CAMBIO + " GROUP BY s.categoria, s.giorno;";
+    // Quattro totali per categoria con una sola lettura dell'indice: giorni chiusi dall'inizio della finestra,
+    // oggi, mese corrente e anno corrente fino a oggi compreso
+    private final String SUM_PROGRESS_BY_CATEGORY = "SELECT s.categoria, SUM(s.chiusi * " + FATTORE + ") AS chiusi, " +
+            "SUM(s.oggi * " + FATTORE + ") AS oggi, SUM(s.mese * " + FATTORE + ") AS mese, SUM(s.anno * " + FATTORE + ") AS anno FROM (" +
+            "SELECT categoria, valuta, SUM(CASE WHEN data >= ? AND data < ? THEN importo ELSE 0 END) AS chiusi, " +
+            "SUM(CASE WHEN data >= ? THEN importo ELSE 0 END) AS oggi, " +
+            "SUM(CASE WHEN data >= ? THEN importo ELSE 0 END) AS mese, " +
+            "SUM(CASE WHEN data >= ? THEN importo ELSE 0 END) AS anno " +
+            "FROM expense WHERE user_id = ? AND data >= ? AND data < ? GROUP BY categoria, valuta) s" + CAMBIO + " GROUP BY s.categoria;";
+
+    // COUNT: Numero di spese di un utente (eventualmente di una sola categoria), per la tabella a pagine
+    private final String COUNT_BY_USER = "SELECT COUNT(*) FROM expense WHERE user_id = ?";
+
+    private final String SUM_HOT_BY_CATEGORY = "SELECT s.categoria, SUM(s.totale * " + FATTORE + ") AS totale FROM (" +
+            "SELECT categoria, valuta, SUM(importo) AS totale FROM expense WHERE user_id = ? AND data >= ? AND data < ? " +
+            "GROUP BY categoria, valuta) s" + CAMBIO + " GROUP BY s.categoria;";
+    // Totali per categoria e valuta senza conversione, per i totali dei budget (vedi service.BudgetEngine)
+    private final String SUM_HOT_BY_CATEGORY_AND_CURRENCY = "SELECT categoria, valuta, SUM(importo) AS totale FROM expense " +
+            "WHERE user_id = ? AND data >= ? AND data < ? GROUP BY categoria, valuta;";
+
 
     // --- METODI CRUD ---
 
     /**
      * CREATE: Salva una nuova spesa nel database.
+     * Dopo il salvataggio l'oggetto riceve l'id generato e la versione iniziale; se esiste già una spesa
+     * con la stessa impronta (vedi {@link #impronta(Expense)}) la spesa non viene salvata e l'id resta 0.
      *
      * @param e La spesa da salvare (deve avere l'idUtente impostato!).
+     * @return true se l'inserimento è stato eseguito (anche se saltato come doppione), false in caso di errore.
      */
-    public void addExpense(Expense e) {
+    public boolean addExpense(Expense e) {
         PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        // Gli eventi della modifica sul ChangeBus riportano il proprietario della spesa
+        ChangeBus.getInstance().inizioModifica(e.idUtente());
         try {
-            Connection conn = DbConnection.getInstance().getConnection();
+            Connection conn = DbConnection.getInstance().getConnection(e.idUtente());
             pstmt = conn.prepareStatement(INSERT_EXPENSE);
 
             // 1. Nome
@@ -60,23 +218,255 @@ public class ExpenseDAO {
             pstmt.setString(3, e.getDescrizione());
             // 4. Importo
             pstmt.setDouble(4, e.getImporto());
-            // 5. Data (La convertiamo in stringa ISO-8601 standard)
-            pstmt.setString(5, e.getData().toString());
+            // 5. Data (La convertiamo in stringa ISO-8601 a larghezza fissa)
+            pstmt.setString(5, e.getData().format(FORMATO_DATA));
             // 6. ID Utente (Fondamentale!)
             pstmt.setInt(6, e.idUtente());
+            // 7. Valuta dell'importo
+            pstmt.setString(7, e.getValuta());
 
-            pstmt.executeUpdate();
-            System.out.println("Spesa salvata: " + e.getNomeSpesa());
+            rs = pstmt.executeQuery();
+            if (rs.next()) {
+                e.setId(rs.getInt("id"));
+                e.setVersion(rs.getInt("version"));
+                System.out.println("Spesa salvata: " + e.getNomeSpesa());
+            }
+            return true;
 
         } catch (SQLException ex) {
             System.err.println("Errore salvataggio spesa: " + ex.getMessage());
+            return false;
         } finally {
-            DatabaseHelper.close(pstmt);
+            ChangeBus.getInstance().fineModifica();
+            DatabaseHelper.close(pstmt, rs);
         }
     }
 
     /**
-     * READ: Ottiene la lista di tutte le spese di un determinato utente.
+     * CREATE: Salva in un'unica transazione le spese di un utente (importazione). Le spese con la stessa
+     * impronta di una già salvata vengono saltate e mantengono l'id 0; le altre ricevono id e versione.
+     * La transazione usa una connessione dedicata (vedi {@link DbConnection#apriConnessioneDedicata(int)}):
+     * sulla connessione condivisa includerebbe anche le scritture delle altre sessioni.
+     *
+     * @param userId L'ID dell'utente proprietario.
+     * @param spese  Le spese da salvare (con l'idUtente impostato).
+     * @return true se la transazione è stata confermata, false in caso di errore (nessuna spesa salvata).
+     */
+    public boolean addExpenses(int userId, List<Expense> spese) {
+        DbConnection db = DbConnection.getInstance();
+        ChangeBus.getInstance().inizioModifica(userId);
+        try (Connection conn = db.apriConnessioneDedicata(db.getShardIndex(userId))) {
+            // Id e versioni vengono assegnati alle spese solo dopo la conferma della transazione
+            int[] id = new int[spese.size()];
+            int[] versioni = new int[spese.size()];
+            conn.setAutoCommit(false);
+            try (PreparedStatement pstmt = conn.prepareStatement(INSERT_EXPENSE)) {
+                for (int i = 0; i < spese.size(); i++) {
+                    Expense e = spese.get(i);
+                    pstmt.setString(1, e.getNomeSpesa());
+                    pstmt.setString(2, e.getCategoria().name());
+                    pstmt.setString(3, e.getDescrizione());
+                    pstmt.setDouble(4, e.getImporto());
+                    pstmt.setString(5, e.getData().format(FORMATO_DATA));
+                    pstmt.setInt(6, userId);
+                    pstmt.setString(7, e.getValuta());
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        if (rs.next()) {
+                            id[i] = rs.getInt("id");
+                            versioni[i] = rs.getInt("version");
+                        }
+                    }
+                }
+                conn.commit();
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            }
+            for (int i = 0; i < spese.size(); i++) {
+                if (id[i] > 0) {
+                    spese.get(i).setId(id[i]);
+                    spese.get(i).setVersion(versioni[i]);
+                }
+            }
+            return true;
+        } catch (SQLException ex) {
+            System.err.println("Errore importazione spese: " + ex.getMessage());
+            return false;
+        } finally {
+            ChangeBus.getInstance().fineModifica();
+        }
+    }
+
+    /**
+     * UPDATE (massivo): Cambia la categoria di tutte le spese di un utente con un certo nome
+     * (senza distinguere maiuscole e spazi esterni), con una sola istruzione.
+     *
+     * @param userId    L'ID dell'utente.
+     * @param nome      Il nome delle spese.
+     * @param categoria La nuova categoria.
+     * @return Il numero di spese modificate (quelle già nella categoria non vengono toccate), oppure -1 in caso di errore.
+     */
+    public int updateCategoryByName(int userId, String nome, Categories categoria) {
+        ChangeBus.getInstance().inizioModifica(userId);
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(userId).prepareStatement(UPDATE_CATEGORY_BY_NAME)) {
+            pstmt.setString(1, categoria.name());
+            pstmt.setInt(2, userId);
+            pstmt.setString(3, nome);
+            pstmt.setString(4, categoria.name());
+            return pstmt.executeUpdate();
+        } catch (SQLException ex) {
+            System.err.println("Errore modifica massiva della categoria: " + ex.getMessage());
+            return -1;
+        } finally {
+            ChangeBus.getInstance().fineModifica();
+        }
+    }
+
+    /**
+     * DELETE (massivo): Cancella con una sola istruzione le spese di un utente in un intervallo di giorni
+     * (solo spese non archiviate).
+     *
+     * @param userId    L'ID dell'utente.
+     * @param da        Il primo giorno dell'intervallo.
+     * @param a         L'ultimo giorno dell'intervallo (compreso).
+     * @param categoria La categoria da cancellare, oppure null per tutte.
+     * @return Il numero di spese cancellate, oppure -1 in caso di errore.
+     */
+    public int deleteExpensesInRange(int userId, LocalDate da, LocalDate a, Categories categoria) {
+        String sql = DELETE_BY_RANGE + (categoria == null ? ";" : " AND categoria = ?;");
+        ChangeBus.getInstance().inizioModifica(userId);
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(userId).prepareStatement(sql)) {
+            pstmt.setInt(1, userId);
+            pstmt.setString(2, da.atStartOfDay().format(FORMATO_DATA));
+            pstmt.setString(3, a.plusDays(1).atStartOfDay().format(FORMATO_DATA));
+            if (categoria != null) {
+                pstmt.setString(4, categoria.name());
+            }
+            return pstmt.executeUpdate();
+        } catch (SQLException ex) {
+            System.err.println("Errore cancellazione massiva delle spese: " + ex.getMessage());
+            return -1;
+        } finally {
+            ChangeBus.getInstance().fineModifica();
+        }
+    }
+
+    /**
+     * UPDATE (massivo): Sposta in avanti o indietro la data delle spese di un utente in un intervallo di giorni
+     * (solo spese non archiviate), in un'unica transazione su una connessione dedicata.
+     *
+     * @param userId      L'ID dell'utente.
+     * @param da          Il primo giorno dell'intervallo.
+     * @param a           L'ultimo giorno dell'intervallo (compreso).
+     * @param spostamento Lo spostamento, al secondo (negativo per anticipare).
+     * @return Il numero di spese spostate, oppure -1 in caso di errore.
+     * @throws SpesaDuplicataException se una spesa spostata diventerebbe uguale a una spesa esistente
+     *                                 (nessuna spesa viene spostata).
+     */
+    public int shiftDates(int userId, LocalDate da, LocalDate a, Duration spostamento) {
+        String inizio = da.atStartOfDay().format(FORMATO_DATA);
+        String fine = a.plusDays(1).atStartOfDay().format(FORMATO_DATA);
+        String avanti = String.format(Locale.ROOT, "%+d seconds", spostamento.getSeconds());
+        String indietro = String.format(Locale.ROOT, "%+d seconds", -spostamento.getSeconds());
+        DbConnection db = DbConnection.getInstance();
+        ChangeBus.getInstance().inizioModifica(userId);
+        try (Connection conn = db.apriConnessioneDedicata(db.getShardIndex(userId))) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement marca = conn.prepareStatement(MARK_CHAINS);
+                 PreparedStatement sposta = conn.prepareStatement(SHIFT_RANGE)) {
+                marca.setInt(1, userId);
+                marca.setString(2, inizio);
+                marca.setString(3, fine);
+                marca.setString(4, inizio);
+                marca.setString(5, fine);
+                marca.setString(6, avanti);
+                marca.setString(7, indietro);
+                marca.executeUpdate();
+
+                sposta.setString(1, avanti);
+                sposta.setInt(2, userId);
+                sposta.setString(3, inizio);
+                sposta.setString(4, fine);
+                int spostate = sposta.executeUpdate();
+                conn.commit();
+                return spostate;
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            }
+        } catch (SQLException ex) {
+            System.err.println("Errore spostamento massivo delle date: " + ex.getMessage());
+            if (ex.getMessage() != null && ex.getMessage().contains(INDICE_IMPRONTA)) {
+                throw new SpesaDuplicataException("Spostando le date alcune spese diventerebbero uguali a spese esistenti.");
+            }
+            return -1;
+        } finally {
+            ChangeBus.getInstance().fineModifica();
+        }
+    }
+
+    /**
+     * READ: Verifica se un utente ha già una spesa con la stessa impronta (ricerca sull'indice idx_expense_impronta).
+     *
+     * @param e La spesa (con l'idUtente impostato).
+     * @return true se esiste una spesa con la stessa impronta; false se non esiste o in caso di errore.
+     */
+    public boolean existsImpronta(Expense e) {
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(e.idUtente()).prepareStatement(EXISTS_FINGERPRINT)) {
+            pstmt.setInt(1, e.idUtente());
+            pstmt.setString(2, e.getNomeSpesa());
+            pstmt.setDouble(3, e.getImporto());
+            pstmt.setString(4, e.getValuta());
+            pstmt.setString(5, e.getData().format(FORMATO_DATA));
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
+        } catch (SQLException ex) {
+            System.err.println("Errore ricerca spesa duplicata: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * READ: Verifica che l'indice delle impronte sia univoco su tutti i database (il database unico o ogni shard),
+     * cioè che l'inserimento di un doppione non riesca.
+     *
+     * @return true se l'indice è univoco ovunque, false se non lo è o manca; null in caso di errore.
+     */
+    public Boolean isImprontaUnivoca() {
+        DbConnection db = DbConnection.getInstance();
+        Connection[] connessioni = db.isSharded() ? db.getShardConnections() : new Connection[]{db.getConnection()};
+        try {
+            for (Connection conn : connessioni) {
+                try (PreparedStatement pstmt = conn.prepareStatement(SELECT_FINGERPRINT_UNIQUE);
+                     ResultSet rs = pstmt.executeQuery()) {
+                    if (!rs.next() || rs.getInt(1) != 1) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        } catch (SQLException ex) {
+            System.err.println("Errore lettura indice delle impronte: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Calcola l'impronta di una spesa: due spese dello stesso utente con la stessa impronta sono duplicate.
+     * La normalizzazione del nome è almeno grossolana quanto {@code lower(trim(nome_spesa))} dell'indice:
+     * due nomi uguali per l'indice hanno sempre la stessa impronta.
+     *
+     * @param e La spesa.
+     * @return L'impronta, senza l'id dell'utente.
+     */
+    public static String impronta(Expense e) {
+        return impronta(e.getNomeSpesa(), e.getImporto(), e.getValuta(), e.getData().format(FORMATO_DATA));
+    }
+
+    /**
+     * READ: Ottiene la lista di tutte le spese non archiviate di un determinato utente
+     * (le spese degli anni archiviati si leggono con {@link #getExpensesInRange}).
      *
      * @param userId L'ID dell'utente di cui vogliamo le spese.
      * @return Una lista (ArrayList) di oggetti Expense.
@@ -87,7 +477,7 @@ public class ExpenseDAO {
         ResultSet rs = null;
 
         try {
-            Connection conn = DbConnection.getInstance().getConnection();
+            Connection conn = DbConnection.getInstance().getConnection(userId);
             pstmt = conn.prepareStatement(SELECT_BY_USER);
             pstmt.setInt(1, userId);
 
@@ -95,7 +485,7 @@ public class ExpenseDAO {
 
             // Cicliamo su tutte le righe trovate
             while (rs.next()) {
-                expenses.add(mapRowToExpense(rs));
+                expenses.add(mapRowToSharedExpense(rs));
             }
 
         } catch (SQLException ex) {
@@ -107,31 +497,195 @@ public class ExpenseDAO {
     }
 
     /**
-     * UPDATE: Aggiorna i dettagli di una spesa esistente.
+     * READ (streaming): Scorre le spese di un utente una alla volta, senza caricarle tutte in memoria.
+     * Utile per inviare liste molto lunghe (es. risposte HTTP) man mano che vengono lette.
+     *
+     * @param userId    L'ID dell'utente di cui vogliamo le spese.
+     * @param categoria La categoria da filtrare, oppure null per tutte le spese.
+     * @param consumer  Riceve ogni spesa letta, nell'ordine del database.
+     * @return true se tutte le spese sono state lette, false se la lettura si è interrotta per un errore del database.
+     */
+    public boolean forEachExpense(int userId, Categories categoria, Consumer<Expense> consumer) {
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+
+        try {
+            Connection conn = DbConnection.getInstance().getConnection(userId);
+            if (categoria == null) {
+                pstmt = conn.prepareStatement(SELECT_BY_USER);
+                pstmt.setInt(1, userId);
+            } else {
+                pstmt = conn.prepareStatement(SEARCH_BY_CATEGORY);
+                pstmt.setInt(1, userId);
+                pstmt.setString(2, categoria.name());
+            }
+
+            rs = pstmt.executeQuery();
+
+            while (rs.next()) {
+                consumer.accept(mapRowToSharedExpense(rs));
+            }
+            return true;
+
+        } catch (SQLException ex) {
+            System.err.println("Errore lettura spese: " + ex.getMessage());
+            return false;
+        } finally {
+            DatabaseHelper.close(pstmt, rs);
+        }
+    }
+
+    /**
+     * UPDATE: Aggiorna i dettagli di una spesa esistente con controllo di concorrenza ottimistico.
+     * <p>
+     * L'aggiornamento viene applicato solo se la versione della spesa passata coincide con quella
+     * salvata nel database; in quel caso la versione viene incrementata. Non serve leggere la riga
+     * prima di scriverla: solo in caso di conflitto viene recuperato lo stato attuale da restituire al chiamante.
+     * </p>
+     *
+     * @param e L'oggetto Expense con i dati aggiornati (id, idUtente e versione letta in precedenza).
+     * @return L'esito dell'aggiornamento (aggiornata, conflitto, non trovata, archiviata o duplicata), oppure null se il
+     *         database restituisce un errore: solo un aggiornamento senza righe modificate è un conflitto o una spesa mancante.
+     */
+    public ExpenseUpdateResult updateExpense(Expense e) {
+        return updateExpense(e, true);
+    }
+
+    /**
+     * UPDATE: Come {@link #updateExpense(Expense)}, ma può lasciare la valuta salvata nel database invece di
+     * sostituirla con quella della spesa passata, senza leggerla prima: in quel caso la spesa riceve la valuta
+     * salvata insieme alla nuova versione.
      *
-     * @param e L'oggetto Expense con i dati aggiornati.
+     * @param e            L'oggetto Expense con i dati aggiornati (id, idUtente e versione letta in precedenza).
+     * @param cambiaValuta false per mantenere la valuta salvata.
+     * @return L'esito dell'aggiornamento, oppure null se il database restituisce un errore.
      */
-    public void updateExpense(Expense e) {
+    public ExpenseUpdateResult updateExpense(Expense e, boolean cambiaValuta) {
         PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        ChangeBus.getInstance().inizioModifica(e.idUtente());
         try {
-            Connection conn = DbConnection.getInstance().getConnection();
+            Connection conn = DbConnection.getInstance().getConnection(e.idUtente());
             pstmt = conn.prepareStatement(UPDATE_EXPENSE);
 
             pstmt.setString(1, e.getNomeSpesa());
             pstmt.setString(2, e.getCategoria().name());
             pstmt.setString(3, e.getDescrizione());
             pstmt.setDouble(4, e.getImporto());
-            pstmt.setString(5, e.getData().toString());
-            // L'ultimo parametro è l'ID della spesa per il WHERE
-            pstmt.setInt(6, e.getId());
+            pstmt.setString(5, e.getData().format(FORMATO_DATA));
+            pstmt.setString(6, cambiaValuta ? e.getValuta() : null);
+            // Parametri della clausola WHERE: id, proprietario e versione attesa
+            pstmt.setInt(7, e.getId());
+            pstmt.setInt(8, e.idUtente());
+            pstmt.setInt(9, e.getVersion());
+
+            rs = pstmt.executeQuery();
 
-            pstmt.executeUpdate();
-            System.out.println("Spesa aggiornata: " + e.getNomeSpesa());
+            if (rs.next()) {
+                int nuovaVersione = rs.getInt("version");
+                e.setVersion(nuovaVersione);
+                e.setValuta(rs.getString("valuta"));
+                System.out.println("Spesa aggiornata: " + e.getNomeSpesa() + " (versione " + nuovaVersione + ")");
+                return ExpenseUpdateResult.aggiornata(nuovaVersione);
+            }
 
         } catch (SQLException ex) {
             System.err.println("Errore aggiornamento spesa: " + ex.getMessage());
+            if (ex.getMessage() != null && ex.getMessage().contains(INDICE_IMPRONTA)) {
+                return ExpenseUpdateResult.duplicata();
+            }
+            return null;
         } finally {
-            DatabaseHelper.close(pstmt);
+            ChangeBus.getInstance().fineModifica();
+            DatabaseHelper.close(pstmt, rs);
+        }
+
+        // Nessuna riga aggiornata: la spesa non esiste, è archiviata, o la versione non corrisponde più
+        Expense corrente = leggiSpesa(e.getId(), e.idUtente());
+        if (corrente == null) {
+            return getArchivedExpenseById(e.getId(), e.idUtente()) != null
+                    ? ExpenseUpdateResult.archiviata() : ExpenseUpdateResult.nonTrovata();
+        }
+        System.err.println("Conflitto di versione sulla spesa ID " + e.getId() + ": attesa " + e.getVersion() + ", trovata " + corrente.getVersion());
+        return ExpenseUpdateResult.conflitto(corrente);
+    }
+
+    /**
+     * READ: Recupera una singola spesa di un utente tramite il suo ID, anche se archiviata
+     * (in quel caso viene cercata nei file di archivio, solo dopo il database principale).
+     *
+     * @param expenseId L'ID della spesa.
+     * @param userId    L'ID dell'utente proprietario.
+     * @return La spesa trovata, oppure null.
+     */
+    public Expense getExpenseById(int expenseId, int userId) {
+        Expense spesa = leggiSpesa(expenseId, userId);
+        return spesa != null ? spesa : getArchivedExpenseById(expenseId, userId);
+    }
+
+    /**
+     * READ: Cerca una spesa di un utente nei file di archivio. Le spese archiviate sono in sola lettura:
+     * aggiornamenti e cancellazioni riguardano solo il database principale.
+     *
+     * @param expenseId L'ID della spesa.
+     * @param userId    L'ID dell'utente proprietario.
+     * @return La spesa archiviata, oppure null se non è in nessun archivio.
+     */
+    public Expense getArchivedExpenseById(int expenseId, int userId) {
+        try {
+            DbConnection db = DbConnection.getInstance();
+            for (String file : fileArchivio(db.getConnection(userId))) {
+                try (PreparedStatement pstmt = db.getArchiveConnection(file).prepareStatement(SELECT_ARCHIVED_BY_ID)) {
+                    pstmt.setInt(1, userId);
+                    pstmt.setInt(2, expenseId);
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        if (rs.next()) {
+                            return mapRowToExpense(rs);
+                        }
+                    }
+                }
+            }
+        } catch (SQLException ex) {
+            System.err.println("Errore recupero spesa archiviata: " + ex.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * DELETE: Cancella dai file di archivio tutte le spese di un utente (alla cancellazione dell'account),
+     * e ne toglie il numero dal catalogo degli anni archiviati. È l'unica scrittura dell'applicazione sui file
+     * di archivio, con una connessione propria: quelle usate per le letture sono in sola lettura.
+     *
+     * @param userId L'ID dell'utente.
+     * @return true se le spese sono state cancellate da tutti gli archivi (o non ce n'erano).
+     */
+    public boolean deleteArchivedExpenses(int userId) {
+        try {
+            Connection conn = DbConnection.getInstance().getConnection(userId);
+            Map<Integer, String> archivi = new TreeMap<>();
+            try (PreparedStatement pstmt = conn.prepareStatement(SELECT_ALL_ARCHIVED_YEARS);
+                 ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    archivi.put(rs.getInt("anno"), rs.getString("file"));
+                }
+            }
+            for (Map.Entry<Integer, String> archivio : archivi.entrySet()) {
+                int cancellate;
+                try (Connection scrittura = DriverManager.getConnection("jdbc:sqlite:" + archivio.getValue());
+                     PreparedStatement pstmt = scrittura.prepareStatement(DELETE_ARCHIVED_BY_USER)) {
+                    pstmt.setInt(1, userId);
+                    cancellate = pstmt.executeUpdate();
+                }
+                try (PreparedStatement pstmt = conn.prepareStatement(UPDATE_ARCHIVED_COUNT)) {
+                    pstmt.setInt(1, cancellate);
+                    pstmt.setInt(2, archivio.getKey());
+                    pstmt.executeUpdate();
+                }
+            }
+            return true;
+        } catch (SQLException ex) {
+            System.err.println("Errore cancellazione spese archiviate: " + ex.getMessage());
+            return false;
         }
     }
 
@@ -139,21 +693,33 @@ public class ExpenseDAO {
      * DELETE: Cancella una spesa dal database.
      *
      * @param expenseId L'ID della spesa da eliminare.
+     * @param userId    L'ID dell'utente proprietario (impedisce di cancellare spese altrui).
+     * @return La spesa cancellata così com'era nel database principale, oppure null se non esisteva, in caso
+     *         di errore o se è archiviata (le spese archiviate sono in sola lettura, vedi {@link #getArchivedExpenseById}).
      */
-    public void deleteExpense(int expenseId) {
+    public Expense deleteExpense(int expenseId, int userId) {
         PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        ChangeBus.getInstance().inizioModifica(userId);
         try {
-            Connection conn = DbConnection.getInstance().getConnection();
+            Connection conn = DbConnection.getInstance().getConnection(userId);
             pstmt = conn.prepareStatement(DELETE_EXPENSE);
             pstmt.setInt(1, expenseId);
+            pstmt.setInt(2, userId);
 
-            pstmt.executeUpdate();
-            System.out.println("Spesa eliminata ID: " + expenseId);
+            rs = pstmt.executeQuery();
+            Expense eliminata = rs.next() ? mapRowToExpense(rs) : null;
+            if (eliminata != null) {
+                System.out.println("Spesa eliminata ID: " + expenseId);
+            }
+            return eliminata;
 
         } catch (SQLException ex) {
             System.err.println("Errore cancellazione spesa: " + ex.getMessage());
+            return null;
         } finally {
-            DatabaseHelper.close(pstmt);
+            ChangeBus.getInstance().fineModifica();
+            DatabaseHelper.close(pstmt, rs);
         }
     }
 
@@ -169,7 +735,7 @@ public class ExpenseDAO {
         ResultSet rs = null;
 
         try {
-            Connection conn = DbConnection.getInstance().getConnection();
+            Connection conn = DbConnection.getInstance().getConnection(userId);
             pstmt = conn.prepareStatement(SEARCH_BY_CATEGORY);
 
             // Impostiamo i parametri rispettando l'ordine della query
@@ -180,7 +746,7 @@ public class ExpenseDAO {
 
             while (rs.next()) {
                 // Riutilizziamo il metodo helper che abbiamo già scritto
-                Expense spesa = mapRowToExpense(rs);
+                Expense spesa = mapRowToSharedExpense(rs);
                 spese.add(spesa);
             }
 
@@ -194,13 +760,626 @@ public class ExpenseDAO {
         return spese;
     }
 
+    // --- LETTURE CON ARCHIVIO ---
+
+    /**
+     * READ: Recupera le spese di un utente in un intervallo di date (estremi inclusi), in ordine cronologico.
+     * <p>
+     * Le spese degli anni archiviati (vedi {@code tools.ExpenseArchiver}) non sono più nella tabella
+     * principale: se l'intervallo tocca uno di questi anni, viene letto anche il relativo file di archivio.
+     * Per gli intervalli recenti la tabella archive_year non restituisce nulla e si legge solo il database principale.
+     * Gli altri metodi di lettura (senza intervallo) restituiscono solo le spese non archiviate, tranne
+     * {@link #getExpenseById}, che cerca negli archivi le spese che non trova nel database principale.
+     * </p>
+     *
+     * @param userId L'ID dell'utente.
+     * @param da     Il primo giorno dell'intervallo.
+     * @param a      L'ultimo giorno dell'intervallo.
+     * @return Le spese trovate, ordinate per data.
+     */
+    public List<Expense> getExpensesInRange(int userId, LocalDate da, LocalDate a) {
+        List<Expense> spese = new ArrayList<>();
+        String inizio = da.atStartOfDay().format(FORMATO_DATA);
+        String fine = a.plusDays(1).atStartOfDay().format(FORMATO_DATA);
+
+        try {
+            DbConnection db = DbConnection.getInstance();
+            Connection conn = db.getConnection(userId);
+            leggiIntervallo(conn, userId, inizio, fine, spese);
+
+            List<String> fileArchivio = new ArrayList<>();
+            try (PreparedStatement pstmt = conn.prepareStatement(SELECT_ARCHIVED_YEARS)) {
+                pstmt.setInt(1, da.getYear());
+                pstmt.setInt(2, a.getYear());
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        fileArchivio.add(rs.getString("file"));
+                    }
+                }
+            }
+            if (fileArchivio.isEmpty()) {
+                return spese;
+            }
+
+            for (String file : fileArchivio) {
+                leggiIntervallo(db.getArchiveConnection(file), userId, inizio, fine, spese);
+            }
+            // Il database principale può contenere spese con date di anni già archiviati (inserite dopo l'archiviazione)
+            spese.sort(Comparator.comparing(Expense::getData).thenComparingInt(Expense::getId));
+            // Un'archiviazione interrotta tra copia e cancellazione lascia la stessa spesa in entrambi i posti:
+            // dopo l'ordinamento i doppioni sono adiacenti
+            for (int i = spese.size() - 1; i > 0; i--) {
+                if (spese.get(i).getId() == spese.get(i - 1).getId()) {
+                    spese.remove(i);
+                }
+            }
+
+        } catch (SQLException ex) {
+            System.err.println("Errore recupero spese per intervallo: " + ex.getMessage());
+        }
+        return spese;
+    }
+
+    /**
+     * READ: Calcola il totale speso da un utente in un anno, per categoria, nella sua valuta base.
+     * Per gli anni archiviati usa i riepiloghi mensili rimasti nel database principale,
+     * senza aprire i file di archivio.
+     *
+     * @param userId L'ID dell'utente.
+     * @param anno   L'anno richiesto.
+     * @return I totali per categoria (solo le categorie con almeno una spesa).
+     */
+    public Map<Categories, Double> getYearTotalsByCategory(int userId, int anno) {
+        Map<Categories, Double> totali = new EnumMap<>(Categories.class);
+        try {
+            Connection conn = DbConnection.getInstance().getConnection(userId);
+            try (PreparedStatement pstmt = conn.prepareStatement(SUM_SUMMARY_BY_CATEGORY)) {
+                pstmt.setInt(1, userId);
+                pstmt.setInt(2, anno);
+                pstmt.setInt(3, userId);
+                sommaPerCategoria(pstmt, totali);
+            }
+            try (PreparedStatement pstmt = conn.prepareStatement(SUM_HOT_BY_CATEGORY)) {
+                pstmt.setInt(1, userId);
+                pstmt.setString(2, LocalDate.of(anno, 1, 1).atStartOfDay().format(FORMATO_DATA));
+                pstmt.setString(3, LocalDate.of(anno + 1, 1, 1).atStartOfDay().format(FORMATO_DATA));
+                pstmt.setInt(4, userId);
+                sommaPerCategoria(pstmt, totali);
+            }
+        } catch (SQLException ex) {
+            System.err.println("Errore calcolo totali annuali: " + ex.getMessage());
+        }
+        return totali;
+    }
+
+    /**
+     * READ: Calcola il totale speso da un utente per categoria in un intervallo di date (solo spese non archiviate),
+     * convertito nella sua valuta base.
+     *
+     * @param userId L'ID dell'utente.
+     * @param da     Il primo giorno dell'intervallo.
+     * @param fine   Il giorno successivo all'ultimo dell'intervallo (escluso).
+     * @return I totali per categoria (solo le categorie con almeno una spesa), oppure null in caso di errore.
+     */
+    public Map<Categories, Double> getTotalsByCategory(int userId, LocalDate da, LocalDate fine) {
+        Map<Categories, Double> totali = new EnumMap<>(Categories.class);
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(userId).prepareStatement(SUM_HOT_BY_CATEGORY)) {
+            pstmt.setInt(1, userId);
+            pstmt.setString(2, da.atStartOfDay().format(FORMATO_DATA));
+            pstmt.setString(3, fine.atStartOfDay().format(FORMATO_DATA));
+            pstmt.setInt(4, userId);
+            sommaPerCategoria(pstmt, totali);
+        } catch (SQLException ex) {
+            System.err.println("Errore calcolo totali per categoria: " + ex.getMessage());
+            return null;
+        }
+        return totali;
+    }
+
+    /**
+     * READ: Calcola il totale speso da un utente per categoria e valuta in un intervallo di date (solo spese
+     * non archiviate), senza conversioni: ogni importo resta nella valuta in cui è stato registrato.
+     *
+     * @param userId L'ID dell'utente.
+     * @param da     Il primo giorno dell'intervallo.
+     * @param fine   Il giorno successivo all'ultimo dell'intervallo (escluso).
+     * @return I totali per categoria e valuta (solo quelle con almeno una spesa), oppure null in caso di errore.
+     */
+    public Map<Categories, Map<String, Double>> getTotalsByCategoryAndCurrency(int userId, LocalDate da, LocalDate fine) {
+        Map<Categories, Map<String, Double>> totali = new EnumMap<>(Categories.class);
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(userId).prepareStatement(SUM_HOT_BY_CATEGORY_AND_CURRENCY)) {
+            pstmt.setInt(1, userId);
+            pstmt.setString(2, da.atStartOfDay().format(FORMATO_DATA));
+            pstmt.setString(3, fine.atStartOfDay().format(FORMATO_DATA));
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    totali.computeIfAbsent(Categories.valueOf(rs.getString("categoria")), c -> new HashMap<>())
+                            .put(rs.getString("valuta"), rs.getDouble("totale"));
+                }
+            }
+        } catch (SQLException ex) {
+            System.err.println("Errore calcolo totali per categoria e valuta: " + ex.getMessage());
+            return null;
+        }
+        return totali;
+    }
+
+    /**
+     * READ: Calcola il totale speso da un utente giorno per giorno in un intervallo (estremi inclusi),
+     * convertito nella sua valuta base.
+     * La somma viene fatta da SQLite sull'indice (user_id, data); come {@link #getExpensesInRange},
+     * per gli anni archiviati viene interrogato anche il file di archivio.
+     *
+     * @param userId L'ID dell'utente.
+     * @param da     Il primo giorno dell'intervallo.
+     * @param a      L'ultimo giorno dell'intervallo.
+     * @return I totali dei soli giorni con almeno una spesa, in ordine di data.
+     */
+    public List<SeriesPoint> getDailyTotals(int userId, LocalDate da, LocalDate a) {
+        Map<LocalDate, Double> totali = new TreeMap<>();
+        String inizio = da.atStartOfDay().format(FORMATO_DATA);
+        String fine = a.plusDays(1).atStartOfDay().format(FORMATO_DATA);
+
+        try {
+            DbConnection db = DbConnection.getInstance();
+            Connection conn = db.getConnection(userId);
+            sommaPerGiorno(conn, userId, inizio, fine, totali);
+
+            List<String> fileArchivio = new ArrayList<>();
+            try (PreparedStatement pstmt = conn.prepareStatement(SELECT_ARCHIVED_YEARS)) {
+                pstmt.setInt(1, da.getYear());
+                pstmt.setInt(2, a.getYear());
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        fileArchivio.add(rs.getString("file"));
+                    }
+                }
+            }
+            if (!fileArchivio.isEmpty()) {
+                Map<String, Double> fattori = fattoriDiConversione(conn, userId);
+                for (String file : fileArchivio) {
+                    sommaArchivioPerGiorno(db.getArchiveConnection(file), userId, inizio, fine, fattori, totali);
+                }
+            }
+        } catch (SQLException ex) {
+            System.err.println("Errore calcolo totali giornalieri: " + ex.getMessage());
+        }
+
+        List<SeriesPoint> serie = new ArrayList<>(totali.size());
+        totali.forEach((giorno, totale) -> serie.add(new SeriesPoint(giorno, totale)));
+        return serie;
+    }
+
+    /**
+     * READ: Calcola il totale speso da un utente giorno per giorno e per categoria in un intervallo (estremi inclusi,
+     * solo spese non archiviate), convertito nella sua valuta base.
+     *
+     * @param userId L'ID dell'utente.
+     * @param da     Il primo giorno dell'intervallo.
+     * @param a      L'ultimo giorno dell'intervallo.
+     * @return Per ogni categoria con almeno una spesa, i totali dei giorni (indice 0 = {@code da}),
+     * oppure null in caso di errore.
+     */
+    public Map<Categories, double[]> getDailyTotalsByCategory(int userId, LocalDate da, LocalDate a) {
+        Map<Categories, double[]> totali = new EnumMap<>(Categories.class);
+        int giorni = (int) ChronoUnit.DAYS.between(da, a) + 1;
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(userId).prepareStatement(SUM_BY_CATEGORY_AND_DAY)) {
+            pstmt.setInt(1, userId);
+            pstmt.setString(2, da.atStartOfDay().format(FORMATO_DATA));
+            pstmt.setString(3, a.plusDays(1).atStartOfDay().format(FORMATO_DATA));
+            pstmt.setInt(4, userId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    double[] serie = totali.computeIfAbsent(Categories.valueOf(rs.getString("categoria")), c -> new double[giorni]);
+                    serie[(int) ChronoUnit.DAYS.between(da, LocalDate.parse(rs.getString("giorno")))] += rs.getDouble("totale");
+                }
+            }
+        } catch (SQLException ex) {
+            System.err.println("Errore calcolo totali giornalieri per categoria: " + ex.getMessage());
+            return null;
+        }
+        return totali;
+    }
+
+    /**
+     * READ: Calcola con una sola query i totali per categoria che servono alle previsioni di spesa
+     * (solo spese non archiviate), convertiti nella valuta base dell'utente.
+     *
+     * @param userId L'ID dell'utente.
+     * @param da     Il primo giorno dei giorni chiusi.
+     * @param oggi   Il giorno corrente.
+     * @return Per ogni categoria con almeno una spesa i totali {giorni chiusi da {@code da} a ieri, oggi,
+     * mese corrente, anno corrente} (mese e anno fino a oggi compreso), oppure null in caso di errore.
+     */
+    public Map<Categories, double[]> getProgressTotalsByCategory(int userId, LocalDate da, LocalDate oggi) {
+        Map<Categories, double[]> totali = new EnumMap<>(Categories.class);
+        LocalDate inizioAnno = oggi.withDayOfYear(1);
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(userId).prepareStatement(SUM_PROGRESS_BY_CATEGORY)) {
+            pstmt.setString(1, da.atStartOfDay().format(FORMATO_DATA));
+            pstmt.setString(2, oggi.atStartOfDay().format(FORMATO_DATA));
+            pstmt.setString(3, oggi.atStartOfDay().format(FORMATO_DATA));
+            pstmt.setString(4, oggi.withDayOfMonth(1).atStartOfDay().format(FORMATO_DATA));
+            pstmt.setString(5, inizioAnno.atStartOfDay().format(FORMATO_DATA));
+            pstmt.setInt(6, userId);
+            pstmt.setString(7, (da.isBefore(inizioAnno) ? da : inizioAnno).atStartOfDay().format(FORMATO_DATA));
+            pstmt.setString(8, oggi.plusDays(1).atStartOfDay().format(FORMATO_DATA));
+            pstmt.setInt(9, userId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    totali.put(Categories.valueOf(rs.getString("categoria")), new double[]{
+                            rs.getDouble("chiusi"), rs.getDouble("oggi"), rs.getDouble("mese"), rs.getDouble("anno")});
+                }
+            }
+        } catch (SQLException ex) {
+            System.err.println("Errore calcolo totali per le previsioni: " + ex.getMessage());
+            return null;
+        }
+        return totali;
+    }
+
+    /**
+     * READ: Passa ogni spesa di un utente in un intervallo (anche negli anni archiviati), in ordine di data,
+     * con il suo importo convertito nella valuta base, senza costruire gli oggetti Expense.
+     *
+     * @param userId      L'ID dell'utente.
+     * @param da          Il primo giorno dell'intervallo.
+     * @param a           L'ultimo giorno dell'intervallo.
+     * @param consumatore Riceve la categoria e l'importo di ogni spesa.
+     * @return true se tutte le spese sono state lette, false in caso di errore.
+     */
+    public boolean forEachImporto(int userId, LocalDate da, LocalDate a, ObjDoubleConsumer<Categories> consumatore) {
+        String inizio = da.atStartOfDay().format(FORMATO_DATA);
+        String fine = a.plusDays(1).atStartOfDay().format(FORMATO_DATA);
+
+        try {
+            DbConnection db = DbConnection.getInstance();
+            Connection conn = db.getConnection(userId);
+
+            // Prima gli anni archiviati, che precedono quelli rimasti nel database principale
+            List<String> fileArchivio = new ArrayList<>();
+            try (PreparedStatement pstmt = conn.prepareStatement(SELECT_ARCHIVED_YEARS)) {
+                pstmt.setInt(1, da.getYear());
+                pstmt.setInt(2, a.getYear());
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        fileArchivio.add(rs.getString("file"));
+                    }
+                }
+            }
+            if (!fileArchivio.isEmpty()) {
+                Map<String, Double> fattori = fattoriDiConversione(conn, userId);
+                for (String file : fileArchivio) {
+                    try (PreparedStatement pstmt = db.getArchiveConnection(file).prepareStatement(SELECT_ARCHIVED_AMOUNTS)) {
+                        pstmt.setInt(1, userId);
+                        pstmt.setString(2, inizio);
+                        pstmt.setString(3, fine);
+                        try (ResultSet rs = pstmt.executeQuery()) {
+                            while (rs.next()) {
+                                Double fattore = fattori.get(rs.getString("valuta"));
+                                if (fattore != null) {
+                                    consumatore.accept(Categories.valueOf(rs.getString("categoria")), rs.getDouble("importo") * fattore);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+
+            try (PreparedStatement pstmt = conn.prepareStatement(SELECT_AMOUNTS)) {
+                pstmt.setInt(1, userId);
+                pstmt.setString(2, inizio);
+                pstmt.setString(3, fine);
+                pstmt.setInt(4, userId);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        consumatore.accept(Categories.valueOf(rs.getString("categoria")), rs.getDouble("importo"));
+                    }
+                }
+            }
+            return true;
+        } catch (SQLException ex) {
+            System.err.println("Errore lettura importi: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Riceve il totale delle spese di un nome in una valuta (vedi {@link #forEachTotalePerNome}).
+     */
+    @FunctionalInterface
+    public interface TotalePerNome {
+        void accept(String nome, String valuta, long centesimi, int numero);
+    }
+
+    /**
+     * READ: Passa il totale in centesimi, nella valuta delle spese, e il numero delle spese di un utente
+     * per nome e valuta, su tutto lo storico (anche negli anni archiviati). Lo stesso nome e la stessa valuta
+     * possono arrivare una volta per ogni file di archivio e una per il database principale.
+     *
+     * @param userId      L'ID dell'utente.
+     * @param consumatore Riceve i totali di ogni nome e valuta.
+     * @return true se tutte le spese sono state lette, false in caso di errore.
+     */
+    public boolean forEachTotalePerNome(int userId, TotalePerNome consumatore) {
+        try {
+            DbConnection db = DbConnection.getInstance();
+            Connection conn = db.getConnection(userId);
+            for (String file : fileArchivio(conn)) {
+                leggiTotaliPerNome(db.getArchiveConnection(file), userId, consumatore);
+            }
+            leggiTotaliPerNome(conn, userId, consumatore);
+            return true;
+        } catch (SQLException ex) {
+            System.err.println("Errore lettura totali per nome: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    private void leggiTotaliPerNome(Connection conn, int userId, TotalePerNome consumatore) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(SELECT_NAME_TOTALS)) {
+            pstmt.setInt(1, userId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    consumatore.accept(rs.getString("nome_spesa"), rs.getString("valuta"), rs.getLong("centesimi"), rs.getInt("numero"));
+                }
+            }
+        }
+    }
+
+    /**
+     * READ: Conta le spese (non archiviate) di un utente.
+     *
+     * @param userId    L'ID dell'utente.
+     * @param categoria La categoria da filtrare, oppure null per tutte le spese.
+     * @return Il numero di spese, oppure 0 in caso di errore.
+     */
+    public int countExpenses(int userId, Categories categoria) {
+        String sql = COUNT_BY_USER + (categoria == null ? ";" : " AND categoria = ?;");
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(userId).prepareStatement(sql)) {
+            pstmt.setInt(1, userId);
+            if (categoria != null) {
+                pstmt.setString(2, categoria.name());
+            }
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        } catch (SQLException ex) {
+            System.err.println("Errore conteggio spese: " + ex.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * READ (a pagine, per chiave): Legge le spese che nell'ordinamento richiesto seguono la spesa indicata.
+     * <p>
+     * La posizione viene ritrovata con un confronto sulla coppia (colonna di ordinamento, id) invece di
+     * saltare N righe con OFFSET: per data la query parte direttamente dal punto giusto dell'indice, quindi il
+     * costo di una pagina non cresce scorrendo verso il fondo della lista. Le date sono confrontate con il testo
+     * salvato nella riga della spesa indicata, così il passaggio tra le pagine resta coerente anche con date
+     * scritte in un altro formato. Per importo l'ordine è quello degli importi convertiti nella valuta base
+     * dell'utente con i cambi attuali: SQLite scorre le spese dell'utente tenendo solo le prime della pagina.
+     * </p>
+     *
+     * @param userId    L'ID dell'utente.
+     * @param categoria La categoria da filtrare, oppure null per tutte le spese.
+     * @param ordine    L'ordinamento.
+     * @param dopo      L'ultima spesa della pagina precedente, oppure null per la prima pagina.
+     * @param limite    Il numero massimo di spese della pagina.
+     * @return Le spese della pagina, nell'ordine richiesto.
+     */
+    public List<Expense> getExpensePage(int userId, Categories categoria, ExpenseOrder ordine, Expense dopo, int limite) {
+        return leggiPagina(userId, categoria, ordine, dopo, 0, limite);
+    }
+
+    /**
+     * READ (a pagine, per posizione): Legge le spese a partire da una posizione dell'ordinamento.
+     * Con OFFSET SQLite deve scorrere tutte le righe precedenti: va usato solo per i salti (es. trascinamento
+     * della barra di scorrimento), mentre lo scorrimento continuo usa {@link #getExpensePage}.
+     *
+     * @param userId    L'ID dell'utente.
+     * @param categoria La categoria da filtrare, oppure null per tutte le spese.
+     * @param ordine    L'ordinamento.
+     * @param posizione La posizione (da 0) della prima spesa della pagina.
+     * @param limite    Il numero massimo di spese della pagina.
+     * @return Le spese della pagina, nell'ordine richiesto.
+     */
+    public List<Expense> getExpensePageAt(int userId, Categories categoria, ExpenseOrder ordine, int posizione, int limite) {
+        return leggiPagina(userId, categoria, ordine, null, posizione, limite);
+    }
+
     // --- HELPER PRIVATO ---
 
+    private List<Expense> leggiPagina(int userId, Categories categoria, ExpenseOrder ordine, Expense dopo, int posizione, int limite) {
+        List<Expense> spese = new ArrayList<>();
+        boolean perImporto = ordine.getColonna().equals("importo");
+        // La colonna arriva solo da ExpenseOrder: nessun testo esterno nella query
+        String valore = perImporto ? "e.importo * " + FATTORE_PAGINA : "e." + ordine.getColonna();
+        String verso = ordine.isDecrescente() ? " DESC" : "";
+        StringBuilder sql = new StringBuilder("SELECT e.* FROM expense e");
+        if (perImporto) {
+            sql.append(CAMBIO_PAGINA);
+        }
+        sql.append(" WHERE e.user_id = ?");
+        if (categoria != null) {
+            sql.append(" AND e.categoria = ?");
+        }
+        if (dopo != null) {
+            // La chiave della spesa di partenza è calcolata come quella delle righe: per l'importo con la stessa
+            // espressione (stesso risultato in virgola mobile), per la data con il testo salvato, qualunque formato abbia
+            String chiave = perImporto
+                    ? "? * COALESCE(b.per_euro / (SELECT per_euro FROM exchange_rate WHERE valuta = ?), 0)"
+                    : "COALESCE((SELECT data FROM expense WHERE id = ? AND user_id = ?), ?)";
+            sql.append(" AND (").append(valore).append(", e.id) ").append(ordine.isDecrescente() ? "<" : ">")
+                    .append(" (").append(chiave).append(", ?)");
+        }
+        sql.append(" ORDER BY ").append(valore).append(verso).append(", e.id").append(verso).append(" LIMIT ? OFFSET ?;");
+
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(userId).prepareStatement(sql.toString())) {
+            int i = 1;
+            if (perImporto) {
+                pstmt.setInt(i++, userId);
+            }
+            pstmt.setInt(i++, userId);
+            if (categoria != null) {
+                pstmt.setString(i++, categoria.name());
+            }
+            if (dopo != null) {
+                if (perImporto) {
+                    pstmt.setDouble(i++, dopo.getImporto());
+                    pstmt.setString(i++, dopo.getValuta());
+                } else {
+                    pstmt.setInt(i++, dopo.getId());
+                    pstmt.setInt(i++, userId);
+                    pstmt.setString(i++, dopo.getData().format(FORMATO_DATA));
+                }
+                pstmt.setInt(i++, dopo.getId());
+            }
+            pstmt.setInt(i++, limite);
+            pstmt.setInt(i, posizione);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    spese.add(mapRowToSharedExpense(rs));
+                }
+            }
+        } catch (SQLException ex) {
+            System.err.println("Errore lettura pagina di spese: " + ex.getMessage());
+        }
+        return spese;
+    }
+
+    /**
+     * @return La spesa dal database principale (senza cercarla negli archivi), oppure null.
+     */
+    private Expense leggiSpesa(int expenseId, int userId) {
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(userId).prepareStatement(SELECT_BY_ID)) {
+            pstmt.setInt(1, expenseId);
+            pstmt.setInt(2, userId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return mapRowToExpense(rs);
+                }
+            }
+        } catch (SQLException ex) {
+            System.err.println("Errore recupero spesa per ID: " + ex.getMessage());
+        }
+        return null;
+    }
+
+    private List<String> fileArchivio(Connection conn) throws SQLException {
+        List<String> file = new ArrayList<>();
+        try (PreparedStatement pstmt = conn.prepareStatement(SELECT_ALL_ARCHIVED_YEARS);
+             ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                file.add(rs.getString("file"));
+            }
+        }
+        return file;
+    }
+
+    private void leggiIntervallo(Connection conn, int userId, String inizio, String fine, List<Expense> spese) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(SELECT_BY_RANGE)) {
+            pstmt.setInt(1, userId);
+            pstmt.setString(2, inizio);
+            pstmt.setString(3, fine);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    spese.add(mapRowToSharedExpense(rs));
+                }
+            }
+        }
+    }
+
+    private void sommaPerGiorno(Connection conn, int userId, String inizio, String fine, Map<LocalDate, Double> totali) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(SUM_BY_DAY)) {
+            pstmt.setInt(1, userId);
+            pstmt.setString(2, inizio);
+            pstmt.setString(3, fine);
+            pstmt.setInt(4, userId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    totali.merge(LocalDate.parse(rs.getString("giorno")), rs.getDouble("totale"), Double::sum);
+                }
+            }
+        }
+    }
+
+    private void sommaArchivioPerGiorno(Connection archivio, int userId, String inizio, String fine,
+                                        Map<String, Double> fattori, Map<LocalDate, Double> totali) throws SQLException {
+        try (PreparedStatement pstmt = archivio.prepareStatement(SUM_ARCHIVED_BY_DAY)) {
+            pstmt.setInt(1, userId);
+            pstmt.setString(2, inizio);
+            pstmt.setString(3, fine);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    Double fattore = fattori.get(rs.getString("valuta"));
+                    if (fattore != null) {
+                        totali.merge(LocalDate.parse(rs.getString("giorno")), rs.getDouble("totale") * fattore, Double::sum);
+                    }
+                }
+            }
+        }
+    }
+
+    private Map<String, Double> fattoriDiConversione(Connection conn, int userId) throws SQLException {
+        Map<String, Double> fattori = new HashMap<>();
+        try (PreparedStatement pstmt = conn.prepareStatement(SELECT_FACTORS)) {
+            pstmt.setInt(1, userId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    fattori.put(rs.getString("valuta"), rs.getDouble("fattore"));
+                }
+            }
+        }
+        return fattori;
+    }
+
+    private void sommaPerCategoria(PreparedStatement pstmt, Map<Categories, Double> totali) throws SQLException {
+        try (ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                totali.merge(Categories.valueOf(rs.getString("categoria")), rs.getDouble("totale"), Double::sum);
+            }
+        }
+    }
+
+    private static String impronta(String nome, double importo, String valuta, String data) {
+        // + 0.0 rende uguali 0.0 e -0.0, come in SQL
+        return nome.strip().toLowerCase(Locale.ROOT) + '\n' + (importo + 0.0) + '\n' + valuta + '\n' + data;
+    }
+
+    /**
+     * @return La deduplicazione dei testi (nomi, descrizioni, valute) delle spese lette in blocco.
+     */
+    public static Interner<String> getInternerTesti() {
+        return TESTI;
+    }
+
+    /**
+     * @return La deduplicazione delle date delle spese lette in blocco.
+     */
+    public static Interner<LocalDateTime> getInternerDate() {
+        return DATE;
+    }
+
     /**
      * Converte una riga del database in un oggetto Expense Java.
      * Gestisce la conversione complessa di Date ed Enum.
+     * Usato anche da {@link SyncDAO}.
+     */
+    static Expense mapRowToExpense(ResultSet rs) throws SQLException {
+        return mapRowToExpense(rs, false);
+    }
+
+    /**
+     * Come {@link #mapRowToExpense(ResultSet)}, ma nome, descrizione, valuta e data vengono deduplicati
+     * ({@link Interner}): le spese di una lista lunga condividono le istanze dei valori ripetuti (stesso esercente,
+     * stessa descrizione, spese ricorrenti alla stessa ora) invece di trattenerne una copia ciascuna.
+     * Usato dalle letture di molte spese; le istanze sono immutabili, quindi condividerle è sicuro.
      */
-    private Expense mapRowToExpense(ResultSet rs) throws SQLException {
+    static Expense mapRowToSharedExpense(ResultSet rs) throws SQLException {
+        return mapRowToExpense(rs, true);
+    }
+
+    private static Expense mapRowToExpense(ResultSet rs, boolean deduplica) throws SQLException {
         // Recuperiamo i dati grezzi
         int id = rs.getInt("id");
         String nome = rs.getString("nome_spesa");
@@ -209,10 +1388,18 @@ public class ExpenseDAO {
         double importo = rs.getDouble("importo");
         String dateString = rs.getString("data");
         int userId = rs.getInt("user_id");
+        int version = rs.getInt("version");
+        String valuta = rs.getString("valuta");
 
         // Conversioni:
         // 1. String -> LocalDateTime
         LocalDateTime data = LocalDateTime.parse(dateString);
+        if (deduplica) {
+            nome = TESTI.intern(nome);
+            desc = TESTI.intern(desc);
+            valuta = TESTI.intern(valuta);
+            data = DATE.intern(data);
+        }
         // 2. String -> Enum Categories
         Categories cat = Categories.valueOf(catString);
 
@@ -220,6 +1407,8 @@ public class ExpenseDAO {
         Expense e = new Expense(nome, cat, desc, importo, data);
         e.setId(id);
         e.setIdUtente(userId);
+        e.setVersion(version);
+        e.setValuta(valuta);
 
         return e;
     }
@@ -0,0 +1,185 @@
+package it.moneygement.dao;
+
+import it.moneygement.db.DbConnection;
+import it.moneygement.model.Categories;
+import it.moneygement.model.ExpenseStats;
+import it.moneygement.utils.RunningStats;
+import it.moneygement.utils.TDigest;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.YearMonth;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * DAO per le statistiche mensili degli importi delle spese (tabella expense_stats).
+ * <p>
+ * Una riga è valida solo se è stata calcolata dopo l'ultima modifica delle spese del suo mese:
+ * i trigger incrementano 'versione' e il calcolo salva in 'calcolata' la versione letta prima di iniziare
+ * (vedi {@link #preparaMese(int, YearMonth)} e {@link #salvaMese(int, YearMonth, Map, Map)}).
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class ExpenseStatsDAO {
+
+    // --- QUERY SQL ---
+
+    // Righe valide in un intervallo di mesi: la chiave anno * 100 + mese è crescente come i mesi
+    private final String SELECT_VALID_STATS = "SELECT * FROM expense_stats WHERE user_id = ? " +
+            "AND anno * 100 + mese BETWEEN ? AND ? AND calcolata = versione;";
+
+    // Riga vuota da calcolare: i trigger possono invalidarla solo se esiste già
+    private final String INSERT_PLACEHOLDER = "INSERT OR IGNORE INTO expense_stats (user_id, anno, mese, categoria) VALUES (?, ?, ?, ?);";
+    private final String SELECT_VERSIONS = "SELECT categoria, versione FROM expense_stats WHERE user_id = ? AND anno = ? AND mese = ?;";
+
+    // Salva il calcolo solo se nel frattempo nessuna spesa del mese è cambiata
+    private final String UPDATE_STATS = "UPDATE expense_stats SET numero = ?, media = ?, m2 = ?, minimo = ?, massimo = ?, " +
+            "digest = ?, calcolata = versione WHERE user_id = ? AND anno = ? AND mese = ? AND categoria = ? AND versione = ?;";
+
+    /**
+     * READ: Recupera le statistiche valide di un utente in un intervallo di mesi.
+     *
+     * @param userId L'ID dell'utente.
+     * @param da     Il primo mese.
+     * @param a      L'ultimo mese.
+     * @return Le statistiche valide per mese e categoria (i mesi e le categorie da ricalcolare mancano),
+     * oppure null in caso di errore del database.
+     */
+    public Map<YearMonth, Map<Categories, ExpenseStats>> getStats(int userId, YearMonth da, YearMonth a) {
+        Map<YearMonth, Map<Categories, ExpenseStats>> mesi = new TreeMap<>();
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(userId).prepareStatement(SELECT_VALID_STATS)) {
+            pstmt.setInt(1, userId);
+            pstmt.setInt(2, da.getYear() * 100 + da.getMonthValue());
+            pstmt.setInt(3, a.getYear() * 100 + a.getMonthValue());
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    YearMonth mese = YearMonth.of(rs.getInt("anno"), rs.getInt("mese"));
+                    Categories categoria = Categories.valueOf(rs.getString("categoria"));
+                    mesi.computeIfAbsent(mese, m -> new EnumMap<>(Categories.class)).put(categoria, leggi(rs, categoria));
+                }
+            }
+        } catch (SQLException | IllegalArgumentException ex) {
+            System.err.println("Errore lettura statistiche spese: " + ex.getMessage());
+            return null;
+        }
+        return mesi;
+    }
+
+    /**
+     * Prepara il calcolo delle statistiche di un mese: crea le righe mancanti e ne legge le versioni,
+     * da leggere prima delle spese. La transazione usa una connessione dedicata (vedi
+     * {@link DbConnection#apriConnessioneDedicata(int)}), così non include le scritture delle altre sessioni.
+     *
+     * @param userId L'ID dell'utente.
+     * @param mese   Il mese.
+     * @return La versione della riga di ogni categoria, oppure null in caso di errore del database.
+     */
+    public Map<Categories, Long> preparaMese(int userId, YearMonth mese) {
+        Map<Categories, Long> versioni = new EnumMap<>(Categories.class);
+        DbConnection db = DbConnection.getInstance();
+        try (Connection conn = db.apriConnessioneDedicata(db.getShardIndex(userId))) {
+            conn.setAutoCommit(false);
+            try {
+                try (PreparedStatement pstmt = conn.prepareStatement(INSERT_PLACEHOLDER)) {
+                    for (Categories categoria : Categories.values()) {
+                        pstmt.setInt(1, userId);
+                        pstmt.setInt(2, mese.getYear());
+                        pstmt.setInt(3, mese.getMonthValue());
+                        pstmt.setString(4, categoria.name());
+                        pstmt.addBatch();
+                    }
+                    pstmt.executeBatch();
+                }
+                try (PreparedStatement pstmt = conn.prepareStatement(SELECT_VERSIONS)) {
+                    pstmt.setInt(1, userId);
+                    pstmt.setInt(2, mese.getYear());
+                    pstmt.setInt(3, mese.getMonthValue());
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            versioni.put(Categories.valueOf(rs.getString("categoria")), rs.getLong("versione"));
+                        }
+                    }
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException ex) {
+            System.err.println("Errore preparazione statistiche spese: " + ex.getMessage());
+            return null;
+        }
+        return versioni;
+    }
+
+    /**
+     * UPDATE: Salva le statistiche calcolate di un mese. Le categorie le cui spese sono cambiate dopo
+     * {@link #preparaMese(int, YearMonth)} non vengono salvate e restano da ricalcolare. Come
+     * {@link #preparaMese(int, YearMonth)} usa una connessione dedicata.
+     *
+     * @param userId      L'ID dell'utente.
+     * @param mese        Il mese.
+     * @param statistiche Le statistiche di ogni categoria.
+     * @param versioni    Le versioni lette da {@link #preparaMese(int, YearMonth)}.
+     * @return true se il database ha eseguito l'aggiornamento.
+     */
+    public boolean salvaMese(int userId, YearMonth mese, Map<Categories, ExpenseStats> statistiche, Map<Categories, Long> versioni) {
+        DbConnection db = DbConnection.getInstance();
+        try (Connection conn = db.apriConnessioneDedicata(db.getShardIndex(userId))) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement pstmt = conn.prepareStatement(UPDATE_STATS)) {
+                for (ExpenseStats s : statistiche.values()) {
+                    Long versione = versioni.get(s.getCategoria());
+                    if (versione == null) {
+                        continue;
+                    }
+                    pstmt.setLong(1, s.getNumero());
+                    pstmt.setDouble(2, s.getMedia());
+                    pstmt.setDouble(3, s.getStatistiche().getM2());
+                    setEstremo(pstmt, 4, s.getMinimo());
+                    setEstremo(pstmt, 5, s.getMassimo());
+                    pstmt.setBytes(6, s.getDigest().toBytes());
+                    pstmt.setInt(7, userId);
+                    pstmt.setInt(8, mese.getYear());
+                    pstmt.setInt(9, mese.getMonthValue());
+                    pstmt.setString(10, s.getCategoria().name());
+                    pstmt.setLong(11, versione);
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+            return true;
+        } catch (SQLException ex) {
+            System.err.println("Errore salvataggio statistiche spese: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    // --- METODI PRIVATI ---
+
+    private ExpenseStats leggi(ResultSet rs, Categories categoria) throws SQLException {
+        long numero = rs.getLong("numero");
+        byte[] digest = rs.getBytes("digest");
+        RunningStats statistiche = numero == 0 ? new RunningStats() :
+                new RunningStats(numero, rs.getDouble("media"), rs.getDouble("m2"), rs.getDouble("minimo"), rs.getDouble("massimo"));
+        return new ExpenseStats(categoria, statistiche, numero == 0 || digest == null ? new TDigest() : TDigest.fromBytes(digest));
+    }
+
+    private void setEstremo(PreparedStatement pstmt, int indice, double valore) throws SQLException {
+        if (Double.isNaN(valore)) {
+            pstmt.setNull(indice, Types.REAL);
+        } else {
+            pstmt.setDouble(indice, valore);
+        }
+    }
+}
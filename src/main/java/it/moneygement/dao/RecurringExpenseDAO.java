@@ -0,0 +1,234 @@
+package it.moneygement.dao;
+
+import it.moneygement.db.DbConnection;
+import it.moneygement.model.Categories;
+import it.moneygement.model.Expense;
+import it.moneygement.model.RecurringExpense;
+import it.moneygement.utils.RecurrenceRule;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static it.moneygement.dao.ExpenseDAO.FORMATO_DATA;
+
+/**
+ * DAO per le spese ricorrenti e per le spese che ne vengono generate.
+ * <p>
+ * I metodi che ricevono una {@link Connection} sono usati da {@code service.RecurringScheduler}, che li esegue
+ * dentro transazioni proprie su connessioni dedicate: a differenza degli altri metodi non gestiscono gli errori
+ * ma li rilanciano, perché la transazione possa essere annullata.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class RecurringExpenseDAO {
+
+    // --- QUERY SQL ---
+
+    private final String INSERT_RULE = "INSERT INTO recurring_expense (user_id, nome_spesa, categoria, descrizione, importo, regola, inizio, prossima, generate, valuta) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?) RETURNING id;";
+
+    private final String SELECT_BY_USER = "SELECT * FROM recurring_expense WHERE user_id = ? ORDER BY id;";
+
+    private final String SELECT_BY_ID = "SELECT * FROM recurring_expense WHERE id = ? AND user_id = ?;";
+
+    private final String SELECT_SCHEDULED = "SELECT * FROM recurring_expense WHERE prossima IS NOT NULL;";
+
+    private final String DELETE_RULE = "DELETE FROM recurring_expense WHERE id = ? AND user_id = ?;";
+
+    private final String DELETE_BY_USER = "DELETE FROM recurring_expense WHERE user_id = ?;";
+
+    // Lo stato avanza solo se nessun altro l'ha già fatto (es. un'altra istanza del server sullo stesso database)
+    private final String ADVANCE_RULE = "UPDATE recurring_expense SET prossima = ?, generate = ? WHERE id = ? AND prossima = ?;";
+
+    // Una chiave già presente (occorrenza generata prima di un'interruzione) viene ignorata
+    private final String INSERT_OCCURRENCE = "INSERT OR IGNORE INTO expense (nome_spesa, categoria, descrizione, importo, data, user_id, idempotency_key, valuta) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?) RETURNING id;";
+
+    /**
+     * CREATE: Salva una nuova spesa ricorrente e ne imposta l'id.
+     *
+     * @param r La spesa ricorrente, con l'id dell'utente.
+     * @return true se la spesa ricorrente è stata salvata.
+     */
+    public boolean saveRecurringExpense(RecurringExpense r) {
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(r.getIdUtente()).prepareStatement(INSERT_RULE)) {
+            pstmt.setInt(1, r.getIdUtente());
+            pstmt.setString(2, r.getNomeSpesa());
+            pstmt.setString(3, r.getCategoria().name());
+            pstmt.setString(4, r.getDescrizione());
+            pstmt.setDouble(5, r.getImporto());
+            pstmt.setString(6, r.getRegola().toString());
+            pstmt.setString(7, r.getInizio().format(FORMATO_DATA));
+            pstmt.setString(8, r.getProssima() == null ? null : r.getProssima().format(FORMATO_DATA));
+            pstmt.setInt(9, r.getGenerate());
+            pstmt.setString(10, r.getValuta());
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    r.setId(rs.getInt("id"));
+                    return true;
+                }
+            }
+        } catch (SQLException ex) {
+            System.err.println("Errore salvataggio spesa ricorrente: " + ex.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * READ: Recupera le spese ricorrenti di un utente.
+     *
+     * @param userId L'ID dell'utente.
+     * @return Le spese ricorrenti (eventualmente nessuna), oppure null in caso di errore del database.
+     */
+    public List<RecurringExpense> getRecurringExpensesByUserId(int userId) {
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(userId).prepareStatement(SELECT_BY_USER)) {
+            pstmt.setInt(1, userId);
+            return leggi(pstmt);
+        } catch (SQLException ex) {
+            System.err.println("Errore lettura spese ricorrenti: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * DELETE: Elimina una spesa ricorrente (le spese già generate restano).
+     *
+     * @param id     L'ID della spesa ricorrente.
+     * @param userId L'ID dell'utente proprietario.
+     * @return true se la spesa ricorrente esisteva ed è stata eliminata.
+     */
+    public boolean deleteRecurringExpense(int id, int userId) {
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(userId).prepareStatement(DELETE_RULE)) {
+            pstmt.setInt(1, id);
+            pstmt.setInt(2, userId);
+            return pstmt.executeUpdate() > 0;
+        } catch (SQLException ex) {
+            System.err.println("Errore cancellazione spesa ricorrente: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * DELETE: Elimina tutte le spese ricorrenti di un utente (alla cancellazione dell'account),
+     * così lo scheduler smette di generarne le occorrenze.
+     *
+     * @param userId L'ID dell'utente.
+     */
+    public void deleteRecurringExpensesByUserId(int userId) {
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(userId).prepareStatement(DELETE_BY_USER)) {
+            pstmt.setInt(1, userId);
+            pstmt.executeUpdate();
+        } catch (SQLException ex) {
+            System.err.println("Errore cancellazione spese ricorrenti: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Legge tutte le spese ricorrenti non esaurite di un database (per la coda dello scheduler).
+     *
+     * @param conn La connessione al database o allo shard.
+     * @return Le spese ricorrenti con una prossima occorrenza.
+     * @throws SQLException in caso di errore del database.
+     */
+    public List<RecurringExpense> getScheduled(Connection conn) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(SELECT_SCHEDULED)) {
+            return leggi(pstmt);
+        }
+    }
+
+    /**
+     * Rilegge una spesa ricorrente (lo stato in memoria dello scheduler può essere superato).
+     *
+     * @return La spesa ricorrente, oppure null se è stata eliminata.
+     * @throws SQLException in caso di errore del database.
+     */
+    public RecurringExpense getRecurringExpense(Connection conn, int id, int userId) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(SELECT_BY_ID)) {
+            pstmt.setInt(1, id);
+            pstmt.setInt(2, userId);
+            List<RecurringExpense> trovate = leggi(pstmt);
+            return trovate.isEmpty() ? null : trovate.get(0);
+        }
+    }
+
+    /**
+     * Inserisce le spese delle occorrenze indicate, ignorando quelle già generate (e i doppioni fermati
+     * dall'indice delle impronte). Ogni spesa ha come chiave di idempotenza l'id della spesa ricorrente e la data
+     * dell'occorrenza.
+     *
+     * @param conn  La connessione, con la transazione aperta.
+     * @param r     La spesa ricorrente.
+     * @param spese Le spese delle occorrenze ({@link RecurringExpense#occorrenza(LocalDateTime)}).
+     * @return Le spese effettivamente inserite, con l'id assegnato dal database.
+     * @throws SQLException in caso di errore del database.
+     */
+    public List<Expense> insertOccurrences(Connection conn, RecurringExpense r, List<Expense> spese) throws SQLException {
+        List<Expense> inserite = new ArrayList<>();
+        try (PreparedStatement pstmt = conn.prepareStatement(INSERT_OCCURRENCE)) {
+            for (Expense spesa : spese) {
+                String testo = spesa.getData().format(FORMATO_DATA);
+                pstmt.setString(1, r.getNomeSpesa());
+                pstmt.setString(2, r.getCategoria().name());
+                pstmt.setString(3, r.getDescrizione());
+                pstmt.setDouble(4, r.getImporto());
+                pstmt.setString(5, testo);
+                pstmt.setInt(6, r.getIdUtente());
+                pstmt.setString(7, "r" + r.getId() + "@" + testo);
+                pstmt.setString(8, r.getValuta());
+                // Con RETURNING una riga ignorata non restituisce nulla
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next()) {
+                        spesa.setId(rs.getInt(1));
+                        inserite.add(spesa);
+                    }
+                }
+            }
+        }
+        return inserite;
+    }
+
+    /**
+     * Salva il nuovo stato della generazione, a condizione che la prossima occorrenza salvata sia ancora quella letta.
+     *
+     * @param conn            La connessione, con la transazione aperta.
+     * @param r               La spesa ricorrente, con il nuovo stato.
+     * @param prossimaLetta   La prossima occorrenza letta prima della generazione.
+     * @return true se lo stato è stato aggiornato.
+     * @throws SQLException in caso di errore del database.
+     */
+    public boolean advance(Connection conn, RecurringExpense r, LocalDateTime prossimaLetta) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(ADVANCE_RULE)) {
+            pstmt.setString(1, r.getProssima() == null ? null : r.getProssima().format(FORMATO_DATA));
+            pstmt.setInt(2, r.getGenerate());
+            pstmt.setInt(3, r.getId());
+            pstmt.setString(4, prossimaLetta.format(FORMATO_DATA));
+            return pstmt.executeUpdate() > 0;
+        }
+    }
+
+    // --- METODI PRIVATI ---
+
+    private List<RecurringExpense> leggi(PreparedStatement pstmt) throws SQLException {
+        List<RecurringExpense> spese = new ArrayList<>();
+        try (ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                RecurringExpense r = new RecurringExpense(rs.getString("nome_spesa"), Categories.valueOf(rs.getString("categoria")),
+                        rs.getString("descrizione"), rs.getDouble("importo"), RecurrenceRule.parse(rs.getString("regola")),
+                        LocalDateTime.parse(rs.getString("inizio")));
+                String prossima = rs.getString("prossima");
+                r.setValuta(rs.getString("valuta"));
+                r.setStato(prossima == null ? null : LocalDateTime.parse(prossima), rs.getInt("generate"));
+                r.setId(rs.getInt("id"));
+                r.setIdUtente(rs.getInt("user_id"));
+                spese.add(r);
+            }
+        }
+        return spese;
+    }
+}
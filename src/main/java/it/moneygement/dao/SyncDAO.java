@@ -0,0 +1,158 @@
+package it.moneygement.dao;
+
+import it.moneygement.db.DbConnection;
+import it.moneygement.model.ChangeBatch;
+import it.moneygement.model.Expense;
+import it.moneygement.model.User;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DAO per la sincronizzazione incrementale tra dispositivi.
+ * <p>
+ * Ogni inserimento, modifica o cancellazione di una spesa e ogni modifica di un utente riceve dai trigger
+ * del database (vedi {@code InitDatabase}) un numero di sequenza crescente; le spese cancellate restano
+ * come "tombstone" nella tabella expense_tombstone. Un client che conosce l'ultima sequenza ricevuta legge
+ * solo le righe con sequenza successiva, tramite gli indici (user_id, seq): il costo dipende da quante
+ * modifiche ci sono state, non da quante spese ha l'utente.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class SyncDAO {
+
+    // --- QUERY SQL ---
+
+    // Stato del contatore: ultima sequenza assegnata e identificativo del database
+    private final String SELECT_SEQUENCE = "SELECT valore, epoca FROM sync_sequence WHERE id = 1;";
+
+    // Modifiche successive alla sequenza del client e non oltre quella letta all'inizio (vedi getChangesSince)
+    private final String SELECT_CHANGED_EXPENSES = "SELECT * FROM expense WHERE user_id = ? AND seq > ? AND seq <= ? ORDER BY seq LIMIT ?;";
+    private final String SELECT_TOMBSTONES = "SELECT id, seq FROM expense_tombstone WHERE user_id = ? AND seq > ? AND seq <= ? ORDER BY seq LIMIT ?;";
+    private final String SELECT_CHANGED_USER = "SELECT * FROM user WHERE id = ? AND seq > ? AND seq <= ?;";
+
+    /**
+     * READ: Restituisce le modifiche ai dati di un utente successive alla sequenza indicata.
+     * <p>
+     * La sequenza corrente viene letta per prima e fa da limite superiore per tutte le query: le scritture
+     * concluse nel frattempo hanno sequenze maggiori e arriveranno nel blocco successivo, quindi un blocco
+     * non salta mai una modifica anche se le query non vedono esattamente lo stesso stato del database.
+     * Spese, cancellazioni e utente vengono uniti in ordine di sequenza e tagliati dopo {@code limite} modifiche.
+     * </p>
+     *
+     * @param userId L'ID dell'utente.
+     * @param epoca  L'epoca ricevuta con l'ultimo blocco, oppure null alla prima sincronizzazione.
+     * @param dopo   L'ultima sequenza ricevuta dal client (ignorata se l'epoca non corrisponde).
+     * @param limite Il numero massimo di modifiche nel blocco.
+     * @return Il blocco di modifiche, oppure null in caso di errore del database.
+     */
+    public ChangeBatch getChangesSince(int userId, String epoca, long dopo, int limite) {
+        try {
+            Connection conn = DbConnection.getInstance().getConnection(userId);
+
+            long corrente;
+            String epocaCorrente;
+            try (PreparedStatement pstmt = conn.prepareStatement(SELECT_SEQUENCE);
+                 ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("Contatore delle modifiche non inizializzato");
+                }
+                corrente = rs.getLong("valore");
+                epocaCorrente = rs.getString("epoca");
+            }
+
+            // Sequenze di un altro database (o di un client nuovo): si riparte dall'inizio
+            boolean risincronizzazione = !epocaCorrente.equals(epoca);
+            if (risincronizzazione || dopo > corrente) {
+                risincronizzazione = true;
+                dopo = 0;
+            }
+
+            // Una riga in più del limite per sapere se ci sono altre modifiche
+            List<Expense> spese = new ArrayList<>();
+            List<Long> seqSpese = new ArrayList<>();
+            try (PreparedStatement pstmt = conn.prepareStatement(SELECT_CHANGED_EXPENSES)) {
+                imposta(pstmt, userId, dopo, corrente, limite + 1);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        spese.add(ExpenseDAO.mapRowToSharedExpense(rs));
+                        seqSpese.add(rs.getLong("seq"));
+                    }
+                }
+            }
+            List<Integer> cancellate = new ArrayList<>();
+            List<Long> seqCancellate = new ArrayList<>();
+            try (PreparedStatement pstmt = conn.prepareStatement(SELECT_TOMBSTONES)) {
+                imposta(pstmt, userId, dopo, corrente, limite + 1);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        cancellate.add(rs.getInt("id"));
+                        seqCancellate.add(rs.getLong("seq"));
+                    }
+                }
+            }
+            User utente = null;
+            long seqUtente = Long.MAX_VALUE;
+            try (PreparedStatement pstmt = conn.prepareStatement(SELECT_CHANGED_USER)) {
+                pstmt.setInt(1, userId);
+                pstmt.setLong(2, dopo);
+                pstmt.setLong(3, corrente);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next()) {
+                        utente = UserDAO.mapRowToUser(rs);
+                        seqUtente = rs.getLong("seq");
+                    }
+                }
+            }
+
+            // Unione in ordine di sequenza delle tre liste, fino al limite
+            int i = 0;
+            int j = 0;
+            boolean utenteIncluso = false;
+            long ultima = dopo;
+            for (int presi = 0; presi < limite; presi++) {
+                long s1 = i < seqSpese.size() ? seqSpese.get(i) : Long.MAX_VALUE;
+                long s2 = j < seqCancellate.size() ? seqCancellate.get(j) : Long.MAX_VALUE;
+                long s3 = utente != null && !utenteIncluso ? seqUtente : Long.MAX_VALUE;
+                long minimo = Math.min(s1, Math.min(s2, s3));
+                if (minimo == Long.MAX_VALUE) {
+                    break;
+                }
+                if (minimo == s1) {
+                    i++;
+                } else if (minimo == s2) {
+                    j++;
+                } else {
+                    utenteIncluso = true;
+                }
+                ultima = minimo;
+            }
+            boolean altri = i < spese.size() || j < cancellate.size() || (utente != null && !utenteIncluso);
+            if (!altri) {
+                // Tutte le modifiche fino alla sequenza corrente sono state consegnate
+                ultima = corrente;
+            }
+
+            return new ChangeBatch(epocaCorrente, ultima, altri, risincronizzazione,
+                    utenteIncluso ? utente : null, spese.subList(0, i), cancellate.subList(0, j));
+
+        } catch (SQLException ex) {
+            System.err.println("Errore lettura modifiche per la sincronizzazione: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    // --- HELPER PRIVATO ---
+
+    private void imposta(PreparedStatement pstmt, int userId, long dopo, long corrente, int limite) throws SQLException {
+        pstmt.setInt(1, userId);
+        pstmt.setLong(2, dopo);
+        pstmt.setLong(3, corrente);
+        pstmt.setInt(4, limite);
+    }
+}
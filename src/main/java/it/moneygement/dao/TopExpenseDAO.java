@@ -0,0 +1,318 @@
+package it.moneygement.dao;
+
+import it.moneygement.db.DbConnection;
+import it.moneygement.model.RankingMetric;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DAO per le classifiche Space-Saving dei nomi di spesa (tabelle expense_name_sketch, expense_name_sketch_soglia
+ * ed expense_name_sketch_utente). Ogni classifica è di un utente, una metrica e una valuta delle spese
+ * ({@link #VALUTA_CONTEGGI} per i conteggi); le aggiorna il service a ogni spesa scritta (vedi
+ * {@code service.TopExpenseTracker}), che deve impedire le scritture concorrenti sulle classifiche di uno stesso utente.
+ *
+ * @author Stefano Bellan
+ */
+public class TopExpenseDAO {
+
+    /**
+     * Valuta delle classifiche per numero di spese, che contano le spese di tutte le valute insieme.
+     */
+    public static final String VALUTA_CONTEGGI = "";
+
+    /**
+     * Voce di una classifica: la stima per eccesso del nome e la sovrastima massima, nell'unità della classifica
+     * (centesimi della valuta o numero di spese).
+     */
+    public record Voce(String valuta, String nome, long valore, long errore) {
+    }
+
+    // --- QUERY SQL ---
+
+    private static final String CHIAVE = "user_id = ? AND metrica = ? AND valuta = ?";
+
+    private final String SELECT_BUILT = "SELECT 1 FROM expense_name_sketch_utente WHERE user_id = ?;";
+    private final String INSERT_BUILT = "INSERT OR REPLACE INTO expense_name_sketch_utente (user_id, costruita_il) VALUES (?, ?);";
+    private final String INSERT_ENTRY = "INSERT INTO expense_name_sketch (user_id, metrica, valuta, nome, valore, errore) VALUES (?, ?, ?, ?, ?, ?);";
+    private final String INSERT_THRESHOLD = "INSERT INTO expense_name_sketch_soglia (user_id, metrica, valuta, soglia) VALUES (?, ?, ?, ?);";
+    private final String[] DELETE_BY_USER = {
+            "DELETE FROM expense_name_sketch_utente WHERE user_id = ?;",
+            "DELETE FROM expense_name_sketch WHERE user_id = ?;",
+            "DELETE FROM expense_name_sketch_soglia WHERE user_id = ?;"
+    };
+
+    // Passo di Space-Saving: il nome in classifica cresce; altrimenti entra se c'è posto; altrimenti prende il posto
+    // del nome con il valore più basso, che alza la soglia, e parte dalla soglia (il valore più alto che il nome può
+    // avere avuto mentre era fuori). Usare la soglia invece del minimo attuale tiene valido il limite anche dopo
+    // le cancellazioni, che possono abbassare i nomi in classifica sotto quelli usciti.
+    private final String ADD_TO_ENTRY = "UPDATE expense_name_sketch SET valore = valore + ? WHERE " + CHIAVE + " AND nome = ?;";
+    private final String INSERT_IF_ROOM = "INSERT INTO expense_name_sketch (user_id, metrica, valuta, nome, valore, errore) " +
+            "SELECT ?, ?, ?, ?, ?, 0 WHERE (SELECT COUNT(*) FROM expense_name_sketch WHERE " + CHIAVE + ") < ?;";
+    private final String RAISE_THRESHOLD = "INSERT INTO expense_name_sketch_soglia (user_id, metrica, valuta, soglia) " +
+            "SELECT user_id, metrica, valuta, valore FROM expense_name_sketch WHERE " + CHIAVE + " ORDER BY valore LIMIT 1 " +
+            "ON CONFLICT (user_id, metrica, valuta) DO UPDATE SET soglia = MAX(soglia, excluded.soglia);";
+    private final String REPLACE_MINIMUM = "UPDATE expense_name_sketch SET nome = ?, errore = s.soglia, valore = s.soglia + ? " +
+            "FROM (SELECT soglia FROM expense_name_sketch_soglia WHERE " + CHIAVE + ") s WHERE " + CHIAVE + " AND nome = " +
+            "(SELECT nome FROM expense_name_sketch WHERE " + CHIAVE + " ORDER BY valore, nome LIMIT 1);";
+
+    // Rimozione: la stima scende del peso e l'errore non può superare la nuova stima (il valore vero non è negativo);
+    // un nome che arriva a zero esce senza alzare la soglia
+    private final String SUBTRACT_FROM_ENTRY = "UPDATE expense_name_sketch SET valore = valore - ?, errore = MIN(errore, MAX(valore - ?, 0)) " +
+            "WHERE " + CHIAVE + " AND nome = ?;";
+    private final String DELETE_EMPTY_ENTRY = "DELETE FROM expense_name_sketch WHERE " + CHIAVE + " AND nome = ? AND valore <= 0;";
+
+    private final String SELECT_ENTRIES = "SELECT valuta, nome, valore, errore FROM expense_name_sketch WHERE user_id = ? AND metrica = ?;";
+    private final String SELECT_THRESHOLDS = "SELECT valuta, soglia FROM expense_name_sketch_soglia WHERE user_id = ? AND metrica = ?;";
+
+    /**
+     * READ: Verifica se le classifiche di un utente sono state costruite.
+     *
+     * @param userId L'ID dell'utente.
+     * @return true se sono state costruite, false se no, null in caso di errore del database.
+     */
+    public Boolean isCostruita(int userId) {
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(userId).prepareStatement(SELECT_BUILT)) {
+            pstmt.setInt(1, userId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
+        } catch (SQLException ex) {
+            System.err.println("Errore lettura classifiche dei nomi di spesa: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * CREATE: Sostituisce tutte le classifiche di un utente e le segna come costruite, in una transazione
+     * su una connessione dedicata (vedi {@link DbConnection#apriConnessioneDedicata(int)}).
+     *
+     * @param userId L'ID dell'utente.
+     * @param voci   Le voci di ogni metrica.
+     * @param soglie Le soglie di ogni metrica, per valuta (solo quelle maggiori di zero).
+     * @return true se le classifiche sono state salvate.
+     */
+    public boolean salva(int userId, Map<RankingMetric, List<Voce>> voci, Map<RankingMetric, Map<String, Long>> soglie) {
+        DbConnection db = DbConnection.getInstance();
+        try (Connection conn = db.apriConnessioneDedicata(db.getShardIndex(userId))) {
+            conn.setAutoCommit(false);
+            try {
+                for (String sql : DELETE_BY_USER) {
+                    try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                        pstmt.setInt(1, userId);
+                        pstmt.executeUpdate();
+                    }
+                }
+                try (PreparedStatement pstmt = conn.prepareStatement(INSERT_ENTRY)) {
+                    for (Map.Entry<RankingMetric, List<Voce>> metrica : voci.entrySet()) {
+                        for (Voce v : metrica.getValue()) {
+                            pstmt.setInt(1, userId);
+                            pstmt.setString(2, metrica.getKey().name());
+                            pstmt.setString(3, v.valuta());
+                            pstmt.setString(4, v.nome());
+                            pstmt.setLong(5, v.valore());
+                            pstmt.setLong(6, v.errore());
+                            pstmt.addBatch();
+                        }
+                    }
+                    pstmt.executeBatch();
+                }
+                try (PreparedStatement pstmt = conn.prepareStatement(INSERT_THRESHOLD)) {
+                    for (Map.Entry<RankingMetric, Map<String, Long>> metrica : soglie.entrySet()) {
+                        for (Map.Entry<String, Long> s : metrica.getValue().entrySet()) {
+                            pstmt.setInt(1, userId);
+                            pstmt.setString(2, metrica.getKey().name());
+                            pstmt.setString(3, s.getKey());
+                            pstmt.setLong(4, s.getValue());
+                            pstmt.addBatch();
+                        }
+                    }
+                    pstmt.executeBatch();
+                }
+                try (PreparedStatement pstmt = conn.prepareStatement(INSERT_BUILT)) {
+                    pstmt.setInt(1, userId);
+                    pstmt.setString(2, LocalDateTime.now().withNano(0).toString());
+                    pstmt.executeUpdate();
+                }
+                conn.commit();
+                return true;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException ex) {
+            System.err.println("Errore salvataggio classifiche dei nomi di spesa: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * UPDATE: Aggiunge il peso di una spesa al nome in una classifica (un passo di Space-Saving).
+     *
+     * @param userId   L'ID dell'utente.
+     * @param metrica  La metrica della classifica.
+     * @param valuta   La valuta della classifica.
+     * @param nome     Il nome di spesa normalizzato.
+     * @param peso     I centesimi o il numero di spese da aggiungere (maggiore di zero).
+     * @param capienza Il numero massimo di nomi della classifica.
+     * @return true se la classifica è stata aggiornata, false in caso di errore (la classifica può essere rimasta a metà).
+     */
+    public boolean aggiungi(int userId, RankingMetric metrica, String valuta, String nome, long peso, int capienza) {
+        try {
+            Connection conn = DbConnection.getInstance().getConnection(userId);
+            try (PreparedStatement pstmt = conn.prepareStatement(ADD_TO_ENTRY)) {
+                pstmt.setLong(1, peso);
+                int i = chiave(pstmt, 2, userId, metrica, valuta);
+                pstmt.setString(i, nome);
+                if (pstmt.executeUpdate() > 0) {
+                    return true;
+                }
+            }
+            try (PreparedStatement pstmt = conn.prepareStatement(INSERT_IF_ROOM)) {
+                int i = chiave(pstmt, 1, userId, metrica, valuta);
+                pstmt.setString(i++, nome);
+                pstmt.setLong(i++, peso);
+                i = chiave(pstmt, i, userId, metrica, valuta);
+                pstmt.setInt(i, capienza);
+                if (pstmt.executeUpdate() > 0) {
+                    return true;
+                }
+            }
+            try (PreparedStatement pstmt = conn.prepareStatement(RAISE_THRESHOLD)) {
+                chiave(pstmt, 1, userId, metrica, valuta);
+                pstmt.executeUpdate();
+            }
+            try (PreparedStatement pstmt = conn.prepareStatement(REPLACE_MINIMUM)) {
+                pstmt.setString(1, nome);
+                pstmt.setLong(2, peso);
+                int i = chiave(pstmt, 3, userId, metrica, valuta);
+                i = chiave(pstmt, i, userId, metrica, valuta);
+                chiave(pstmt, i, userId, metrica, valuta);
+                return pstmt.executeUpdate() > 0;
+            }
+        } catch (SQLException ex) {
+            System.err.println("Errore aggiornamento classifica dei nomi di spesa: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * UPDATE: Toglie il peso di una spesa cancellata o modificata dal nome in una classifica.
+     * Se il nome non è in classifica non c'è nulla da togliere: il suo valore resta sotto la soglia.
+     *
+     * @param userId  L'ID dell'utente.
+     * @param metrica La metrica della classifica.
+     * @param valuta  La valuta della classifica.
+     * @param nome    Il nome di spesa normalizzato.
+     * @param peso    I centesimi o il numero di spese da togliere.
+     * @return true se la classifica è stata aggiornata, false in caso di errore.
+     */
+    public boolean rimuovi(int userId, RankingMetric metrica, String valuta, String nome, long peso) {
+        try {
+            Connection conn = DbConnection.getInstance().getConnection(userId);
+            try (PreparedStatement pstmt = conn.prepareStatement(SUBTRACT_FROM_ENTRY)) {
+                pstmt.setLong(1, peso);
+                pstmt.setLong(2, peso);
+                int i = chiave(pstmt, 3, userId, metrica, valuta);
+                pstmt.setString(i, nome);
+                if (pstmt.executeUpdate() == 0) {
+                    return true;
+                }
+            }
+            try (PreparedStatement pstmt = conn.prepareStatement(DELETE_EMPTY_ENTRY)) {
+                int i = chiave(pstmt, 1, userId, metrica, valuta);
+                pstmt.setString(i, nome);
+                pstmt.executeUpdate();
+            }
+            return true;
+        } catch (SQLException ex) {
+            System.err.println("Errore aggiornamento classifica dei nomi di spesa: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * READ: Legge le voci delle classifiche di un utente per una metrica, in tutte le valute.
+     *
+     * @param userId  L'ID dell'utente.
+     * @param metrica La metrica.
+     * @return Le voci (al più la capienza per valuta), oppure null in caso di errore del database.
+     */
+    public List<Voce> getVoci(int userId, RankingMetric metrica) {
+        List<Voce> voci = new ArrayList<>();
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(userId).prepareStatement(SELECT_ENTRIES)) {
+            pstmt.setInt(1, userId);
+            pstmt.setString(2, metrica.name());
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    voci.add(new Voce(rs.getString("valuta"), rs.getString("nome"), rs.getLong("valore"), rs.getLong("errore")));
+                }
+            }
+            return voci;
+        } catch (SQLException ex) {
+            System.err.println("Errore lettura classifiche dei nomi di spesa: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * READ: Legge le soglie delle classifiche di un utente per una metrica.
+     *
+     * @param userId  L'ID dell'utente.
+     * @param metrica La metrica.
+     * @return Le soglie per valuta (assenti quelle a zero), oppure null in caso di errore del database.
+     */
+    public Map<String, Long> getSoglie(int userId, RankingMetric metrica) {
+        Map<String, Long> soglie = new HashMap<>();
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(userId).prepareStatement(SELECT_THRESHOLDS)) {
+            pstmt.setInt(1, userId);
+            pstmt.setString(2, metrica.name());
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    soglie.put(rs.getString("valuta"), rs.getLong("soglia"));
+                }
+            }
+            return soglie;
+        } catch (SQLException ex) {
+            System.err.println("Errore lettura classifiche dei nomi di spesa: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * DELETE: Elimina le classifiche di un utente, che verranno ricostruite dallo storico alla prossima lettura.
+     *
+     * @param userId L'ID dell'utente.
+     * @return true se il database ha eseguito la cancellazione.
+     */
+    public boolean deleteClassifiche(int userId) {
+        try {
+            Connection conn = DbConnection.getInstance().getConnection(userId);
+            // Prima il segno di costruzione: se le altre cancellazioni falliscono le classifiche vengono comunque ricostruite
+            for (String sql : DELETE_BY_USER) {
+                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                    pstmt.setInt(1, userId);
+                    pstmt.executeUpdate();
+                }
+            }
+            return true;
+        } catch (SQLException ex) {
+            System.err.println("Errore cancellazione classifiche dei nomi di spesa: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    private static int chiave(PreparedStatement pstmt, int indice, int userId, RankingMetric metrica, String valuta) throws SQLException {
+        pstmt.setInt(indice, userId);
+        pstmt.setString(indice + 1, metrica.name());
+        pstmt.setString(indice + 2, valuta);
+        return indice + 3;
+    }
+}
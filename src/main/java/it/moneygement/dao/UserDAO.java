@@ -22,8 +22,8 @@ public class UserDAO {
     // INSERT: Salva un nuovo utente
     private final String INSERT_USER_QUERY = "INSERT INTO user (nome, cognome, email, password_hash, eta) VALUES (?, ?, ?, ?, ?);";
 
-    // SELECT (Login): Cerca per email e password
-    private final String LOGIN_QUERY = "SELECT * FROM user WHERE email = ? AND password_hash = ?;";
+    // SELECT (Login): Cerca per email (indice univoco); l'hash della password viene confrontato dal Service
+    private final String SELECT_USER_BY_EMAIL_QUERY = "SELECT * FROM user WHERE email = ?;";
 
     // SELECT (By ID): Cerca un utente specifico tramite ID
     private final String SELECT_USER_BY_ID_QUERY = "SELECT * FROM user WHERE id = ?;";
@@ -31,9 +31,29 @@ public class UserDAO {
     // UPDATE: Aggiorna i dati di un utente esistente
     private final String UPDATE_USER_QUERY = "UPDATE user SET nome = ?, cognome = ?, email = ?, password_hash = ?, eta = ? WHERE id = ?;";
 
+    // UPDATE (Rehash): sostituisce l'hash della password solo se nel frattempo non è cambiato
+    private final String UPDATE_PASSWORD_HASH_QUERY = "UPDATE user SET password_hash = ? WHERE id = ? AND password_hash = ?;";
+
     // DELETE: Rimuove un utente dal sistema
     private final String DELETE_USER_QUERY = "DELETE FROM user WHERE id = ?;";
 
+    // Valuta base dell'utente: i totali gli vengono mostrati in questa valuta
+    private final String SELECT_BASE_CURRENCY_QUERY = "SELECT valuta FROM user WHERE id = ?;";
+    private final String UPDATE_BASE_CURRENCY_QUERY = "UPDATE user SET valuta = ? WHERE id = ?;";
+
+    // --- QUERY DELLA MODALITÀ SHARD ---
+
+    // INSERT con id esplicito: l'id globale è assegnato dalla directory, non dallo shard
+    private final String INSERT_USER_WITH_ID_QUERY = "INSERT INTO user (id, nome, cognome, email, password_hash, eta) VALUES (?, ?, ?, ?, ?, ?);";
+
+    // Directory: assegna l'id globale (lo shard viene scritto appena noto l'id)
+    private final String INSERT_DIRECTORY_QUERY = "INSERT INTO user_directory (email, shard) VALUES (?, -1) RETURNING user_id;";
+    private final String UPDATE_DIRECTORY_SHARD_QUERY = "UPDATE user_directory SET shard = ? WHERE user_id = ?;";
+    private final String UPDATE_DIRECTORY_EMAIL_QUERY = "UPDATE user_directory SET email = ? WHERE user_id = ?;";
+    private final String SELECT_DIRECTORY_BY_EMAIL_QUERY = "SELECT user_id FROM user_directory WHERE email = ?;";
+    private final String SELECT_DIRECTORY_EMAIL_QUERY = "SELECT email FROM user_directory WHERE user_id = ?;";
+    private final String DELETE_DIRECTORY_QUERY = "DELETE FROM user_directory WHERE user_id = ?;";
+
 
     // --- METODI CRUD ---
 
@@ -48,7 +68,12 @@ public class UserDAO {
         ResultSet rs = null;
 
         try {
-            Connection conn = DbConnection.getInstance().getConnection();
+            DbConnection db = DbConnection.getInstance();
+            if (db.isSharded()) {
+                registerUserSharded(db, u);
+                return;
+            }
+            Connection conn = db.getConnection();
             pstmt = conn.prepareStatement(INSERT_USER_QUERY);
 
             pstmt.setString(1, u.getNome());
@@ -72,22 +97,30 @@ public class UserDAO {
     }
 
     /**
-     * READ: Effettua il login verificando le credenziali.
+     * READ: Recupera un utente tramite la sua email (per il login).
+     * La password non fa parte della ricerca: il Service confronta l'hash in tempo costante.
      *
-     * @param email        L'email dell'utente.
-     * @param passwordHash L'hash della password.
-     * @return L'oggetto User loggato, oppure null se non trovato.
+     * @param email L'email dell'utente.
+     * @return L'oggetto User trovato, oppure null se non trovato o in caso di errore del database.
      */
-    public User login(String email, String passwordHash) {
+    public User getUserByEmail(String email) {
         PreparedStatement pstmt = null;
         ResultSet rs = null;
 
         try {
-            Connection conn = DbConnection.getInstance().getConnection();
-            pstmt = conn.prepareStatement(LOGIN_QUERY);
-
-            pstmt.setString(1, email);
-            pstmt.setString(2, passwordHash);
+            DbConnection db = DbConnection.getInstance();
+            if (db.isSharded()) {
+                // La directory risolve l'email nell'id globale, che individua lo shard
+                int id = findIdByEmail(db, email);
+                if (id < 0) {
+                    return null;
+                }
+                pstmt = db.getConnection(id).prepareStatement(SELECT_USER_BY_ID_QUERY);
+                pstmt.setInt(1, id);
+            } else {
+                pstmt = db.getConnection().prepareStatement(SELECT_USER_BY_EMAIL_QUERY);
+                pstmt.setString(1, email);
+            }
 
             rs = pstmt.executeQuery();
 
@@ -97,7 +130,7 @@ public class UserDAO {
             }
 
         } catch (SQLException e) {
-            System.err.println("Errore login: " + e.getMessage());
+            System.err.println("Errore recupero utente per email: " + e.getMessage());
         } finally {
             DatabaseHelper.close(pstmt, rs);
         }
@@ -115,7 +148,7 @@ public class UserDAO {
         ResultSet rs = null;
 
         try {
-            Connection conn = DbConnection.getInstance().getConnection();
+            Connection conn = DbConnection.getInstance().getConnection(id);
             pstmt = conn.prepareStatement(SELECT_USER_BY_ID_QUERY);
             pstmt.setInt(1, id);
 
@@ -133,17 +166,70 @@ public class UserDAO {
         return null;
     }
 
+    /**
+     * READ: Recupera la valuta base di un utente.
+     *
+     * @param id L'ID dell'utente.
+     * @return Il codice della valuta, oppure null se l'utente non esiste o in caso di errore del database.
+     */
+    public String getBaseCurrency(int id) {
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(id).prepareStatement(SELECT_BASE_CURRENCY_QUERY)) {
+            pstmt.setInt(1, id);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getString("valuta");
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Errore lettura valuta base: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * UPDATE: Cambia la valuta base di un utente. Le spese non cambiano: vengono convertite al momento della lettura.
+     *
+     * @param id     L'ID dell'utente.
+     * @param valuta Il codice della nuova valuta base.
+     * @return true se l'utente esiste ed è stato aggiornato.
+     */
+    public boolean updateBaseCurrency(int id, String valuta) {
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(id).prepareStatement(UPDATE_BASE_CURRENCY_QUERY)) {
+            pstmt.setString(1, valuta);
+            pstmt.setInt(2, id);
+            return pstmt.executeUpdate() > 0;
+        } catch (SQLException e) {
+            System.err.println("Errore aggiornamento valuta base: " + e.getMessage());
+            return false;
+        }
+    }
+
     /**
      * UPDATE: Aggiorna i dati di un utente esistente.
+     * <p>
+     * In modalità shard un cambio di email viene prima registrato nella directory, dove l'unicità vale su tutti
+     * gli shard, e poi scritto sullo shard dell'utente. Se la scrittura sullo shard fallisce, la directory torna
+     * alla vecchia email: directory e shard non restano mai con due email diverse per lo stesso utente.
+     * </p>
      *
      * @param u L'oggetto User con i dati aggiornati (e l'ID corretto).
+     * @return true se l'utente è stato aggiornato, false se non esiste o in caso di errore.
      * @throws UserAlreadyExistException Se la nuova email è già usata da qualcun altro.
      */
-    public void updateUser(User u) {
+    public boolean updateUser(User u) {
         PreparedStatement pstmt = null;
+        DbConnection db = DbConnection.getInstance();
+        String vecchiaEmail = null;
 
         try {
-            Connection conn = DbConnection.getInstance().getConnection();
+            if (db.isSharded()) {
+                String registrata = findEmailById(db, u.getId());
+                if (!u.getEmail().equals(registrata)) {
+                    updateDirectory(db, UPDATE_DIRECTORY_EMAIL_QUERY, u.getEmail(), u.getId());
+                    vecchiaEmail = registrata;
+                }
+            }
+            Connection conn = db.getConnection(u.getId());
             pstmt = conn.prepareStatement(UPDATE_USER_QUERY);
 
             // Attenzione all'ordine dei parametri nella query UPDATE
@@ -154,20 +240,48 @@ public class UserDAO {
             pstmt.setInt(5, u.getEta());
             pstmt.setInt(6, u.getId()); // ID per la clausola WHERE
 
-            pstmt.executeUpdate();
+            if (pstmt.executeUpdate() == 0) {
+                ripristinaEmail(db, u.getId(), vecchiaEmail);
+                System.err.println("Errore aggiornamento utente: utente " + u.getId() + " non trovato.");
+                return false;
+            }
             System.out.println("Utente aggiornato con successo.");
+            return true;
 
         } catch (SQLException e) {
+            ripristinaEmail(db, u.getId(), vecchiaEmail);
             if (e.getMessage().contains("UNIQUE")) {
                 throw new UserAlreadyExistException("La nuova email scelta è già utilizzata.");
             } else {
                 System.err.println("Errore aggiornamento utente: " + e.getMessage());
+                return false;
             }
         } finally {
             DatabaseHelper.close(pstmt);
         }
     }
 
+    /**
+     * UPDATE: Sostituisce l'hash della password di un utente (es. ricalcolato con un costo più alto al login).
+     * L'hash viene cambiato solo se è ancora quello atteso, così non si annulla un cambio di password concorrente.
+     *
+     * @param id          L'ID dell'utente.
+     * @param vecchioHash L'hash letto al login.
+     * @param nuovoHash   Il nuovo hash della stessa password.
+     * @return true se l'hash è stato aggiornato.
+     */
+    public boolean updatePasswordHash(int id, String vecchioHash, String nuovoHash) {
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(id).prepareStatement(UPDATE_PASSWORD_HASH_QUERY)) {
+            pstmt.setString(1, nuovoHash);
+            pstmt.setInt(2, id);
+            pstmt.setString(3, vecchioHash);
+            return pstmt.executeUpdate() > 0;
+        } catch (SQLException e) {
+            System.err.println("Errore aggiornamento hash della password: " + e.getMessage());
+            return false;
+        }
+    }
+
     /**
      * DELETE: Rimuove permanentemente un utente dal database.
      *
@@ -177,11 +291,15 @@ public class UserDAO {
         PreparedStatement pstmt = null;
 
         try {
-            Connection conn = DbConnection.getInstance().getConnection();
+            DbConnection db = DbConnection.getInstance();
+            Connection conn = db.getConnection(id);
             pstmt = conn.prepareStatement(DELETE_USER_QUERY);
             pstmt.setInt(1, id);
 
             pstmt.executeUpdate();
+            if (db.isSharded()) {
+                updateDirectory(db, DELETE_DIRECTORY_QUERY, null, id);
+            }
             System.out.println("Utente con ID " + id + " eliminato.");
 
         } catch (SQLException e) {
@@ -191,13 +309,111 @@ public class UserDAO {
         }
     }
 
+    // --- MODALITÀ SHARD ---
+
+    /**
+     * Registra un utente in modalità shard: la directory assegna l'id globale (e garantisce l'unicità
+     * dell'email), poi la riga viene scritta sullo shard scelto dall'anello e la directory lo registra.
+     * Se la scrittura sullo shard fallisce, la voce della directory viene rimossa.
+     */
+    private void registerUserSharded(DbConnection db, User u) throws SQLException {
+        int id;
+        try (PreparedStatement ps = db.getConnection().prepareStatement(INSERT_DIRECTORY_QUERY)) {
+            ps.setString(1, u.getEmail());
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                id = rs.getInt("user_id");
+            }
+        }
+
+        try (PreparedStatement ps = db.getConnection(id).prepareStatement(INSERT_USER_WITH_ID_QUERY)) {
+            ps.setInt(1, id);
+            ps.setString(2, u.getNome());
+            ps.setString(3, u.getCognome());
+            ps.setString(4, u.getEmail());
+            ps.setString(5, u.getPasswordHash());
+            ps.setInt(6, u.getEta());
+            ps.executeUpdate();
+        } catch (SQLException e) {
+            updateDirectory(db, DELETE_DIRECTORY_QUERY, null, id);
+            throw e;
+        }
+
+        try (PreparedStatement ps = db.getConnection().prepareStatement(UPDATE_DIRECTORY_SHARD_QUERY)) {
+            ps.setInt(1, db.getShardIndex(id));
+            ps.setInt(2, id);
+            ps.executeUpdate();
+        }
+        System.out.println("Utente registrato con successo: " + u.getEmail() + " (shard " + db.getShardIndex(id) + ")");
+    }
+
+    /**
+     * Cerca l'id globale di un utente nella directory.
+     *
+     * @return L'id trovato, oppure -1.
+     */
+    private int findIdByEmail(DbConnection db, String email) throws SQLException {
+        try (PreparedStatement ps = db.getConnection().prepareStatement(SELECT_DIRECTORY_BY_EMAIL_QUERY)) {
+            ps.setString(1, email);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getInt("user_id") : -1;
+            }
+        }
+    }
+
+    /**
+     * Cerca l'email registrata nella directory per un utente.
+     *
+     * @return L'email trovata, oppure null.
+     */
+    private String findEmailById(DbConnection db, int id) throws SQLException {
+        try (PreparedStatement ps = db.getConnection().prepareStatement(SELECT_DIRECTORY_EMAIL_QUERY)) {
+            ps.setInt(1, id);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getString("email") : null;
+            }
+        }
+    }
+
+    /**
+     * Riporta nella directory l'email di un utente dopo un aggiornamento non riuscito sul suo shard.
+     *
+     * @param vecchiaEmail L'email da ripristinare, oppure null se la directory non è stata modificata.
+     */
+    private void ripristinaEmail(DbConnection db, int id, String vecchiaEmail) {
+        if (vecchiaEmail == null) {
+            return;
+        }
+        try {
+            updateDirectory(db, UPDATE_DIRECTORY_EMAIL_QUERY, vecchiaEmail, id);
+        } catch (SQLException e) {
+            System.err.println("Errore ripristino email nella directory: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Esegue una modifica sulla directory per un utente (email aggiornata o rimozione).
+     *
+     * @param email Il primo parametro della query, oppure null se la query ha solo l'id.
+     */
+    private void updateDirectory(DbConnection db, String query, String email, int id) throws SQLException {
+        try (PreparedStatement ps = db.getConnection().prepareStatement(query)) {
+            int i = 1;
+            if (email != null) {
+                ps.setString(i++, email);
+            }
+            ps.setInt(i, id);
+            ps.executeUpdate();
+        }
+    }
+
     // --- METODO DI UTILITÀ PRIVATO ---
 
     /**
      * Metodo helper per convertire una riga del ResultSet in un oggetto User.
-     * Evita di duplicare il codice di creazione dell'oggetto in 'login' e 'getUserById'.
+     * Evita di duplicare il codice di creazione dell'oggetto in 'getUserByEmail', 'getUserById' e {@link SyncDAO}.
      */
-    private User mapRowToUser(ResultSet rs) throws SQLException {
+    static User mapRowToUser(ResultSet rs) throws SQLException {
         String nome = rs.getString("nome");
         String cognome = rs.getString("cognome");
         String email = rs.getString("email");
@@ -0,0 +1,403 @@
+package it.moneygement.db;
+
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteConnection;
+import org.sqlite.core.DB;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Backup online del database con l'API di backup incrementale di SQLite.
+ * <p>
+ * La copia avviene a piccoli passi di pagine su una connessione dedicata (non su quella condivisa dai DAO,
+ * che resterebbe bloccata per tutta la durata del backup) e tra un passo e l'altro il backup si ferma per
+ * qualche millisecondo. Prima di iniziare, la connessione del backup apre su ogni file una transazione di
+ * lettura che resta aperta fino alla fine: con il database in modalità WAL (vedi {@link DbConnection}) questo fissa
+ * uno snapshot coerente senza bloccare le scritture dei DAO, e SQLite non deve ricominciare la copia da capo
+ * quando il database viene modificato durante il backup (cosa che, passo dopo passo, con scritture continue
+ * impedirebbe al backup di terminare).
+ * </p>
+ * <p>
+ * Se il database non è in modalità WAL la transazione di lettura bloccherebbe le scritture, quindi non viene
+ * aperta: in quel caso a ogni ripartenza la pausa tra i passi viene dimezzata, così il backup termina comunque.
+ * </p>
+ * <p>
+ * Ogni backup produce una cartella {@code <cartella>/<yyyyMMdd-HHmmss-SSS>} con una copia di ogni file del
+ * database (directory e tutti gli shard in modalità shard) e di ogni file di archivio registrato nella tabella
+ * {@code archive_year} (vedi {@code tools.ExpenseArchiver}). I file vengono scritti in una cartella temporanea,
+ * verificati con {@code PRAGMA integrity_check} e solo allora la cartella viene rinominata: uno snapshot
+ * visibile è sempre completo. Vengono conservati solo gli ultimi N snapshot.
+ * </p>
+ * <p>
+ * Le transazioni di lettura di tutti i file vengono aperte una dopo l'altra prima di iniziare a copiare, così
+ * gli snapshot dei file sono presi a pochi millisecondi di distanza invece che a distanza di un'intera copia.
+ * Non esiste però un istante comune esatto: SQLite non ha transazioni atomiche tra file diversi in WAL, e anche
+ * le scritture che toccano più file (es. la registrazione di un utente in directory e shard) non lo sono.
+ * Gli archivi vengono letti dopo il database che li registra: l'archiviazione copia le spese nell'archivio prima
+ * di cancellarle dal database, quindi una spesa assente dallo snapshot del database è sempre presente in quello
+ * dell'archivio (al più compare in entrambi, come dopo un'archiviazione interrotta).
+ * </p>
+ * <p>
+ * Per il ripristino, ad applicazione ferma, si copiano i file dello snapshot al posto di quelli originali
+ * (archivi compresi, nella posizione registrata in {@code archive_year}) e si eliminano gli eventuali file
+ * {@code -wal} e {@code -shm} rimasti accanto agli originali.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class BackupManager {
+
+    private static final DateTimeFormatter FORMATO_SNAPSHOT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+    private static final String SUFFISSO_TEMPORANEO = ".part";
+    // Attesa e tentativi quando il database è occupato da una scrittura (SQLITE_BUSY)
+    private static final int ATTESA_OCCUPATO_MILLIS = 100;
+    private static final int TENTATIVI_OCCUPATO = 50;
+    // File di archivio registrati in un database (la tabella manca nel database directory)
+    private static final String EXISTS_CATALOGO = "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = 'archive_year';";
+    private static final String SELECT_ARCHIVI = "SELECT file FROM archive_year ORDER BY anno;";
+
+    private final Path cartella;
+    private final int snapshotDaTenere;
+    private final int paginePerPasso;
+    private final int pausaMillis;
+
+    private final AtomicLong riusciti = new AtomicLong();
+    private final AtomicLong falliti = new AtomicLong();
+    private volatile BackupReport ultimo;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Crea il gestore dei backup.
+     *
+     * @param cartella         La cartella in cui salvare gli snapshot.
+     * @param snapshotDaTenere Il numero di snapshot da conservare (i più vecchi vengono eliminati).
+     * @param paginePerPasso   Le pagine copiate a ogni passo.
+     * @param pausaMillis      La pausa tra un passo e l'altro.
+     */
+    public BackupManager(Path cartella, int snapshotDaTenere, int paginePerPasso, int pausaMillis) {
+        if (snapshotDaTenere < 1 || paginePerPasso < 1 || pausaMillis < 0) {
+            throw new IllegalArgumentException("Parametri di backup non validi");
+        }
+        this.cartella = cartella;
+        this.snapshotDaTenere = snapshotDaTenere;
+        this.paginePerPasso = paginePerPasso;
+        this.pausaMillis = pausaMillis;
+    }
+
+    /**
+     * Esegue subito un backup di tutti i file del database configurato in {@link DbConnection}.
+     * Un solo backup alla volta: le chiamate concorrenti attendono il termine di quello in corso.
+     *
+     * @return L'esito del backup (anche in caso di errore, con il messaggio in {@link BackupReport#getErrore()}).
+     */
+    public synchronized BackupReport backupNow() {
+        LocalDateTime inizio = LocalDateTime.now();
+        long t0 = System.nanoTime();
+        String nome = inizio.format(FORMATO_SNAPSHOT);
+        Path temporanea = cartella.resolve(nome + SUFFISSO_TEMPORANEO);
+
+        BackupReport report;
+        try {
+            Files.createDirectories(temporanea);
+            long pagine = 0;
+            long copiate = 0;
+            int riavvii = 0;
+            long dimensione = 0;
+
+            List<Sorgente> sorgenti = new ArrayList<>();
+            try {
+                // 1. Snapshot di tutti i file del database, aperti uno subito dopo l'altro prima di copiare
+                for (String file : DbConnection.getDatabaseFiles()) {
+                    if (file.isEmpty() || file.contains(":memory:")) {
+                        throw new IllegalStateException("Il backup non è disponibile per i database in memoria");
+                    }
+                    sorgenti.add(new Sorgente(file));
+                }
+                // 2. Snapshot degli archivi registrati negli snapshot appena aperti (sempre dopo il loro database)
+                Set<String> archivi = new LinkedHashSet<>();
+                for (Sorgente sorgente : sorgenti) {
+                    archivi.addAll(sorgente.archivi());
+                }
+                for (String archivio : archivi) {
+                    if (!Files.isRegularFile(Path.of(archivio))) {
+                        throw new IllegalStateException("File di archivio mancante: " + archivio);
+                    }
+                    sorgenti.add(new Sorgente(archivio));
+                }
+
+                // 3. Copia e verifica
+                Set<Path> nomi = new HashSet<>();
+                for (Sorgente sorgente : sorgenti) {
+                    Path nomeFile = Path.of(sorgente.file).getFileName();
+                    if (!nomi.add(nomeFile)) {
+                        throw new IllegalStateException("Due file del database hanno lo stesso nome: " + nomeFile);
+                    }
+                    Path destinazione = temporanea.resolve(nomeFile);
+                    Avanzamento avanzamento = copia(sorgente, destinazione);
+                    verifica(destinazione, avanzamento.totali);
+                    pagine += avanzamento.totali;
+                    copiate += avanzamento.copiate;
+                    riavvii += avanzamento.riavvii;
+                    dimensione += Files.size(destinazione);
+                }
+            } finally {
+                for (Sorgente sorgente : sorgenti) {
+                    sorgente.close();
+                }
+            }
+
+            Files.move(temporanea, cartella.resolve(nome), StandardCopyOption.ATOMIC_MOVE);
+            applicaRetention();
+
+            long durata = (System.nanoTime() - t0) / 1_000_000;
+            report = new BackupReport(nome, inizio, durata, pagine, copiate, riavvii, dimensione, true, null);
+            riusciti.incrementAndGet();
+        } catch (SQLException | IOException | RuntimeException e) {
+            eliminaCartella(temporanea);
+            long durata = (System.nanoTime() - t0) / 1_000_000;
+            report = new BackupReport(null, inizio, durata, 0, 0, 0, 0, false, e.getMessage());
+            falliti.incrementAndGet();
+        }
+
+        ultimo = report;
+        System.out.println(report);
+        return report;
+    }
+
+    /**
+     * Avvia i backup periodici su un thread daemon.
+     *
+     * @param intervallo L'intervallo tra un backup e il successivo (il primo parte dopo un intervallo).
+     */
+    public synchronized void start(Duration intervallo) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "db-backup");
+            t.setDaemon(true);
+            return t;
+        });
+        long millis = intervallo.toMillis();
+        scheduler.scheduleWithFixedDelay(this::backupNow, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Ferma i backup periodici (un backup in corso viene completato).
+     */
+    public void stop() {
+        ScheduledExecutorService s;
+        synchronized (this) {
+            s = scheduler;
+            scheduler = null;
+        }
+        if (s != null) {
+            s.shutdown();
+        }
+    }
+
+    /**
+     * @return L'esito dell'ultimo backup, oppure null se non ne è stato eseguito nessuno.
+     */
+    public BackupReport getUltimo() {
+        return ultimo;
+    }
+
+    /**
+     * @return Il numero di backup riusciti.
+     */
+    public long getRiusciti() {
+        return riusciti.get();
+    }
+
+    /**
+     * @return Il numero di backup falliti.
+     */
+    public long getFalliti() {
+        return falliti.get();
+    }
+
+    // --- METODI PRIVATI ---
+
+    /**
+     * Osservatore dei passi di backup: conta pagine e ripartenze e fa la pausa tra un passo e l'altro.
+     * Viene chiamato da SQLite dopo ogni passo.
+     */
+    private final class Avanzamento implements DB.ProgressObserver {
+        private int pausa = pausaMillis;
+        private int rimanentiPrima = -1;
+        private long totali;
+        private long copiate;
+        private int riavvii;
+
+        @Override
+        public void progress(int rimanenti, int pagineTotali) {
+            if (rimanentiPrima < 0 || rimanenti > rimanentiPrima) {
+                // Primo passo, oppure SQLite è ripartito dall'inizio perché il database è cambiato
+                if (rimanentiPrima >= 0) {
+                    riavvii++;
+                    pausa /= 2;
+                }
+                copiate += pagineTotali - rimanenti;
+            } else {
+                copiate += rimanentiPrima - rimanenti;
+            }
+            rimanentiPrima = rimanenti;
+            totali = pagineTotali;
+
+            if (rimanenti > 0 && pausa > 0) {
+                try {
+                    Thread.sleep(pausa);
+                } catch (InterruptedException e) {
+                    // Il backup non si può interrompere a metà: si completa senza più pause
+                    Thread.currentThread().interrupt();
+                    pausa = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * File da copiare, con la sua connessione di lettura. In modalità WAL la connessione tiene aperta dalla
+     * creazione alla chiusura una transazione di lettura: lo snapshot del file è fissato alla creazione, e
+     * SQLite non deve ricominciare la copia da capo quando il database viene modificato durante il backup.
+     */
+    private static final class Sorgente {
+        private final String file;
+        private final Connection conn;
+        private final boolean wal;
+
+        Sorgente(String file) throws SQLException {
+            this.file = file;
+            this.conn = DriverManager.getConnection("jdbc:sqlite:" + file);
+            try (Statement stmt = conn.createStatement()) {
+                try (ResultSet rs = stmt.executeQuery("PRAGMA journal_mode;")) {
+                    wal = rs.next() && "wal".equalsIgnoreCase(rs.getString(1));
+                }
+                if (wal) {
+                    conn.setAutoCommit(false);
+                    try (ResultSet rs = stmt.executeQuery("SELECT count(*) FROM sqlite_master;")) {
+                        rs.next();
+                    }
+                }
+            } catch (SQLException e) {
+                conn.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return I file di archivio registrati nello snapshot (nessuno se il file non ha il catalogo).
+         */
+        List<String> archivi() throws SQLException {
+            List<String> archivi = new ArrayList<>();
+            try (Statement stmt = conn.createStatement()) {
+                try (ResultSet rs = stmt.executeQuery(EXISTS_CATALOGO)) {
+                    if (!rs.next()) {
+                        return archivi;
+                    }
+                }
+                try (ResultSet rs = stmt.executeQuery(SELECT_ARCHIVI)) {
+                    while (rs.next()) {
+                        archivi.add(rs.getString("file"));
+                    }
+                }
+            }
+            return archivi;
+        }
+
+        void close() {
+            try {
+                if (wal) {
+                    conn.rollback();
+                }
+                conn.close();
+            } catch (SQLException e) {
+                System.err.println("Errore nella chiusura della connessione di backup a " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private Avanzamento copia(Sorgente sorgente, Path destinazione) throws SQLException {
+        Avanzamento avanzamento = new Avanzamento();
+        DB db = sorgente.conn.unwrap(SQLiteConnection.class).getDatabase();
+        int esito = db.backup("main", destinazione.toString(), avanzamento, ATTESA_OCCUPATO_MILLIS, TENTATIVI_OCCUPATO, paginePerPasso);
+        if (esito != 0) {
+            throw new SQLException("Backup di " + destinazione.getFileName() + " non completato (codice SQLite " + esito + ")");
+        }
+        return avanzamento;
+    }
+
+    private void verifica(Path file, long pagineAttese) throws SQLException {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        try (Connection conn = config.createConnection("jdbc:sqlite:" + file);
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA integrity_check;")) {
+            String esito = rs.next() ? rs.getString(1) : "nessun risultato";
+            if (!"ok".equals(esito)) {
+                throw new SQLException("Controllo di integrità fallito per " + file.getFileName() + ": " + esito);
+            }
+        }
+        try (Connection conn = config.createConnection("jdbc:sqlite:" + file);
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA page_count;")) {
+            long pagine = rs.next() ? rs.getLong(1) : 0;
+            if (pagine != pagineAttese) {
+                throw new SQLException("Snapshot incompleto per " + file.getFileName() + ": " + pagine + " pagine invece di " + pagineAttese);
+            }
+        }
+    }
+
+    /**
+     * Elimina gli snapshot più vecchi oltre il numero da conservare.
+     * I nomi delle cartelle sono timestamp a larghezza fissa, quindi l'ordine alfabetico è quello cronologico.
+     */
+    private void applicaRetention() throws IOException {
+        List<Path> snapshot = new ArrayList<>();
+        try (Stream<Path> elenco = Files.list(cartella)) {
+            elenco.filter(Files::isDirectory)
+                    .filter(p -> p.getFileName().toString().matches("\\d{8}-\\d{6}-\\d{3}"))
+                    .sorted()
+                    .forEach(snapshot::add);
+        }
+        for (int i = 0; i < snapshot.size() - snapshotDaTenere; i++) {
+            eliminaCartella(snapshot.get(i));
+        }
+    }
+
+    private void eliminaCartella(Path dir) {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> file = Files.list(dir)) {
+            for (Path p : (Iterable<Path>) file::iterator) {
+                Files.deleteIfExists(p);
+            }
+            Files.deleteIfExists(dir);
+        } catch (IOException e) {
+            System.err.println("Impossibile eliminare " + dir + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package it.moneygement.db;
+
+import java.time.LocalDateTime;
+import java.util.Locale;
+
+/**
+ * Esito di un backup online eseguito da {@link BackupManager}.
+ * <p>
+ * Oltre alla durata riporta le pagine del database e quelle effettivamente copiate: se durante il backup
+ * un'altra connessione modifica il database, SQLite ricomincia la copia dall'inizio, quindi le pagine copiate
+ * possono superare quelle del database (il numero di ripartenze è in {@link #getRiavvii()}).
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class BackupReport {
+
+    private final String snapshot;
+    private final LocalDateTime inizio;
+    private final long durataMillis;
+    private final long pagine;
+    private final long pagineCopiate;
+    private final int riavvii;
+    private final long byteScritti;
+    private final boolean verificato;
+    private final String errore;
+
+    BackupReport(String snapshot, LocalDateTime inizio, long durataMillis, long pagine, long pagineCopiate,
+                 int riavvii, long byteScritti, boolean verificato, String errore) {
+        this.snapshot = snapshot;
+        this.inizio = inizio;
+        this.durataMillis = durataMillis;
+        this.pagine = pagine;
+        this.pagineCopiate = pagineCopiate;
+        this.riavvii = riavvii;
+        this.byteScritti = byteScritti;
+        this.verificato = verificato;
+        this.errore = errore;
+    }
+
+    /**
+     * @return Il nome della cartella dello snapshot (null se il backup è fallito).
+     */
+    public String getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return Il momento di inizio del backup.
+     */
+    public LocalDateTime getInizio() {
+        return inizio;
+    }
+
+    /**
+     * @return La durata complessiva (copia e verifica) in millisecondi.
+     */
+    public long getDurataMillis() {
+        return durataMillis;
+    }
+
+    /**
+     * @return Il numero di pagine dei database salvati.
+     */
+    public long getPagine() {
+        return pagine;
+    }
+
+    /**
+     * @return Il numero di pagine copiate, comprese quelle copiate di nuovo dopo una ripartenza.
+     */
+    public long getPagineCopiate() {
+        return pagineCopiate;
+    }
+
+    /**
+     * @return Le pagine copiate al secondo.
+     */
+    public double getPagineAlSecondo() {
+        return durataMillis == 0 ? pagineCopiate : pagineCopiate * 1000.0 / durataMillis;
+    }
+
+    /**
+     * @return Quante volte la copia è ripartita perché il database è stato modificato durante il backup.
+     */
+    public int getRiavvii() {
+        return riavvii;
+    }
+
+    /**
+     * @return La dimensione complessiva dei file dello snapshot.
+     */
+    public long getByteScritti() {
+        return byteScritti;
+    }
+
+    /**
+     * @return true se lo snapshot ha superato il controllo di integrità.
+     */
+    public boolean isVerificato() {
+        return verificato;
+    }
+
+    /**
+     * @return Il messaggio di errore, oppure null se il backup è riuscito.
+     */
+    public String getErrore() {
+        return errore;
+    }
+
+    @Override
+    public String toString() {
+        if (errore != null) {
+            return "Backup fallito: " + errore;
+        }
+        return String.format(Locale.ROOT, "Backup %s: %d pagine (%d copiate, %d ripartenze) in %d ms, %.0f pagine/s, %d KB, %s",
+                snapshot, pagine, pagineCopiate, riavvii, durataMillis, getPagineAlSecondo(), byteScritti / 1024,
+                verificato ? "verificato" : "NON verificato");
+    }
+}
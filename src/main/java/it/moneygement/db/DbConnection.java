@@ -1,13 +1,29 @@
 package it.moneygement.db;
 
+import it.moneygement.events.ChangeBus;
+import org.sqlite.SQLiteConfig;
+
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Gestisce la connessione al database SQLite dell'applicazione.
  * Implementa il design pattern Singleton per garantire l'esistenza di una sola
  * istanza di connessione attiva durante l'esecuzione del programma.
+ * <p>
+ * In modalità shard (vedi {@link #setShardedDatabase(String, int)}) i dati degli utenti sono divisi
+ * su N file SQLite, ognuno con il proprio lock di scrittura, e {@link #getConnection(int)} instrada
+ * ogni utente al suo shard tramite {@link ShardRouter}. La connessione principale punta allora al
+ * database "directory", che contiene solo la tabella {@code user_directory} (email → id globale e shard)
+ * usata al login e per assegnare gli id dei nuovi utenti.
+ * </p>
  *
  * @author Stefano Bellan
  */
@@ -17,11 +33,23 @@ public class DbConnection {
     private static DbConnection instance;
 
     // Oggetto Connection che gestisce il collegamento fisico al database
+    // (in modalità shard è la connessione al database directory)
     private Connection conn;
 
+    // Connessioni agli shard e anello di instradamento (null se la modalità shard non è attiva)
+    private Connection[] shards;
+    private ShardRouter router;
+
+    // Connessioni in sola lettura ai file di archivio, aperte alla prima lettura che ne ha bisogno
+    private final Map<String, Connection> archivi = new HashMap<>();
+
     // Stringa contenente il percorso di connessione JDBC (modificabile per i test)
     private static String dbPath = "jdbc:sqlite:moneygement.db";
 
+    // Prefisso dei file e numero di shard (0 = database unico)
+    private static String prefissoShard;
+    private static int numeroShard = 0;
+
     /**
      * Costruttore privato della classe.
      * Viene invocato solo internamente per inizializzare la connessione.
@@ -29,7 +57,16 @@ public class DbConnection {
     private DbConnection() {
         try {
             // Tenta di stabilire una connessione utilizzando il driver JDBC e il percorso specificato
-            conn = DriverManager.getConnection(dbPath);
+            if (numeroShard > 0) {
+                conn = apri(percorsoDirectory(prefissoShard));
+                shards = new Connection[numeroShard];
+                for (int i = 0; i < numeroShard; i++) {
+                    shards[i] = apri(percorsoShard(prefissoShard, i));
+                }
+                router = new ShardRouter(numeroShard);
+            } else {
+                conn = apri(dbPath);
+            }
             // Stampa un messaggio di conferma sulla console
             System.out.println("Connessione al database stabilita con successo.");
         } catch (SQLException e) {
@@ -38,14 +75,30 @@ public class DbConnection {
         }
     }
 
+    /**
+     * Apre una connessione e attiva la modalità WAL (Write-Ahead Logging): le letture, compresi i backup
+     * online di {@link BackupManager}, non bloccano le scritture e viceversa.
+     * La modalità resta salvata nel file del database.
+     * Le modifiche fatte sulla connessione vengono pubblicate sul {@link ChangeBus}.
+     */
+    private static Connection apri(String url) throws SQLException {
+        Connection c = DriverManager.getConnection(url);
+        try (Statement stmt = c.createStatement()) {
+            stmt.execute("PRAGMA journal_mode = WAL;");
+        }
+        ChangeBus.getInstance().attach(c);
+        return c;
+    }
+
     /**
      * Restituisce l'istanza unica della classe DbConnection.
      * Utilizza la tecnica del "Lazy Loading": l'istanza viene creata solo
      * la prima volta che questo metodo viene chiamato.
+     * Il metodo è sincronizzato perché più sessioni possono usarlo contemporaneamente.
      *
      * @return L'istanza singleton di DbConnection.
      */
-    public static DbConnection getInstance() {
+    public static synchronized DbConnection getInstance() {
         // Verifica se l'istanza non è ancora stata creata
         if (instance == null) {
             // Crea la nuova istanza (che a sua volta apre la connessione nel costruttore)
@@ -65,18 +118,192 @@ public class DbConnection {
         return conn;
     }
 
+    /**
+     * Restituisce la connessione al database che contiene i dati di un utente.
+     * Senza shard coincide con {@link #getConnection()}.
+     *
+     * @param userId L'id globale dell'utente.
+     * @return La connessione allo shard dell'utente.
+     */
+    public Connection getConnection(int userId) {
+        return router == null ? conn : shards[router.shardFor(userId)];
+    }
+
+    /**
+     * Restituisce l'indice dello shard che contiene i dati di un utente.
+     *
+     * @param userId L'id globale dell'utente.
+     * @return L'indice dello shard (0 se la modalità shard non è attiva).
+     */
+    public int getShardIndex(int userId) {
+        return router == null ? 0 : router.shardFor(userId);
+    }
+
+    /**
+     * Apre una nuova connessione al database di uno shard (o al database unico), separata da quella condivisa.
+     * Serve ai lavori in background che raggruppano molte scritture in una transazione propria: sulla
+     * connessione condivisa la transazione includerebbe anche le scritture delle altre sessioni.
+     * Come le connessioni condivise usa la modalità WAL e pubblica le modifiche sul {@link ChangeBus}.
+     * Va chiusa dal chiamante.
+     *
+     * @param indiceShard L'indice dello shard (ignorato se la modalità shard non è attiva).
+     * @return La nuova connessione.
+     * @throws SQLException se la connessione non può essere aperta.
+     */
+    public Connection apriConnessioneDedicata(int indiceShard) throws SQLException {
+        return apri(router == null ? dbPath : percorsoShard(prefissoShard, indiceShard));
+    }
+
+    /**
+     * Restituisce una connessione in sola lettura a un file di archivio delle spese (vedi
+     * {@code tools.ExpenseArchiver}). La connessione viene aperta al primo utilizzo e poi riusata.
+     *
+     * @param file Il percorso del file di archivio, come registrato nella tabella archive_year.
+     * @return La connessione all'archivio.
+     * @throws SQLException se il file non può essere aperto.
+     */
+    public synchronized Connection getArchiveConnection(String file) throws SQLException {
+        Connection archivio = archivi.get(file);
+        if (archivio == null) {
+            aggiornaArchivio(file);
+            SQLiteConfig config = new SQLiteConfig();
+            config.setReadOnly(true);
+            archivio = config.createConnection("jdbc:sqlite:" + file);
+            archivi.put(file, archivio);
+        }
+        return archivio;
+    }
+
+    /**
+     * Chiude le connessioni ai file di archivio aperte da {@link #getArchiveConnection(String)}, che verranno
+     * riaperte alla prossima lettura. Viene chiamato quando il database configurato cambia; va chiamato anche
+     * prima di sostituire o spostare un file di archivio ad applicazione avviata.
+     */
+    public synchronized void chiudiArchivi() {
+        for (Map.Entry<String, Connection> archivio : archivi.entrySet()) {
+            try {
+                archivio.getValue().close();
+            } catch (SQLException e) {
+                System.err.println("Errore nella chiusura dell'archivio " + archivio.getKey() + ": " + e.getMessage());
+            }
+        }
+        archivi.clear();
+    }
+
+    /**
+     * Aggiunge la colonna 'valuta' ai file di archivio creati prima dell'introduzione delle valute
+     * (le loro spese sono tutte in euro) e ne normalizza le date come nel database principale
+     * (vedi {@link InitDatabase}), prima che vengano aperti in sola lettura.
+     */
+    private static void aggiornaArchivio(String file) throws SQLException {
+        try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + file);
+             Statement stmt = c.createStatement()) {
+            boolean valuta = false;
+            try (ResultSet rs = stmt.executeQuery("PRAGMA table_info(expense);")) {
+                while (rs.next()) {
+                    valuta |= "valuta".equalsIgnoreCase(rs.getString("name"));
+                }
+            }
+            if (!valuta) {
+                stmt.executeUpdate("ALTER TABLE expense ADD COLUMN valuta TEXT NOT NULL DEFAULT 'EUR';");
+            }
+            stmt.executeUpdate(InitDatabase.NORMALIZZA_DATE);
+        }
+    }
+
+    /**
+     * @return true se i dati degli utenti sono divisi su più shard.
+     */
+    public boolean isSharded() {
+        return router != null;
+    }
+
+    /**
+     * @return Le connessioni a tutti gli shard (array vuoto se la modalità shard non è attiva).
+     */
+    public Connection[] getShardConnections() {
+        return shards == null ? new Connection[0] : shards.clone();
+    }
+
     /**
      * Imposta un percorso del database alternativo (es. per i test unitari o di integrazione).
      * Questo metodo deve essere chiamato prima di ottenere l'istanza o per forzare un cambio di database.
      *
      * @param testPath Il percorso JDBC del database di test (es. "jdbc:sqlite::memory:").
      */
-    public static void setTestDatabase(String testPath) {
+    public static synchronized void setTestDatabase(String testPath) {
         // Aggiorna il percorso del database
         dbPath = testPath;
+        numeroShard = 0;
+        chiudiArchiviIstanza();
         // Resetta l'istanza singleton a null.
         // Questo forza il metodo getInstance() a creare un nuovo oggetto DbConnection
         // (e quindi una nuova connessione) alla prossima chiamata, utilizzando il nuovo percorso.
         instance = null;
     }
-}
\ No newline at end of file
+
+    /**
+     * Attiva la modalità shard: la directory sarà in {@code <prefisso>-directory.db} e i dati
+     * degli utenti in {@code <prefisso>-shard-<i>.db}, con i da 0 a numeroShard - 1.
+     * Come {@link #setTestDatabase(String)}, forza la riapertura delle connessioni alla prossima chiamata
+     * di {@link #getInstance()}.
+     *
+     * @param prefisso    Il percorso dei file senza estensione (es. "moneygement").
+     * @param numeroShard Il numero di shard (almeno 1).
+     */
+    public static synchronized void setShardedDatabase(String prefisso, int numeroShard) {
+        if (numeroShard < 1) {
+            throw new IllegalArgumentException("Il numero di shard deve essere almeno 1");
+        }
+        prefissoShard = prefisso;
+        DbConnection.numeroShard = numeroShard;
+        chiudiArchiviIstanza();
+        instance = null;
+    }
+
+    /**
+     * Chiude le connessioni agli archivi dell'istanza che sta per essere sostituita.
+     */
+    private static void chiudiArchiviIstanza() {
+        if (instance != null) {
+            instance.chiudiArchivi();
+        }
+    }
+
+    /**
+     * Restituisce i percorsi dei file del database configurato: il file unico, oppure in modalità shard
+     * la directory seguita dagli shard. Usato per i backup.
+     *
+     * @return I percorsi dei file (senza il prefisso "jdbc:sqlite:").
+     */
+    public static synchronized List<String> getDatabaseFiles() {
+        List<String> file = new ArrayList<>();
+        if (numeroShard > 0) {
+            file.add(percorsoDirectory(prefissoShard));
+            for (int i = 0; i < numeroShard; i++) {
+                file.add(percorsoShard(prefissoShard, i));
+            }
+        } else {
+            file.add(dbPath);
+        }
+        file.replaceAll(url -> url.substring("jdbc:sqlite:".length()));
+        return file;
+    }
+
+    /**
+     * @param prefisso Il prefisso dei file degli shard.
+     * @return Il percorso JDBC del database directory.
+     */
+    public static String percorsoDirectory(String prefisso) {
+        return "jdbc:sqlite:" + prefisso + "-directory.db";
+    }
+
+    /**
+     * @param prefisso Il prefisso dei file degli shard.
+     * @param indice   L'indice dello shard.
+     * @return Il percorso JDBC dello shard.
+     */
+    public static String percorsoShard(String prefisso, int indice) {
+        return "jdbc:sqlite:" + prefisso + "-shard-" + indice + ".db";
+    }
+}
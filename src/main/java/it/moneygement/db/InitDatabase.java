@@ -1,6 +1,7 @@
 package it.moneygement.db;
 
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 
@@ -33,17 +34,286 @@ public class InitDatabase {
             "importo REAL NOT NULL, " +
             "data TEXT NOT NULL," +
             "user_id INTEGER," +
+            "version INTEGER NOT NULL DEFAULT 1," +
             "FOREIGN KEY (user_id) REFERENCES user(id));";
 
+    // Riscrive nel formato a larghezza fissa di ExpenseDAO.FORMATO_DATA le date salvate prima della sua introduzione
+    // (LocalDateTime.toString() omette i secondi a zero e aggiunge le frazioni di secondo), che altrimenti
+    // sfuggirebbero ai confronti come testo su intervalli, pagine e impronte. Le frazioni di secondo vengono troncate
+    // come per le date nuove (vedi FORMATO_DATA). OR IGNORE lascia com'è una data che renderebbe la spesa uguale a una già normalizzata
+    // (un doppione, vedi l'indice delle impronte). Il filtro legge solo l'indice (user_id, data).
+    static final String NORMALIZZA_DATE = "UPDATE OR IGNORE expense SET data = strftime('%Y-%m-%dT%H:%M:%S', data) " +
+            "WHERE data <> strftime('%Y-%m-%dT%H:%M:%S', data);";
+
+    // Indice per le letture delle spese di un utente in un intervallo di date.
+    private final String createExpenseUserDataIndex = "CREATE INDEX IF NOT EXISTS idx_expense_user_data ON expense (user_id, data);";
+
+    // La tabella a pagine ordina per importo convertito nella valuta base, che dipende dai cambi: un indice
+    // sull'importo nella valuta della spesa non serve a quell'ordinamento e viene rimosso.
+    private final String dropExpenseUserImportoIndex = "DROP INDEX IF EXISTS idx_expense_user_importo;";
+
+    // Catalogo degli anni archiviati: ogni anno ha il proprio file SQLite di archivio.
+    private final String createArchiveYearTable = "CREATE TABLE IF NOT EXISTS archive_year (" +
+            "anno INTEGER PRIMARY KEY, " +
+            "file TEXT NOT NULL, " +
+            "righe INTEGER NOT NULL, " +
+            "archiviato_il TEXT NOT NULL);";
+
+    // Riepiloghi mensili per categoria e valuta delle spese archiviate, che restano nel database principale.
+    // I totali sono nella valuta delle spese: vengono convertiti alla lettura con i cambi attuali, come le spese.
+    private final String createExpenseSummaryTable = "CREATE TABLE IF NOT EXISTS expense_summary (" +
+            "user_id INTEGER NOT NULL, " +
+            "anno INTEGER NOT NULL, " +
+            "mese INTEGER NOT NULL, " +
+            "categoria TEXT NOT NULL, " +
+            "valuta TEXT NOT NULL, " +
+            "numero INTEGER NOT NULL, " +
+            "totale REAL NOT NULL, " +
+            "PRIMARY KEY (user_id, anno, mese, categoria, valuta)) WITHOUT ROWID;";
+    // I riepiloghi senza valuta erano già convertiti nella valuta base dell'utente con i cambi dell'archiviazione:
+    // diventano riepiloghi in quella valuta (la chiave primaria cambia, quindi la tabella va ricreata)
+    private final String[] migraRiepiloghi = {
+            "ALTER TABLE expense_summary RENAME TO expense_summary_vecchia;",
+            createExpenseSummaryTable,
+            "INSERT INTO expense_summary (user_id, anno, mese, categoria, valuta, numero, totale) " +
+                    "SELECT s.user_id, s.anno, s.mese, s.categoria, COALESCE(u.valuta, 'EUR'), s.numero, s.totale " +
+                    "FROM expense_summary_vecchia s LEFT JOIN user u ON u.id = s.user_id;",
+            "DROP TABLE expense_summary_vecchia;"
+    };
+
+    // Le spese di un utente cancellato vengono cancellate con lui (i file di archivio li ripulisce
+    // ExpenseDAO.deleteArchivedExpenses), insieme ai loro tombstone e ai riepiloghi degli anni archiviati.
+    // Il ribilanciamento degli shard copia tutto prima di cancellare l'utente dallo shard di origine.
+    private final String userDeleteTrigger = "CREATE TRIGGER IF NOT EXISTS trg_user_expense_delete AFTER DELETE ON user BEGIN " +
+            "DELETE FROM expense WHERE user_id = OLD.id; " +
+            "DELETE FROM expense_tombstone WHERE user_id = OLD.id; " +
+            "DELETE FROM expense_summary WHERE user_id = OLD.id; END;";
+
+    // Contatore delle modifiche per la sincronizzazione tra dispositivi (una sola riga).
+    // 'valore' è l'ultima sequenza assegnata; 'epoca' identifica il database: se cambia (es. utente spostato
+    // su un altro shard) le sequenze non sono più confrontabili e il client deve risincronizzarsi da capo.
+    private final String createSyncSequenceTable = "CREATE TABLE IF NOT EXISTS sync_sequence (" +
+            "id INTEGER PRIMARY KEY CHECK (id = 1), " +
+            "valore INTEGER NOT NULL, " +
+            "epoca TEXT NOT NULL);";
+    private final String initSyncSequence = "INSERT OR IGNORE INTO sync_sequence (id, valore, epoca) VALUES (1, 0, lower(hex(randomblob(8))));";
+
+    // Spese cancellate, con la sequenza della cancellazione (gli id delle spese non vengono mai riutilizzati).
+    private final String createExpenseTombstoneTable = "CREATE TABLE IF NOT EXISTS expense_tombstone (" +
+            "id INTEGER PRIMARY KEY, " +
+            "user_id INTEGER NOT NULL, " +
+            "seq INTEGER NOT NULL);";
+
+    // Indici per leggere le modifiche di un utente successive a una sequenza
+    private final String createExpenseUserSeqIndex = "CREATE INDEX IF NOT EXISTS idx_expense_user_seq ON expense (user_id, seq);";
+    private final String createTombstoneUserSeqIndex = "CREATE INDEX IF NOT EXISTS idx_expense_tombstone_user_seq ON expense_tombstone (user_id, seq);";
+
+    // Trigger che assegnano la sequenza a ogni inserimento, modifica e cancellazione.
+    // Gli UPDATE "OF" elencano le colonne dei dati: l'assegnazione di 'seq' fatta dal trigger stesso non li riattiva.
+    // Le scritture su SQLite sono serializzate, quindi l'ordine delle sequenze è l'ordine dei commit.
+    private final String[] syncTriggers = {
+            "CREATE TRIGGER IF NOT EXISTS trg_expense_seq_insert AFTER INSERT ON expense BEGIN " +
+                    "UPDATE sync_sequence SET valore = valore + 1; " +
+                    "UPDATE expense SET seq = (SELECT valore FROM sync_sequence) WHERE id = NEW.id; END;",
+            "CREATE TRIGGER IF NOT EXISTS trg_expense_seq_update AFTER UPDATE OF nome_spesa, categoria, descrizione, importo, data, user_id, version ON expense BEGIN " +
+                    "UPDATE sync_sequence SET valore = valore + 1; " +
+                    "UPDATE expense SET seq = (SELECT valore FROM sync_sequence) WHERE id = NEW.id; END;",
+            "CREATE TRIGGER IF NOT EXISTS trg_expense_seq_delete AFTER DELETE ON expense BEGIN " +
+                    "UPDATE sync_sequence SET valore = valore + 1; " +
+                    "INSERT OR REPLACE INTO expense_tombstone (id, user_id, seq) VALUES (OLD.id, OLD.user_id, (SELECT valore FROM sync_sequence)); END;",
+            "CREATE TRIGGER IF NOT EXISTS trg_user_seq_insert AFTER INSERT ON user BEGIN " +
+                    "UPDATE sync_sequence SET valore = valore + 1; " +
+                    "UPDATE user SET seq = (SELECT valore FROM sync_sequence) WHERE id = NEW.id; END;",
+            "CREATE TRIGGER IF NOT EXISTS trg_user_seq_update AFTER UPDATE OF nome, cognome, email, password_hash, eta ON user BEGIN " +
+                    "UPDATE sync_sequence SET valore = valore + 1; " +
+                    "UPDATE user SET seq = (SELECT valore FROM sync_sequence) WHERE id = NEW.id; END;"
+    };
+
+    // Budget di spesa: al massimo un limite per utente, categoria e periodo.
+    private final String createBudgetTable = "CREATE TABLE IF NOT EXISTS budget (" +
+            "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            "user_id INTEGER NOT NULL, " +
+            "categoria TEXT NOT NULL, " +
+            "periodo TEXT NOT NULL CHECK (periodo IN ('SETTIMANALE', 'MENSILE', 'ANNUALE')), " +
+            "limite REAL NOT NULL CHECK (limite > 0), " +
+            "UNIQUE (user_id, categoria, periodo), " +
+            "FOREIGN KEY (user_id) REFERENCES user(id));";
+
+    // Spese ricorrenti: dati della spesa, regola RRULE e stato della generazione
+    // ('prossima' è NULL quando la regola è esaurita, 'generate' conta le occorrenze per COUNT).
+    private final String createRecurringExpenseTable = "CREATE TABLE IF NOT EXISTS recurring_expense (" +
+            "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            "user_id INTEGER NOT NULL, " +
+            "nome_spesa TEXT NOT NULL, " +
+            "categoria TEXT NOT NULL, " +
+            "descrizione TEXT NOT NULL, " +
+            "importo REAL NOT NULL, " +
+            "regola TEXT NOT NULL, " +
+            "inizio TEXT NOT NULL, " +
+            "prossima TEXT, " +
+            "generate INTEGER NOT NULL DEFAULT 0, " +
+            "FOREIGN KEY (user_id) REFERENCES user(id));";
+    private final String createRecurringExpenseUserIndex = "CREATE INDEX IF NOT EXISTS idx_recurring_expense_user ON recurring_expense (user_id);";
+
+    // Le occorrenze generate hanno una chiave (spesa ricorrente + data): rigenerarle dopo un riavvio non crea doppioni.
+    // UNIQUE ammette più NULL, quindi le spese inserite a mano non sono toccate.
+    private final String createExpenseIdempotencyIndex = "CREATE UNIQUE INDEX IF NOT EXISTS idx_expense_idempotency ON expense (idempotency_key);";
+
+    // Impronta delle spese contro i doppioni (es. un estratto conto importato due volte): stesso utente, nome
+    // senza maiuscole e spazi esterni, importo, valuta e istante. Se il database contiene già dei doppioni
+    // l'indice viene creato non univoco (vedi creaIndiceImpronte) e i doppioni nuovi sono fermati solo dalla
+    // ricerca del service su ogni spesa.
+    private final String createExpenseFingerprintIndex = "CREATE UNIQUE INDEX IF NOT EXISTS idx_expense_impronta " +
+            "ON expense (user_id, lower(trim(nome_spesa)), importo, valuta, data);";
+    private final String createExpenseFingerprintFallbackIndex = "CREATE INDEX IF NOT EXISTS idx_expense_impronta " +
+            "ON expense (user_id, lower(trim(nome_spesa)), importo, valuta, data);";
+
+    // Tassi di cambio: unità di ogni valuta per 1 euro, come nei tassi di riferimento della BCE.
+    // Caricata da file con tools.ExchangeRateLoader (copiata su ogni shard, per le conversioni dentro le query).
+    private final String createExchangeRateTable = "CREATE TABLE IF NOT EXISTS exchange_rate (" +
+            "valuta TEXT PRIMARY KEY, " +
+            "per_euro REAL NOT NULL CHECK (per_euro > 0), " +
+            "aggiornato_il TEXT NOT NULL) WITHOUT ROWID;";
+    private final String initExchangeRate = "INSERT OR IGNORE INTO exchange_rate (valuta, per_euro, aggiornato_il) VALUES ('EUR', 1, '1999-01-01');";
+
+    // Statistiche mensili degli importi per utente e categoria (vedi service.ExpenseStatistics): numero, media e
+    // scarti di Welford, estremi e t-digest serializzato, nella valuta base dell'utente.
+    // 'versione' viene incrementata dai trigger a ogni modifica delle spese del mese; la riga è valida
+    // solo se 'calcolata' (la versione letta prima del calcolo) è ancora uguale a 'versione'.
+    private final String createExpenseStatsTable = "CREATE TABLE IF NOT EXISTS expense_stats (" +
+            "user_id INTEGER NOT NULL, " +
+            "anno INTEGER NOT NULL, " +
+            "mese INTEGER NOT NULL, " +
+            "categoria TEXT NOT NULL, " +
+            "numero INTEGER NOT NULL DEFAULT 0, " +
+            "media REAL NOT NULL DEFAULT 0, " +
+            "m2 REAL NOT NULL DEFAULT 0, " +
+            "minimo REAL, " +
+            "massimo REAL, " +
+            "digest BLOB, " +
+            "versione INTEGER NOT NULL DEFAULT 0, " +
+            "calcolata INTEGER NOT NULL DEFAULT -1, " +
+            "PRIMARY KEY (user_id, anno, mese, categoria)) WITHOUT ROWID;";
+
+    // Trigger che invalidano le statistiche del mese e della categoria di ogni spesa inserita, modificata
+    // o cancellata (anche dagli strumenti e dalle spese ricorrenti), e tutte quelle di un utente che cambia valuta base;
+    // quelle di un utente cancellato (o spostato su un altro shard) vengono rimosse.
+    // Costano una ricerca per chiave; le righe non ancora calcolate non vengono toccate.
+    private static final String INVALIDA_STATISTICHE = "UPDATE expense_stats SET versione = versione + 1 " +
+            "WHERE user_id = %1$s.user_id AND anno = CAST(substr(%1$s.data, 1, 4) AS INTEGER) " +
+            "AND mese = CAST(substr(%1$s.data, 6, 2) AS INTEGER) AND categoria = %1$s.categoria; ";
+    private final String[] statsTriggers = {
+            "CREATE TRIGGER IF NOT EXISTS trg_expense_stats_insert AFTER INSERT ON expense BEGIN " +
+                    INVALIDA_STATISTICHE.formatted("NEW") + "END;",
+            "CREATE TRIGGER IF NOT EXISTS trg_expense_stats_update AFTER UPDATE OF categoria, importo, data, user_id, valuta ON expense BEGIN " +
+                    INVALIDA_STATISTICHE.formatted("OLD") + INVALIDA_STATISTICHE.formatted("NEW") + "END;",
+            "CREATE TRIGGER IF NOT EXISTS trg_expense_stats_delete AFTER DELETE ON expense BEGIN " +
+                    INVALIDA_STATISTICHE.formatted("OLD") + "END;",
+            "CREATE TRIGGER IF NOT EXISTS trg_user_stats_valuta AFTER UPDATE OF valuta ON user BEGIN " +
+                    "UPDATE expense_stats SET versione = versione + 1 WHERE user_id = NEW.id; END;",
+            "CREATE TRIGGER IF NOT EXISTS trg_user_stats_delete AFTER DELETE ON user BEGIN " +
+                    "DELETE FROM expense_stats WHERE user_id = OLD.id; END;"
+    };
+
+    // Le classifiche dei nomi di spesa erano mantenute da trigger a ogni scrittura delle spese, con i totali in euro:
+    // ora le aggiorna il service (vedi service.TopExpenseTracker), quindi trigger e tabelle vengono rimossi
+    private final String[] dropHeavyHitters = {
+            "DROP TRIGGER IF EXISTS trg_expense_heavy_hitter_insert;",
+            "DROP TRIGGER IF EXISTS trg_expense_heavy_hitter_update;",
+            "DROP TRIGGER IF EXISTS trg_expense_heavy_hitter_delete;",
+            "DROP TRIGGER IF EXISTS trg_user_heavy_hitter_delete;",
+            "DROP TABLE IF EXISTS expense_heavy_hitter_soglia;",
+            "DROP TABLE IF EXISTS expense_heavy_hitter;"
+    };
+
+    // Classifiche Space-Saving dei nomi di spesa per utente, metrica ('TOTALE' in centesimi, 'NUMERO') e valuta delle spese
+    // ('' per i conteggi): al più 64 nomi ciascuna, con la stima per eccesso e il suo errore massimo.
+    // La soglia è il valore più alto uscito dalla classifica e limita ogni nome che non vi compare.
+    // Un utente ha le classifiche solo dopo la prima lettura, che le costruisce dallo storico.
+    private final String[] nameSketchTables = {
+            "CREATE TABLE IF NOT EXISTS expense_name_sketch (" +
+                    "user_id INTEGER NOT NULL, " +
+                    "metrica TEXT NOT NULL, " +
+                    "valuta TEXT NOT NULL, " +
+                    "nome TEXT NOT NULL, " +
+                    "valore INTEGER NOT NULL, " +
+                    "errore INTEGER NOT NULL, " +
+                    "PRIMARY KEY (user_id, metrica, valuta, nome)) WITHOUT ROWID;",
+            "CREATE INDEX IF NOT EXISTS idx_expense_name_sketch_valore ON expense_name_sketch (user_id, metrica, valuta, valore);",
+            "CREATE TABLE IF NOT EXISTS expense_name_sketch_soglia (" +
+                    "user_id INTEGER NOT NULL, " +
+                    "metrica TEXT NOT NULL, " +
+                    "valuta TEXT NOT NULL, " +
+                    "soglia INTEGER NOT NULL, " +
+                    "PRIMARY KEY (user_id, metrica, valuta)) WITHOUT ROWID;",
+            "CREATE TABLE IF NOT EXISTS expense_name_sketch_utente (" +
+                    "user_id INTEGER PRIMARY KEY, " +
+                    "costruita_il TEXT NOT NULL);",
+            "CREATE TRIGGER IF NOT EXISTS trg_user_name_sketch_delete AFTER DELETE ON user BEGIN " +
+                    "DELETE FROM expense_name_sketch WHERE user_id = OLD.id; " +
+                    "DELETE FROM expense_name_sketch_soglia WHERE user_id = OLD.id; " +
+                    "DELETE FROM expense_name_sketch_utente WHERE user_id = OLD.id; END;"
+    };
+
+    // Andamento recente degli importi per utente e categoria (vedi service.AnomalyDetector), salvato periodicamente
+    // dalla memoria: media mobile, varianza e ultimi importi serializzati, nella valuta base dell'utente
+    private final String createAnomalyBaselineTable = "CREATE TABLE IF NOT EXISTS anomaly_baseline (" +
+            "user_id INTEGER NOT NULL, " +
+            "categoria TEXT NOT NULL, " +
+            "stato BLOB NOT NULL, " +
+            "aggiornata_il TEXT NOT NULL, " +
+            "PRIMARY KEY (user_id, categoria)) WITHOUT ROWID;";
+    private final String anomalyBaselineUserTrigger = "CREATE TRIGGER IF NOT EXISTS trg_user_anomaly_delete AFTER DELETE ON user BEGIN " +
+            "DELETE FROM anomaly_baseline WHERE user_id = OLD.id; END;";
+
+    // Query SQL per la creazione della tabella 'user_directory' (solo in modalità shard).
+    // Assegna gli id globali degli utenti e permette di trovarli per email al login.
+    // 'shard' indica dove si trovano attualmente i dati dell'utente (aggiornato dallo strumento di ribilanciamento).
+    private final String createDirectoryTable = "CREATE TABLE IF NOT EXISTS user_directory (" +
+            "user_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            "email TEXT UNIQUE NOT NULL, " +
+            "shard INTEGER NOT NULL);";
+
     /**
      * Esegue la procedura di inizializzazione del database.
      * Recupera la connessione e invia i comandi SQL per creare le tabelle.
      */
     public void initializeDb() {
-        try {
-            // Ottiene l'istanza della connessione attiva tramite il Singleton
-            Connection conn = DbConnection.getInstance().getConnection();
+        // Ottiene l'istanza della connessione attiva tramite il Singleton
+        DbConnection db = DbConnection.getInstance();
+        if (!db.isSharded()) {
+            initializeDb(db.getConnection());
+            return;
+        }
+        // Modalità shard: la directory ha solo la propria tabella, ogni shard ha lo schema completo
+        // (e riceve le stesse migrazioni del database unico)
+        initializeDirectory(db.getConnection());
+        for (Connection shard : db.getShardConnections()) {
+            initializeDb(shard);
+        }
+    }
 
+    /**
+     * Crea la tabella della directory degli utenti sul database directory della modalità shard.
+     *
+     * @param conn La connessione al database directory.
+     */
+    public void initializeDirectory(Connection conn) {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate(this.createDirectoryTable);
+        } catch (SQLException e) {
+            System.err.println("Errore nella creazione della directory: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Esegue la procedura di inizializzazione su una connessione specifica
+     * (es. un database generato dagli strumenti o un file diverso da quello principale).
+     *
+     * @param conn La connessione al database da inizializzare.
+     */
+    public void initializeDb(Connection conn) {
+        try {
             // Crea un oggetto Statement per inviare comandi SQL al database
             Statement stmt = conn.createStatement();
 
@@ -53,6 +323,77 @@ public class InitDatabase {
             // Esegue la query per creare la tabella spese
             stmt.executeUpdate(this.createExpenseTable);
 
+            // Migrazioni per i database creati con versioni precedenti dell'applicazione
+            addColumnIfMissing(conn, "expense", "version", "INTEGER NOT NULL DEFAULT 1");
+
+            // Indici e tabelle dell'archiviazione per anno
+            stmt.executeUpdate(this.createExpenseUserDataIndex);
+            stmt.executeUpdate(this.dropExpenseUserImportoIndex);
+            stmt.executeUpdate(this.createArchiveYearTable);
+            stmt.executeUpdate(this.createExpenseSummaryTable);
+
+            // Sequenza delle modifiche per la sincronizzazione
+            boolean seqAggiunta = addColumnIfMissing(conn, "expense", "seq", "INTEGER NOT NULL DEFAULT 0");
+            seqAggiunta |= addColumnIfMissing(conn, "user", "seq", "INTEGER NOT NULL DEFAULT 0");
+            stmt.executeUpdate(this.createSyncSequenceTable);
+            stmt.executeUpdate(this.initSyncSequence);
+            stmt.executeUpdate(this.createExpenseTombstoneTable);
+            stmt.executeUpdate(this.createExpenseUserSeqIndex);
+            stmt.executeUpdate(this.createTombstoneUserSeqIndex);
+            for (String trigger : this.syncTriggers) {
+                stmt.executeUpdate(trigger);
+            }
+            if (seqAggiunta) {
+                assignInitialSequence(conn);
+            }
+
+            // Budget per categoria
+            stmt.executeUpdate(this.createBudgetTable);
+
+            // Spese ricorrenti
+            addColumnIfMissing(conn, "expense", "idempotency_key", "TEXT");
+            stmt.executeUpdate(this.createExpenseIdempotencyIndex);
+            stmt.executeUpdate(this.createRecurringExpenseTable);
+            stmt.executeUpdate(this.createRecurringExpenseUserIndex);
+
+            // Valute: le spese esistenti e la valuta base degli utenti esistenti sono in euro
+            addColumnIfMissing(conn, "expense", "valuta", "TEXT NOT NULL DEFAULT 'EUR'");
+            addColumnIfMissing(conn, "recurring_expense", "valuta", "TEXT NOT NULL DEFAULT 'EUR'");
+            addColumnIfMissing(conn, "user", "valuta", "TEXT NOT NULL DEFAULT 'EUR'");
+            if (!columnExists(conn, "expense_summary", "valuta")) {
+                eseguiInTransazione(conn, this.migraRiepiloghi);
+                System.out.println("Migrazione: riepiloghi degli anni archiviati divisi per valuta");
+            }
+            stmt.executeUpdate(this.createExchangeRateTable);
+            creaIndiceImpronte(conn);
+            // Dopo l'indice delle impronte, che così ferma le date che diventerebbero doppioni
+            int normalizzate = stmt.executeUpdate(NORMALIZZA_DATE);
+            if (normalizzate > 0) {
+                System.out.println("Migrazione: " + normalizzate + " date delle spese riscritte nel formato a larghezza fissa");
+            }
+            stmt.executeUpdate(this.initExchangeRate);
+
+            // Statistiche mensili delle spese
+            stmt.executeUpdate(this.createExpenseStatsTable);
+            for (String trigger : this.statsTriggers) {
+                stmt.executeUpdate(trigger);
+            }
+
+            // Classifiche dei nomi di spesa (le tabelle dei vecchi trigger vengono rimosse)
+            for (String sql : this.dropHeavyHitters) {
+                stmt.executeUpdate(sql);
+            }
+            for (String sql : this.nameSketchTables) {
+                stmt.executeUpdate(sql);
+            }
+
+            // Riconoscimento delle spese anomale
+            stmt.executeUpdate(this.createAnomalyBaselineTable);
+            stmt.executeUpdate(this.anomalyBaselineUserTrigger);
+
+            // Dati di un utente cancellato
+            stmt.executeUpdate(this.userDeleteTrigger);
+
             // Conferma l'avvenuta operazione sulla console
             System.out.println("Tabelle del database create o verificate con successo.");
 
@@ -61,4 +402,106 @@ public class InitDatabase {
             System.err.println("Errore nella creazione del database: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Assegna una sequenza alle righe esistenti prima dell'introduzione della colonna 'seq',
+     * così un client che si sincronizza da zero le riceve. Le righe scritte dopo ricevono la sequenza dai trigger.
+     */
+    private void assignInitialSequence(Connection conn) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("UPDATE sync_sequence SET valore = valore + 1;");
+            stmt.executeUpdate("UPDATE expense SET seq = (SELECT valore FROM sync_sequence) WHERE seq = 0;");
+            stmt.executeUpdate("UPDATE user SET seq = (SELECT valore FROM sync_sequence) WHERE seq = 0;");
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Crea l'indice univoco delle impronte. Se il database contiene dei doppioni l'indice viene creato non univoco
+     * e viene segnalato in modo evidente; a ogni avvio, finché i doppioni non vengono eliminati, si riprova a
+     * renderlo univoco.
+     */
+    private void creaIndiceImpronte(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            boolean nonUnivoco;
+            try (ResultSet rs = stmt.executeQuery("SELECT \"unique\" FROM pragma_index_list('expense') WHERE name = 'idx_expense_impronta';")) {
+                nonUnivoco = rs.next() && rs.getInt(1) == 0;
+            }
+            if (nonUnivoco) {
+                stmt.executeUpdate("DROP INDEX idx_expense_impronta;");
+            }
+            try {
+                stmt.executeUpdate(this.createExpenseFingerprintIndex);
+                if (nonUnivoco) {
+                    System.out.println("Migrazione: indice delle impronte reso univoco");
+                }
+            } catch (SQLException e) {
+                stmt.executeUpdate(this.createExpenseFingerprintFallbackIndex);
+                System.err.println("ATTENZIONE: il database contiene spese duplicate (" + e.getMessage() + "). L'indice delle " +
+                        "impronte non è univoco e il filtro dei doppioni in memoria viene disattivato: eliminare i doppioni " +
+                        "(stesso utente, nome, importo, valuta e data) e riavviare per ripristinare il controllo completo.");
+            }
+        }
+    }
+
+    /**
+     * Esegue più istruzioni in un'unica transazione (es. una tabella ricreata con uno schema diverso).
+     */
+    private void eseguiInTransazione(Connection conn, String[] istruzioni) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            for (String sql : istruzioni) {
+                stmt.executeUpdate(sql);
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    private boolean columnExists(Connection conn, String tabella, String colonna) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + tabella + ");")) {
+            while (rs.next()) {
+                if (colonna.equalsIgnoreCase(rs.getString("name"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Aggiunge una colonna a una tabella esistente se non è già presente.
+     * Serve ad aggiornare i database creati prima dell'introduzione della colonna
+     * (CREATE TABLE IF NOT EXISTS non modifica le tabelle già esistenti).
+     *
+     * @param conn       La connessione al database.
+     * @param tabella    Il nome della tabella.
+     * @param colonna    Il nome della colonna da aggiungere.
+     * @param definizione Il tipo e i vincoli della colonna (es. "INTEGER NOT NULL DEFAULT 1").
+     * @return true se la colonna è stata aggiunta, false se esisteva già.
+     * @throws SQLException se la lettura dello schema o l'ALTER TABLE falliscono.
+     */
+    private boolean addColumnIfMissing(Connection conn, String tabella, String colonna, String definizione) throws SQLException {
+        if (columnExists(conn, tabella, colonna)) {
+            return false;
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("ALTER TABLE " + tabella + " ADD COLUMN " + colonna + " " + definizione + ";");
+            System.out.println("Migrazione: aggiunta colonna " + tabella + "." + colonna);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,102 @@
+package it.moneygement.db;
+
+import java.util.Arrays;
+
+/**
+ * Anello di hashing consistente che associa ogni utente a uno degli N shard del database.
+ * <p>
+ * Ogni shard occupa {@value #NODI_VIRTUALI} punti (nodi virtuali) sull'anello dei valori a 64 bit;
+ * un utente appartiene al primo punto che segue l'hash del suo id. Con i nodi virtuali il carico è
+ * distribuito in modo uniforme e, passando da N a N+1 shard, si sposta solo circa 1/(N+1) degli utenti
+ * (tutti verso il nuovo shard), invece di quasi tutti come con un semplice {@code id % N}.
+ * </p>
+ * <p>
+ * Il calcolo dipende solo dall'id e dal numero di shard: è identico in ogni esecuzione e su ogni macchina,
+ * quindi non serve alcuna tabella per instradare le richieste. La classe è immutabile e thread-safe.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public final class ShardRouter {
+
+    /**
+     * Numero di punti dell'anello per ogni shard.
+     */
+    public static final int NODI_VIRTUALI = 160;
+
+    private final int numeroShard;
+    // Punti dell'anello ordinati e, allo stesso indice, lo shard che li possiede
+    private final long[] punti;
+    private final int[] shardDelPunto;
+
+    /**
+     * Costruisce l'anello per il numero di shard indicato.
+     *
+     * @param numeroShard Il numero di shard (almeno 1).
+     * @throws IllegalArgumentException se il numero di shard non è positivo.
+     */
+    public ShardRouter(int numeroShard) {
+        if (numeroShard < 1) {
+            throw new IllegalArgumentException("Il numero di shard deve essere almeno 1");
+        }
+        this.numeroShard = numeroShard;
+
+        int n = numeroShard * NODI_VIRTUALI;
+        long[] chiavi = new long[n];
+        for (int s = 0, i = 0; s < numeroShard; s++) {
+            for (int v = 0; v < NODI_VIRTUALI; v++, i++) {
+                chiavi[i] = mix(((long) s << 32) | v);
+            }
+        }
+
+        // Ordiniamo i punti portandoci dietro lo shard proprietario
+        Integer[] ordine = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            ordine[i] = i;
+        }
+        Arrays.sort(ordine, (a, b) -> Long.compare(chiavi[a], chiavi[b]));
+        this.punti = new long[n];
+        this.shardDelPunto = new int[n];
+        for (int i = 0; i < n; i++) {
+            punti[i] = chiavi[ordine[i]];
+            shardDelPunto[i] = ordine[i] / NODI_VIRTUALI;
+        }
+    }
+
+    /**
+     * Restituisce lo shard che ospita i dati di un utente.
+     *
+     * @param userId L'id globale dell'utente.
+     * @return L'indice dello shard, tra 0 e {@link #getNumeroShard()} - 1.
+     */
+    public int shardFor(int userId) {
+        if (numeroShard == 1) {
+            return 0;
+        }
+        long h = mix(0x9E3779B97F4A7C15L ^ userId);
+        int i = Arrays.binarySearch(punti, h);
+        int indice = i >= 0 ? i : -i - 1;
+        // Oltre l'ultimo punto si riparte dal primo (è un anello)
+        return shardDelPunto[indice == punti.length ? 0 : indice];
+    }
+
+    /**
+     * @return Il numero di shard dell'anello.
+     */
+    public int getNumeroShard() {
+        return numeroShard;
+    }
+
+    /**
+     * Funzione di mescolamento a 64 bit (finalizzatore di MurmurHash3): piccole differenze
+     * nell'ingresso producono valori sparsi su tutto l'anello.
+     */
+    private static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xFF51AFD7ED558CCDL;
+        x ^= x >>> 33;
+        x *= 0xC4CEB93FE2CF2D53L;
+        x ^= x >>> 33;
+        return x;
+    }
+}
@@ -0,0 +1,21 @@
+package it.moneygement.events;
+
+import it.moneygement.model.ExpenseAnomaly;
+
+/**
+ * Ricevitore delle segnalazioni di spese con importi anomali.
+ *
+ * @author Stefano Bellan
+ */
+@FunctionalInterface
+public interface AnomalyListener {
+
+    /**
+     * Riceve la segnalazione di una spesa appena aggiunta con un importo anomalo per la sua categoria.
+     * Viene chiamato sul thread che ha salvato la spesa, subito dopo il salvataggio: non deve bloccare
+     * (le applicazioni JavaFX devono passare al thread della UI con {@code Platform.runLater}).
+     *
+     * @param anomalia La spesa e i valori di riferimento.
+     */
+    void onAnomaly(ExpenseAnomaly anomalia);
+}
@@ -0,0 +1,21 @@
+package it.moneygement.events;
+
+import it.moneygement.model.BudgetStatus;
+
+/**
+ * Ricevitore degli avvisi di superamento delle soglie dei budget.
+ *
+ * @author Stefano Bellan
+ */
+@FunctionalInterface
+public interface BudgetAlertListener {
+
+    /**
+     * Riceve l'avviso di un budget che ha raggiunto una nuova soglia ({@link BudgetStatus#getSoglia()}).
+     * Viene chiamato sul thread che ha salvato la spesa, subito dopo il salvataggio: non deve bloccare
+     * (le applicazioni JavaFX devono passare al thread della UI con {@code Platform.runLater}).
+     *
+     * @param stato La situazione del budget dopo la spesa.
+     */
+    void onAlert(BudgetStatus stato);
+}
@@ -0,0 +1,239 @@
+package it.moneygement.events;
+
+import org.sqlite.SQLiteCommitListener;
+import org.sqlite.SQLiteConnection;
+import org.sqlite.SQLiteUpdateListener;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bus delle modifiche al database: avvisa cache, riepiloghi e dashboard quando cambiano spese e utenti,
+ * senza che debbano rileggere i dati a intervalli.
+ * <p>
+ * Le modifiche vengono intercettate con gli hook di SQLite (update hook e commit/rollback hook di sqlite-jdbc)
+ * sulle connessioni aperte da {@code DbConnection}, quindi comprendono tutto ciò che passa da quelle
+ * connessioni, anche le righe toccate dai trigger. Durante una transazione gli eventi restano in attesa e
+ * vengono accorpati per riga (es. inserimento seguito da modifica diventa un solo inserimento, inserimento
+ * seguito da cancellazione sparisce); al commit vengono pubblicati tutti insieme, al rollback scartati.
+ * Oltre {@value #MAX_EVENTI_PER_TRANSAZIONE} righe in una transazione si pubblica un solo evento
+ * {@link ChangeEvent.Operazione#BULK} per tabella.
+ * </p>
+ * <p>
+ * Gli hook vengono eseguiti mentre SQLite sta lavorando e non possono accedere al database: per questo
+ * gli eventi vengono consegnati ai {@link ChangeListener} su un thread dedicato, nell'ordine dei commit.
+ * I metodi di modifica di {@code ExpenseDAO} indicano con {@link #inizioModifica(int)} l'utente a cui
+ * appartiene la spesa, che viene riportato negli eventi.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class ChangeBus {
+
+    static final int MAX_EVENTI_PER_TRANSAZIONE = 10_000;
+
+    private static ChangeBus instance;
+
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService consegna;
+    // Utente proprietario delle spese modificate dal thread corrente (0 = sconosciuto)
+    private final ThreadLocal<Integer> utenteCorrente = ThreadLocal.withInitial(() -> 0);
+    private final AtomicLong pubblicati = new AtomicLong();
+    private final AtomicLong accorpati = new AtomicLong();
+
+    /**
+     * Costruttore visibile nel package per i test; l'applicazione usa {@link #getInstance()}.
+     */
+    ChangeBus() {
+        this.consegna = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "change-bus");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return L'istanza condivisa del bus.
+     */
+    public static synchronized ChangeBus getInstance() {
+        if (instance == null) {
+            instance = new ChangeBus();
+        }
+        return instance;
+    }
+
+    /**
+     * Collega il bus a una connessione SQLite: da questo momento le sue modifiche vengono pubblicate.
+     *
+     * @param conn La connessione (deve essere una connessione sqlite-jdbc).
+     * @throws SQLException se la connessione non è di SQLite.
+     */
+    public void attach(Connection conn) throws SQLException {
+        SQLiteConnection sqlite = conn.unwrap(SQLiteConnection.class);
+        Transazione transazione = new Transazione();
+        sqlite.addUpdateListener(transazione);
+        sqlite.addCommitListener(transazione);
+    }
+
+    /**
+     * Registra un ricevitore degli eventi. Se non c'è nessun ricevitore le modifiche non vengono tracciate.
+     *
+     * @param listener Il ricevitore.
+     */
+    public void subscribe(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Rimuove un ricevitore registrato.
+     *
+     * @param listener Il ricevitore.
+     */
+    public void unsubscribe(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Indica l'utente a cui appartengono le spese che il thread corrente sta per modificare.
+     * Va sempre seguito da {@link #fineModifica()} in un blocco finally.
+     *
+     * @param idUtente L'id dell'utente.
+     */
+    public void inizioModifica(int idUtente) {
+        utenteCorrente.set(idUtente);
+    }
+
+    /**
+     * Chiude l'intervallo aperto con {@link #inizioModifica(int)}.
+     */
+    public void fineModifica() {
+        utenteCorrente.remove();
+    }
+
+    /**
+     * @return Il numero di eventi pubblicati.
+     */
+    public long getPubblicati() {
+        return pubblicati.get();
+    }
+
+    /**
+     * @return Il numero di modifiche accorpate in un evento già in attesa (quindi non pubblicate a parte).
+     */
+    public long getAccorpati() {
+        return accorpati.get();
+    }
+
+    // --- METODI PRIVATI ---
+
+    /**
+     * Combina due modifiche consecutive della stessa riga.
+     *
+     * @return L'operazione risultante, oppure null se le due modifiche si annullano.
+     */
+    static ChangeEvent.Operazione accorpa(ChangeEvent.Operazione prima, ChangeEvent.Operazione dopo) {
+        return switch (prima) {
+            case INSERT -> dopo == ChangeEvent.Operazione.DELETE ? null : ChangeEvent.Operazione.INSERT;
+            case DELETE -> dopo == ChangeEvent.Operazione.INSERT ? ChangeEvent.Operazione.UPDATE : dopo;
+            default -> dopo;
+        };
+    }
+
+    private void pubblica(List<ChangeEvent> eventi) {
+        pubblicati.addAndGet(eventi.size());
+        consegna.execute(() -> {
+            for (ChangeListener listener : listeners) {
+                try {
+                    listener.onChanges(eventi);
+                } catch (RuntimeException e) {
+                    System.err.println("Errore nel ricevitore di modifiche " + listener + ": " + e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Eventi in attesa della transazione in corso su una connessione. Gli hook di una connessione
+     * vengono chiamati uno alla volta (sqlite-jdbc serializza l'accesso alla connessione).
+     */
+    private final class Transazione implements SQLiteUpdateListener, SQLiteCommitListener {
+        private final Map<String, ChangeEvent> inAttesa = new LinkedHashMap<>();
+        private final Set<String> tabelleMassive = new LinkedHashSet<>();
+
+        @Override
+        public void onUpdate(Type tipo, String database, String tabella, long rowid) {
+            // Solo il database principale: i database collegati con ATTACH non sono dati dell'applicazione
+            if (listeners.isEmpty() || !"main".equals(database) || tabelleMassive.contains(tabella)) {
+                return;
+            }
+            ChangeEvent.Operazione operazione = ChangeEvent.Operazione.valueOf(tipo.name());
+            ChangeEvent evento = switch (tabella) {
+                case "expense" -> new ExpenseChanged(rowid, operazione, utenteCorrente.get());
+                case "user" -> new UserChanged(rowid, operazione);
+                default -> null;
+            };
+            if (evento == null) {
+                return;
+            }
+
+            String chiave = tabella + ':' + rowid;
+            ChangeEvent precedente = inAttesa.get(chiave);
+            if (precedente == null) {
+                inAttesa.put(chiave, evento);
+                if (inAttesa.size() > MAX_EVENTI_PER_TRANSAZIONE) {
+                    passaAMassiva(tabella);
+                }
+                return;
+            }
+            accorpati.incrementAndGet();
+            ChangeEvent.Operazione risultato = accorpa(precedente.getOperazione(), operazione);
+            if (risultato == null) {
+                inAttesa.remove(chiave);
+            } else if (risultato != precedente.getOperazione()) {
+                inAttesa.put(chiave, precedente.conOperazione(risultato));
+            }
+        }
+
+        @Override
+        public void onCommit() {
+            if (inAttesa.isEmpty() && tabelleMassive.isEmpty()) {
+                return;
+            }
+            List<ChangeEvent> eventi = new ArrayList<>(inAttesa.values());
+            for (String tabella : tabelleMassive) {
+                eventi.add("expense".equals(tabella)
+                        ? new ExpenseChanged(0, ChangeEvent.Operazione.BULK, utenteCorrente.get())
+                        : new UserChanged(0, ChangeEvent.Operazione.BULK));
+            }
+            inAttesa.clear();
+            tabelleMassive.clear();
+            if (!eventi.isEmpty()) {
+                pubblica(eventi);
+            }
+        }
+
+        @Override
+        public void onRollback() {
+            inAttesa.clear();
+            tabelleMassive.clear();
+        }
+
+        /**
+         * Sostituisce gli eventi di una tabella con un unico evento BULK.
+         */
+        private void passaAMassiva(String tabella) {
+            tabelleMassive.add(tabella);
+            inAttesa.values().removeIf(e -> e.getTabella().equals(tabella));
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package it.moneygement.events;
+
+/**
+ * Modifica di una riga del database, pubblicata da {@link ChangeBus} dopo il commit.
+ * <p>
+ * Identifica la riga con tabella e rowid (per le tabelle {@code expense} e {@code user} coincide con l'id),
+ * così chi mantiene una cache può invalidare o aggiornare solo le voci interessate.
+ * Le modifiche della stessa riga nella stessa transazione sono già accorpate in un unico evento.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public abstract class ChangeEvent {
+
+    /**
+     * Tipo di modifica.
+     */
+    public enum Operazione {
+        // Riga inserita
+        INSERT,
+        // Riga modificata
+        UPDATE,
+        // Riga cancellata
+        DELETE,
+        // Troppe modifiche nella stessa transazione per elencarle: l'intera tabella va considerata cambiata
+        BULK
+    }
+
+    private final String tabella;
+    private final long rowid;
+    private final Operazione operazione;
+
+    ChangeEvent(String tabella, long rowid, Operazione operazione) {
+        this.tabella = tabella;
+        this.rowid = rowid;
+        this.operazione = operazione;
+    }
+
+    /**
+     * @return Il nome della tabella modificata.
+     */
+    public String getTabella() {
+        return tabella;
+    }
+
+    /**
+     * @return Il rowid della riga modificata (0 per le modifiche {@link Operazione#BULK}).
+     */
+    public long getRowid() {
+        return rowid;
+    }
+
+    public Operazione getOperazione() {
+        return operazione;
+    }
+
+    /**
+     * Crea lo stesso evento con un'altra operazione (usato nell'accorpamento).
+     */
+    abstract ChangeEvent conOperazione(Operazione operazione);
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" + operazione + " " + tabella + "#" + rowid + "}";
+    }
+}
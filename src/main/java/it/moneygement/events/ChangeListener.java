@@ -0,0 +1,21 @@
+package it.moneygement.events;
+
+import java.util.List;
+
+/**
+ * Ricevitore degli eventi pubblicati da {@link ChangeBus}.
+ *
+ * @author Stefano Bellan
+ */
+@FunctionalInterface
+public interface ChangeListener {
+
+    /**
+     * Riceve le modifiche di una transazione confermata, nell'ordine in cui sono avvenute.
+     * Viene chiamato sul thread del bus: non deve bloccare a lungo (le applicazioni JavaFX
+     * devono passare al thread della UI con {@code Platform.runLater}).
+     *
+     * @param eventi Le modifiche accorpate della transazione (mai vuota).
+     */
+    void onChanges(List<ChangeEvent> eventi);
+}
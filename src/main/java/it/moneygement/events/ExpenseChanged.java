@@ -0,0 +1,49 @@
+package it.moneygement.events;
+
+/**
+ * Modifica di una riga della tabella {@code expense}.
+ *
+ * @author Stefano Bellan
+ */
+public class ExpenseChanged extends ChangeEvent {
+
+    private final int idUtente;
+
+    /**
+     * @param idSpesa    L'id della spesa (0 per {@link Operazione#BULK}).
+     * @param operazione Il tipo di modifica.
+     * @param idUtente   L'utente proprietario, se noto (0 altrimenti).
+     */
+    public ExpenseChanged(long idSpesa, Operazione operazione, int idUtente) {
+        super("expense", idSpesa, operazione);
+        this.idUtente = idUtente;
+    }
+
+    /**
+     * @return L'id della spesa modificata.
+     */
+    public int getIdSpesa() {
+        return (int) getRowid();
+    }
+
+    /**
+     * Restituisce l'utente proprietario della spesa. È noto quando la modifica passa dai metodi di
+     * {@code ExpenseDAO}; per le modifiche fatte da altri (strumenti, SQL diretto) vale 0 e chi riceve
+     * l'evento deve considerare la spesa di proprietario sconosciuto.
+     *
+     * @return L'id dell'utente, oppure 0 se non noto.
+     */
+    public int getIdUtente() {
+        return idUtente;
+    }
+
+    @Override
+    public String toString() {
+        return "ExpenseChanged{" + getOperazione() + " expense#" + getRowid() + ", utente=" + idUtente + "}";
+    }
+
+    @Override
+    ChangeEvent conOperazione(Operazione operazione) {
+        return new ExpenseChanged(getRowid(), operazione, idUtente);
+    }
+}
@@ -0,0 +1,29 @@
+package it.moneygement.events;
+
+/**
+ * Modifica di una riga della tabella {@code user}.
+ *
+ * @author Stefano Bellan
+ */
+public class UserChanged extends ChangeEvent {
+
+    /**
+     * @param idUtente   L'id dell'utente (0 per {@link Operazione#BULK}).
+     * @param operazione Il tipo di modifica.
+     */
+    public UserChanged(long idUtente, Operazione operazione) {
+        super("user", idUtente, operazione);
+    }
+
+    /**
+     * @return L'id dell'utente modificato.
+     */
+    public int getIdUtente() {
+        return (int) getRowid();
+    }
+
+    @Override
+    ChangeEvent conOperazione(Operazione operazione) {
+        return new UserChanged(getRowid(), operazione);
+    }
+}
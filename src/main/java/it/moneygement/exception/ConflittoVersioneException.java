@@ -0,0 +1,12 @@
+package it.moneygement.exception;
+
+/**
+ * Eccezione che viene lanciata quando una spesa è stata modificata da qualcun altro
+ * e non è stato possibile applicare l'aggiornamento nemmeno dopo i tentativi di merge
+ * @author Stefano Bellan
+ */
+public class ConflittoVersioneException extends RuntimeException {
+    public ConflittoVersioneException(String message) {
+        super(message);
+    }
+}
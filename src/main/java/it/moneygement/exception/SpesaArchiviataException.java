@@ -0,0 +1,12 @@
+package it.moneygement.exception;
+
+/**
+ * Eccezione che viene lanciata quando si tenta di modificare o cancellare una spesa di un anno archiviato,
+ * che è in sola lettura
+ * @author Stefano Bellan
+ */
+public class SpesaArchiviataException extends RuntimeException {
+    public SpesaArchiviataException(String message) {
+        super(message);
+    }
+}
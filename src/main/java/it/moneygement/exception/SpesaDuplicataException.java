@@ -0,0 +1,12 @@
+package it.moneygement.exception;
+
+/**
+ * Eccezione che viene lanciata quando si tenta di salvare una spesa uguale a una già presente
+ * (stesso nome, importo, valuta e data)
+ * @author Stefano Bellan
+ */
+public class SpesaDuplicataException extends RuntimeException {
+    public SpesaDuplicataException(String message) {
+        super(message);
+    }
+}
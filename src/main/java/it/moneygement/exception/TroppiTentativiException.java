@@ -0,0 +1,25 @@
+package it.moneygement.exception;
+
+import java.time.Duration;
+
+/**
+ * Eccezione che viene lanciata quando un login viene rifiutato perché ci sono stati troppi tentativi
+ * per la stessa email o dalla stessa origine
+ * @author Stefano Bellan
+ */
+public class TroppiTentativiException extends RuntimeException {
+
+    private final Duration attesa;
+
+    public TroppiTentativiException(String message, Duration attesa) {
+        super(message);
+        this.attesa = attesa;
+    }
+
+    /**
+     * @return Il tempo da attendere prima di riprovare.
+     */
+    public Duration getAttesa() {
+        return attesa;
+    }
+}
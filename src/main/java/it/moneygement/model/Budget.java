@@ -0,0 +1,90 @@
+package it.moneygement.model;
+
+import it.moneygement.exception.DatiNonValidiException;
+
+/**
+ * Limite di spesa di un utente per una categoria in un periodo (es. 300 € al mese per RISTORANTI).
+ * Un utente ha al massimo un budget per coppia categoria/periodo.
+ *
+ * @author Stefano Bellan
+ */
+public class Budget {
+
+    private int id;
+    private int idUtente;
+    private Categories categoria;
+    private BudgetPeriod periodo;
+    private double limite;
+
+    /**
+     * Crea un budget validando i dati attraverso i setter.
+     *
+     * @param categoria La categoria a cui si applica.
+     * @param periodo   Il periodo del limite.
+     * @param limite    L'importo massimo del periodo.
+     * @throws DatiNonValidiException se un dato non è valido.
+     */
+    public Budget(Categories categoria, BudgetPeriod periodo, double limite) {
+        this.setCategoria(categoria);
+        this.setPeriodo(periodo);
+        this.setLimite(limite);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public int getIdUtente() {
+        return idUtente;
+    }
+
+    public void setIdUtente(int idUtente) {
+        this.idUtente = idUtente;
+    }
+
+    public Categories getCategoria() {
+        return categoria;
+    }
+
+    public void setCategoria(Categories categoria) {
+        if (categoria == null) {
+            throw new DatiNonValidiException("La categoria del budget è obbligatoria!!!");
+        }
+        this.categoria = categoria;
+    }
+
+    public BudgetPeriod getPeriodo() {
+        return periodo;
+    }
+
+    public void setPeriodo(BudgetPeriod periodo) {
+        if (periodo == null) {
+            throw new DatiNonValidiException("Il periodo del budget è obbligatorio!!!");
+        }
+        this.periodo = periodo;
+    }
+
+    public double getLimite() {
+        return limite;
+    }
+
+    /**
+     * @param limite L'importo massimo del periodo.
+     * @throws DatiNonValidiException se il limite non è positivo.
+     */
+    public void setLimite(double limite) {
+        if (!(limite > 0) || Double.isInfinite(limite)) {
+            throw new DatiNonValidiException("Il limite del budget deve essere positivo!!!");
+        }
+        this.limite = limite;
+    }
+
+    @Override
+    public String toString() {
+        return "Budget " + categoria + " " + periodo + " (limite: " + limite + ")";
+    }
+}
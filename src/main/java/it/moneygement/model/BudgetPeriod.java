@@ -0,0 +1,41 @@
+package it.moneygement.model;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.TemporalAdjusters;
+
+/**
+ * Periodo a cui si riferisce il limite di un budget.
+ *
+ * @author Stefano Bellan
+ */
+public enum BudgetPeriod {
+    // Da lunedì a domenica
+    SETTIMANALE,
+    MENSILE,
+    ANNUALE;
+
+    /**
+     * @param giorno Un giorno qualsiasi.
+     * @return Il primo giorno del periodo che contiene il giorno indicato.
+     */
+    public LocalDate inizio(LocalDate giorno) {
+        return switch (this) {
+            case SETTIMANALE -> giorno.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+            case MENSILE -> giorno.withDayOfMonth(1);
+            case ANNUALE -> giorno.withDayOfYear(1);
+        };
+    }
+
+    /**
+     * @param inizio Il primo giorno di un periodo.
+     * @return Il primo giorno del periodo successivo (escluso dal periodo).
+     */
+    public LocalDate fine(LocalDate inizio) {
+        return switch (this) {
+            case SETTIMANALE -> inizio.plusWeeks(1);
+            case MENSILE -> inizio.plusMonths(1);
+            case ANNUALE -> inizio.plusYears(1);
+        };
+    }
+}
@@ -0,0 +1,54 @@
+package it.moneygement.model;
+
+import java.time.LocalDate;
+
+/**
+ * Situazione di un budget nel periodo corrente: quanto è stato speso rispetto al limite.
+ * Viene usata sia per mostrare i budget sia come avviso quando si supera una soglia.
+ *
+ * @author Stefano Bellan
+ */
+public class BudgetStatus {
+
+    private final Budget budget;
+    private final LocalDate inizioPeriodo;
+    private final double speso;
+    // Soglia raggiunta in percentuale del limite (0, 80 o 100)
+    private final int soglia;
+
+    public BudgetStatus(Budget budget, LocalDate inizioPeriodo, double speso, int soglia) {
+        this.budget = budget;
+        this.inizioPeriodo = inizioPeriodo;
+        this.speso = speso;
+        this.soglia = soglia;
+    }
+
+    public Budget getBudget() {
+        return budget;
+    }
+
+    public LocalDate getInizioPeriodo() {
+        return inizioPeriodo;
+    }
+
+    public double getSpeso() {
+        return speso;
+    }
+
+    public int getSoglia() {
+        return soglia;
+    }
+
+    /**
+     * @return La parte del limite già spesa (1.0 = limite raggiunto).
+     */
+    public double getPercentuale() {
+        return speso / budget.getLimite();
+    }
+
+    @Override
+    public String toString() {
+        return budget.getCategoria() + " " + budget.getPeriodo() + " dal " + inizioPeriodo + ": "
+                + speso + " / " + budget.getLimite() + " (soglia " + soglia + "%)";
+    }
+}
@@ -0,0 +1,103 @@
+package it.moneygement.model;
+
+import java.util.List;
+
+/**
+ * Blocco di modifiche restituito dalla sincronizzazione incrementale tra dispositivi.
+ * <p>
+ * Contiene, in ordine di sequenza, le spese inserite o modificate e gli id delle spese cancellate dopo la
+ * sequenza indicata dal client, più i dati dell'utente se sono cambiati. Il client applica il blocco e
+ * conserva {@link #getEpoca()} e {@link #getUltimaSequenza()} per la richiesta successiva; se
+ * {@link #isAltri()} è true ci sono altre modifiche e va richiesto subito il blocco seguente.
+ * </p>
+ * <p>
+ * Se {@link #isRisincronizzazione()} è true le sequenze del client non sono più valide (sono state assegnate
+ * da un altro database, ad esempio prima che l'utente venisse spostato su un altro shard): il client deve
+ * scartare i dati locali prima di applicare il blocco, che riparte dall'inizio.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class ChangeBatch {
+
+    private final String epoca;
+    private final long ultimaSequenza;
+    private final boolean altri;
+    private final boolean risincronizzazione;
+    private final User utente;
+    private final List<Expense> modificate;
+    private final List<Integer> eliminate;
+
+    /**
+     * Crea un blocco di modifiche.
+     *
+     * @param epoca              L'identificativo del database che ha assegnato le sequenze.
+     * @param ultimaSequenza     La sequenza da cui ripartire alla richiesta successiva.
+     * @param altri              true se dopo questo blocco ci sono altre modifiche.
+     * @param risincronizzazione true se il client deve scartare i dati locali prima di applicare il blocco.
+     * @param utente             L'utente, se modificato nel blocco, altrimenti null.
+     * @param modificate         Le spese inserite o modificate.
+     * @param eliminate          Gli id delle spese cancellate.
+     */
+    public ChangeBatch(String epoca, long ultimaSequenza, boolean altri, boolean risincronizzazione,
+                       User utente, List<Expense> modificate, List<Integer> eliminate) {
+        this.epoca = epoca;
+        this.ultimaSequenza = ultimaSequenza;
+        this.altri = altri;
+        this.risincronizzazione = risincronizzazione;
+        this.utente = utente;
+        this.modificate = List.copyOf(modificate);
+        this.eliminate = List.copyOf(eliminate);
+    }
+
+    public String getEpoca() {
+        return epoca;
+    }
+
+    public long getUltimaSequenza() {
+        return ultimaSequenza;
+    }
+
+    public boolean isAltri() {
+        return altri;
+    }
+
+    public boolean isRisincronizzazione() {
+        return risincronizzazione;
+    }
+
+    /**
+     * @return L'utente aggiornato, oppure null se i suoi dati non sono cambiati.
+     */
+    public User getUtente() {
+        return utente;
+    }
+
+    public List<Expense> getModificate() {
+        return modificate;
+    }
+
+    public List<Integer> getEliminate() {
+        return eliminate;
+    }
+
+    /**
+     * @return Il numero di modifiche contenute nel blocco.
+     */
+    public int size() {
+        return modificate.size() + eliminate.size() + (utente == null ? 0 : 1);
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeBatch{" +
+                "epoca=" + epoca +
+                ", ultimaSequenza=" + ultimaSequenza +
+                ", modificate=" + modificate.size() +
+                ", eliminate=" + eliminate.size() +
+                ", utente=" + (utente != null) +
+                ", altri=" + altri +
+                ", risincronizzazione=" + risincronizzazione +
+                '}';
+    }
+}
@@ -11,14 +11,21 @@ import java.time.LocalDateTime;
  */
 public class Expense {
 
+    // Valuta delle spese salvate prima dell'introduzione delle valute e valuta base predefinita degli utenti
+    public static final String VALUTA_PREDEFINITA = "EUR";
+
     // Attributi della classe dichiarati privati per garantire l'incapsulamento dei dati
     private String nomeSpesa;
     private Categories categoria;
     private String descrizione;
     private double importo;
+    // Codice ISO 4217 della valuta dell'importo (es. "EUR", "USD")
+    private String valuta = VALUTA_PREDEFINITA;
     private LocalDateTime data;
     private int id;
     private int idUtente;
+    // Versione della riga nel database: 0 finché la spesa non è stata salvata
+    private int version;
 
     /**
      * Costruttore della classe Expense.
@@ -134,6 +141,36 @@ public class Expense {
         this.importo = importo;
     }
 
+    /**
+     * Restituisce la valuta dell'importo.
+     *
+     * @return il codice ISO 4217 della valuta (es. "EUR").
+     */
+    public String getValuta() {
+        return valuta;
+    }
+
+    /**
+     * Imposta la valuta dell'importo.
+     *
+     * @param valuta il codice ISO 4217 della valuta (tre lettere maiuscole, es. "USD").
+     * @throws DatiNonValidiException se il codice non è di tre lettere maiuscole.
+     */
+    public void setValuta(String valuta) {
+        if (!isCodiceValuta(valuta)) {
+            throw new DatiNonValidiException("La valuta deve essere un codice di tre lettere maiuscole (es. EUR)!!!");
+        }
+        this.valuta = valuta;
+    }
+
+    /**
+     * @param valuta il codice da verificare.
+     * @return true se il codice ha la forma di un codice ISO 4217 (tre lettere maiuscole).
+     */
+    public static boolean isCodiceValuta(String valuta) {
+        return valuta != null && valuta.matches("[A-Z]{3}");
+    }
+
     /**
      * Restituisce la data e l'ora della spesa.
      *
@@ -202,6 +239,29 @@ public class Expense {
         this.idUtente = idUtente;
     }
 
+    /**
+     * Restituisce la versione della spesa letta dal database.
+     * Viene usata per il controllo di concorrenza ottimistico negli aggiornamenti.
+     *
+     * @return il numero di versione (0 se la spesa non è ancora stata salvata).
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Imposta la versione della spesa. Solitamente utilizzato quando si recupera il dato dal database.
+     *
+     * @param version il numero di versione.
+     * @throws DatiNonValidiException se la versione è negativa.
+     */
+    public void setVersion(int version) {
+        if (version < 0) {
+            throw new DatiNonValidiException("La versione non può essere negativa");
+        }
+        this.version = version;
+    }
+
     /**
      * Restituisce una rappresentazione testuale dell'oggetto Expense.
      * Utile per il debugging e i log.
@@ -214,7 +274,9 @@ public class Expense {
                 ", nomeSpesa='" + nomeSpesa + '\'' +
                 ", categoria=" + categoria +
                 ", importo=" + importo +
+                ", valuta=" + valuta +
                 ", data=" + data +
+                ", version=" + version +
                 '}';
     }
 }
\ No newline at end of file
@@ -0,0 +1,60 @@
+package it.moneygement.model;
+
+/**
+ * Spesa con un importo insolitamente alto rispetto alle spese recenti della stessa categoria.
+ * Riporta i valori di riferimento con cui è stata confrontata, nella valuta base dell'utente.
+ *
+ * @author Stefano Bellan
+ */
+public class ExpenseAnomaly {
+
+    private final Expense spesa;
+    private final double importo;
+    private final double media;
+    private final double mediana;
+    // Distanza dalla media mobile in deviazioni standard, e dalla mediana recente in MAD scalate
+    private final double punteggio;
+    private final double punteggioRobusto;
+
+    public ExpenseAnomaly(Expense spesa, double importo, double media, double mediana, double punteggio, double punteggioRobusto) {
+        this.spesa = spesa;
+        this.importo = importo;
+        this.media = media;
+        this.mediana = mediana;
+        this.punteggio = punteggio;
+        this.punteggioRobusto = punteggioRobusto;
+    }
+
+    public Expense getSpesa() {
+        return spesa;
+    }
+
+    /**
+     * @return L'importo della spesa nella valuta base.
+     */
+    public double getImporto() {
+        return importo;
+    }
+
+    public double getMedia() {
+        return media;
+    }
+
+    public double getMediana() {
+        return mediana;
+    }
+
+    public double getPunteggio() {
+        return punteggio;
+    }
+
+    public double getPunteggioRobusto() {
+        return punteggioRobusto;
+    }
+
+    @Override
+    public String toString() {
+        return spesa.getCategoria() + ": " + importo + " (media " + media + ", mediana " + mediana
+                + ", punteggi " + punteggio + " / " + punteggioRobusto + ")";
+    }
+}
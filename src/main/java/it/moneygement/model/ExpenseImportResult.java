@@ -0,0 +1,39 @@
+package it.moneygement.model;
+
+import java.util.List;
+
+/**
+ * Esito dell'importazione di un elenco di spese: le spese salvate e le posizioni (nell'elenco importato)
+ * di quelle saltate perché duplicate di spese già presenti o di spese precedenti dello stesso elenco.
+ *
+ * @author Stefano Bellan
+ */
+public class ExpenseImportResult {
+
+    private final List<Expense> importate;
+    private final List<Integer> duplicate;
+
+    public ExpenseImportResult(List<Expense> importate, List<Integer> duplicate) {
+        this.importate = List.copyOf(importate);
+        this.duplicate = List.copyOf(duplicate);
+    }
+
+    /**
+     * @return Le spese salvate, con id e versione, nell'ordine dell'elenco importato.
+     */
+    public List<Expense> getImportate() {
+        return importate;
+    }
+
+    /**
+     * @return Le posizioni (da 0) delle spese duplicate, in ordine crescente.
+     */
+    public List<Integer> getDuplicate() {
+        return duplicate;
+    }
+
+    @Override
+    public String toString() {
+        return "ExpenseImportResult{importate=" + importate.size() + ", duplicate=" + duplicate + "}";
+    }
+}
@@ -0,0 +1,43 @@
+package it.moneygement.model;
+
+/**
+ * Ordinamenti ammessi per la lettura a pagine delle spese.
+ * <p>
+ * È l'elenco chiuso delle colonne su cui si può ordinare, così il nome della colonna nella query non arriva
+ * mai dall'esterno. L'ordinamento per data usa l'indice (user_id, data): una pagina costa una lettura
+ * dell'indice anche con milioni di spese. L'ordinamento per importo confronta gli importi convertiti nella
+ * valuta base dell'utente con i cambi attuali, come i totali: non può usare un indice e ogni pagina scorre
+ * le spese dell'utente tenendo solo le migliori (vedi {@code ExpenseDAO.getExpensePage}). A parità di valore
+ * le spese sono ordinate per id, quindi l'ordine è totale e la paginazione per chiave non salta né ripete righe.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public enum ExpenseOrder {
+    DATA_CRESCENTE("data", false),
+    DATA_DECRESCENTE("data", true),
+    IMPORTO_CRESCENTE("importo", false),
+    IMPORTO_DECRESCENTE("importo", true);
+
+    private final String colonna;
+    private final boolean decrescente;
+
+    ExpenseOrder(String colonna, boolean decrescente) {
+        this.colonna = colonna;
+        this.decrescente = decrescente;
+    }
+
+    /**
+     * @return Il nome della colonna della tabella expense (per l'importo, quella da convertire nella valuta base).
+     */
+    public String getColonna() {
+        return colonna;
+    }
+
+    /**
+     * @return true se le spese vanno dalla più recente o dalla più costosa, false nell'ordine opposto.
+     */
+    public boolean isDecrescente() {
+        return decrescente;
+    }
+}
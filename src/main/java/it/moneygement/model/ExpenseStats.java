@@ -0,0 +1,102 @@
+package it.moneygement.model;
+
+import it.moneygement.utils.RunningStats;
+import it.moneygement.utils.TDigest;
+
+/**
+ * Distribuzione degli importi delle spese di una categoria: numero, media e deviazione standard esatte
+ * ({@link RunningStats}) e quantili stimati ({@link TDigest}), nella valuta base dell'utente.
+ * <p>
+ * Le statistiche vengono salvate per mese e unite per gli intervalli richiesti (vedi {@link #unisci(ExpenseStats)}).
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class ExpenseStats {
+
+    private final Categories categoria;
+    private final RunningStats statistiche;
+    private final TDigest digest;
+
+    /**
+     * Crea statistiche vuote.
+     */
+    public ExpenseStats(Categories categoria) {
+        this(categoria, new RunningStats(), new TDigest());
+    }
+
+    public ExpenseStats(Categories categoria, RunningStats statistiche, TDigest digest) {
+        this.categoria = categoria;
+        this.statistiche = statistiche;
+        this.digest = digest;
+    }
+
+    /**
+     * Aggiunge l'importo di una spesa.
+     */
+    public void aggiungi(double importo) {
+        statistiche.aggiungi(importo);
+        digest.aggiungi(importo);
+    }
+
+    /**
+     * Aggiunge le spese di altre statistiche della stessa categoria (che non vengono modificate).
+     */
+    public void unisci(ExpenseStats altre) {
+        statistiche.unisci(altre.statistiche);
+        digest.unisci(altre.digest);
+    }
+
+    public Categories getCategoria() {
+        return categoria;
+    }
+
+    public long getNumero() {
+        return statistiche.getNumero();
+    }
+
+    public double getMedia() {
+        return statistiche.getMedia();
+    }
+
+    public double getDeviazioneStandard() {
+        return statistiche.getDeviazioneStandard();
+    }
+
+    public double getMinimo() {
+        return statistiche.getMinimo();
+    }
+
+    public double getMassimo() {
+        return statistiche.getMassimo();
+    }
+
+    public double getMediana() {
+        return digest.quantile(0.5);
+    }
+
+    public double getP90() {
+        return digest.quantile(0.9);
+    }
+
+    /**
+     * @param q La frazione delle spese, tra 0 e 1.
+     * @return L'importo stimato sotto cui cade la frazione q delle spese.
+     */
+    public double quantile(double q) {
+        return digest.quantile(q);
+    }
+
+    public RunningStats getStatistiche() {
+        return statistiche;
+    }
+
+    public TDigest getDigest() {
+        return digest;
+    }
+
+    @Override
+    public String toString() {
+        return categoria + ": " + getNumero() + " spese, media " + getMedia() + ", mediana " + getMediana() + ", p90 " + getP90();
+    }
+}
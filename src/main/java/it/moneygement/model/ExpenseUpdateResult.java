@@ -0,0 +1,123 @@
+package it.moneygement.model;
+
+/**
+ * Esito di un aggiornamento condizionale di una spesa (controllo di concorrenza ottimistico).
+ * <p>
+ * Quando l'aggiornamento fallisce per un conflitto di versione, l'oggetto contiene anche
+ * la spesa così come è attualmente salvata nel database, in modo che il chiamante possa
+ * unire le modifiche senza dover rileggere la riga.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class ExpenseUpdateResult {
+
+    /**
+     * Possibili esiti dell'aggiornamento.
+     */
+    public enum Esito {
+        // La riga è stata aggiornata e la versione incrementata
+        AGGIORNATA,
+        // Un altro utente/dispositivo ha modificato la spesa nel frattempo
+        CONFLITTO,
+        // La spesa non esiste (o non appartiene all'utente)
+        NON_TROVATA,
+        // La spesa appartiene a un anno archiviato, in sola lettura
+        ARCHIVIATA,
+        // Con le modifiche la spesa sarebbe uguale a un'altra spesa dell'utente (stessa impronta)
+        DUPLICATA
+    }
+
+    private final Esito esito;
+    private final int nuovaVersione;
+    private final Expense spesaCorrente;
+
+    /**
+     * Costruttore privato: si usano i metodi statici di fabbrica.
+     */
+    private ExpenseUpdateResult(Esito esito, int nuovaVersione, Expense spesaCorrente) {
+        this.esito = esito;
+        this.nuovaVersione = nuovaVersione;
+        this.spesaCorrente = spesaCorrente;
+    }
+
+    /**
+     * Crea l'esito di un aggiornamento andato a buon fine.
+     *
+     * @param nuovaVersione la versione assegnata alla riga dopo l'aggiornamento.
+     * @return l'esito positivo.
+     */
+    public static ExpenseUpdateResult aggiornata(int nuovaVersione) {
+        return new ExpenseUpdateResult(Esito.AGGIORNATA, nuovaVersione, null);
+    }
+
+    /**
+     * Crea l'esito di un conflitto di versione.
+     *
+     * @param spesaCorrente la spesa attualmente salvata nel database.
+     * @return l'esito di conflitto.
+     */
+    public static ExpenseUpdateResult conflitto(Expense spesaCorrente) {
+        return new ExpenseUpdateResult(Esito.CONFLITTO, spesaCorrente.getVersion(), spesaCorrente);
+    }
+
+    /**
+     * Crea l'esito di una spesa non trovata.
+     *
+     * @return l'esito di spesa inesistente.
+     */
+    public static ExpenseUpdateResult nonTrovata() {
+        return new ExpenseUpdateResult(Esito.NON_TROVATA, 0, null);
+    }
+
+    /**
+     * Crea l'esito di una spesa archiviata, che non può essere modificata.
+     *
+     * @return l'esito di spesa in sola lettura.
+     */
+    public static ExpenseUpdateResult archiviata() {
+        return new ExpenseUpdateResult(Esito.ARCHIVIATA, 0, null);
+    }
+
+    /**
+     * Crea l'esito di un aggiornamento che renderebbe la spesa duplicata di un'altra.
+     *
+     * @return l'esito di spesa duplicata.
+     */
+    public static ExpenseUpdateResult duplicata() {
+        return new ExpenseUpdateResult(Esito.DUPLICATA, 0, null);
+    }
+
+    public Esito getEsito() {
+        return esito;
+    }
+
+    /**
+     * @return true se l'aggiornamento è stato applicato.
+     */
+    public boolean isAggiornata() {
+        return esito == Esito.AGGIORNATA;
+    }
+
+    /**
+     * @return la nuova versione (se aggiornata) o la versione attuale nel DB (se in conflitto).
+     */
+    public int getNuovaVersione() {
+        return nuovaVersione;
+    }
+
+    /**
+     * @return la spesa salvata nel database in caso di conflitto, altrimenti null.
+     */
+    public Expense getSpesaCorrente() {
+        return spesaCorrente;
+    }
+
+    @Override
+    public String toString() {
+        return "ExpenseUpdateResult{" +
+                "esito=" + esito +
+                ", nuovaVersione=" + nuovaVersione +
+                '}';
+    }
+}
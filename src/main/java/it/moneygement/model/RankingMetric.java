@@ -0,0 +1,13 @@
+package it.moneygement.model;
+
+/**
+ * Criterio di una classifica dei nomi di spesa.
+ *
+ * @author Stefano Bellan
+ */
+public enum RankingMetric {
+    // Totale speso, nella valuta base dell'utente
+    TOTALE,
+    // Numero di spese
+    NUMERO
+}
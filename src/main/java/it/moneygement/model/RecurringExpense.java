@@ -0,0 +1,160 @@
+package it.moneygement.model;
+
+import it.moneygement.exception.DatiNonValidiException;
+import it.moneygement.utils.RecurrenceRule;
+
+import java.time.LocalDateTime;
+
+/**
+ * Spesa ricorrente di un utente (es. affitto, abbonamenti): i dati della spesa da generare e la regola
+ * di ricorrenza ({@link RecurrenceRule}) che stabilisce le date delle occorrenze.
+ * <p>
+ * {@code prossima} è la data della prossima occorrenza da generare (null quando la regola è esaurita)
+ * e {@code generate} il numero di occorrenze già generate, per le regole con COUNT.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class RecurringExpense {
+
+    private int id;
+    private int idUtente;
+    private String nomeSpesa;
+    private Categories categoria;
+    private String descrizione;
+    private double importo;
+    private String valuta = Expense.VALUTA_PREDEFINITA;
+    private RecurrenceRule regola;
+    private LocalDateTime inizio;
+    private LocalDateTime prossima;
+    private int generate;
+
+    /**
+     * Crea una spesa ricorrente validando i dati; la prossima occorrenza è la prima della regola.
+     *
+     * @param nomeSpesa   Il nome delle spese generate.
+     * @param categoria   La categoria.
+     * @param descrizione La descrizione.
+     * @param importo     L'importo di ogni occorrenza.
+     * @param regola      La regola di ricorrenza.
+     * @param inizio      La data di inizio (ne fornisce anche l'ora alle occorrenze).
+     * @throws DatiNonValidiException se un dato non è valido.
+     */
+    public RecurringExpense(String nomeSpesa, Categories categoria, String descrizione, double importo,
+                            RecurrenceRule regola, LocalDateTime inizio) {
+        // Stesse regole di validazione delle spese che verranno generate
+        new Expense(nomeSpesa, categoria, descrizione, importo, inizio);
+        if (regola == null) {
+            throw new DatiNonValidiException("La regola di ricorrenza è obbligatoria!!!");
+        }
+        this.nomeSpesa = nomeSpesa;
+        this.categoria = categoria;
+        this.descrizione = descrizione;
+        this.importo = importo;
+        this.regola = regola;
+        this.inizio = inizio;
+        this.prossima = regola.successiva(inizio, null, 0);
+    }
+
+    /**
+     * Crea la spesa dell'occorrenza indicata.
+     *
+     * @param data La data dell'occorrenza.
+     * @return La spesa, collegata all'utente della spesa ricorrente.
+     */
+    public Expense occorrenza(LocalDateTime data) {
+        Expense spesa = new Expense(nomeSpesa, categoria, descrizione, importo, data);
+        spesa.setValuta(valuta);
+        spesa.setIdUtente(idUtente);
+        return spesa;
+    }
+
+    /**
+     * Passa all'occorrenza successiva a quella attuale.
+     */
+    public void avanza() {
+        generate++;
+        prossima = regola.successiva(inizio, prossima, generate);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public int getIdUtente() {
+        return idUtente;
+    }
+
+    public void setIdUtente(int idUtente) {
+        this.idUtente = idUtente;
+    }
+
+    public String getNomeSpesa() {
+        return nomeSpesa;
+    }
+
+    public Categories getCategoria() {
+        return categoria;
+    }
+
+    public String getDescrizione() {
+        return descrizione;
+    }
+
+    public double getImporto() {
+        return importo;
+    }
+
+    public String getValuta() {
+        return valuta;
+    }
+
+    /**
+     * Imposta la valuta delle spese generate.
+     *
+     * @param valuta Il codice ISO 4217 della valuta (es. "USD").
+     * @throws DatiNonValidiException se il codice non è valido.
+     */
+    public void setValuta(String valuta) {
+        if (!Expense.isCodiceValuta(valuta)) {
+            throw new DatiNonValidiException("La valuta deve essere un codice di tre lettere maiuscole (es. EUR)!!!");
+        }
+        this.valuta = valuta;
+    }
+
+    public RecurrenceRule getRegola() {
+        return regola;
+    }
+
+    public LocalDateTime getInizio() {
+        return inizio;
+    }
+
+    public LocalDateTime getProssima() {
+        return prossima;
+    }
+
+    public int getGenerate() {
+        return generate;
+    }
+
+    /**
+     * Ripristina lo stato salvato nel database.
+     *
+     * @param prossima La prossima occorrenza (null se la regola è esaurita).
+     * @param generate Le occorrenze già generate.
+     */
+    public void setStato(LocalDateTime prossima, int generate) {
+        this.prossima = prossima;
+        this.generate = generate;
+    }
+
+    @Override
+    public String toString() {
+        return "Spesa ricorrente " + nomeSpesa + " (" + regola + ", prossima: " + prossima + ")";
+    }
+}
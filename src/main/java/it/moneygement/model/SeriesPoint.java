@@ -0,0 +1,32 @@
+package it.moneygement.model;
+
+import java.time.LocalDate;
+
+/**
+ * Punto di una serie temporale di spesa: il totale speso in un giorno.
+ *
+ * @author Stefano Bellan
+ */
+public class SeriesPoint {
+
+    private final LocalDate giorno;
+    private final double totale;
+
+    public SeriesPoint(LocalDate giorno, double totale) {
+        this.giorno = giorno;
+        this.totale = totale;
+    }
+
+    public LocalDate getGiorno() {
+        return giorno;
+    }
+
+    public double getTotale() {
+        return totale;
+    }
+
+    @Override
+    public String toString() {
+        return giorno + "=" + totale;
+    }
+}
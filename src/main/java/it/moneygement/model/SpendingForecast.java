@@ -0,0 +1,61 @@
+package it.moneygement.model;
+
+/**
+ * Previsione della spesa di una categoria a fine mese e a fine anno, nella valuta base dell'utente:
+ * quanto è già stato speso nel periodo più quanto si prevede di spendere nei giorni rimanenti.
+ *
+ * @author Stefano Bellan
+ */
+public class SpendingForecast {
+
+    private final Categories categoria;
+    private final double spesoMese;
+    private final double previstoMese;
+    private final double spesoAnno;
+    private final double previstoAnno;
+
+    public SpendingForecast(Categories categoria, double spesoMese, double previstoMese, double spesoAnno, double previstoAnno) {
+        this.categoria = categoria;
+        this.spesoMese = spesoMese;
+        this.previstoMese = previstoMese;
+        this.spesoAnno = spesoAnno;
+        this.previstoAnno = previstoAnno;
+    }
+
+    public Categories getCategoria() {
+        return categoria;
+    }
+
+    /**
+     * @return Il totale speso dall'inizio del mese a oggi compreso.
+     */
+    public double getSpesoMese() {
+        return spesoMese;
+    }
+
+    /**
+     * @return Il totale previsto a fine mese (mai inferiore al già speso).
+     */
+    public double getPrevistoMese() {
+        return previstoMese;
+    }
+
+    /**
+     * @return Il totale speso dall'inizio dell'anno a oggi compreso.
+     */
+    public double getSpesoAnno() {
+        return spesoAnno;
+    }
+
+    /**
+     * @return Il totale previsto a fine anno (mai inferiore al già speso).
+     */
+    public double getPrevistoAnno() {
+        return previstoAnno;
+    }
+
+    @Override
+    public String toString() {
+        return categoria + ": mese " + spesoMese + " -> " + previstoMese + ", anno " + spesoAnno + " -> " + previstoAnno;
+    }
+}
@@ -0,0 +1,59 @@
+package it.moneygement.model;
+
+/**
+ * Voce di una classifica dei nomi di spesa, con il valore stimato e i suoi limiti.
+ * <p>
+ * Le classifiche sono approssimate (vedi {@link TopExpenseRanking}): il valore vero del nome
+ * è compreso tra {@link #getMinimo()} e {@link #getStima()}.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class TopExpense {
+
+    private final String nome;
+    private final double stima;
+    private final double errore;
+    private final boolean garantita;
+
+    /**
+     * @param nome      Il nome di spesa (in minuscolo).
+     * @param stima     Il valore stimato, che non è mai inferiore a quello vero.
+     * @param errore    La sovrastima massima.
+     * @param garantita true se il nome è sicuramente tra i primi della classifica richiesta.
+     */
+    public TopExpense(String nome, double stima, double errore, boolean garantita) {
+        this.nome = nome;
+        this.stima = stima;
+        this.errore = errore;
+        this.garantita = garantita;
+    }
+
+    public String getNome() {
+        return nome;
+    }
+
+    public double getStima() {
+        return stima;
+    }
+
+    public double getErrore() {
+        return errore;
+    }
+
+    /**
+     * @return Il valore minimo certo del nome.
+     */
+    public double getMinimo() {
+        return stima - errore;
+    }
+
+    public boolean isGarantita() {
+        return garantita;
+    }
+
+    @Override
+    public String toString() {
+        return nome + "=" + stima + (errore > 0 ? " (-" + errore + ")" : "");
+    }
+}
@@ -0,0 +1,45 @@
+package it.moneygement.model;
+
+import java.util.List;
+
+/**
+ * Classifica dei nomi di spesa di un utente per totale o per numero di spese.
+ * <p>
+ * La classifica è tenuta con l'algoritmo Space-Saving su un numero fisso di nomi (per valuta delle spese, nella
+ * classifica per totale), quindi è approssimata con limiti garantiti: ogni voce riporta una stima che non è mai
+ * inferiore al valore vero e la sovrastima massima, e un nome assente dalla classifica non supera la {@link #getSoglia()}.
+ * Finché un utente usa meno nomi della capienza la classifica è esatta.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class TopExpenseRanking {
+
+    private final RankingMetric metrica;
+    private final List<TopExpense> voci;
+    private final double soglia;
+
+    public TopExpenseRanking(RankingMetric metrica, List<TopExpense> voci, double soglia) {
+        this.metrica = metrica;
+        this.voci = voci;
+        this.soglia = soglia;
+    }
+
+    public RankingMetric getMetrica() {
+        return metrica;
+    }
+
+    /**
+     * @return Le voci in ordine di stima decrescente.
+     */
+    public List<TopExpense> getVoci() {
+        return voci;
+    }
+
+    /**
+     * @return Il valore massimo che può avere un nome non presente in classifica (0 se la classifica è esatta).
+     */
+    public double getSoglia() {
+        return soglia;
+    }
+}
@@ -53,6 +53,21 @@ public class User {
         this.setEta(eta);
     }
 
+    /**
+     * Costruisce una copia indipendente di un utente (stessi dati e stesso ID), da consegnare a chi potrebbe
+     * modificarla senza toccare l'originale.
+     *
+     * @param altro L'utente da copiare.
+     */
+    public User(User altro) {
+        this.id = altro.id;
+        this.nome = altro.nome;
+        this.cognome = altro.cognome;
+        this.passwordHash = altro.passwordHash;
+        this.email = altro.email;
+        this.eta = altro.eta;
+    }
+
     /**
      * Restituisce l'ID univoco dell'utente.
      *
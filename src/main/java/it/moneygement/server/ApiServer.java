@@ -0,0 +1,907 @@
+package it.moneygement.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import it.moneygement.dao.ExpenseDAO;
+import it.moneygement.db.BackupManager;
+import it.moneygement.db.BackupReport;
+import it.moneygement.db.DbConnection;
+import it.moneygement.db.InitDatabase;
+import it.moneygement.exception.AuthenticationException;
+import it.moneygement.exception.ConflittoVersioneException;
+import it.moneygement.exception.DatiNonValidiException;
+import it.moneygement.exception.RisorsaNonTrovataException;
+import it.moneygement.exception.TroppiTentativiException;
+import it.moneygement.exception.SpesaArchiviataException;
+import it.moneygement.exception.SpesaDuplicataException;
+import it.moneygement.exception.UserAlreadyExistException;
+import it.moneygement.model.Categories;
+import it.moneygement.model.ChangeBatch;
+import it.moneygement.model.Expense;
+import it.moneygement.model.ExpenseImportResult;
+import it.moneygement.model.ExpenseStats;
+import it.moneygement.model.ExpenseUpdateResult;
+import it.moneygement.model.RankingMetric;
+import it.moneygement.model.SeriesPoint;
+import it.moneygement.model.SpendingForecast;
+import it.moneygement.model.TopExpense;
+import it.moneygement.model.TopExpenseRanking;
+import it.moneygement.model.User;
+import it.moneygement.service.MoneygementService;
+import it.moneygement.utils.Downsampler;
+import it.moneygement.utils.Interner;
+import it.moneygement.utils.SecurityUtils;
+import it.moneygement.utils.SessionContext;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Server HTTP/JSON integrato che espone le operazioni di {@link MoneygementService}.
+ * <p>
+ * Usa il server HTTP del JDK ({@code com.sun.net.httpserver}) senza servizi esterni. Ogni richiesta
+ * viene eseguita su un virtual thread, quindi migliaia di client lenti non occupano thread di sistema.
+ * Un semaforo limita le richieste contemporaneamente in corso: oltre il limite il server risponde
+ * subito 503 invece di accodare lavoro che non riuscirebbe a smaltire.
+ * </p>
+ * <p>
+ * L'autenticazione avviene con il token restituito da {@code POST /api/login}, inviato nell'header
+ * {@code Authorization: Bearer <token>}. I login falliti sono limitati per email e per indirizzo del client:
+ * oltre il limite il server risponde 429 con l'header {@code Retry-After}.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class ApiServer {
+
+    // Dimensione massima accettata per il corpo di una richiesta (le richieste sono piccoli oggetti JSON)
+    private static final int MAX_BODY_BYTES = 64 * 1024;
+    private static final String JSON = "application/json; charset=utf-8";
+
+    /**
+     * Gestore di una singola rotta. Restituisce il codice di stato HTTP inviato al client.
+     */
+    @FunctionalInterface
+    private interface Gestore {
+        int gestisci(HttpExchange ex, Matcher parametri) throws Exception;
+    }
+
+    /**
+     * Rotta dell'API: metodo HTTP, percorso (espressione regolare) e gestore.
+     */
+    private static final class Rotta {
+        private final String metodo;
+        private final Pattern percorso;
+        private final String nome;
+        private final Gestore gestore;
+
+        private Rotta(String metodo, String percorso, Gestore gestore) {
+            this.metodo = metodo;
+            this.percorso = Pattern.compile(percorso);
+            // Nome leggibile nelle metriche (es. "PUT /api/expenses/{id}")
+            this.nome = metodo + " " + percorso.replace("(\\d+)", "{id}");
+            this.gestore = gestore;
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final MoneygementService service;
+    private final RequestMetrics metrics = new RequestMetrics();
+    private final Semaphore permessi;
+    private final int maxInCorso;
+    private final List<Rotta> rotte = new ArrayList<>();
+    private volatile BackupManager backup;
+
+    /**
+     * Crea il server (non ancora avviato).
+     *
+     * @param porta      La porta TCP su cui ascoltare (0 per una porta libera qualsiasi).
+     * @param maxInCorso Il numero massimo di richieste servite contemporaneamente.
+     * @throws IOException se la porta non è disponibile.
+     */
+    public ApiServer(int porta, int maxInCorso) throws IOException {
+        if (maxInCorso <= 0) {
+            throw new IllegalArgumentException("Il limite di richieste in corso deve essere positivo");
+        }
+        this.service = MoneygementService.getInstance();
+        this.maxInCorso = maxInCorso;
+        this.permessi = new Semaphore(maxInCorso);
+        this.server = HttpServer.create(new InetSocketAddress(porta), 0);
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        this.server.setExecutor(executor);
+        this.server.createContext("/api/", this::dispatch);
+        registraRotte();
+    }
+
+    /**
+     * Avvia il server.
+     */
+    public void start() {
+        server.start();
+        System.out.println("API server in ascolto sulla porta " + getPort() + " (max " + maxInCorso + " richieste in corso)");
+    }
+
+    /**
+     * Ferma il server attendendo al massimo il tempo indicato per le richieste in corso.
+     *
+     * @param secondiAttesa Secondi di attesa per le richieste in corso.
+     */
+    public void stop(int secondiAttesa) {
+        server.stop(secondiAttesa);
+        executor.shutdown();
+    }
+
+    /**
+     * Collega un gestore dei backup, le cui statistiche vengono incluse in /api/metrics.
+     *
+     * @param backup Il gestore dei backup (null per scollegarlo).
+     */
+    public void setBackupManager(BackupManager backup) {
+        this.backup = backup;
+    }
+
+    /**
+     * @return La porta effettiva su cui il server è in ascolto.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    // --- ROTTE ---
+
+    private void registraRotte() {
+        // Utenti e sessioni
+        rotte.add(new Rotta("POST", "/api/users", this::registraUtente));
+        rotte.add(new Rotta("POST", "/api/login", this::login));
+        rotte.add(new Rotta("POST", "/api/logout", this::logout));
+        rotte.add(new Rotta("GET", "/api/me", this::leggiUtente));
+        rotte.add(new Rotta("PUT", "/api/me", this::aggiornaUtente));
+        rotte.add(new Rotta("DELETE", "/api/me", this::eliminaUtente));
+        // Spese
+        rotte.add(new Rotta("GET", "/api/expenses", this::elencaSpese));
+        rotte.add(new Rotta("POST", "/api/expenses", this::aggiungiSpesa));
+        rotte.add(new Rotta("POST", "/api/expenses/import", this::importaSpese));
+        rotte.add(new Rotta("POST", "/api/expenses/bulk/recategorize", this::cambiaCategoria));
+        rotte.add(new Rotta("POST", "/api/expenses/bulk/delete", this::eliminaIntervallo));
+        rotte.add(new Rotta("POST", "/api/expenses/bulk/shift", this::spostaDate));
+        rotte.add(new Rotta("PUT", "/api/expenses/(\\d+)", this::aggiornaSpesa));
+        rotte.add(new Rotta("DELETE", "/api/expenses/(\\d+)", this::eliminaSpesa));
+        // Sincronizzazione incrementale tra dispositivi
+        rotte.add(new Rotta("GET", "/api/sync", this::sincronizza));
+        // Grafici
+        rotte.add(new Rotta("GET", "/api/series/daily", this::serieGiornaliera));
+        rotte.add(new Rotta("GET", "/api/stats/expenses", this::statisticheSpese));
+        rotte.add(new Rotta("GET", "/api/stats/top", this::classificaSpese));
+        rotte.add(new Rotta("GET", "/api/forecast", this::previsioniSpesa));
+        // Monitoraggio
+        rotte.add(new Rotta("GET", "/api/metrics", (ex, m) -> invia(ex, 200, metriche())));
+    }
+
+    /**
+     * Punto di ingresso di ogni richiesta: controllo del limite, instradamento, gestione errori e metriche.
+     */
+    private void dispatch(HttpExchange ex) {
+        long inizio = System.nanoTime();
+        String nomeRotta = "NON_TROVATA";
+        int status = 500;
+
+        if (!permessi.tryAcquire()) {
+            metrics.recordRejected();
+            try {
+                ex.getResponseHeaders().set("Retry-After", "1");
+                invia(ex, 503, errore("Server occupato, riprovare più tardi."));
+            } catch (IOException ignored) {
+                // Il client ha già chiuso la connessione
+            } finally {
+                ex.close();
+            }
+            return;
+        }
+
+        try {
+            String percorso = ex.getRequestURI().getPath();
+            Rotta trovata = null;
+            Matcher parametri = null;
+            boolean percorsoEsiste = false;
+            for (Rotta r : rotte) {
+                Matcher m = r.percorso.matcher(percorso);
+                if (m.matches()) {
+                    percorsoEsiste = true;
+                    if (r.metodo.equals(ex.getRequestMethod())) {
+                        trovata = r;
+                        parametri = m;
+                        break;
+                    }
+                }
+            }
+
+            if (trovata == null) {
+                status = invia(ex, percorsoEsiste ? 405 : 404, errore("Risorsa non trovata: " + ex.getRequestMethod() + " " + percorso));
+            } else {
+                nomeRotta = trovata.nome;
+                status = trovata.gestore.gestisci(ex, parametri);
+            }
+        } catch (Exception e) {
+            status = statusPerEccezione(e);
+            if (e instanceof TroppiTentativiException troppi) {
+                ex.getResponseHeaders().set("Retry-After", String.valueOf(troppi.getAttesa().toSeconds() + 1));
+            }
+            if (status == 500) {
+                System.err.println("Errore API " + nomeRotta + ": " + e);
+            }
+            try {
+                invia(ex, status, errore(e.getMessage()));
+            } catch (IOException | RuntimeException ignored) {
+                // Intestazioni già inviate (risposta in streaming) o client disconnesso
+            }
+        } finally {
+            permessi.release();
+            ex.close();
+            metrics.record(nomeRotta, System.nanoTime() - inizio, status);
+        }
+    }
+
+    // --- GESTORI UTENTI ---
+
+    private int registraUtente(HttpExchange ex, Matcher m) throws IOException {
+        Map<String, Object> body = leggiCorpo(ex);
+        service.registerUser(testo(body, "nome"), testo(body, "cognome"), testo(body, "email"),
+                testo(body, "password"), intero(body, "eta"));
+        return invia(ex, 201, "{}");
+    }
+
+    private int login(HttpExchange ex, Matcher m) throws IOException {
+        Map<String, Object> body = leggiCorpo(ex);
+        // I tentativi sono limitati anche per indirizzo del client (vedi MoneygementService#login)
+        String origine = ex.getRemoteAddress().getAddress().getHostAddress();
+        SessionContext sessione = service.login(testo(body, "email"), testo(body, "password"), origine);
+        return invia(ex, 200, "{\"token\":" + Json.quote(sessione.getToken()) + ",\"utente\":" + userJson(sessione.getUser()) + "}");
+    }
+
+    private int logout(HttpExchange ex, Matcher m) throws IOException {
+        service.logout(sessione(ex));
+        return invia(ex, 204, null);
+    }
+
+    private int leggiUtente(HttpExchange ex, Matcher m) throws IOException, RisorsaNonTrovataException {
+        return invia(ex, 200, userJson(service.findUserById(sessione(ex))));
+    }
+
+    private int aggiornaUtente(HttpExchange ex, Matcher m) throws IOException {
+        SessionContext sessione = sessione(ex);
+        Map<String, Object> body = leggiCorpo(ex);
+        service.updateUser(sessione, testo(body, "nome"), testo(body, "cognome"), testo(body, "password"),
+                testo(body, "email"), intero(body, "eta"));
+        return invia(ex, 200, userJson(sessione.getUser()));
+    }
+
+    private int eliminaUtente(HttpExchange ex, Matcher m) throws IOException {
+        service.deleteUserById(sessione(ex));
+        return invia(ex, 204, null);
+    }
+
+    // --- GESTORI SPESE ---
+
+    /**
+     * Elenco delle spese in streaming: ogni riga viene scritta appena letta dal database,
+     * quindi la memoria usata non dipende dalla lunghezza della lista
+     * ({@code GET /api/expenses?categoria=SVAGO}, categoria facoltativa).
+     * Un errore di lettura non produce mai una lista troncata ma ben formata (vedi {@link RispostaInStreaming}).
+     */
+    private int elencaSpese(HttpExchange ex, Matcher m) throws IOException {
+        SessionContext sessione = sessione(ex);
+        Categories categoria = categoria(parametriQuery(ex).get("categoria"));
+
+        RispostaInStreaming risposta = new RispostaInStreaming(ex, 16 * 1024);
+        risposta.scrivi("[");
+        boolean[] prima = {true};
+        service.forEachExpense(sessione, categoria, e -> {
+            try {
+                risposta.scrivi(prima[0] ? expenseJson(e) : "," + expenseJson(e));
+                prima[0] = false;
+            } catch (IOException io) {
+                throw new UncheckedIOException(io);
+            }
+        });
+        risposta.scrivi("]");
+        return risposta.chiudi();
+    }
+
+    private int aggiungiSpesa(HttpExchange ex, Matcher m) throws IOException {
+        SessionContext sessione = sessione(ex);
+        Map<String, Object> body = leggiCorpo(ex);
+        Expense spesa = service.addExpense(sessione, testo(body, "nomeSpesa"), categoria(testo(body, "categoria")),
+                testo(body, "descrizione"), numero(body, "importo"), testo(body, "valuta"), data(body, "data"));
+        return invia(ex, 201, expenseJson(spesa));
+    }
+
+    /**
+     * Importazione di un elenco di spese nella stessa valuta (facoltativa), saltando i doppioni:
+     * {@code POST /api/expenses/import} con {@code {"valuta":"EUR","spese":[{"nomeSpesa":...}, ...]}}.
+     * La risposta contiene le spese salvate e le posizioni (da 0) dei doppioni.
+     */
+    private int importaSpese(HttpExchange ex, Matcher m) throws IOException {
+        SessionContext sessione = sessione(ex);
+        Map<String, Object> body = leggiCorpo(ex);
+        if (!(body.get("spese") instanceof List<?> elenco)) {
+            throw new DatiNonValidiException("Il campo 'spese' deve essere un array.");
+        }
+        List<Expense> spese = new ArrayList<>(elenco.size());
+        for (Object voce : elenco) {
+            if (!(voce instanceof Map<?, ?>)) {
+                throw new DatiNonValidiException("Ogni spesa deve essere un oggetto JSON.");
+            }
+            @SuppressWarnings("unchecked")
+            Map<String, Object> campi = (Map<String, Object>) voce;
+            spese.add(new Expense(testo(campi, "nomeSpesa"), categoria(testo(campi, "categoria")),
+                    testo(campi, "descrizione"), numero(campi, "importo"), data(campi, "data")));
+        }
+        ExpenseImportResult esito = service.importExpenses(sessione, spese, testo(body, "valuta"));
+
+        StringBuilder sb = new StringBuilder(32 + esito.getImportate().size() * 192).append("{\"importate\":[");
+        for (int i = 0; i < esito.getImportate().size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(expenseJson(esito.getImportate().get(i)));
+        }
+        sb.append("],\"duplicate\":").append(esito.getDuplicate()).append('}');
+        return invia(ex, 200, sb.toString());
+    }
+
+    /**
+     * Cambio di categoria di tutte le spese con un nome:
+     * {@code POST /api/expenses/bulk/recategorize} con {@code {"nome":"Bar Centrale","categoria":"RISTORANTI"}}.
+     */
+    private int cambiaCategoria(HttpExchange ex, Matcher m) throws IOException {
+        SessionContext sessione = sessione(ex);
+        Map<String, Object> body = leggiCorpo(ex);
+        int modificate = service.recategorizeExpenses(sessione, testo(body, "nome"), categoria(testo(body, "categoria")));
+        return invia(ex, 200, "{\"modificate\":" + modificate + "}");
+    }
+
+    /**
+     * Cancellazione delle spese di un intervallo di giorni (facoltativamente di una categoria):
+     * {@code POST /api/expenses/bulk/delete} con {@code {"da":"2025-03-01","a":"2025-03-31","categoria":"SVAGO"}}.
+     */
+    private int eliminaIntervallo(HttpExchange ex, Matcher m) throws IOException {
+        SessionContext sessione = sessione(ex);
+        Map<String, Object> body = leggiCorpo(ex);
+        int eliminate = service.deleteExpensesInRange(sessione, giorno(body, "da"), giorno(body, "a"), categoria(testo(body, "categoria")));
+        return invia(ex, 200, "{\"eliminate\":" + eliminate + "}");
+    }
+
+    /**
+     * Spostamento delle date delle spese di un intervallo di giorni, con una durata ISO-8601:
+     * {@code POST /api/expenses/bulk/shift} con {@code {"da":"2025-03-01","a":"2025-03-31","spostamento":"PT-1H"}}.
+     */
+    private int spostaDate(HttpExchange ex, Matcher m) throws IOException {
+        SessionContext sessione = sessione(ex);
+        Map<String, Object> body = leggiCorpo(ex);
+        String spostamento = testo(body, "spostamento");
+        if (spostamento == null) {
+            throw new DatiNonValidiException("Il campo 'spostamento' è obbligatorio.");
+        }
+        int spostate = service.shiftExpenseDates(sessione, giorno(body, "da"), giorno(body, "a"), Duration.parse(spostamento));
+        return invia(ex, 200, "{\"spostate\":" + spostate + "}");
+    }
+
+    private int aggiornaSpesa(HttpExchange ex, Matcher m) throws IOException, RisorsaNonTrovataException {
+        SessionContext sessione = sessione(ex);
+        int id = Integer.parseInt(m.group(1));
+        Map<String, Object> body = leggiCorpo(ex);
+        ExpenseUpdateResult esito = service.updateExpense(sessione, id, intero(body, "version"), testo(body, "nomeSpesa"),
+                categoria(testo(body, "categoria")), testo(body, "descrizione"), numero(body, "importo"), testo(body, "valuta"), data(body, "data"));
+
+        switch (esito.getEsito()) {
+            case AGGIORNATA:
+                return invia(ex, 200, "{\"esito\":\"AGGIORNATA\",\"version\":" + esito.getNuovaVersione() + "}");
+            case CONFLITTO:
+                // Restituiamo lo stato attuale così il client può unire le modifiche senza rileggere
+                return invia(ex, 409, "{\"esito\":\"CONFLITTO\",\"corrente\":" + expenseJson(esito.getSpesaCorrente()) + "}");
+            case DUPLICATA:
+                return invia(ex, 409, "{\"esito\":\"DUPLICATA\"}");
+            case ARCHIVIATA:
+                return invia(ex, 409, "{\"esito\":\"ARCHIVIATA\"}");
+            default:
+                throw new RisorsaNonTrovataException("Spesa con id: " + id + " non trovata.");
+        }
+    }
+
+    private int eliminaSpesa(HttpExchange ex, Matcher m) throws IOException {
+        service.deleteExpenseById(sessione(ex), Integer.parseInt(m.group(1)));
+        return invia(ex, 204, null);
+    }
+
+    // --- GESTORI SINCRONIZZAZIONE ---
+
+    /**
+     * Modifiche successive all'ultima sincronizzazione del client:
+     * {@code GET /api/sync?epoca=<epoca>&dopo=<sequenza>&limite=<n>} (tutti i parametri sono facoltativi).
+     */
+    private int sincronizza(HttpExchange ex, Matcher m) throws IOException {
+        SessionContext sessione = sessione(ex);
+        Map<String, String> parametri = parametriQuery(ex);
+        long dopo;
+        int limite;
+        try {
+            dopo = Long.parseLong(parametri.getOrDefault("dopo", "0"));
+            limite = Integer.parseInt(parametri.getOrDefault("limite", String.valueOf(MoneygementService.MAX_MODIFICHE_PER_BLOCCO)));
+        } catch (NumberFormatException e) {
+            throw new DatiNonValidiException("Parametri di sincronizzazione non validi.");
+        }
+        ChangeBatch blocco = service.getChangesSince(sessione, parametri.get("epoca"), dopo, limite);
+
+        StringBuilder sb = new StringBuilder(256 + blocco.size() * 160);
+        sb.append("{\"epoca\":").append(Json.quote(blocco.getEpoca()))
+                .append(",\"ultimaSequenza\":").append(blocco.getUltimaSequenza())
+                .append(",\"altri\":").append(blocco.isAltri())
+                .append(",\"risincronizzazione\":").append(blocco.isRisincronizzazione())
+                .append(",\"utente\":").append(blocco.getUtente() == null ? "null" : userJson(blocco.getUtente()))
+                .append(",\"modificate\":[");
+        for (int i = 0; i < blocco.getModificate().size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(expenseJson(blocco.getModificate().get(i)));
+        }
+        sb.append("],\"eliminate\":[");
+        for (int i = 0; i < blocco.getEliminate().size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(blocco.getEliminate().get(i));
+        }
+        sb.append("]}");
+        return invia(ex, 200, sb.toString());
+    }
+
+    // --- GESTORI GRAFICI ---
+
+    /**
+     * Spesa giornaliera ridotta per un grafico:
+     * {@code GET /api/series/daily?da=2024-01-01&a=2024-12-31&punti=300&metodo=LTTB}
+     * (punti e metodo sono facoltativi, con valori predefiniti 500 e LTTB).
+     */
+    private int serieGiornaliera(HttpExchange ex, Matcher m) throws IOException {
+        SessionContext sessione = sessione(ex);
+        Map<String, String> parametri = parametriQuery(ex);
+        if (parametri.get("da") == null || parametri.get("a") == null) {
+            throw new DatiNonValidiException("I parametri 'da' e 'a' sono obbligatori.");
+        }
+        int punti;
+        Downsampler.Metodo metodo;
+        try {
+            punti = Integer.parseInt(parametri.getOrDefault("punti", "500"));
+            metodo = Downsampler.Metodo.valueOf(parametri.getOrDefault("metodo", "LTTB"));
+        } catch (IllegalArgumentException e) {
+            throw new DatiNonValidiException("Parametri della serie non validi.");
+        }
+        List<SeriesPoint> serie = service.getDailySeries(sessione, LocalDate.parse(parametri.get("da")),
+                LocalDate.parse(parametri.get("a")), punti, metodo);
+
+        StringBuilder sb = new StringBuilder(32 + serie.size() * 32).append("{\"punti\":[");
+        for (int i = 0; i < serie.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"giorno\":").append(Json.quote(serie.get(i).getGiorno().toString()))
+                    .append(",\"totale\":").append(serie.get(i).getTotale()).append('}');
+        }
+        sb.append("]}");
+        return invia(ex, 200, sb.toString());
+    }
+
+    /**
+     * Distribuzione degli importi per categoria in un intervallo di mesi:
+     * {@code GET /api/stats/expenses?da=2024-01&a=2024-12} (mediana e p90 sono stime).
+     */
+    private int statisticheSpese(HttpExchange ex, Matcher m) throws IOException {
+        SessionContext sessione = sessione(ex);
+        Map<String, String> parametri = parametriQuery(ex);
+        if (parametri.get("da") == null || parametri.get("a") == null) {
+            throw new DatiNonValidiException("I parametri 'da' e 'a' sono obbligatori.");
+        }
+        YearMonth da;
+        YearMonth a;
+        try {
+            da = YearMonth.parse(parametri.get("da"));
+            a = YearMonth.parse(parametri.get("a"));
+        } catch (DateTimeParseException e) {
+            throw new DatiNonValidiException("I mesi devono essere nel formato AAAA-MM.");
+        }
+        Map<Categories, ExpenseStats> statistiche = service.getExpenseStats(sessione, da, a);
+
+        StringBuilder sb = new StringBuilder(32 + statistiche.size() * 192).append("{\"categorie\":[");
+        boolean prima = true;
+        for (ExpenseStats s : statistiche.values()) {
+            if (!prima) {
+                sb.append(',');
+            }
+            prima = false;
+            sb.append("{\"categoria\":").append(Json.quote(s.getCategoria().name()))
+                    .append(",\"numero\":").append(s.getNumero())
+                    .append(",\"media\":").append(s.getMedia())
+                    .append(",\"deviazioneStandard\":").append(s.getDeviazioneStandard())
+                    .append(",\"minimo\":").append(s.getMinimo())
+                    .append(",\"massimo\":").append(s.getMassimo())
+                    .append(",\"mediana\":").append(s.getMediana())
+                    .append(",\"p90\":").append(s.getP90()).append('}');
+        }
+        sb.append("]}");
+        return invia(ex, 200, sb.toString());
+    }
+
+    /**
+     * Nomi di spesa più costosi o più frequenti: {@code GET /api/stats/top?per=TOTALE&n=10}
+     * ({@code per} è TOTALE o NUMERO, con valori predefiniti TOTALE e 10). Ogni voce ha la stima e il minimo
+     * certo del valore; {@code soglia} è il valore massimo di un nome assente (vedi {@link TopExpenseRanking}).
+     */
+    private int classificaSpese(HttpExchange ex, Matcher m) throws IOException {
+        SessionContext sessione = sessione(ex);
+        Map<String, String> parametri = parametriQuery(ex);
+        RankingMetric metrica;
+        int n;
+        try {
+            metrica = RankingMetric.valueOf(parametri.getOrDefault("per", "TOTALE"));
+            n = Integer.parseInt(parametri.getOrDefault("n", "10"));
+        } catch (IllegalArgumentException e) {
+            throw new DatiNonValidiException("Parametri della classifica non validi.");
+        }
+        TopExpenseRanking classifica = service.getTopExpenses(sessione, metrica, n);
+
+        StringBuilder sb = new StringBuilder(64 + classifica.getVoci().size() * 96)
+                .append("{\"metrica\":").append(Json.quote(metrica.name()))
+                .append(",\"soglia\":").append(classifica.getSoglia())
+                .append(",\"voci\":[");
+        for (int i = 0; i < classifica.getVoci().size(); i++) {
+            TopExpense voce = classifica.getVoci().get(i);
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"nome\":").append(Json.quote(voce.getNome()))
+                    .append(",\"stima\":").append(voce.getStima())
+                    .append(",\"minimo\":").append(voce.getMinimo())
+                    .append(",\"garantita\":").append(voce.isGarantita()).append('}');
+        }
+        sb.append("]}");
+        return invia(ex, 200, sb.toString());
+    }
+
+    /**
+     * Previsione della spesa per categoria a fine mese e a fine anno: {@code GET /api/forecast}.
+     */
+    private int previsioniSpesa(HttpExchange ex, Matcher m) throws IOException {
+        SessionContext sessione = sessione(ex);
+        Map<Categories, SpendingForecast> previsioni = service.getSpendingForecast(sessione);
+
+        StringBuilder sb = new StringBuilder(32 + previsioni.size() * 128).append("{\"categorie\":[");
+        boolean prima = true;
+        for (SpendingForecast p : previsioni.values()) {
+            if (!prima) {
+                sb.append(',');
+            }
+            prima = false;
+            sb.append("{\"categoria\":").append(Json.quote(p.getCategoria().name()))
+                    .append(",\"spesoMese\":").append(p.getSpesoMese())
+                    .append(",\"previstoMese\":").append(p.getPrevistoMese())
+                    .append(",\"spesoAnno\":").append(p.getSpesoAnno())
+                    .append(",\"previstoAnno\":").append(p.getPrevistoAnno()).append('}');
+        }
+        sb.append("]}");
+        return invia(ex, 200, sb.toString());
+    }
+
+    // --- HELPER ---
+
+    /**
+     * Recupera la sessione dal token nell'header Authorization.
+     */
+    private SessionContext sessione(HttpExchange ex) {
+        String header = ex.getRequestHeaders().getFirst("Authorization");
+        if (header == null || !header.startsWith("Bearer ")) {
+            throw new AuthenticationException("Token di sessione mancante.");
+        }
+        return service.getSession(header.substring("Bearer ".length()).trim());
+    }
+
+    /**
+     * Legge i parametri della query string (es. {@code ?dopo=10&limite=100}).
+     */
+    private static Map<String, String> parametriQuery(HttpExchange ex) {
+        Map<String, String> parametri = new HashMap<>();
+        String query = ex.getRequestURI().getRawQuery();
+        if (query == null || query.isEmpty()) {
+            return parametri;
+        }
+        for (String coppia : query.split("&")) {
+            int uguale = coppia.indexOf('=');
+            if (uguale > 0) {
+                parametri.put(URLDecoder.decode(coppia.substring(0, uguale), StandardCharsets.UTF_8),
+                        URLDecoder.decode(coppia.substring(uguale + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return parametri;
+    }
+
+    private Map<String, Object> leggiCorpo(HttpExchange ex) throws IOException {
+        try (InputStream in = ex.getRequestBody()) {
+            byte[] dati = in.readNBytes(MAX_BODY_BYTES + 1);
+            if (dati.length > MAX_BODY_BYTES) {
+                throw new DatiNonValidiException("Il corpo della richiesta è troppo grande.");
+            }
+            return Json.parseObject(new String(dati, StandardCharsets.UTF_8));
+        }
+    }
+
+    private int invia(HttpExchange ex, int status, String corpo) throws IOException {
+        if (corpo == null) {
+            ex.sendResponseHeaders(status, -1);
+            return status;
+        }
+        byte[] dati = corpo.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", JSON);
+        ex.sendResponseHeaders(status, dati.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(dati);
+        }
+        return status;
+    }
+
+    /**
+     * Risposta 200 in JSON scritta man mano.
+     * <p>
+     * I primi {@code soglia} caratteri restano in memoria e le intestazioni vengono inviate solo quando la
+     * superano: un errore in una risposta corta diventa ancora una normale risposta di errore. Un errore
+     * successivo interrompe la risposta senza chiudere il documento, quindi il client riceve JSON non valido
+     * e non può scambiarlo per l'elenco completo.
+     * </p>
+     */
+    private final class RispostaInStreaming {
+        private final HttpExchange ex;
+        private final int soglia;
+        private final StringBuilder inizio = new StringBuilder();
+        private Writer writer;
+
+        private RispostaInStreaming(HttpExchange ex, int soglia) {
+            this.ex = ex;
+            this.soglia = soglia;
+        }
+
+        private void scrivi(String testo) throws IOException {
+            if (writer != null) {
+                writer.write(testo);
+                return;
+            }
+            inizio.append(testo);
+            if (inizio.length() >= soglia) {
+                ex.getResponseHeaders().set("Content-Type", JSON);
+                // Lunghezza 0 = risposta "chunked", inviata man mano
+                ex.sendResponseHeaders(200, 0);
+                writer = new BufferedWriter(new OutputStreamWriter(ex.getResponseBody(), StandardCharsets.UTF_8), soglia);
+                writer.write(inizio.toString());
+                inizio.setLength(0);
+            }
+        }
+
+        /**
+         * Completa la risposta; va chiamato solo se tutto il documento è stato scritto.
+         */
+        private int chiudi() throws IOException {
+            if (writer == null) {
+                return invia(ex, 200, inizio.toString());
+            }
+            writer.close();
+            return 200;
+        }
+    }
+
+    private static int statusPerEccezione(Exception e) {
+        if (e instanceof AuthenticationException) {
+            return 401;
+        }
+        if (e instanceof RisorsaNonTrovataException) {
+            return 404;
+        }
+        if (e instanceof TroppiTentativiException) {
+            return 429;
+        }
+        if (e instanceof UserAlreadyExistException || e instanceof ConflittoVersioneException || e instanceof SpesaDuplicataException
+                || e instanceof SpesaArchiviataException) {
+            return 409;
+        }
+        // DatiNonValidiException e i controlli sulla password estendono IllegalArgumentException
+        if (e instanceof IllegalArgumentException || e instanceof DateTimeParseException) {
+            return 400;
+        }
+        return 500;
+    }
+
+    private static String errore(String messaggio) {
+        return "{\"errore\":" + Json.quote(messaggio == null ? "Errore interno" : messaggio) + "}";
+    }
+
+    private static String testo(Map<String, Object> body, String campo) {
+        Object valore = body.get(campo);
+        return valore == null ? null : valore.toString();
+    }
+
+    private static double numero(Map<String, Object> body, String campo) {
+        Object valore = body.get(campo);
+        if (!(valore instanceof Double)) {
+            throw new DatiNonValidiException("Il campo '" + campo + "' deve essere un numero.");
+        }
+        return (Double) valore;
+    }
+
+    private static int intero(Map<String, Object> body, String campo) {
+        double valore = numero(body, campo);
+        if (valore != Math.rint(valore) || valore < Integer.MIN_VALUE || valore > Integer.MAX_VALUE) {
+            throw new DatiNonValidiException("Il campo '" + campo + "' deve essere un numero intero.");
+        }
+        return (int) valore;
+    }
+
+    private static LocalDateTime data(Map<String, Object> body, String campo) {
+        String valore = testo(body, campo);
+        return valore == null ? null : LocalDateTime.parse(valore);
+    }
+
+    private static LocalDate giorno(Map<String, Object> body, String campo) {
+        String valore = testo(body, campo);
+        if (valore == null) {
+            throw new DatiNonValidiException("Il campo '" + campo + "' è obbligatorio.");
+        }
+        return LocalDate.parse(valore);
+    }
+
+    private static Categories categoria(String nome) {
+        if (nome == null) {
+            return null;
+        }
+        try {
+            return Categories.valueOf(nome);
+        } catch (IllegalArgumentException e) {
+            throw new DatiNonValidiException("Categoria non valida: " + nome);
+        }
+    }
+
+    private static String userJson(User u) {
+        // L'hash della password non viene mai inviato al client
+        return "{\"id\":" + u.getId() +
+                ",\"nome\":" + Json.quote(u.getNome()) +
+                ",\"cognome\":" + Json.quote(u.getCognome()) +
+                ",\"email\":" + Json.quote(u.getEmail()) +
+                ",\"eta\":" + u.getEta() + "}";
+    }
+
+    private static String expenseJson(Expense e) {
+        return "{\"id\":" + e.getId() +
+                ",\"nomeSpesa\":" + Json.quote(e.getNomeSpesa()) +
+                ",\"categoria\":" + Json.quote(e.getCategoria().name()) +
+                ",\"descrizione\":" + Json.quote(e.getDescrizione()) +
+                ",\"importo\":" + e.getImporto() +
+                ",\"valuta\":" + Json.quote(e.getValuta()) +
+                ",\"data\":" + Json.quote(e.getData().toString()) +
+                ",\"version\":" + e.getVersion() + "}";
+    }
+
+    /**
+     * Metriche delle richieste e della deduplicazione delle spese lette, con in aggiunta l'esito dei backup
+     * se è collegato un gestore.
+     */
+    private String metriche() {
+        String json = metrics.toJson(maxInCorso - permessi.availablePermits(), maxInCorso);
+        StringBuilder sb = new StringBuilder(json.substring(0, json.length() - 1));
+        Interner<String> testi = ExpenseDAO.getInternerTesti();
+        Interner<LocalDateTime> date = ExpenseDAO.getInternerDate();
+        sb.append(",\"deduplicazione\":{\"valori\":").append(testi.getRichieste() + date.getRichieste())
+                .append(",\"riusati\":").append(testi.getRiusati() + date.getRiusati())
+                .append(",\"byteRisparmiati\":").append(testi.getByteRisparmiati() + date.getByteRisparmiati())
+                .append('}');
+        BackupManager b = backup;
+        if (b == null) {
+            return sb.append('}').toString();
+        }
+        sb.append(",\"backup\":{\"riusciti\":").append(b.getRiusciti())
+                .append(",\"falliti\":").append(b.getFalliti());
+        BackupReport r = b.getUltimo();
+        if (r != null) {
+            sb.append(",\"ultimo\":{\"snapshot\":").append(r.getSnapshot() == null ? "null" : Json.quote(r.getSnapshot()))
+                    .append(",\"inizio\":").append(Json.quote(r.getInizio().toString()))
+                    .append(",\"durataMs\":").append(r.getDurataMillis())
+                    .append(",\"pagine\":").append(r.getPagine())
+                    .append(",\"pagineCopiate\":").append(r.getPagineCopiate())
+                    .append(",\"pagineAlSecondo\":").append(Math.round(r.getPagineAlSecondo()))
+                    .append(",\"riavvii\":").append(r.getRiavvii())
+                    .append(",\"byte\":").append(r.getByteScritti())
+                    .append(",\"verificato\":").append(r.isVerificato())
+                    .append(",\"errore\":").append(r.getErrore() == null ? "null" : Json.quote(r.getErrore()))
+                    .append('}');
+        }
+        return sb.append("}}").toString();
+    }
+
+    // --- AVVIO ---
+
+    /**
+     * Avvia il server da riga di comando.
+     * Opzioni: --port N (default 8080), --max-in-flight N (default 256), --db percorso.sqlite,
+     * --shards N (modalità shard: il percorso del database, senza ".db", diventa il prefisso dei file),
+     * --backup-dir cartella (attiva i backup online), --backup-every minuti (default 60), --backup-keep N (default 24),
+     * --hash-iterations N (costo degli hash delle password, vedi PasswordHashBenchmark)
+     *
+     * @param args Gli argomenti della riga di comando.
+     * @throws IOException se il server non può essere avviato.
+     */
+    public static void main(String[] args) throws IOException {
+        int porta = 8080;
+        int maxInCorso = 256;
+        String db = null;
+        int shard = 0;
+        String cartellaBackup = null;
+        int minutiBackup = 60;
+        int backupDaTenere = 24;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--port" -> porta = Integer.parseInt(args[i + 1]);
+                case "--max-in-flight" -> maxInCorso = Integer.parseInt(args[i + 1]);
+                case "--db" -> db = args[i + 1];
+                case "--shards" -> shard = Integer.parseInt(args[i + 1]);
+                case "--backup-dir" -> cartellaBackup = args[i + 1];
+                case "--backup-every" -> minutiBackup = Integer.parseInt(args[i + 1]);
+                case "--backup-keep" -> backupDaTenere = Integer.parseInt(args[i + 1]);
+                case "--hash-iterations" -> SecurityUtils.setHashIterations(Integer.parseInt(args[i + 1]));
+                default -> throw new IllegalArgumentException("Opzione sconosciuta: " + args[i]);
+            }
+        }
+        if (shard > 0) {
+            DbConnection.setShardedDatabase(db == null ? "moneygement" : db.replaceFirst("\\.db$", ""), shard);
+        } else if (db != null) {
+            DbConnection.setTestDatabase("jdbc:sqlite:" + db);
+        }
+
+        new InitDatabase().initializeDb();
+        ApiServer api = new ApiServer(porta, maxInCorso);
+        MoneygementService.getInstance().startRecurringScheduler(Duration.ofMinutes(1));
+        MoneygementService.getInstance().startAnomalyDetector(Duration.ofMinutes(5));
+        BackupManager backup = cartellaBackup == null ? null : new BackupManager(Path.of(cartellaBackup), backupDaTenere, 256, 5);
+        if (backup != null) {
+            api.setBackupManager(backup);
+            backup.start(Duration.ofMinutes(minutiBackup));
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            api.stop(2);
+            MoneygementService.getInstance().stopRecurringScheduler();
+            MoneygementService.getInstance().stopAnomalyDetector();
+            if (backup != null) {
+                backup.stop();
+            }
+        }));
+        api.start();
+    }
+}
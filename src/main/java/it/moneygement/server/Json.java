@@ -0,0 +1,272 @@
+package it.moneygement.server;
+
+import it.moneygement.exception.DatiNonValidiException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lettore/scrittore JSON minimale per l'API HTTP.
+ * <p>
+ * L'applicazione non ha dipendenze esterne per il JSON: i corpi delle richieste sono piccoli oggetti
+ * piatti e le risposte vengono scritte a mano (anche in streaming), quindi basta un parser ricorsivo
+ * che produca Map, List, String, Double, Boolean e null.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public final class Json {
+
+    // Annidamento massimo di oggetti e array: i corpi delle richieste ne usano due livelli, il limite
+    // impedisce che un documento come [[[[...]]]] esaurisca lo stack del parser ricorsivo
+    static final int MAX_PROFONDITA = 32;
+
+    /**
+     * Costruttore privato: classe di utilità con soli metodi statici.
+     */
+    private Json() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    // --- SCRITTURA ---
+
+    /**
+     * Converte una stringa Java in un letterale JSON (con virgolette ed escape).
+     *
+     * @param valore La stringa da convertire (null diventa null).
+     * @return Il letterale JSON.
+     */
+    public static String quote(String valore) {
+        if (valore == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder(valore.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < valore.length(); i++) {
+            char c = valore.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    // --- LETTURA ---
+
+    /**
+     * Interpreta un documento JSON che deve essere un oggetto.
+     *
+     * @param testo Il corpo della richiesta.
+     * @return Le coppie chiave/valore dell'oggetto.
+     * @throws DatiNonValidiException se il testo non è un oggetto JSON valido, per qualunque motivo
+     *                                 (sintassi, escape, numeri o annidamento oltre {@value #MAX_PROFONDITA} livelli).
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> parseObject(String testo) {
+        Parser parser = new Parser(testo == null ? "" : testo);
+        Object valore;
+        try {
+            valore = parser.valore();
+        } catch (DatiNonValidiException e) {
+            throw e;
+        } catch (RuntimeException | StackOverflowError e) {
+            // Rete di sicurezza: un errore imprevisto del parser resta un corpo non valido, mai un errore interno
+            throw parser.errore();
+        }
+        parser.spazi();
+        if (!(valore instanceof Map) || parser.pos != parser.testo.length()) {
+            throw new DatiNonValidiException("Il corpo della richiesta deve essere un oggetto JSON.");
+        }
+        return (Map<String, Object>) valore;
+    }
+
+    /**
+     * Parser ricorsivo a discesa, una istanza per documento.
+     */
+    private static final class Parser {
+        private final String testo;
+        private int pos;
+        private int profondita;
+
+        private Parser(String testo) {
+            this.testo = testo;
+        }
+
+        private Object valore() {
+            spazi();
+            if (pos >= testo.length()) {
+                throw errore();
+            }
+            char c = testo.charAt(pos);
+            switch (c) {
+                case '{':
+                    entra();
+                    Map<String, Object> mappa = oggetto();
+                    profondita--;
+                    return mappa;
+                case '[':
+                    entra();
+                    List<Object> lista = array();
+                    profondita--;
+                    return lista;
+                case '"':
+                    return stringa();
+                case 't':
+                    return letterale("true", Boolean.TRUE);
+                case 'f':
+                    return letterale("false", Boolean.FALSE);
+                case 'n':
+                    return letterale("null", null);
+                default:
+                    return numero();
+            }
+        }
+
+        private Map<String, Object> oggetto() {
+            Map<String, Object> mappa = new LinkedHashMap<>();
+            pos++;
+            spazi();
+            if (consuma('}')) {
+                return mappa;
+            }
+            do {
+                spazi();
+                if (pos >= testo.length() || testo.charAt(pos) != '"') {
+                    throw errore();
+                }
+                String chiave = stringa();
+                spazi();
+                if (!consuma(':')) {
+                    throw errore();
+                }
+                mappa.put(chiave, valore());
+                spazi();
+            } while (consuma(','));
+            if (!consuma('}')) {
+                throw errore();
+            }
+            return mappa;
+        }
+
+        private List<Object> array() {
+            List<Object> lista = new ArrayList<>();
+            pos++;
+            spazi();
+            if (consuma(']')) {
+                return lista;
+            }
+            do {
+                lista.add(valore());
+                spazi();
+            } while (consuma(','));
+            if (!consuma(']')) {
+                throw errore();
+            }
+            return lista;
+        }
+
+        private String stringa() {
+            StringBuilder sb = new StringBuilder();
+            pos++;
+            while (pos < testo.length()) {
+                char c = testo.charAt(pos++);
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (pos >= testo.length()) {
+                    break;
+                }
+                char esc = testo.charAt(pos++);
+                switch (esc) {
+                    case 'n' -> sb.append('\n');
+                    case 'r' -> sb.append('\r');
+                    case 't' -> sb.append('\t');
+                    case 'b' -> sb.append('\b');
+                    case 'f' -> sb.append('\f');
+                    case '"', '\\', '/' -> sb.append(esc);
+                    case 'u' -> {
+                        if (pos + 4 > testo.length()) {
+                            throw errore();
+                        }
+                        int codice = 0;
+                        for (int fine = pos + 4; pos < fine; pos++) {
+                            int cifra = Character.digit(testo.charAt(pos), 16);
+                            if (cifra < 0) {
+                                throw errore();
+                            }
+                            codice = codice * 16 + cifra;
+                        }
+                        sb.append((char) codice);
+                    }
+                    default -> throw errore();
+                }
+            }
+            throw errore();
+        }
+
+        private Double numero() {
+            int inizio = pos;
+            while (pos < testo.length() && "+-0123456789.eE".indexOf(testo.charAt(pos)) >= 0) {
+                pos++;
+            }
+            try {
+                Double numero = Double.valueOf(testo.substring(inizio, pos));
+                if (numero.isInfinite()) {
+                    throw errore();
+                }
+                return numero;
+            } catch (NumberFormatException e) {
+                throw errore();
+            }
+        }
+
+        private Object letterale(String atteso, Object valore) {
+            if (!testo.startsWith(atteso, pos)) {
+                throw errore();
+            }
+            pos += atteso.length();
+            return valore;
+        }
+
+        private boolean consuma(char c) {
+            if (pos < testo.length() && testo.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void spazi() {
+            while (pos < testo.length() && Character.isWhitespace(testo.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private void entra() {
+            if (++profondita > MAX_PROFONDITA) {
+                throw new DatiNonValidiException("JSON annidato oltre " + MAX_PROFONDITA + " livelli");
+            }
+        }
+
+        private DatiNonValidiException errore() {
+            return new DatiNonValidiException("JSON non valido alla posizione " + pos);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package it.moneygement.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metriche di tempo per le richieste HTTP, raggruppate per rotta.
+ * <p>
+ * I contatori usano {@link LongAdder}/{@link LongAccumulator} per non diventare un collo di bottiglia
+ * quando molte richieste terminano contemporaneamente su thread diversi.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class RequestMetrics {
+
+    /**
+     * Statistiche cumulative di una singola rotta.
+     */
+    private static final class Statistiche {
+        private final LongAdder richieste = new LongAdder();
+        private final LongAdder errori = new LongAdder();
+        private final LongAdder nanosTotali = new LongAdder();
+        private final LongAccumulator nanosMassimi = new LongAccumulator(Math::max, 0);
+    }
+
+    private final Map<String, Statistiche> perRotta = new ConcurrentHashMap<>();
+    private final LongAdder rifiutate = new LongAdder();
+
+    /**
+     * Registra la durata di una richiesta completata.
+     *
+     * @param rotta  Il nome della rotta (es. "GET /api/expenses").
+     * @param nanos  La durata in nanosecondi.
+     * @param status Il codice di stato HTTP restituito.
+     */
+    public void record(String rotta, long nanos, int status) {
+        Statistiche s = perRotta.computeIfAbsent(rotta, k -> new Statistiche());
+        s.richieste.increment();
+        s.nanosTotali.add(nanos);
+        s.nanosMassimi.accumulate(nanos);
+        if (status >= 500) {
+            s.errori.increment();
+        }
+    }
+
+    /**
+     * Registra una richiesta rifiutata perché era già raggiunto il limite di richieste in corso.
+     */
+    public void recordRejected() {
+        rifiutate.increment();
+    }
+
+    /**
+     * Produce un oggetto JSON con le metriche correnti.
+     *
+     * @param inCorso     Il numero di richieste attualmente in corso.
+     * @param maxInCorso  Il limite configurato di richieste in corso.
+     * @return Il documento JSON.
+     */
+    public String toJson(int inCorso, int maxInCorso) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"inCorso\":").append(inCorso)
+                .append(",\"maxInCorso\":").append(maxInCorso)
+                .append(",\"rifiutate\":").append(rifiutate.sum())
+                .append(",\"rotte\":{");
+        boolean prima = true;
+        for (Map.Entry<String, Statistiche> e : perRotta.entrySet()) {
+            Statistiche s = e.getValue();
+            long n = s.richieste.sum();
+            if (!prima) {
+                sb.append(',');
+            }
+            prima = false;
+            sb.append(Json.quote(e.getKey())).append(":{")
+                    .append("\"richieste\":").append(n)
+                    .append(",\"errori\":").append(s.errori.sum())
+                    .append(",\"mediaMs\":").append(n == 0 ? 0 : s.nanosTotali.sum() / n / 1_000_000.0)
+                    .append(",\"massimoMs\":").append(s.nanosMassimi.get() / 1_000_000.0)
+                    .append('}');
+        }
+        return sb.append("}}").toString();
+    }
+}
@@ -0,0 +1,257 @@
+package it.moneygement.service;
+
+import it.moneygement.dao.AnomalyBaselineDAO;
+import it.moneygement.dao.ExpenseDAO;
+import it.moneygement.events.AnomalyListener;
+import it.moneygement.model.Categories;
+import it.moneygement.model.Expense;
+import it.moneygement.model.ExpenseAnomaly;
+import it.moneygement.utils.RollingBaseline;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Riconoscimento delle spese con importi anomali: ogni spesa aggiunta dal service viene confrontata con
+ * l'andamento recente della sua categoria ({@link RollingBaseline}) e segnalata ai listener se è insolitamente alta.
+ * <p>
+ * Una spesa è anomala se supera di {@value #SOGLIA_PUNTEGGIO} deviazioni standard la media mobile
+ * <b>e</b> di {@value #SOGLIA_ROBUSTA} MAD scalate la mediana delle ultime {@value #FINESTRA} spese: la prima
+ * condizione segue i cambiamenti di abitudini, la seconda non viene falsata da poche spese eccezionali già viste.
+ * Le categorie con meno di {@value #MIN_SPESE} spese non vengono valutate.
+ * </p>
+ * <p>
+ * Le baseline stanno in memoria: una spesa costa un confronto e un aggiornamento in O(1), senza accessi al database.
+ * Vengono lette dal database al primo uso di un utente (oppure ricostruite dalle spese degli ultimi
+ * {@value #MESI_STORICO} mesi) e salvate periodicamente ({@link #start(Duration)}) e alla chiusura
+ * ({@link #stop()}); dopo un arresto improvviso si perdono solo le spese dell'ultimo intervallo, che cambiano
+ * di poco le stime. Come per i budget, il service chiama {@link #prepara(int)} e {@link #spesaAggiunta(int, Expense)}
+ * tenendo il lock dell'utente, e così fa il {@link RecurringScheduler} per le spese ricorrenti generate; le spese
+ * scritte dagli strumenti non vengono valutate.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class AnomalyDetector {
+
+    public static final double SOGLIA_PUNTEGGIO = 3.0;
+    public static final double SOGLIA_ROBUSTA = 3.5;
+    public static final int MIN_SPESE = 10;
+    public static final int FINESTRA = 31;
+    public static final int MESI_STORICO = 6;
+    // Peso di una spesa nella media mobile: circa le ultime 20 spese della categoria
+    private static final double ALFA = 0.1;
+
+    /**
+     * Baseline di un utente; l'oggetto fa anche da lock per il salvataggio.
+     */
+    private static final class StatoUtente {
+        private final Map<Categories, RollingBaseline> baseline = new EnumMap<>(Categories.class);
+        private boolean caricato;
+        private boolean modificato;
+    }
+
+    private final AnomalyBaselineDAO baselineDAO;
+    private final ExpenseDAO expenseDAO;
+    private final CurrencyConverter convertitore;
+    private final Clock clock;
+    private final Map<Integer, StatoUtente> stati = new ConcurrentHashMap<>();
+    private final List<AnomalyListener> listeners = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService salvataggio;
+
+    /**
+     * @param baselineDAO  Il DAO delle baseline salvate.
+     * @param expenseDAO   Il DAO delle spese (per ricostruire le baseline mancanti).
+     * @param convertitore Il convertitore degli importi nella valuta base degli utenti.
+     * @param clock        L'orologio che stabilisce l'intervallo delle spese recenti.
+     */
+    public AnomalyDetector(AnomalyBaselineDAO baselineDAO, ExpenseDAO expenseDAO, CurrencyConverter convertitore, Clock clock) {
+        this.baselineDAO = baselineDAO;
+        this.expenseDAO = expenseDAO;
+        this.convertitore = convertitore;
+        this.clock = clock;
+    }
+
+    public void addListener(AnomalyListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(AnomalyListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Legge le baseline dell'utente al primo uso. Va chiamato <b>prima</b> di scrivere la spesa, perché
+     * la ricostruzione dallo storico non la comprenda.
+     *
+     * @param userId L'id dell'utente.
+     */
+    public void prepara(int userId) {
+        StatoUtente stato = stati.computeIfAbsent(userId, id -> new StatoUtente());
+        synchronized (stato) {
+            if (stato.caricato) {
+                return;
+            }
+            Map<Categories, RollingBaseline> salvate = baselineDAO.getBaselines(userId);
+            if (salvate == null) {
+                // La spesa viene salvata comunque: le baseline verranno lette alla prossima
+                return;
+            }
+            if (salvate.isEmpty()) {
+                LocalDate oggi = LocalDate.now(clock);
+                if (!expenseDAO.forEachImporto(userId, oggi.minusMonths(MESI_STORICO), oggi,
+                        (categoria, importo) -> baseline(salvate, categoria).aggiungi(importo))) {
+                    return;
+                }
+                stato.modificato = !salvate.isEmpty();
+            }
+            stato.baseline.putAll(salvate);
+            stato.caricato = true;
+        }
+    }
+
+    /**
+     * Valuta una spesa appena salvata e la aggiunge alla baseline della sua categoria; se è anomala
+     * avvisa i listener.
+     *
+     * @param userId L'id dell'utente.
+     * @param spesa  La spesa salvata.
+     * @return La segnalazione, oppure null se la spesa non è anomala o le baseline non sono disponibili.
+     */
+    public ExpenseAnomaly spesaAggiunta(int userId, Expense spesa) {
+        StatoUtente stato = stati.get(userId);
+        if (stato == null) {
+            return null;
+        }
+        ExpenseAnomaly anomalia = null;
+        synchronized (stato) {
+            if (!stato.caricato) {
+                return null;
+            }
+            double importo = convertitore.inValutaBase(userId, spesa);
+            RollingBaseline b = baseline(stato.baseline, spesa.getCategoria());
+            if (b.getNumero() >= MIN_SPESE) {
+                double punteggio = b.punteggio(importo);
+                double punteggioRobusto = b.punteggioRobusto(importo);
+                if (punteggio > SOGLIA_PUNTEGGIO && punteggioRobusto > SOGLIA_ROBUSTA) {
+                    anomalia = new ExpenseAnomaly(spesa, importo, b.getMedia(), b.getMediana(), punteggio, punteggioRobusto);
+                }
+            }
+            b.aggiungi(importo);
+            stato.modificato = true;
+        }
+        if (anomalia != null) {
+            for (AnomalyListener listener : listeners) {
+                listener.onAnomaly(anomalia);
+            }
+        }
+        return anomalia;
+    }
+
+    /**
+     * Salva le baseline modificate dall'ultimo salvataggio (un'unica transazione per shard).
+     *
+     * @return Il numero di utenti salvati.
+     */
+    public int salva() {
+        Map<Integer, Map<Categories, byte[]>> dati = new HashMap<>();
+        for (Map.Entry<Integer, StatoUtente> voce : stati.entrySet()) {
+            StatoUtente stato = voce.getValue();
+            synchronized (stato) {
+                if (!stato.modificato) {
+                    continue;
+                }
+                Map<Categories, byte[]> baseline = new EnumMap<>(Categories.class);
+                stato.baseline.forEach((categoria, b) -> baseline.put(categoria, b.toBytes()));
+                dati.put(voce.getKey(), baseline);
+                stato.modificato = false;
+            }
+        }
+        if (dati.isEmpty()) {
+            return 0;
+        }
+        Set<Integer> salvati = baselineDAO.saveBaselines(dati);
+        for (Integer userId : dati.keySet()) {
+            StatoUtente stato = stati.get(userId);
+            if (!salvati.contains(userId) && stato != null) {
+                // Da ritentare al prossimo salvataggio
+                synchronized (stato) {
+                    stato.modificato = true;
+                }
+            }
+        }
+        return salvati.size();
+    }
+
+    /**
+     * Avvia il salvataggio periodico delle baseline.
+     *
+     * @param intervallo L'intervallo tra un salvataggio e il successivo.
+     */
+    public synchronized void start(Duration intervallo) {
+        if (salvataggio != null) {
+            return;
+        }
+        salvataggio = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "anomaly-baseline-saver");
+            t.setDaemon(true);
+            return t;
+        });
+        salvataggio.scheduleWithFixedDelay(this::salva, intervallo.toMillis(), intervallo.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Ferma il salvataggio periodico e salva le baseline modificate.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (salvataggio != null) {
+                salvataggio.shutdownNow();
+                salvataggio = null;
+            }
+        }
+        salva();
+    }
+
+    /**
+     * Dimentica le baseline in memoria di un utente (es. cancellato).
+     *
+     * @param userId L'id dell'utente.
+     */
+    public void dimentica(int userId) {
+        stati.remove(userId);
+    }
+
+    /**
+     * Cancella le baseline di un utente, anche quelle salvate, perché vengano ricostruite dallo storico
+     * (es. quando cambia la valuta base, in cui sono espressi gli importi).
+     *
+     * @param userId L'id dell'utente.
+     */
+    public void azzera(int userId) {
+        StatoUtente stato = stati.remove(userId);
+        if (stato != null) {
+            synchronized (stato) {
+                stato.modificato = false;
+            }
+        }
+        baselineDAO.deleteBaselines(userId);
+    }
+
+    // --- METODI PRIVATI ---
+
+    private static RollingBaseline baseline(Map<Categories, RollingBaseline> baseline, Categories categoria) {
+        return baseline.computeIfAbsent(categoria, c -> new RollingBaseline(ALFA, FINESTRA));
+    }
+}
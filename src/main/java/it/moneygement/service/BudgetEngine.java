@@ -0,0 +1,485 @@
+package it.moneygement.service;
+
+import it.moneygement.dao.BudgetDAO;
+import it.moneygement.dao.ExpenseDAO;
+import it.moneygement.events.BudgetAlertListener;
+import it.moneygement.model.Budget;
+import it.moneygement.model.BudgetPeriod;
+import it.moneygement.model.BudgetStatus;
+import it.moneygement.model.Categories;
+import it.moneygement.model.Expense;
+
+import java.time.Clock;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Motore dei budget: tiene in memoria, per ogni budget di un utente, il totale speso nel periodo corrente
+ * e avvisa quando si superano le soglie di {@value #SOGLIA_AVVISO}% e {@value #SOGLIA_LIMITE}% del limite.
+ * <p>
+ * I totali vengono letti dal database una volta sola, al primo uso dei budget di un utente (una query per
+ * periodo, raggruppata per categoria e valuta) e all'inizio di ogni nuovo periodo. Da lì in poi ogni spesa aggiunta,
+ * modificata o cancellata corregge i totali in O(1) (i budget di una categoria sono al massimo uno per periodo),
+ * senza rileggere lo storico. I totali sono in centesimi e restano nella valuta delle spese: vengono convertiti
+ * nella valuta base dell'utente con i tassi attuali del {@link CurrencyConverter} solo quando servono (soglie e
+ * situazione). Così togliere una spesa toglie esattamente ciò che era stato aggiunto, anche se nel frattempo
+ * i tassi sono cambiati, e i totali in memoria restano uguali a quelli che darebbe una nuova lettura.
+ * </p>
+ * <p>
+ * Il service esegue {@link #prepara(int)}, la scrittura della spesa e l'aggiornamento dei totali tenendo
+ * il lock dell'utente ({@link #lock(int)}): i totali vengono letti dal database solo prima della scrittura,
+ * quindi non possono contare due volte una spesa né perderne una. Le scritture che non passano dal service
+ * (strumenti a riga di comando) non vengono viste fino al periodo successivo; l'archiviazione tocca solo
+ * anni passati e non cambia i totali del periodo corrente. Chi scrive spese a blocchi in una transazione propria
+ * (le spese ricorrenti) chiama {@link #ricarica(int)} dopo il commit.
+ * </p>
+ * <p>
+ * In memoria restano i budget degli ultimi {@value #MAX_UTENTI} utenti usati; gli altri vengono riletti al
+ * prossimo uso. I lock sono un insieme fisso condiviso tra gli utenti (per id), quindi non crescono con loro e
+ * restano validi anche quando lo stato di un utente viene scartato: una spesa comunicata dopo che lo stato
+ * è stato scartato viene ignorata, perché la lettura successiva dal database la comprende già.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class BudgetEngine {
+
+    public static final int SOGLIA_AVVISO = 80;
+    public static final int SOGLIA_LIMITE = 100;
+
+    // Utenti con i budget in memoria e lock condivisi tra gli utenti
+    static final int MAX_UTENTI = 10_000;
+    private static final int NUMERO_LOCK = 256;
+
+    /**
+     * Totale di un budget nel periodo corrente.
+     */
+    private static final class Contatore {
+        private Budget budget;
+        private LocalDate inizio;
+        private LocalDate fine;
+        // Centesimi spesi per valuta, senza conversione
+        private final Map<String, Long> centesimi = new HashMap<>();
+        // Ultima soglia raggiunta: un avviso parte solo quando la si supera verso l'alto
+        private int soglia;
+
+        private Contatore(Budget budget) {
+            this.budget = budget;
+        }
+    }
+
+    /**
+     * Budget di un utente.
+     */
+    private static final class StatoUtente {
+        private final Map<Categories, List<Contatore>> perCategoria = new EnumMap<>(Categories.class);
+        private boolean caricato;
+    }
+
+    private final BudgetDAO budgetDAO;
+    private final ExpenseDAO expenseDAO;
+    private final CurrencyConverter convertitore;
+    private final Clock clock;
+    // Ordinata per ultimo uso; tutti gli accessi avvengono sotto il suo lock
+    private final Map<Integer, StatoUtente> stati = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, StatoUtente> piuVecchio) {
+            return size() > MAX_UTENTI;
+        }
+    };
+    private final Object[] locks = new Object[NUMERO_LOCK];
+    private final List<BudgetAlertListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param budgetDAO    Il DAO dei budget.
+     * @param expenseDAO   Il DAO delle spese (per i totali iniziali dei periodi).
+     * @param convertitore Il convertitore degli importi nella valuta base degli utenti.
+     * @param clock        L'orologio che stabilisce il periodo corrente.
+     */
+    public BudgetEngine(BudgetDAO budgetDAO, ExpenseDAO expenseDAO, CurrencyConverter convertitore, Clock clock) {
+        this.budgetDAO = budgetDAO;
+        this.expenseDAO = expenseDAO;
+        this.convertitore = convertitore;
+        this.clock = clock;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    public void addListener(BudgetAlertListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(BudgetAlertListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @param userId L'id dell'utente.
+     * @return Il lock da tenere durante la scrittura di una spesa dell'utente e l'aggiornamento dei totali.
+     */
+    public Object lock(int userId) {
+        return locks[Math.floorMod(userId, NUMERO_LOCK)];
+    }
+
+    /**
+     * Prepara il motore alla scrittura di una spesa dell'utente: legge i budget al primo uso e passa
+     * al periodo corrente quelli scaduti. Va chiamato tenendo il {@link #lock(int)} <b>prima</b> di scrivere
+     * la spesa, perché i totali letti dal database non la comprendano due volte.
+     *
+     * @param userId L'id dell'utente.
+     * @return true se l'utente ha almeno un budget e la spesa va quindi comunicata al motore dopo la scrittura.
+     */
+    public boolean prepara(int userId) {
+        synchronized (lock(userId)) {
+            try {
+                StatoUtente stato = stato(userId);
+                LocalDate oggi = oggi();
+                for (List<Contatore> contatori : stato.perCategoria.values()) {
+                    aggiornaPeriodo(userId, contatori, oggi);
+                }
+                return !stato.perCategoria.isEmpty();
+            } catch (IllegalStateException e) {
+                // Il salvataggio della spesa non dipende dai budget: verranno riletti al prossimo uso
+                System.err.println("Budget non aggiornati: " + e.getMessage());
+                scarta(userId);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Salva un budget (o ne cambia il limite) e ne calcola il totale del periodo corrente.
+     *
+     * @param userId L'id dell'utente.
+     * @param budget Il budget.
+     * @return La situazione del budget nel periodo corrente.
+     * @throws IllegalStateException se il database non è raggiungibile.
+     */
+    public BudgetStatus salva(int userId, Budget budget) {
+        synchronized (lock(userId)) {
+            StatoUtente stato = stato(userId);
+            budget.setIdUtente(userId);
+            if (!budgetDAO.saveBudget(budget)) {
+                throw new IllegalStateException("Impossibile salvare il budget.");
+            }
+            List<Contatore> contatori = stato.perCategoria.get(budget.getCategoria());
+            Contatore contatore = contatori == null ? null : trova(contatori, budget.getPeriodo());
+            if (contatore == null) {
+                contatore = new Contatore(budget);
+                ricalcola(userId, List.of(contatore), oggi());
+                stato.perCategoria.computeIfAbsent(budget.getCategoria(), c -> new ArrayList<>()).add(contatore);
+            } else {
+                contatore.budget = budget;
+                contatore.soglia = soglia(userId, contatore);
+            }
+            return situazione(userId, contatore);
+        }
+    }
+
+    /**
+     * Elimina un budget.
+     *
+     * @return true se il budget esisteva.
+     */
+    public boolean elimina(int userId, Categories categoria, BudgetPeriod periodo) {
+        synchronized (lock(userId)) {
+            StatoUtente stato = stato(userId);
+            if (!budgetDAO.deleteBudget(userId, categoria, periodo)) {
+                return false;
+            }
+            List<Contatore> contatori = stato.perCategoria.get(categoria);
+            if (contatori != null) {
+                contatori.removeIf(c -> c.budget.getPeriodo() == periodo);
+                if (contatori.isEmpty()) {
+                    stato.perCategoria.remove(categoria);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @param userId L'id dell'utente.
+     * @return La situazione di tutti i budget dell'utente nel periodo corrente.
+     */
+    public List<BudgetStatus> situazione(int userId) {
+        synchronized (lock(userId)) {
+            StatoUtente stato = stato(userId);
+            LocalDate oggi = oggi();
+            List<BudgetStatus> situazione = new ArrayList<>();
+            for (List<Contatore> contatori : stato.perCategoria.values()) {
+                aggiornaPeriodo(userId, contatori, oggi);
+                for (Contatore c : contatori) {
+                    situazione.add(situazione(userId, c));
+                }
+            }
+            return situazione;
+        }
+    }
+
+    /**
+     * Conta una spesa appena salvata (dopo {@link #prepara(int)}, tenendo il lock dell'utente).
+     */
+    public void spesaAggiunta(int userId, Expense spesa) {
+        applica(userId, null, spesa);
+    }
+
+    /**
+     * Sostituisce nei totali la versione precedente di una spesa con quella appena salvata.
+     */
+    public void spesaModificata(int userId, Expense prima, Expense dopo) {
+        applica(userId, prima, dopo);
+    }
+
+    /**
+     * Toglie dai totali una spesa appena cancellata.
+     */
+    public void spesaEliminata(int userId, Expense spesa) {
+        applica(userId, spesa, null);
+    }
+
+    /**
+     * Rilegge dal database i totali di un utente dopo spese salvate senza il protocollo di {@link #prepara(int)}
+     * (es. a blocchi, in una transazione propria), da chiamare dopo il commit. Gli avvisi partono per le soglie
+     * superate rispetto ai totali precedenti. Non fa nulla se i budget dell'utente non sono ancora in memoria:
+     * verranno letti, già aggiornati, al primo uso.
+     *
+     * @param userId L'id dell'utente.
+     */
+    public void ricarica(int userId) {
+        List<BudgetStatus> avvisi = new ArrayList<>();
+        synchronized (lock(userId)) {
+            StatoUtente stato = caricato(userId);
+            if (stato == null || stato.perCategoria.isEmpty()) {
+                return;
+            }
+            List<Contatore> tutti = new ArrayList<>();
+            Map<Contatore, Integer> precedenti = new HashMap<>();
+            for (List<Contatore> contatori : stato.perCategoria.values()) {
+                for (Contatore c : contatori) {
+                    tutti.add(c);
+                    precedenti.put(c, c.soglia);
+                }
+            }
+            try {
+                ricalcola(userId, tutti, oggi());
+            } catch (IllegalStateException e) {
+                System.err.println("Budget non aggiornati: " + e.getMessage());
+                scarta(userId);
+                return;
+            }
+            for (Contatore c : tutti) {
+                if (c.soglia > precedenti.get(c)) {
+                    avvisi.add(situazione(userId, c));
+                }
+            }
+        }
+        notifica(avvisi);
+    }
+
+    /**
+     * Dimentica i budget di un utente dopo la cancellazione dell'account.
+     */
+    public void dimentica(int userId) {
+        synchronized (lock(userId)) {
+            scarta(userId);
+        }
+    }
+
+    /**
+     * @return Il numero di utenti con i budget in memoria.
+     */
+    int getUtentiInMemoria() {
+        synchronized (stati) {
+            return stati.size();
+        }
+    }
+
+    // --- METODI PRIVATI ---
+
+    private void applica(int userId, Expense prima, Expense dopo) {
+        List<BudgetStatus> avvisi = new ArrayList<>();
+        synchronized (lock(userId)) {
+            // Stato scartato dopo prepara(): la prossima lettura dal database comprende già la spesa
+            StatoUtente stato = caricato(userId);
+            if (stato == null || stato.perCategoria.isEmpty()) {
+                return;
+            }
+            if (prima != null) {
+                somma(userId, stato, prima, -1, avvisi);
+            }
+            if (dopo != null) {
+                somma(userId, stato, dopo, 1, avvisi);
+            }
+        }
+        notifica(avvisi);
+    }
+
+    private void notifica(List<BudgetStatus> avvisi) {
+        for (BudgetStatus avviso : avvisi) {
+            for (BudgetAlertListener listener : listeners) {
+                try {
+                    listener.onAlert(avviso);
+                } catch (RuntimeException e) {
+                    System.err.println("Errore nel ricevitore degli avvisi di budget " + listener + ": " + e);
+                }
+            }
+        }
+    }
+
+    private void somma(int userId, StatoUtente stato, Expense spesa, int segno, List<BudgetStatus> avvisi) {
+        List<Contatore> contatori = stato.perCategoria.get(spesa.getCategoria());
+        if (contatori == null) {
+            return;
+        }
+        LocalDate giorno = spesa.getData().toLocalDate();
+        long importo = Math.round(spesa.getImporto() * 100);
+        for (Contatore c : contatori) {
+            // Le spese di altri periodi (passati o futuri) non toccano il budget corrente.
+            // Il periodo è stato aggiornato da prepara(), prima della scrittura
+            if (giorno.isBefore(c.inizio) || !giorno.isBefore(c.fine)) {
+                continue;
+            }
+            c.centesimi.merge(spesa.getValuta(), segno * importo, Long::sum);
+            int nuova = soglia(userId, c);
+            if (nuova > c.soglia) {
+                avvisi.add(new BudgetStatus(c.budget, c.inizio, inValutaBase(userId, c) / 100.0, nuova));
+            }
+            c.soglia = nuova;
+        }
+    }
+
+    /**
+     * Restituisce lo stato dell'utente, leggendo budget e totali dal database al primo uso.
+     */
+    private StatoUtente stato(int userId) {
+        StatoUtente stato;
+        synchronized (stati) {
+            stato = stati.computeIfAbsent(userId, id -> new StatoUtente());
+        }
+        synchronized (lock(userId)) {
+            if (!stato.caricato) {
+                List<Budget> budget = budgetDAO.getBudgetsByUserId(userId);
+                if (budget == null) {
+                    throw new IllegalStateException("Impossibile leggere i budget.");
+                }
+                List<Contatore> tutti = new ArrayList<>();
+                for (Budget b : budget) {
+                    tutti.add(new Contatore(b));
+                }
+                ricalcola(userId, tutti, oggi());
+                // Solo dopo la lettura completa: un errore lascia lo stato da caricare
+                for (Contatore c : tutti) {
+                    stato.perCategoria.computeIfAbsent(c.budget.getCategoria(), k -> new ArrayList<>()).add(c);
+                }
+                stato.caricato = true;
+            }
+        }
+        return stato;
+    }
+
+    /**
+     * @return Lo stato dell'utente se i suoi budget sono in memoria, senza leggerli.
+     */
+    private StatoUtente caricato(int userId) {
+        synchronized (stati) {
+            StatoUtente stato = stati.get(userId);
+            return stato != null && stato.caricato ? stato : null;
+        }
+    }
+
+    /**
+     * Toglie dalla memoria lo stato dell'utente: verrà riletto al prossimo uso.
+     */
+    private void scarta(int userId) {
+        synchronized (stati) {
+            stati.remove(userId);
+        }
+    }
+
+    /**
+     * Passa al periodo corrente i contatori il cui periodo è terminato.
+     */
+    private void aggiornaPeriodo(int userId, List<Contatore> contatori, LocalDate oggi) {
+        List<Contatore> scaduti = new ArrayList<>();
+        for (Contatore c : contatori) {
+            if (!oggi.isBefore(c.fine)) {
+                scaduti.add(c);
+            }
+        }
+        if (!scaduti.isEmpty()) {
+            ricalcola(userId, scaduti, oggi);
+        }
+    }
+
+    /**
+     * Legge dal database i totali del periodo corrente: una query per tipo di periodo, per tutte le categorie.
+     */
+    private void ricalcola(int userId, List<Contatore> contatori, LocalDate oggi) {
+        Map<BudgetPeriod, Map<Categories, Map<String, Double>>> totali = new EnumMap<>(BudgetPeriod.class);
+        for (Contatore c : contatori) {
+            BudgetPeriod periodo = c.budget.getPeriodo();
+            LocalDate inizio = periodo.inizio(oggi);
+            Map<Categories, Map<String, Double>> perCategoria = totali.get(periodo);
+            if (perCategoria == null) {
+                perCategoria = expenseDAO.getTotalsByCategoryAndCurrency(userId, inizio, periodo.fine(inizio));
+                if (perCategoria == null) {
+                    throw new IllegalStateException("Impossibile calcolare i totali dei budget.");
+                }
+                totali.put(periodo, perCategoria);
+            }
+            c.inizio = inizio;
+            c.fine = periodo.fine(inizio);
+            c.centesimi.clear();
+            perCategoria.getOrDefault(c.budget.getCategoria(), Map.of())
+                    .forEach((valuta, totale) -> c.centesimi.put(valuta, Math.round(totale * 100)));
+            // Nessun avviso per ciò che era già stato speso: si parte dalla soglia attuale
+            c.soglia = soglia(userId, c);
+        }
+    }
+
+    /**
+     * @return Il totale di un budget in centesimi della valuta base dell'utente, con i tassi attuali.
+     */
+    private long inValutaBase(int userId, Contatore c) {
+        String base = convertitore.valutaBase(userId);
+        double totale = 0;
+        for (Map.Entry<String, Long> e : c.centesimi.entrySet()) {
+            totale += convertitore.converti(e.getValue(), e.getKey(), base);
+        }
+        return Math.round(totale);
+    }
+
+    private int soglia(int userId, Contatore c) {
+        long limite = Math.round(c.budget.getLimite() * 100);
+        long centesimi = inValutaBase(userId, c);
+        if (centesimi >= limite) {
+            return SOGLIA_LIMITE;
+        }
+        return centesimi * 100 >= limite * SOGLIA_AVVISO ? SOGLIA_AVVISO : 0;
+    }
+
+    private static Contatore trova(List<Contatore> contatori, BudgetPeriod periodo) {
+        for (Contatore c : contatori) {
+            if (c.budget.getPeriodo() == periodo) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    private BudgetStatus situazione(int userId, Contatore c) {
+        return new BudgetStatus(c.budget, c.inizio, inValutaBase(userId, c) / 100.0, c.soglia);
+    }
+
+    private LocalDate oggi() {
+        return LocalDate.now(clock);
+    }
+}
@@ -0,0 +1,131 @@
+package it.moneygement.service;
+
+import it.moneygement.dao.ExchangeRateDAO;
+import it.moneygement.dao.UserDAO;
+import it.moneygement.model.Expense;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Converte gli importi tra valute con i tassi della tabella {@code exchange_rate}, tenuti in memoria.
+ * <p>
+ * I tassi vengono riletti dal database al più ogni {@link #VALIDITA_TASSI} (sono caricati da file con
+ * {@code tools.ExchangeRateLoader}, di solito una volta al giorno), e la valuta base di ogni utente viene letta
+ * una volta sola: convertire una spesa, come fa {@link BudgetEngine} a ogni scrittura, non tocca il database.
+ * Le aggregazioni non passano da qui: {@code ExpenseDAO} converte dentro SQL con gli stessi tassi.
+ * Come nelle query, un importo in una valuta senza tasso non viene contato (vale 0 nella valuta di destinazione).
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class CurrencyConverter {
+
+    static final Duration VALIDITA_TASSI = Duration.ofMinutes(10);
+
+    private final ExchangeRateDAO exchangeRateDAO;
+    private final UserDAO userDAO;
+    private final Clock clock;
+    private final Map<Integer, String> valuteBase = new ConcurrentHashMap<>();
+
+    // Tassi letti e istante della lettura (sostituiti insieme, sotto il lock dell'oggetto)
+    private Map<String, Double> tassi;
+    private Instant lettiIl;
+
+    /**
+     * @param exchangeRateDAO Il DAO dei tassi di cambio.
+     * @param userDAO         Il DAO degli utenti (per la valuta base).
+     * @param clock           L'orologio che stabilisce quando rileggere i tassi.
+     */
+    public CurrencyConverter(ExchangeRateDAO exchangeRateDAO, UserDAO userDAO, Clock clock) {
+        this.exchangeRateDAO = exchangeRateDAO;
+        this.userDAO = userDAO;
+        this.clock = clock;
+    }
+
+    /**
+     * @param valuta Il codice della valuta.
+     * @return true se la tabella dei cambi contiene un tasso per la valuta.
+     */
+    public boolean isSupportata(String valuta) {
+        return tassi().containsKey(valuta);
+    }
+
+    /**
+     * Converte un importo da una valuta a un'altra.
+     *
+     * @param importo L'importo.
+     * @param da      La valuta dell'importo.
+     * @param a       La valuta di destinazione.
+     * @return L'importo convertito, oppure 0 se una delle due valute non ha un tasso.
+     */
+    public double converti(double importo, String da, String a) {
+        if (da.equals(a)) {
+            return importo;
+        }
+        Map<String, Double> t = tassi();
+        Double tassoDa = t.get(da);
+        Double tassoA = t.get(a);
+        return tassoDa == null || tassoA == null ? 0 : importo * tassoA / tassoDa;
+    }
+
+    /**
+     * @param userId L'id dell'utente.
+     * @return La valuta base dell'utente (l'euro se non è leggibile).
+     */
+    public String valutaBase(int userId) {
+        String valuta = valuteBase.get(userId);
+        if (valuta == null) {
+            valuta = userDAO.getBaseCurrency(userId);
+            if (valuta == null) {
+                // Non salvata: verrà riletta alla prossima richiesta
+                return Expense.VALUTA_PREDEFINITA;
+            }
+            valuteBase.put(userId, valuta);
+        }
+        return valuta;
+    }
+
+    /**
+     * @param userId L'id dell'utente proprietario della spesa.
+     * @param spesa  La spesa.
+     * @return L'importo della spesa nella valuta base dell'utente.
+     */
+    public double inValutaBase(int userId, Expense spesa) {
+        return converti(spesa.getImporto(), spesa.getValuta(), valutaBase(userId));
+    }
+
+    /**
+     * Dimentica la valuta base di un utente (dopo che è cambiata o dopo la cancellazione dell'account).
+     */
+    public void dimentica(int userId) {
+        valuteBase.remove(userId);
+    }
+
+    /**
+     * Forza la rilettura dei tassi alla prossima conversione (es. dopo averne caricati di nuovi).
+     */
+    public synchronized void ricarica() {
+        lettiIl = null;
+    }
+
+    // --- METODI PRIVATI ---
+
+    private synchronized Map<String, Double> tassi() {
+        Instant adesso = clock.instant();
+        if (lettiIl == null || !adesso.isBefore(lettiIl.plus(VALIDITA_TASSI))) {
+            Map<String, Double> letti = exchangeRateDAO.getRates();
+            if (letti != null) {
+                tassi = Map.copyOf(letti);
+                lettiIl = adesso;
+            } else if (tassi == null) {
+                // Database non raggiungibile alla prima lettura: solo le conversioni tra valute uguali
+                return Map.of();
+            }
+        }
+        return tassi;
+    }
+}
@@ -0,0 +1,138 @@
+package it.moneygement.service;
+
+import it.moneygement.dao.ExpenseDAO;
+import it.moneygement.model.Expense;
+import it.moneygement.utils.BloomFilter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Filtro in memoria davanti all'indice delle impronte delle spese: per ogni utente dei {@link BloomFilter}
+ * con le impronte delle spese scritte dal service e dal {@link RecurringScheduler} ({@link ExpenseDAO#impronta(Expense)}).
+ * <p>
+ * Una spesa nuova quasi sempre non è un doppione: il filtro lo dice senza accedere al database e la ricerca
+ * sull'indice viene fatta solo per le spese che il filtro considera forse presenti (i doppioni delle spese scritte
+ * di recente e circa l'{@value #FALSI_POSITIVI_PERCENTO}% delle altre). Il filtro non è la garanzia: contiene solo
+ * le impronte scritte da quando è in memoria, e a fermare i doppioni delle altre spese (più vecchie o scritte
+ * dagli strumenti) è l'indice univoco, su cui l'inserimento non riesce.
+ * Le spese cancellate o modificate restano nel filtro e costano al più una ricerca in più.
+ * </p>
+ * <p>
+ * Il filtro di un utente nasce vuoto al primo uso, senza leggere il database, e riceve le impronte man mano che
+ * le spese vengono scritte; quando è pieno se ne aggiunge uno di capienza doppia (i precedenti restano validi),
+ * così i falsi positivi restano limitati senza rileggere le spese. Vengono tenuti al massimo {@code capienza}
+ * utenti, scartando quello usato meno di recente.
+ * </p>
+ * <p>
+ * Se l'indice delle impronte non è univoco (database con doppioni già presenti, vedi {@code InitDatabase}) il filtro
+ * viene disattivato: ogni spesa viene cercata sull'indice, perché è l'unico controllo rimasto.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+class DuplicateGuard {
+
+    static final int FALSI_POSITIVI_PERCENTO = 1;
+    private static final int CAPIENZA_MINIMA = 1_024;
+
+    private final ExpenseDAO expenseDAO;
+    private final Map<Integer, Filtri> filtri;
+
+    // Letto al primo uso: null finché l'indice non è stato controllato (o se il controllo è fallito)
+    private Boolean attivo;
+
+    /**
+     * Filtri di un utente, dal più vecchio al più recente (che riceve le nuove impronte).
+     */
+    private static final class Filtri {
+        private final List<BloomFilter> elenco = new ArrayList<>();
+
+        Filtri() {
+            elenco.add(new BloomFilter(CAPIENZA_MINIMA, FALSI_POSITIVI_PERCENTO / 100.0));
+        }
+
+        synchronized boolean forsePresente(String impronta) {
+            for (BloomFilter filtro : elenco) {
+                if (filtro.forsePresente(impronta)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized void aggiungi(String impronta) {
+            BloomFilter ultimo = elenco.get(elenco.size() - 1);
+            ultimo.aggiungi(impronta);
+            if (ultimo.isPieno()) {
+                // Oltre la capienza i falsi positivi crescono: le impronte successive vanno in un filtro più grande
+                elenco.add(new BloomFilter(2 * ultimo.getCapienza(), FALSI_POSITIVI_PERCENTO / 100.0));
+            }
+        }
+    }
+
+    DuplicateGuard(ExpenseDAO expenseDAO, int capienza) {
+        this.expenseDAO = expenseDAO;
+        this.filtri = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Filtri> piuVecchio) {
+                return size() > capienza;
+            }
+        };
+    }
+
+    /**
+     * @param userId L'id dell'utente.
+     * @param spesa  La spesa da salvare.
+     * @return false se la spesa non è un doppione di una spesa nel filtro (gli altri doppioni li ferma l'indice
+     * univoco); true se va cercata sull'indice (sempre, se il filtro è disattivato).
+     */
+    boolean forseDuplicata(int userId, Expense spesa) {
+        Filtri f = filtri(userId);
+        return f == null || f.forsePresente(ExpenseDAO.impronta(spesa));
+    }
+
+    /**
+     * Aggiunge al filtro dell'utente una spesa appena salvata o modificata.
+     *
+     * @param userId L'id dell'utente.
+     * @param spesa  La spesa salvata.
+     */
+    void aggiungi(int userId, Expense spesa) {
+        Filtri f = filtri(userId);
+        if (f != null) {
+            f.aggiungi(ExpenseDAO.impronta(spesa));
+        }
+    }
+
+    /**
+     * Dimentica il filtro di un utente (es. cancellato, o spese spostate in blocco).
+     *
+     * @param userId L'id dell'utente.
+     */
+    synchronized void dimentica(int userId) {
+        filtri.remove(userId);
+    }
+
+    // --- METODI PRIVATI ---
+
+    /**
+     * @return I filtri dell'utente (creati vuoti se non sono in memoria), oppure null se il filtro è disattivato.
+     */
+    private synchronized Filtri filtri(int userId) {
+        if (attivo == null) {
+            Boolean univoco = expenseDAO.isImprontaUnivoca();
+            if (univoco == null) {
+                // Indice non leggibile: si riprova al prossimo uso, intanto ogni spesa viene cercata
+                return null;
+            }
+            attivo = univoco;
+            if (!attivo) {
+                System.err.println("Indice delle impronte non univoco: filtro dei doppioni disattivato, ogni spesa viene cercata sull'indice.");
+            }
+        }
+        return attivo ? filtri.computeIfAbsent(userId, id -> new Filtri()) : null;
+    }
+}
@@ -0,0 +1,94 @@
+package it.moneygement.service;
+
+import it.moneygement.dao.ExpenseDAO;
+import it.moneygement.dao.ExpenseStatsDAO;
+import it.moneygement.model.Categories;
+import it.moneygement.model.ExpenseStats;
+
+import java.time.YearMonth;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Statistiche di distribuzione degli importi delle spese (media, deviazione standard, mediana, 90° percentile)
+ * per categoria in un intervallo di mesi, senza rileggere tutte le spese a ogni richiesta.
+ * <p>
+ * Le statistiche sono salvate per mese in expense_stats e unite per l'intervallo richiesto: una richiesta
+ * su un anno legge 12 · 8 righe di pochi kB invece di tutte le spese. Un t-digest non permette di togliere
+ * un valore, quindi le modifiche non aggiornano le statistiche: i trigger del database invalidano le righe
+ * del mese toccato (da qualunque scrittore, anche dagli strumenti) e il mese viene ricalcolato, con una sola
+ * lettura delle sue spese, alla prima richiesta che lo comprende.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+class ExpenseStatistics {
+
+    private final ExpenseStatsDAO statsDAO;
+    private final ExpenseDAO expenseDAO;
+
+    ExpenseStatistics(ExpenseStatsDAO statsDAO, ExpenseDAO expenseDAO) {
+        this.statsDAO = statsDAO;
+        this.expenseDAO = expenseDAO;
+    }
+
+    /**
+     * Calcola le statistiche di un utente in un intervallo di mesi, ricalcolando e salvando i mesi non validi.
+     *
+     * @param userId L'ID dell'utente.
+     * @param da     Il primo mese.
+     * @param a      L'ultimo mese.
+     * @return Le statistiche di ogni categoria (anche vuote), oppure null in caso di errore del database.
+     */
+    Map<Categories, ExpenseStats> statistiche(int userId, YearMonth da, YearMonth a) {
+        Map<YearMonth, Map<Categories, ExpenseStats>> salvate = statsDAO.getStats(userId, da, a);
+        if (salvate == null) {
+            return null;
+        }
+
+        Map<Categories, ExpenseStats> totali = vuote();
+        for (YearMonth mese = da; !mese.isAfter(a); mese = mese.plusMonths(1)) {
+            Map<Categories, ExpenseStats> delMese = salvate.get(mese);
+            if (delMese == null || delMese.size() < Categories.values().length) {
+                delMese = ricalcola(userId, mese);
+                if (delMese == null) {
+                    return null;
+                }
+            }
+            for (ExpenseStats s : delMese.values()) {
+                totali.get(s.getCategoria()).unisci(s);
+            }
+        }
+        return totali;
+    }
+
+    // --- METODI PRIVATI ---
+
+    /**
+     * Ricalcola tutte le categorie di un mese con una lettura delle sue spese e le salva. Le versioni vengono
+     * lette prima delle spese: se una spesa cambia durante il calcolo, la riga resta non valida.
+     */
+    private Map<Categories, ExpenseStats> ricalcola(int userId, YearMonth mese) {
+        Map<Categories, Long> versioni = statsDAO.preparaMese(userId, mese);
+        if (versioni == null) {
+            return null;
+        }
+        Map<Categories, ExpenseStats> statistiche = vuote();
+        boolean letti = expenseDAO.forEachImporto(userId, mese.atDay(1), mese.atEndOfMonth(),
+                (categoria, importo) -> statistiche.get(categoria).aggiungi(importo));
+        if (!letti) {
+            return null;
+        }
+        // Se il salvataggio fallisce il mese verrà ricalcolato alla prossima richiesta
+        statsDAO.salvaMese(userId, mese, statistiche, versioni);
+        return statistiche;
+    }
+
+    private static Map<Categories, ExpenseStats> vuote() {
+        Map<Categories, ExpenseStats> statistiche = new EnumMap<>(Categories.class);
+        for (Categories categoria : Categories.values()) {
+            statistiche.put(categoria, new ExpenseStats(categoria));
+        }
+        return statistiche;
+    }
+}
@@ -0,0 +1,224 @@
+package it.moneygement.service;
+
+import it.moneygement.dao.ExpenseDAO;
+import it.moneygement.events.ChangeEvent;
+import it.moneygement.events.ExpenseChanged;
+import it.moneygement.events.UserChanged;
+import it.moneygement.model.Categories;
+import it.moneygement.model.SpendingForecast;
+import it.moneygement.utils.HoltWinters;
+
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Previsioni della spesa per categoria a fine mese e a fine anno, calcolate in anticipo e servite dalla memoria.
+ * <p>
+ * Per ogni utente e categoria un modello {@link HoltWinters} riceve i totali dei giorni chiusi (fino a ieri)
+ * degli ultimi {@value #GIORNI_STORICO} giorni: la prima volta tutti, poi solo i giorni chiusi dall'ultimo
+ * aggiornamento. La previsione di un periodo è il già speso più la parte non ancora spesa della previsione
+ * di oggi e le previsioni dei giorni rimanenti.
+ * </p>
+ * <p>
+ * Quando il {@code ChangeBus} segnala una modifica alle spese di un utente, le sue previsioni vengono
+ * ricalcolate subito con una sola query (totali di oggi, del mese, dell'anno e dei giorni chiusi); se il totale
+ * dei giorni chiusi non coincide più con quello ricevuto dai modelli (una spesa con data passata) i modelli
+ * vengono ricostruiti. Le modifiche massive o di utente sconosciuto invalidano tutti gli utenti, che vengono
+ * ricalcolati alla richiesta successiva. Le spese archiviate non vengono lette: l'archiviazione lascia nel
+ * database l'anno corrente e quello precedente, che contengono la finestra dei modelli.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+class ForecastEngine {
+
+    static final int GIORNI_STORICO = 365;
+    // Differenza ammessa tra i totali dei giorni chiusi (arrotondamenti delle somme in virgola mobile)
+    private static final double TOLLERANZA = 0.005;
+
+    /**
+     * Modelli e previsioni di un utente; l'oggetto fa anche da lock.
+     */
+    private static final class StatoUtente {
+        private final Map<Categories, HoltWinters> modelli = new EnumMap<>(Categories.class);
+        // Totale dei giorni ricevuti dai modelli, per riconoscere le modifiche ai giorni chiusi
+        private final Map<Categories, Double> ricevuto = new EnumMap<>(Categories.class);
+        // Primo giorno dei modelli (null: da ricostruire) e prossimo giorno da aggiungere
+        private LocalDate inizio;
+        private LocalDate prossimo;
+        private Map<Categories, SpendingForecast> previsioni = Map.of();
+        private LocalDate calcolateIl;
+        private boolean valide;
+    }
+
+    private final ExpenseDAO expenseDAO;
+    private final Clock clock;
+    private final Map<Integer, StatoUtente> stati = new ConcurrentHashMap<>();
+
+    /**
+     * @param expenseDAO Il DAO delle spese.
+     * @param clock      L'orologio che stabilisce il giorno corrente.
+     */
+    ForecastEngine(ExpenseDAO expenseDAO, Clock clock) {
+        this.expenseDAO = expenseDAO;
+        this.clock = clock;
+    }
+
+    /**
+     * @param userId L'id dell'utente.
+     * @return Le previsioni delle categorie con spese nella finestra o nell'anno corrente, oppure null
+     * se non è stato possibile leggere le spese.
+     */
+    Map<Categories, SpendingForecast> previsioni(int userId) {
+        StatoUtente stato = stati.computeIfAbsent(userId, id -> new StatoUtente());
+        synchronized (stato) {
+            if (!stato.valide || !LocalDate.now(clock).equals(stato.calcolateIl)) {
+                if (!aggiorna(userId, stato, true)) {
+                    return null;
+                }
+            }
+            return stato.previsioni;
+        }
+    }
+
+    /**
+     * Ricevitore del bus delle modifiche: ricalcola le previsioni degli utenti le cui spese sono cambiate
+     * (ricostruisce i modelli se è cambiata la valuta base).
+     */
+    void suModifiche(List<ChangeEvent> eventi) {
+        Set<Integer> utenti = new HashSet<>();
+        boolean tutti = false;
+        for (ChangeEvent evento : eventi) {
+            if (evento instanceof UserChanged utente) {
+                StatoUtente stato = stati.get(utente.getIdUtente());
+                if (stato != null) {
+                    synchronized (stato) {
+                        stato.inizio = null;
+                    }
+                    utenti.add(utente.getIdUtente());
+                }
+            } else if (evento instanceof ExpenseChanged spesa) {
+                if (spesa.getIdUtente() == 0 || spesa.getOperazione() == ChangeEvent.Operazione.BULK) {
+                    tutti = true;
+                } else {
+                    utenti.add(spesa.getIdUtente());
+                }
+            }
+        }
+        if (tutti) {
+            for (StatoUtente stato : stati.values()) {
+                synchronized (stato) {
+                    stato.valide = false;
+                }
+            }
+        }
+        for (int userId : utenti) {
+            StatoUtente stato = stati.get(userId);
+            if (stato == null) {
+                continue;
+            }
+            synchronized (stato) {
+                stato.valide = false;
+                aggiorna(userId, stato, true);
+            }
+        }
+    }
+
+    /**
+     * Dimentica i modelli in memoria di un utente (es. cancellato).
+     *
+     * @param userId L'id dell'utente.
+     */
+    void dimentica(int userId) {
+        stati.remove(userId);
+    }
+
+    // --- METODI PRIVATI ---
+
+    /**
+     * Aggiunge ai modelli i giorni chiusi mancanti e ricalcola le previsioni. Va chiamato tenendo il lock dello stato.
+     *
+     * @param riprova Se ricostruire i modelli quando i giorni chiusi sono cambiati.
+     * @return false se non è stato possibile leggere le spese.
+     */
+    private boolean aggiorna(int userId, StatoUtente stato, boolean riprova) {
+        LocalDate oggi = LocalDate.now(clock);
+        LocalDate ieri = oggi.minusDays(1);
+        if (stato.inizio == null || ChronoUnit.DAYS.between(stato.inizio, oggi) > 2L * GIORNI_STORICO) {
+            // Ricostruzione, anche quando la finestra è raddoppiata, perché conti solo l'ultimo anno
+            stato.inizio = oggi.minusDays(GIORNI_STORICO);
+            stato.prossimo = stato.inizio;
+            stato.modelli.clear();
+            stato.ricevuto.clear();
+            for (Categories categoria : Categories.values()) {
+                stato.modelli.put(categoria, new HoltWinters(stato.inizio));
+                stato.ricevuto.put(categoria, 0.0);
+            }
+        }
+
+        if (!stato.prossimo.isAfter(ieri)) {
+            Map<Categories, double[]> giornalieri = expenseDAO.getDailyTotalsByCategory(userId, stato.prossimo, ieri);
+            if (giornalieri == null) {
+                stato.inizio = null;
+                return false;
+            }
+            int giorni = (int) ChronoUnit.DAYS.between(stato.prossimo, oggi);
+            double[] vuoti = new double[giorni];
+            for (Categories categoria : Categories.values()) {
+                HoltWinters modello = stato.modelli.get(categoria);
+                double totale = 0;
+                for (double valore : giornalieri.getOrDefault(categoria, vuoti)) {
+                    modello.aggiungi(valore);
+                    totale += valore;
+                }
+                stato.ricevuto.merge(categoria, totale, Double::sum);
+            }
+            stato.prossimo = oggi;
+        }
+
+        Map<Categories, double[]> totali = expenseDAO.getProgressTotalsByCategory(userId, stato.inizio, oggi);
+        if (totali == null) {
+            return false;
+        }
+        for (Categories categoria : Categories.values()) {
+            double chiusi = totali.containsKey(categoria) ? totali.get(categoria)[0] : 0;
+            if (Math.abs(chiusi - stato.ricevuto.get(categoria)) > TOLLERANZA) {
+                // Modificata una spesa di un giorno chiuso: i modelli vanno ricostruiti
+                stato.inizio = null;
+                if (riprova) {
+                    return aggiorna(userId, stato, false);
+                }
+                break;
+            }
+        }
+
+        LocalDate domani = oggi.plusDays(1);
+        LocalDate fineMese = oggi.withDayOfMonth(oggi.lengthOfMonth());
+        LocalDate fineAnno = oggi.withDayOfYear(oggi.lengthOfYear());
+        Map<Categories, SpendingForecast> previsioni = new EnumMap<>(Categories.class);
+        for (Categories categoria : Categories.values()) {
+            double[] t = totali.getOrDefault(categoria, new double[4]);
+            if (stato.ricevuto.get(categoria) == 0 && t[3] == 0) {
+                continue;
+            }
+            HoltWinters modello = stato.modelli.get(categoria);
+            // La previsione di oggi conta solo per la parte non ancora spesa
+            double restoOggi = Math.max(0, modello.previsione(oggi) - t[1]);
+            previsioni.put(categoria, new SpendingForecast(categoria,
+                    t[2], t[2] + restoOggi + modello.somma(domani, fineMese),
+                    t[3], t[3] + restoOggi + modello.somma(domani, fineAnno)));
+        }
+        stato.previsioni = Collections.unmodifiableMap(previsioni);
+        stato.calcolateIl = oggi;
+        stato.valide = true;
+        return true;
+    }
+}
@@ -1,55 +1,203 @@
 package it.moneygement.service;
 
+import it.moneygement.dao.AnomalyBaselineDAO;
+import it.moneygement.dao.BudgetDAO;
+import it.moneygement.dao.ExchangeRateDAO;
 import it.moneygement.dao.ExpenseDAO;
+import it.moneygement.dao.ExpenseStatsDAO;
+import it.moneygement.dao.RecurringExpenseDAO;
+import it.moneygement.dao.SyncDAO;
+import it.moneygement.dao.TopExpenseDAO;
 import it.moneygement.dao.UserDAO;
+import it.moneygement.events.AnomalyListener;
+import it.moneygement.events.BudgetAlertListener;
+import it.moneygement.events.ChangeBus;
 import it.moneygement.exception.AuthenticationException;
+import it.moneygement.exception.ConflittoVersioneException;
+import it.moneygement.exception.SpesaArchiviataException;
+import it.moneygement.exception.SpesaDuplicataException;
+import it.moneygement.exception.DatiNonValidiException;
 import it.moneygement.exception.RisorsaNonTrovataException;
+import it.moneygement.exception.TroppiTentativiException;
+import it.moneygement.model.Budget;
+import it.moneygement.model.BudgetPeriod;
+import it.moneygement.model.BudgetStatus;
 import it.moneygement.model.Categories;
+import it.moneygement.model.ChangeBatch;
 import it.moneygement.model.Expense;
+import it.moneygement.model.ExpenseImportResult;
+import it.moneygement.model.ExpenseOrder;
+import it.moneygement.model.ExpenseStats;
+import it.moneygement.model.ExpenseUpdateResult;
+import it.moneygement.model.RankingMetric;
+import it.moneygement.model.RecurringExpense;
+import it.moneygement.model.SeriesPoint;
+import it.moneygement.model.SpendingForecast;
+import it.moneygement.model.TopExpenseRanking;
 import it.moneygement.model.User;
+import it.moneygement.utils.Downsampler;
+import it.moneygement.utils.RecurrenceRule;
 import it.moneygement.utils.SecurityUtils;
-import it.moneygement.utils.UserSession;
+import it.moneygement.utils.SessionContext;
+import it.moneygement.utils.SessionRegistry;
+import it.moneygement.utils.TokenBucketLimiter;
 
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
 
 /**
  * Service Layer: Lo "Chef" dell'applicazione.
  * Coordina le operazioni tra l'interfaccia grafica (Controller) e il database (DAO).
  * Gestisce la logica di business come l'hashing delle password e la validazione.
+ * <p>
+ * Ogni operazione riservata riceve esplicitamente il {@link SessionContext} dell'utente che la richiede:
+ * il Service non ha stato legato a un singolo utente e può servire molte sessioni in parallelo.
+ * </p>
  *
  * @author Stefano Bellan
  */
 public class MoneygementService {
 
+    // Numero massimo di modifiche restituite in un blocco di sincronizzazione
+    public static final int MAX_MODIFICHE_PER_BLOCCO = 1000;
+
+    // Numero massimo di punti di una serie per i grafici e di serie tenute in cache
+    public static final int MAX_PUNTI_SERIE = 5000;
+    // Giorni massimi dell'intervallo di una serie (circa 30 anni)
+    public static final int MAX_GIORNI_SERIE = 11_000;
+    private static final int MAX_SERIE_IN_CACHE = 256;
+
+    // Numero massimo di spese di un'importazione e di utenti con il filtro dei doppioni in memoria
+    public static final int MAX_SPESE_IMPORTAZIONE = 5000;
+    private static final int MAX_FILTRI_DOPPIONI = 4096;
+
+    // Numero massimo di voci richiedibili alle classifiche dei nomi di spesa (una in meno della capienza, per i limiti)
+    public static final int MAX_VOCI_CLASSIFICA = TopExpenseTracker.CAPIENZA - 1;
+
+    // Utenti autenticati di recente tenuti in memoria e tentativi di login ammessi:
+    // per email 5 di fila e poi uno ogni 30 secondi, per origine 20 di fila e poi due al secondo
+    private static final int MAX_UTENTI_IN_CACHE = 4096;
+    private static final int TENTATIVI_LOGIN_EMAIL = 5;
+    private static final Duration RICARICA_LOGIN_EMAIL = Duration.ofSeconds(30);
+    private static final int TENTATIVI_LOGIN_ORIGINE = 20;
+    private static final Duration RICARICA_LOGIN_ORIGINE = Duration.ofMillis(500);
+    private static final int MAX_CHIAVI_LOGIN = 100_000;
+
+    // Thread dedicati agli hash delle password (metà dei processori) e hash che possono attenderli
+    private static final int THREAD_HASH_PASSWORD = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static final int MAX_HASH_IN_CODA = 256;
+
+    // Durata delle sessioni: 30 minuti di inattività, al massimo 12 ore in totale
+    private static final Duration IDLE_TIMEOUT = Duration.ofMinutes(30);
+    private static final Duration ABSOLUTE_TIMEOUT = Duration.ofHours(12);
+
     // --- VARIABILI DI ISTANZA ---
     private final UserDAO userDAO;
     private final ExpenseDAO expenseDAO;
+    private final SyncDAO syncDAO;
+    private final SessionRegistry sessionRegistry;
+    private final UserCache userCache;
+    private final PasswordHasher passwordHasher;
+    private final TokenBucketLimiter tentativiPerEmail;
+    private final TokenBucketLimiter tentativiPerOrigine;
+    private final SeriesCache seriesCache;
+    private final CurrencyConverter currencyConverter;
+    private final ExpenseStatistics expenseStatistics;
+    private final BudgetEngine budgetEngine;
+    private final AnomalyDetector anomalyDetector;
+    private final ForecastEngine forecastEngine;
+    private final DuplicateGuard duplicateGuard;
+    private final TopExpenseTracker topExpenseTracker;
+    private final RecurringExpenseDAO recurringExpenseDAO;
+    private final RecurringScheduler recurringScheduler;
+    private boolean seriesCacheIscritta;
+    private boolean forecastEngineIscritto;
+    private boolean userCacheIscritta;
 
     // --- SINGLETON ---
     // Variabile statica dello stesso tipo della classe
     private static MoneygementService instance;
 
     /**
-     * Costruttore privato: Inizializza gli strumenti (DAO).
+     * Costruttore privato: Inizializza gli strumenti (DAO e registro delle sessioni).
      * Essendo privato, impedisce l'istanziazione diretta dall'esterno.
      */
     private MoneygementService() {
         this.userDAO = new UserDAO();
         this.expenseDAO = new ExpenseDAO();
+        this.syncDAO = new SyncDAO();
+        this.sessionRegistry = new SessionRegistry(IDLE_TIMEOUT, ABSOLUTE_TIMEOUT, Clock.systemUTC());
+        this.sessionRegistry.startReaper();
+        this.userCache = new UserCache(MAX_UTENTI_IN_CACHE);
+        this.passwordHasher = new PasswordHasher(THREAD_HASH_PASSWORD, MAX_HASH_IN_CODA);
+        this.tentativiPerEmail = new TokenBucketLimiter(TENTATIVI_LOGIN_EMAIL, RICARICA_LOGIN_EMAIL, MAX_CHIAVI_LOGIN, Clock.systemUTC());
+        this.tentativiPerOrigine = new TokenBucketLimiter(TENTATIVI_LOGIN_ORIGINE, RICARICA_LOGIN_ORIGINE, MAX_CHIAVI_LOGIN, Clock.systemUTC());
+        this.seriesCache = new SeriesCache(MAX_SERIE_IN_CACHE);
+        this.currencyConverter = new CurrencyConverter(new ExchangeRateDAO(), userDAO, Clock.systemUTC());
+        this.expenseStatistics = new ExpenseStatistics(new ExpenseStatsDAO(), expenseDAO);
+        this.budgetEngine = new BudgetEngine(new BudgetDAO(), expenseDAO, currencyConverter, Clock.systemDefaultZone());
+        this.anomalyDetector = new AnomalyDetector(new AnomalyBaselineDAO(), expenseDAO, currencyConverter, Clock.systemDefaultZone());
+        this.forecastEngine = new ForecastEngine(expenseDAO, Clock.systemDefaultZone());
+        this.duplicateGuard = new DuplicateGuard(expenseDAO, MAX_FILTRI_DOPPIONI);
+        this.topExpenseTracker = new TopExpenseTracker(new TopExpenseDAO(), expenseDAO, currencyConverter);
+        this.recurringExpenseDAO = new RecurringExpenseDAO();
+        this.recurringScheduler = new RecurringScheduler(recurringExpenseDAO, expenseDAO, budgetEngine, anomalyDetector, duplicateGuard,
+                topExpenseTracker, Clock.systemDefaultZone());
     }
 
     /**
      * Metodo pubblico statico per ottenere l'unica istanza (Singleton).
+     * Sincronizzato perché può essere chiamato contemporaneamente da più thread.
      * @return L'istanza condivisa di MoneygementService.
      */
-    public static MoneygementService getInstance() {
+    public static synchronized MoneygementService getInstance() {
         if (instance == null) {
             instance = new MoneygementService();
         }
         return instance;
     }
 
+    // --- GESTIONE SESSIONI ---
+
+    /**
+     * Recupera una sessione attiva a partire dal suo token (es. ricevuto da un client remoto).
+     *
+     * @param token Il token restituito dal login.
+     * @return Il contesto della sessione.
+     * @throws AuthenticationException se il token non esiste o la sessione è scaduta.
+     */
+    public SessionContext getSession(String token) {
+        SessionContext sessione = sessionRegistry.get(token);
+        if (sessione == null) {
+            throw new AuthenticationException("Sessione scaduta o non valida, effettuare di nuovo il login.");
+        }
+        return sessione;
+    }
+
+    /**
+     * Chiude la sessione indicata (logout).
+     *
+     * @param sessione La sessione da chiudere.
+     */
+    public void logout(SessionContext sessione) {
+        if (sessione != null) {
+            sessionRegistry.invalidate(sessione.getToken());
+        }
+    }
+
     // --- GESTIONE UTENTI ---
 
     /**
@@ -62,8 +210,8 @@ public class MoneygementService {
      * @param eta      Età dell'utente.
      */
     public void registerUser(String nome, String cognome, String email, String password, int eta) {
-        // 1. Rendiamo sicura la password
-        String passwordHash = SecurityUtils.hashPassword(password);
+        // 1. Rendiamo sicura la password (sui thread dedicati agli hash)
+        String passwordHash = passwordHasher.hash(password);
 
         // 2. Creiamo l'oggetto User
         User u = new User(nome, cognome, passwordHash, email, eta);
@@ -73,57 +221,106 @@ public class MoneygementService {
     }
 
     /**
-     * Effettua il login dell'utente verificando le credenziali.
+     * Effettua il login dell'utente verificando le credenziali e apre una nuova sessione.
      *
      * @param email    Email inserita.
      * @param password Password in chiaro inserita.
-     * @return L'oggetto User loggato.
-     * @throws AuthenticationException se le credenziali sono errate.
+     * @return Il contesto della nuova sessione (contiene il token e l'utente loggato).
+     * @throws AuthenticationException  se le credenziali sono errate.
+     * @throws TroppiTentativiException se ci sono stati troppi tentativi per l'email.
      */
-    public User login(String email, String password) {
-        String passwordHash = SecurityUtils.hashPassword(password);
-        User userTrovato = userDAO.login(email, passwordHash);
+    public SessionContext login(String email, String password) {
+        return login(email, password, null);
+    }
 
-        if (userTrovato == null) {
+    /**
+     * Effettua il login dell'utente verificando le credenziali e apre una nuova sessione.
+     * <p>
+     * Ogni tentativo consuma un gettone dell'email e uno dell'origine (vedi {@link TokenBucketLimiter}), restituiti
+     * se il login riesce: un flusso di tentativi falliti viene rifiutato prima di calcolare l'hash o di leggere il
+     * database, mentre gli utenti che entrano normalmente non vengono mai limitati. L'utente viene cercato per email,
+     * prima fra quelli autenticati di recente e poi nel database, e l'hash viene confrontato in tempo costante.
+     * Un hash salvato con un formato o un costo superato viene ricalcolato con la password appena verificata.
+     * </p>
+     *
+     * @param email    Email inserita.
+     * @param password Password in chiaro inserita.
+     * @param origine  L'origine della richiesta (es. l'indirizzo del client), oppure null se non è nota.
+     * @return Il contesto della nuova sessione (contiene il token e l'utente loggato).
+     * @throws AuthenticationException  se le credenziali sono errate.
+     * @throws TroppiTentativiException se ci sono stati troppi tentativi per l'email o dall'origine.
+     */
+    public SessionContext login(String email, String password, String origine) {
+        if (email == null || password == null) {
             throw new AuthenticationException("Email o Password non validi!!!");
-        } else {
-            // Salviamo l'utente nella sessione globale
-            UserSession.getInstance().setUser(userTrovato);
         }
-        return userTrovato;
+        if (origine != null && !tentativiPerOrigine.consuma(origine)) {
+            throw new TroppiTentativiException("Troppi tentativi di accesso, riprovare più tardi.", tentativiPerOrigine.attesa(origine));
+        }
+        if (!tentativiPerEmail.consuma(email)) {
+            throw new TroppiTentativiException("Troppi tentativi di accesso per questa email, riprovare più tardi.",
+                    tentativiPerEmail.attesa(email));
+        }
+        iscriviUserCache();
+
+        User userTrovato = userCache.get(email);
+        if (userTrovato != null && !passwordHasher.verifica(password, userTrovato.getPasswordHash())) {
+            // La password può essere cambiata altrove dopo l'ultimo login: si ricontrolla sul database
+            userCache.dimentica(userTrovato.getId());
+            userTrovato = null;
+        }
+        if (userTrovato == null) {
+            userTrovato = userDAO.getUserByEmail(email);
+            if (!passwordHasher.verifica(password, userTrovato == null ? null : userTrovato.getPasswordHash())) {
+                throw new AuthenticationException("Email o Password non validi!!!");
+            }
+            aggiornaHashSuperato(userTrovato, password);
+            userCache.put(userTrovato);
+        }
+
+        tentativiPerEmail.restituisci(email);
+        if (origine != null) {
+            tentativiPerOrigine.restituisci(origine);
+        }
+        // Registriamo la sessione: il token identifica l'utente nelle richieste successive
+        return sessionRegistry.create(userTrovato);
     }
 
     /**
-     * Aggiorna i dati dell'utente attualmente loggato.
+     * Aggiorna i dati dell'utente della sessione.
      *
+     * @param sessione La sessione dell'utente.
      * @param nome     Nuovo nome.
      * @param cognome  Nuovo cognome.
      * @param password Nuova password in chiaro.
      * @param email    Nuova email.
      * @param eta      Nuova età.
+     * @throws IllegalStateException se i dati non possono essere salvati (cache e sessioni restano invariate).
      */
-    public void updateUser(String nome, String cognome, String password, String email, int eta) {
-        String passwordHash = SecurityUtils.hashPassword(password);
-        User utenteLoggato = UserSession.getInstance().getUser();
+    public void updateUser(SessionContext sessione, String nome, String cognome, String password, String email, int eta) {
+        int idUtente = requireSession(sessione).getUserId();
+        String passwordHash = passwordHasher.hash(password);
 
-        // Aggiorniamo l'oggetto in memoria prima di passarlo al DAO
-        utenteLoggato.setNome(nome);
-        utenteLoggato.setCognome(cognome);
-        utenteLoggato.setPasswordHash(passwordHash);
-        utenteLoggato.setEmail(email);
-        utenteLoggato.setEta(eta);
+        // Un nuovo oggetto (validato dal costruttore): le sessioni cambiano solo dopo il salvataggio, e per intero
+        User aggiornato = new User(nome, cognome, passwordHash, email, eta);
+        aggiornato.setId(idUtente);
 
-        userDAO.updateUser(utenteLoggato);
+        if (!userDAO.updateUser(aggiornato)) {
+            throw new IllegalStateException("Impossibile aggiornare l'utente con id: " + idUtente);
+        }
+        userCache.dimentica(idUtente);
+        sessionRegistry.updateUser(aggiornato);
     }
 
     /**
-     * Recupera l'utente loggato dal database tramite il suo ID.
+     * Recupera l'utente della sessione dal database tramite il suo ID.
      *
+     * @param sessione La sessione dell'utente.
      * @return L'oggetto User trovato.
      * @throws RisorsaNonTrovataException se l'utente non esiste nel DB.
      */
-    public User findUserById() throws RisorsaNonTrovataException {
-        int idUtente = UserSession.getInstance().getUser().getId();
+    public User findUserById(SessionContext sessione) throws RisorsaNonTrovataException {
+        int idUtente = requireSession(sessione).getUserId();
         User utenteTrovato = userDAO.getUserById(idUtente);
 
         if (utenteTrovato == null) {
@@ -134,42 +331,217 @@ public class MoneygementService {
     }
 
     /**
-     * Elimina l'account dell'utente attualmente loggato.
+     * Elimina l'account dell'utente della sessione, con tutte le sue spese (anche quelle archiviate),
+     * e chiude tutte le sue sessioni.
+     *
+     * @param sessione La sessione dell'utente.
+     * @throws IllegalStateException se le spese archiviate non possono essere cancellate.
      */
-    public void deleteUserById() { // CORREZIONE STILE: CamelCase (da DeleteUserbyId a deleteUserById)
-        int idUtente = UserSession.getInstance().getUser().getId();
+    public void deleteUserById(SessionContext sessione) { // CORREZIONE STILE: CamelCase (da DeleteUserbyId a deleteUserById)
+        int idUtente = requireSession(sessione).getUserId();
+        // Prima gli archivi: se la loro pulizia fallisce l'account resta e la cancellazione si può ripetere
+        if (!expenseDAO.deleteArchivedExpenses(idUtente)) {
+            throw new IllegalStateException("Impossibile cancellare le spese archiviate dell'utente con id: " + idUtente);
+        }
         userDAO.deleteUser(idUtente);
-        UserSession.getInstance().clearSession();
+        recurringExpenseDAO.deleteRecurringExpensesByUserId(idUtente);
+        sessionRegistry.invalidateUser(idUtente);
+        userCache.dimentica(idUtente);
+        budgetEngine.dimentica(idUtente);
+        anomalyDetector.dimentica(idUtente);
+        forecastEngine.dimentica(idUtente);
+        duplicateGuard.dimentica(idUtente);
+        topExpenseTracker.dimentica(idUtente);
+        currencyConverter.dimentica(idUtente);
+    }
+
+    /**
+     * Restituisce la valuta base dell'utente della sessione, in cui vengono calcolati totali, serie e budget.
+     *
+     * @param sessione La sessione dell'utente.
+     * @return Il codice della valuta base.
+     */
+    public String getBaseCurrency(SessionContext sessione) {
+        return currencyConverter.valutaBase(requireSession(sessione).getUserId());
+    }
+
+    /**
+     * Cambia la valuta base dell'utente della sessione. Le spese restano nella loro valuta: totali e budget
+     * vengono ricalcolati nella nuova valuta (i limiti dei budget non vengono convertiti).
+     *
+     * @param sessione La sessione dell'utente.
+     * @param valuta   Il codice della nuova valuta base.
+     * @throws DatiNonValidiException se la valuta non ha un tasso di cambio.
+     * @throws IllegalStateException  se la valuta non può essere salvata.
+     */
+    public void setBaseCurrency(SessionContext sessione, String valuta) {
+        int userId = requireSession(sessione).getUserId();
+        richiediValuta(valuta);
+        synchronized (budgetEngine.lock(userId)) {
+            if (!userDAO.updateBaseCurrency(userId, valuta)) {
+                throw new IllegalStateException("Impossibile salvare la valuta base.");
+            }
+            currencyConverter.dimentica(userId);
+            anomalyDetector.azzera(userId);
+        }
+        budgetEngine.ricarica(userId);
+    }
+
+    /**
+     * Converte l'importo di una spesa nella valuta base dell'utente della sessione, con i tassi in memoria.
+     *
+     * @param sessione La sessione dell'utente.
+     * @param spesa    La spesa.
+     * @return L'importo convertito.
+     */
+    public double getImportoInValutaBase(SessionContext sessione, Expense spesa) {
+        return currencyConverter.inValutaBase(requireSession(sessione).getUserId(), spesa);
     }
 
     // --- GESTIONE SPESE ---
 
     /**
-     * Aggiunge una nuova spesa per l'utente loggato.
+     * Aggiunge una nuova spesa per l'utente della sessione.
+     *
+     * @param sessione La sessione dell'utente.
+     * @param nome     Nome spesa.
+     * @param cat      Categoria.
+     * @param desc     Descrizione.
+     * @param importo  Importo.
+     * @param data     Data.
+     * @return La spesa salvata, con id e versione assegnati dal database.
+     */
+    public Expense addExpense(SessionContext sessione, String nome, Categories cat, String desc, double importo, LocalDateTime data) {
+        return addExpense(sessione, nome, cat, desc, importo, null, data);
+    }
+
+    /**
+     * Aggiunge una nuova spesa in una valuta qualsiasi per l'utente della sessione.
      *
-     * @param nome    Nome spesa.
-     * @param cat     Categoria.
-     * @param desc    Descrizione.
-     * @param importo Importo.
-     * @param data    Data.
+     * @param sessione La sessione dell'utente.
+     * @param nome     Nome spesa.
+     * @param cat      Categoria.
+     * @param desc     Descrizione.
+     * @param importo  Importo, nella valuta indicata.
+     * @param valuta   Codice della valuta (null per la valuta base dell'utente).
+     * @param data     Data.
+     * @return La spesa salvata, con id e versione assegnati dal database.
+     * @throws DatiNonValidiException se la valuta non ha un tasso di cambio.
+     * @throws SpesaDuplicataException se l'utente ha già una spesa con stesso nome, importo, valuta e data.
+     * @throws IllegalStateException   se la spesa non può essere salvata.
      */
-    public void addExpense(String nome, Categories cat, String desc, double importo, LocalDateTime data) {
-        User userLoggato = UserSession.getInstance().getUser();
+    public Expense addExpense(SessionContext sessione, String nome, Categories cat, String desc, double importo, String valuta, LocalDateTime data) {
+        int userId = requireSession(sessione).getUserId();
         Expense spesa = new Expense(nome, cat, desc, importo, data);
+        spesa.setValuta(valuta == null ? currencyConverter.valutaBase(userId) : richiediValuta(valuta));
         // Colleghiamo la spesa all'utente corrente
-        spesa.setIdUtente(userLoggato.getId());
+        spesa.setIdUtente(userId);
+
+        // L'indice delle impronte viene interrogato solo se il filtro non esclude il doppione
+        if (duplicateGuard.forseDuplicata(userId, spesa) && expenseDAO.existsImpronta(spesa)) {
+            throw duplicata(spesa);
+        }
 
-        expenseDAO.addExpense(spesa);
+        // Budget, baseline delle anomalie e classifiche dei nomi vengono aggiornati insieme al salvataggio,
+        // sotto il lock dell'utente (vedi BudgetEngine, AnomalyDetector e TopExpenseTracker)
+        synchronized (budgetEngine.lock(userId)) {
+            boolean budget = budgetEngine.prepara(userId);
+            anomalyDetector.prepara(userId);
+            if (!expenseDAO.addExpense(spesa)) {
+                throw new IllegalStateException("Impossibile salvare la spesa.");
+            }
+            if (spesa.getId() > 0) {
+                if (budget) {
+                    budgetEngine.spesaAggiunta(userId, spesa);
+                }
+                anomalyDetector.spesaAggiunta(userId, spesa);
+                duplicateGuard.aggiungi(userId, spesa);
+                topExpenseTracker.spesaAggiunta(userId, spesa);
+            } else if (expenseDAO.existsImpronta(spesa)) {
+                // Doppione non escluso dal filtro (es. scritto da uno strumento) e fermato dall'indice
+                throw duplicata(spesa);
+            } else {
+                // Nessun id e nessun doppione trovato: la spesa non è stata salvata
+                throw new IllegalStateException("Impossibile salvare la spesa.");
+            }
+        }
+        return spesa;
     }
 
     /**
-     * Recupera la lista di tutte le spese dell'utente loggato.
+     * Importa un elenco di spese per l'utente della sessione (es. un estratto conto), saltando quelle uguali
+     * (stesso nome, importo, valuta e data) a spese già presenti o a spese precedenti dello stesso elenco.
+     * <p>
+     * I doppioni vengono riconosciuti in un unico passaggio sull'elenco: il filtro dei doppioni in memoria esclude
+     * quasi tutte le spese nuove senza accedere al database, e solo le altre vengono cercate sull'indice delle impronte.
+     * Le spese nuove vengono salvate in un'unica transazione e aggiornano i budget; non vengono valutate
+     * come possibili spese anomale.
+     * </p>
      *
+     * @param sessione La sessione dell'utente.
+     * @param spese    Le spese da importare, non ancora salvate (al massimo {@value #MAX_SPESE_IMPORTAZIONE}).
+     * @param valuta   La valuta di tutte le spese (null per la valuta base dell'utente).
+     * @return Le spese salvate e le posizioni dei doppioni.
+     * @throws IllegalArgumentException se le spese sono troppe o la valuta non ha un tasso di cambio.
+     * @throws IllegalStateException    se le spese non possono essere salvate.
+     */
+    public ExpenseImportResult importExpenses(SessionContext sessione, List<Expense> spese, String valuta) {
+        int userId = requireSession(sessione).getUserId();
+        if (spese.size() > MAX_SPESE_IMPORTAZIONE) {
+            throw new IllegalArgumentException("Non si possono importare più di " + MAX_SPESE_IMPORTAZIONE + " spese alla volta");
+        }
+        String valutaSpese = valuta == null ? currencyConverter.valutaBase(userId) : richiediValuta(valuta);
+        Set<String> viste = new HashSet<>();
+        List<Expense> nuove = new ArrayList<>();
+        List<Integer> posizioni = new ArrayList<>();
+        List<Integer> duplicate = new ArrayList<>();
+        for (int i = 0; i < spese.size(); i++) {
+            Expense spesa = spese.get(i);
+            spesa.setValuta(valutaSpese);
+            spesa.setIdUtente(userId);
+            if (!viste.add(ExpenseDAO.impronta(spesa))
+                    || (duplicateGuard.forseDuplicata(userId, spesa) && expenseDAO.existsImpronta(spesa))) {
+                duplicate.add(i);
+            } else {
+                nuove.add(spesa);
+                posizioni.add(i);
+            }
+        }
+
+        List<Expense> importate = new ArrayList<>(nuove.size());
+        synchronized (budgetEngine.lock(userId)) {
+            boolean budget = budgetEngine.prepara(userId);
+            if (!expenseDAO.addExpenses(userId, nuove)) {
+                throw new IllegalStateException("Impossibile importare le spese");
+            }
+            for (int i = 0; i < nuove.size(); i++) {
+                Expense spesa = nuove.get(i);
+                if (spesa.getId() == 0) {
+                    // Doppione fermato dall'indice
+                    duplicate.add(posizioni.get(i));
+                    continue;
+                }
+                if (budget) {
+                    budgetEngine.spesaAggiunta(userId, spesa);
+                }
+                duplicateGuard.aggiungi(userId, spesa);
+                importate.add(spesa);
+            }
+            topExpenseTracker.speseAggiunte(userId, importate);
+        }
+        Collections.sort(duplicate);
+        return new ExpenseImportResult(importate, duplicate);
+    }
+
+    /**
+     * Recupera la lista di tutte le spese dell'utente della sessione.
+     *
+     * @param sessione La sessione dell'utente.
      * @return Una lista di oggetti Expense.
      * @throws RisorsaNonTrovataException se la lista è vuota.
      */
-    public List<Expense> getExpensesByUserId() throws RisorsaNonTrovataException {
-        int userId = UserSession.getInstance().getUser().getId();
+    public List<Expense> getExpensesByUserId(SessionContext sessione) throws RisorsaNonTrovataException {
+        int userId = requireSession(sessione).getUserId();
         List<Expense> spese = expenseDAO.getExpensesByUserId(userId);
 
         // I DAO restituiscono tipicamente una lista vuota se non trovano nulla, non null.
@@ -180,46 +552,261 @@ public class MoneygementService {
     }
 
     /**
-     * Aggiorna una spesa esistente.
+     * Scorre le spese dell'utente della sessione senza caricarle tutte in memoria.
      *
-     * @param idSpesa ID univoco della spesa da modificare.
-     * @param nome    Nuovo nome.
-     * @param cat     Nuova categoria.
-     * @param desc    Nuova descrizione.
-     * @param importo Nuovo importo.
-     * @param data    Nuova data.
+     * @param sessione  La sessione dell'utente.
+     * @param categoria La categoria da filtrare, oppure null per tutte.
+     * @param consumer  Riceve le spese una alla volta.
+     * @throws IllegalStateException se la lettura si interrompe per un errore del database (il consumer può
+     *                               aver già ricevuto una parte delle spese).
      */
-    public void updateExpense(int idSpesa, String nome, Categories cat, String desc, double importo, LocalDateTime data) { // CORREZIONE STILE: CamelCase e nome (da UpdateExpenses a updateExpense)
-        User userLoggato = UserSession.getInstance().getUser();
+    public void forEachExpense(SessionContext sessione, Categories categoria, Consumer<Expense> consumer) {
+        int userId = requireSession(sessione).getUserId();
+        if (!expenseDAO.forEachExpense(userId, categoria, consumer)) {
+            throw new IllegalStateException("Errore nella lettura delle spese.");
+        }
+    }
+
+    /**
+     * Recupera una singola spesa dell'utente della sessione (es. per aggiornare una vista dopo una modifica).
+     *
+     * @param sessione La sessione dell'utente.
+     * @param idSpesa  L'ID della spesa.
+     * @return La spesa, oppure null se non esiste o appartiene a un altro utente.
+     */
+    public Expense findExpenseById(SessionContext sessione, int idSpesa) {
+        int userId = requireSession(sessione).getUserId();
+        return expenseDAO.getExpenseById(idSpesa, userId);
+    }
+
+    /**
+     * Aggiorna una spesa esistente solo se nel frattempo nessun altro l'ha modificata.
+     *
+     * @param sessione       La sessione dell'utente.
+     * @param idSpesa        ID univoco della spesa da modificare.
+     * @param versioneAttesa Versione della spesa letta dal client prima della modifica.
+     * @param nome           Nuovo nome.
+     * @param cat            Nuova categoria.
+     * @param desc           Nuova descrizione.
+     * @param importo        Nuovo importo.
+     * @param data           Nuova data.
+     * @return L'esito dell'aggiornamento; in caso di conflitto contiene la spesa attualmente salvata.
+     */
+    public ExpenseUpdateResult updateExpense(SessionContext sessione, int idSpesa, int versioneAttesa, String nome, Categories cat, String desc, double importo, LocalDateTime data) { // CORREZIONE STILE: CamelCase e nome (da UpdateExpenses a updateExpense)
+        return updateExpense(sessione, idSpesa, versioneAttesa, nome, cat, desc, importo, null, data);
+    }
+
+    /**
+     * Aggiorna una spesa esistente, anche nella valuta, solo se nel frattempo nessun altro l'ha modificata.
+     *
+     * @param sessione       La sessione dell'utente.
+     * @param idSpesa        ID univoco della spesa da modificare.
+     * @param versioneAttesa Versione della spesa letta dal client prima della modifica.
+     * @param nome           Nuovo nome.
+     * @param cat            Nuova categoria.
+     * @param desc           Nuova descrizione.
+     * @param importo        Nuovo importo.
+     * @param valuta         Nuova valuta (null per mantenere quella della spesa).
+     * @param data           Nuova data.
+     * @return L'esito dell'aggiornamento; in caso di conflitto contiene la spesa attualmente salvata.
+     * @throws DatiNonValidiException se la valuta non ha un tasso di cambio.
+     * @throws IllegalStateException  se il database restituisce un errore.
+     */
+    public ExpenseUpdateResult updateExpense(SessionContext sessione, int idSpesa, int versioneAttesa, String nome, Categories cat, String desc, double importo, String valuta, LocalDateTime data) {
+        int userId = requireSession(sessione).getUserId();
 
         // Creiamo un nuovo oggetto Expense con i dati aggiornati
         Expense spesa = new Expense(nome, cat, desc, importo, data);
+        if (valuta != null) {
+            spesa.setValuta(richiediValuta(valuta));
+        }
         spesa.setId(idSpesa);
+        spesa.setVersion(versioneAttesa);
 
         // Manteniamo il riferimento all'utente proprietario
-        spesa.setIdUtente(userLoggato.getId());
+        spesa.setIdUtente(userId);
+
+        // Senza valuta resta quella salvata, scelta dall'UPDATE stesso (vedi ExpenseDAO)
+        return aggiornaSpesa(userId, spesa, valuta != null);
+    }
+
+    /**
+     * Aggiorna una spesa e, in caso di conflitto, riprova unendo le modifiche con lo stato attuale.
+     * <p>
+     * Ad ogni conflitto la strategia di merge riceve la spesa modificata dal client e quella
+     * attualmente salvata (restituita direttamente dal DAO, senza ulteriori letture) e produce
+     * la versione da salvare. Il tentativo successivo usa la versione della spesa corrente.
+     * </p>
+     *
+     * @param sessione       La sessione dell'utente.
+     * @param modificata     La spesa con le modifiche del client (id e versione letta inclusi).
+     * @param strategiaMerge Funzione (modificata, corrente) che restituisce la spesa da salvare.
+     * @param maxTentativi   Numero massimo di tentativi (almeno 1).
+     * @return La spesa salvata, con la nuova versione.
+     * @throws IllegalArgumentException   se il numero di tentativi è minore di 1.
+     * @throws RisorsaNonTrovataException se la spesa non esiste più.
+     * @throws ConflittoVersioneException se il conflitto persiste dopo tutti i tentativi.
+     * @throws SpesaDuplicataException    se con le modifiche la spesa sarebbe uguale a un'altra spesa dell'utente.
+     * @throws SpesaArchiviataException   se la spesa appartiene a un anno archiviato.
+     * @throws IllegalStateException      se il database restituisce un errore.
+     */
+    public Expense updateExpenseWithMerge(SessionContext sessione, Expense modificata, BinaryOperator<Expense> strategiaMerge, int maxTentativi) throws RisorsaNonTrovataException {
+        int userId = requireSession(sessione).getUserId();
+        if (maxTentativi < 1) {
+            throw new IllegalArgumentException("Il numero di tentativi deve essere almeno 1");
+        }
+        Expense daSalvare = modificata;
+
+        for (int tentativo = 1; tentativo <= maxTentativi; tentativo++) {
+            daSalvare.setIdUtente(userId);
+            ExpenseUpdateResult esito = aggiornaSpesa(userId, daSalvare, true);
 
-        expenseDAO.updateExpense(spesa);
+            switch (esito.getEsito()) {
+                case AGGIORNATA:
+                    return daSalvare;
+                case NON_TROVATA:
+                    throw new RisorsaNonTrovataException("Spesa con id: " + modificata.getId() + " non trovata nel database!!");
+                case ARCHIVIATA:
+                    throw archiviata(modificata.getId());
+                case DUPLICATA:
+                    throw duplicata(daSalvare);
+                case CONFLITTO:
+                    Expense corrente = esito.getSpesaCorrente();
+                    daSalvare = strategiaMerge.apply(modificata, corrente);
+                    // Il prossimo tentativo parte dalla versione appena letta
+                    daSalvare.setId(corrente.getId());
+                    daSalvare.setVersion(corrente.getVersion());
+                    break;
+            }
+        }
+        throw new ConflittoVersioneException("La spesa con id: " + modificata.getId() + " è stata modificata troppe volte, riprovare più tardi.");
     }
 
     /**
-     * Cancella una spesa specifica tramite il suo ID.
+     * Cancella una spesa specifica dell'utente della sessione tramite il suo ID.
      *
-     * @param idSpesa ID della spesa da eliminare.
+     * @param sessione La sessione dell'utente.
+     * @param idSpesa  ID della spesa da eliminare.
+     * @throws SpesaArchiviataException se la spesa appartiene a un anno archiviato.
      */
-    public void deleteExpenseById(int idSpesa) { // CORREZIONE STILE: CamelCase (da DeleteExpensebyId a deleteExpenseById)
-        expenseDAO.deleteExpense(idSpesa);
+    public void deleteExpenseById(SessionContext sessione, int idSpesa) { // CORREZIONE STILE: CamelCase (da DeleteExpensebyId a deleteExpenseById)
+        int userId = requireSession(sessione).getUserId();
+        synchronized (budgetEngine.lock(userId)) {
+            boolean budget = budgetEngine.prepara(userId);
+            // La cancellazione restituisce la riga cancellata: serve per toglierla dai budget e dalle classifiche
+            Expense eliminata = expenseDAO.deleteExpense(idSpesa, userId);
+            if (eliminata != null) {
+                if (budget) {
+                    budgetEngine.spesaEliminata(userId, eliminata);
+                }
+                topExpenseTracker.spesaEliminata(userId, eliminata);
+            } else if (expenseDAO.getArchivedExpenseById(idSpesa, userId) != null) {
+                throw archiviata(idSpesa);
+            }
+        }
+    }
+
+    /**
+     * Cambia la categoria di tutte le spese dell'utente della sessione con un certo nome (senza distinguere
+     * maiuscole e spazi esterni), con una sola istruzione sul database invece di un aggiornamento per spesa.
+     *
+     * @param sessione  La sessione dell'utente.
+     * @param nome      Il nome delle spese.
+     * @param categoria La nuova categoria.
+     * @return Il numero di spese modificate.
+     * @throws IllegalArgumentException se il nome è vuoto o la categoria manca.
+     * @throws IllegalStateException    se le spese non possono essere modificate.
+     */
+    public int recategorizeExpenses(SessionContext sessione, String nome, Categories categoria) {
+        int userId = requireSession(sessione).getUserId();
+        if (nome == null || nome.isBlank() || categoria == null) {
+            throw new IllegalArgumentException("Nome e categoria sono obbligatori");
+        }
+        synchronized (budgetEngine.lock(userId)) {
+            int modificate = expenseDAO.updateCategoryByName(userId, nome, categoria);
+            if (modificate < 0) {
+                throw new IllegalStateException("Impossibile modificare la categoria delle spese");
+            }
+            // I budget vengono riletti dal database, invece di applicare le modifiche spesa per spesa
+            budgetEngine.ricarica(userId);
+            return modificate;
+        }
+    }
+
+    /**
+     * Cancella con una sola istruzione le spese dell'utente della sessione in un intervallo di giorni
+     * (es. un mese importato per errore). Le spese degli anni archiviati non vengono toccate.
+     *
+     * @param sessione  La sessione dell'utente.
+     * @param da        Il primo giorno.
+     * @param a         L'ultimo giorno (compreso).
+     * @param categoria La categoria da cancellare, oppure null per tutte.
+     * @return Il numero di spese cancellate.
+     * @throws IllegalArgumentException se l'intervallo è invertito.
+     * @throws IllegalStateException    se le spese non possono essere cancellate.
+     */
+    public int deleteExpensesInRange(SessionContext sessione, LocalDate da, LocalDate a, Categories categoria) {
+        int userId = requireSession(sessione).getUserId();
+        if (a.isBefore(da)) {
+            throw new IllegalArgumentException("La data finale precede quella iniziale");
+        }
+        synchronized (budgetEngine.lock(userId)) {
+            int eliminate = expenseDAO.deleteExpensesInRange(userId, da, a, categoria);
+            if (eliminate < 0) {
+                throw new IllegalStateException("Impossibile cancellare le spese");
+            }
+            budgetEngine.ricarica(userId);
+            if (eliminate > 0) {
+                // Come i budget, le classifiche dei nomi vengono ricostruite invece di togliere le spese una a una
+                topExpenseTracker.invalida(userId);
+            }
+            return eliminate;
+        }
+    }
+
+    /**
+     * Sposta la data delle spese dell'utente della sessione in un intervallo di giorni (es. un estratto conto
+     * importato con il fuso orario sbagliato), in un'unica transazione. Le spese degli anni archiviati non vengono toccate.
+     *
+     * @param sessione    La sessione dell'utente.
+     * @param da          Il primo giorno.
+     * @param a           L'ultimo giorno (compreso).
+     * @param spostamento Lo spostamento, al secondo (negativo per anticipare).
+     * @return Il numero di spese spostate.
+     * @throws IllegalArgumentException se l'intervallo è invertito.
+     * @throws SpesaDuplicataException  se una spesa spostata diventerebbe uguale a una esistente (nessuna viene spostata).
+     * @throws IllegalStateException    se le spese non possono essere spostate.
+     */
+    public int shiftExpenseDates(SessionContext sessione, LocalDate da, LocalDate a, Duration spostamento) {
+        int userId = requireSession(sessione).getUserId();
+        if (a.isBefore(da)) {
+            throw new IllegalArgumentException("La data finale precede quella iniziale");
+        }
+        if (spostamento.getSeconds() == 0) {
+            return 0;
+        }
+        synchronized (budgetEngine.lock(userId)) {
+            int spostate = expenseDAO.shiftDates(userId, da, a, spostamento);
+            if (spostate < 0) {
+                throw new IllegalStateException("Impossibile spostare le date delle spese");
+            }
+            budgetEngine.ricarica(userId);
+            // Le impronte delle spese spostate sono cambiate: il filtro dei doppioni viene ricostruito
+            duplicateGuard.dimentica(userId);
+            return spostate;
+        }
     }
 
     /**
      * Cerca le spese per una specifica categoria.
      *
-     * @param cat La categoria da cercare.
+     * @param sessione La sessione dell'utente.
+     * @param cat      La categoria da cercare.
      * @return Una lista di spese filtrate.
      * @throws RisorsaNonTrovataException se nessuna spesa corrisponde ai criteri.
      */
-    public List<Expense> searchByCategory(Categories cat) throws RisorsaNonTrovataException {
-        int userId = UserSession.getInstance().getUser().getId();
+    public List<Expense> searchByCategory(SessionContext sessione, Categories cat) throws RisorsaNonTrovataException {
+        int userId = requireSession(sessione).getUserId();
         List<Expense> spese = expenseDAO.searchByCategory(userId, cat);
 
         if (spese.isEmpty()) {
@@ -227,4 +814,522 @@ public class MoneygementService {
         }
         return spese;
     }
-}
\ No newline at end of file
+
+    /**
+     * Recupera le spese dell'utente della sessione in un intervallo di date, comprese quelle archiviate.
+     *
+     * @param sessione La sessione dell'utente.
+     * @param da       Il primo giorno dell'intervallo.
+     * @param a        L'ultimo giorno dell'intervallo.
+     * @return Le spese dell'intervallo in ordine cronologico (eventualmente vuota).
+     * @throws IllegalArgumentException se l'intervallo è invertito.
+     */
+    public List<Expense> getExpensesInRange(SessionContext sessione, LocalDate da, LocalDate a) {
+        int userId = requireSession(sessione).getUserId();
+        if (a.isBefore(da)) {
+            throw new IllegalArgumentException("La data finale precede quella iniziale");
+        }
+        return expenseDAO.getExpensesInRange(userId, da, a);
+    }
+
+    /**
+     * Calcola i totali per categoria di un anno per l'utente della sessione.
+     *
+     * @param sessione La sessione dell'utente.
+     * @param anno     L'anno richiesto.
+     * @return I totali per categoria.
+     */
+    public Map<Categories, Double> getYearTotalsByCategory(SessionContext sessione, int anno) {
+        int userId = requireSession(sessione).getUserId();
+        return expenseDAO.getYearTotalsByCategory(userId, anno);
+    }
+
+    /**
+     * Restituisce la spesa giornaliera dell'utente della sessione in un intervallo, ridotta a un numero massimo
+     * di punti per i grafici. I giorni senza spese valgono 0; i totali vengono calcolati da SQLite e la
+     * serie ridotta resta in cache finché il bus delle modifiche non segnala un cambiamento delle spese
+     * o dei dati dell'utente (vedi {@link SeriesCache}).
+     *
+     * @param sessione La sessione dell'utente.
+     * @param da       Il primo giorno dell'intervallo.
+     * @param a        L'ultimo giorno dell'intervallo.
+     * @param punti    Il numero massimo di punti (da 4 a {@value #MAX_PUNTI_SERIE}).
+     * @param metodo   L'algoritmo di riduzione.
+     * @return La serie in ordine di data.
+     * @throws IllegalArgumentException se l'intervallo è invertito o il numero di punti non è valido.
+     * @throws DatiNonValidiException se l'intervallo supera {@value #MAX_GIORNI_SERIE} giorni.
+     */
+    public List<SeriesPoint> getDailySeries(SessionContext sessione, LocalDate da, LocalDate a, int punti, Downsampler.Metodo metodo) {
+        int userId = requireSession(sessione).getUserId();
+        if (a.isBefore(da)) {
+            throw new IllegalArgumentException("La data finale precede quella iniziale");
+        }
+        if (punti < 4 || punti > MAX_PUNTI_SERIE) {
+            throw new IllegalArgumentException("Il numero di punti deve essere compreso tra 4 e " + MAX_PUNTI_SERIE);
+        }
+        // La serie completa ha un punto per giorno: l'intervallo ne limita la memoria
+        if (ChronoUnit.DAYS.between(da, a) >= MAX_GIORNI_SERIE) {
+            throw new DatiNonValidiException("L'intervallo di una serie non può superare " + MAX_GIORNI_SERIE + " giorni");
+        }
+        iscriviSeriesCache();
+
+        String chiave = SeriesCache.chiave(userId, da, a, punti, metodo);
+        List<SeriesPoint> serie = seriesCache.get(chiave);
+        if (serie != null) {
+            return serie;
+        }
+        long generazione = seriesCache.generazione(userId);
+
+        // Serie completa: un punto per ogni giorno dell'intervallo
+        List<SeriesPoint> completa = new ArrayList<>();
+        Iterator<SeriesPoint> totali = expenseDAO.getDailyTotals(userId, da, a).iterator();
+        SeriesPoint prossimo = totali.hasNext() ? totali.next() : null;
+        for (LocalDate giorno = da; !giorno.isAfter(a); giorno = giorno.plusDays(1)) {
+            if (prossimo != null && prossimo.getGiorno().equals(giorno)) {
+                completa.add(prossimo);
+                prossimo = totali.hasNext() ? totali.next() : null;
+            } else {
+                completa.add(new SeriesPoint(giorno, 0));
+            }
+        }
+
+        serie = Collections.unmodifiableList(Downsampler.riduci(completa, punti, metodo));
+        seriesCache.put(userId, chiave, serie, generazione);
+        return serie;
+    }
+
+    /**
+     * Restituisce la distribuzione degli importi delle spese dell'utente della sessione per categoria in un
+     * intervallo di mesi (anche archiviati), nella valuta base: numero, media, deviazione standard, estremi e
+     * quantili stimati. Le statistiche dei mesi sono salvate nel database e ricalcolate solo quando le spese
+     * del mese cambiano.
+     *
+     * @param sessione La sessione dell'utente.
+     * @param da       Il primo mese.
+     * @param a        L'ultimo mese.
+     * @return Le statistiche delle sole categorie con almeno una spesa.
+     * @throws IllegalArgumentException se l'intervallo è invertito.
+     * @throws IllegalStateException    se le statistiche non possono essere calcolate.
+     */
+    public Map<Categories, ExpenseStats> getExpenseStats(SessionContext sessione, YearMonth da, YearMonth a) {
+        int userId = requireSession(sessione).getUserId();
+        if (a.isBefore(da)) {
+            throw new IllegalArgumentException("Il mese finale precede quello iniziale");
+        }
+        Map<Categories, ExpenseStats> statistiche = expenseStatistics.statistiche(userId, da, a);
+        if (statistiche == null) {
+            throw new IllegalStateException("Impossibile calcolare le statistiche delle spese");
+        }
+        statistiche.values().removeIf(s -> s.getNumero() == 0);
+        return statistiche;
+    }
+
+    /**
+     * Restituisce la previsione della spesa dell'utente della sessione per categoria a fine mese e a fine anno,
+     * nella valuta base. Le previsioni sono calcolate in anticipo e aggiornate a ogni modifica delle spese
+     * (vedi {@link ForecastEngine}): la richiesta non legge il database, salvo la prima di ogni giorno.
+     *
+     * @param sessione La sessione dell'utente.
+     * @return Le previsioni delle categorie con spese nell'ultimo anno.
+     * @throws IllegalStateException se le spese non possono essere lette.
+     */
+    public Map<Categories, SpendingForecast> getSpendingForecast(SessionContext sessione) {
+        int userId = requireSession(sessione).getUserId();
+        iscriviForecastEngine();
+        Map<Categories, SpendingForecast> previsioni = forecastEngine.previsioni(userId);
+        if (previsioni == null) {
+            throw new IllegalStateException("Impossibile calcolare le previsioni di spesa");
+        }
+        return previsioni;
+    }
+
+    /**
+     * Restituisce i nomi di spesa (negozi, descrizioni) su cui l'utente della sessione spende di più o che usa
+     * più spesso, su tutto lo storico. Le classifiche sono tenute nel database e aggiornate a ogni spesa scritta
+     * (vedi {@link TopExpenseTracker}), quindi la richiesta legge un numero fisso di righe qualunque sia il numero
+     * di spese, salvo la prima dell'utente che le costruisce; sono approssimate con i limiti descritti in
+     * {@link TopExpenseRanking}. I totali sono convertiti nella valuta base con i cambi attuali, come gli altri totali.
+     *
+     * @param sessione La sessione dell'utente.
+     * @param metrica  Il criterio della classifica.
+     * @param n        Il numero di voci (da 1 a {@value #MAX_VOCI_CLASSIFICA}).
+     * @return La classifica, con i totali nella valuta base.
+     * @throws IllegalArgumentException se il numero di voci non è valido.
+     * @throws IllegalStateException    se la classifica non può essere letta.
+     */
+    public TopExpenseRanking getTopExpenses(SessionContext sessione, RankingMetric metrica, int n) {
+        int userId = requireSession(sessione).getUserId();
+        if (n < 1 || n > MAX_VOCI_CLASSIFICA) {
+            throw new IllegalArgumentException("Il numero di voci deve essere compreso tra 1 e " + MAX_VOCI_CLASSIFICA);
+        }
+        TopExpenseRanking classifica;
+        synchronized (budgetEngine.lock(userId)) {
+            classifica = topExpenseTracker.classifica(userId, metrica, n);
+        }
+        if (classifica == null) {
+            throw new IllegalStateException("Impossibile leggere la classifica delle spese");
+        }
+        return classifica;
+    }
+
+    // --- BUDGET ---
+
+    /**
+     * Imposta il limite di spesa dell'utente della sessione per una categoria in un periodo
+     * (sostituisce il limite precedente per la stessa categoria e lo stesso periodo).
+     *
+     * @param sessione  La sessione dell'utente.
+     * @param categoria La categoria.
+     * @param periodo   Il periodo del limite.
+     * @param limite    L'importo massimo del periodo.
+     * @return La situazione del budget nel periodo corrente.
+     * @throws IllegalStateException se il budget non può essere salvato.
+     */
+    public BudgetStatus setBudget(SessionContext sessione, Categories categoria, BudgetPeriod periodo, double limite) {
+        int userId = requireSession(sessione).getUserId();
+        return budgetEngine.salva(userId, new Budget(categoria, periodo, limite));
+    }
+
+    /**
+     * Elimina un budget dell'utente della sessione.
+     *
+     * @param sessione  La sessione dell'utente.
+     * @param categoria La categoria.
+     * @param periodo   Il periodo.
+     * @throws RisorsaNonTrovataException se il budget non esiste.
+     */
+    public void deleteBudget(SessionContext sessione, Categories categoria, BudgetPeriod periodo) throws RisorsaNonTrovataException {
+        int userId = requireSession(sessione).getUserId();
+        if (!budgetEngine.elimina(userId, categoria, periodo)) {
+            throw new RisorsaNonTrovataException("Nessun budget " + periodo + " per la categoria " + categoria + ".");
+        }
+    }
+
+    /**
+     * Restituisce la situazione dei budget dell'utente della sessione nel periodo corrente,
+     * senza rileggere le spese (i totali sono tenuti aggiornati dal motore dei budget).
+     *
+     * @param sessione La sessione dell'utente.
+     * @return La situazione di ogni budget.
+     */
+    public List<BudgetStatus> getBudgetStatus(SessionContext sessione) {
+        int userId = requireSession(sessione).getUserId();
+        return budgetEngine.situazione(userId);
+    }
+
+    /**
+     * Registra un ricevitore degli avvisi sulle soglie dei budget (per tutti gli utenti).
+     *
+     * @param listener Il ricevitore.
+     */
+    public void addBudgetAlertListener(BudgetAlertListener listener) {
+        budgetEngine.addListener(listener);
+    }
+
+    public void removeBudgetAlertListener(BudgetAlertListener listener) {
+        budgetEngine.removeListener(listener);
+    }
+
+    // --- ANOMALIE ---
+
+    /**
+     * Registra un ricevitore delle segnalazioni di spese con importi anomali (per tutti gli utenti).
+     * Vengono valutate le spese aggiunte con {@code addExpense}, vedi {@link AnomalyDetector}.
+     *
+     * @param listener Il ricevitore.
+     */
+    public void addAnomalyListener(AnomalyListener listener) {
+        anomalyDetector.addListener(listener);
+    }
+
+    public void removeAnomalyListener(AnomalyListener listener) {
+        anomalyDetector.removeListener(listener);
+    }
+
+    /**
+     * Avvia il salvataggio periodico dell'andamento delle spese usato per riconoscere le anomalie.
+     *
+     * @param intervallo L'intervallo tra un salvataggio e il successivo.
+     */
+    public void startAnomalyDetector(Duration intervallo) {
+        anomalyDetector.start(intervallo);
+    }
+
+    /**
+     * Ferma il salvataggio periodico e salva lo stato in memoria (da chiamare alla chiusura).
+     */
+    public void stopAnomalyDetector() {
+        anomalyDetector.stop();
+    }
+
+    // --- SPESE RICORRENTI ---
+
+    /**
+     * Crea una spesa ricorrente per l'utente della sessione. Le occorrenze vengono generate come spese normali
+     * dallo scheduler (vedi {@link #startRecurringScheduler(Duration)}), comprese quelle già passate
+     * se la data di inizio è nel passato.
+     *
+     * @param sessione La sessione dell'utente.
+     * @param nome     Nome delle spese generate.
+     * @param cat      Categoria.
+     * @param desc     Descrizione.
+     * @param importo  Importo di ogni occorrenza.
+     * @param regola   La regola di ricorrenza in formato RRULE (es. "FREQ=MONTHLY;BYMONTHDAY=1").
+     * @param inizio   Data di inizio (fornisce anche l'ora delle occorrenze).
+     * @return La spesa ricorrente salvata.
+     * @throws IllegalStateException se la spesa ricorrente non può essere salvata.
+     */
+    public RecurringExpense addRecurringExpense(SessionContext sessione, String nome, Categories cat, String desc, double importo, String regola, LocalDateTime inizio) {
+        int userId = requireSession(sessione).getUserId();
+        RecurringExpense ricorrente = new RecurringExpense(nome, cat, desc, importo, RecurrenceRule.parse(regola), inizio);
+        ricorrente.setValuta(currencyConverter.valutaBase(userId));
+        ricorrente.setIdUtente(userId);
+        if (!recurringExpenseDAO.saveRecurringExpense(ricorrente)) {
+            throw new IllegalStateException("Impossibile salvare la spesa ricorrente.");
+        }
+        recurringScheduler.pianifica(ricorrente);
+        return ricorrente;
+    }
+
+    /**
+     * Recupera le spese ricorrenti dell'utente della sessione.
+     *
+     * @param sessione La sessione dell'utente.
+     * @return Le spese ricorrenti (eventualmente nessuna).
+     * @throws IllegalStateException se il database non è raggiungibile.
+     */
+    public List<RecurringExpense> getRecurringExpenses(SessionContext sessione) {
+        int userId = requireSession(sessione).getUserId();
+        List<RecurringExpense> ricorrenti = recurringExpenseDAO.getRecurringExpensesByUserId(userId);
+        if (ricorrenti == null) {
+            throw new IllegalStateException("Impossibile leggere le spese ricorrenti.");
+        }
+        return ricorrenti;
+    }
+
+    /**
+     * Elimina una spesa ricorrente dell'utente della sessione; le spese già generate restano.
+     *
+     * @param sessione La sessione dell'utente.
+     * @param id       L'id della spesa ricorrente.
+     * @throws RisorsaNonTrovataException se la spesa ricorrente non esiste.
+     */
+    public void deleteRecurringExpense(SessionContext sessione, int id) throws RisorsaNonTrovataException {
+        int userId = requireSession(sessione).getUserId();
+        if (!recurringExpenseDAO.deleteRecurringExpense(id, userId)) {
+            throw new RisorsaNonTrovataException("Spesa ricorrente con id: " + id + " non trovata nel database!!");
+        }
+    }
+
+    /**
+     * Avvia la generazione periodica delle spese ricorrenti; la prima passata recupera subito
+     * le occorrenze scadute mentre l'applicazione era ferma.
+     *
+     * @param intervallo L'intervallo tra una passata e la successiva.
+     */
+    public void startRecurringScheduler(Duration intervallo) {
+        recurringScheduler.start(intervallo);
+    }
+
+    public void stopRecurringScheduler() {
+        recurringScheduler.stop();
+    }
+
+    // --- SINCRONIZZAZIONE ---
+
+    /**
+     * Restituisce le modifiche ai dati dell'utente della sessione successive all'ultima sincronizzazione
+     * del client (spese inserite, modificate e cancellate, dati dell'utente).
+     * Il client ripete la chiamata con l'epoca e la sequenza ricevute finché {@link ChangeBatch#isAltri()} è true.
+     *
+     * @param sessione La sessione dell'utente.
+     * @param epoca    L'epoca dell'ultimo blocco ricevuto, oppure null alla prima sincronizzazione.
+     * @param dopo     L'ultima sequenza ricevuta (0 alla prima sincronizzazione).
+     * @param limite   Il numero massimo di modifiche nel blocco (al massimo {@value #MAX_MODIFICHE_PER_BLOCCO}).
+     * @return Il blocco di modifiche.
+     * @throws IllegalArgumentException se la sequenza o il limite non sono validi.
+     * @throws IllegalStateException se la lettura dal database fallisce.
+     */
+    public ChangeBatch getChangesSince(SessionContext sessione, String epoca, long dopo, int limite) {
+        int userId = requireSession(sessione).getUserId();
+        if (dopo < 0) {
+            throw new IllegalArgumentException("La sequenza non può essere negativa");
+        }
+        if (limite < 1 || limite > MAX_MODIFICHE_PER_BLOCCO) {
+            throw new IllegalArgumentException("Il limite deve essere compreso tra 1 e " + MAX_MODIFICHE_PER_BLOCCO);
+        }
+        ChangeBatch blocco = syncDAO.getChangesSince(userId, epoca, dopo, limite);
+        if (blocco == null) {
+            throw new IllegalStateException("Impossibile leggere le modifiche da sincronizzare.");
+        }
+        return blocco;
+    }
+
+    /**
+     * Conta le spese dell'utente della sessione (per dimensionare una tabella a pagine).
+     *
+     * @param sessione  La sessione dell'utente.
+     * @param categoria La categoria da filtrare, oppure null per tutte.
+     * @return Il numero di spese.
+     */
+    public int countExpenses(SessionContext sessione, Categories categoria) {
+        int userId = requireSession(sessione).getUserId();
+        return expenseDAO.countExpenses(userId, categoria);
+    }
+
+    /**
+     * Legge una pagina di spese dell'utente della sessione, quella che segue la spesa indicata
+     * nell'ordinamento richiesto (oppure la prima pagina se {@code dopo} è null).
+     *
+     * @param sessione  La sessione dell'utente.
+     * @param categoria La categoria da filtrare, oppure null per tutte.
+     * @param ordine    L'ordinamento.
+     * @param dopo      L'ultima spesa della pagina precedente, oppure null.
+     * @param limite    Il numero massimo di spese della pagina.
+     * @return Le spese della pagina.
+     */
+    public List<Expense> getExpensePage(SessionContext sessione, Categories categoria, ExpenseOrder ordine, Expense dopo, int limite) {
+        int userId = requireSession(sessione).getUserId();
+        return expenseDAO.getExpensePage(userId, categoria, ordine, dopo, limite);
+    }
+
+    /**
+     * Legge una pagina di spese dell'utente della sessione a partire da una posizione dell'ordinamento.
+     * Più lenta di {@link #getExpensePage} verso il fondo della lista: va usata solo per i salti.
+     *
+     * @param sessione  La sessione dell'utente.
+     * @param categoria La categoria da filtrare, oppure null per tutte.
+     * @param ordine    L'ordinamento.
+     * @param posizione La posizione (da 0) della prima spesa.
+     * @param limite    Il numero massimo di spese della pagina.
+     * @return Le spese della pagina.
+     */
+    public List<Expense> getExpensePageAt(SessionContext sessione, Categories categoria, ExpenseOrder ordine, int posizione, int limite) {
+        int userId = requireSession(sessione).getUserId();
+        return expenseDAO.getExpensePageAt(userId, categoria, ordine, posizione, limite);
+    }
+
+    // --- HELPER PRIVATO ---
+
+    /**
+     * Aggiorna una spesa e ne riporta la modifica nei budget e nelle classifiche dei nomi. La versione precedente
+     * viene letta (sotto il lock dell'utente) solo se l'utente ha dei budget o delle classifiche: a differenza della cancellazione, che la riceve
+     * da DELETE ... RETURNING, in SQLite il RETURNING di un UPDATE vede solo i valori nuovi.
+     *
+     * @throws IllegalStateException se il database restituisce un errore.
+     */
+    private ExpenseUpdateResult aggiornaSpesa(int userId, Expense spesa, boolean cambiaValuta) {
+        synchronized (budgetEngine.lock(userId)) {
+            boolean budget = budgetEngine.prepara(userId);
+            boolean classifiche = topExpenseTracker.isAttiva(userId);
+            Expense prima = budget || classifiche ? expenseDAO.getExpenseById(spesa.getId(), userId) : null;
+            ExpenseUpdateResult esito = expenseDAO.updateExpense(spesa, cambiaValuta);
+            if (esito == null) {
+                throw new IllegalStateException("Impossibile aggiornare la spesa con id: " + spesa.getId());
+            }
+            if (esito.getEsito() == ExpenseUpdateResult.Esito.AGGIORNATA) {
+                if (prima != null) {
+                    if (budget) {
+                        budgetEngine.spesaModificata(userId, prima, spesa);
+                    }
+                    if (classifiche) {
+                        topExpenseTracker.spesaModificata(userId, prima, spesa);
+                    }
+                }
+                duplicateGuard.aggiungi(userId, spesa);
+            }
+            return esito;
+        }
+    }
+
+    private static SpesaArchiviataException archiviata(int idSpesa) {
+        return new SpesaArchiviataException("La spesa con id: " + idSpesa + " appartiene a un anno archiviato ed è in sola lettura.");
+    }
+
+    private static SpesaDuplicataException duplicata(Expense spesa) {
+        return new SpesaDuplicataException("Esiste già una spesa '" + spesa.getNomeSpesa() + "' di " + spesa.getImporto()
+                + " " + spesa.getValuta() + " del " + spesa.getData() + ".");
+    }
+
+    /**
+     * Verifica che la tabella dei cambi contenga un tasso per la valuta, senza il quale i totali
+     * non conterebbero le spese in quella valuta.
+     *
+     * @return La stessa valuta, se valida.
+     * @throws DatiNonValidiException se la valuta non è un codice valido o non ha un tasso di cambio.
+     */
+    private String richiediValuta(String valuta) {
+        if (!Expense.isCodiceValuta(valuta) || !currencyConverter.isSupportata(valuta)) {
+            throw new DatiNonValidiException("Valuta non supportata: " + valuta + ". Caricare prima il suo tasso di cambio.");
+        }
+        return valuta;
+    }
+
+    /**
+     * Collega la cache delle serie al bus delle modifiche alla prima richiesta di una serie:
+     * finché nessuno usa i grafici il bus non deve tracciare le modifiche per la cache.
+     */
+    private synchronized void iscriviSeriesCache() {
+        if (!seriesCacheIscritta) {
+            ChangeBus.getInstance().subscribe(seriesCache::suModifiche);
+            seriesCacheIscritta = true;
+        }
+    }
+
+    /**
+     * Collega le previsioni al bus delle modifiche alla prima richiesta, come per la cache delle serie.
+     */
+    private synchronized void iscriviForecastEngine() {
+        if (!forecastEngineIscritto) {
+            ChangeBus.getInstance().subscribe(forecastEngine::suModifiche);
+            forecastEngineIscritto = true;
+        }
+    }
+
+    /**
+     * Ricalcola con i parametri attuali l'hash della password di un utente appena autenticato, se è nel vecchio
+     * formato senza sale o ha un costo diverso da quello configurato. Un errore non blocca il login: l'hash
+     * verrà aggiornato al prossimo accesso.
+     *
+     * @param u        L'utente letto dal database.
+     * @param password La password in chiaro appena verificata.
+     */
+    private void aggiornaHashSuperato(User u, String password) {
+        String vecchioHash = u.getPasswordHash();
+        if (!SecurityUtils.needsRehash(vecchioHash)) {
+            return;
+        }
+        try {
+            String nuovoHash = passwordHasher.hash(password);
+            if (userDAO.updatePasswordHash(u.getId(), vecchioHash, nuovoHash)) {
+                u.setPasswordHash(nuovoHash);
+            }
+        } catch (TroppiTentativiException e) {
+            // Thread degli hash tutti occupati: se ne riparla al prossimo login
+        }
+    }
+
+    /**
+     * Collega la cache degli utenti al bus delle modifiche al primo login, come per la cache delle serie.
+     */
+    private synchronized void iscriviUserCache() {
+        if (!userCacheIscritta) {
+            ChangeBus.getInstance().subscribe(userCache::suModifiche);
+            userCacheIscritta = true;
+        }
+    }
+
+    /**
+     * Verifica che la sessione sia ancora attiva e ne rinnova la scadenza per inattività.
+     *
+     * @param sessione La sessione passata dal chiamante.
+     * @return La stessa sessione, se valida.
+     * @throws AuthenticationException se la sessione è nulla, chiusa o scaduta.
+     */
+    private SessionContext requireSession(SessionContext sessione) {
+        if (sessione == null || sessionRegistry.get(sessione.getToken()) != sessione) {
+            throw new AuthenticationException("Sessione scaduta o non valida, effettuare di nuovo il login.");
+        }
+        return sessione;
+    }
+}
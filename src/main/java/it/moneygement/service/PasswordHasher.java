@@ -0,0 +1,79 @@
+package it.moneygement.service;
+
+import it.moneygement.exception.TroppiTentativiException;
+import it.moneygement.utils.SecurityUtils;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Esecutore dedicato al calcolo degli hash delle password ({@link SecurityUtils#hashPassword(String)} e
+ * {@link SecurityUtils#verifyPassword(String, String)}), che con PBKDF2 costano decine o centinaia di millisecondi
+ * di CPU ciascuno.
+ * <p>
+ * Gli hash vengono calcolati da un numero fisso di thread, con una coda limitata: login e registrazioni in
+ * massa occupano al massimo quei thread e non tolgono CPU alle altre richieste. Il chiamante attende il
+ * risultato (un virtual thread attende senza occupare un thread di sistema); a coda piena la richiesta viene
+ * rifiutata subito con {@link TroppiTentativiException} invece di accodare lavoro che non verrebbe smaltito.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+class PasswordHasher {
+
+    private final ThreadPoolExecutor esecutore;
+
+    /**
+     * @param thread Il numero di thread che calcolano gli hash.
+     * @param coda   Il numero massimo di hash in attesa di un thread.
+     */
+    PasswordHasher(int thread, int coda) {
+        AtomicInteger numero = new AtomicInteger();
+        this.esecutore = new ThreadPoolExecutor(thread, thread, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(coda), r -> {
+            Thread t = new Thread(r, "password-hash-" + numero.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @param password La password in chiaro.
+     * @return L'hash della password, con il costo attuale.
+     */
+    String hash(String password) {
+        return esegui(() -> SecurityUtils.hashPassword(password));
+    }
+
+    /**
+     * @param password     La password in chiaro.
+     * @param passwordHash L'hash salvato (può essere null).
+     * @return true se la password corrisponde all'hash.
+     */
+    boolean verifica(String password, String passwordHash) {
+        return esegui(() -> SecurityUtils.verifyPassword(password, passwordHash));
+    }
+
+    // --- METODI PRIVATI ---
+
+    private <T> T esegui(Callable<T> calcolo) {
+        try {
+            return esecutore.submit(calcolo).get();
+        } catch (RejectedExecutionException e) {
+            throw new TroppiTentativiException("Troppi accessi in corso, riprovare più tardi.", Duration.ofSeconds(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Calcolo dell'hash della password interrotto", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException r) {
+                throw r;
+            }
+            throw new IllegalStateException("Errore nel calcolo dell'hash della password", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package it.moneygement.service;
+
+import it.moneygement.dao.ExpenseDAO;
+import it.moneygement.dao.RecurringExpenseDAO;
+import it.moneygement.db.DbConnection;
+import it.moneygement.events.ChangeBus;
+import it.moneygement.model.Expense;
+import it.moneygement.model.RecurringExpense;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Genera le spese delle occorrenze scadute delle spese ricorrenti.
+ * <p>
+ * Le spese ricorrenti non esaurite sono in una coda di priorità ordinata per prossima occorrenza: ogni passata
+ * ({@link #esegui()}) estrae solo le voci scadute, quindi costa O(k log n) per k regole scadute su n, e con
+ * migliaia di utenti una passata senza scadenze si ferma alla prima voce. Le voci scadute vengono raggruppate
+ * per shard e generate in transazioni di {@value #REGOLE_PER_TRANSAZIONE} spese ricorrenti, su una connessione
+ * dedicata ({@link DbConnection#apriConnessioneDedicata(int)}) per non coinvolgere le scritture delle sessioni.
+ * </p>
+ * <p>
+ * Dopo un'interruzione la prima passata recupera tutte le occorrenze perse (al massimo
+ * {@value #MAX_OCCORRENZE_PER_PASSATA} per spesa ricorrente e per passata, le altre alla passata successiva).
+ * Le spese generate e il nuovo stato della regola sono salvati nella stessa transazione; in più ogni spesa
+ * generata ha una chiave di idempotenza (spesa ricorrente + data) con un indice UNIQUE, quindi nemmeno due
+ * istanze sullo stesso database o una passata ripetuta possono creare doppioni.
+ * </p>
+ * <p>
+ * Le spese generate passano dagli stessi controlli di quelle aggiunte dal service: un'occorrenza che il
+ * {@link DuplicateGuard} e l'indice delle impronte riconoscono come doppione di una spesa già presente non viene
+ * inserita (la regola avanza comunque), e le baseline dell'{@link AnomalyDetector} vengono lette prima della
+ * scrittura e ricevono le spese inserite dopo il commit, in entrambi i casi sotto il lock dell'utente come nel service.
+ * Dopo il commit le spese inserite vengono contate anche nelle classifiche dei nomi ({@link TopExpenseTracker}).
+ * Le spese generate non seguono invece il protocollo dei budget ({@link BudgetEngine#prepara(int)}): dopo il
+ * commit i totali degli utenti coinvolti vengono riletti con {@link BudgetEngine#ricarica(int)}.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class RecurringScheduler {
+
+    static final int REGOLE_PER_TRANSAZIONE = 500;
+    static final int MAX_OCCORRENZE_PER_PASSATA = 1_000;
+
+    /**
+     * Voce della coda: la prossima occorrenza di una spesa ricorrente.
+     */
+    private static final class Voce {
+        private final LocalDateTime prossima;
+        private final int userId;
+        private final int id;
+
+        private Voce(LocalDateTime prossima, int userId, int id) {
+            this.prossima = prossima;
+            this.userId = userId;
+            this.id = id;
+        }
+
+        private long chiave() {
+            return ((long) userId << 32) | (id & 0xFFFFFFFFL);
+        }
+    }
+
+    private final RecurringExpenseDAO dao;
+    private final ExpenseDAO expenseDAO;
+    private final BudgetEngine budgetEngine;
+    private final AnomalyDetector anomalyDetector;
+    private final DuplicateGuard duplicateGuard;
+    private final TopExpenseTracker topExpenseTracker;
+    private final Clock clock;
+
+    // Coda e chiavi delle voci presenti (una sola voce per spesa ricorrente), protette dal lock della coda
+    private final PriorityQueue<Voce> coda = new PriorityQueue<>(Comparator.comparing((Voce v) -> v.prossima));
+    private final Set<Long> inCoda = new HashSet<>();
+    // Una passata alla volta
+    private final Object passata = new Object();
+
+    private ScheduledExecutorService scheduler;
+    private volatile boolean caricata;
+
+    /**
+     * @param dao               Il DAO delle spese ricorrenti.
+     * @param expenseDAO        Il DAO delle spese (per l'indice delle impronte).
+     * @param budgetEngine      Il motore dei budget da aggiornare dopo la generazione.
+     * @param anomalyDetector   Il riconoscimento delle anomalie che valuta le spese generate.
+     * @param duplicateGuard    Il filtro dei doppioni condiviso con il service.
+     * @param topExpenseTracker Le classifiche dei nomi di spesa condivise con il service.
+     * @param clock             L'orologio che stabilisce quali occorrenze sono scadute.
+     */
+    RecurringScheduler(RecurringExpenseDAO dao, ExpenseDAO expenseDAO, BudgetEngine budgetEngine,
+                       AnomalyDetector anomalyDetector, DuplicateGuard duplicateGuard,
+                       TopExpenseTracker topExpenseTracker, Clock clock) {
+        this.dao = dao;
+        this.expenseDAO = expenseDAO;
+        this.budgetEngine = budgetEngine;
+        this.anomalyDetector = anomalyDetector;
+        this.duplicateGuard = duplicateGuard;
+        this.topExpenseTracker = topExpenseTracker;
+        this.clock = clock;
+    }
+
+    /**
+     * Riempie la coda con le spese ricorrenti non esaurite di tutti gli shard.
+     *
+     * @throws IllegalStateException se il database non è raggiungibile.
+     */
+    public void carica() {
+        DbConnection db = DbConnection.getInstance();
+        Connection[] connessioni = db.isSharded() ? db.getShardConnections() : new Connection[]{db.getConnection()};
+        List<RecurringExpense> regole = new ArrayList<>();
+        try {
+            for (Connection conn : connessioni) {
+                regole.addAll(dao.getScheduled(conn));
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Impossibile leggere le spese ricorrenti: " + e.getMessage(), e);
+        }
+        // Le voci già in coda (es. spese ricorrenti create nel frattempo) restano: le chiavi evitano i doppioni
+        synchronized (coda) {
+            for (RecurringExpense r : regole) {
+                aggiungi(new Voce(r.getProssima(), r.getIdUtente(), r.getId()));
+            }
+        }
+        caricata = true;
+    }
+
+    /**
+     * Mette in coda una spesa ricorrente appena creata.
+     *
+     * @param r La spesa ricorrente salvata.
+     */
+    public void pianifica(RecurringExpense r) {
+        if (r.getProssima() != null) {
+            synchronized (coda) {
+                aggiungi(new Voce(r.getProssima(), r.getIdUtente(), r.getId()));
+            }
+        }
+    }
+
+    /**
+     * @return Il numero di spese ricorrenti in coda.
+     */
+    public int getInCoda() {
+        synchronized (coda) {
+            return coda.size();
+        }
+    }
+
+    /**
+     * Esegue una passata: genera le occorrenze scadute di tutte le spese ricorrenti in coda.
+     * Le spese ricorrenti di una transazione fallita tornano in coda e vengono ritentate alla passata successiva.
+     *
+     * @return Il numero di spese generate.
+     */
+    public int esegui() {
+        synchronized (passata) {
+            LocalDateTime adesso = LocalDateTime.now(clock);
+            DbConnection db = DbConnection.getInstance();
+            // Voci scadute per shard (in ordine di shard, e nell'ordine della coda dentro lo shard)
+            Map<Integer, List<Voce>> scadute = new TreeMap<>();
+            synchronized (coda) {
+                while (!coda.isEmpty() && !coda.peek().prossima.isAfter(adesso)) {
+                    Voce v = coda.poll();
+                    inCoda.remove(v.chiave());
+                    scadute.computeIfAbsent(db.getShardIndex(v.userId), s -> new ArrayList<>()).add(v);
+                }
+            }
+
+            int generate = 0;
+            for (Map.Entry<Integer, List<Voce>> shard : scadute.entrySet()) {
+                List<Voce> voci = shard.getValue();
+                try (Connection conn = db.apriConnessioneDedicata(shard.getKey())) {
+                    for (int i = 0; i < voci.size(); i += REGOLE_PER_TRANSAZIONE) {
+                        generate += transazione(conn, voci.subList(i, Math.min(voci.size(), i + REGOLE_PER_TRANSAZIONE)), adesso);
+                    }
+                } catch (SQLException e) {
+                    System.err.println("Errore di connessione per le spese ricorrenti: " + e.getMessage());
+                    ripianifica(voci);
+                }
+            }
+            return generate;
+        }
+    }
+
+    /**
+     * Avvia le passate periodiche su un thread daemon. La prima passata parte subito e carica la coda,
+     * recuperando le occorrenze scadute mentre l'applicazione era ferma.
+     *
+     * @param intervallo L'intervallo tra una passata e la successiva.
+     */
+    public synchronized void start(Duration intervallo) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "recurring-expenses");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::passataPeriodica, 0, intervallo.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Ferma le passate periodiche (una passata in corso viene completata).
+     */
+    public void stop() {
+        ScheduledExecutorService s;
+        synchronized (this) {
+            s = scheduler;
+            scheduler = null;
+        }
+        if (s != null) {
+            s.shutdown();
+        }
+    }
+
+    // --- METODI PRIVATI ---
+
+    private void passataPeriodica() {
+        try {
+            if (!caricata) {
+                carica();
+            }
+            int generate = esegui();
+            if (generate > 0) {
+                System.out.println("Spese ricorrenti generate: " + generate);
+            }
+        } catch (RuntimeException e) {
+            // Un errore non deve fermare le passate successive
+            System.err.println("Errore nella generazione delle spese ricorrenti: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Genera in una sola transazione le occorrenze scadute delle voci indicate.
+     */
+    private int transazione(Connection conn, List<Voce> voci, LocalDateTime adesso) {
+        List<Voce> successive = new ArrayList<>();
+        // Spese inserite per utente, da passare ai controlli dopo il commit
+        Map<Integer, List<Expense>> inserite = new LinkedHashMap<>();
+        // Classifiche dei nomi costruite prima del commit: quelle costruite dopo potrebbero già contenere le spese
+        long costruzioni = 0;
+        int generate = 0;
+        try {
+            conn.setAutoCommit(false);
+            try {
+                for (Voce v : voci) {
+                    // Lo stato salvato prevale su quello della coda (es. spesa ricorrente eliminata)
+                    RecurringExpense r = dao.getRecurringExpense(conn, v.id, v.userId);
+                    if (r == null || r.getProssima() == null) {
+                        continue;
+                    }
+                    LocalDateTime letta = r.getProssima();
+                    List<LocalDateTime> date = new ArrayList<>();
+                    while (r.getProssima() != null && !r.getProssima().isAfter(adesso) && date.size() < MAX_OCCORRENZE_PER_PASSATA) {
+                        date.add(r.getProssima());
+                        r.avanza();
+                    }
+                    if (!date.isEmpty()) {
+                        // Come nel service: baseline lette prima della scrittura sotto il lock dell'utente,
+                        // doppioni esclusi dal filtro o dall'indice
+                        synchronized (budgetEngine.lock(r.getIdUtente())) {
+                            anomalyDetector.prepara(r.getIdUtente());
+                        }
+                        List<Expense> spese = new ArrayList<>();
+                        for (LocalDateTime data : date) {
+                            Expense spesa = r.occorrenza(data);
+                            if (!duplicateGuard.forseDuplicata(r.getIdUtente(), spesa) || !expenseDAO.existsImpronta(spesa)) {
+                                spese.add(spesa);
+                            }
+                        }
+                        ChangeBus.getInstance().inizioModifica(r.getIdUtente());
+                        try {
+                            List<Expense> nuove = dao.insertOccurrences(conn, r, spese);
+                            if (!dao.advance(conn, r, letta)) {
+                                // Un'altra istanza l'ha già fatta avanzare: lo stato verrà riletto alla prossima passata
+                                successive.add(v);
+                                continue;
+                            }
+                            generate += nuove.size();
+                            if (!nuove.isEmpty()) {
+                                inserite.computeIfAbsent(r.getIdUtente(), id -> new ArrayList<>()).addAll(nuove);
+                            }
+                        } finally {
+                            ChangeBus.getInstance().fineModifica();
+                        }
+                    }
+                    if (r.getProssima() != null) {
+                        successive.add(new Voce(r.getProssima(), r.getIdUtente(), r.getId()));
+                    }
+                }
+                costruzioni = topExpenseTracker.getCostruzioni();
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException | RuntimeException e) {
+            System.err.println("Errore nella generazione delle spese ricorrenti: " + e.getMessage());
+            ripianifica(voci);
+            return 0;
+        }
+
+        ripianifica(successive);
+        for (Map.Entry<Integer, List<Expense>> utente : inserite.entrySet()) {
+            int userId = utente.getKey();
+            synchronized (budgetEngine.lock(userId)) {
+                for (Expense spesa : utente.getValue()) {
+                    anomalyDetector.spesaAggiunta(userId, spesa);
+                    duplicateGuard.aggiungi(userId, spesa);
+                }
+                topExpenseTracker.speseGenerate(userId, utente.getValue(), costruzioni);
+            }
+            budgetEngine.ricarica(userId);
+        }
+        return generate;
+    }
+
+    private void ripianifica(List<Voce> voci) {
+        synchronized (coda) {
+            for (Voce v : voci) {
+                aggiungi(v);
+            }
+        }
+    }
+
+    /**
+     * Aggiunge una voce se la spesa ricorrente non è già in coda (va chiamato tenendo il lock della coda).
+     */
+    private void aggiungi(Voce v) {
+        if (inCoda.add(v.chiave())) {
+            coda.add(v);
+        }
+    }
+}
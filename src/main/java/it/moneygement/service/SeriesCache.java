@@ -0,0 +1,119 @@
+package it.moneygement.service;
+
+import it.moneygement.events.ChangeEvent;
+import it.moneygement.events.ExpenseChanged;
+import it.moneygement.events.UserChanged;
+import it.moneygement.model.SeriesPoint;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache delle serie giornaliere già ridotte, una voce per utente, intervallo, numero di punti e metodo.
+ * <p>
+ * Contiene al massimo {@code capienza} serie e scarta quella usata meno di recente. Le voci di un utente
+ * vengono eliminate quando il {@code ChangeBus} segnala una modifica alle sue spese o ai suoi dati (le serie
+ * sono nella sua valuta base); una modifica di utente sconosciuto o massiva svuota tutta la cache.
+ * Una serie calcolata mentre arrivava una modifica dello stesso utente non viene salvata
+ * (vedi {@link #generazione(int)}); le modifiche degli altri utenti non la scartano.
+ * </p>
+ * <p>
+ * Il bus consegna gli eventi su un suo thread dopo il commit: tra il commit e la consegna una serie in cache
+ * può essere superata. Le modifiche fatte fuori dalle connessioni di {@code DbConnection} (es. strumenti
+ * offline) non generano eventi e restano invisibili finché la voce non viene scartata.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+class SeriesCache {
+
+    private final Map<String, List<SeriesPoint>> serie;
+    // Invalidazioni di tutta la cache e dei singoli utenti; oltre maxUtenti contatori la mappa viene
+    // azzerata con un'invalidazione globale, che al più scarta qualche serie in calcolo in più
+    private final Map<Integer, Long> generazioniUtente = new HashMap<>();
+    private final int maxUtenti;
+    private long generazioneGlobale;
+
+    SeriesCache(int capienza) {
+        this.maxUtenti = capienza * 4;
+        this.serie = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<SeriesPoint>> piuVecchia) {
+                return size() > capienza;
+            }
+        };
+    }
+
+    /**
+     * @return La chiave di una serie (l'id dell'utente è il prefisso, per l'invalidazione).
+     */
+    static String chiave(int userId, Object... parametri) {
+        StringBuilder sb = new StringBuilder().append(userId).append(':');
+        for (Object p : parametri) {
+            sb.append(p).append('|');
+        }
+        return sb.toString();
+    }
+
+    synchronized List<SeriesPoint> get(String chiave) {
+        return serie.get(chiave);
+    }
+
+    /**
+     * @return Il contatore delle invalidazioni che riguardano un utente, da leggere prima di calcolare una sua
+     * serie e passare a {@link #put}.
+     */
+    synchronized long generazione(int userId) {
+        // Somma di due contatori che crescono soltanto: cambia a ogni invalidazione dell'utente o globale
+        return generazioneGlobale + generazioniUtente.getOrDefault(userId, 0L);
+    }
+
+    /**
+     * Salva una serie, a meno che nel frattempo ci sia stata un'invalidazione dello stesso utente.
+     */
+    synchronized void put(int userId, String chiave, List<SeriesPoint> valore, long generazioneLetta) {
+        if (generazioneLetta == generazione(userId)) {
+            serie.put(chiave, valore);
+        }
+    }
+
+    /**
+     * Ricevitore del bus delle modifiche: elimina le serie degli utenti le cui spese o la cui valuta base sono cambiate.
+     */
+    synchronized void suModifiche(List<ChangeEvent> eventi) {
+        for (ChangeEvent evento : eventi) {
+            if (evento instanceof UserChanged utente) {
+                invalida(utente.getIdUtente());
+            } else if (evento instanceof ExpenseChanged spesa) {
+                if (spesa.getIdUtente() == 0 || spesa.getOperazione() == ChangeEvent.Operazione.BULK) {
+                    invalidaTutto();
+                } else {
+                    invalida(spesa.getIdUtente());
+                }
+            }
+        }
+    }
+
+    private void invalida(int userId) {
+        String prefisso = userId + ":";
+        serie.keySet().removeIf(k -> k.startsWith(prefisso));
+        if (generazioniUtente.size() >= maxUtenti && !generazioniUtente.containsKey(userId)) {
+            avanzaGlobale();
+        } else {
+            generazioniUtente.merge(userId, 1L, Long::sum);
+        }
+    }
+
+    private void invalidaTutto() {
+        serie.clear();
+        avanzaGlobale();
+    }
+
+    private void avanzaGlobale() {
+        // Il globale supera ogni somma letta finora, così azzerare i contatori degli utenti non ne ripete nessuna
+        generazioneGlobale += 1 + generazioniUtente.values().stream().mapToLong(Long::longValue).max().orElse(0L);
+        generazioniUtente.clear();
+    }
+}
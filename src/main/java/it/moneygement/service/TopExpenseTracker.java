@@ -0,0 +1,342 @@
+package it.moneygement.service;
+
+import it.moneygement.dao.ExpenseDAO;
+import it.moneygement.dao.TopExpenseDAO;
+import it.moneygement.model.Expense;
+import it.moneygement.model.RankingMetric;
+import it.moneygement.model.TopExpense;
+import it.moneygement.model.TopExpenseRanking;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Classifiche dei nomi di spesa (negozi, descrizioni) di ogni utente per totale e per numero di spese, salvate nel
+ * database con l'algoritmo Space-Saving (vedi {@link TopExpenseDAO}) e aggiornate dal service e dal
+ * {@link RecurringScheduler} a ogni spesa scritta.
+ * <p>
+ * Ogni classifica tiene al più {@value #CAPIENZA} nomi qualunque sia il numero di nomi dell'utente, quindi una lettura
+ * costa quella di poche decine di righe e un aggiornamento al più quattro istruzioni per classifica. I totali sono in
+ * centesimi e restano nella valuta delle spese, una classifica per valuta: vengono convertiti nella valuta base
+ * con i tassi attuali solo alla lettura, come fa il {@link BudgetEngine}. Così togliere una spesa toglie esattamente
+ * ciò che era stato aggiunto, anche se nel frattempo i tassi sono cambiati.
+ * </p>
+ * <p>
+ * Le classifiche di un utente vengono costruite alla prima lettura, esatte, da una passata su tutto lo storico
+ * (anche gli anni archiviati); fino ad allora le scritture non le toccano. Se un aggiornamento fallisce, o le spese
+ * cambiano in blocco, le classifiche vengono cancellate e ricostruite alla lettura successiva. Le scritture che non
+ * passano dal service (strumenti a riga di comando) non le aggiornano; lo spostamento di un utente su un altro shard
+ * le cancella con l'utente, e il nuovo shard le ricostruisce.
+ * </p>
+ * <p>
+ * Come per i budget, il chiamante tiene il lock dell'utente ({@link BudgetEngine#lock(int)}) durante la scrittura
+ * della spesa e l'aggiornamento delle classifiche, e durante la lettura: le classifiche di un utente non vengono mai
+ * aggiornate da due thread insieme, né costruite mentre una spesa viene scritta.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+class TopExpenseTracker {
+
+    static final int CAPIENZA = 64;
+
+    private final TopExpenseDAO topExpenseDAO;
+    private final ExpenseDAO expenseDAO;
+    private final CurrencyConverter currencyConverter;
+
+    // Utenti con le classifiche costruite nel database (gli altri vengono controllati al primo uso),
+    // con il numero della costruzione (0 se trovate già costruite)
+    private final Map<Integer, Long> costruite = new ConcurrentHashMap<>();
+    private final AtomicLong costruzioni = new AtomicLong();
+
+    TopExpenseTracker(TopExpenseDAO topExpenseDAO, ExpenseDAO expenseDAO, CurrencyConverter currencyConverter) {
+        this.topExpenseDAO = topExpenseDAO;
+        this.expenseDAO = expenseDAO;
+        this.currencyConverter = currencyConverter;
+    }
+
+    /**
+     * Conta una spesa appena salvata.
+     *
+     * @param userId L'id dell'utente.
+     * @param spesa  La spesa salvata.
+     */
+    void spesaAggiunta(int userId, Expense spesa) {
+        aggiorna(userId, null, spesa);
+    }
+
+    /**
+     * Conta un gruppo di spese appena salvate (es. importate), sommando prima i pesi di ogni nome:
+     * un passo di Space-Saving con il peso totale equivale a un passo per spesa.
+     *
+     * @param userId L'id dell'utente.
+     * @param spese  Le spese salvate.
+     */
+    void speseAggiunte(int userId, List<Expense> spese) {
+        if (spese.isEmpty() || !isAttiva(userId)) {
+            return;
+        }
+        Map<List<String>, Long> totali = new LinkedHashMap<>();
+        Map<String, Long> conteggi = new LinkedHashMap<>();
+        for (Expense spesa : spese) {
+            String nome = normalizza(spesa.getNomeSpesa());
+            totali.merge(List.of(spesa.getValuta(), nome), centesimi(spesa), Long::sum);
+            conteggi.merge(nome, 1L, Long::sum);
+        }
+        boolean ok = true;
+        for (Map.Entry<List<String>, Long> t : totali.entrySet()) {
+            ok = ok && (t.getValue() <= 0
+                    || topExpenseDAO.aggiungi(userId, RankingMetric.TOTALE, t.getKey().get(0), t.getKey().get(1), t.getValue(), CAPIENZA));
+        }
+        for (Map.Entry<String, Long> c : conteggi.entrySet()) {
+            ok = ok && topExpenseDAO.aggiungi(userId, RankingMetric.NUMERO, TopExpenseDAO.VALUTA_CONTEGGI, c.getKey(), c.getValue(), CAPIENZA);
+        }
+        if (!ok) {
+            invalida(userId);
+        }
+    }
+
+    /**
+     * Toglie una spesa appena cancellata.
+     *
+     * @param userId L'id dell'utente.
+     * @param spesa  La spesa cancellata.
+     */
+    void spesaEliminata(int userId, Expense spesa) {
+        aggiorna(userId, spesa, null);
+    }
+
+    /**
+     * Sposta una spesa modificata: toglie la versione precedente e conta la nuova, se il nome,
+     * la valuta o l'importo sono cambiati.
+     *
+     * @param userId L'id dell'utente.
+     * @param prima  La spesa prima della modifica.
+     * @param dopo   La spesa modificata.
+     */
+    void spesaModificata(int userId, Expense prima, Expense dopo) {
+        if (normalizza(prima.getNomeSpesa()).equals(normalizza(dopo.getNomeSpesa()))
+                && prima.getValuta().equals(dopo.getValuta()) && centesimi(prima) == centesimi(dopo)) {
+            return;
+        }
+        aggiorna(userId, prima, dopo);
+    }
+
+    /**
+     * Conta le spese generate dal {@link RecurringScheduler}, scritte in una transazione propria fuori dal lock
+     * dell'utente: se nel frattempo le classifiche sono state costruite non si può sapere se le contengono già,
+     * quindi vengono cancellate e ricostruite alla lettura successiva.
+     *
+     * @param userId           L'id dell'utente.
+     * @param spese            Le spese generate.
+     * @param costruzioniPrima Il valore di {@link #getCostruzioni()} letto prima del commit.
+     */
+    void speseGenerate(int userId, List<Expense> spese, long costruzioniPrima) {
+        Long numero = costruite.get(userId);
+        if (numero != null && numero > costruzioniPrima) {
+            invalida(userId);
+            return;
+        }
+        speseAggiunte(userId, spese);
+    }
+
+    /**
+     * @return Il numero di classifiche costruite finora (vedi {@link #speseGenerate}).
+     */
+    long getCostruzioni() {
+        return costruzioni.get();
+    }
+
+    /**
+     * @param userId L'id dell'utente.
+     * @return true se l'utente ha le classifiche da aggiornare, cioè se le modifiche alle spese vanno
+     * riportate con i metodi di questa classe; false se verranno costruite dallo storico alla prima lettura.
+     */
+    boolean isAttiva(int userId) {
+        // Se il database non risponde l'aggiornamento fallirà e le classifiche verranno ricostruite
+        return !Boolean.FALSE.equals(costruita(userId));
+    }
+
+    /**
+     * Legge una classifica dell'utente, costruendo le classifiche se non esistono ancora.
+     *
+     * @param userId  L'id dell'utente.
+     * @param metrica Il criterio della classifica.
+     * @param n       Il numero di voci (meno di {@value #CAPIENZA}).
+     * @return La classifica, con i totali nella valuta base, oppure null in caso di errore del database.
+     */
+    TopExpenseRanking classifica(int userId, RankingMetric metrica, int n) {
+        Boolean c = costruita(userId);
+        if (c == null || (!c && !costruisci(userId))) {
+            return null;
+        }
+        List<TopExpenseDAO.Voce> tenute = topExpenseDAO.getVoci(userId, metrica);
+        Map<String, Long> soglie = topExpenseDAO.getSoglie(userId, metrica);
+        if (tenute == null || soglie == null) {
+            return null;
+        }
+
+        // Fattore di ogni valuta verso la valuta base (i totali sono in centesimi); 1 per i conteggi
+        String valutaBase = currencyConverter.valutaBase(userId);
+        Map<String, Double> fattori = new HashMap<>();
+        for (TopExpenseDAO.Voce v : tenute) {
+            fattori.computeIfAbsent(v.valuta(), valuta -> fattore(metrica, valuta, valutaBase));
+        }
+        double soglia = 0;
+        for (Map.Entry<String, Long> s : soglie.entrySet()) {
+            soglia += s.getValue() * fattori.computeIfAbsent(s.getKey(), valuta -> fattore(metrica, valuta, valutaBase));
+        }
+
+        // Un nome assente dalla classifica di una valuta può avere in quella valuta fino alla sua soglia: ogni nome
+        // parte dalla somma delle soglie e, per le valute in cui è presente, la soglia lascia il posto alla sua voce
+        Map<String, double[]> perNome = new HashMap<>();
+        for (TopExpenseDAO.Voce v : tenute) {
+            double f = fattori.get(v.valuta());
+            long sogliaValuta = soglie.getOrDefault(v.valuta(), 0L);
+            double[] stimaErrore = perNome.computeIfAbsent(v.nome(), nome -> new double[]{0, 0});
+            stimaErrore[0] += (v.valore() - sogliaValuta) * f;
+            stimaErrore[1] += (v.errore() - sogliaValuta) * f;
+        }
+        List<TopExpense> candidati = new ArrayList<>(perNome.size());
+        for (Map.Entry<String, double[]> e : perNome.entrySet()) {
+            double stima = soglia + e.getValue()[0];
+            candidati.add(new TopExpense(e.getKey(), stima, Math.min(stima, soglia + e.getValue()[1]), false));
+        }
+        candidati.sort(Comparator.comparingDouble(TopExpense::getStima).reversed().thenComparing(TopExpense::getNome));
+
+        // Una voce è garantita se il suo valore minimo certo supera la stima di ogni nome che potrebbe
+        // precederla: la prima voce esclusa e i nomi usciti dalla classifica
+        double sfidante = candidati.size() > n ? Math.max(soglia, candidati.get(n).getStima()) : soglia;
+        List<TopExpense> voci = new ArrayList<>(Math.min(n, candidati.size()));
+        for (TopExpense t : candidati.subList(0, Math.min(n, candidati.size()))) {
+            voci.add(new TopExpense(t.getNome(), t.getStima(), t.getErrore(), t.getMinimo() >= sfidante));
+        }
+        return new TopExpenseRanking(metrica, voci, soglia);
+    }
+
+    /**
+     * Cancella le classifiche di un utente (es. spese cancellate in blocco), che verranno ricostruite
+     * alla prossima lettura.
+     *
+     * @param userId L'id dell'utente.
+     */
+    void invalida(int userId) {
+        costruite.remove(userId);
+        topExpenseDAO.deleteClassifiche(userId);
+    }
+
+    /**
+     * Dimentica un utente cancellato (le sue classifiche vengono cancellate dal database con l'utente).
+     *
+     * @param userId L'id dell'utente.
+     */
+    void dimentica(int userId) {
+        costruite.remove(userId);
+    }
+
+    // --- METODI PRIVATI ---
+
+    /**
+     * @return true se le classifiche dell'utente esistono, false se no, null se il database non risponde.
+     */
+    private Boolean costruita(int userId) {
+        if (costruite.containsKey(userId)) {
+            return true;
+        }
+        Boolean c = topExpenseDAO.isCostruita(userId);
+        if (Boolean.TRUE.equals(c)) {
+            costruite.putIfAbsent(userId, 0L);
+        }
+        return c;
+    }
+
+    /**
+     * Toglie una spesa e ne conta un'altra (ognuna può mancare). Le classifiche non ancora costruite
+     * non vengono toccate; quelle rimaste a metà da un errore vengono cancellate.
+     */
+    private void aggiorna(int userId, Expense tolta, Expense aggiunta) {
+        if (!isAttiva(userId)) {
+            return;
+        }
+        boolean ok = true;
+        if (tolta != null) {
+            String nome = normalizza(tolta.getNomeSpesa());
+            ok = topExpenseDAO.rimuovi(userId, RankingMetric.TOTALE, tolta.getValuta(), nome, centesimi(tolta))
+                    && topExpenseDAO.rimuovi(userId, RankingMetric.NUMERO, TopExpenseDAO.VALUTA_CONTEGGI, nome, 1);
+        }
+        if (ok && aggiunta != null) {
+            String nome = normalizza(aggiunta.getNomeSpesa());
+            long peso = centesimi(aggiunta);
+            ok = (peso <= 0 || topExpenseDAO.aggiungi(userId, RankingMetric.TOTALE, aggiunta.getValuta(), nome, peso, CAPIENZA))
+                    && topExpenseDAO.aggiungi(userId, RankingMetric.NUMERO, TopExpenseDAO.VALUTA_CONTEGGI, nome, 1, CAPIENZA);
+        }
+        if (!ok) {
+            invalida(userId);
+        }
+    }
+
+    /**
+     * Costruisce le classifiche esatte dell'utente da tutto lo storico: i primi {@value #CAPIENZA} nomi di ogni
+     * classifica, senza errore, e come soglia il valore del primo nome escluso.
+     *
+     * @return true se le classifiche sono state salvate.
+     */
+    private boolean costruisci(int userId) {
+        Map<String, Map<String, Long>> totali = new HashMap<>();
+        Map<String, Long> conteggi = new HashMap<>();
+        boolean letto = expenseDAO.forEachTotalePerNome(userId, (nome, valuta, centesimi, numero) -> {
+            String n = normalizza(nome);
+            totali.computeIfAbsent(valuta, v -> new HashMap<>()).merge(n, centesimi, Long::sum);
+            conteggi.merge(n, (long) numero, Long::sum);
+        });
+        if (!letto) {
+            return false;
+        }
+
+        Map<RankingMetric, List<TopExpenseDAO.Voce>> voci = new EnumMap<>(RankingMetric.class);
+        Map<RankingMetric, Map<String, Long>> soglie = new EnumMap<>(RankingMetric.class);
+        for (RankingMetric metrica : RankingMetric.values()) {
+            voci.put(metrica, new ArrayList<>());
+            soglie.put(metrica, new HashMap<>());
+        }
+        totali.forEach((valuta, perNome) -> primi(valuta, perNome, voci.get(RankingMetric.TOTALE), soglie.get(RankingMetric.TOTALE)));
+        primi(TopExpenseDAO.VALUTA_CONTEGGI, conteggi, voci.get(RankingMetric.NUMERO), soglie.get(RankingMetric.NUMERO));
+        if (!topExpenseDAO.salva(userId, voci, soglie)) {
+            return false;
+        }
+        costruite.put(userId, costruzioni.incrementAndGet());
+        return true;
+    }
+
+    private static void primi(String valuta, Map<String, Long> perNome, List<TopExpenseDAO.Voce> voci, Map<String, Long> soglie) {
+        List<Map.Entry<String, Long>> ordinati = new ArrayList<>(perNome.entrySet());
+        ordinati.removeIf(e -> e.getValue() <= 0);
+        ordinati.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        for (Map.Entry<String, Long> e : ordinati.subList(0, Math.min(CAPIENZA, ordinati.size()))) {
+            voci.add(new TopExpenseDAO.Voce(valuta, e.getKey(), e.getValue(), 0));
+        }
+        if (ordinati.size() > CAPIENZA) {
+            soglie.put(valuta, ordinati.get(CAPIENZA).getValue());
+        }
+    }
+
+    private double fattore(RankingMetric metrica, String valuta, String valutaBase) {
+        return metrica == RankingMetric.TOTALE ? currencyConverter.converti(1, valuta, valutaBase) / 100 : 1;
+    }
+
+    private static long centesimi(Expense spesa) {
+        return Math.round(spesa.getImporto() * 100);
+    }
+
+    private static String normalizza(String nome) {
+        return nome.strip().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,99 @@
+package it.moneygement.service;
+
+import it.moneygement.events.ChangeEvent;
+import it.moneygement.events.UserChanged;
+import it.moneygement.model.User;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache degli utenti autenticati di recente, per email: un nuovo login dello stesso utente confronta
+ * l'hash della password senza leggere il database.
+ * <p>
+ * Contiene al massimo {@code capienza} utenti e scarta quello usato meno di recente. Conserva i dati di ogni
+ * utente in una voce immutabile e restituisce sempre un nuovo {@link User}: la cache non condivide mai un oggetto
+ * modificabile con le sessioni o con chi l'ha letta. Le voci di un utente vengono eliminate quando il {@code ChangeBus} segnala
+ * una modifica ai suoi dati; una modifica massiva svuota tutta la cache. Il bus consegna gli eventi in
+ * ritardo: chi modifica un utente in questo processo lo dimentica subito con {@link #dimentica(int)}.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+class UserCache {
+
+    /**
+     * Dati di un utente in cache.
+     */
+    private record Voce(int id, String nome, String cognome, String passwordHash, String email, int eta) {
+
+        private Voce(User u) {
+            this(u.getId(), u.getNome(), u.getCognome(), u.getPasswordHash(), u.getEmail(), u.getEta());
+        }
+
+        private User utente() {
+            User u = new User(nome, cognome, passwordHash, email, eta);
+            u.setId(id);
+            return u;
+        }
+    }
+
+    private final Map<String, Voce> utenti;
+
+    UserCache(int capienza) {
+        this.utenti = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Voce> piuVecchio) {
+                return size() > capienza;
+            }
+        };
+    }
+
+    /**
+     * @param email L'email dell'utente.
+     * @return Un nuovo oggetto con i dati dell'utente, oppure null se non è in cache.
+     */
+    synchronized User get(String email) {
+        Voce v = utenti.get(email);
+        return v == null ? null : v.utente();
+    }
+
+    /**
+     * Salva i dati di un utente appena autenticato (l'oggetto passato non viene trattenuto).
+     *
+     * @param u L'utente letto dal database.
+     */
+    synchronized void put(User u) {
+        utenti.put(u.getEmail(), new Voce(u));
+    }
+
+    /**
+     * Dimentica un utente (dati modificati o account eliminato).
+     *
+     * @param userId L'id dell'utente.
+     */
+    synchronized void dimentica(int userId) {
+        utenti.values().removeIf(v -> v.id() == userId);
+    }
+
+    /**
+     * Ricevitore del bus delle modifiche: elimina gli utenti i cui dati sono cambiati.
+     */
+    synchronized void suModifiche(List<ChangeEvent> eventi) {
+        for (ChangeEvent evento : eventi) {
+            if (!(evento instanceof UserChanged utente)) {
+                continue;
+            }
+            if (utente.getIdUtente() == 0 || utente.getOperazione() == ChangeEvent.Operazione.BULK) {
+                utenti.clear();
+            } else {
+                dimentica(utente.getIdUtente());
+            }
+        }
+    }
+
+    synchronized int size() {
+        return utenti.size();
+    }
+}
@@ -0,0 +1,407 @@
+package it.moneygement.tools;
+
+import it.moneygement.dao.ExpenseDAO;
+import it.moneygement.db.InitDatabase;
+import it.moneygement.model.Categories;
+import it.moneygement.utils.SecurityUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Generatore deterministico di dataset sintetici per benchmark e test di capacità.
+ * <p>
+ * Crea utenti e spese con distribuzioni realistiche:
+ * <ul>
+ *     <li>esercenti ({@code nome_spesa}) estratti con distribuzione di Zipf all'interno di ogni categoria
+ *     (pochi esercenti molto frequenti, una lunga coda di esercenti rari);</li>
+ *     <li>stagionalità per categoria ({@link Categories}): viaggi d'estate, bollette più care d'inverno, ecc.;</li>
+ *     <li>importi log-normali (coda lunga) con mediana diversa per categoria;</li>
+ *     <li>date distribuite su più anni, attività per utente molto variabile.</li>
+ * </ul>
+ * Le righe vengono scritte direttamente in SQLite con insert in batch dentro grandi transazioni e con
+ * journal e sync disattivati (il file è usa e getta: se la generazione fallisce si rigenera).
+ * Durante il caricamento i trigger che assegnano la sequenza di sincronizzazione agli inserimenti sono
+ * disattivati e la sequenza viene scritta direttamente nelle righe; a fine generazione vengono ricreati.
+ * </p>
+ * <p>
+ * A parità di seme e parametri il file prodotto è identico byte per byte: tutto dipende solo dal
+ * generatore pseudo-casuale e da una data di fine fissa, mai dall'orologio di sistema.
+ * </p>
+ * <p>
+ * Uso: {@code DatasetGenerator --db dataset.db --users 1000 --expenses 1000000 --years 3 --seed 42 --end 2025-12-31}
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class DatasetGenerator {
+
+    // Righe per executeBatch e righe per transazione
+    private static final int BATCH = 10_000;
+    private static final int RIGHE_PER_COMMIT = 500_000;
+    // Numero di esercenti per categoria ed esponente della distribuzione di Zipf
+    private static final int ESERCENTI_PER_CATEGORIA = 2_000;
+    private static final double ESPONENTE_ZIPF = 1.07;
+    private static final String PASSWORD = "Password1!";
+
+    private static final String INSERT_USER = "INSERT INTO user (id, nome, cognome, email, password_hash, eta, seq) VALUES (?, ?, ?, ?, ?, ?, ?);";
+    // OR IGNORE: le rare coincidenze di esercente, importo e secondo violerebbero l'indice delle impronte
+    private static final String INSERT_EXPENSE = "INSERT OR IGNORE INTO expense (nome_spesa, categoria, descrizione, importo, data, user_id, seq) VALUES (?, ?, ?, ?, ?, ?, ?);";
+    // Trigger della sequenza di sincronizzazione sugli inserimenti (vedi InitDatabase): due UPDATE in più per riga
+    private static final String[] TRIGGER_INSERIMENTO = {"trg_user_seq_insert", "trg_expense_seq_insert"};
+    private static final String UPDATE_SEQUENCE = "UPDATE sync_sequence SET valore = ?, epoca = ? WHERE id = 1;";
+
+    private static final String[] NOMI = {"Mario", "Luca", "Giulia", "Francesca", "Marco", "Sara", "Alessandro", "Chiara", "Andrea", "Elena", "Matteo", "Anna"};
+    private static final String[] COGNOMI = {"Rossi", "Russo", "Ferrari", "Esposito", "Bianchi", "Romano", "Colombo", "Ricci", "Marino", "Greco", "Bruno", "Gallo"};
+    private static final String[] CITTA = {"Milano", "Roma", "Torino", "Napoli", "Bologna", "Firenze", "Genova", "Padova", "Verona", "Bari"};
+    private static final String[] PAGAMENTI = {"Pagamento carta", "Pagamento contactless", "Addebito SEPA", "Bonifico", "Pagamento online", "Contanti"};
+
+    /**
+     * Profilo di generazione di una categoria: nomi tipici degli esercenti, importo mediano,
+     * dispersione e peso per ciascun mese dell'anno (stagionalità).
+     */
+    private static final class Profilo {
+        private final String[] prefissi;
+        private final double mediana;
+        private final double sigma;
+        private final double[] pesoMese;
+
+        private Profilo(String[] prefissi, double mediana, double sigma, double... pesoMese) {
+            this.prefissi = prefissi;
+            this.mediana = mediana;
+            this.sigma = sigma;
+            this.pesoMese = pesoMese;
+        }
+    }
+
+    private static final Map<Categories, Profilo> PROFILI = new EnumMap<>(Categories.class);
+
+    static {
+        //                                                                                   gen  feb  mar  apr  mag  giu  lug  ago  set  ott  nov  dic
+        PROFILI.put(Categories.VIAGGI, new Profilo(new String[]{"Trenitalia", "Hotel", "Volo", "B&B", "Autostrade"}, 120, 1.0,
+                0.5, 0.5, 0.7, 1.0, 1.0, 1.6, 2.4, 2.8, 1.2, 0.7, 0.5, 1.6));
+        PROFILI.put(Categories.RISTORANTI, new Profilo(new String[]{"Pizzeria", "Trattoria", "Osteria", "Bar", "Sushi"}, 25, 0.7,
+                0.9, 0.9, 1.0, 1.0, 1.1, 1.2, 1.2, 1.0, 1.0, 1.0, 0.9, 1.4));
+        PROFILI.put(Categories.HOBBY, new Profilo(new String[]{"Libreria", "Modellismo", "Musica", "Fotografia"}, 30, 0.9,
+                1.0, 0.9, 1.0, 1.0, 1.0, 0.9, 0.8, 0.7, 1.0, 1.1, 1.2, 1.6));
+        PROFILI.put(Categories.SPORT, new Profilo(new String[]{"Palestra", "Piscina", "Decathlon", "Tennis Club"}, 35, 0.8,
+                1.5, 1.2, 1.2, 1.3, 1.3, 1.0, 0.7, 0.5, 1.4, 1.1, 1.0, 0.8));
+        PROFILI.put(Categories.ALTRO, new Profilo(new String[]{"Supermercato", "Farmacia", "Tabaccheria", "Ferramenta"}, 15, 0.9,
+                1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 0.9, 1.0, 1.0, 1.0, 1.2));
+        PROFILI.put(Categories.AUTO, new Profilo(new String[]{"Distributore", "Officina", "Parcheggio", "Autolavaggio"}, 55, 0.8,
+                1.0, 1.0, 1.0, 1.0, 1.0, 1.1, 1.3, 1.3, 1.0, 1.0, 1.0, 1.0));
+        PROFILI.put(Categories.BOLLETTE, new Profilo(new String[]{"Enel", "Gas", "Acqua", "Internet", "Telefono"}, 80, 0.5,
+                1.5, 1.4, 1.2, 1.0, 0.9, 0.9, 1.0, 0.9, 0.9, 1.0, 1.2, 1.4));
+        PROFILI.put(Categories.SVAGO, new Profilo(new String[]{"Cinema", "Teatro", "Concerto", "Streaming", "Museo"}, 20, 0.9,
+                1.0, 1.0, 1.0, 1.0, 1.0, 1.1, 1.2, 1.2, 1.0, 1.0, 1.1, 1.5));
+    }
+
+    // --- CONFIGURAZIONE ---
+    private String dbPath = "dataset.db";
+    private int utenti = 1_000;
+    private long spese = 1_000_000;
+    private int anni = 3;
+    private long seed = 42;
+    private LocalDate fine = LocalDate.of(2025, 12, 31);
+
+    private final SplittableRandom random;
+    private final Categories[] categorie = Categories.values();
+    private final Map<Categories, String[]> esercenti = new EnumMap<>(Categories.class);
+    private final double[] cdfZipf;
+    // Probabilità cumulate delle categorie per ciascun mese
+    private final double[][] cdfCategoriaPerMese = new double[12][];
+
+    /**
+     * Crea il generatore con le opzioni della riga di comando.
+     */
+    DatasetGenerator(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String valore = args[i + 1];
+            switch (args[i]) {
+                case "--db" -> dbPath = valore;
+                case "--users" -> utenti = Integer.parseInt(valore);
+                case "--expenses" -> spese = Long.parseLong(valore);
+                case "--years" -> anni = Integer.parseInt(valore);
+                case "--seed" -> seed = Long.parseLong(valore);
+                case "--end" -> fine = LocalDate.parse(valore);
+                default -> throw new IllegalArgumentException("Opzione sconosciuta: " + args[i]);
+            }
+        }
+        this.random = new SplittableRandom(seed);
+        this.cdfZipf = cdfZipf(ESERCENTI_PER_CATEGORIA, ESPONENTE_ZIPF);
+        preparaEsercenti();
+        preparaStagionalita();
+    }
+
+    /**
+     * Genera il database e stampa le statistiche di scrittura.
+     */
+    void run() throws SQLException, IOException {
+        File file = new File(dbPath);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Impossibile sovrascrivere " + dbPath);
+        }
+
+        long inizio = System.nanoTime();
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath)) {
+            try (Statement stmt = conn.createStatement()) {
+                // File usa e getta: niente journal né fsync, lock esclusivo per tutta la generazione
+                stmt.execute("PRAGMA journal_mode = OFF;");
+                stmt.execute("PRAGMA synchronous = OFF;");
+                stmt.execute("PRAGMA locking_mode = EXCLUSIVE;");
+                stmt.execute("PRAGMA cache_size = -262144;");
+            }
+            new InitDatabase().initializeDb(conn);
+            try (Statement stmt = conn.createStatement()) {
+                for (String trigger : TRIGGER_INSERIMENTO) {
+                    stmt.execute("DROP TRIGGER IF EXISTS " + trigger + ";");
+                }
+            }
+
+            conn.setAutoCommit(false);
+            long[] spesePerUtente = distribuisciSpese();
+            scriviUtenti(conn);
+            long righe = scriviSpese(conn, spesePerUtente);
+            // Ultima sequenza assegnata ed epoca derivata dal seme (randomblob renderebbe il file non riproducibile)
+            try (PreparedStatement ps = conn.prepareStatement(UPDATE_SEQUENCE)) {
+                ps.setLong(1, utenti + righe);
+                ps.setString(2, String.format("%016x", random.nextLong()));
+                ps.executeUpdate();
+            }
+            conn.commit();
+            conn.setAutoCommit(true);
+            // Ricrea i trigger eliminati
+            new InitDatabase().initializeDb(conn);
+
+            double secondi = (System.nanoTime() - inizio) / 1e9;
+            System.out.println(String.format(Locale.ROOT, "Generati %d utenti e %d spese in %.2fs (%.0f righe/s)",
+                    utenti, righe, secondi, (utenti + righe) / secondi));
+        }
+        System.out.println("SHA-256 del file: " + sha256(Path.of(dbPath)));
+    }
+
+    // --- PREPARAZIONE ---
+
+    /**
+     * Crea il catalogo degli esercenti di ogni categoria. L'ordine conta: il primo è il più frequente.
+     */
+    private void preparaEsercenti() {
+        for (Categories c : categorie) {
+            Profilo p = PROFILI.get(c);
+            String[] nomi = new String[ESERCENTI_PER_CATEGORIA];
+            for (int i = 0; i < nomi.length; i++) {
+                String prefisso = p.prefissi[i % p.prefissi.length];
+                String citta = CITTA[(i / p.prefissi.length) % CITTA.length];
+                int filiale = i / (p.prefissi.length * CITTA.length);
+                nomi[i] = filiale == 0 ? prefisso + " " + citta : prefisso + " " + citta + " " + (filiale + 1);
+            }
+            esercenti.put(c, nomi);
+        }
+    }
+
+    /**
+     * Precalcola, per ogni mese, la distribuzione cumulata delle categorie.
+     */
+    private void preparaStagionalita() {
+        for (int mese = 0; mese < 12; mese++) {
+            double[] cdf = new double[categorie.length];
+            double somma = 0;
+            for (int i = 0; i < categorie.length; i++) {
+                somma += PROFILI.get(categorie[i]).pesoMese[mese];
+                cdf[i] = somma;
+            }
+            for (int i = 0; i < cdf.length; i++) {
+                cdf[i] /= somma;
+            }
+            cdfCategoriaPerMese[mese] = cdf;
+        }
+    }
+
+    /**
+     * Distribuzione cumulata di Zipf sui ranghi 1..n: P(k) proporzionale a 1/k^s.
+     */
+    private static double[] cdfZipf(int n, double s) {
+        double[] cdf = new double[n];
+        double somma = 0;
+        for (int k = 1; k <= n; k++) {
+            somma += 1.0 / Math.pow(k, s);
+            cdf[k - 1] = somma;
+        }
+        for (int i = 0; i < n; i++) {
+            cdf[i] /= somma;
+        }
+        return cdf;
+    }
+
+    /**
+     * Suddivide il numero totale di spese tra gli utenti con pesi log-normali:
+     * pochi utenti molto attivi e molti utenti occasionali.
+     */
+    private long[] distribuisciSpese() {
+        double[] pesi = new double[utenti];
+        double somma = 0;
+        for (int u = 0; u < utenti; u++) {
+            pesi[u] = Math.exp(gaussiana());
+            somma += pesi[u];
+        }
+        long[] conteggi = new long[utenti];
+        long assegnate = 0;
+        for (int u = 0; u < utenti; u++) {
+            conteggi[u] = (long) Math.floor(spese * pesi[u] / somma);
+            assegnate += conteggi[u];
+        }
+        // Il resto dell'arrotondamento va agli utenti in ordine, così il totale è esatto
+        for (int u = 0; assegnate < spese; u = (u + 1) % utenti) {
+            conteggi[u]++;
+            assegnate++;
+        }
+        return conteggi;
+    }
+
+    // --- SCRITTURA ---
+
+    private void scriviUtenti(Connection conn) throws SQLException {
+        // Tutti gli utenti hanno la stessa password: la calcoliamo una volta sola
+        String hash = SecurityUtils.hashPassword(PASSWORD);
+        try (PreparedStatement ps = conn.prepareStatement(INSERT_USER)) {
+            for (int u = 1; u <= utenti; u++) {
+                ps.setInt(1, u);
+                ps.setString(2, NOMI[random.nextInt(NOMI.length)]);
+                ps.setString(3, COGNOMI[random.nextInt(COGNOMI.length)]);
+                ps.setString(4, "utente" + u + "@dataset.it");
+                ps.setString(5, hash);
+                ps.setInt(6, 18 + random.nextInt(60));
+                ps.setLong(7, u);
+                ps.addBatch();
+                if (u % BATCH == 0) {
+                    ps.executeBatch();
+                }
+            }
+            ps.executeBatch();
+        }
+    }
+
+    /**
+     * Scrive le spese utente per utente, in ordine cronologico, con insert in batch.
+     *
+     * @return Il numero di spese scritte.
+     */
+    private long scriviSpese(Connection conn, long[] spesePerUtente) throws SQLException {
+        LocalDate inizio = fine.minusYears(anni).plusDays(1);
+        int giorni = (int) (fine.toEpochDay() - inizio.toEpochDay()) + 1;
+        long scritte = 0;
+
+        try (PreparedStatement ps = conn.prepareStatement(INSERT_EXPENSE)) {
+            for (int u = 0; u < utenti; u++) {
+                int n = (int) spesePerUtente[u];
+                // Generiamo prima le date dell'utente e le ordiniamo, così gli id crescono nel tempo
+                long[] istanti = new long[n];
+                for (int i = 0; i < n; i++) {
+                    LocalDate giorno = inizio.plusDays(random.nextInt(giorni));
+                    int secondi = (8 + random.nextInt(15)) * 3600 + random.nextInt(60) * 60 + random.nextInt(60);
+                    istanti[i] = giorno.toEpochDay() * 86_400L + secondi;
+                }
+                Arrays.sort(istanti);
+
+                for (int i = 0; i < n; i++) {
+                    LocalDateTime data = LocalDateTime.ofEpochSecond(istanti[i], 0, ZoneOffset.UTC);
+                    Categories cat = categoriaPerMese(data.getMonthValue() - 1);
+                    Profilo p = PROFILI.get(cat);
+                    String esercente = esercenti.get(cat)[zipf()];
+                    // Importo log-normale arrotondato al centesimo (minimo 0.01)
+                    double importo = Math.max(0.01, Math.round(p.mediana * Math.exp(p.sigma * gaussiana()) * 100) / 100.0);
+
+                    ps.setString(1, esercente);
+                    ps.setString(2, cat.name());
+                    ps.setString(3, PAGAMENTI[random.nextInt(PAGAMENTI.length)]);
+                    ps.setDouble(4, importo);
+                    ps.setString(5, data.format(ExpenseDAO.FORMATO_DATA));
+                    ps.setInt(6, u + 1);
+                    ps.setLong(7, utenti + scritte + 1);
+                    ps.addBatch();
+
+                    scritte++;
+                    if (scritte % BATCH == 0) {
+                        ps.executeBatch();
+                    }
+                    if (scritte % RIGHE_PER_COMMIT == 0) {
+                        conn.commit();
+                    }
+                }
+            }
+            ps.executeBatch();
+        }
+        return scritte;
+    }
+
+    // --- CAMPIONAMENTO ---
+
+    private Categories categoriaPerMese(int mese) {
+        return categorie[cerca(cdfCategoriaPerMese[mese], random.nextDouble())];
+    }
+
+    private int zipf() {
+        return cerca(cdfZipf, random.nextDouble());
+    }
+
+    /**
+     * Ricerca binaria del primo indice con cdf[i] >= x.
+     */
+    private static int cerca(double[] cdf, double x) {
+        int i = Arrays.binarySearch(cdf, x);
+        int indice = i >= 0 ? i : -i - 1;
+        return Math.min(indice, cdf.length - 1);
+    }
+
+    /**
+     * Normale standard con il metodo di Box-Muller (deterministico dato il generatore).
+     */
+    private double gaussiana() {
+        double u1 = 1.0 - random.nextDouble();
+        double u2 = random.nextDouble();
+        return Math.sqrt(-2.0 * Math.log(u1)) * Math.cos(2.0 * Math.PI * u2);
+    }
+
+    private static String sha256(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[1 << 16];
+            int letti;
+            while ((letti = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, letti);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 non disponibile", e);
+        }
+    }
+
+    /**
+     * Avvia la generazione.
+     *
+     * @param args Le opzioni (vedi documentazione della classe).
+     * @throws Exception se la scrittura del database fallisce.
+     */
+    public static void main(String[] args) throws Exception {
+        new DatasetGenerator(args).run();
+    }
+}
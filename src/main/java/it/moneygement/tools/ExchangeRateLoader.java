@@ -0,0 +1,141 @@
+package it.moneygement.tools;
+
+import it.moneygement.dao.ExchangeRateDAO;
+import it.moneygement.db.DbConnection;
+import it.moneygement.db.InitDatabase;
+import it.moneygement.model.Expense;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Carica i tassi di cambio da un file nella tabella {@code exchange_rate}, senza accessi alla rete.
+ * <p>
+ * Il file ha una riga {@code valuta,per_euro} per valuta (es. {@code USD,1.08}: quanti dollari vale un euro);
+ * le righe vuote e quelle che iniziano con {@code #} sono ignorate. L'euro vale sempre 1 e non va indicato.
+ * Il file viene letto e validato per intero prima di toccare il database; i tassi vengono poi salvati in una
+ * transazione per database, sostituendo quelli delle valute presenti nel file e lasciando invariati gli altri.
+ * In modalità shard la tabella viene scritta su ogni shard (le query la leggono nello shard dell'utente):
+ * va rilanciato anche dopo aver aggiunto shard con {@link ShardRebalancer}.
+ * </p>
+ * <p>
+ * L'applicazione rilegge i tassi entro dieci minuti (vedi {@code service.CurrencyConverter}).
+ * </p>
+ * <p>
+ * Uso: {@code ExchangeRateLoader --db moneygement.db --rates cambi.csv}, oppure in modalità shard
+ * {@code ExchangeRateLoader --prefix moneygement --shards 4 --rates cambi.csv}
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class ExchangeRateLoader {
+
+    private final List<String> database = new ArrayList<>();
+    private String prefisso;
+    private int shard;
+    private Path fileTassi;
+
+    /**
+     * Crea lo strumento con le opzioni della riga di comando.
+     */
+    ExchangeRateLoader(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--db" -> database.add(args[++i]);
+                case "--prefix" -> prefisso = args[++i];
+                case "--shards" -> shard = Integer.parseInt(args[++i]);
+                case "--rates" -> fileTassi = Path.of(args[++i]);
+                default -> throw new IllegalArgumentException("Opzione sconosciuta: " + args[i]);
+            }
+        }
+        if (fileTassi == null) {
+            throw new IllegalArgumentException("Indicare il file dei tassi con --rates <file>");
+        }
+        if (prefisso != null) {
+            if (shard < 1) {
+                throw new IllegalArgumentException("Con --prefix indicare il numero di shard con --shards N");
+            }
+            for (int i = 0; i < shard; i++) {
+                database.add(DbConnection.percorsoShard(prefisso, i).substring("jdbc:sqlite:".length()));
+            }
+        }
+        if (database.isEmpty()) {
+            database.add("moneygement.db");
+        }
+    }
+
+    /**
+     * Legge il file dei tassi e li salva su tutti i database.
+     */
+    void run() throws IOException, SQLException {
+        Map<String, Double> tassi = leggi(fileTassi);
+        LocalDate oggi = LocalDate.now();
+        for (String file : database) {
+            try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + file)) {
+                // La tabella dei cambi può non esistere in un database creato da una versione precedente
+                new InitDatabase().initializeDb(conn);
+                conn.setAutoCommit(false);
+                try {
+                    ExchangeRateDAO.saveRates(conn, tassi, oggi);
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                }
+            }
+            System.out.println("Caricati " + tassi.size() + " tassi di cambio in " + file);
+        }
+    }
+
+    /**
+     * Legge e valida il file dei tassi.
+     *
+     * @throws IllegalArgumentException se una riga non è valida (con il suo numero).
+     */
+    static Map<String, Double> leggi(Path file) throws IOException {
+        Map<String, Double> tassi = new TreeMap<>();
+        List<String> righe = Files.readAllLines(file, StandardCharsets.UTF_8);
+        for (int i = 0; i < righe.size(); i++) {
+            String riga = righe.get(i).strip();
+            if (riga.isEmpty() || riga.startsWith("#")) {
+                continue;
+            }
+            String[] campi = riga.split(",");
+            String valuta = campi[0].strip().toUpperCase();
+            double perEuro;
+            try {
+                perEuro = campi.length == 2 ? Double.parseDouble(campi[1].strip()) : Double.NaN;
+            } catch (NumberFormatException e) {
+                perEuro = Double.NaN;
+            }
+            if (!Expense.isCodiceValuta(valuta) || !(perEuro > 0) || Double.isInfinite(perEuro)) {
+                throw new IllegalArgumentException("Riga " + (i + 1) + " non valida (atteso 'valuta,per_euro'): " + riga);
+            }
+            if (valuta.equals(Expense.VALUTA_PREDEFINITA) && perEuro != 1) {
+                throw new IllegalArgumentException("Riga " + (i + 1) + ": il tasso dell'euro è sempre 1");
+            }
+            tassi.put(valuta, perEuro);
+        }
+        return tassi;
+    }
+
+    /**
+     * Avvia il caricamento.
+     *
+     * @param args Le opzioni (vedi documentazione della classe).
+     * @throws Exception se il file o i database non sono accessibili.
+     */
+    public static void main(String[] args) throws Exception {
+        new ExchangeRateLoader(args).run();
+    }
+}
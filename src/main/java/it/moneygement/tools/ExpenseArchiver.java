@@ -0,0 +1,284 @@
+package it.moneygement.tools;
+
+import it.moneygement.dao.ExpenseDAO;
+import it.moneygement.db.DbConnection;
+import it.moneygement.db.InitDatabase;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.Year;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Archivia per anno le spese più vecchie di un anno limite.
+ * <p>
+ * Le spese di ogni anno precedente al limite vengono spostate in un file SQLite dedicato
+ * ({@code <database>-archive-<anno>.db}); nel database principale restano i riepiloghi mensili per
+ * utente e categoria ({@code expense_summary}) e una riga nel catalogo {@code archive_year}.
+ * Così la tabella {@code expense} e i suoi indici contengono solo gli anni recenti, mentre
+ * {@code ExpenseDAO.getExpensesInRange} legge i file di archivio solo quando l'intervallo richiesto li tocca.
+ * </p>
+ * <p>
+ * Ogni anno viene spostato con un'unica transazione su una connessione aperta sul file di archivio, a cui è
+ * collegato con ATTACH il database delle spese: copia nell'archivio, cancellazione, riepiloghi e catalogo
+ * vengono confermati o annullati insieme. Durante la transazione anche l'archivio è in modalità WAL: in WAL
+ * ogni file viene confermato per conto suo, nell'ordine in cui è collegato alla connessione, quindi l'archivio
+ * (il database principale della connessione) viene confermato prima del database delle spese. Un'interruzione
+ * durante la conferma può lasciare al più una spesa in entrambi i file, mai in nessuno dei due: le letture
+ * scartano i doppioni, e rilanciando lo strumento la copia (che ignora le righe già presenti) li elimina.
+ * Rilanciando lo strumento vengono archiviate anche le spese con date vecchie inserite dopo l'archiviazione
+ * precedente, e i riepiloghi vengono ricalcolati.
+ * Il file di archivio è una tabella WITHOUT ROWID ordinata per (utente, data), senza indici secondari e
+ * compattata con VACUUM (in modalità rollback journal, come lo leggono le connessioni in sola lettura
+ * dell'applicazione).
+ * </p>
+ * <p>
+ * Le spese archiviate sono in sola lettura per l'applicazione: si leggono per intervallo di date e per id,
+ * mentre modifiche e cancellazioni (singole e massive) riguardano solo il database principale. Fa eccezione la
+ * cancellazione di un account, che le cancella anche dagli archivi. I riepiloghi sono per valuta, e vengono
+ * convertiti nella valuta base dell'utente alla lettura con i cambi attuali, come le spese non archiviate.
+ * </p>
+ * <p>
+ * Uso: {@code ExpenseArchiver --db moneygement.db --before 2025 [--vacuum]}, oppure in modalità shard
+ * {@code ExpenseArchiver --prefix moneygement --shards 4 --before 2025}. Senza {@code --before} restano
+ * nel database principale l'anno corrente e quello precedente.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class ExpenseArchiver {
+
+    private static final String SELECT_YEARS = "SELECT DISTINCT CAST(substr(data, 1, 4) AS INTEGER) AS anno FROM expense WHERE data < ? ORDER BY anno;";
+    // Le istruzioni seguenti girano sulla connessione del file di archivio ('main'), con il database delle
+    // spese collegato come 'principale'
+    private static final String CREATE_ARCHIVE_TABLE = "CREATE TABLE IF NOT EXISTS main.expense (" +
+            "id INTEGER NOT NULL, " +
+            "nome_spesa TEXT NOT NULL, " +
+            "categoria TEXT NOT NULL, " +
+            "descrizione TEXT NOT NULL, " +
+            "importo REAL NOT NULL, " +
+            "data TEXT NOT NULL, " +
+            "user_id INTEGER NOT NULL, " +
+            "version INTEGER NOT NULL, " +
+            "valuta TEXT NOT NULL DEFAULT 'EUR', " +
+            "PRIMARY KEY (user_id, data, id)) WITHOUT ROWID;";
+    private static final String COPY_YEAR = "INSERT OR IGNORE INTO main.expense (id, nome_spesa, categoria, descrizione, importo, data, user_id, version, valuta) " +
+            "SELECT id, nome_spesa, categoria, descrizione, importo, data, user_id, version, valuta FROM principale.expense WHERE data >= ? AND data < ?;";
+    private static final String DELETE_YEAR = "DELETE FROM principale.expense WHERE data >= ? AND data < ?;";
+    // Le spese archiviate non sono cancellate: i tombstone creati dal trigger della DELETE vengono rimossi
+    // nella stessa transazione, così i dispositivi sincronizzati ne conservano la copia locale
+    private static final String DELETE_TOMBSTONES = "DELETE FROM principale.expense_tombstone WHERE id IN (SELECT id FROM main.expense WHERE data >= ? AND data < ?);";
+    private static final String DELETE_SUMMARY = "DELETE FROM principale.expense_summary WHERE anno = ?;";
+    // I riepiloghi restano nella valuta delle spese: la conversione avviene alla lettura, con i cambi attuali
+    private static final String INSERT_SUMMARY = "INSERT INTO principale.expense_summary (user_id, anno, mese, categoria, valuta, numero, totale) " +
+            "SELECT user_id, ?, CAST(substr(data, 6, 2) AS INTEGER) AS mese, categoria, valuta, COUNT(*), SUM(importo) " +
+            "FROM main.expense GROUP BY user_id, mese, categoria, valuta;";
+    private static final String UPSERT_CATALOG = "INSERT OR REPLACE INTO principale.archive_year (anno, file, righe, archiviato_il) " +
+            "SELECT ?, ?, COUNT(*), ? FROM main.expense;";
+
+    private final List<String> database = new ArrayList<>();
+    private int annoLimite = Year.now().getValue() - 1;
+    private boolean vacuum = false;
+
+    /**
+     * Crea lo strumento con le opzioni della riga di comando.
+     */
+    ExpenseArchiver(String[] args) {
+        String prefisso = null;
+        int shard = 0;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--db" -> database.add(args[++i]);
+                case "--prefix" -> prefisso = args[++i];
+                case "--shards" -> shard = Integer.parseInt(args[++i]);
+                case "--before" -> annoLimite = Integer.parseInt(args[++i]);
+                case "--vacuum" -> vacuum = true;
+                default -> throw new IllegalArgumentException("Opzione sconosciuta: " + args[i]);
+            }
+        }
+        for (int i = 0; i < shard; i++) {
+            database.add(DbConnection.percorsoShard(prefisso, i).substring("jdbc:sqlite:".length()));
+        }
+        if (database.isEmpty()) {
+            database.add("moneygement.db");
+        }
+    }
+
+    /**
+     * Archivia gli anni precedenti al limite in ciascun database indicato.
+     */
+    void run() throws SQLException {
+        for (String file : database) {
+            archivia(file);
+        }
+    }
+
+    private void archivia(String file) throws SQLException {
+        String base = file.replaceFirst("\\.db$", "");
+        long dimensionePrima = new File(file).length();
+        long inizio = System.nanoTime();
+
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + file)) {
+            // Garantisce che esistano le tabelle di catalogo e riepilogo (anche sui database più vecchi)
+            new InitDatabase().initializeDb(conn);
+
+            List<Integer> anni = new ArrayList<>();
+            try (PreparedStatement ps = conn.prepareStatement(SELECT_YEARS)) {
+                ps.setString(1, inizioAnno(annoLimite));
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        anni.add(rs.getInt("anno"));
+                    }
+                }
+            }
+            if (anni.isEmpty()) {
+                System.out.println(file + ": nessuna spesa precedente al " + annoLimite);
+                return;
+            }
+
+            for (int anno : anni) {
+                String archivio = base + "-archive-" + anno + ".db";
+                int righe = archiviaAnno(file, anno, archivio);
+                compatta(archivio);
+                System.out.println(String.format(Locale.ROOT, "%s: anno %d -> %s (%d spese spostate, %d KB)",
+                        file, anno, archivio, righe, new File(archivio).length() / 1024));
+            }
+
+            if (vacuum) {
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("VACUUM;");
+                }
+            }
+        }
+
+        double secondi = (System.nanoTime() - inizio) / 1e9;
+        System.out.println(String.format(Locale.ROOT, "%s: %d KB -> %d KB in %.2fs%s", file,
+                dimensionePrima / 1024, new File(file).length() / 1024, secondi, vacuum ? "" : " (usare --vacuum per restituire lo spazio liberato)"));
+    }
+
+    /**
+     * Sposta un anno nel suo file di archivio e aggiorna riepiloghi e catalogo, in un'unica transazione.
+     *
+     * @return Il numero di spese spostate.
+     */
+    private int archiviaAnno(String file, int anno, String archivio) throws SQLException {
+        String da = inizioAnno(anno);
+        String a = inizioAnno(anno + 1);
+        int righe;
+
+        try (Connection conn = apriArchivio(archivio)) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("ATTACH DATABASE '" + file.replace("'", "''") + "' AS principale;");
+            }
+            conn.setAutoCommit(false);
+            try {
+                try (PreparedStatement ps = conn.prepareStatement(COPY_YEAR)) {
+                    ps.setString(1, da);
+                    ps.setString(2, a);
+                    righe = ps.executeUpdate();
+                }
+                try (PreparedStatement ps = conn.prepareStatement(DELETE_YEAR)) {
+                    ps.setString(1, da);
+                    ps.setString(2, a);
+                    ps.executeUpdate();
+                }
+                try (PreparedStatement ps = conn.prepareStatement(DELETE_TOMBSTONES)) {
+                    ps.setString(1, da);
+                    ps.setString(2, a);
+                    ps.executeUpdate();
+                }
+                try (PreparedStatement ps = conn.prepareStatement(DELETE_SUMMARY)) {
+                    ps.setInt(1, anno);
+                    ps.executeUpdate();
+                }
+                try (PreparedStatement ps = conn.prepareStatement(INSERT_SUMMARY)) {
+                    ps.setInt(1, anno);
+                    ps.executeUpdate();
+                }
+                try (PreparedStatement ps = conn.prepareStatement(UPSERT_CATALOG)) {
+                    ps.setInt(1, anno);
+                    ps.setString(2, archivio);
+                    ps.setString(3, LocalDateTime.now().withNano(0).toString());
+                    ps.executeUpdate();
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+        return righe;
+    }
+
+    /**
+     * Apre una connessione su un file di archivio (creandolo se non esiste) pronta per una transazione che
+     * coinvolge anche altri database: archivio in modalità WAL, così viene confermato per primo (vedi la
+     * documentazione della classe), con la tabella delle spese. Usato anche da {@link ShardRebalancer}.
+     * Dopo le scritture il file va riportato in modalità rollback journal con {@link #compatta(String)}.
+     *
+     * @param archivio Il percorso del file di archivio.
+     * @return La connessione, da chiudere a cura del chiamante.
+     */
+    static Connection apriArchivio(String archivio) throws SQLException {
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:" + archivio);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA journal_mode = WAL;");
+            stmt.execute(CREATE_ARCHIVE_TABLE);
+            aggiungiValuta(stmt);
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+        return conn;
+    }
+
+    /**
+     * Riporta il file di archivio in modalità rollback journal e lo riscrive senza spazio libero, con pagine
+     * grandi (meno intestazioni e letture sequenziali più efficienti per un file che non verrà più modificato spesso).
+     */
+    static void compatta(String archivio) throws SQLException {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + archivio);
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA journal_mode = DELETE;");
+            stmt.execute("PRAGMA page_size = 65536;");
+            stmt.execute("VACUUM;");
+        }
+    }
+
+    /**
+     * Aggiunge la colonna 'valuta' a un archivio creato prima dell'introduzione delle valute (spese in euro).
+     */
+    private static void aggiungiValuta(Statement stmt) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("PRAGMA main.table_info(expense);")) {
+            while (rs.next()) {
+                if ("valuta".equalsIgnoreCase(rs.getString("name"))) {
+                    return;
+                }
+            }
+        }
+        stmt.execute("ALTER TABLE main.expense ADD COLUMN valuta TEXT NOT NULL DEFAULT 'EUR';");
+    }
+
+    private static String inizioAnno(int anno) {
+        return LocalDate.of(anno, 1, 1).atStartOfDay().format(ExpenseDAO.FORMATO_DATA);
+    }
+
+    /**
+     * Avvia l'archiviazione.
+     *
+     * @param args Le opzioni (vedi documentazione della classe).
+     * @throws Exception se l'accesso ai database fallisce.
+     */
+    public static void main(String[] args) throws Exception {
+        new ExpenseArchiver(args).run();
+    }
+}
@@ -0,0 +1,190 @@
+package it.moneygement.tools;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * Istogramma delle latenze con bucket log-lineari, nello stile di HdrHistogram.
+ * <p>
+ * I valori (in microsecondi) fino a 255 hanno un bucket ciascuno; oltre, ogni potenza di due è divisa
+ * in 128 sotto-bucket, quindi l'errore relativo resta sotto l'1% su tutto l'intervallo con memoria fissa
+ * (circa 4000 contatori per coprire fino a un'ora). Registrare un valore costa O(1).
+ * </p>
+ * <p>
+ * La classe non è thread-safe: ogni utente virtuale usa i propri istogrammi, che vengono poi uniti
+ * con {@link #add(LatencyHistogram)} alla fine del test.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class LatencyHistogram {
+
+    private static final int LINEARI = 256;
+    private static final int SOTTO_BUCKET = 128;
+    private static final int BIT_SOTTO_BUCKET = 7;
+    // Valore massimo registrabile: un'ora in microsecondi (i valori oltre vengono saturati)
+    private static final long VALORE_MASSIMO = 3_600_000_000L;
+
+    private final long[] conteggi = new long[indice(VALORE_MASSIMO) + 1];
+    private long totale;
+    private long massimo;
+    private double somma;
+    private double sommaQuadrati;
+
+    /**
+     * Registra un valore.
+     *
+     * @param micros La latenza in microsecondi.
+     */
+    public void record(long micros) {
+        long v = Math.max(0, Math.min(micros, VALORE_MASSIMO));
+        conteggi[indice(v)]++;
+        totale++;
+        massimo = Math.max(massimo, v);
+        somma += v;
+        sommaQuadrati += (double) v * v;
+    }
+
+    /**
+     * Aggiunge a questo istogramma tutti i valori di un altro.
+     *
+     * @param altro L'istogramma da unire.
+     */
+    public void add(LatencyHistogram altro) {
+        for (int i = 0; i < conteggi.length; i++) {
+            conteggi[i] += altro.conteggi[i];
+        }
+        totale += altro.totale;
+        massimo = Math.max(massimo, altro.massimo);
+        somma += altro.somma;
+        sommaQuadrati += altro.sommaQuadrati;
+    }
+
+    /**
+     * @return Il numero di valori registrati.
+     */
+    public long getTotalCount() {
+        return totale;
+    }
+
+    /**
+     * @return Il valore massimo registrato.
+     */
+    public long getMax() {
+        return massimo;
+    }
+
+    /**
+     * @return La media dei valori registrati.
+     */
+    public double getMean() {
+        return totale == 0 ? 0 : somma / totale;
+    }
+
+    /**
+     * @return La deviazione standard dei valori registrati.
+     */
+    public double getStdDeviation() {
+        if (totale == 0) {
+            return 0;
+        }
+        double media = getMean();
+        return Math.sqrt(Math.max(0, sommaQuadrati / totale - media * media));
+    }
+
+    /**
+     * Restituisce il valore al percentile richiesto (limite superiore del bucket corrispondente).
+     *
+     * @param percentile Il percentile tra 0 e 100 (es. 99.0).
+     * @return Il valore in microsecondi.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totale == 0) {
+            return 0;
+        }
+        long soglia = Math.max(1, (long) Math.ceil(percentile / 100.0 * totale));
+        long cumulato = 0;
+        for (int i = 0; i < conteggi.length; i++) {
+            cumulato += conteggi[i];
+            if (cumulato >= soglia) {
+                return Math.min(limiteSuperiore(i), massimo);
+            }
+        }
+        return massimo;
+    }
+
+    /**
+     * Stampa la distribuzione dei percentili nel formato testuale di HdrHistogram
+     * (Value, Percentile, TotalCount, 1/(1-Percentile)), con i percentili sempre più fitti verso la coda.
+     *
+     * @param out      Lo stream su cui stampare.
+     * @param scala    Divisore per i valori (es. 1000.0 per stampare millisecondi).
+     */
+    public void outputPercentileDistribution(PrintStream out, double scala) {
+        out.println(String.format(Locale.ROOT, "%12s %14s %10s %14s%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)"));
+        if (totale == 0) {
+            return;
+        }
+
+        // Come HdrHistogram: 5 righe per ogni dimezzamento della distanza dal 100%
+        // (0-50% in passi del 10%, 50-75% in passi del 5%, e così via), fino alla risoluzione dei dati
+        final int righePerMeta = 5;
+        for (int meta = 0; ; meta++) {
+            double inizio = 100.0 * (1 - Math.pow(0.5, meta));
+            double ampiezza = 100.0 * Math.pow(0.5, meta + 1);
+            for (int k = 0; k < righePerMeta; k++) {
+                double percentile = inizio + ampiezza * k / righePerMeta;
+                stampaRiga(out, getValueAtPercentile(percentile), percentile, scala);
+            }
+            if (ampiezza < 100.0 / totale) {
+                break;
+            }
+        }
+        stampaRiga(out, massimo, 100.0, scala);
+
+        out.println(String.format(Locale.ROOT, "#[Mean    = %12.3f, StdDeviation   = %12.3f]", getMean() / scala, getStdDeviation() / scala));
+        out.println(String.format(Locale.ROOT, "#[Max     = %12.3f, Total count    = %12d]", massimo / scala, totale));
+        out.println(String.format(Locale.ROOT, "#[Buckets = %12d, SubBuckets     = %12d]", conteggi.length, SOTTO_BUCKET));
+    }
+
+    // --- METODI PRIVATI ---
+
+    private void stampaRiga(PrintStream out, long valore, double percentile, double scala) {
+        long cumulato = conteggioFinoA(valore);
+        String inverso = percentile >= 100.0 ? "" : String.format(Locale.ROOT, "%14.2f", 1.0 / (1.0 - percentile / 100.0));
+        out.println(String.format(Locale.ROOT, "%12.3f %2.12f %10d %s", valore / scala, percentile / 100.0, cumulato, inverso));
+    }
+
+    private long conteggioFinoA(long valore) {
+        long cumulato = 0;
+        int limite = indice(Math.min(valore, VALORE_MASSIMO));
+        for (int i = 0; i <= limite; i++) {
+            cumulato += conteggi[i];
+        }
+        return cumulato;
+    }
+
+    /**
+     * Calcola l'indice del bucket per un valore.
+     */
+    private static int indice(long v) {
+        if (v < LINEARI) {
+            return (int) v;
+        }
+        // Esponente tale che v >> esp cada in [128, 256)
+        int esp = 63 - Long.numberOfLeadingZeros(v) - BIT_SOTTO_BUCKET;
+        return LINEARI + (esp - 1) * SOTTO_BUCKET + (int) ((v >>> esp) - SOTTO_BUCKET);
+    }
+
+    /**
+     * Calcola il valore più alto rappresentato da un bucket.
+     */
+    private static long limiteSuperiore(int indice) {
+        if (indice < LINEARI) {
+            return indice;
+        }
+        int esp = (indice - LINEARI) / SOTTO_BUCKET + 1;
+        long mantissa = (indice - LINEARI) % SOTTO_BUCKET + SOTTO_BUCKET;
+        return ((mantissa + 1) << esp) - 1;
+    }
+}
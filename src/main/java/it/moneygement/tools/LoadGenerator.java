@@ -0,0 +1,351 @@
+package it.moneygement.tools;
+
+import it.moneygement.db.DbConnection;
+import it.moneygement.db.InitDatabase;
+import it.moneygement.exception.RisorsaNonTrovataException;
+import it.moneygement.model.Categories;
+import it.moneygement.model.Expense;
+import it.moneygement.model.ExpenseUpdateResult;
+import it.moneygement.service.MoneygementService;
+import it.moneygement.utils.SessionContext;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Generatore di carico multi-utente per il Service Layer.
+ * <p>
+ * Simula N utenti virtuali (uno per virtual thread) che eseguono un mix realistico di operazioni su
+ * {@link MoneygementService} contro un database SQLite locale creato da zero. Ogni utente parte con un
+ * ritardo proporzionale al ramp-up e attende un "think time" casuale (distribuzione esponenziale) tra
+ * un'operazione e l'altra. Alla fine stampa throughput, tasso di errori e percentili di latenza per
+ * operazione, più la distribuzione completa in formato HdrHistogram.
+ * </p>
+ * <p>
+ * Uso: {@code LoadGenerator --users 50 --duration 60 --think-ms 100 --ramp-up 10 --db loadtest.db --seed 1}
+ * </p>
+ * <p>
+ * Con {@code --shards N} il test usa la modalità shard di {@link DbConnection}: il nome del database
+ * (senza ".db") diventa il prefisso dei file della directory e degli N shard.
+ * </p>
+ * <p>
+ * Nota: la latenza è misurata dall'inizio alla fine di ogni chiamata (modello a ciclo chiuso), quindi
+ * non è corretta per la "coordinated omission".
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class LoadGenerator {
+
+    private static final String PASSWORD = "Password1!";
+
+    /**
+     * Operazioni simulate, con il loro peso relativo nel mix di carico.
+     */
+    enum Operazione {
+        LOGIN(5),
+        ADD_EXPENSE(25),
+        GET_EXPENSES(30),
+        SEARCH_BY_CATEGORY(20),
+        UPDATE_EXPENSE(12),
+        DELETE_EXPENSE(8);
+
+        private final int peso;
+
+        Operazione(int peso) {
+            this.peso = peso;
+        }
+    }
+
+    // --- CONFIGURAZIONE ---
+    private int utenti = 50;
+    private int durataSecondi = 60;
+    private long thinkMillis = 100;
+    private int rampUpSecondi = 10;
+    private String dbPath = "loadtest.db";
+    private long seed = 1;
+    private int shard = 0;
+
+    // --- RISULTATI ---
+    private final Map<Operazione, LatencyHistogram> latenze = new EnumMap<>(Operazione.class);
+    private final Map<Operazione, LongAdder> errori = new EnumMap<>(Operazione.class);
+    private final Map<Operazione, LongAdder> conflitti = new EnumMap<>(Operazione.class);
+    // Errori SQL che i DAO registrano solo su System.err
+    private final LongAdder erroriDao = new LongAdder();
+
+    /**
+     * Crea il generatore con le opzioni della riga di comando.
+     */
+    LoadGenerator(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String valore = args[i + 1];
+            switch (args[i]) {
+                case "--users" -> utenti = Integer.parseInt(valore);
+                case "--duration" -> durataSecondi = Integer.parseInt(valore);
+                case "--think-ms" -> thinkMillis = Long.parseLong(valore);
+                case "--ramp-up" -> rampUpSecondi = Integer.parseInt(valore);
+                case "--db" -> dbPath = valore;
+                case "--seed" -> seed = Long.parseLong(valore);
+                case "--shards" -> shard = Integer.parseInt(valore);
+                default -> throw new IllegalArgumentException("Opzione sconosciuta: " + args[i]);
+            }
+        }
+        for (Operazione op : Operazione.values()) {
+            latenze.put(op, new LatencyHistogram());
+            errori.put(op, new LongAdder());
+            conflitti.put(op, new LongAdder());
+        }
+    }
+
+    /**
+     * Prepara il database, avvia gli utenti virtuali, attende la fine del test e stampa il report.
+     */
+    void run() throws InterruptedException {
+        PrintStream console = System.out;
+        PrintStream consoleErrori = System.err;
+
+        // Database pulito a ogni esecuzione
+        if (shard > 0) {
+            String prefisso = dbPath.replaceFirst("\\.db$", "");
+            new File(prefisso + "-directory.db").delete();
+            for (int i = 0; i < shard; i++) {
+                new File(prefisso + "-shard-" + i + ".db").delete();
+            }
+            DbConnection.setShardedDatabase(prefisso, shard);
+        } else {
+            new File(dbPath).delete();
+            DbConnection.setTestDatabase("jdbc:sqlite:" + dbPath);
+        }
+        new InitDatabase().initializeDb();
+        MoneygementService service = MoneygementService.getInstance();
+
+        console.printf("Registrazione di %d utenti...%n", utenti);
+        // I DAO stampano un messaggio per ogni operazione: li silenziamo durante il test
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()) {
+            @Override
+            public void println(String x) {
+                erroriDao.increment();
+            }
+        });
+
+        try {
+            for (int i = 0; i < utenti; i++) {
+                service.registerUser("Utente", "Virtuale", email(i), PASSWORD, 30);
+            }
+
+            console.printf("Avvio: %d utenti, durata %ds, ramp-up %ds, think time medio %dms%n",
+                    utenti, durataSecondi, rampUpSecondi, thinkMillis);
+            long inizio = System.nanoTime();
+            long fine = inizio + durataSecondi * 1_000_000_000L;
+
+            List<Thread> threads = new ArrayList<>();
+            List<UtenteVirtuale> virtuali = new ArrayList<>();
+            for (int i = 0; i < utenti; i++) {
+                long ritardo = utenti <= 1 ? 0 : rampUpSecondi * 1000L * i / utenti;
+                UtenteVirtuale u = new UtenteVirtuale(service, i, new SplittableRandom(seed * 31 + i), ritardo, fine);
+                virtuali.add(u);
+                threads.add(Thread.ofVirtual().name("vu-" + i).start(u));
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            double secondi = (System.nanoTime() - inizio) / 1e9;
+
+            for (UtenteVirtuale u : virtuali) {
+                for (Operazione op : Operazione.values()) {
+                    latenze.get(op).add(u.mieLatenze.get(op));
+                }
+            }
+            System.setOut(console);
+            System.setErr(consoleErrori);
+            stampaReport(console, secondi);
+        } finally {
+            System.setOut(console);
+            System.setErr(consoleErrori);
+        }
+    }
+
+    /**
+     * Stampa throughput, errori e percentili per ogni operazione, più la distribuzione complessiva.
+     */
+    private void stampaReport(PrintStream out, double secondi) {
+        LatencyHistogram complessivo = new LatencyHistogram();
+        long erroriTotali = 0;
+
+        out.println();
+        out.println(String.format(Locale.ROOT, "%-20s %9s %10s %8s %9s %9s %9s %9s %9s",
+                "Operazione", "Richieste", "Ops/s", "Errori%", "Conflitti", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+        for (Operazione op : Operazione.values()) {
+            LatencyHistogram h = latenze.get(op);
+            long n = h.getTotalCount();
+            long e = errori.get(op).sum();
+            erroriTotali += e;
+            complessivo.add(h);
+            out.println(String.format(Locale.ROOT, "%-20s %9d %10.1f %8.2f %9d %9.3f %9.3f %9.3f %9.3f",
+                    op, n, n / secondi, n == 0 ? 0 : 100.0 * e / n, conflitti.get(op).sum(),
+                    h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(95) / 1000.0,
+                    h.getValueAtPercentile(99) / 1000.0, h.getMax() / 1000.0));
+        }
+
+        long totale = complessivo.getTotalCount();
+        out.println();
+        out.println(String.format(Locale.ROOT, "Totale: %d operazioni in %.1fs = %.1f ops/s, errori %d (%.2f%%), errori SQL nei DAO %d",
+                totale, secondi, totale / secondi, erroriTotali, totale == 0 ? 0 : 100.0 * erroriTotali / totale, erroriDao.sum()));
+        out.println();
+        out.println("Distribuzione latenze complessiva (ms):");
+        complessivo.outputPercentileDistribution(out, 1000.0);
+    }
+
+    private static String email(int i) {
+        return "utente" + i + "@loadtest.it";
+    }
+
+    /**
+     * Utente virtuale: esegue operazioni casuali fino alla scadenza del test.
+     * Registra le latenze in istogrammi propri, senza contesa tra thread.
+     */
+    private final class UtenteVirtuale implements Runnable {
+        private final MoneygementService service;
+        private final int indice;
+        private final SplittableRandom random;
+        private final long ritardoMillis;
+        private final long fineNanos;
+        private final Map<Operazione, LatencyHistogram> mieLatenze = new EnumMap<>(Operazione.class);
+        // Spese note all'utente (id -> versione), aggiornate dalle risposte del Service
+        private final Map<Integer, Integer> spese = new HashMap<>();
+        private final List<Integer> idSpese = new ArrayList<>();
+        private SessionContext sessione;
+
+        private UtenteVirtuale(MoneygementService service, int indice, SplittableRandom random, long ritardoMillis, long fineNanos) {
+            this.service = service;
+            this.indice = indice;
+            this.random = random;
+            this.ritardoMillis = ritardoMillis;
+            this.fineNanos = fineNanos;
+            for (Operazione op : Operazione.values()) {
+                mieLatenze.put(op, new LatencyHistogram());
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                Thread.sleep(ritardoMillis);
+                esegui(Operazione.LOGIN);
+                while (System.nanoTime() < fineNanos) {
+                    esegui(scegliOperazione());
+                    if (thinkMillis > 0) {
+                        // Think time esponenziale: arrivi "alla Poisson" come utenti reali
+                        Thread.sleep((long) (-thinkMillis * Math.log(1 - random.nextDouble())));
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private Operazione scegliOperazione() {
+            int totale = 0;
+            for (Operazione op : Operazione.values()) {
+                totale += op.peso;
+            }
+            int estratto = random.nextInt(totale);
+            for (Operazione op : Operazione.values()) {
+                estratto -= op.peso;
+                if (estratto < 0) {
+                    return op;
+                }
+            }
+            return Operazione.GET_EXPENSES;
+        }
+
+        private void esegui(Operazione op) {
+            long inizio = System.nanoTime();
+            try {
+                switch (op) {
+                    case LOGIN -> sessione = service.login(email(indice), PASSWORD);
+                    case ADD_EXPENSE -> {
+                        Categories cat = Categories.values()[random.nextInt(Categories.values().length)];
+                        Expense e = service.addExpense(sessione, "Spesa " + random.nextInt(100), cat, "Generata dal test di carico",
+                                1 + random.nextInt(20_000) / 100.0, LocalDateTime.now().minusDays(random.nextInt(365)));
+                        ricorda(e);
+                    }
+                    case GET_EXPENSES -> {
+                        try {
+                            for (Expense e : service.getExpensesByUserId(sessione)) {
+                                ricorda(e);
+                            }
+                        } catch (RisorsaNonTrovataException vuota) {
+                            // Nessuna spesa: esito normale per un utente appena creato
+                        }
+                    }
+                    case SEARCH_BY_CATEGORY -> {
+                        try {
+                            service.searchByCategory(sessione, Categories.values()[random.nextInt(Categories.values().length)]);
+                        } catch (RisorsaNonTrovataException vuota) {
+                            // Nessuna spesa in quella categoria
+                        }
+                    }
+                    case UPDATE_EXPENSE -> {
+                        if (!idSpese.isEmpty()) {
+                            int id = idSpese.get(random.nextInt(idSpese.size()));
+                            ExpenseUpdateResult esito = service.updateExpense(sessione, id, spese.get(id), "Spesa modificata",
+                                    Categories.ALTRO, "Aggiornata dal test di carico", 1 + random.nextInt(20_000) / 100.0, LocalDateTime.now());
+                            if (esito.isAggiornata()) {
+                                spese.put(id, esito.getNuovaVersione());
+                            } else if (esito.getEsito() == ExpenseUpdateResult.Esito.CONFLITTO) {
+                                conflitti.get(op).increment();
+                                spese.put(id, esito.getNuovaVersione());
+                            } else {
+                                dimentica(id);
+                            }
+                        }
+                    }
+                    case DELETE_EXPENSE -> {
+                        if (!idSpese.isEmpty()) {
+                            int id = idSpese.get(random.nextInt(idSpese.size()));
+                            service.deleteExpenseById(sessione, id);
+                            dimentica(id);
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                errori.get(op).increment();
+            } finally {
+                mieLatenze.get(op).record((System.nanoTime() - inizio) / 1000);
+            }
+        }
+
+        private void ricorda(Expense e) {
+            if (e.getId() > 0 && spese.put(e.getId(), e.getVersion()) == null) {
+                idSpese.add(e.getId());
+            }
+        }
+
+        private void dimentica(int id) {
+            spese.remove(id);
+            idSpese.remove(Integer.valueOf(id));
+        }
+    }
+
+    /**
+     * Avvia il test di carico.
+     *
+     * @param args Le opzioni (vedi documentazione della classe).
+     * @throws InterruptedException se il thread principale viene interrotto.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        new LoadGenerator(args).run();
+    }
+}
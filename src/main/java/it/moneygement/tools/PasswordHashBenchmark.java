@@ -0,0 +1,136 @@
+package it.moneygement.tools;
+
+import it.moneygement.utils.SecurityUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Strumento per scegliere il costo degli hash delle password ({@link SecurityUtils#setHashIterations(int)})
+ * sulla macchina che ospiterà il server.
+ * <p>
+ * Cerca il numero di iterazioni PBKDF2 per cui un singolo hash richiede il tempo indicato: parte da una misura
+ * con poche iterazioni, stima il numero necessario (il tempo cresce linearmente con le iterazioni) e lo
+ * corregge con nuove misure finché la mediana è entro il 10% dell'obiettivo. Poi misura quanti hash al secondo
+ * riescono a calcolare in parallelo i thread che il server dedica agli hash, cioè quanti login al secondo può
+ * accettare al massimo con quel costo.
+ * </p>
+ * <p>
+ * Uso: {@code PasswordHashBenchmark --target-ms 250 --samples 5 --threads 4}
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class PasswordHashBenchmark {
+
+    private static final String PASSWORD = "Password1!";
+    private static final int ITERAZIONI_INIZIALI = 10_000;
+    private static final int MAX_CORREZIONI = 6;
+
+    private double obiettivoMillis = 250;
+    private int campioni = 5;
+    private int thread = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    /**
+     * Crea lo strumento con le opzioni della riga di comando.
+     */
+    PasswordHashBenchmark(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String valore = args[i + 1];
+            switch (args[i]) {
+                case "--target-ms" -> obiettivoMillis = Double.parseDouble(valore);
+                case "--samples" -> campioni = Integer.parseInt(valore);
+                case "--threads" -> thread = Integer.parseInt(valore);
+                default -> throw new IllegalArgumentException("Opzione sconosciuta: " + args[i]);
+            }
+        }
+        if (obiettivoMillis <= 0 || campioni < 1 || thread < 1) {
+            throw new IllegalArgumentException("Opzioni non valide");
+        }
+    }
+
+    /**
+     * Cerca il costo, misura il throughput e stampa il risultato.
+     */
+    void run() throws Exception {
+        // Riscaldamento: il primo hash paga il caricamento delle classi e la compilazione JIT
+        SecurityUtils.setHashIterations(ITERAZIONI_INIZIALI);
+        for (int i = 0; i < 5; i++) {
+            SecurityUtils.hashPassword(PASSWORD);
+        }
+
+        int iterazioni = ITERAZIONI_INIZIALI;
+        double mediana = mediana(iterazioni);
+        System.out.println(String.format(Locale.ROOT, "%,12d iterazioni: %8.1f ms", iterazioni, mediana));
+        for (int i = 0; i < MAX_CORREZIONI && Math.abs(mediana - obiettivoMillis) > obiettivoMillis * 0.1; i++) {
+            long stima = Math.round(iterazioni * obiettivoMillis / mediana / 1_000.0) * 1_000;
+            iterazioni = (int) Math.max(SecurityUtils.MIN_ITERAZIONI, Math.min(Integer.MAX_VALUE / 2, stima));
+            mediana = mediana(iterazioni);
+            System.out.println(String.format(Locale.ROOT, "%,12d iterazioni: %8.1f ms", iterazioni, mediana));
+        }
+
+        double alSecondo = throughput(iterazioni);
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "Costo scelto: %d iterazioni (%.1f ms per hash, obiettivo %.0f ms)",
+                iterazioni, mediana, obiettivoMillis));
+        System.out.println(String.format(Locale.ROOT, "Con %d thread dedicati: %.1f hash al secondo", thread, alSecondo));
+        if (iterazioni < SecurityUtils.DEFAULT_ITERAZIONI) {
+            System.out.println(String.format(Locale.ROOT, "Attenzione: meno delle %d iterazioni raccomandate; "
+                    + "valutare un obiettivo di tempo più alto.", SecurityUtils.DEFAULT_ITERAZIONI));
+        }
+        System.out.println("Avviare il server con: ApiServer --hash-iterations " + iterazioni);
+    }
+
+    // --- METODI PRIVATI ---
+
+    /**
+     * @return La mediana in millisecondi del tempo di un hash con il costo indicato.
+     */
+    private double mediana(int iterazioni) {
+        SecurityUtils.setHashIterations(iterazioni);
+        double[] tempi = new double[campioni];
+        for (int i = 0; i < campioni; i++) {
+            long inizio = System.nanoTime();
+            SecurityUtils.hashPassword(PASSWORD);
+            tempi[i] = (System.nanoTime() - inizio) / 1e6;
+        }
+        Arrays.sort(tempi);
+        return tempi[campioni / 2];
+    }
+
+    /**
+     * @return Gli hash al secondo calcolati da tutti i thread insieme con il costo indicato.
+     */
+    private double throughput(int iterazioni) throws Exception {
+        SecurityUtils.setHashIterations(iterazioni);
+        ExecutorService esecutore = Executors.newFixedThreadPool(thread);
+        try {
+            List<Future<String>> risultati = new ArrayList<>();
+            long inizio = System.nanoTime();
+            for (int i = 0; i < thread * campioni; i++) {
+                risultati.add(esecutore.submit(() -> SecurityUtils.hashPassword(PASSWORD)));
+            }
+            for (Future<String> r : risultati) {
+                r.get();
+            }
+            return thread * campioni / ((System.nanoTime() - inizio) / 1e9);
+        } finally {
+            esecutore.shutdown();
+        }
+    }
+
+    /**
+     * Avvia la misura.
+     *
+     * @param args Le opzioni (vedi documentazione della classe).
+     * @throws Exception se una misura fallisce.
+     */
+    public static void main(String[] args) throws Exception {
+        new PasswordHashBenchmark(args).run();
+    }
+}
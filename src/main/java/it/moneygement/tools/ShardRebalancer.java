@@ -0,0 +1,387 @@
+package it.moneygement.tools;
+
+import it.moneygement.db.DbConnection;
+import it.moneygement.db.InitDatabase;
+import it.moneygement.db.ShardRouter;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Strumento offline per cambiare il numero di shard del database.
+ * <p>
+ * La directory ({@code user_directory.shard}) dice dove si trovano oggi i dati di ogni utente;
+ * l'anello di hashing consistente con il nuovo numero di shard dice dove devono stare. Vengono spostati
+ * solo gli utenti per cui le due risposte differiscono: grazie all'hashing consistente, passando da N a N+1
+ * shard si muove circa 1/(N+1) degli utenti.
+ * </p>
+ * <p>
+ * Gli spostamenti sono raggruppati per coppia (origine, destinazione): lo shard di origine e la directory
+ * vengono collegati con ATTACH alla connessione di destinazione, così copia, cancellazione e aggiornamento
+ * della directory di ogni gruppo di utenti avvengono in un'unica transazione. Se lo strumento si interrompe,
+ * basta rilanciarlo: riparte dagli utenti che la directory indica ancora nella posizione sbagliata.
+ * </p>
+ * <p>
+ * Le spese spostate ricevono un nuovo id nello shard di destinazione (gli id delle spese sono assegnati
+ * da ogni shard e potrebbero già essere in uso), mentre versione e dati restano invariati.
+ * Le classifiche dei nomi di spesa non vengono copiate: vengono cancellate con l'utente e l'applicazione le ricostruisce
+ * dallo storico alla prima lettura.
+ * Con l'utente si spostano anche le baseline del rilevamento delle anomalie, i riepiloghi degli anni archiviati e le spese nei file di archivio (vedi
+ * {@link ExpenseArchiver}), che conservano il loro id: prima dello spostamento le spese archiviate vengono copiate
+ * negli archivi dello shard di destinazione (creandoli e registrandoli nel suo catalogo se mancano), dopo vengono
+ * cancellate da quelli di origine. Un'interruzione prima dello spostamento lascia copie che il nuovo tentativo
+ * ignora; un'interruzione dopo lascia negli archivi di origine righe di un utente che non è più in quello shard,
+ * mai lette dall'applicazione.
+ * L'applicazione deve essere ferma durante l'esecuzione.
+ * </p>
+ * <p>
+ * I file restano nella modalità di journal in cui li lascia l'applicazione. In WAL una transazione su più
+ * database collegati è atomica solo per ogni singolo file, che viene confermato nell'ordine di collegamento:
+ * prima la destinazione, poi la directory, infine l'origine. Un'interruzione a metà conferma lascia quindi
+ * al più una copia incompleta nella destinazione (l'utente resta dov'era e il nuovo tentativo la sostituisce,
+ * perché prima di copiare un utente ne cancella i dati rimasti nella destinazione) oppure, con la directory
+ * già aggiornata, le vecchie righe nell'origine, mai lette dall'applicazione e sostituite se l'utente vi torna.
+ * Non si arriva mai a una directory che indica uno shard senza i dati dell'utente.
+ * </p>
+ * <p>
+ * Uso: {@code ShardRebalancer --prefix moneygement --shards 8 [--dry-run]}
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class ShardRebalancer {
+
+    // Utenti spostati per transazione
+    private static final int UTENTI_PER_TRANSAZIONE = 500;
+
+    private static final String SELECT_DIRECTORY = "SELECT user_id, shard FROM user_directory ORDER BY user_id;";
+    private static final String COPY_USER = "INSERT INTO main.user (id, nome, cognome, email, password_hash, eta, valuta) " +
+            "SELECT id, nome, cognome, email, password_hash, eta, valuta FROM origine.user WHERE id = ?;";
+    private static final String COPY_EXPENSES = "INSERT INTO main.expense (nome_spesa, categoria, descrizione, importo, data, user_id, version, valuta) " +
+            "SELECT nome_spesa, categoria, descrizione, importo, data, user_id, version, valuta FROM origine.expense WHERE user_id = ? ORDER BY id;";
+    private static final String DELETE_EXPENSES = "DELETE FROM origine.expense WHERE user_id = ?;";
+    private static final String DELETE_USER = "DELETE FROM origine.user WHERE id = ?;";
+    private static final String COPY_BUDGETS = "INSERT INTO main.budget (user_id, categoria, periodo, limite) " +
+            "SELECT user_id, categoria, periodo, limite FROM origine.budget WHERE user_id = ?;";
+    private static final String DELETE_BUDGETS = "DELETE FROM origine.budget WHERE user_id = ?;";
+    // Le spese ricorrenti cambiano id: le chiavi di idempotenza delle spese già generate (che lo contengono)
+    // non vengono copiate, per non scontrarsi con quelle di un'altra spesa ricorrente della destinazione.
+    // Le occorrenze già generate non si ripetono comunque, perché 'prossima' viene copiata.
+    private static final String COPY_RECURRING = "INSERT INTO main.recurring_expense (user_id, nome_spesa, categoria, descrizione, importo, regola, inizio, prossima, generate, valuta) " +
+            "SELECT user_id, nome_spesa, categoria, descrizione, importo, regola, inizio, prossima, generate, valuta FROM origine.recurring_expense WHERE user_id = ?;";
+    private static final String DELETE_RECURRING = "DELETE FROM origine.recurring_expense WHERE user_id = ?;";
+    // Le spese spostate non sono cancellate: i loro tombstone nello shard di origine non servono.
+    // I dispositivi dell'utente si risincronizzano da capo perché l'epoca dello shard di destinazione è diversa.
+    private static final String DELETE_TOMBSTONES = "DELETE FROM origine.expense_tombstone WHERE user_id = ?;";
+    private static final String UPDATE_DIRECTORY = "UPDATE directory.user_directory SET shard = ? WHERE user_id = ?;";
+    private static final String COPY_SUMMARY = "INSERT INTO main.expense_summary (user_id, anno, mese, categoria, valuta, numero, totale) " +
+            "SELECT user_id, anno, mese, categoria, valuta, numero, totale FROM origine.expense_summary WHERE user_id = ?;";
+    private static final String DELETE_SUMMARY = "DELETE FROM origine.expense_summary WHERE user_id = ?;";
+    private static final String COPY_BASELINES = "INSERT INTO main.anomaly_baseline (user_id, categoria, stato, aggiornata_il) " +
+            "SELECT user_id, categoria, stato, aggiornata_il FROM origine.anomaly_baseline WHERE user_id = ?;";
+    private static final String DELETE_BASELINES = "DELETE FROM origine.anomaly_baseline WHERE user_id = ?;";
+    // Dati rimasti nella destinazione da un tentativo interrotto: spese, tombstone, riepiloghi e baseline
+    // seguono la riga dell'utente (trigger di cancellazione), budget e spese ricorrenti vanno cancellati a parte
+    private static final String CLEAN_USER = "DELETE FROM main.user WHERE id = ?;";
+    private static final String CLEAN_BUDGETS = "DELETE FROM main.budget WHERE user_id = ?;";
+    private static final String CLEAN_RECURRING = "DELETE FROM main.recurring_expense WHERE user_id = ?;";
+
+    // File di archivio: catalogo di uno shard, copia verso l'archivio di destinazione (la connessione è aperta
+    // sull'archivio di destinazione, con quello di origine collegato) e cancellazione dall'archivio di origine
+    private static final String SELECT_ARCHIVES = "SELECT anno, file FROM archive_year ORDER BY anno;";
+    private static final String COPY_ARCHIVED = "INSERT OR IGNORE INTO main.expense (id, nome_spesa, categoria, descrizione, importo, data, user_id, version, valuta) " +
+            "SELECT id, nome_spesa, categoria, descrizione, importo, data, user_id, version, valuta FROM origine.expense WHERE user_id = ?;";
+    private static final String COUNT_ARCHIVED = "SELECT COUNT(*) FROM main.expense;";
+    private static final String DELETE_ARCHIVED = "DELETE FROM expense WHERE user_id = ?;";
+    private static final String UPSERT_CATALOG = "INSERT INTO archive_year (anno, file, righe, archiviato_il) VALUES (?, ?, ?, ?) " +
+            "ON CONFLICT (anno) DO UPDATE SET righe = excluded.righe;";
+    private static final String UPDATE_CATALOG_COUNT = "UPDATE archive_year SET righe = righe - ? WHERE anno = ?;";
+
+    private String prefisso = "moneygement";
+    private int numeroShard = -1;
+    private boolean dryRun = false;
+
+    /**
+     * Crea lo strumento con le opzioni della riga di comando.
+     */
+    ShardRebalancer(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--prefix" -> prefisso = args[++i];
+                case "--shards" -> numeroShard = Integer.parseInt(args[++i]);
+                case "--dry-run" -> dryRun = true;
+                default -> throw new IllegalArgumentException("Opzione sconosciuta: " + args[i]);
+            }
+        }
+        if (numeroShard < 1) {
+            throw new IllegalArgumentException("Indicare il nuovo numero di shard con --shards N");
+        }
+    }
+
+    /**
+     * Calcola gli spostamenti necessari e li esegue.
+     */
+    void run() throws SQLException {
+        ShardRouter router = new ShardRouter(numeroShard);
+
+        // Spostamenti raggruppati per (origine, destinazione), in ordine deterministico
+        Map<Long, List<Integer>> spostamenti = new TreeMap<>();
+        int utenti = 0;
+        int shardMassimo = numeroShard - 1;
+        try (Connection directory = DriverManager.getConnection(DbConnection.percorsoDirectory(prefisso));
+             Statement stmt = directory.createStatement();
+             ResultSet rs = stmt.executeQuery(SELECT_DIRECTORY)) {
+            while (rs.next()) {
+                utenti++;
+                int id = rs.getInt("user_id");
+                int attuale = rs.getInt("shard");
+                int nuovo = router.shardFor(id);
+                shardMassimo = Math.max(shardMassimo, attuale);
+                if (attuale >= 0 && attuale != nuovo) {
+                    spostamenti.computeIfAbsent(((long) attuale << 32) | nuovo, k -> new ArrayList<>()).add(id);
+                }
+            }
+        }
+
+        int daSpostare = spostamenti.values().stream().mapToInt(List::size).sum();
+        System.out.println(String.format(Locale.ROOT, "Utenti: %d, da spostare: %d (%.1f%%) verso %d shard",
+                utenti, daSpostare, utenti == 0 ? 0 : 100.0 * daSpostare / utenti, numeroShard));
+        if (dryRun) {
+            for (Map.Entry<Long, List<Integer>> e : spostamenti.entrySet()) {
+                System.out.println("  shard " + (e.getKey() >>> 32) + " -> " + (int) (long) e.getKey() + ": " + e.getValue().size() + " utenti");
+            }
+            return;
+        }
+
+        // Lo schema (e le sue migrazioni) deve esistere su tutti gli shard, vecchi e nuovi, prima di copiare dati
+        for (int i = 0; i <= Math.max(numeroShard - 1, shardMassimo); i++) {
+            try (Connection conn = DriverManager.getConnection(DbConnection.percorsoShard(prefisso, i))) {
+                new InitDatabase().initializeDb(conn);
+            }
+        }
+
+        long inizio = System.nanoTime();
+        long speseSpostate = 0;
+        for (Map.Entry<Long, List<Integer>> e : spostamenti.entrySet()) {
+            int origine = (int) (e.getKey() >>> 32);
+            int destinazione = (int) (long) e.getKey();
+            long spese = sposta(origine, destinazione, e.getValue());
+            speseSpostate += spese;
+            System.out.println("  shard " + origine + " -> " + destinazione + ": " + e.getValue().size() + " utenti, " + spese + " spese");
+        }
+        double secondi = (System.nanoTime() - inizio) / 1e9;
+        System.out.println(String.format(Locale.ROOT, "Spostati %d utenti e %d spese in %.2fs", daSpostare, speseSpostate, secondi));
+
+        for (int i = numeroShard; i <= shardMassimo; i++) {
+            System.out.println("Lo shard " + i + " non è più usato: il file " + file(DbConnection.percorsoShard(prefisso, i)) + " può essere rimosso.");
+        }
+    }
+
+    /**
+     * Sposta un gruppo di utenti da uno shard a un altro, a blocchi di {@value #UTENTI_PER_TRANSAZIONE} utenti.
+     *
+     * @return Il numero di spese spostate.
+     */
+    private long sposta(int origine, int destinazione, List<Integer> ids) throws SQLException {
+        Map<Integer, String> archiviOrigine = catalogo(origine);
+        copiaArchivi(archiviOrigine, destinazione, ids);
+        long spese = 0;
+        try (Connection conn = DriverManager.getConnection(DbConnection.percorsoShard(prefisso, destinazione))) {
+            try (Statement stmt = conn.createStatement()) {
+                // L'ordine di collegamento è l'ordine di conferma in WAL (vedi documentazione della classe)
+                stmt.execute("ATTACH DATABASE '" + file(DbConnection.percorsoDirectory(prefisso)) + "' AS directory;");
+                stmt.execute("ATTACH DATABASE '" + file(DbConnection.percorsoShard(prefisso, origine)) + "' AS origine;");
+            }
+            conn.setAutoCommit(false);
+            try (PreparedStatement pulisciUtente = conn.prepareStatement(CLEAN_USER);
+                 PreparedStatement pulisciBudget = conn.prepareStatement(CLEAN_BUDGETS);
+                 PreparedStatement pulisciRicorrenti = conn.prepareStatement(CLEAN_RECURRING);
+                 PreparedStatement copiaUtente = conn.prepareStatement(COPY_USER);
+                 PreparedStatement copiaSpese = conn.prepareStatement(COPY_EXPENSES);
+                 PreparedStatement cancellaSpese = conn.prepareStatement(DELETE_EXPENSES);
+                 PreparedStatement cancellaUtente = conn.prepareStatement(DELETE_USER);
+                 PreparedStatement cancellaTombstone = conn.prepareStatement(DELETE_TOMBSTONES);
+                 PreparedStatement copiaBudget = conn.prepareStatement(COPY_BUDGETS);
+                 PreparedStatement cancellaBudget = conn.prepareStatement(DELETE_BUDGETS);
+                 PreparedStatement copiaRicorrenti = conn.prepareStatement(COPY_RECURRING);
+                 PreparedStatement cancellaRicorrenti = conn.prepareStatement(DELETE_RECURRING);
+                 PreparedStatement copiaRiepiloghi = conn.prepareStatement(COPY_SUMMARY);
+                 PreparedStatement cancellaRiepiloghi = conn.prepareStatement(DELETE_SUMMARY);
+                 PreparedStatement copiaBaseline = conn.prepareStatement(COPY_BASELINES);
+                 PreparedStatement cancellaBaseline = conn.prepareStatement(DELETE_BASELINES);
+                 PreparedStatement aggiornaDirectory = conn.prepareStatement(UPDATE_DIRECTORY)) {
+                for (int i = 0; i < ids.size(); i++) {
+                    int id = ids.get(i);
+                    pulisciUtente.setInt(1, id);
+                    pulisciUtente.executeUpdate();
+                    pulisciBudget.setInt(1, id);
+                    pulisciBudget.executeUpdate();
+                    pulisciRicorrenti.setInt(1, id);
+                    pulisciRicorrenti.executeUpdate();
+                    copiaUtente.setInt(1, id);
+                    copiaUtente.executeUpdate();
+                    copiaSpese.setInt(1, id);
+                    spese += copiaSpese.executeUpdate();
+                    copiaBudget.setInt(1, id);
+                    copiaBudget.executeUpdate();
+                    copiaRicorrenti.setInt(1, id);
+                    copiaRicorrenti.executeUpdate();
+                    copiaRiepiloghi.setInt(1, id);
+                    copiaRiepiloghi.executeUpdate();
+                    copiaBaseline.setInt(1, id);
+                    copiaBaseline.executeUpdate();
+                    cancellaSpese.setInt(1, id);
+                    cancellaSpese.executeUpdate();
+                    cancellaBudget.setInt(1, id);
+                    cancellaBudget.executeUpdate();
+                    cancellaRicorrenti.setInt(1, id);
+                    cancellaRicorrenti.executeUpdate();
+                    cancellaRiepiloghi.setInt(1, id);
+                    cancellaRiepiloghi.executeUpdate();
+                    cancellaBaseline.setInt(1, id);
+                    cancellaBaseline.executeUpdate();
+                    cancellaUtente.setInt(1, id);
+                    cancellaUtente.executeUpdate();
+                    cancellaTombstone.setInt(1, id);
+                    cancellaTombstone.executeUpdate();
+                    aggiornaDirectory.setInt(1, destinazione);
+                    aggiornaDirectory.setInt(2, id);
+                    aggiornaDirectory.executeUpdate();
+
+                    if ((i + 1) % UTENTI_PER_TRANSAZIONE == 0) {
+                        conn.commit();
+                    }
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+            conn.setAutoCommit(true);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("DETACH DATABASE origine;");
+                stmt.execute("DETACH DATABASE directory;");
+            }
+        }
+        cancellaArchivi(origine, archiviOrigine, ids);
+        return spese;
+    }
+
+    /**
+     * @return Gli anni archiviati di uno shard, con il file che li contiene.
+     */
+    private Map<Integer, String> catalogo(int shard) throws SQLException {
+        Map<Integer, String> archivi = new TreeMap<>();
+        try (Connection conn = DriverManager.getConnection(DbConnection.percorsoShard(prefisso, shard));
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(SELECT_ARCHIVES)) {
+            while (rs.next()) {
+                archivi.put(rs.getInt("anno"), rs.getString("file"));
+            }
+        }
+        return archivi;
+    }
+
+    /**
+     * Copia le spese archiviate degli utenti negli archivi dello shard di destinazione, un anno alla volta,
+     * e registra gli anni nel catalogo della destinazione.
+     */
+    private void copiaArchivi(Map<Integer, String> archiviOrigine, int destinazione, List<Integer> ids) throws SQLException {
+        if (archiviOrigine.isEmpty()) {
+            return;
+        }
+        Map<Integer, String> archiviDestinazione = catalogo(destinazione);
+        // Stesso nome che darebbe ExpenseArchiver archiviando lo shard di destinazione
+        String base = DbConnection.percorsoShard(prefisso, destinazione).substring("jdbc:sqlite:".length()).replaceFirst("\\.db$", "");
+        for (Map.Entry<Integer, String> anno : archiviOrigine.entrySet()) {
+            String archivio = archiviDestinazione.getOrDefault(anno.getKey(), base + "-archive-" + anno.getKey() + ".db");
+            long righe;
+            try (Connection conn = ExpenseArchiver.apriArchivio(archivio)) {
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("ATTACH DATABASE '" + anno.getValue().replace("'", "''") + "' AS origine;");
+                }
+                conn.setAutoCommit(false);
+                try (PreparedStatement copia = conn.prepareStatement(COPY_ARCHIVED)) {
+                    for (int id : ids) {
+                        copia.setInt(1, id);
+                        copia.executeUpdate();
+                    }
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                }
+                conn.setAutoCommit(true);
+                try (Statement stmt = conn.createStatement();
+                     ResultSet rs = stmt.executeQuery(COUNT_ARCHIVED)) {
+                    righe = rs.next() ? rs.getLong(1) : 0;
+                }
+            }
+            ExpenseArchiver.compatta(archivio);
+
+            try (Connection conn = DriverManager.getConnection(DbConnection.percorsoShard(prefisso, destinazione));
+                 PreparedStatement ps = conn.prepareStatement(UPSERT_CATALOG)) {
+                ps.setInt(1, anno.getKey());
+                ps.setString(2, archivio);
+                ps.setLong(3, righe);
+                ps.setString(4, LocalDateTime.now().withNano(0).toString());
+                ps.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * Cancella dagli archivi dello shard di origine le spese archiviate degli utenti spostati.
+     */
+    private void cancellaArchivi(int origine, Map<Integer, String> archiviOrigine, List<Integer> ids) throws SQLException {
+        for (Map.Entry<Integer, String> anno : archiviOrigine.entrySet()) {
+            int cancellate = 0;
+            try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + anno.getValue())) {
+                conn.setAutoCommit(false);
+                try (PreparedStatement cancella = conn.prepareStatement(DELETE_ARCHIVED)) {
+                    for (int id : ids) {
+                        cancella.setInt(1, id);
+                        cancellate += cancella.executeUpdate();
+                    }
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                }
+            }
+            try (Connection conn = DriverManager.getConnection(DbConnection.percorsoShard(prefisso, origine));
+                 PreparedStatement ps = conn.prepareStatement(UPDATE_CATALOG_COUNT)) {
+                ps.setInt(1, cancellate);
+                ps.setInt(2, anno.getKey());
+                ps.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * Ricava il percorso del file da un URL JDBC di SQLite.
+     */
+    private static String file(String urlJdbc) {
+        return urlJdbc.substring("jdbc:sqlite:".length()).replace("'", "''");
+    }
+
+    /**
+     * Avvia il ribilanciamento.
+     *
+     * @param args Le opzioni (vedi documentazione della classe).
+     * @throws Exception se l'accesso ai database fallisce.
+     */
+    public static void main(String[] args) throws Exception {
+        new ShardRebalancer(args).run();
+    }
+}
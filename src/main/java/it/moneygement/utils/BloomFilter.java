@@ -0,0 +1,115 @@
+package it.moneygement.utils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Filtro di Bloom sulle stringhe: risponde "sicuramente assente" oppure "forse presente"
+ * usando pochi bit per elemento, senza conservare gli elementi.
+ * <p>
+ * Viene dimensionato per un numero atteso di elementi e una probabilità di falsi positivi: con
+ * {@code m = -n ln p / (ln 2)^2} bit e {@code k = (m / n) ln 2} funzioni di hash (circa 9,6 bit e 7 hash
+ * per elemento all'1%). Le {@code k} posizioni sono ricavate da un unico hash a 64 bit (FNV-1a) con il doppio
+ * hashing di Kirsch e Mitzenmacher. Oltre il numero atteso la probabilità di falsi positivi cresce
+ * (vedi {@link #isPieno()}); gli elementi non si possono togliere. La classe non è sincronizzata.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class BloomFilter {
+
+    private final long[] bit;
+    private final long numeroBit;
+    private final int numeroHash;
+    private final int capienza;
+    private int elementi;
+
+    /**
+     * @param capienza      Il numero atteso di elementi (almeno 1).
+     * @param falsiPositivi La probabilità di falsi positivi al raggiungimento della capienza, tra 0 e 1 (esclusi).
+     */
+    public BloomFilter(int capienza, double falsiPositivi) {
+        if (capienza < 1 || !(falsiPositivi > 0 && falsiPositivi < 1)) {
+            throw new IllegalArgumentException("Parametri del filtro non validi");
+        }
+        long m = (long) Math.ceil(-capienza * Math.log(falsiPositivi) / (Math.log(2) * Math.log(2)));
+        this.bit = new long[(int) ((m + 63) / 64)];
+        this.numeroBit = bit.length * 64L;
+        this.numeroHash = Math.max(1, (int) Math.round((double) numeroBit / capienza * Math.log(2)));
+        this.capienza = capienza;
+    }
+
+    /**
+     * Aggiunge un elemento.
+     *
+     * @param elemento L'elemento.
+     */
+    public void aggiungi(String elemento) {
+        long h = hash(elemento);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < numeroHash; i++) {
+            long posizione = Integer.toUnsignedLong(h1 + i * h2) % numeroBit;
+            bit[(int) (posizione >>> 6)] |= 1L << posizione;
+        }
+        elementi++;
+    }
+
+    /**
+     * @param elemento L'elemento.
+     * @return false se l'elemento non è mai stato aggiunto; true se potrebbe esserlo stato.
+     */
+    public boolean forsePresente(String elemento) {
+        long h = hash(elemento);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < numeroHash; i++) {
+            long posizione = Integer.toUnsignedLong(h1 + i * h2) % numeroBit;
+            if ((bit[(int) (posizione >>> 6)] & (1L << posizione)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Il numero di aggiunte (comprese quelle di elementi già presenti).
+     */
+    public int getElementi() {
+        return elementi;
+    }
+
+    /**
+     * @return true se il filtro ha ricevuto più elementi della capienza per cui è stato dimensionato.
+     */
+    public boolean isPieno() {
+        return elementi > capienza;
+    }
+
+    /**
+     * @return Il numero di elementi per cui il filtro è stato dimensionato.
+     */
+    public int getCapienza() {
+        return capienza;
+    }
+
+    /**
+     * @return L'occupazione in byte dei bit del filtro.
+     */
+    public long getByte() {
+        return bit.length * (long) Long.BYTES;
+    }
+
+    // --- METODI PRIVATI ---
+
+    private static long hash(String elemento) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : elemento.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        // Rimescolamento finale (da SplitMix64): FNV lascia poco mescolati i bit alti
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+}
@@ -0,0 +1,152 @@
+package it.moneygement.utils;
+
+import it.moneygement.model.SeriesPoint;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Riduzione di una serie temporale a un numero massimo di punti, per disegnarla in un grafico.
+ * <p>
+ * Un grafico largo qualche centinaio di pixel non può mostrare migliaia di giorni: invece di prendere un punto
+ * ogni N (che perde proprio i picchi), la serie viene divisa in intervalli consecutivi e da ogni intervallo
+ * si tengono i punti che ne conservano la forma. Il primo e l'ultimo punto restano sempre.
+ * </p>
+ * <ul>
+ *     <li>{@link Metodo#LTTB} (Largest-Triangle-Three-Buckets): un punto per intervallo, quello che forma il
+ *     triangolo di area massima con il punto scelto nell'intervallo precedente e con la media del successivo.
+ *     Adatto ai grafici a linee.</li>
+ *     <li>{@link Metodo#MIN_MAX}: il minimo e il massimo di ogni intervallo, in ordine di data. Conserva
+ *     esattamente l'escursione dei valori, con il doppio dei punti per intervallo.</li>
+ * </ul>
+ * Entrambi i metodi hanno costo O(n) e restituiscono punti della serie originale, in ordine di data.
+ *
+ * @author Stefano Bellan
+ */
+public final class Downsampler {
+
+    /**
+     * Algoritmo di riduzione.
+     */
+    public enum Metodo {
+        LTTB,
+        MIN_MAX
+    }
+
+    private Downsampler() {
+    }
+
+    /**
+     * Riduce una serie a non più di {@code punti} punti.
+     *
+     * @param serie  La serie in ordine di data.
+     * @param punti  Il numero massimo di punti (almeno 4: primo, ultimo e il minimo e il massimo di un intervallo).
+     * @param metodo L'algoritmo di riduzione.
+     * @return La serie ridotta, oppure una copia della serie se ha già al massimo {@code punti} punti.
+     * @throws IllegalArgumentException se il numero di punti è minore di 4.
+     */
+    public static List<SeriesPoint> riduci(List<SeriesPoint> serie, int punti, Metodo metodo) {
+        if (punti < 4) {
+            throw new IllegalArgumentException("Servono almeno 4 punti");
+        }
+        if (serie.size() <= punti) {
+            return new ArrayList<>(serie);
+        }
+        return metodo == Metodo.LTTB ? lttb(serie, punti) : minMax(serie, punti);
+    }
+
+    private static List<SeriesPoint> lttb(List<SeriesPoint> serie, int punti) {
+        List<SeriesPoint> ridotta = new ArrayList<>(punti);
+        int n = serie.size();
+        // Primo e ultimo punto fissi, gli altri n - 2 divisi in punti - 2 intervalli
+        int intervalli = punti - 2;
+        int scelto = 0;
+        ridotta.add(serie.get(0));
+
+        for (int b = 0; b < intervalli; b++) {
+            int inizio = confine(b, n, intervalli);
+            int fine = confine(b + 1, n, intervalli);
+
+            // Media dell'intervallo successivo (per l'ultimo, l'ultimo punto della serie)
+            int inizioSucc = fine;
+            int fineSucc = confine(Math.min(b + 2, intervalli), n, intervalli);
+            if (inizioSucc >= fineSucc) {
+                inizioSucc = n - 1;
+                fineSucc = n;
+            }
+            double mediaX = 0;
+            double mediaY = 0;
+            for (int i = inizioSucc; i < fineSucc; i++) {
+                mediaX += x(serie.get(i));
+                mediaY += serie.get(i).getTotale();
+            }
+            mediaX /= fineSucc - inizioSucc;
+            mediaY /= fineSucc - inizioSucc;
+
+            double ax = x(serie.get(scelto));
+            double ay = serie.get(scelto).getTotale();
+            double areaMassima = -1;
+            int migliore = inizio;
+            for (int i = inizio; i < fine; i++) {
+                // Il doppio dell'area: il fattore 1/2 non cambia il confronto
+                double area = Math.abs((ax - mediaX) * (serie.get(i).getTotale() - ay)
+                        - (ax - x(serie.get(i))) * (mediaY - ay));
+                if (area > areaMassima) {
+                    areaMassima = area;
+                    migliore = i;
+                }
+            }
+            ridotta.add(serie.get(migliore));
+            scelto = migliore;
+        }
+
+        ridotta.add(serie.get(n - 1));
+        return ridotta;
+    }
+
+    private static List<SeriesPoint> minMax(List<SeriesPoint> serie, int punti) {
+        List<SeriesPoint> ridotta = new ArrayList<>(punti);
+        int n = serie.size();
+        // Due punti per intervallo, più il primo e l'ultimo della serie
+        int intervalli = (punti - 2) / 2;
+        ridotta.add(serie.get(0));
+
+        for (int b = 0; b < intervalli; b++) {
+            int inizio = confine(b, n, intervalli);
+            int fine = confine(b + 1, n, intervalli);
+            if (inizio >= fine) {
+                continue;
+            }
+            int minimo = inizio;
+            int massimo = inizio;
+            for (int i = inizio + 1; i < fine; i++) {
+                double v = serie.get(i).getTotale();
+                if (v < serie.get(minimo).getTotale()) {
+                    minimo = i;
+                }
+                if (v > serie.get(massimo).getTotale()) {
+                    massimo = i;
+                }
+            }
+            ridotta.add(serie.get(Math.min(minimo, massimo)));
+            if (minimo != massimo) {
+                ridotta.add(serie.get(Math.max(minimo, massimo)));
+            }
+        }
+
+        ridotta.add(serie.get(n - 1));
+        return ridotta;
+    }
+
+    /**
+     * Primo indice dell'intervallo b quando i punti interni (da 1 a n - 2) sono divisi in parti uguali.
+     * Calcolato con interi: l'ultimo confine è esattamente n - 1.
+     */
+    private static int confine(int b, int n, int intervalli) {
+        return 1 + (int) ((long) b * (n - 2) / intervalli);
+    }
+
+    private static double x(SeriesPoint p) {
+        return p.getGiorno().toEpochDay();
+    }
+}
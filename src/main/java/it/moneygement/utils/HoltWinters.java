@@ -0,0 +1,147 @@
+package it.moneygement.utils;
+
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * Previsione di una serie giornaliera con il metodo di Holt-Winters additivo: livello, tendenza smorzata
+ * e stagionalità settimanale, aggiornati un giorno alla volta senza rielaborare i giorni precedenti.
+ * <p>
+ * Ogni giorno aggiunto aggiorna lo stato in O(1): il livello si sposta verso il valore osservato (al netto
+ * dell'effetto del giorno della settimana), la tendenza verso la variazione del livello e l'effetto del giorno
+ * verso lo scarto dal livello. La tendenza viene smorzata di un fattore {@code phi} al giorno, così una
+ * previsione a lungo termine (fine anno) non prosegue all'infinito una tendenza osservata per poche settimane.
+ * Le previsioni non sono mai negative. La classe non è sincronizzata.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class HoltWinters {
+
+    private static final int STAGIONE = 7;
+
+    private final double alfa;
+    private final double beta;
+    private final double gamma;
+    private final double phi;
+
+    // Giorno del prossimo valore atteso
+    private LocalDate prossimo;
+    private int osservati;
+    private double livello;
+    private double tendenza;
+    // Effetto di ogni giorno della settimana (indice: DayOfWeek.getValue() - 1)
+    private final double[] stagione = new double[STAGIONE];
+    // Somma dei valori della prima settimana, per l'inizializzazione
+    private double primaSettimana;
+
+    /**
+     * Crea un modello con parametri adatti alle spese giornaliere.
+     *
+     * @param primoGiorno Il giorno del primo valore.
+     */
+    public HoltWinters(LocalDate primoGiorno) {
+        this(primoGiorno, 0.1, 0.01, 0.05, 0.98);
+    }
+
+    /**
+     * @param primoGiorno Il giorno del primo valore.
+     * @param alfa        Peso del valore nuovo nel livello.
+     * @param beta        Peso della variazione nuova nella tendenza.
+     * @param gamma       Peso dello scarto nuovo nell'effetto del giorno della settimana.
+     * @param phi         Smorzamento giornaliero della tendenza (1 = nessuno).
+     */
+    public HoltWinters(LocalDate primoGiorno, double alfa, double beta, double gamma, double phi) {
+        this.prossimo = primoGiorno;
+        this.alfa = alfa;
+        this.beta = beta;
+        this.gamma = gamma;
+        this.phi = phi;
+    }
+
+    /**
+     * Aggiunge il valore del giorno successivo all'ultimo aggiunto.
+     *
+     * @param valore Il valore del giorno.
+     */
+    public void aggiungi(double valore) {
+        int s = indice(prossimo);
+        if (osservati < STAGIONE) {
+            // Prima settimana: il livello è la media, gli effetti gli scarti dalla media
+            stagione[s] = valore;
+            primaSettimana += valore;
+            if (osservati == STAGIONE - 1) {
+                livello = primaSettimana / STAGIONE;
+                for (int i = 0; i < STAGIONE; i++) {
+                    stagione[i] -= livello;
+                }
+            }
+        } else {
+            double precedente = livello;
+            livello = alfa * (valore - stagione[s]) + (1 - alfa) * (precedente + phi * tendenza);
+            tendenza = beta * (livello - precedente) + (1 - beta) * phi * tendenza;
+            stagione[s] = gamma * (valore - livello) + (1 - gamma) * stagione[s];
+        }
+        osservati++;
+        prossimo = prossimo.plusDays(1);
+    }
+
+    /**
+     * @return Il giorno del prossimo valore da aggiungere.
+     */
+    public LocalDate getProssimo() {
+        return prossimo;
+    }
+
+    /**
+     * @return Il numero di giorni aggiunti.
+     */
+    public int getOsservati() {
+        return osservati;
+    }
+
+    /**
+     * Prevede il valore di un giorno successivo all'ultimo aggiunto.
+     *
+     * @param giorno Il giorno (dal {@link #getProssimo()} in poi).
+     * @return Il valore previsto (0 senza valori).
+     */
+    public double previsione(LocalDate giorno) {
+        if (osservati < STAGIONE) {
+            return osservati == 0 ? 0 : primaSettimana / osservati;
+        }
+        long h = ChronoUnit.DAYS.between(prossimo, giorno) + 1;
+        return Math.max(0, livello + tendenzaCumulata(h) + stagione[indice(giorno)]);
+    }
+
+    /**
+     * Somma le previsioni di un intervallo di giorni successivi all'ultimo aggiunto.
+     *
+     * @param da Il primo giorno (dal {@link #getProssimo()} in poi).
+     * @param a  L'ultimo giorno (compreso).
+     * @return La somma delle previsioni (0 se l'intervallo è vuoto).
+     */
+    public double somma(LocalDate da, LocalDate a) {
+        double totale = 0;
+        for (LocalDate giorno = da; !giorno.isAfter(a); giorno = giorno.plusDays(1)) {
+            totale += previsione(giorno);
+        }
+        return totale;
+    }
+
+    // --- METODI PRIVATI ---
+
+    /**
+     * @return La somma phi + phi^2 + ... + phi^h: lo spostamento del livello dopo h giorni di tendenza smorzata.
+     */
+    private double tendenzaCumulata(long h) {
+        if (phi == 1) {
+            return h * tendenza;
+        }
+        return tendenza * phi * (1 - Math.pow(phi, h)) / (1 - phi);
+    }
+
+    private static int indice(LocalDate giorno) {
+        return giorno.getDayOfWeek().getValue() - 1;
+    }
+}
@@ -0,0 +1,113 @@
+package it.moneygement.utils;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Tabella di deduplicazione a dimensione fissa: restituisce, per un valore uguale a uno visto di recente,
+ * l'istanza già in memoria, così le copie appena lette (es. dal database) diventano subito garbage e restano
+ * in memoria solo gli originali.
+ * <p>
+ * A differenza di {@link String#intern()} e di una mappa, la tabella non cresce: è un array di
+ * {@code capienza} posizioni in cui ogni valore può stare solo in due posizioni vicine, scelte dal suo hash.
+ * Un valore nuovo prende la posizione libera (o quella dell'altro valore) senza liste né ridimensionamenti.
+ * I valori sono tenuti con riferimenti deboli: la tabella non impedisce al garbage collector di liberare quelli
+ * che nessun altro usa più. Due valori frequenti con hash in conflitto possono sostituirsi a vicenda: si perde
+ * solo un po' di deduplicazione, mai la correttezza (viene sempre restituito un valore uguale a quello passato).
+ * </p>
+ * <p>
+ * È sicura tra thread senza lock: le posizioni sono aggiornate atomicamente e una scrittura persa
+ * in una corsa costa al più una deduplicazione mancata.
+ * </p>
+ *
+ * @param <T> Il tipo dei valori, immutabile e con {@code equals}/{@code hashCode} coerenti.
+ * @author Stefano Bellan
+ */
+public class Interner<T> {
+
+    private final AtomicReferenceArray<WeakReference<T>> tabella;
+    private final int maschera;
+    private final ToLongFunction<T> dimensione;
+
+    private final LongAdder richieste = new LongAdder();
+    private final LongAdder riusati = new LongAdder();
+    private final LongAdder byteRisparmiati = new LongAdder();
+
+    /**
+     * @param capienza   Il numero di posizioni (arrotondato alla potenza di due successiva).
+     * @param dimensione Stima in byte dell'occupazione di un valore, per la statistica della memoria risparmiata.
+     */
+    public Interner(int capienza, ToLongFunction<T> dimensione) {
+        if (capienza < 2) {
+            throw new IllegalArgumentException("La capienza deve essere almeno 2");
+        }
+        int n = Integer.highestOneBit(capienza - 1) << 1;
+        this.tabella = new AtomicReferenceArray<>(n);
+        this.maschera = n - 1;
+        this.dimensione = dimensione;
+    }
+
+    /**
+     * Restituisce l'istanza già in tabella uguale al valore, oppure il valore stesso (che entra in tabella).
+     *
+     * @param valore Il valore (null viene restituito così com'è).
+     * @return Un'istanza uguale al valore.
+     */
+    public T intern(T valore) {
+        if (valore == null) {
+            return null;
+        }
+        richieste.increment();
+        int h = valore.hashCode();
+        int prima = (h ^ (h >>> 16)) & maschera;
+        int seconda = prima ^ 1;
+
+        T a = valore(prima);
+        if (valore.equals(a)) {
+            return riusa(a);
+        }
+        T b = valore(seconda);
+        if (valore.equals(b)) {
+            return riusa(b);
+        }
+        // Posizione libera (o il cui valore è stato liberato), altrimenti la prima
+        tabella.set(a == null || b != null ? prima : seconda, new WeakReference<>(valore));
+        return valore;
+    }
+
+    /**
+     * @return Il numero di valori passati a {@link #intern(Object)}.
+     */
+    public long getRichieste() {
+        return richieste.sum();
+    }
+
+    /**
+     * @return Il numero di valori sostituiti con un'istanza già in memoria.
+     */
+    public long getRiusati() {
+        return riusati.sum();
+    }
+
+    /**
+     * @return La stima dei byte delle copie non trattenute, sommata su tutte le richieste.
+     */
+    public long getByteRisparmiati() {
+        return byteRisparmiati.sum();
+    }
+
+    // --- METODI PRIVATI ---
+
+    private T valore(int posizione) {
+        WeakReference<T> ref = tabella.get(posizione);
+        return ref == null ? null : ref.get();
+    }
+
+    private T riusa(T canonico) {
+        riusati.increment();
+        byteRisparmiati.add(dimensione.applyAsLong(canonico));
+        return canonico;
+    }
+}
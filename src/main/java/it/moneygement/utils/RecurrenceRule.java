@@ -0,0 +1,267 @@
+package it.moneygement.utils;
+
+import it.moneygement.exception.DatiNonValidiException;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Regola di ricorrenza nel formato RRULE (RFC 5545), limitata alle parti utili per le spese ricorrenti.
+ * <p>
+ * Sono supportati {@code FREQ} (DAILY, WEEKLY, MONTHLY, YEARLY), {@code INTERVAL}, {@code COUNT},
+ * {@code UNTIL} (yyyyMMdd oppure yyyyMMdd'T'HHmmss), {@code BYDAY} (solo giorni semplici, es. MO,FR, per le
+ * regole settimanali) e {@code BYMONTHDAY} (anche negativo: -1 è l'ultimo giorno del mese, per le regole mensili).
+ * Esempi: {@code FREQ=MONTHLY;BYMONTHDAY=1} (affitto), {@code FREQ=MONTHLY;INTERVAL=2;BYMONTHDAY=-1}
+ * (bollette bimestrali a fine mese), {@code FREQ=WEEKLY;BYDAY=MO,TH;COUNT=20}.
+ * </p>
+ * <p>
+ * Le occorrenze hanno l'ora della data di inizio. Come nella RFC, i giorni che non esistono in un periodo
+ * (es. il 31 nei mesi di 30 giorni, il 29 febbraio negli anni non bisestili) vengono saltati, non spostati.
+ * La classe è immutabile.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public final class RecurrenceRule {
+
+    /**
+     * Frequenza della regola: la durata di un periodo.
+     */
+    public enum Frequenza {
+        DAILY(ChronoUnit.DAYS),
+        WEEKLY(ChronoUnit.WEEKS),
+        MONTHLY(ChronoUnit.MONTHS),
+        YEARLY(ChronoUnit.YEARS);
+
+        private final ChronoUnit unita;
+
+        Frequenza(ChronoUnit unita) {
+            this.unita = unita;
+        }
+    }
+
+    // Oltre questo numero di periodi senza occorrenze valide la regola si considera esaurita
+    private static final int MAX_PERIODI = 1_000;
+    private static final DateTimeFormatter FORMATO_UNTIL = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss");
+    private static final String[] GIORNI = {"MO", "TU", "WE", "TH", "FR", "SA", "SU"};
+
+    private final String testo;
+    private final Frequenza frequenza;
+    private final int intervallo;
+    private final int conteggio;
+    private final LocalDateTime fino;
+    private final Set<DayOfWeek> giorni;
+    private final int[] giorniDelMese;
+
+    private RecurrenceRule(String testo, Frequenza frequenza, int intervallo, int conteggio, LocalDateTime fino,
+                           Set<DayOfWeek> giorni, int[] giorniDelMese) {
+        this.testo = testo;
+        this.frequenza = frequenza;
+        this.intervallo = intervallo;
+        this.conteggio = conteggio;
+        this.fino = fino;
+        this.giorni = giorni;
+        this.giorniDelMese = giorniDelMese;
+    }
+
+    /**
+     * Interpreta una regola (es. {@code FREQ=MONTHLY;BYMONTHDAY=1}); il prefisso "RRULE:" è facoltativo.
+     *
+     * @param testo La regola.
+     * @return La regola interpretata.
+     * @throws DatiNonValidiException se la regola non è valida o usa parti non supportate.
+     */
+    public static RecurrenceRule parse(String testo) {
+        if (testo == null || testo.isBlank()) {
+            throw new DatiNonValidiException("La regola di ricorrenza è obbligatoria!!!");
+        }
+        String regola = testo.trim().toUpperCase(Locale.ROOT);
+        if (regola.startsWith("RRULE:")) {
+            regola = regola.substring("RRULE:".length());
+        }
+
+        Frequenza frequenza = null;
+        int intervallo = 1;
+        int conteggio = 0;
+        LocalDateTime fino = null;
+        Set<DayOfWeek> giorni = EnumSet.noneOf(DayOfWeek.class);
+        Set<Integer> giorniDelMese = new TreeSet<>();
+        try {
+            for (String parte : regola.split(";")) {
+                int uguale = parte.indexOf('=');
+                if (uguale <= 0) {
+                    throw new DatiNonValidiException("Parte della regola non valida: " + parte);
+                }
+                String nome = parte.substring(0, uguale);
+                String valore = parte.substring(uguale + 1);
+                switch (nome) {
+                    case "FREQ" -> frequenza = Frequenza.valueOf(valore);
+                    case "INTERVAL" -> intervallo = Integer.parseInt(valore);
+                    case "COUNT" -> conteggio = Integer.parseInt(valore);
+                    case "UNTIL" -> {
+                        String data = valore.endsWith("Z") ? valore.substring(0, valore.length() - 1) : valore;
+                        fino = data.length() == 8
+                                ? LocalDate.parse(data, DateTimeFormatter.BASIC_ISO_DATE).atTime(LocalTime.MAX)
+                                : LocalDateTime.parse(data, FORMATO_UNTIL);
+                    }
+                    case "BYDAY" -> {
+                        for (String g : valore.split(",")) {
+                            giorni.add(giorno(g));
+                        }
+                    }
+                    case "BYMONTHDAY" -> {
+                        for (String g : valore.split(",")) {
+                            int giorno = Integer.parseInt(g);
+                            if (giorno == 0 || giorno < -31 || giorno > 31) {
+                                throw new DatiNonValidiException("Giorno del mese non valido: " + g);
+                            }
+                            giorniDelMese.add(giorno);
+                        }
+                    }
+                    default -> throw new DatiNonValidiException("Parte della regola non supportata: " + nome);
+                }
+            }
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            if (e instanceof DatiNonValidiException) {
+                throw e;
+            }
+            throw new DatiNonValidiException("Regola di ricorrenza non valida: " + testo);
+        }
+
+        if (frequenza == null) {
+            throw new DatiNonValidiException("La regola deve indicare FREQ: " + testo);
+        }
+        if (intervallo < 1 || conteggio < 0) {
+            throw new DatiNonValidiException("INTERVAL e COUNT devono essere positivi: " + testo);
+        }
+        if (conteggio > 0 && fino != null) {
+            throw new DatiNonValidiException("COUNT e UNTIL non possono essere usati insieme: " + testo);
+        }
+        if (!giorni.isEmpty() && frequenza != Frequenza.WEEKLY) {
+            throw new DatiNonValidiException("BYDAY è supportato solo con FREQ=WEEKLY: " + testo);
+        }
+        if (!giorniDelMese.isEmpty() && frequenza != Frequenza.MONTHLY) {
+            throw new DatiNonValidiException("BYMONTHDAY è supportato solo con FREQ=MONTHLY: " + testo);
+        }
+        return new RecurrenceRule(regola, frequenza, intervallo, conteggio, fino, giorni,
+                giorniDelMese.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    /**
+     * Calcola l'occorrenza successiva a un istante.
+     *
+     * @param inizio   La data di inizio della ricorrenza (prima occorrenza possibile, fornisce anche l'ora).
+     * @param dopo     L'ultima occorrenza già generata, oppure null per avere la prima.
+     * @param generate Il numero di occorrenze già generate (per COUNT).
+     * @return La prima occorrenza successiva a {@code dopo}, oppure null se la regola è esaurita.
+     */
+    public LocalDateTime successiva(LocalDateTime inizio, LocalDateTime dopo, int generate) {
+        if (conteggio > 0 && generate >= conteggio) {
+            return null;
+        }
+        LocalDateTime limite = dopo == null || dopo.isBefore(inizio) ? null : dopo;
+        // Primo periodo da esaminare: quello che contiene 'dopo', allineato all'intervallo
+        long periodo = 0;
+        if (limite != null) {
+            long trascorsi = frequenza.unita.between(inizioPeriodo(inizio.toLocalDate()), limite.toLocalDate());
+            periodo = trascorsi - trascorsi % intervallo;
+        }
+
+        for (int esaminati = 0; esaminati < MAX_PERIODI; esaminati++, periodo += intervallo) {
+            for (LocalDateTime candidata : occorrenze(inizio, periodo)) {
+                if (fino != null && candidata.isAfter(fino)) {
+                    return null;
+                }
+                if (candidata.isBefore(inizio) || (limite != null && !candidata.isAfter(limite))) {
+                    continue;
+                }
+                return candidata;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return La regola in forma testuale normalizzata (da salvare nel database).
+     */
+    @Override
+    public String toString() {
+        return testo;
+    }
+
+    // --- METODI PRIVATI ---
+
+    /**
+     * Le occorrenze del periodo indicato (contato dal periodo della data di inizio), in ordine.
+     */
+    private List<LocalDateTime> occorrenze(LocalDateTime inizio, long periodo) {
+        LocalTime ora = inizio.toLocalTime();
+        LocalDate base = inizio.toLocalDate();
+        List<LocalDateTime> occorrenze = new ArrayList<>();
+        switch (frequenza) {
+            case DAILY -> occorrenze.add(base.plusDays(periodo).atTime(ora));
+            case WEEKLY -> {
+                LocalDate lunedi = inizioPeriodo(base).plusWeeks(periodo);
+                if (giorni.isEmpty()) {
+                    occorrenze.add(lunedi.with(TemporalAdjusters.nextOrSame(base.getDayOfWeek())).atTime(ora));
+                } else {
+                    for (DayOfWeek g : giorni) {
+                        occorrenze.add(lunedi.with(TemporalAdjusters.nextOrSame(g)).atTime(ora));
+                    }
+                }
+            }
+            case MONTHLY -> {
+                YearMonth mese = YearMonth.from(base).plusMonths(periodo);
+                int[] giorniMese = giorniDelMese.length == 0 ? new int[]{base.getDayOfMonth()} : giorniDelMese;
+                TreeSet<Integer> validi = new TreeSet<>();
+                for (int g : giorniMese) {
+                    int giorno = g > 0 ? g : mese.lengthOfMonth() + g + 1;
+                    if (giorno >= 1 && giorno <= mese.lengthOfMonth()) {
+                        validi.add(giorno);
+                    }
+                }
+                for (int giorno : validi) {
+                    occorrenze.add(mese.atDay(giorno).atTime(ora));
+                }
+            }
+            case YEARLY -> {
+                int anno = Math.toIntExact(base.getYear() + periodo);
+                if (base.getMonthValue() != 2 || base.getDayOfMonth() != 29 || java.time.Year.isLeap(anno)) {
+                    occorrenze.add(LocalDate.of(anno, base.getMonth(), base.getDayOfMonth()).atTime(ora));
+                }
+            }
+        }
+        return occorrenze;
+    }
+
+    private LocalDate inizioPeriodo(LocalDate giorno) {
+        return switch (frequenza) {
+            case DAILY -> giorno;
+            case WEEKLY -> giorno.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+            case MONTHLY -> giorno.withDayOfMonth(1);
+            case YEARLY -> giorno.withDayOfYear(1);
+        };
+    }
+
+    private static DayOfWeek giorno(String codice) {
+        for (int i = 0; i < GIORNI.length; i++) {
+            if (GIORNI[i].equals(codice)) {
+                return DayOfWeek.of(i + 1);
+            }
+        }
+        throw new DatiNonValidiException("Giorno della settimana non valido: " + codice);
+    }
+}
@@ -0,0 +1,196 @@
+package it.moneygement.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Andamento recente di una sequenza di valori, per riconoscere i valori anomali in tempo costante.
+ * <p>
+ * Tiene due stime complementari:
+ * </p>
+ * <ul>
+ *     <li>media e varianza a media mobile esponenziale (peso {@code alfa} al valore nuovo): seguono i cambiamenti
+ *     graduali, ma un singolo valore estremo le sposta;</li>
+ *     <li>mediana e deviazione assoluta mediana (MAD) degli ultimi {@code finestra} valori: non risentono
+ *     dei valori estremi, purché siano meno della metà della finestra.</li>
+ * </ul>
+ * <p>
+ * Aggiungere un valore costa O(1); mediana e MAD ordinano una copia della finestra (di dimensione fissa).
+ * La classe non è sincronizzata.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class RollingBaseline {
+
+    // Fattore che rende la MAD una stima della deviazione standard per dati normali
+    private static final double SCALA_MAD = 1.4826;
+
+    private final double alfa;
+    private long numero;
+    private double media;
+    private double varianza;
+
+    // Ultimi valori, in un buffer circolare
+    private final double[] finestra;
+    private int prossimo;
+
+    /**
+     * @param alfa     Il peso del valore nuovo nella media mobile, tra 0 (escluso) e 1.
+     * @param finestra Il numero di valori recenti per mediana e MAD (almeno 3).
+     */
+    public RollingBaseline(double alfa, int finestra) {
+        if (!(alfa > 0 && alfa <= 1) || finestra < 3) {
+            throw new IllegalArgumentException("Parametri della baseline non validi");
+        }
+        this.alfa = alfa;
+        this.finestra = new double[finestra];
+    }
+
+    /**
+     * Aggiunge un valore.
+     *
+     * @param valore Il valore.
+     */
+    public void aggiungi(double valore) {
+        if (numero == 0) {
+            media = valore;
+        } else {
+            double scarto = valore - media;
+            double incremento = alfa * scarto;
+            media += incremento;
+            varianza = (1 - alfa) * (varianza + scarto * incremento);
+        }
+        finestra[prossimo] = valore;
+        prossimo = (prossimo + 1) % finestra.length;
+        numero++;
+    }
+
+    /**
+     * @return Il numero di valori aggiunti.
+     */
+    public long getNumero() {
+        return numero;
+    }
+
+    public double getMedia() {
+        return media;
+    }
+
+    public double getDeviazioneStandard() {
+        return Math.sqrt(varianza);
+    }
+
+    /**
+     * @return La mediana degli ultimi valori (NaN senza valori).
+     */
+    public double getMediana() {
+        return mediana(recenti());
+    }
+
+    /**
+     * @return La deviazione assoluta mediana degli ultimi valori (NaN senza valori).
+     */
+    public double getMad() {
+        double[] valori = recenti();
+        double mediana = mediana(valori);
+        for (int i = 0; i < valori.length; i++) {
+            valori[i] = Math.abs(valori[i] - mediana);
+        }
+        return mediana(valori);
+    }
+
+    /**
+     * @param valore Un valore.
+     * @return Di quante deviazioni standard il valore supera la media mobile (negativo se è inferiore);
+     * infinito se la varianza è nulla e il valore è diverso dalla media.
+     */
+    public double punteggio(double valore) {
+        return standardizza(valore - media, Math.sqrt(varianza));
+    }
+
+    /**
+     * @param valore Un valore.
+     * @return Di quante deviazioni (stimate con la MAD) il valore supera la mediana degli ultimi valori;
+     * infinito se la MAD è nulla e il valore è diverso dalla mediana.
+     */
+    public double punteggioRobusto(double valore) {
+        return standardizza(valore - getMediana(), SCALA_MAD * getMad());
+    }
+
+    /**
+     * Serializza la baseline per salvarla nel database.
+     *
+     * @return I byte della baseline.
+     */
+    public byte[] toBytes() {
+        int n = (int) Math.min(numero, finestra.length);
+        ByteBuffer buffer = ByteBuffer.allocate(Double.BYTES * 3 + Long.BYTES + Integer.BYTES * 2 + n * Double.BYTES);
+        buffer.putDouble(alfa).putLong(numero).putDouble(media).putDouble(varianza).putInt(finestra.length).putInt(n);
+        for (double valore : recenti()) {
+            buffer.putDouble(valore);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Ricostruisce una baseline serializzata con {@link #toBytes()}.
+     *
+     * @param dati I byte della baseline.
+     * @return La baseline.
+     * @throws IllegalArgumentException se i byte non sono una baseline valida.
+     */
+    public static RollingBaseline fromBytes(byte[] dati) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(dati);
+            double alfa = buffer.getDouble();
+            long numero = buffer.getLong();
+            double media = buffer.getDouble();
+            double varianza = buffer.getDouble();
+            RollingBaseline baseline = new RollingBaseline(alfa, buffer.getInt());
+            int n = buffer.getInt();
+            for (int i = 0; i < n; i++) {
+                baseline.finestra[i] = buffer.getDouble();
+            }
+            baseline.prossimo = n % baseline.finestra.length;
+            baseline.numero = numero;
+            baseline.media = media;
+            baseline.varianza = varianza;
+            return baseline;
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Baseline non valida", e);
+        }
+    }
+
+    // --- METODI PRIVATI ---
+
+    /**
+     * @return Una copia degli ultimi valori, dal più vecchio al più recente.
+     */
+    private double[] recenti() {
+        if (numero < finestra.length) {
+            return Arrays.copyOf(finestra, (int) numero);
+        }
+        double[] valori = new double[finestra.length];
+        int coda = finestra.length - prossimo;
+        System.arraycopy(finestra, prossimo, valori, 0, coda);
+        System.arraycopy(finestra, 0, valori, coda, prossimo);
+        return valori;
+    }
+
+    private static double mediana(double[] valori) {
+        if (valori.length == 0) {
+            return Double.NaN;
+        }
+        Arrays.sort(valori);
+        int meta = valori.length / 2;
+        return valori.length % 2 == 1 ? valori[meta] : (valori[meta - 1] + valori[meta]) / 2;
+    }
+
+    private static double standardizza(double scarto, double deviazione) {
+        if (deviazione > 0) {
+            return scarto / deviazione;
+        }
+        return scarto == 0 ? 0 : Math.copySign(Double.POSITIVE_INFINITY, scarto);
+    }
+}
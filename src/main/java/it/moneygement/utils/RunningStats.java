@@ -0,0 +1,119 @@
+package it.moneygement.utils;
+
+/**
+ * Numero, media, varianza, minimo e massimo di una sequenza di valori, calcolati in una sola passata
+ * con l'algoritmo di Welford (numericamente stabile anche con molti valori vicini tra loro).
+ * <p>
+ * Due statistiche calcolate su sequenze diverse si uniscono con {@link #unisci(RunningStats)} (formula di Chan)
+ * ottenendo lo stesso risultato di una passata sulla sequenza complessiva: si possono quindi salvare per mese
+ * e combinare quelle dei mesi richiesti.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class RunningStats {
+
+    private long numero;
+    private double media;
+    // Somma dei quadrati degli scarti dalla media
+    private double m2;
+    private double minimo = Double.NaN;
+    private double massimo = Double.NaN;
+
+    public RunningStats() {
+    }
+
+    /**
+     * Ricostruisce una statistica salvata.
+     */
+    public RunningStats(long numero, double media, double m2, double minimo, double massimo) {
+        this.numero = numero;
+        this.media = media;
+        this.m2 = m2;
+        this.minimo = minimo;
+        this.massimo = massimo;
+    }
+
+    /**
+     * Aggiunge un valore.
+     *
+     * @param valore Il valore.
+     */
+    public void aggiungi(double valore) {
+        numero++;
+        double scarto = valore - media;
+        media += scarto / numero;
+        m2 += scarto * (valore - media);
+        minimo = numero == 1 ? valore : Math.min(minimo, valore);
+        massimo = numero == 1 ? valore : Math.max(massimo, valore);
+    }
+
+    /**
+     * Aggiunge i valori di un'altra statistica.
+     *
+     * @param altra La statistica da unire (non viene modificata).
+     */
+    public void unisci(RunningStats altra) {
+        if (altra.numero == 0) {
+            return;
+        }
+        if (numero == 0) {
+            numero = altra.numero;
+            media = altra.media;
+            m2 = altra.m2;
+            minimo = altra.minimo;
+            massimo = altra.massimo;
+            return;
+        }
+        long totale = numero + altra.numero;
+        double scarto = altra.media - media;
+        media += scarto * altra.numero / totale;
+        m2 += altra.m2 + scarto * scarto * ((double) numero * altra.numero / totale);
+        numero = totale;
+        minimo = Math.min(minimo, altra.minimo);
+        massimo = Math.max(massimo, altra.massimo);
+    }
+
+    public long getNumero() {
+        return numero;
+    }
+
+    /**
+     * @return La media (0 senza valori).
+     */
+    public double getMedia() {
+        return media;
+    }
+
+    /**
+     * @return La somma dei quadrati degli scarti dalla media (per salvare la statistica).
+     */
+    public double getM2() {
+        return m2;
+    }
+
+    /**
+     * @return La varianza campionaria (0 con meno di due valori).
+     */
+    public double getVarianza() {
+        return numero < 2 ? 0 : m2 / (numero - 1);
+    }
+
+    public double getDeviazioneStandard() {
+        return Math.sqrt(getVarianza());
+    }
+
+    /**
+     * @return Il valore minimo (NaN senza valori).
+     */
+    public double getMinimo() {
+        return minimo;
+    }
+
+    /**
+     * @return Il valore massimo (NaN senza valori).
+     */
+    public double getMassimo() {
+        return massimo;
+    }
+}
@@ -1,8 +1,13 @@
 package it.moneygement.utils;
 
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
 import java.util.HexFormat;
 
 /**
@@ -17,6 +22,20 @@ import java.util.HexFormat;
  */
 public class SecurityUtils {
 
+    // Formato degli hash: prefisso della versione, lunghezza in byte di sale e hash
+    private static final String PREFISSO_PBKDF2 = "pbkdf2-sha256";
+    private static final int LUNGHEZZA_SALE = 16;
+    private static final int LUNGHEZZA_HASH = 32;
+
+    // Costo di PBKDF2: il valore predefinito è quello raccomandato da OWASP per HMAC-SHA256,
+    // sostituibile all'avvio con la proprietà di sistema (es. -Dmoneygement.hash.iterations=300000)
+    public static final int DEFAULT_ITERAZIONI = 600_000;
+    public static final int MIN_ITERAZIONI = 1_000;
+    public static final String PROPRIETA_ITERAZIONI = "moneygement.hash.iterations";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static volatile int hashIterations = Math.max(MIN_ITERAZIONI, Integer.getInteger(PROPRIETA_ITERAZIONI, DEFAULT_ITERAZIONI));
+
     /**
      * Costruttore privato per nascondere quello pubblico implicito.
      * <p>
@@ -29,35 +48,95 @@ public class SecurityUtils {
     }
 
     /**
-     * Esegue l'hashing di una password in chiaro utilizzando l'algoritmo SHA-256.
+     * Esegue l'hashing di una password in chiaro con PBKDF2 (HMAC-SHA256) e un sale casuale.
      * <p>
-     * L'algoritmo SHA-256 produce un output irreversibile (digest) di 256 bit.
-     * Questo metodo converte il risultato in una stringa esadecimale leggibile.
+     * Il risultato contiene tutto quello che serve a verificarlo, nel formato
+     * {@code pbkdf2-sha256$<iterazioni>$<sale>$<hash>} (sale e hash in Base64): il prefisso indica la versione
+     * del formato e il numero di iterazioni il costo con cui è stato calcolato, quindi il costo può essere
+     * cambiato con {@link #setHashIterations(int)} senza invalidare gli hash esistenti.
+     * Richiede volutamente tempo (vedi lo strumento {@code PasswordHashBenchmark} per scegliere il costo).
      * </p>
      *
      * @param password La password in chiaro da criptare (es. "MiaPassword123").
-     * @return Una stringa contenente la rappresentazione esadecimale dell'hash (lunghezza 64 caratteri).
-     * @throws RuntimeException Se l'algoritmo SHA-256 non è disponibile nell'ambiente Java corrente.
+     * @return Una stringa contenente l'hash nel formato descritto sopra.
+     * @throws RuntimeException Se l'algoritmo PBKDF2 non è disponibile nell'ambiente Java corrente.
      */
     public static String hashPassword(String password) {
-        try {
-            // Otteniamo un'istanza del motore di digest per l'algoritmo SHA-256
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] sale = new byte[LUNGHEZZA_SALE];
+        RANDOM.nextBytes(sale);
+        int iterazioni = hashIterations;
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return PREFISSO_PBKDF2 + "$" + iterazioni + "$" + base64.encodeToString(sale) + "$"
+                + base64.encodeToString(pbkdf2(password, sale, iterazioni));
+    }
 
-            // 1. Convertiamo la stringa della password in un array di byte.
-            // Usiamo UTF_8 per garantire che venga trattata allo stesso modo su Windows, Mac e Linux.
-            byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
+    /**
+     * Verifica una password in chiaro confrontandone l'hash con quello salvato.
+     * <p>
+     * Accetta sia il formato di {@link #hashPassword(String)}, con il sale e il costo salvati nell'hash, sia
+     * il vecchio formato (SHA-256 senza sale, 64 caratteri esadecimali). Il confronto richiede sempre lo stesso
+     * tempo, qualunque sia il primo byte diverso ({@link MessageDigest#isEqual}): i tempi di risposta non rivelano
+     * quanto dell'hash è stato indovinato.
+     * </p>
+     *
+     * @param password     La password in chiaro inserita.
+     * @param passwordHash L'hash salvato (può essere null, es. utente inesistente).
+     * @return true se la password corrisponde all'hash.
+     */
+    public static boolean verifyPassword(String password, String passwordHash) {
+        if (passwordHash != null && passwordHash.startsWith(PREFISSO_PBKDF2 + "$")) {
+            String[] parti = passwordHash.split("\\$");
+            try {
+                int iterazioni = Integer.parseInt(parti[1]);
+                byte[] sale = Base64.getDecoder().decode(parti[2]);
+                byte[] atteso = Base64.getDecoder().decode(parti[3]);
+                return parti.length == 4 && iterazioni > 0 && MessageDigest.isEqual(pbkdf2(password, sale, iterazioni), atteso);
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                return false;
+            }
+        }
+        if (passwordHash != null && isLegacyHash(passwordHash)) {
+            return MessageDigest.isEqual(sha256Hex(password).getBytes(StandardCharsets.UTF_8),
+                    passwordHash.getBytes(StandardCharsets.UTF_8));
+        }
+        // Senza un hash valido si paga comunque il costo pieno, così il tempo non dice se l'utente esiste
+        pbkdf2(password, new byte[LUNGHEZZA_SALE], hashIterations);
+        return false;
+    }
 
-            // 2. Eseguiamo l'hashing effettivo.
-            // Il risultato è un array di byte illeggibile (es. [12, -45, 0, 112...]).
-            byte[] encodedhash = digest.digest(passwordBytes);
+    /**
+     * Indica se un hash salvato va ricalcolato, al prossimo login riuscito, con i parametri attuali:
+     * vecchio formato senza sale oppure costo diverso da quello configurato.
+     *
+     * @param passwordHash L'hash salvato.
+     * @return true se l'hash non usa il formato e il costo attuali.
+     */
+    public static boolean needsRehash(String passwordHash) {
+        if (passwordHash == null || !passwordHash.startsWith(PREFISSO_PBKDF2 + "$")) {
+            return true;
+        }
+        String[] parti = passwordHash.split("\\$");
+        return parti.length != 4 || !parti[1].equals(String.valueOf(hashIterations));
+    }
 
-            // 3. Convertiamo l'array di byte in una stringa esadecimale leggibile.
-            return HexFormat.of().formatHex(encodedhash);
+    /**
+     * @return Il numero di iterazioni PBKDF2 usato per i nuovi hash.
+     */
+    public static int getHashIterations() {
+        return hashIterations;
+    }
 
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("Errore critico: Algoritmo SHA-256 non trovato.", e);
+    /**
+     * Cambia il costo dei nuovi hash; gli hash esistenti restano validi e vengono aggiornati al login.
+     *
+     * @param iterazioni Il numero di iterazioni PBKDF2 (almeno {@value #MIN_ITERAZIONI}).
+     * @throws IllegalArgumentException se il numero di iterazioni è troppo basso.
+     */
+    public static void setHashIterations(int iterazioni) {
+        if (iterazioni < MIN_ITERAZIONI) {
+            throw new IllegalArgumentException("Il numero di iterazioni deve essere almeno " + MIN_ITERAZIONI + ".");
         }
+        hashIterations = iterazioni;
     }
 
     /**
@@ -94,4 +173,44 @@ public class SecurityUtils {
             throw new IllegalArgumentException("La password deve contenere almeno un carattere speciale (@, #, !, ecc).");
         }
     }
+
+    // --- METODI PRIVATI ---
+
+    private static byte[] pbkdf2(String password, byte[] sale, int iterazioni) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), sale, iterazioni, LUNGHEZZA_HASH * 8);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Errore critico: Algoritmo PBKDF2 non trovato.", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * @return true se l'hash è nel vecchio formato: SHA-256 senza sale, in esadecimale.
+     */
+    private static boolean isLegacyHash(String passwordHash) {
+        return passwordHash.length() == 64 && passwordHash.chars().allMatch(c -> Character.digit(c, 16) >= 0);
+    }
+
+    /**
+     * Vecchio hash delle password (SHA-256 senza sale), usato solo per verificare gli hash salvati prima del
+     * passaggio a PBKDF2.
+     */
+    private static String sha256Hex(String password) {
+        try {
+            // Otteniamo un'istanza del motore di digest per l'algoritmo SHA-256
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+            // Usiamo UTF_8 per garantire che venga trattata allo stesso modo su Windows, Mac e Linux.
+            byte[] encodedhash = digest.digest(password.getBytes(StandardCharsets.UTF_8));
+
+            // Convertiamo l'array di byte in una stringa esadecimale leggibile.
+            return HexFormat.of().formatHex(encodedhash);
+
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Errore critico: Algoritmo SHA-256 non trovato.", e);
+        }
+    }
 }
\ No newline at end of file
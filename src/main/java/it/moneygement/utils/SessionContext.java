@@ -0,0 +1,111 @@
+package it.moneygement.utils;
+
+import it.moneygement.model.User;
+
+/**
+ * Contesto di una sessione autenticata.
+ * <p>
+ * Ogni login crea un nuovo SessionContext identificato da un token opaco. Il contesto viene
+ * passato esplicitamente ai metodi del Service, così che lo stesso processo possa servire
+ * contemporaneamente molti utenti diversi.
+ * </p>
+ * <p>
+ * La sessione scade per inattività (idle timeout) oppure, in ogni caso, dopo una durata
+ * massima dalla sua creazione (absolute timeout).
+ * </p>
+ * <p>
+ * L'utente della sessione non viene mai condiviso: il contesto ne conserva una copia propria e
+ * {@link #getUser()} ne restituisce ogni volta una nuova. I dati aggiornati (es. dopo un cambio di profilo)
+ * vengono sostituiti per intero dal {@link SessionRegistry}, quindi chi legge vede sempre un utente completo.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class SessionContext {
+
+    private final String token;
+    // Sostituito per intero dal registro, mai modificato: volatile per le letture da altri thread
+    private volatile User user;
+    private final long creazioneMillis;
+    private final long idleTimeoutMillis;
+    private final long absoluteTimeoutMillis;
+
+    // Aggiornato a ogni richiesta, anche da thread diversi: volatile per garantirne la visibilità
+    private volatile long ultimoAccessoMillis;
+
+    /**
+     * Crea un nuovo contesto di sessione.
+     *
+     * @param token                 Il token opaco che identifica la sessione.
+     * @param user                  L'utente autenticato.
+     * @param creazioneMillis       L'istante di creazione.
+     * @param idleTimeoutMillis     La durata massima di inattività.
+     * @param absoluteTimeoutMillis La durata massima della sessione.
+     */
+    SessionContext(String token, User user, long creazioneMillis, long idleTimeoutMillis, long absoluteTimeoutMillis) {
+        this.token = token;
+        this.user = new User(user);
+        this.creazioneMillis = creazioneMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.absoluteTimeoutMillis = absoluteTimeoutMillis;
+        this.ultimoAccessoMillis = creazioneMillis;
+    }
+
+    /**
+     * @return Il token opaco della sessione (da inviare al client).
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * @return Una copia dell'utente autenticato in questa sessione (modificarla non cambia la sessione).
+     */
+    public User getUser() {
+        return new User(user);
+    }
+
+    /**
+     * @return L'ID dell'utente autenticato.
+     */
+    public int getUserId() {
+        return user.getId();
+    }
+
+    /**
+     * Calcola l'istante in cui la sessione scadrà se non verrà più utilizzata.
+     *
+     * @return Il minimo tra la scadenza per inattività e quella assoluta.
+     */
+    public long getScadenzaMillis() {
+        return Math.min(ultimoAccessoMillis + idleTimeoutMillis, creazioneMillis + absoluteTimeoutMillis);
+    }
+
+    /**
+     * Verifica se la sessione è scaduta.
+     *
+     * @param adessoMillis L'istante corrente.
+     * @return true se la sessione non è più valida.
+     */
+    public boolean isScaduta(long adessoMillis) {
+        return adessoMillis >= getScadenzaMillis();
+    }
+
+    /**
+     * Sostituisce i dati dell'utente della sessione (dopo un aggiornamento salvato).
+     *
+     * @param aggiornato L'utente aggiornato, con lo stesso ID.
+     */
+    void setUser(User aggiornato) {
+        this.user = new User(aggiornato);
+    }
+
+    /**
+     * Registra un accesso alla sessione, rinnovando la scadenza per inattività.
+     *
+     * @param adessoMillis L'istante corrente.
+     */
+    void touch(long adessoMillis) {
+        this.ultimoAccessoMillis = adessoMillis;
+    }
+}
@@ -0,0 +1,209 @@
+package it.moneygement.utils;
+
+import it.moneygement.model.User;
+
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registro concorrente delle sessioni attive, indicizzate per token opaco.
+ * <p>
+ * Sostituisce il vecchio singleton {@link UserSession} lato server: le sessioni sono salvate in una
+ * {@link ConcurrentHashMap} (lookup O(1) senza lock globali) e le scadenze sono gestite da una
+ * {@link TimingWheel} gerarchica. Rinnovare una sessione costa solo una scrittura volatile: quando la
+ * scadenza registrata nella ruota arriva, il registro controlla la scadenza reale e, se la sessione è
+ * stata usata nel frattempo, la ripianifica (scadenza "pigra").
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class SessionRegistry {
+
+    // Risoluzione della ruota: un secondo è più che sufficiente per timeout di minuti/ore
+    private static final long TICK_MILLIS = 1000;
+    // 4 livelli da 64 slot: orizzonte di 64^4 secondi (circa 194 giorni)
+    private static final int LIVELLI_RUOTA = 4;
+    // 32 byte casuali = 256 bit di entropia per token
+    private static final int BYTE_TOKEN = 32;
+
+    private final Map<String, SessionContext> sessioni = new ConcurrentHashMap<>();
+    private final TimingWheel<String> ruota;
+    private final SecureRandom random = new SecureRandom();
+    private final Clock clock;
+    private final long idleTimeoutMillis;
+    private final long absoluteTimeoutMillis;
+
+    private ScheduledExecutorService reaper;
+
+    /**
+     * Crea un registro di sessioni.
+     *
+     * @param idleTimeout     Dopo quanto tempo di inattività una sessione scade.
+     * @param absoluteTimeout Durata massima di una sessione, anche se sempre attiva.
+     * @param clock           L'orologio da usare (sostituibile nei test).
+     */
+    public SessionRegistry(Duration idleTimeout, Duration absoluteTimeout, Clock clock) {
+        this.idleTimeoutMillis = idleTimeout.toMillis();
+        this.absoluteTimeoutMillis = absoluteTimeout.toMillis();
+        this.clock = clock;
+        this.ruota = new TimingWheel<>(TICK_MILLIS, LIVELLI_RUOTA, clock.millis());
+    }
+
+    /**
+     * Crea una nuova sessione per un utente appena autenticato.
+     *
+     * @param user L'utente che ha effettuato il login.
+     * @return Il contesto della nuova sessione, con il suo token.
+     */
+    public SessionContext create(User user) {
+        long adesso = clock.millis();
+        SessionContext sessione = new SessionContext(generaToken(), user, adesso, idleTimeoutMillis, absoluteTimeoutMillis);
+        sessioni.put(sessione.getToken(), sessione);
+
+        synchronized (ruota) {
+            ruota.schedule(sessione.getToken(), sessione.getScadenzaMillis());
+        }
+        return sessione;
+    }
+
+    /**
+     * Recupera una sessione valida tramite il suo token e ne rinnova la scadenza per inattività.
+     *
+     * @param token Il token inviato dal client.
+     * @return Il contesto della sessione, oppure null se il token non esiste o è scaduto.
+     */
+    public SessionContext get(String token) {
+        if (token == null) {
+            return null;
+        }
+        SessionContext sessione = sessioni.get(token);
+        if (sessione == null) {
+            return null;
+        }
+
+        long adesso = clock.millis();
+        if (sessione.isScaduta(adesso)) {
+            // Scaduta ma non ancora raccolta dalla ruota: la rimuoviamo subito
+            sessioni.remove(token, sessione);
+            return null;
+        }
+        sessione.touch(adesso);
+        return sessione;
+    }
+
+    /**
+     * Invalida una sessione (logout).
+     *
+     * @param token Il token della sessione da chiudere.
+     */
+    public void invalidate(String token) {
+        if (token != null) {
+            // La voce nella ruota resta: alla sua scadenza non troverà più la sessione e verrà ignorata
+            sessioni.remove(token);
+        }
+    }
+
+    /**
+     * Invalida tutte le sessioni di un utente (es. dopo la cancellazione dell'account).
+     * Operazione rara: scorre tutte le sessioni attive.
+     *
+     * @param userId L'ID dell'utente.
+     */
+    public void invalidateUser(int userId) {
+        sessioni.values().removeIf(s -> s.getUserId() == userId);
+    }
+
+    /**
+     * Sostituisce i dati dell'utente in tutte le sue sessioni attive (es. dopo un cambio di profilo).
+     * Operazione rara: scorre tutte le sessioni attive.
+     *
+     * @param user L'utente aggiornato.
+     */
+    public void updateUser(User user) {
+        for (SessionContext sessione : sessioni.values()) {
+            if (sessione.getUserId() == user.getId()) {
+                sessione.setUser(user);
+            }
+        }
+    }
+
+    /**
+     * Rimuove le sessioni scadute facendo avanzare la timing wheel fino all'istante corrente.
+     * Le sessioni usate nel frattempo vengono ripianificate alla loro nuova scadenza.
+     *
+     * @return Il numero di sessioni rimosse.
+     */
+    public int purgeExpired() {
+        long adesso = clock.millis();
+        int rimosse = 0;
+
+        synchronized (ruota) {
+            List<String> scaduti = ruota.advance(adesso);
+            for (String token : scaduti) {
+                SessionContext sessione = sessioni.get(token);
+                if (sessione == null) {
+                    // Già chiusa con un logout
+                    continue;
+                }
+                if (sessione.isScaduta(adesso)) {
+                    if (sessioni.remove(token, sessione)) {
+                        rimosse++;
+                    }
+                } else {
+                    ruota.schedule(token, sessione.getScadenzaMillis());
+                }
+            }
+        }
+        return rimosse;
+    }
+
+    /**
+     * Avvia un thread in background che ogni secondo rimuove le sessioni scadute.
+     * Il thread è un daemon, quindi non impedisce la chiusura dell'applicazione.
+     */
+    public synchronized void startReaper() {
+        if (reaper != null) {
+            return;
+        }
+        reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        reaper.scheduleAtFixedRate(this::purgeExpired, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Ferma il thread di pulizia delle sessioni.
+     */
+    public synchronized void stopReaper() {
+        if (reaper != null) {
+            reaper.shutdownNow();
+            reaper = null;
+        }
+    }
+
+    /**
+     * @return Il numero di sessioni attualmente registrate.
+     */
+    public int size() {
+        return sessioni.size();
+    }
+
+    /**
+     * Genera un token casuale non prevedibile, codificato in Base64 URL-safe.
+     */
+    private String generaToken() {
+        byte[] bytes = new byte[BYTE_TOKEN];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+}
@@ -0,0 +1,266 @@
+package it.moneygement.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Stima dei quantili (mediana, 90° percentile, ...) di una sequenza di valori con un t-digest:
+ * un riassunto di dimensione limitata che si costruisce in una passata e si può unire ad altri.
+ * <p>
+ * I valori vengono raggruppati in centroidi (media e peso) ordinati per media. Il peso massimo di un centroide
+ * dipende dalla sua posizione q: è piccolo vicino agli estremi e grande al centro (funzione di scala con l'arcoseno),
+ * quindi le code della distribuzione restano precise anche con pochi centroidi. Con compressione δ i centroidi sono
+ * al più δ, qualunque sia il numero di valori: un digest salvato occupa poche kB e si unisce agli altri in O(δ).
+ * I valori nuovi vanno in un buffer che viene fuso con i centroidi (ordinamento e una passata) quando è pieno.
+ * </p>
+ * <p>
+ * Riferimento: T. Dunning, O. Ertl, "Computing Extremely Accurate Quantiles Using t-Digests" (variante "merging").
+ * La classe non è sincronizzata.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class TDigest {
+
+    public static final double COMPRESSIONE_PREDEFINITA = 100;
+
+    private final double compressione;
+
+    // Centroidi fusi, ordinati per media
+    private double[] medie = new double[0];
+    private double[] pesi = new double[0];
+    private int centroidi;
+
+    // Valori (o centroidi di altri digest) non ancora fusi
+    private final double[] bufferMedie;
+    private final double[] bufferPesi;
+    private int inBuffer;
+
+    private double totale;
+    private double minimo = Double.NaN;
+    private double massimo = Double.NaN;
+
+    public TDigest() {
+        this(COMPRESSIONE_PREDEFINITA);
+    }
+
+    /**
+     * @param compressione Il parametro δ: più è alto, più il digest è preciso e grande (almeno 10).
+     */
+    public TDigest(double compressione) {
+        if (!(compressione >= 10)) {
+            throw new IllegalArgumentException("La compressione deve essere almeno 10");
+        }
+        this.compressione = compressione;
+        int buffer = (int) Math.ceil(compressione) * 5;
+        this.bufferMedie = new double[buffer];
+        this.bufferPesi = new double[buffer];
+    }
+
+    /**
+     * Aggiunge un valore.
+     *
+     * @param valore Il valore (non NaN).
+     */
+    public void aggiungi(double valore) {
+        aggiungi(valore, 1);
+    }
+
+    /**
+     * Aggiunge i valori di un altro digest (che non viene modificato).
+     *
+     * @param altro Il digest da unire.
+     */
+    public void unisci(TDigest altro) {
+        for (int i = 0; i < altro.centroidi; i++) {
+            aggiungi(altro.medie[i], altro.pesi[i]);
+        }
+        for (int i = 0; i < altro.inBuffer; i++) {
+            aggiungi(altro.bufferMedie[i], altro.bufferPesi[i]);
+        }
+        if (altro.totale > 0) {
+            minimo = Math.min(minimo, altro.minimo);
+            massimo = Math.max(massimo, altro.massimo);
+        }
+    }
+
+    /**
+     * Stima il valore sotto cui cade una frazione dei valori.
+     *
+     * @param q La frazione, tra 0 e 1 (0,5 per la mediana).
+     * @return Il quantile stimato (NaN se il digest è vuoto).
+     */
+    public double quantile(double q) {
+        if (!(q >= 0 && q <= 1)) {
+            throw new IllegalArgumentException("Il quantile deve essere tra 0 e 1");
+        }
+        comprimi();
+        if (centroidi == 0) {
+            return Double.NaN;
+        }
+        if (centroidi == 1) {
+            return medie[0];
+        }
+        double indice = q * totale;
+        // Ogni centroide è considerato centrato sulla sua media: tra due centroidi si interpola,
+        // prima del primo e dopo l'ultimo si interpola verso minimo e massimo
+        double primo = pesi[0] / 2;
+        if (indice < primo) {
+            return minimo + (medie[0] - minimo) * indice / primo;
+        }
+        double cumulato = primo;
+        for (int i = 0; i < centroidi - 1; i++) {
+            double passo = (pesi[i] + pesi[i + 1]) / 2;
+            if (cumulato + passo > indice) {
+                double z1 = indice - cumulato;
+                double z2 = cumulato + passo - indice;
+                return (medie[i] * z2 + medie[i + 1] * z1) / passo;
+            }
+            cumulato += passo;
+        }
+        double ultimo = pesi[centroidi - 1] / 2;
+        return medie[centroidi - 1] + (massimo - medie[centroidi - 1]) * Math.min(1, (indice - cumulato) / ultimo);
+    }
+
+    /**
+     * @return Il numero di valori aggiunti.
+     */
+    public long getNumero() {
+        return Math.round(totale);
+    }
+
+    /**
+     * @return Il numero di centroidi dopo la fusione del buffer (la dimensione del digest).
+     */
+    public int getCentroidi() {
+        comprimi();
+        return centroidi;
+    }
+
+    /**
+     * Serializza il digest (compressione, estremi e centroidi) per salvarlo nel database.
+     *
+     * @return I byte del digest.
+     */
+    public byte[] toBytes() {
+        comprimi();
+        ByteBuffer buffer = ByteBuffer.allocate(3 * Double.BYTES + Integer.BYTES + centroidi * 2 * Double.BYTES);
+        buffer.putDouble(compressione).putDouble(minimo).putDouble(massimo).putInt(centroidi);
+        for (int i = 0; i < centroidi; i++) {
+            buffer.putDouble(medie[i]).putDouble(pesi[i]);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Ricostruisce un digest serializzato con {@link #toBytes()}.
+     *
+     * @param dati I byte del digest.
+     * @return Il digest.
+     * @throws IllegalArgumentException se i byte non sono un digest valido.
+     */
+    public static TDigest fromBytes(byte[] dati) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(dati);
+            TDigest digest = new TDigest(buffer.getDouble());
+            digest.minimo = buffer.getDouble();
+            digest.massimo = buffer.getDouble();
+            int n = buffer.getInt();
+            digest.medie = new double[n];
+            digest.pesi = new double[n];
+            for (int i = 0; i < n; i++) {
+                digest.medie[i] = buffer.getDouble();
+                digest.pesi[i] = buffer.getDouble();
+                digest.totale += digest.pesi[i];
+            }
+            digest.centroidi = n;
+            return digest;
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Digest non valido", e);
+        }
+    }
+
+    // --- METODI PRIVATI ---
+
+    private void aggiungi(double media, double peso) {
+        if (Double.isNaN(media)) {
+            throw new IllegalArgumentException("Valore non valido: NaN");
+        }
+        if (inBuffer == bufferMedie.length) {
+            comprimi();
+        }
+        bufferMedie[inBuffer] = media;
+        bufferPesi[inBuffer] = peso;
+        inBuffer++;
+        totale += peso;
+        minimo = totale == peso ? media : Math.min(minimo, media);
+        massimo = totale == peso ? media : Math.max(massimo, media);
+    }
+
+    /**
+     * Fonde il buffer con i centroidi: ordina tutto per media e in una passata unisce ogni centroide al
+     * precedente finché non supera il limite della sua posizione (vedi {@link #limiteDopo(double)}).
+     */
+    private void comprimi() {
+        if (inBuffer == 0) {
+            return;
+        }
+        int n = centroidi + inBuffer;
+        Integer[] ordine = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            ordine[i] = i;
+        }
+        Arrays.sort(ordine, Comparator.comparingDouble(this::mediaDi));
+
+        double[] nuoveMedie = new double[n];
+        double[] nuoviPesi = new double[n];
+        int k = 0;
+        nuoveMedie[0] = mediaDi(ordine[0]);
+        nuoviPesi[0] = pesoDi(ordine[0]);
+        // Peso dei centroidi già chiusi, a sinistra di quello in costruzione, e posizione massima che può raggiungere
+        double precedenti = 0;
+        double limite = limiteDopo(0);
+        for (int j = 1; j < n; j++) {
+            double media = mediaDi(ordine[j]);
+            double peso = pesoDi(ordine[j]);
+            double proposto = nuoviPesi[k] + peso;
+            if ((precedenti + proposto) / totale <= limite) {
+                nuoveMedie[k] += (media - nuoveMedie[k]) * peso / proposto;
+                nuoviPesi[k] = proposto;
+            } else {
+                precedenti += nuoviPesi[k];
+                limite = limiteDopo(precedenti / totale);
+                k++;
+                nuoveMedie[k] = media;
+                nuoviPesi[k] = peso;
+            }
+        }
+        centroidi = k + 1;
+        medie = Arrays.copyOf(nuoveMedie, centroidi);
+        pesi = Arrays.copyOf(nuoviPesi, centroidi);
+        inBuffer = 0;
+    }
+
+    /**
+     * Funzione di scala k(q) = δ / 2π · asin(2q - 1): un centroide che inizia in q0 può arrivare fino alla
+     * posizione in cui k cresce di 1. Gli intervalli sono stretti vicino a 0 e 1 e ampi al centro; k va da -δ/4
+     * a δ/4 e due centroidi vicini coprono più di un'unità (altrimenti sarebbero stati uniti), quindi sono al più δ.
+     */
+    private double limiteDopo(double q0) {
+        double k = compressione / (2 * Math.PI) * Math.asin(2 * q0 - 1) + 1;
+        if (k >= compressione / 4) {
+            return 1;
+        }
+        return (Math.sin(k * 2 * Math.PI / compressione) + 1) / 2;
+    }
+
+    // Le posizioni da 0 a centroidi - 1 sono i centroidi fusi, le successive il buffer
+    private double mediaDi(int i) {
+        return i < centroidi ? medie[i] : bufferMedie[i - centroidi];
+    }
+
+    private double pesoDi(int i) {
+        return i < centroidi ? pesi[i] : bufferPesi[i - centroidi];
+    }
+}
@@ -0,0 +1,174 @@
+package it.moneygement.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Timing wheel gerarchica per gestire un numero molto elevato di scadenze a costo costante.
+ * <p>
+ * Il tempo è diviso in "tick" di durata fissa. Il livello 0 ha uno slot per ciascuno dei prossimi
+ * 64 tick, il livello 1 uno slot ogni 64 tick, il livello 2 uno ogni 64² tick e così via
+ * (come i timer del kernel Linux). Inserire una scadenza costa O(1); quando la ruota di un livello
+ * completa un giro, lo slot corrispondente del livello superiore viene "ridistribuito" (cascade)
+ * sui livelli inferiori. Ogni elemento viene quindi spostato al massimo una volta per livello.
+ * </p>
+ * <p>
+ * La classe <b>non</b> è thread-safe: chi la usa da più thread deve sincronizzarsi esternamente.
+ * Non è prevista la cancellazione: chi riceve una scadenza deve verificare se è ancora valida.
+ * </p>
+ *
+ * @param <K> il tipo della chiave associata a ogni scadenza (es. il token di sessione).
+ * @author Stefano Bellan
+ */
+public class TimingWheel<K> {
+
+    // 64 slot per livello: gli indici si calcolano con shift e maschere di bit
+    private static final int BITS_PER_LIVELLO = 6;
+    private static final int SLOT_PER_LIVELLO = 1 << BITS_PER_LIVELLO;
+    private static final int MASCHERA = SLOT_PER_LIVELLO - 1;
+
+    /**
+     * Elemento inserito nella ruota: chiave e tick di scadenza.
+     */
+    private static final class Voce<K> {
+        private final K chiave;
+        private final long tickScadenza;
+
+        private Voce(K chiave, long tickScadenza) {
+            this.chiave = chiave;
+            this.tickScadenza = tickScadenza;
+        }
+    }
+
+    private final long tickMillis;
+    private final int livelli;
+    // Una ruota di SLOT_PER_LIVELLO slot per livello (liste invece di array: gli array di tipi generici non sono controllati)
+    private final List<List<ArrayDeque<Voce<K>>>> ruote;
+
+    // Prossimo tick da elaborare (tutti i tick precedenti sono già stati processati)
+    private long base;
+    private int dimensione;
+
+    /**
+     * Crea una nuova timing wheel.
+     *
+     * @param tickMillis  La durata di un tick in millisecondi (risoluzione delle scadenze).
+     * @param livelli     Il numero di livelli: l'orizzonte massimo è tickMillis * 64^livelli.
+     * @param inizioMillis L'istante di partenza (es. System.currentTimeMillis()).
+     */
+    public TimingWheel(long tickMillis, int livelli, long inizioMillis) {
+        if (tickMillis <= 0 || livelli <= 0 || livelli > 10) {
+            throw new IllegalArgumentException("Parametri della timing wheel non validi");
+        }
+        this.tickMillis = tickMillis;
+        this.livelli = livelli;
+        this.ruote = new ArrayList<>(livelli);
+        for (int l = 0; l < livelli; l++) {
+            List<ArrayDeque<Voce<K>>> ruota = new ArrayList<>(SLOT_PER_LIVELLO);
+            for (int i = 0; i < SLOT_PER_LIVELLO; i++) {
+                ruota.add(new ArrayDeque<>());
+            }
+            ruote.add(ruota);
+        }
+        this.base = inizioMillis / tickMillis;
+    }
+
+    /**
+     * Inserisce una scadenza nella ruota. Costo O(1).
+     * Le scadenze già passate verranno restituite al prossimo avanzamento.
+     *
+     * @param chiave        La chiave da restituire alla scadenza.
+     * @param scadenzaMillis L'istante di scadenza in millisecondi.
+     */
+    public void schedule(K chiave, long scadenzaMillis) {
+        // Arrotondiamo per eccesso: una scadenza non deve mai scattare prima del previsto
+        long tick = (scadenzaMillis + tickMillis - 1) / tickMillis;
+        inserisci(new Voce<>(chiave, tick));
+        dimensione++;
+    }
+
+    /**
+     * Fa avanzare la ruota fino all'istante indicato e restituisce le chiavi scadute.
+     *
+     * @param adessoMillis L'istante corrente in millisecondi.
+     * @return Le chiavi la cui scadenza è stata raggiunta (lista vuota se nessuna).
+     */
+    public List<K> advance(long adessoMillis) {
+        List<K> scadute = new ArrayList<>();
+        long obiettivo = adessoMillis / tickMillis;
+
+        while (base <= obiettivo) {
+            int indice = (int) (base & MASCHERA);
+
+            // A ogni giro completo del livello 0 ridistribuiamo lo slot corrente dei livelli superiori
+            if (indice == 0) {
+                for (int l = 1; l < livelli; l++) {
+                    int indiceLivello = (int) ((base >>> (BITS_PER_LIVELLO * l)) & MASCHERA);
+                    cascade(l, indiceLivello);
+                    if (indiceLivello != 0) {
+                        break;
+                    }
+                }
+            }
+
+            ArrayDeque<Voce<K>> correnti = slot(0, indice);
+            while (!correnti.isEmpty()) {
+                scadute.add(correnti.poll().chiave);
+                dimensione--;
+            }
+            base++;
+        }
+        return scadute;
+    }
+
+    /**
+     * @return Il numero di scadenze attualmente presenti nella ruota.
+     */
+    public int size() {
+        return dimensione;
+    }
+
+    // --- METODI PRIVATI ---
+
+    private ArrayDeque<Voce<K>> slot(int livello, int indice) {
+        return ruote.get(livello).get(indice);
+    }
+
+    /**
+     * Sposta tutti gli elementi di uno slot di livello superiore nei livelli inferiori.
+     */
+    private void cascade(int livello, int indice) {
+        ArrayDeque<Voce<K>> daSpostare = ruote.get(livello).set(indice, new ArrayDeque<>());
+        for (Voce<K> voce : daSpostare) {
+            inserisci(voce);
+        }
+    }
+
+    /**
+     * Sceglie livello e slot in base alla distanza della scadenza dal tick corrente.
+     */
+    private void inserisci(Voce<K> voce) {
+        long distanza = voce.tickScadenza - base;
+        long tick = voce.tickScadenza;
+
+        if (distanza < 0) {
+            // Già scaduta: la restituiamo al prossimo tick elaborato
+            slot(0, (int) (base & MASCHERA)).add(voce);
+            return;
+        }
+
+        for (int l = 0; l < livelli; l++) {
+            if (distanza < (1L << (BITS_PER_LIVELLO * (l + 1)))) {
+                slot(l, (int) ((tick >>> (BITS_PER_LIVELLO * l)) & MASCHERA)).add(voce);
+                return;
+            }
+        }
+
+        // Oltre l'orizzonte massimo: la parcheggiamo nell'ultimo slot raggiungibile,
+        // verrà ricollocata con la cascade quando si avvicinerà
+        long massimo = base + (1L << (BITS_PER_LIVELLO * livelli)) - 1;
+        int ultimo = livelli - 1;
+        slot(ultimo, (int) ((massimo >>> (BITS_PER_LIVELLO * ultimo)) & MASCHERA)).add(voce);
+    }
+}
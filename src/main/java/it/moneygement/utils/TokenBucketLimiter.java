@@ -0,0 +1,128 @@
+package it.moneygement.utils;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Limitatore a secchielli di gettoni (token bucket), un secchiello per chiave (es. un'email o un indirizzo).
+ * <p>
+ * Ogni secchiello contiene al massimo {@code capienza} gettoni e ne riceve uno ogni {@code ricarica}; ogni
+ * tentativo ne consuma uno e, a secchiello vuoto, viene rifiutato senza fare altro lavoro. Si ammettono così
+ * raffiche brevi fino alla capienza e, a regime, al massimo un tentativo per intervallo di ricarica.
+ * </p>
+ * <p>
+ * Vengono ricordati al massimo {@code maxChiavi} secchielli, scartando quello usato meno di recente: un
+ * secchiello scartato ricomincia pieno, quindi la memoria resta limitata anche con chiavi sempre nuove.
+ * Un secchiello nasce al primo gettone consumato e viene dimenticato quando una restituzione lo riporta pieno.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class TokenBucketLimiter {
+
+    /**
+     * Stato di un secchiello: i gettoni (anche frazionari) al momento {@code aggiornato}.
+     */
+    private static final class Secchiello {
+        double gettoni;
+        long aggiornato;
+    }
+
+    private final int capienza;
+    private final long ricaricaMillis;
+    private final Clock clock;
+    private final Map<String, Secchiello> secchielli;
+
+    /**
+     * @param capienza  Il numero massimo di gettoni di un secchiello (la raffica ammessa, almeno 1).
+     * @param ricarica  Il tempo per ricevere un gettone (positivo).
+     * @param maxChiavi Il numero massimo di secchielli ricordati.
+     * @param clock     L'orologio da usare (sostituibile nei test).
+     */
+    public TokenBucketLimiter(int capienza, Duration ricarica, int maxChiavi, Clock clock) {
+        if (capienza < 1 || ricarica.toMillis() <= 0 || maxChiavi < 1) {
+            throw new IllegalArgumentException("Parametri del limitatore non validi");
+        }
+        this.capienza = capienza;
+        this.ricaricaMillis = ricarica.toMillis();
+        this.clock = clock;
+        this.secchielli = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Secchiello> piuVecchio) {
+                return size() > maxChiavi;
+            }
+        };
+    }
+
+    /**
+     * Consuma un gettone della chiave, se ce n'è almeno uno.
+     *
+     * @param chiave La chiave.
+     * @return true se il tentativo è ammesso; false se il secchiello è vuoto.
+     */
+    public synchronized boolean consuma(String chiave) {
+        long adesso = clock.millis();
+        Secchiello s = secchielli.get(chiave);
+        if (s == null) {
+            s = new Secchiello();
+            s.gettoni = capienza;
+            s.aggiornato = adesso;
+            secchielli.put(chiave, s);
+        } else {
+            ricarica(s, adesso);
+        }
+        if (s.gettoni < 1) {
+            return false;
+        }
+        s.gettoni--;
+        return true;
+    }
+
+    /**
+     * Restituisce un gettone consumato (es. dopo un tentativo andato a buon fine, che non va contato).
+     *
+     * @param chiave La chiave.
+     */
+    public synchronized void restituisci(String chiave) {
+        Secchiello s = secchielli.get(chiave);
+        if (s == null) {
+            return;
+        }
+        ricarica(s, clock.millis());
+        s.gettoni++;
+        if (s.gettoni >= capienza) {
+            secchielli.remove(chiave);
+        }
+    }
+
+    /**
+     * @param chiave La chiave.
+     * @return Il tempo che manca al prossimo gettone della chiave (zero se ce n'è già uno).
+     */
+    public synchronized Duration attesa(String chiave) {
+        Secchiello s = secchielli.get(chiave);
+        if (s == null) {
+            return Duration.ZERO;
+        }
+        ricarica(s, clock.millis());
+        return s.gettoni >= 1 ? Duration.ZERO : Duration.ofMillis((long) Math.ceil((1 - s.gettoni) * ricaricaMillis));
+    }
+
+    /**
+     * @return Il numero di secchielli ricordati.
+     */
+    public synchronized int size() {
+        return secchielli.size();
+    }
+
+    // --- METODI PRIVATI ---
+
+    private void ricarica(Secchiello s, long adesso) {
+        if (adesso > s.aggiornato) {
+            s.gettoni = Math.min(capienza, s.gettoni + (double) (adesso - s.aggiornato) / ricaricaMillis);
+            s.aggiornato = adesso;
+        }
+    }
+}
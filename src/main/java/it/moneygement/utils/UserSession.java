@@ -3,12 +3,13 @@ package it.moneygement.utils;
 import it.moneygement.model.User;
 
 /**
- * Gestisce la sessione dell'utente corrente nell'applicazione.
+ * Gestisce la sessione dell'utente corrente nell'interfaccia grafica (JavaFX).
  * <p>
  * Questa classe implementa il pattern <b>Singleton</b> per garantire che esista
- * una sola istanza della sessione attiva in tutto il programma.
- * Serve a mantenere in memoria i dati dell'utente loggato (es. ID, nome)
- * per poterli utilizzare nelle varie schermate o operazioni (es. salvare una spesa).
+ * una sola istanza della sessione attiva in tutto il client desktop.
+ * Non viene più letta dal Service: conserva solo il {@link SessionContext} ottenuto dal login,
+ * che le varie schermate passano esplicitamente ai metodi del Service.
+ * Lato server le sessioni sono gestite da {@link SessionRegistry}.
  * </p>
  *
  * @author Stefano Bellan
@@ -18,9 +19,9 @@ public class UserSession {
     // L'unica istanza statica della classe, condivisa da tutta l'applicazione (Singleton)
     private static UserSession instance;
 
-    // L'oggetto User che rappresenta l'utente attualmente loggato
-    // Se è null, significa che nessuno ha ancora fatto il login
-    private User user;
+    // La sessione ottenuta dal login. Se è null, significa che nessuno ha ancora fatto il login.
+    // Volatile perché può essere letta da thread in background (es. caricamenti asincroni)
+    private volatile SessionContext session;
 
     /**
      * Costruttore privato.
@@ -41,7 +42,7 @@ public class UserSession {
      *
      * @return L'istanza singleton di UserSession.
      */
-    public static UserSession getInstance() {
+    public static synchronized UserSession getInstance() {
         // Controlliamo se l'istanza è già stata creata in precedenza
         if (instance == null) {
             // Se non esiste, la creiamo ora per la prima volta
@@ -52,22 +53,32 @@ public class UserSession {
     }
 
     /**
-     * Recupera l'utente attualmente loggato nella sessione.
+     * Recupera la sessione attualmente attiva nel client.
      *
-     * @return L'oggetto User loggato, oppure null se nessun utente è loggato.
+     * @return Il contesto di sessione, oppure null se nessun utente è loggato.
      */
-    public User getUser() {
-        return user;
+    public SessionContext getSession() {
+        return session;
     }
 
     /**
-     * Imposta l'utente loggato nella sessione corrente.
-     * Da chiamare tipicamente nel Service dopo che il login su Database ha avuto successo.
+     * Imposta la sessione corrente.
+     * Da chiamare tipicamente nel Controller di login dopo che il Service ha autenticato l'utente.
      *
-     * @param user L'oggetto User da salvare in sessione.
+     * @param session Il contesto di sessione restituito dal login.
      */
-    public void setUser(User user) {
-        this.user = user;
+    public void setSession(SessionContext session) {
+        this.session = session;
+    }
+
+    /**
+     * Recupera l'utente attualmente loggato nella sessione.
+     *
+     * @return L'oggetto User loggato, oppure null se nessun utente è loggato.
+     */
+    public User getUser() {
+        SessionContext corrente = session;
+        return corrente == null ? null : corrente.getUser();
     }
 
     /**
@@ -79,7 +90,7 @@ public class UserSession {
      * </p>
      */
     public void clearSession() {
-        // Rimuoviamo il riferimento all'oggetto utente, rendendolo null
-        this.user = null;
+        // Rimuoviamo il riferimento alla sessione, rendendolo null
+        this.session = null;
     }
 }
\ No newline at end of file
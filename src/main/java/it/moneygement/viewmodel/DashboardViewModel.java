@@ -0,0 +1,386 @@
+package it.moneygement.viewmodel;
+
+import it.moneygement.events.ChangeBus;
+import it.moneygement.events.ChangeEvent;
+import it.moneygement.events.ChangeListener;
+import it.moneygement.events.ExpenseChanged;
+import it.moneygement.model.Categories;
+import it.moneygement.model.Expense;
+import it.moneygement.service.MoneygementService;
+import it.moneygement.utils.SessionContext;
+import javafx.animation.AnimationTimer;
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.beans.property.ReadOnlyDoubleWrapper;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Modello della dashboard: le spese dell'utente e i totali per categoria, aggiornati per differenze.
+ * <p>
+ * Dopo il caricamento iniziale la lista non viene più ricaricata: il modello riceve dal {@link ChangeBus}
+ * gli id e il tipo delle modifiche e applica le differenze sul thread JavaFX. Le cancellazioni arrivano
+ * già complete dall'evento e non vengono rilette; le spese inserite o modificate vengono rilette sul
+ * thread di caricamento (l'evento non contiene la riga). Ogni differenza costa O(1): una mappa id → posizione
+ * trova la riga, le cancellazioni spostano l'ultima riga nel posto liberato (l'ordine della lista non è
+ * significativo: la tabella lo ordina con una {@code SortedList}) e i totali per categoria vengono corretti
+ * in centesimi, senza errori di arrotondamento che si accumulano.
+ * </p>
+ * <p>
+ * La conversione nella valuta base avviene sul thread di caricamento, mai su quello JavaFX, e l'importo
+ * convertito di ogni riga viene conservato: modifiche e cancellazioni tolgono dai totali esattamente ciò
+ * che era stato aggiunto, anche se nel frattempo i tassi sono stati riletti. Le righe già caricate restano
+ * al tasso con cui sono state lette finché {@link #ricarica()} non ricalcola tutto (es. dopo il caricamento
+ * di nuovi tassi o il cambio della valuta base).
+ * </p>
+ * <p>
+ * Le differenze pronte vengono applicate una volta per frame da un {@link AnimationTimer}, al massimo
+ * {@value #MAX_MODIFICHE_PER_FRAME} per frame: una raffica di modifiche non blocca il thread della UI e
+ * le proprietà dei totali cambiano una volta sola per frame.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class DashboardViewModel {
+
+    static final int MAX_MODIFICHE_PER_FRAME = 2_000;
+
+    /**
+     * Spesa letta dal database con il suo importo in centesimi della valuta base, già convertito.
+     */
+    record Riga(Expense spesa, long centesimi) {
+    }
+
+    /**
+     * Differenze lette dal database, pronte per essere applicate sul thread JavaFX.
+     */
+    static final class Modifiche {
+        private final boolean completa;
+        private final List<Riga> aggiornate;
+        private final List<Integer> eliminate;
+
+        Modifiche(boolean completa, List<Riga> aggiornate, List<Integer> eliminate) {
+            this.completa = completa;
+            this.aggiornate = aggiornate;
+            this.eliminate = eliminate;
+        }
+
+        private int size() {
+            return completa ? 1 : aggiornate.size() + eliminate.size();
+        }
+    }
+
+    private final MoneygementService service;
+    private final SessionContext sessione;
+
+    // Stato letto e scritto solo sul thread JavaFX
+    private final ObservableList<Expense> spese = FXCollections.observableArrayList();
+    private final ObservableList<Expense> speseSolaLettura = FXCollections.unmodifiableObservableList(spese);
+    private final Map<Integer, Integer> posizioni = new HashMap<>();
+    // Importo in centesimi con cui ogni riga è stata sommata ai totali
+    private final Map<Integer, Long> importi = new HashMap<>();
+    private final long[] centesimi = new long[Categories.values().length];
+    private final boolean[] totaliCambiati = new boolean[Categories.values().length];
+    private final Map<Categories, ReadOnlyDoubleWrapper> totali = new EnumMap<>(Categories.class);
+    private final ReadOnlyDoubleWrapper totale = new ReadOnlyDoubleWrapper();
+
+    // Passaggio di dati tra i thread: bus → caricamento → JavaFX
+    private final Set<Integer> daRileggere = ConcurrentHashMap.newKeySet();
+    private final Set<Integer> daEliminare = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean ricaricaTutto = new AtomicBoolean();
+    private final AtomicBoolean letturaProgrammata = new AtomicBoolean();
+    private final Queue<Modifiche> pronte = new ConcurrentLinkedQueue<>();
+    private final ChangeListener listener = this::suModifiche;
+    private ExecutorService caricamento;
+    private AnimationTimer timer;
+
+    // Valuta base dell'utente, usata solo dal thread di caricamento e riletta a ogni caricamento completo
+    private String valutaBase = Expense.VALUTA_PREDEFINITA;
+
+    /**
+     * Crea il modello per l'utente della sessione (i dati vengono caricati da {@link #start()}).
+     *
+     * @param service  Il service dell'applicazione.
+     * @param sessione La sessione dell'utente.
+     */
+    public DashboardViewModel(MoneygementService service, SessionContext sessione) {
+        this.service = service;
+        this.sessione = sessione;
+        for (Categories c : Categories.values()) {
+            totali.put(c, new ReadOnlyDoubleWrapper());
+        }
+    }
+
+    /**
+     * Avvia il modello: carica le spese e inizia a seguire le modifiche. Va chiamato sul thread JavaFX.
+     */
+    public void start() {
+        caricamento = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "dashboard-loader");
+            t.setDaemon(true);
+            return t;
+        });
+        // Prima l'iscrizione, poi il caricamento: una modifica concorrente viene riletta dopo e non va persa
+        ChangeBus.getInstance().subscribe(listener);
+        ricaricaTutto.set(true);
+        programmaLettura();
+
+        timer = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                applicaPronte();
+            }
+        };
+        timer.start();
+    }
+
+    /**
+     * Ferma il modello (es. al logout o alla chiusura della dashboard). Va chiamato sul thread JavaFX.
+     */
+    public void stop() {
+        ChangeBus.getInstance().unsubscribe(listener);
+        if (timer != null) {
+            timer.stop();
+        }
+        if (caricamento != null) {
+            caricamento.shutdownNow();
+        }
+    }
+
+    /**
+     * Ricarica spese e totali da capo, con la valuta base e i tassi attuali. Le differenze ancora da leggere
+     * vengono assorbite dal caricamento completo.
+     */
+    public void ricarica() {
+        ricaricaTutto.set(true);
+        programmaLettura();
+    }
+
+    /**
+     * @return Le spese dell'utente (sola lettura, in ordine non significativo).
+     */
+    public ObservableList<Expense> getSpese() {
+        return speseSolaLettura;
+    }
+
+    /**
+     * @param categoria La categoria.
+     * @return Il totale speso nella categoria.
+     */
+    public ReadOnlyDoubleProperty totaleProperty(Categories categoria) {
+        return totali.get(categoria).getReadOnlyProperty();
+    }
+
+    /**
+     * @return Il totale di tutte le spese.
+     */
+    public ReadOnlyDoubleProperty totaleProperty() {
+        return totale.getReadOnlyProperty();
+    }
+
+    // --- APPLICAZIONE DELLE DIFFERENZE (thread JavaFX) ---
+
+    /**
+     * Accoda differenze già lette, che verranno applicate al prossimo frame.
+     */
+    void accoda(Modifiche m) {
+        pronte.add(m);
+    }
+
+    /**
+     * Applica le differenze pronte, fino al limite per frame.
+     */
+    void applicaPronte() {
+        int applicate = 0;
+        Modifiche m;
+        while (applicate < MAX_MODIFICHE_PER_FRAME && (m = pronte.poll()) != null) {
+            applica(m);
+            applicate += m.size();
+        }
+        if (applicate > 0) {
+            pubblicaTotali();
+        }
+    }
+
+    /**
+     * Applica un blocco di differenze: sostituzione completa oppure inserimenti/modifiche e cancellazioni.
+     */
+    private void applica(Modifiche m) {
+        if (m.completa) {
+            List<Expense> tutte = new ArrayList<>(m.aggiornate.size());
+            posizioni.clear();
+            importi.clear();
+            Arrays.fill(centesimi, 0);
+            Arrays.fill(totaliCambiati, true);
+            for (Riga r : m.aggiornate) {
+                Expense e = r.spesa();
+                posizioni.put(e.getId(), tutte.size());
+                importi.put(e.getId(), r.centesimi());
+                centesimi[e.getCategoria().ordinal()] += r.centesimi();
+                tutte.add(e);
+            }
+            spese.setAll(tutte);
+            return;
+        }
+        for (Riga r : m.aggiornate) {
+            aggiornaRiga(r);
+        }
+        for (int id : m.eliminate) {
+            eliminaRiga(id);
+        }
+    }
+
+    private void aggiornaRiga(Riga r) {
+        Expense e = r.spesa();
+        Integer posizione = posizioni.get(e.getId());
+        if (posizione == null) {
+            posizioni.put(e.getId(), spese.size());
+            spese.add(e);
+        } else {
+            sommaTotale(spese.get(posizione), -importi.get(e.getId()));
+            spese.set(posizione, e);
+        }
+        importi.put(e.getId(), r.centesimi());
+        sommaTotale(e, r.centesimi());
+    }
+
+    private void eliminaRiga(int id) {
+        Integer posizione = posizioni.remove(id);
+        if (posizione == null) {
+            return;
+        }
+        sommaTotale(spese.get(posizione), -importi.remove(id));
+        int ultima = spese.size() - 1;
+        if (posizione != ultima) {
+            // L'ultima riga prende il posto di quella eliminata: nessuno scorrimento della lista
+            Expense spostata = spese.get(ultima);
+            spese.set(posizione, spostata);
+            posizioni.put(spostata.getId(), posizione);
+        }
+        spese.remove(ultima);
+    }
+
+    private void sommaTotale(Expense e, long importo) {
+        int c = e.getCategoria().ordinal();
+        centesimi[c] += importo;
+        totaliCambiati[c] = true;
+    }
+
+    private void pubblicaTotali() {
+        long complessivo = 0;
+        for (Categories c : Categories.values()) {
+            complessivo += centesimi[c.ordinal()];
+            if (totaliCambiati[c.ordinal()]) {
+                totali.get(c).set(centesimi[c.ordinal()] / 100.0);
+                totaliCambiati[c.ordinal()] = false;
+            }
+        }
+        totale.set(complessivo / 100.0);
+    }
+
+    // --- LETTURA DELLE MODIFICHE (thread del bus e di caricamento) ---
+
+    /**
+     * Riceve gli eventi del bus: annota gli id da rileggere o da eliminare e programma una lettura.
+     * Le modifiche di altri utenti vengono scartate; quelle di proprietario sconosciuto vengono rilette
+     * (la lettura filtra per utente e non trova le spese altrui). Gli eventi arrivano nell'ordine dei commit:
+     * per ogni id vale l'ultimo.
+     */
+    private void suModifiche(List<ChangeEvent> eventi) {
+        boolean interessa = false;
+        for (ChangeEvent evento : eventi) {
+            if (!(evento instanceof ExpenseChanged spesa)) {
+                continue;
+            }
+            if (spesa.getIdUtente() != 0 && spesa.getIdUtente() != sessione.getUserId()) {
+                continue;
+            }
+            switch (spesa.getOperazione()) {
+                case BULK -> ricaricaTutto.set(true);
+                case DELETE -> {
+                    daRileggere.remove(spesa.getIdSpesa());
+                    daEliminare.add(spesa.getIdSpesa());
+                }
+                default -> {
+                    daEliminare.remove(spesa.getIdSpesa());
+                    daRileggere.add(spesa.getIdSpesa());
+                }
+            }
+            interessa = true;
+        }
+        if (interessa) {
+            programmaLettura();
+        }
+    }
+
+    /**
+     * Programma una lettura sul thread di caricamento, se non ce n'è già una in attesa:
+     * le modifiche che arrivano nel frattempo vengono lette insieme.
+     */
+    private void programmaLettura() {
+        if (letturaProgrammata.compareAndSet(false, true)) {
+            caricamento.execute(this::leggi);
+        }
+    }
+
+    private void leggi() {
+        letturaProgrammata.set(false);
+        try {
+            if (ricaricaTutto.getAndSet(false)) {
+                // La lista completa rende superflue le differenze richieste finora
+                daRileggere.clear();
+                daEliminare.clear();
+                valutaBase = service.getBaseCurrency(sessione);
+                List<Riga> tutte = new ArrayList<>();
+                service.forEachExpense(sessione, null, e -> tutte.add(riga(e)));
+                accoda(new Modifiche(true, tutte, List.of()));
+                return;
+            }
+            List<Riga> aggiornate = new ArrayList<>();
+            List<Integer> eliminate = svuota(daEliminare);
+            for (Integer id : svuota(daRileggere)) {
+                Expense e = service.findExpenseById(sessione, id);
+                if (e == null) {
+                    // Cancellata dopo l'evento che l'ha annotata (o di un altro utente)
+                    eliminate.add(id);
+                } else {
+                    aggiornate.add(riga(e));
+                }
+            }
+            if (!aggiornate.isEmpty() || !eliminate.isEmpty()) {
+                accoda(new Modifiche(false, aggiornate, eliminate));
+            }
+        } catch (RuntimeException e) {
+            // Sessione scaduta o errore del database: la dashboard resta con gli ultimi dati
+            System.err.println("Errore aggiornamento dashboard: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Converte la spesa in centesimi della valuta base dell'utente (come i totali calcolati dal database).
+     */
+    private Riga riga(Expense e) {
+        double importo = e.getValuta().equals(valutaBase) ? e.getImporto() : service.getImportoInValutaBase(sessione, e);
+        return new Riga(e, Math.round(importo * 100));
+    }
+
+    private static List<Integer> svuota(Collection<Integer> insieme) {
+        List<Integer> ids = new ArrayList<>(insieme);
+        insieme.removeAll(ids);
+        return ids;
+    }
+}
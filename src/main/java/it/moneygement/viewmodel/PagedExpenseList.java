@@ -0,0 +1,326 @@
+package it.moneygement.viewmodel;
+
+import it.moneygement.events.ChangeBus;
+import it.moneygement.events.ChangeEvent;
+import it.moneygement.events.ChangeListener;
+import it.moneygement.events.ExpenseChanged;
+import it.moneygement.model.Categories;
+import it.moneygement.model.Expense;
+import it.moneygement.model.ExpenseOrder;
+import it.moneygement.service.MoneygementService;
+import it.moneygement.utils.SessionContext;
+import javafx.application.Platform;
+import javafx.collections.ObservableListBase;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lista delle spese letta dal database a pagine, per una {@code TableView} su storici molto grandi.
+ * <p>
+ * La lista dichiara come dimensione il numero di spese dell'utente, ma tiene in memoria al massimo
+ * {@value #MAX_PAGINE} pagine da {@value #DIMENSIONE_PAGINA} righe. Quando la tabella chiede una riga di una
+ * pagina non caricata, {@link #get(int)} restituisce null (la cella resta vuota) e la pagina viene letta su un
+ * thread di caricamento; all'arrivo le righe vengono notificate come aggiornate e la tabella le ridisegna.
+ * Le pagine vicine a quella chiesta vengono lette in anticipo, quelle più lontane vengono scartate.
+ * </p>
+ * <p>
+ * Ordinamento e filtro per categoria sono eseguiti da SQLite ({@link ExpenseOrder}): la lista non può essere
+ * ordinata da JavaFX, quindi la tabella deve impostare una {@code sortPolicy} che chiama
+ * {@link #setOrdinamento(ExpenseOrder)}. Per scorrere si legge la pagina successiva per chiave, a partire
+ * dall'ultima riga della pagina precedente (vedi {@code ExpenseDAO.getExpensePage}); solo i salti verso zone
+ * mai visitate usano OFFSET. Per questo l'ultima riga di ogni pagina letta resta in memoria come "àncora",
+ * anche dopo che la pagina è stata scartata.
+ * </p>
+ * <p>
+ * Ogni modifica alle spese dell'utente (ricevuta dal {@link ChangeBus}) invalida le pagine: le posizioni
+ * possono essere cambiate, e rileggere le poche pagine visibili costa una query per pagina.
+ * </p>
+ *
+ * @author Stefano Bellan
+ */
+public class PagedExpenseList extends ObservableListBase<Expense> {
+
+    static final int DIMENSIONE_PAGINA = 200;
+    static final int MAX_PAGINE = 20;
+    static final int MAX_ANCORE = 5_000;
+
+    private final MoneygementService service;
+    private final SessionContext sessione;
+    private final Executor caricamento;
+    private final Executor fx;
+    private final int dimensionePagina;
+    private final int maxPagine;
+
+    // Stato letto e scritto solo sul thread JavaFX
+    private final Map<Integer, List<Expense>> pagine = new HashMap<>();
+    private final TreeMap<Integer, Expense> ancore = new TreeMap<>();
+    private final Set<Integer> inCaricamento = new HashSet<>();
+    private ExpenseOrder ordine = ExpenseOrder.DATA_DECRESCENTE;
+    private Categories categoria;
+    private int dimensione;
+    private int ultimaPagina;
+    // Cresce a ogni invalidazione: le pagine lette prima vengono scartate all'arrivo
+    private int generazione;
+
+    private final AtomicBoolean ricaricaProgrammata = new AtomicBoolean();
+    private final ChangeListener listener = this::suModifiche;
+    private ExecutorService esecutore;
+
+    /**
+     * Crea la lista per l'utente della sessione (i dati vengono caricati da {@link #start()}).
+     *
+     * @param service  Il service dell'applicazione.
+     * @param sessione La sessione dell'utente.
+     */
+    public PagedExpenseList(MoneygementService service, SessionContext sessione) {
+        this(service, sessione, null, Platform::runLater, DIMENSIONE_PAGINA, MAX_PAGINE);
+    }
+
+    /**
+     * Costruttore visibile nel package per i test: permette di eseguire caricamento e notifiche
+     * su esecutori scelti e di ridurre le dimensioni della cache.
+     *
+     * @param caricamento L'esecutore delle letture dal database, oppure null per un thread dedicato.
+     * @param fx          L'esecutore delle modifiche alla lista (il thread JavaFX nell'applicazione).
+     */
+    PagedExpenseList(MoneygementService service, SessionContext sessione, Executor caricamento, Executor fx,
+                     int dimensionePagina, int maxPagine) {
+        this.service = service;
+        this.sessione = sessione;
+        if (caricamento == null) {
+            esecutore = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "paged-expenses-loader");
+                t.setDaemon(true);
+                return t;
+            });
+            caricamento = esecutore;
+        }
+        this.caricamento = caricamento;
+        this.fx = fx;
+        this.dimensionePagina = dimensionePagina;
+        this.maxPagine = maxPagine;
+    }
+
+    /**
+     * Avvia la lista: conta le spese e inizia a seguire le modifiche. Va chiamato sul thread JavaFX.
+     */
+    public void start() {
+        ChangeBus.getInstance().subscribe(listener);
+        ricarica();
+    }
+
+    /**
+     * Ferma la lista (es. al logout o alla chiusura della vista). Va chiamato sul thread JavaFX.
+     */
+    public void stop() {
+        ChangeBus.getInstance().unsubscribe(listener);
+        if (esecutore != null) {
+            esecutore.shutdownNow();
+        }
+    }
+
+    /**
+     * Cambia l'ordinamento: la lista viene riletta dal database nel nuovo ordine.
+     *
+     * @param ordine Il nuovo ordinamento.
+     */
+    public void setOrdinamento(ExpenseOrder ordine) {
+        if (ordine != this.ordine) {
+            this.ordine = ordine;
+            ricarica();
+        }
+    }
+
+    public ExpenseOrder getOrdinamento() {
+        return ordine;
+    }
+
+    /**
+     * Filtra le spese per categoria: la lista viene ricontata e riletta dal database.
+     *
+     * @param categoria La categoria, oppure null per tutte le spese.
+     */
+    public void setCategoria(Categories categoria) {
+        if (categoria != this.categoria) {
+            this.categoria = categoria;
+            ricarica();
+        }
+    }
+
+    public Categories getCategoria() {
+        return categoria;
+    }
+
+    /**
+     * @return Il numero di pagine attualmente in memoria.
+     */
+    public int getPagineCaricate() {
+        return pagine.size();
+    }
+
+    @Override
+    public int size() {
+        return dimensione;
+    }
+
+    /**
+     * Restituisce la spesa in una posizione, se la sua pagina è in memoria; altrimenti chiede la pagina
+     * e restituisce null. In entrambi i casi vengono chieste anche le pagine adiacenti.
+     *
+     * @param indice La posizione nella lista ordinata.
+     * @return La spesa, oppure null se non è ancora stata letta.
+     */
+    @Override
+    public Expense get(int indice) {
+        if (indice < 0 || indice >= dimensione) {
+            throw new IndexOutOfBoundsException("Indice " + indice + " fuori dalla lista di " + dimensione + " spese");
+        }
+        int pagina = indice / dimensionePagina;
+        ultimaPagina = pagina;
+        richiedi(pagina);
+        richiedi(pagina + 1);
+        if (pagina > 0) {
+            richiedi(pagina - 1);
+        }
+        List<Expense> righe = pagine.get(pagina);
+        int posizione = indice % dimensionePagina;
+        return righe != null && posizione < righe.size() ? righe.get(posizione) : null;
+    }
+
+    // --- CARICAMENTO DELLE PAGINE ---
+
+    /**
+     * Invalida tutte le pagine e riconta le spese. La dimensione viene aggiornata all'arrivo del conteggio.
+     */
+    private void ricarica() {
+        int attesa = ++generazione;
+        pagine.clear();
+        ancore.clear();
+        inCaricamento.clear();
+        ExpenseOrder o = ordine;
+        Categories c = categoria;
+        caricamento.execute(() -> {
+            try {
+                int totale = service.countExpenses(sessione, c);
+                fx.execute(() -> nuovaDimensione(attesa, totale));
+            } catch (RuntimeException e) {
+                // Sessione scaduta: la lista resta com'era
+                System.err.println("Errore conteggio spese per la tabella (" + o + "): " + e.getMessage());
+            }
+        });
+    }
+
+    private void nuovaDimensione(int attesa, int totale) {
+        if (attesa != generazione) {
+            return;
+        }
+        int vecchia = dimensione;
+        dimensione = totale;
+        // Tutte le righe sono cambiate: le celle visibili richiederanno di nuovo le loro pagine
+        beginChange();
+        nextReplace(0, totale, Collections.nCopies(vecchia, null));
+        endChange();
+    }
+
+    /**
+     * Chiede una pagina, se non è già in memoria o in lettura.
+     */
+    private void richiedi(int pagina) {
+        if ((long) pagina * dimensionePagina >= dimensione || pagine.containsKey(pagina) || !inCaricamento.add(pagina)) {
+            return;
+        }
+        int attesa = generazione;
+        ExpenseOrder o = ordine;
+        Categories c = categoria;
+        Expense ancora = ancore.get(pagina - 1);
+        caricamento.execute(() -> {
+            try {
+                List<Expense> righe = ancora != null
+                        ? service.getExpensePage(sessione, c, o, ancora, dimensionePagina)
+                        : service.getExpensePageAt(sessione, c, o, pagina * dimensionePagina, dimensionePagina);
+                fx.execute(() -> ricevi(attesa, pagina, righe));
+            } catch (RuntimeException e) {
+                System.err.println("Errore lettura pagina " + pagina + " delle spese: " + e.getMessage());
+                fx.execute(() -> {
+                    if (attesa == generazione) {
+                        inCaricamento.remove(pagina);
+                    }
+                });
+            }
+        });
+    }
+
+    private void ricevi(int attesa, int pagina, List<Expense> righe) {
+        if (attesa != generazione) {
+            return;
+        }
+        inCaricamento.remove(pagina);
+        pagine.put(pagina, righe);
+        if (!righe.isEmpty()) {
+            ancore.put(pagina, righe.get(righe.size() - 1));
+        }
+        scarta();
+
+        int inizio = pagina * dimensionePagina;
+        int fine = Math.min(inizio + righe.size(), dimensione);
+        if (inizio < fine) {
+            beginChange();
+            for (int i = inizio; i < fine; i++) {
+                nextUpdate(i);
+            }
+            endChange();
+        }
+    }
+
+    /**
+     * Scarta le pagine e le àncore più lontane dall'ultima pagina chiesta, oltre i limiti di memoria.
+     * Le righe scartate non vengono notificate: la tabella le chiederà di nuovo solo se tornano visibili.
+     */
+    private void scarta() {
+        while (pagine.size() > maxPagine) {
+            int lontana = -1;
+            for (int p : pagine.keySet()) {
+                if (lontana < 0 || Math.abs(p - ultimaPagina) > Math.abs(lontana - ultimaPagina)) {
+                    lontana = p;
+                }
+            }
+            pagine.remove(lontana);
+        }
+        while (ancore.size() > MAX_ANCORE) {
+            int prima = ancore.firstKey();
+            int ultima = ancore.lastKey();
+            ancore.remove(ultimaPagina - prima > ultima - ultimaPagina ? prima : ultima);
+        }
+    }
+
+    // --- MODIFICHE (thread del bus) ---
+
+    /**
+     * Riceve gli eventi del bus: una modifica alle spese dell'utente invalida la lista.
+     * Le modifiche arrivate prima che la ricarica parta vengono gestite da un'unica ricarica.
+     */
+    private void suModifiche(List<ChangeEvent> eventi) {
+        for (ChangeEvent evento : eventi) {
+            if (evento instanceof ExpenseChanged spesa
+                    && (spesa.getIdUtente() == 0 || spesa.getIdUtente() == sessione.getUserId())) {
+                if (ricaricaProgrammata.compareAndSet(false, true)) {
+                    fx.execute(() -> {
+                        ricaricaProgrammata.set(false);
+                        ricarica();
+                    });
+                }
+                return;
+            }
+        }
+    }
+}
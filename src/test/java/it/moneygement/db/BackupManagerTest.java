@@ -0,0 +1,118 @@
+package it.moneygement.db;
+
+import it.moneygement.dao.ExpenseDAO;
+import it.moneygement.dao.UserDAO;
+import it.moneygement.model.Categories;
+import it.moneygement.model.Expense;
+import it.moneygement.model.User;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per i backup online: contenuto degli snapshot e ripristino (database su file temporanei).
+ *
+ * @author Stefano Bellan
+ */
+public class BackupManagerTest {
+
+    @TempDir
+    Path cartella;
+
+    /**
+     * Verifica che lo snapshot contenga il database e il file di archivio registrato, e che ripristinando
+     * i file dopo altre modifiche si ritrovino esattamente le spese presenti al momento del backup,
+     * comprese quelle archiviate.
+     */
+    @Test
+    @DisplayName("Test backup e ripristino con archivio")
+    void testBackupERipristino() throws Exception {
+        Path database = cartella.resolve("backup.db");
+        Path archivio = cartella.resolve("backup-archive-2020.db");
+        DbConnection.setTestDatabase("jdbc:sqlite:" + database);
+        new InitDatabase().initializeDb();
+
+        UserDAO userDAO = new UserDAO();
+        userDAO.registerUser(new User("Mario", "Rossi", "x", "backup@test.it", 30));
+        int userId = userDAO.getUserByEmail("backup@test.it").getId();
+        ExpenseDAO expenseDAO = new ExpenseDAO();
+        expenseDAO.addExpense(spesa(userId, "Pane", LocalDateTime.of(2025, 3, 5, 10, 0)));
+
+        // Anno 2020 archiviato, come lo lascia ExpenseArchiver
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + archivio);
+             Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE expense (id INTEGER NOT NULL, nome_spesa TEXT NOT NULL, categoria TEXT NOT NULL, " +
+                    "descrizione TEXT NOT NULL, importo REAL NOT NULL, data TEXT NOT NULL, user_id INTEGER NOT NULL, " +
+                    "version INTEGER NOT NULL, valuta TEXT NOT NULL DEFAULT 'EUR', PRIMARY KEY (user_id, data, id)) WITHOUT ROWID;");
+            stmt.executeUpdate("INSERT INTO expense VALUES (1000, 'Affitto', 'BOLLETTE', 'Mensile', 500, '2020-06-01T00:00:00', " + userId + ", 1, 'EUR');");
+        }
+        try (Statement stmt = DbConnection.getInstance().getConnection().createStatement()) {
+            stmt.executeUpdate("INSERT INTO archive_year (anno, file, righe, archiviato_il) VALUES (2020, '"
+                    + archivio.toString().replace("'", "''") + "', 1, '2025-01-01T00:00:00');");
+        }
+
+        BackupManager backup = new BackupManager(cartella.resolve("snapshot"), 2, 10, 0);
+        BackupReport report = backup.backupNow();
+        assertTrue(report.isVerificato(), report.getErrore());
+        Path snapshot = cartella.resolve("snapshot").resolve(report.getSnapshot());
+        assertTrue(Files.isRegularFile(snapshot.resolve("backup.db")));
+        assertTrue(Files.isRegularFile(snapshot.resolve("backup-archive-2020.db")));
+
+        // Modifiche successive al backup, poi ripristino ad applicazione ferma
+        expenseDAO.addExpense(spesa(userId, "Latte", LocalDateTime.of(2025, 3, 6, 10, 0)));
+        DbConnection.getInstance().getConnection().close();
+        Files.delete(archivio);
+        Files.copy(snapshot.resolve("backup.db"), database, StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(snapshot.resolve("backup-archive-2020.db"), archivio);
+        Files.deleteIfExists(Path.of(database + "-wal"));
+        Files.deleteIfExists(Path.of(database + "-shm"));
+        DbConnection.setTestDatabase("jdbc:sqlite:" + database);
+
+        List<String> nomi = expenseDAO.getExpensesInRange(userId, LocalDate.of(2020, 1, 1), LocalDate.of(2025, 12, 31))
+                .stream().map(Expense::getNomeSpesa).toList();
+        assertEquals(List.of("Affitto", "Pane"), nomi);
+    }
+
+    /**
+     * Verifica che un backup con un file di archivio registrato ma mancante venga segnalato come fallito
+     * senza lasciare snapshot, invece di produrre uno snapshot incompleto.
+     */
+    @Test
+    @DisplayName("Test backup con archivio mancante")
+    void testArchivioMancante() throws Exception {
+        DbConnection.setTestDatabase("jdbc:sqlite:" + cartella.resolve("mancante.db"));
+        new InitDatabase().initializeDb();
+        try (Statement stmt = DbConnection.getInstance().getConnection().createStatement()) {
+            stmt.executeUpdate("INSERT INTO archive_year (anno, file, righe, archiviato_il) VALUES (2019, '"
+                    + cartella.resolve("mancante-archive-2019.db").toString().replace("'", "''") + "', 1, '2025-01-01T00:00:00');");
+        }
+
+        BackupManager backup = new BackupManager(cartella.resolve("snapshot"), 2, 10, 0);
+        BackupReport report = backup.backupNow();
+        assertFalse(report.isVerificato());
+        assertTrue(report.getErrore().contains("mancante-archive-2019.db"), report.getErrore());
+        assertEquals(1, backup.getFalliti());
+        try (Stream<Path> snapshot = Files.list(cartella.resolve("snapshot"))) {
+            assertEquals(0, snapshot.count());
+        }
+    }
+
+    private static Expense spesa(int userId, String nome, LocalDateTime data) {
+        Expense e = new Expense(nome, Categories.ALTRO, "Spesa", 2, data);
+        e.setIdUtente(userId);
+        return e;
+    }
+}
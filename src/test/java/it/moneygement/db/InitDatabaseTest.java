@@ -0,0 +1,118 @@
+package it.moneygement.db;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per le migrazioni dei database creati con versioni precedenti dell'applicazione.
+ *
+ * @author Stefano Bellan
+ */
+public class InitDatabaseTest {
+
+    @TempDir
+    Path cartella;
+
+    /**
+     * Verifica che le date salvate con LocalDateTime.toString() (secondi omessi, frazioni di secondo) vengano
+     * riscritte nel formato a larghezza fissa e che una data che diventerebbe un doppione resti com'è.
+     */
+    @Test
+    @DisplayName("Test normalizzazione delle date vecchie")
+    void testNormalizzazioneDate() throws Exception {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + cartella.resolve("vecchio.db"));
+             Statement stmt = conn.createStatement()) {
+            // Schema e righe di una versione senza colonne aggiuntive e senza formato fisso
+            stmt.executeUpdate("CREATE TABLE user (id INTEGER PRIMARY KEY AUTOINCREMENT, nome TEXT NOT NULL, cognome TEXT NOT NULL, " +
+                    "email TEXT UNIQUE NOT NULL, password_hash TEXT NOT NULL, eta INTEGER);");
+            stmt.executeUpdate("CREATE TABLE expense (id INTEGER PRIMARY KEY AUTOINCREMENT, nome_spesa TEXT NOT NULL, categoria TEXT NOT NULL, " +
+                    "descrizione TEXT NOT NULL, importo REAL NOT NULL, data TEXT NOT NULL, user_id INTEGER);");
+            stmt.executeUpdate("INSERT INTO user (nome, cognome, email, password_hash, eta) VALUES ('Mario', 'Rossi', 'm@r.it', 'x', 30);");
+            stmt.executeUpdate("INSERT INTO expense (nome_spesa, categoria, descrizione, importo, data, user_id) VALUES " +
+                    "('Pane', 'CIBO', '', 2, '2024-03-05T10:15', 1), " +
+                    "('Latte', 'CIBO', '', 1, '2024-03-05T10:15:30.250', 1), " +
+                    "('Caffè', 'CIBO', '', 1, '2024-03-06T08:00:00', 1), " +
+                    "('Caffè', 'CIBO', '', 1, '2024-03-06T08:00', 1);");
+
+            new InitDatabase().initializeDb(conn);
+
+            List<String> date = new ArrayList<>();
+            try (ResultSet rs = stmt.executeQuery("SELECT data FROM expense ORDER BY id;")) {
+                while (rs.next()) {
+                    date.add(rs.getString(1));
+                }
+            }
+            assertEquals(List.of("2024-03-05T10:15:00", "2024-03-05T10:15:30", "2024-03-06T08:00:00", "2024-03-06T08:00"), date);
+        }
+    }
+
+    /**
+     * Verifica che con dei doppioni già presenti l'indice delle impronte venga creato non univoco e che torni
+     * univoco al primo avvio dopo la loro eliminazione.
+     */
+    @Test
+    @DisplayName("Test indice delle impronte con doppioni")
+    void testIndiceImpronteConDoppioni() throws Exception {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + cartella.resolve("doppioni.db"));
+             Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE expense (id INTEGER PRIMARY KEY AUTOINCREMENT, nome_spesa TEXT NOT NULL, categoria TEXT NOT NULL, " +
+                    "descrizione TEXT NOT NULL, importo REAL NOT NULL, data TEXT NOT NULL, user_id INTEGER);");
+            stmt.executeUpdate("INSERT INTO expense (nome_spesa, categoria, descrizione, importo, data, user_id) VALUES " +
+                    "('Pane', 'CIBO', '', 2, '2024-03-05T10:15:00', 1), ('pane ', 'CIBO', '', 2, '2024-03-05T10:15:00', 1);");
+
+            new InitDatabase().initializeDb(conn);
+            assertEquals(0, indiceUnivoco(stmt));
+
+            stmt.executeUpdate("DELETE FROM expense WHERE id = 2;");
+            new InitDatabase().initializeDb(conn);
+            assertEquals(1, indiceUnivoco(stmt));
+        }
+    }
+
+    /**
+     * Verifica che i riepiloghi delle spese archiviate salvati senza valuta diventino riepiloghi nella valuta
+     * base del loro utente, con gli stessi totali.
+     */
+    @Test
+    @DisplayName("Test migrazione dei riepiloghi senza valuta")
+    void testMigrazioneRiepiloghi() throws Exception {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + cartella.resolve("riepiloghi.db"));
+             Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE user (id INTEGER PRIMARY KEY AUTOINCREMENT, nome TEXT NOT NULL, cognome TEXT NOT NULL, " +
+                    "email TEXT UNIQUE NOT NULL, password_hash TEXT NOT NULL, eta INTEGER, valuta TEXT NOT NULL DEFAULT 'EUR');");
+            stmt.executeUpdate("CREATE TABLE expense_summary (user_id INTEGER NOT NULL, anno INTEGER NOT NULL, mese INTEGER NOT NULL, " +
+                    "categoria TEXT NOT NULL, numero INTEGER NOT NULL, totale REAL NOT NULL, " +
+                    "PRIMARY KEY (user_id, anno, mese, categoria)) WITHOUT ROWID;");
+            stmt.executeUpdate("INSERT INTO user (nome, cognome, email, password_hash, eta, valuta) VALUES ('Mario', 'Rossi', 'm@r.it', 'x', 30, 'USD');");
+            stmt.executeUpdate("INSERT INTO expense_summary VALUES (1, 2020, 6, 'ALTRO', 3, 150.5);");
+
+            new InitDatabase().initializeDb(conn);
+
+            try (ResultSet rs = stmt.executeQuery("SELECT valuta, numero, totale FROM expense_summary WHERE user_id = 1;")) {
+                assertTrue(rs.next());
+                assertEquals("USD", rs.getString(1));
+                assertEquals(3, rs.getInt(2));
+                assertEquals(150.5, rs.getDouble(3), 1e-9);
+                assertFalse(rs.next());
+            }
+        }
+    }
+
+    private static int indiceUnivoco(Statement stmt) throws Exception {
+        try (ResultSet rs = stmt.executeQuery("SELECT \"unique\" FROM pragma_index_list('expense') WHERE name = 'idx_expense_impronta';")) {
+            assertTrue(rs.next());
+            return rs.getInt(1);
+        }
+    }
+}
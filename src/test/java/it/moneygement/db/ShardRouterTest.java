@@ -0,0 +1,87 @@
+package it.moneygement.db;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per l'anello di hashing consistente che instrada gli utenti sugli shard.
+ *
+ * @author Stefano Bellan
+ */
+public class ShardRouterTest {
+
+    private static final int UTENTI = 100_000;
+
+    /**
+     * Verifica che lo stesso utente finisca sempre sullo stesso shard, anche con istanze diverse.
+     */
+    @Test
+    @DisplayName("Test instradamento deterministico")
+    void testDeterministico() {
+        ShardRouter a = new ShardRouter(8);
+        ShardRouter b = new ShardRouter(8);
+
+        for (int id = 1; id <= 1000; id++) {
+            int shard = a.shardFor(id);
+            assertTrue(shard >= 0 && shard < 8, "Indice di shard fuori intervallo: " + shard);
+            assertEquals(shard, b.shardFor(id));
+        }
+    }
+
+    /**
+     * Verifica che con i nodi virtuali gli utenti siano distribuiti in modo equilibrato.
+     */
+    @Test
+    @DisplayName("Test distribuzione uniforme")
+    void testDistribuzione() {
+        ShardRouter router = new ShardRouter(8);
+        int[] conteggi = new int[8];
+        for (int id = 1; id <= UTENTI; id++) {
+            conteggi[router.shardFor(id)]++;
+        }
+
+        double atteso = UTENTI / 8.0;
+        for (int c : conteggi) {
+            assertTrue(Math.abs(c - atteso) < atteso * 0.2, "Shard troppo sbilanciato: " + c + " utenti invece di circa " + atteso);
+        }
+    }
+
+    /**
+     * Verifica che aggiungendo uno shard si sposti solo circa 1/(N+1) degli utenti,
+     * e solo verso il nuovo shard.
+     */
+    @Test
+    @DisplayName("Test spostamenti minimi all'aggiunta di uno shard")
+    void testAggiuntaShard() {
+        ShardRouter prima = new ShardRouter(4);
+        ShardRouter dopo = new ShardRouter(5);
+
+        int spostati = 0;
+        for (int id = 1; id <= UTENTI; id++) {
+            int vecchio = prima.shardFor(id);
+            int nuovo = dopo.shardFor(id);
+            if (vecchio != nuovo) {
+                spostati++;
+                assertEquals(4, nuovo, "Un utente può spostarsi solo verso il nuovo shard");
+            }
+        }
+
+        double frazione = (double) spostati / UTENTI;
+        assertTrue(frazione > 0.15 && frazione < 0.25, "Frazione di utenti spostati inattesa: " + frazione);
+    }
+
+    /**
+     * Verifica il caso degenere di un solo shard e il rifiuto di un numero non valido.
+     */
+    @Test
+    @DisplayName("Test shard singolo e parametri non validi")
+    void testCasiLimite() {
+        ShardRouter router = new ShardRouter(1);
+        assertEquals(0, router.shardFor(42));
+        assertEquals(1, router.getNumeroShard());
+
+        assertThrows(IllegalArgumentException.class, () -> new ShardRouter(0));
+    }
+}
@@ -0,0 +1,163 @@
+package it.moneygement.events;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per il bus delle modifiche: accorpamento per transazione, rollback e pubblicazione massiva.
+ * Usa un database SQLite in memoria con tabelle ridotte.
+ *
+ * @author Stefano Bellan
+ */
+public class ChangeBusTest {
+
+    private ChangeBus bus;
+    private Connection conn;
+    private final BlockingQueue<List<ChangeEvent>> ricevuti = new LinkedBlockingQueue<>();
+
+    @BeforeEach
+    public void setUp() throws SQLException {
+        bus = new ChangeBus();
+        bus.subscribe(ricevuti::add);
+        conn = DriverManager.getConnection("jdbc:sqlite::memory:");
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE user (id INTEGER PRIMARY KEY, nome TEXT);");
+            stmt.execute("CREATE TABLE expense (id INTEGER PRIMARY KEY, importo REAL, user_id INTEGER);");
+            stmt.execute("CREATE TABLE altro (id INTEGER PRIMARY KEY);");
+        }
+        bus.attach(conn);
+    }
+
+    @AfterEach
+    public void tearDown() throws SQLException {
+        conn.close();
+    }
+
+    /**
+     * Verifica che ogni istruzione in autocommit produca il proprio evento, con l'utente indicato dal DAO,
+     * e che le tabelle non gestite vengano ignorate.
+     */
+    @Test
+    @DisplayName("Test eventi in autocommit")
+    void testAutocommit() throws Exception {
+        bus.inizioModifica(7);
+        try {
+            esegui("INSERT INTO expense (id, importo, user_id) VALUES (1, 10, 7);");
+        } finally {
+            bus.fineModifica();
+        }
+        esegui("INSERT INTO altro (id) VALUES (1);");
+        esegui("UPDATE user SET nome = 'x' WHERE id = 99;");
+        esegui("INSERT INTO user (id, nome) VALUES (3, 'Mario');");
+
+        List<ChangeEvent> primo = prossimo();
+        assertEquals(1, primo.size());
+        ExpenseChanged spesa = assertInstanceOf(ExpenseChanged.class, primo.get(0));
+        assertEquals(1, spesa.getIdSpesa());
+        assertEquals(7, spesa.getIdUtente());
+        assertEquals(ChangeEvent.Operazione.INSERT, spesa.getOperazione());
+
+        List<ChangeEvent> secondo = prossimo();
+        UserChanged utente = assertInstanceOf(UserChanged.class, secondo.get(0));
+        assertEquals(3, utente.getIdUtente());
+        assertNull(ricevuti.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Verifica l'accorpamento delle modifiche della stessa riga in una transazione.
+     */
+    @Test
+    @DisplayName("Test accorpamento per transazione")
+    void testAccorpamento() throws Exception {
+        conn.setAutoCommit(false);
+        esegui("INSERT INTO expense (id, importo) VALUES (1, 10);");
+        esegui("UPDATE expense SET importo = 11 WHERE id = 1;");
+        esegui("UPDATE expense SET importo = 12 WHERE id = 1;");
+        esegui("INSERT INTO expense (id, importo) VALUES (2, 20);");
+        esegui("DELETE FROM expense WHERE id = 2;");
+        esegui("INSERT INTO user (id, nome) VALUES (5, 'Anna');");
+        conn.commit();
+
+        List<ChangeEvent> eventi = prossimo();
+        assertEquals(2, eventi.size());
+        assertEquals("expense", eventi.get(0).getTabella());
+        assertEquals(1, eventi.get(0).getRowid());
+        assertEquals(ChangeEvent.Operazione.INSERT, eventi.get(0).getOperazione());
+        assertEquals("user", eventi.get(1).getTabella());
+        assertEquals(3, bus.getAccorpati());
+    }
+
+    /**
+     * Verifica che le modifiche di una transazione annullata non vengano pubblicate.
+     */
+    @Test
+    @DisplayName("Test rollback")
+    void testRollback() throws Exception {
+        conn.setAutoCommit(false);
+        esegui("INSERT INTO expense (id, importo) VALUES (1, 10);");
+        conn.rollback();
+        esegui("INSERT INTO expense (id, importo) VALUES (2, 10);");
+        conn.commit();
+
+        List<ChangeEvent> eventi = prossimo();
+        assertEquals(1, eventi.size());
+        assertEquals(2, eventi.get(0).getRowid());
+    }
+
+    /**
+     * Verifica che una transazione molto grande produca un solo evento BULK per tabella.
+     */
+    @Test
+    @DisplayName("Test transazione massiva")
+    void testMassiva() throws Exception {
+        conn.setAutoCommit(false);
+        esegui("WITH RECURSIVE n(i) AS (SELECT 1 UNION ALL SELECT i + 1 FROM n WHERE i < " + (ChangeBus.MAX_EVENTI_PER_TRANSAZIONE + 10) + ") " +
+                "INSERT INTO expense (id, importo) SELECT i, 1 FROM n;");
+        esegui("INSERT INTO user (id, nome) VALUES (1, 'Luca');");
+        conn.commit();
+
+        List<ChangeEvent> eventi = prossimo();
+        assertEquals(2, eventi.size());
+        assertEquals(ChangeEvent.Operazione.BULK, eventi.get(1).getOperazione());
+        assertEquals("expense", eventi.get(1).getTabella());
+        assertEquals("user", eventi.get(0).getTabella());
+    }
+
+    /**
+     * Verifica le regole di accorpamento di due modifiche consecutive.
+     */
+    @Test
+    @DisplayName("Test regole di accorpamento")
+    void testRegole() {
+        assertEquals(ChangeEvent.Operazione.INSERT, ChangeBus.accorpa(ChangeEvent.Operazione.INSERT, ChangeEvent.Operazione.UPDATE));
+        assertNull(ChangeBus.accorpa(ChangeEvent.Operazione.INSERT, ChangeEvent.Operazione.DELETE));
+        assertEquals(ChangeEvent.Operazione.UPDATE, ChangeBus.accorpa(ChangeEvent.Operazione.UPDATE, ChangeEvent.Operazione.UPDATE));
+        assertEquals(ChangeEvent.Operazione.DELETE, ChangeBus.accorpa(ChangeEvent.Operazione.UPDATE, ChangeEvent.Operazione.DELETE));
+        assertEquals(ChangeEvent.Operazione.UPDATE, ChangeBus.accorpa(ChangeEvent.Operazione.DELETE, ChangeEvent.Operazione.INSERT));
+    }
+
+    private void esegui(String sql) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    private List<ChangeEvent> prossimo() throws InterruptedException {
+        List<ChangeEvent> eventi = ricevuti.poll(5, TimeUnit.SECONDS);
+        assertNotNull(eventi, "Nessun evento ricevuto");
+        return eventi;
+    }
+}
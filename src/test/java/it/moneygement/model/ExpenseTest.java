@@ -246,6 +246,38 @@ public class ExpenseTest {
         assertThrows(DatiNonValidiException.class, () -> spesa.setId(-5));
     }
 
+    // ---------------------------------------------------------------
+    // TEST SU VERSIONE (Setter e Validazione)
+    // ---------------------------------------------------------------
+
+    /**
+     * Verifica che una spesa appena creata (non ancora salvata) abbia versione 0.
+     */
+    @Test
+    @DisplayName("Test versione iniziale")
+    public void testVersioneIniziale() {
+        assertEquals(0, spesa.getVersion());
+    }
+
+    /**
+     * Verifica il corretto inserimento di una versione valida.
+     */
+    @Test
+    @DisplayName("Test setVersion con valore valido")
+    public void testSetVersionValida() {
+        spesa.setVersion(3);
+        assertEquals(3, spesa.getVersion());
+    }
+
+    /**
+     * Verifica che venga lanciata un'eccezione se la versione è negativa.
+     */
+    @Test
+    @DisplayName("Test setVersion con valore Negativo")
+    public void testSetVersionNegativa() {
+        assertThrows(DatiNonValidiException.class, () -> spesa.setVersion(-1));
+    }
+
     // ---------------------------------------------------------------
     // TEST METODI DI UTILITÀ
     // ---------------------------------------------------------------
@@ -0,0 +1,149 @@
+package it.moneygement.server;
+
+import it.moneygement.db.DbConnection;
+import it.moneygement.db.InitDatabase;
+import it.moneygement.utils.SecurityUtils;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per il server HTTP/JSON: richieste reali su una porta libera (database su file temporaneo).
+ *
+ * @author Stefano Bellan
+ */
+public class ApiServerTest {
+
+    @TempDir
+    static Path cartella;
+
+    private static final int ITERAZIONI_INIZIALI = SecurityUtils.getHashIterations();
+    private static final HttpClient CLIENT = HttpClient.newHttpClient();
+
+    private static ApiServer server;
+    private static String token;
+
+    @BeforeAll
+    static void setUp() throws Exception {
+        DbConnection.setTestDatabase("jdbc:sqlite:" + cartella.resolve("api.db"));
+        new InitDatabase().initializeDb();
+        SecurityUtils.setHashIterations(SecurityUtils.MIN_ITERAZIONI);
+        server = new ApiServer(0, 16);
+        server.start();
+
+        assertEquals(201, richiesta("POST", "/api/users",
+                "{\"nome\":\"Mario\",\"cognome\":\"Rossi\",\"email\":\"api@test.it\",\"password\":\"Password1!\",\"eta\":30}").statusCode());
+        HttpResponse<String> login = richiesta("POST", "/api/login", "{\"email\":\"api@test.it\",\"password\":\"Password1!\"}");
+        assertEquals(200, login.statusCode());
+        token = (String) Json.parseObject(login.body()).get("token");
+    }
+
+    @AfterAll
+    static void tearDown() {
+        server.stop(0);
+        SecurityUtils.setHashIterations(ITERAZIONI_INIZIALI);
+    }
+
+    /**
+     * Verifica l'elenco in streaming: una lista più lunga del buffer iniziale arriva completa e ben formata,
+     * e il filtro per categoria funziona anche con il parametro codificato nell'URL.
+     */
+    @Test
+    @DisplayName("Test elenco delle spese e filtro per categoria")
+    void testElencoSpese() throws Exception {
+        for (int i = 0; i < 120; i++) {
+            String categoria = i % 4 == 0 ? "SVAGO" : "ALTRO";
+            assertEquals(201, richiesta("POST", "/api/expenses", "{\"nomeSpesa\":\"Spesa " + i + "\",\"categoria\":\"" + categoria
+                    + "\",\"descrizione\":\"Descrizione\",\"importo\":" + (i + 1) + ",\"data\":\"2025-03-05T10:" + String.format("%02d", i % 60)
+                    + ":" + String.format("%02d", i / 60) + "\"}").statusCode());
+        }
+
+        HttpResponse<String> tutte = richiesta("GET", "/api/expenses", null);
+        assertEquals(200, tutte.statusCode());
+        assertTrue(tutte.body().length() > 16 * 1024);
+        assertEquals(120, elenco(tutte.body()).size());
+
+        // "SVAGO" con la S codificata: il parametro va decodificato come gli altri
+        HttpResponse<String> svago = richiesta("GET", "/api/expenses?categoria=%53VAGO", null);
+        assertEquals(200, svago.statusCode());
+        assertEquals(30, elenco(svago.body()).size());
+        assertEquals(400, richiesta("GET", "/api/expenses?categoria=CASA", null).statusCode());
+    }
+
+    /**
+     * Verifica che i corpi non validi, anche quelli che facevano fallire il parser con eccezioni impreviste
+     * (annidamento profondo, escape \\u malformati), e i numeri non interi dove serve un intero diano 400.
+     */
+    @Test
+    @DisplayName("Test richieste non valide")
+    void testRichiesteNonValide() throws Exception {
+        assertEquals(400, richiesta("POST", "/api/expenses", "{\"a\":" + "[".repeat(50_000) + "}").statusCode());
+        assertEquals(400, richiesta("POST", "/api/expenses", "{\"nomeSpesa\":\"\\u00zz\"}").statusCode());
+        assertEquals(400, richiesta("POST", "/api/users",
+                "{\"nome\":\"Anna\",\"cognome\":\"Bianchi\",\"email\":\"eta@test.it\",\"password\":\"Password1!\",\"eta\":30.7}").statusCode());
+
+        HttpResponse<String> creata = richiesta("POST", "/api/expenses",
+                "{\"nomeSpesa\":\"Cinema\",\"categoria\":\"SVAGO\",\"descrizione\":\"Film\",\"importo\":9,\"data\":\"2025-04-01T20:00:00\"}");
+        assertEquals(201, creata.statusCode());
+        Object id = Json.parseObject(creata.body()).get("id");
+        HttpResponse<String> versione = richiesta("PUT", "/api/expenses/" + ((Double) id).intValue(),
+                "{\"version\":1.5,\"nomeSpesa\":\"Cinema\",\"categoria\":\"SVAGO\",\"descrizione\":\"Film\",\"importo\":9,\"data\":\"2025-04-01T20:00:00\"}");
+        assertEquals(400, versione.statusCode());
+        assertTrue(versione.body().contains("intero"), versione.body());
+    }
+
+    /**
+     * Verifica autenticazione e instradamento: 401 senza token, 404 per percorsi sconosciuti, 405 per metodi
+     * non ammessi, e che le richieste compaiano nelle metriche della loro rotta.
+     */
+    @Test
+    @DisplayName("Test autenticazione, instradamento e metriche")
+    @SuppressWarnings("unchecked")
+    void testInstradamentoEMetriche() throws Exception {
+        HttpResponse<String> senzaToken = CLIENT.send(HttpRequest.newBuilder(uri("/api/me")).GET().build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(401, senzaToken.statusCode());
+        assertEquals(404, richiesta("GET", "/api/inesistente", null).statusCode());
+        assertEquals(405, richiesta("PATCH", "/api/me", "{}").statusCode());
+        assertEquals(200, richiesta("GET", "/api/me", null).statusCode());
+
+        Map<String, Object> metriche = Json.parseObject(richiesta("GET", "/api/metrics", null).body());
+        Map<String, Object> rotte = (Map<String, Object>) metriche.get("rotte");
+        assertTrue(((Double) ((Map<String, Object>) rotte.get("GET /api/me")).get("richieste")) >= 2);
+        assertEquals(16.0, metriche.get("maxInCorso"));
+    }
+
+    private static HttpResponse<String> richiesta(String metodo, String percorso, String corpo) throws Exception {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri(percorso))
+                .method(metodo, corpo == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofString(corpo));
+        if (token != null) {
+            builder.header("Authorization", "Bearer " + token);
+        }
+        return CLIENT.send(builder.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static URI uri(String percorso) {
+        return URI.create("http://localhost:" + server.getPort() + percorso);
+    }
+
+    /**
+     * @return Le spese create da {@link #testElencoSpese()} presenti in un elenco (gli altri test aggiungono le loro).
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Object> elenco(String array) {
+        // Json legge solo oggetti: l'array viene avvolto in un oggetto
+        List<Object> spese = (List<Object>) Json.parseObject("{\"a\":" + array + "}").get("a");
+        return spese.stream().filter(s -> ((Map<String, Object>) s).get("nomeSpesa").toString().startsWith("Spesa ")).toList();
+    }
+}
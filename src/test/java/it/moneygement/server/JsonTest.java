@@ -0,0 +1,67 @@
+package it.moneygement.server;
+
+import it.moneygement.exception.DatiNonValidiException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per il lettore/scrittore JSON dell'API.
+ *
+ * @author Stefano Bellan
+ */
+public class JsonTest {
+
+    /**
+     * Verifica che un testo scritto con {@link Json#quote(String)} venga riletto identico, compresi escape,
+     * caratteri di controllo e caratteri fuori dal piano di base, e che gli escape \\u vengano decodificati.
+     */
+    @Test
+    @DisplayName("Test scrittura e lettura di stringhe")
+    void testStringhe() {
+        String testo = "virgolette \" barra \\ a capo \n tab \t controllo \u0001 emoji \uD83D\uDE00 è";
+        Map<String, Object> letto = Json.parseObject("{\"t\":" + Json.quote(testo) + ",\"u\":\"caff\\u00e8 \\/ \\uD83D\\uDE00\"}");
+        assertEquals(testo, letto.get("t"));
+        assertEquals("caffè / \uD83D\uDE00", letto.get("u"));
+        assertEquals("null", Json.quote(null));
+    }
+
+    /**
+     * Verifica che oggetti, array, numeri e letterali vengano letti con i tipi previsti.
+     */
+    @Test
+    @DisplayName("Test lettura dei valori")
+    void testValori() {
+        Map<String, Object> letto = Json.parseObject(" {\"n\": -1.5e2, \"b\": true, \"z\": null, \"a\": [1, \"x\", {}], \"o\": {\"k\": false}} ");
+        assertEquals(-150.0, letto.get("n"));
+        assertEquals(Boolean.TRUE, letto.get("b"));
+        assertTrue(letto.containsKey("z"));
+        assertNull(letto.get("z"));
+        assertEquals(List.of(1.0, "x", Map.of()), letto.get("a"));
+        assertEquals(Map.of("k", false), letto.get("o"));
+    }
+
+    /**
+     * Verifica che ogni documento non valido, qualunque sia il motivo, diventi una {@link DatiNonValidiException}
+     * (e quindi una risposta 400), compresi escape malformati, numeri fuori scala e annidamenti profondi.
+     */
+    @Test
+    @DisplayName("Test documenti non validi")
+    void testDocumentiNonValidi() {
+        for (String testo : List.of("", "[]", "\"x\"", "{", "{\"a\"}", "{\"a\":1,}", "{\"a\":1} x", "{\"a\":tru}",
+                "{\"a\":\"\\u00zz\"}", "{\"a\":\"\\u12\"}", "{\"a\":\"\\x\"}", "{\"a\":\"aperta}", "{\"a\":1e999}", "{\"a\":--1}")) {
+            assertThrows(DatiNonValidiException.class, () -> Json.parseObject(testo), testo);
+        }
+        assertThrows(DatiNonValidiException.class, () -> Json.parseObject(null));
+
+        // Annidamento: l'oggetto esterno conta come primo livello
+        assertNotNull(Json.parseObject("{\"a\":" + "[".repeat(Json.MAX_PROFONDITA - 1) + "]".repeat(Json.MAX_PROFONDITA - 1) + "}"));
+        assertThrows(DatiNonValidiException.class,
+                () -> Json.parseObject("{\"a\":" + "[".repeat(Json.MAX_PROFONDITA) + "]".repeat(Json.MAX_PROFONDITA) + "}"));
+        assertThrows(DatiNonValidiException.class, () -> Json.parseObject("{\"a\":" + "[".repeat(100_000)));
+    }
+}
@@ -0,0 +1,71 @@
+package it.moneygement.server;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per le metriche delle richieste HTTP.
+ *
+ * @author Stefano Bellan
+ */
+public class RequestMetricsTest {
+
+    /**
+     * Verifica conteggi, errori (solo stati 5xx), tempo medio e massimo di una rotta e richieste rifiutate.
+     */
+    @Test
+    @DisplayName("Test metriche di una rotta")
+    @SuppressWarnings("unchecked")
+    void testMetriche() {
+        RequestMetrics metrics = new RequestMetrics();
+        metrics.record("GET /api/me", 2_000_000, 200);
+        metrics.record("GET /api/me", 4_000_000, 404);
+        metrics.record("GET /api/me", 6_000_000, 500);
+        metrics.recordRejected();
+
+        Map<String, Object> json = Json.parseObject(metrics.toJson(3, 10));
+        assertEquals(3.0, json.get("inCorso"));
+        assertEquals(10.0, json.get("maxInCorso"));
+        assertEquals(1.0, json.get("rifiutate"));
+        Map<String, Object> rotta = (Map<String, Object>) ((Map<String, Object>) json.get("rotte")).get("GET /api/me");
+        assertEquals(3.0, rotta.get("richieste"));
+        assertEquals(1.0, rotta.get("errori"));
+        assertEquals(4.0, rotta.get("mediaMs"));
+        assertEquals(6.0, rotta.get("massimoMs"));
+    }
+
+    /**
+     * Verifica che le richieste registrate da molti thread contemporaneamente vengano contate tutte.
+     */
+    @Test
+    @DisplayName("Test registrazione concorrente")
+    @SuppressWarnings("unchecked")
+    void testRegistrazioneConcorrente() throws Exception {
+        RequestMetrics metrics = new RequestMetrics();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int indice = t;
+            threads.add(Thread.ofVirtual().start(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    metrics.record(indice % 2 == 0 ? "A" : "B", 1_000_000, i % 10 == 0 ? 503 : 200);
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        Map<String, Object> rotte = (Map<String, Object>) Json.parseObject(metrics.toJson(0, 1)).get("rotte");
+        for (String nome : List.of("A", "B")) {
+            Map<String, Object> rotta = (Map<String, Object>) rotte.get(nome);
+            assertEquals(4000.0, rotta.get("richieste"));
+            assertEquals(400.0, rotta.get("errori"));
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package it.moneygement.service;
+
+import it.moneygement.dao.BudgetDAO;
+import it.moneygement.dao.ExchangeRateDAO;
+import it.moneygement.dao.ExpenseDAO;
+import it.moneygement.dao.UserDAO;
+import it.moneygement.db.DbConnection;
+import it.moneygement.db.InitDatabase;
+import it.moneygement.model.Budget;
+import it.moneygement.model.BudgetPeriod;
+import it.moneygement.model.BudgetStatus;
+import it.moneygement.model.Categories;
+import it.moneygement.model.Expense;
+import it.moneygement.model.SeriesPoint;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per il motore dei budget.
+ * Le spese vengono scritte con il DAO seguendo lo stesso protocollo del service
+ * (prepara, scrittura, notifica), su un database in un file temporaneo e con un orologio controllato dal test.
+ *
+ * @author Stefano Bellan
+ */
+public class BudgetEngineTest {
+
+    @TempDir
+    static Path cartella;
+
+    private static final ExpenseDAO expenseDAO = new ExpenseDAO();
+    private static int utenti;
+
+    private final Orologio orologio = new Orologio();
+    private final List<BudgetStatus> avvisi = new ArrayList<>();
+    private CurrencyConverter convertitore;
+    private BudgetEngine motore;
+    private int userId;
+
+    /**
+     * Orologio fermo su un istante scelto dal test.
+     */
+    private static final class Orologio extends Clock {
+        private Instant adesso = LocalDateTime.of(2025, 3, 15, 12, 0).toInstant(ZoneOffset.UTC);
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return adesso;
+        }
+    }
+
+    @BeforeAll
+    static void setUpDatabase() {
+        DbConnection.setTestDatabase("jdbc:sqlite:" + cartella.resolve("budget.db"));
+        new InitDatabase().initializeDb();
+    }
+
+    @BeforeEach
+    void setUp() {
+        // Un utente nuovo per ogni test: i budget e le spese non si mescolano
+        MoneygementService.getInstance().registerUser("Mario", "Rossi", "budget" + (++utenti) + "@test.it", "Password1!", 30);
+        userId = MoneygementService.getInstance().login("budget" + utenti + "@test.it", "Password1!").getUserId();
+        convertitore = new CurrencyConverter(new ExchangeRateDAO(), new UserDAO(), orologio);
+        motore = new BudgetEngine(new BudgetDAO(), expenseDAO, convertitore, orologio);
+        motore.addListener(avvisi::add);
+    }
+
+    /**
+     * Verifica totali e avvisi su inserimenti, modifiche e cancellazioni, partendo da spese già presenti.
+     */
+    @Test
+    @DisplayName("Test totali e soglie")
+    void testTotaliESoglie() {
+        aggiungi(Categories.AUTO, 50, LocalDateTime.of(2025, 3, 2, 9, 0));
+        aggiungi(Categories.AUTO, 500, LocalDateTime.of(2025, 2, 27, 9, 0));
+        aggiungi(Categories.SVAGO, 500, LocalDateTime.of(2025, 3, 3, 9, 0));
+
+        BudgetStatus iniziale = motore.salva(userId, new Budget(Categories.AUTO, BudgetPeriod.MENSILE, 100));
+        assertEquals(50, iniziale.getSpeso(), 1e-9);
+        assertEquals(0, iniziale.getSoglia());
+
+        aggiungi(Categories.AUTO, 25, LocalDateTime.of(2025, 3, 10, 9, 0));
+        assertTrue(avvisi.isEmpty());
+        Expense dieci = aggiungi(Categories.AUTO, 10, LocalDateTime.of(2025, 3, 11, 9, 0));
+        assertEquals(1, avvisi.size());
+        assertEquals(BudgetEngine.SOGLIA_AVVISO, avvisi.get(0).getSoglia());
+        assertEquals(85, avvisi.get(0).getSpeso(), 1e-9);
+
+        // 10 -> 30: si supera il limite
+        Expense trenta = new Expense("Pieno", Categories.AUTO, "Benzina", 30, dieci.getData());
+        trenta.setId(dieci.getId());
+        trenta.setIdUtente(userId);
+        trenta.setVersion(dieci.getVersion());
+        assertTrue(motore.prepara(userId));
+        expenseDAO.updateExpense(trenta);
+        motore.spesaModificata(userId, dieci, trenta);
+        assertEquals(2, avvisi.size());
+        assertEquals(BudgetEngine.SOGLIA_LIMITE, avvisi.get(1).getSoglia());
+
+        // Si torna sotto le soglie e poi le si risupera: l'avviso riparte
+        assertTrue(motore.prepara(userId));
+        expenseDAO.deleteExpense(trenta.getId(), userId);
+        motore.spesaEliminata(userId, trenta);
+        assertEquals(75, motore.situazione(userId).get(0).getSpeso(), 1e-9);
+        aggiungi(Categories.AUTO, 10, LocalDateTime.of(2025, 3, 12, 9, 0));
+        assertEquals(3, avvisi.size());
+        assertEquals(BudgetEngine.SOGLIA_AVVISO, avvisi.get(2).getSoglia());
+
+        // Le spese di altre categorie e di altri periodi non contano
+        aggiungi(Categories.SVAGO, 1000, LocalDateTime.of(2025, 3, 12, 9, 0));
+        aggiungi(Categories.AUTO, 1000, LocalDateTime.of(2025, 4, 1, 9, 0));
+        assertEquals(3, avvisi.size());
+
+        // Un motore nuovo (es. dopo un riavvio) legge dal database gli stessi totali
+        BudgetEngine riletto = new BudgetEngine(new BudgetDAO(), expenseDAO, new CurrencyConverter(new ExchangeRateDAO(), new UserDAO(), orologio), orologio);
+        assertEquals(motore.situazione(userId).get(0).getSpeso(), riletto.situazione(userId).get(0).getSpeso(), 1e-9);
+    }
+
+    /**
+     * Verifica che all'inizio di un nuovo periodo i totali ripartano dalle spese del periodo.
+     */
+    @Test
+    @DisplayName("Test cambio di periodo")
+    void testCambioPeriodo() {
+        motore.salva(userId, new Budget(Categories.RISTORANTI, BudgetPeriod.SETTIMANALE, 50));
+        motore.salva(userId, new Budget(Categories.RISTORANTI, BudgetPeriod.ANNUALE, 1000));
+        // Sabato 15 marzo 2025: la settimana è iniziata lunedì 10
+        aggiungi(Categories.RISTORANTI, 45, LocalDateTime.of(2025, 3, 14, 20, 0));
+        assertEquals(1, avvisi.size());
+        // Spesa già registrata per lunedì prossimo (non conta nella settimana corrente)
+        aggiungi(Categories.RISTORANTI, 20, LocalDateTime.of(2025, 3, 17, 20, 0));
+        assertEquals(1, avvisi.size());
+
+        orologio.adesso = LocalDateTime.of(2025, 3, 18, 12, 0).toInstant(ZoneOffset.UTC);
+        for (BudgetStatus stato : motore.situazione(userId)) {
+            if (stato.getBudget().getPeriodo() == BudgetPeriod.SETTIMANALE) {
+                assertEquals(20, stato.getSpeso(), 1e-9);
+                assertEquals(LocalDate.of(2025, 3, 17), stato.getInizioPeriodo());
+            } else {
+                assertEquals(65, stato.getSpeso(), 1e-9);
+            }
+        }
+    }
+
+    /**
+     * Verifica che spese in valute diverse vengano sommate nella valuta base, con gli stessi totali
+     * in memoria e nelle query, anche dopo un cambio della valuta base.
+     */
+    @Test
+    @DisplayName("Test valute diverse")
+    void testValuteDiverse() throws SQLException {
+        ExchangeRateDAO.saveRates(DbConnection.getInstance().getConnection(), Map.of("USD", 1.25, "GBP", 0.8), LocalDate.of(2025, 3, 1));
+        // 50 $ = 40 €, 20 £ = 25 €
+        aggiungi(Categories.VIAGGI, 50, "USD", LocalDateTime.of(2025, 3, 2, 9, 0));
+        assertEquals(40, motore.salva(userId, new Budget(Categories.VIAGGI, BudgetPeriod.MENSILE, 100)).getSpeso(), 1e-9);
+        aggiungi(Categories.VIAGGI, 20, "GBP", LocalDateTime.of(2025, 3, 3, 9, 0));
+        aggiungi(Categories.VIAGGI, 10, "EUR", LocalDateTime.of(2025, 3, 3, 18, 0));
+        assertEquals(75, motore.situazione(userId).get(0).getSpeso(), 1e-9);
+        assertTrue(avvisi.isEmpty());
+
+        LocalDate inizio = LocalDate.of(2025, 3, 1);
+        assertEquals(75, expenseDAO.getTotalsByCategory(userId, inizio, inizio.plusMonths(1)).get(Categories.VIAGGI), 1e-9);
+        List<SeriesPoint> giorni = expenseDAO.getDailyTotals(userId, inizio, LocalDate.of(2025, 3, 31));
+        assertEquals(List.of(40.0, 35.0), giorni.stream().map(SeriesPoint::getTotale).filter(t -> t > 0).toList());
+
+        // In dollari il limite (non convertito) di 100 supera la soglia di avviso
+        assertTrue(new UserDAO().updateBaseCurrency(userId, "USD"));
+        convertitore.dimentica(userId);
+        motore.ricarica(userId);
+        assertEquals(93.75, motore.situazione(userId).get(0).getSpeso(), 1e-9);
+        assertEquals(1, avvisi.size());
+        assertEquals(1.25, convertitore.inValutaBase(userId, new Expense("Spesa", Categories.VIAGGI, "Test", 1, inizio.atStartOfDay())), 1e-9);
+    }
+
+    /**
+     * Verifica che dopo un cambio dei tassi togliere una spesa in valuta estera la tolga per intero, senza
+     * lasciare residui nei totali, e che i totali in memoria restino uguali a quelli riletti dal database.
+     */
+    @Test
+    @DisplayName("Test cambio dei tassi e cancellazione")
+    void testCambioTassi() throws SQLException {
+        ExchangeRateDAO.saveRates(DbConnection.getInstance().getConnection(), Map.of("USD", 1.25), LocalDate.of(2025, 3, 1));
+        convertitore.ricarica();
+        motore.salva(userId, new Budget(Categories.HOBBY, BudgetPeriod.MENSILE, 100));
+        aggiungi(Categories.HOBBY, 10, LocalDateTime.of(2025, 3, 2, 9, 0));
+        Expense dollari = aggiungi(Categories.HOBBY, 50, "USD", LocalDateTime.of(2025, 3, 3, 9, 0));
+        assertEquals(50, motore.situazione(userId).get(0).getSpeso(), 1e-9);
+
+        // 50 $ passano da 40 € a 25 €: i totali seguono il tasso attuale
+        ExchangeRateDAO.saveRates(DbConnection.getInstance().getConnection(), Map.of("USD", 2.0), LocalDate.of(2025, 3, 10));
+        convertitore.ricarica();
+        assertEquals(35, motore.situazione(userId).get(0).getSpeso(), 1e-9);
+
+        synchronized (motore.lock(userId)) {
+            assertTrue(motore.prepara(userId));
+            Expense eliminata = expenseDAO.deleteExpense(dollari.getId(), userId);
+            assertNotNull(eliminata);
+            assertEquals("USD", eliminata.getValuta());
+            motore.spesaEliminata(userId, eliminata);
+        }
+        assertNull(expenseDAO.deleteExpense(dollari.getId(), userId));
+        assertEquals(10, motore.situazione(userId).get(0).getSpeso(), 1e-9);
+
+        BudgetEngine riletto = new BudgetEngine(new BudgetDAO(), expenseDAO, convertitore, orologio);
+        assertEquals(10, riletto.situazione(userId).get(0).getSpeso(), 1e-9);
+    }
+
+    /**
+     * Verifica che i budget in memoria non superino il numero massimo di utenti e che una spesa comunicata
+     * dopo che lo stato dell'utente è stato scartato venga contata una volta sola, con la rilettura dal database.
+     */
+    @Test
+    @DisplayName("Test utenti scartati dalla memoria")
+    void testUtentiScartati() {
+        motore.salva(userId, new Budget(Categories.BOLLETTE, BudgetPeriod.MENSILE, 100));
+        aggiungi(Categories.BOLLETTE, 10, LocalDateTime.of(2025, 3, 2, 9, 0));
+
+        Expense spesa = new Expense("Spesa", Categories.BOLLETTE, "Test", 20, LocalDateTime.of(2025, 3, 4, 9, 0));
+        spesa.setIdUtente(userId);
+        synchronized (motore.lock(userId)) {
+            assertTrue(motore.prepara(userId));
+            expenseDAO.addExpense(spesa);
+            // Altri utenti (senza budget) fanno uscire questo dalla memoria prima della notifica
+            for (int id = 1; id <= BudgetEngine.MAX_UTENTI; id++) {
+                motore.situazione(-id);
+            }
+            motore.spesaAggiunta(userId, spesa);
+        }
+        assertEquals(BudgetEngine.MAX_UTENTI, motore.getUtentiInMemoria());
+        assertEquals(30, motore.situazione(userId).get(0).getSpeso(), 1e-9);
+        assertEquals(BudgetEngine.MAX_UTENTI, motore.getUtentiInMemoria());
+    }
+
+    /**
+     * Salva una spesa seguendo il protocollo del service.
+     */
+    private Expense aggiungi(Categories categoria, double importo, LocalDateTime data) {
+        return aggiungi(categoria, importo, Expense.VALUTA_PREDEFINITA, data);
+    }
+
+    private Expense aggiungi(Categories categoria, double importo, String valuta, LocalDateTime data) {
+        Expense spesa = new Expense("Spesa", categoria, "Test", importo, data);
+        spesa.setValuta(valuta);
+        spesa.setIdUtente(userId);
+        synchronized (motore.lock(userId)) {
+            boolean budget = motore.prepara(userId);
+            expenseDAO.addExpense(spesa);
+            if (budget) {
+                motore.spesaAggiunta(userId, spesa);
+            }
+        }
+        return spesa;
+    }
+}
@@ -0,0 +1,103 @@
+package it.moneygement.service;
+
+import it.moneygement.db.DbConnection;
+import it.moneygement.db.InitDatabase;
+import it.moneygement.exception.SpesaDuplicataException;
+import it.moneygement.model.Categories;
+import it.moneygement.model.Expense;
+import it.moneygement.utils.SessionContext;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per le modifiche e le cancellazioni massive delle spese (database su file temporaneo).
+ *
+ * @author Stefano Bellan
+ */
+public class BulkOperationsTest {
+
+    private static final String PASSWORD = "Password1!";
+
+    @TempDir
+    static Path cartella;
+
+    private static MoneygementService service;
+
+    @BeforeAll
+    static void setUp() {
+        DbConnection.setTestDatabase("jdbc:sqlite:" + cartella.resolve("massive.db"));
+        new InitDatabase().initializeDb();
+        service = MoneygementService.getInstance();
+    }
+
+    /**
+     * Verifica i conteggi del cambio di categoria per nome e della cancellazione di un intervallo,
+     * e che le spese modificate ricevano una nuova versione.
+     */
+    @Test
+    @DisplayName("Test categoria e cancellazione")
+    void testCategoriaECancellazione() {
+        service.registerUser("Mario", "Rossi", "massive@bulk.it", PASSWORD, 30);
+        SessionContext sessione = service.login("massive@bulk.it", PASSWORD);
+        LocalDateTime inizio = LocalDateTime.of(2025, 3, 1, 8, 0);
+        for (int i = 0; i < 60; i++) {
+            service.addExpense(sessione, i % 3 == 0 ? "Bar Centrale" : "Edicola", Categories.ALTRO, "Spesa", 2 + i, inizio.plusDays(i));
+        }
+
+        assertEquals(20, service.recategorizeExpenses(sessione, " bar centrale", Categories.RISTORANTI));
+        assertEquals(0, service.recategorizeExpenses(sessione, "Bar Centrale", Categories.RISTORANTI));
+        List<Expense> marzo = service.getExpensesInRange(sessione, LocalDate.of(2025, 3, 1), LocalDate.of(2025, 3, 31));
+        assertEquals(31, marzo.size());
+        for (Expense e : marzo) {
+            boolean bar = e.getNomeSpesa().equals("Bar Centrale");
+            assertEquals(bar ? Categories.RISTORANTI : Categories.ALTRO, e.getCategoria());
+            assertEquals(bar ? 2 : 1, e.getVersion());
+        }
+
+        assertEquals(11, service.deleteExpensesInRange(sessione, LocalDate.of(2025, 3, 1), LocalDate.of(2025, 3, 31), Categories.RISTORANTI));
+        assertEquals(20, service.deleteExpensesInRange(sessione, LocalDate.of(2025, 3, 1), LocalDate.of(2025, 3, 31), null));
+        assertTrue(service.getExpensesInRange(sessione, LocalDate.of(2025, 3, 1), LocalDate.of(2025, 3, 31)).isEmpty());
+        assertEquals(29, service.getExpensesInRange(sessione, LocalDate.of(2025, 4, 1), LocalDate.of(2025, 4, 30)).size());
+    }
+
+    /**
+     * Verifica che spostare di un giorno spese uguali ripetute ogni giorno non le faccia scontrare tra loro,
+     * e che uno spostamento su una spesa uguale fuori dall'intervallo venga rifiutato senza spostare nulla.
+     */
+    @Test
+    @DisplayName("Test spostamento delle date")
+    void testSpostamento() {
+        service.registerUser("Anna", "Bianchi", "spostamento@bulk.it", PASSWORD, 30);
+        SessionContext sessione = service.login("spostamento@bulk.it", PASSWORD);
+        LocalDateTime inizio = LocalDateTime.of(2025, 5, 1, 7, 45);
+        for (int i = 0; i < 10; i++) {
+            service.addExpense(sessione, "Caffè", Categories.RISTORANTI, "Colazione", 1.2, inizio.plusDays(i));
+        }
+
+        assertEquals(10, service.shiftExpenseDates(sessione, LocalDate.of(2025, 5, 1), LocalDate.of(2025, 5, 10), Duration.ofDays(1)));
+        List<Expense> spese = service.getExpensesInRange(sessione, LocalDate.of(2025, 5, 1), LocalDate.of(2025, 5, 31));
+        assertEquals(10, spese.size());
+        assertEquals(LocalDateTime.of(2025, 5, 2, 7, 45), spese.get(0).getData());
+        assertEquals(LocalDateTime.of(2025, 5, 11, 7, 45), spese.get(9).getData());
+
+        // Il 2 maggio si sposterebbe sul 10, già occupato da un caffè fuori dall'intervallo
+        assertThrows(SpesaDuplicataException.class,
+                () -> service.shiftExpenseDates(sessione, LocalDate.of(2025, 5, 2), LocalDate.of(2025, 5, 2), Duration.ofDays(8)));
+        assertEquals(LocalDateTime.of(2025, 5, 2, 7, 45),
+                service.getExpensesInRange(sessione, LocalDate.of(2025, 5, 2), LocalDate.of(2025, 5, 2)).get(0).getData());
+
+        assertEquals(10, service.shiftExpenseDates(sessione, LocalDate.of(2025, 5, 1), LocalDate.of(2025, 5, 31), Duration.ofMinutes(-90)));
+        assertEquals(LocalDateTime.of(2025, 5, 2, 6, 15),
+                service.getExpensesInRange(sessione, LocalDate.of(2025, 5, 1), LocalDate.of(2025, 5, 31)).get(0).getData());
+    }
+}
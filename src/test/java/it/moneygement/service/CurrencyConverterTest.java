@@ -0,0 +1,155 @@
+package it.moneygement.service;
+
+import it.moneygement.dao.ExchangeRateDAO;
+import it.moneygement.dao.ExpenseDAO;
+import it.moneygement.dao.UserDAO;
+import it.moneygement.db.DbConnection;
+import it.moneygement.db.InitDatabase;
+import it.moneygement.model.Categories;
+import it.moneygement.model.Expense;
+import it.moneygement.model.ExpenseUpdateResult;
+import it.moneygement.model.User;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per la conversione degli importi tra valute, in memoria e dentro le query.
+ *
+ * @author Stefano Bellan
+ */
+public class CurrencyConverterTest {
+
+    /**
+     * Orologio controllabile dai test.
+     */
+    private static class OrologioManuale extends Clock {
+        private long millis;
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+
+        void avanza(Duration d) {
+            millis += d.toMillis();
+        }
+    }
+
+    @TempDir
+    Path cartella;
+
+    /**
+     * Verifica le conversioni tra valute, che un importo in una valuta senza tasso non venga contato e che
+     * i tassi vengano riletti solo alla scadenza o su richiesta.
+     */
+    @Test
+    @DisplayName("Test conversioni e rilettura dei tassi")
+    void testConversioni() {
+        Map<String, Double> tabella = new HashMap<>(Map.of("EUR", 1.0, "USD", 1.25, "GBP", 0.8));
+        int[] letture = {0};
+        ExchangeRateDAO tassi = new ExchangeRateDAO() {
+            @Override
+            public Map<String, Double> getRates() {
+                letture[0]++;
+                return new HashMap<>(tabella);
+            }
+        };
+        UserDAO utenti = new UserDAO() {
+            @Override
+            public String getBaseCurrency(int id) {
+                return "GBP";
+            }
+        };
+        OrologioManuale orologio = new OrologioManuale();
+        CurrencyConverter convertitore = new CurrencyConverter(tassi, utenti, orologio);
+
+        assertEquals(40, convertitore.converti(50, "USD", "EUR"), 1e-9);
+        assertEquals(32, convertitore.converti(50, "USD", "GBP"), 1e-9);
+        assertEquals(50, convertitore.converti(50, "XYZ", "XYZ"), 1e-9);
+        assertEquals(0, convertitore.converti(50, "XYZ", "EUR"), 1e-9);
+        assertFalse(convertitore.isSupportata("XYZ"));
+        Expense spesa = new Expense("Cena", Categories.RISTORANTI, "Cena", 25, LocalDateTime.of(2025, 3, 1, 20, 0));
+        assertEquals(20, convertitore.inValutaBase(7, spesa), 1e-9);
+        assertEquals(1, letture[0]);
+
+        // Tasso nuovo: visibile solo dopo la validità dei tassi letti o dopo ricarica()
+        tabella.put("XYZ", 2.0);
+        orologio.avanza(CurrencyConverter.VALIDITA_TASSI.minusSeconds(1));
+        assertFalse(convertitore.isSupportata("XYZ"));
+        orologio.avanza(Duration.ofSeconds(1));
+        assertTrue(convertitore.isSupportata("XYZ"));
+        assertEquals(2, letture[0]);
+        convertitore.ricarica();
+        assertEquals(25, convertitore.converti(50, "XYZ", "EUR"), 1e-9);
+        assertEquals(3, letture[0]);
+    }
+
+    /**
+     * Verifica che le query convertano le spese nella valuta base dell'utente, lasciando fuori quelle in una
+     * valuta senza tasso, e che un aggiornamento senza valuta mantenga quella salvata.
+     */
+    @Test
+    @DisplayName("Test conversione nelle query")
+    void testConversioneInSql() throws Exception {
+        DbConnection.setTestDatabase("jdbc:sqlite:" + cartella.resolve("valute.db"));
+        new InitDatabase().initializeDb();
+        Connection conn = DbConnection.getInstance().getConnection();
+        ExchangeRateDAO.saveRates(conn, Map.of("USD", 2.0), LocalDate.of(2025, 1, 1));
+        UserDAO userDAO = new UserDAO();
+        userDAO.registerUser(new User("Mario", "Rossi", "x", "valute@sql.it", 30));
+        int userId = userDAO.getUserByEmail("valute@sql.it").getId();
+
+        ExpenseDAO expenseDAO = new ExpenseDAO();
+        Expense dollari = new Expense("Libro", Categories.ALTRO, "Libro", 10, LocalDateTime.of(2025, 2, 1, 10, 0));
+        dollari.setValuta("USD");
+        dollari.setIdUtente(userId);
+        expenseDAO.addExpense(dollari);
+        Expense euro = new Expense("Pane", Categories.ALTRO, "Pane", 3, LocalDateTime.of(2025, 2, 2, 10, 0));
+        euro.setIdUtente(userId);
+        expenseDAO.addExpense(euro);
+        try (Statement stmt = conn.createStatement()) {
+            // Valuta senza tasso, scritta senza passare dal service
+            stmt.executeUpdate("INSERT INTO expense (nome_spesa, categoria, descrizione, importo, data, user_id, valuta) " +
+                    "VALUES ('Souvenir', 'ALTRO', '', 1000, '2025-02-03T10:00:00', " + userId + ", 'XYZ');");
+        }
+
+        LocalDate febbraio = LocalDate.of(2025, 2, 1);
+        assertEquals(8, expenseDAO.getTotalsByCategory(userId, febbraio, febbraio.plusMonths(1)).get(Categories.ALTRO), 1e-9);
+        assertEquals(8, expenseDAO.getYearTotalsByCategory(userId, 2025).get(Categories.ALTRO), 1e-9);
+
+        Expense modifica = new Expense("Libro usato", Categories.ALTRO, "Libro", 6, dollari.getData());
+        modifica.setId(dollari.getId());
+        modifica.setVersion(dollari.getVersion());
+        modifica.setIdUtente(userId);
+        assertEquals(ExpenseUpdateResult.Esito.AGGIORNATA, expenseDAO.updateExpense(modifica, false).getEsito());
+        assertEquals("USD", modifica.getValuta());
+        assertEquals("USD", expenseDAO.getExpenseById(dollari.getId(), userId).getValuta());
+        assertEquals(6, expenseDAO.getYearTotalsByCategory(userId, 2025).get(Categories.ALTRO), 1e-9);
+    }
+}
@@ -0,0 +1,109 @@
+package it.moneygement.service;
+
+import it.moneygement.dao.ExchangeRateDAO;
+import it.moneygement.db.DbConnection;
+import it.moneygement.db.InitDatabase;
+import it.moneygement.exception.RisorsaNonTrovataException;
+import it.moneygement.exception.SpesaDuplicataException;
+import it.moneygement.model.Categories;
+import it.moneygement.model.Expense;
+import it.moneygement.model.ExpenseImportResult;
+import it.moneygement.model.ExpenseUpdateResult;
+import it.moneygement.utils.SessionContext;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per il riconoscimento delle spese duplicate (database su file temporaneo).
+ *
+ * @author Stefano Bellan
+ */
+public class DuplicateExpensesTest {
+
+    private static final String PASSWORD = "Password1!";
+
+    @TempDir
+    static Path cartella;
+
+    private static MoneygementService service;
+
+    @BeforeAll
+    static void setUp() throws SQLException {
+        DbConnection.setTestDatabase("jdbc:sqlite:" + cartella.resolve("doppioni.db"));
+        new InitDatabase().initializeDb();
+        ExchangeRateDAO.saveRates(DbConnection.getInstance().getConnection(), Map.of("USD", 1.1), LocalDate.of(2025, 1, 1));
+        service = MoneygementService.getInstance();
+    }
+
+    /**
+     * Verifica che reimportare un estratto conto in parte sovrapposto salvi solo le spese nuove, riconoscendo
+     * anche i doppioni interni all'elenco e quelli che differiscono solo per maiuscole e spazi nel nome.
+     */
+    @Test
+    @DisplayName("Test importazione con doppioni")
+    void testImportazione() throws RisorsaNonTrovataException {
+        service.registerUser("Mario", "Rossi", "import@doppioni.it", PASSWORD, 30);
+        SessionContext sessione = service.login("import@doppioni.it", PASSWORD);
+        LocalDateTime inizio = LocalDateTime.of(2025, 5, 1, 9, 30);
+
+        ExpenseImportResult primo = service.importExpenses(sessione, estratto(inizio, 0, 50), null);
+        assertEquals(50, primo.getImportate().size());
+        assertTrue(primo.getDuplicate().isEmpty());
+        assertTrue(primo.getImportate().stream().allMatch(e -> e.getId() > 0));
+
+        // Giorni 30-79: i primi 20 sono già stati importati, l'ultima riga ripete la prima dell'elenco
+        List<Expense> secondo = estratto(inizio, 30, 80);
+        secondo.add(new Expense("  BAR CENTRALE ", Categories.RISTORANTI, "Colazione", 4.5, inizio.plusDays(30)));
+        ExpenseImportResult esito = service.importExpenses(sessione, secondo, null);
+        assertEquals(30, esito.getImportate().size());
+        List<Integer> attese = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            attese.add(i);
+        }
+        attese.add(50);
+        assertEquals(attese, esito.getDuplicate());
+        assertEquals(80, service.getExpensesByUserId(sessione).size());
+    }
+
+    /**
+     * Verifica che l'inserimento manuale e la modifica rifiutino una spesa uguale a una esistente,
+     * mentre la stessa spesa in un altro istante o in un'altra valuta viene salvata.
+     */
+    @Test
+    @DisplayName("Test inserimento e modifica")
+    void testInserimentoManuale() {
+        service.registerUser("Anna", "Bianchi", "manuale@doppioni.it", PASSWORD, 30);
+        SessionContext sessione = service.login("manuale@doppioni.it", PASSWORD);
+        LocalDateTime ora = LocalDateTime.of(2025, 6, 10, 18, 0, 5);
+
+        service.addExpense(sessione, "Cinema", Categories.SVAGO, "Film", 9.0, ora);
+        assertThrows(SpesaDuplicataException.class, () -> service.addExpense(sessione, "cinema ", Categories.SVAGO, "Altro film", 9.0, ora));
+        Expense dopo = service.addExpense(sessione, "Cinema", Categories.SVAGO, "Film", 9.0, ora.plusSeconds(1));
+        assertTrue(dopo.getId() > 0);
+        assertTrue(service.addExpense(sessione, "Cinema", Categories.SVAGO, "Film", 9.0, "USD", ora).getId() > 0);
+
+        ExpenseUpdateResult esito = service.updateExpense(sessione, dopo.getId(), dopo.getVersion(), "Cinema", Categories.SVAGO, "Film", 9.0, ora);
+        assertEquals(ExpenseUpdateResult.Esito.DUPLICATA, esito.getEsito());
+    }
+
+    private static List<Expense> estratto(LocalDateTime inizio, int da, int a) {
+        List<Expense> spese = new ArrayList<>();
+        for (int i = da; i < a; i++) {
+            spese.add(new Expense(i % 2 == 0 ? "Bar Centrale" : "Supermercato", i % 2 == 0 ? Categories.RISTORANTI : Categories.ALTRO,
+                    "Movimento " + i, i % 2 == 0 ? 4.5 : 20 + i, inizio.plusDays(i)));
+        }
+        return spese;
+    }
+}
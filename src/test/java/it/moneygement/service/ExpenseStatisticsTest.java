@@ -0,0 +1,101 @@
+package it.moneygement.service;
+
+import it.moneygement.dao.ExpenseDAO;
+import it.moneygement.dao.ExpenseStatsDAO;
+import it.moneygement.db.DbConnection;
+import it.moneygement.db.InitDatabase;
+import it.moneygement.model.Categories;
+import it.moneygement.model.Expense;
+import it.moneygement.model.ExpenseStats;
+import it.moneygement.utils.SessionContext;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ObjDoubleConsumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per le statistiche mensili delle spese salvate nel database (file temporaneo):
+ * i mesi già calcolati vengono riusati e quelli modificati ricalcolati.
+ *
+ * @author Stefano Bellan
+ */
+public class ExpenseStatisticsTest {
+
+    private static final String PASSWORD = "Password1!";
+
+    @TempDir
+    static Path cartella;
+
+    private static MoneygementService service;
+
+    @BeforeAll
+    static void setUp() {
+        DbConnection.setTestDatabase("jdbc:sqlite:" + cartella.resolve("stats.db"));
+        new InitDatabase().initializeDb();
+        service = MoneygementService.getInstance();
+    }
+
+    /**
+     * Verifica che le statistiche di un anno coincidano con quelle calcolate sulle spese, che una seconda
+     * richiesta non rilegga le spese e che una modifica faccia ricalcolare solo il suo mese.
+     */
+    @Test
+    @DisplayName("Test riuso e invalidazione delle statistiche mensili")
+    void testRiusoEInvalidazione() {
+        service.registerUser("Mario", "Rossi", "statistiche@stats.it", PASSWORD, 30);
+        SessionContext sessione = service.login("statistiche@stats.it", PASSWORD);
+        int userId = sessione.getUserId();
+        for (int mese = 1; mese <= 12; mese++) {
+            for (int i = 1; i <= 10; i++) {
+                service.addExpense(sessione, "Cena", Categories.RISTORANTI, "Ristorante", mese * i, LocalDateTime.of(2025, mese, i, 12, 0));
+            }
+        }
+
+        List<LocalDate> letture = new ArrayList<>();
+        ExpenseDAO contaLetture = new ExpenseDAO() {
+            @Override
+            public boolean forEachImporto(int id, LocalDate da, LocalDate a, ObjDoubleConsumer<Categories> consumatore) {
+                letture.add(da);
+                return super.forEachImporto(id, da, a, consumatore);
+            }
+        };
+        ExpenseStatistics statistiche = new ExpenseStatistics(new ExpenseStatsDAO(), contaLetture);
+        YearMonth gennaio = YearMonth.of(2025, 1);
+        YearMonth dicembre = YearMonth.of(2025, 12);
+
+        ExpenseStats ristoranti = statistiche.statistiche(userId, gennaio, dicembre).get(Categories.RISTORANTI);
+        assertEquals(12, letture.size());
+        assertEquals(120, ristoranti.getNumero());
+        assertEquals(35.75, ristoranti.getMedia(), 1e-9);
+        assertEquals(1, ristoranti.getMinimo());
+        assertEquals(120, ristoranti.getMassimo());
+        assertEquals(0, statistiche.statistiche(userId, gennaio, dicembre).get(Categories.ALTRO).getNumero());
+
+        letture.clear();
+        statistiche.statistiche(userId, gennaio, dicembre);
+        assertTrue(letture.isEmpty());
+
+        Expense nuova = service.addExpense(sessione, "Cena", Categories.RISTORANTI, "Ristorante", 1000, LocalDateTime.of(2025, 6, 15, 12, 0));
+        ristoranti = statistiche.statistiche(userId, gennaio, dicembre).get(Categories.RISTORANTI);
+        assertEquals(List.of(LocalDate.of(2025, 6, 1)), letture);
+        assertEquals(121, ristoranti.getNumero());
+        assertEquals(1000, ristoranti.getMassimo());
+
+        letture.clear();
+        service.deleteExpenseById(sessione, nuova.getId());
+        Map<Categories, ExpenseStats> dalService = service.getExpenseStats(sessione, gennaio, dicembre);
+        assertEquals(120, dalService.get(Categories.RISTORANTI).getNumero());
+        assertEquals(1, dalService.size());
+    }
+}
@@ -0,0 +1,120 @@
+package it.moneygement.service;
+
+import it.moneygement.dao.UserDAO;
+import it.moneygement.db.DbConnection;
+import it.moneygement.db.InitDatabase;
+import it.moneygement.exception.AuthenticationException;
+import it.moneygement.exception.TroppiTentativiException;
+import it.moneygement.model.User;
+import it.moneygement.utils.SecurityUtils;
+import it.moneygement.utils.SessionContext;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per il login: utenti autenticati di recente in memoria, limite dei tentativi falliti e
+ * aggiornamento degli hash delle password (database su file temporaneo).
+ *
+ * @author Stefano Bellan
+ */
+public class LoginThrottleTest {
+
+    private static final String PASSWORD = "Password1!";
+
+    @TempDir
+    static Path cartella;
+
+    private static MoneygementService service;
+
+    @BeforeAll
+    static void setUp() {
+        DbConnection.setTestDatabase("jdbc:sqlite:" + cartella.resolve("login.db"));
+        new InitDatabase().initializeDb();
+        service = MoneygementService.getInstance();
+    }
+
+    /**
+     * Verifica che i login riusciti non vengano limitati, che ogni login apra una sessione con il suo utente
+     * e che dopo un cambio di password valga solo quella nuova.
+     */
+    @Test
+    @DisplayName("Test login ripetuti e cambio password")
+    void testLoginRipetuti() {
+        service.registerUser("Mario", "Rossi", "ripetuti@login.it", PASSWORD, 30);
+        for (int i = 0; i < 20; i++) {
+            assertEquals("ripetuti@login.it", service.login("ripetuti@login.it", PASSWORD, "10.0.0.1").getUser().getEmail());
+        }
+
+        SessionContext sessione = service.login("ripetuti@login.it", PASSWORD);
+        service.updateUser(sessione, "Mario", "Rossi", "Nuova123!", "ripetuti@login.it", 31);
+        assertThrows(AuthenticationException.class, () -> service.login("ripetuti@login.it", PASSWORD));
+        SessionContext nuova = service.login("ripetuti@login.it", "Nuova123!");
+        assertEquals(31, nuova.getUser().getEta());
+        assertNotSame(sessione.getUser(), nuova.getUser());
+        assertEquals(31, sessione.getUser().getEta());
+    }
+
+    /**
+     * Verifica che dopo i tentativi falliti ammessi per un'email il login venga rifiutato anche con la
+     * password giusta, senza toccare le altre email, e che un'origine con troppi errori venga fermata.
+     */
+    @Test
+    @DisplayName("Test limite dei tentativi falliti")
+    void testLimiteTentativi() {
+        service.registerUser("Anna", "Bianchi", "bersaglio@login.it", PASSWORD, 30);
+        service.registerUser("Luca", "Verdi", "altro@login.it", PASSWORD, 30);
+        for (int i = 0; i < 5; i++) {
+            assertThrows(AuthenticationException.class, () -> service.login("bersaglio@login.it", "Sbagliata1!"));
+        }
+        TroppiTentativiException e = assertThrows(TroppiTentativiException.class,
+                () -> service.login("bersaglio@login.it", PASSWORD));
+        assertTrue(e.getAttesa().toSeconds() > 0);
+        assertNotNull(service.login("altro@login.it", PASSWORD));
+
+        // Email sempre diverse dalla stessa origine: la ferma il limite per origine
+        int rifiutati = 0;
+        for (int i = 0; i < 30; i++) {
+            try {
+                service.login("inesistente" + i + "@login.it", "Sbagliata1!", "10.0.0.99");
+            } catch (TroppiTentativiException troppi) {
+                rifiutati++;
+            } catch (AuthenticationException ignored) {
+                // Tentativo ammesso e fallito
+            }
+        }
+        assertTrue(rifiutati >= 9, "Rifiutati: " + rifiutati);
+    }
+
+    /**
+     * Verifica che un utente con il vecchio hash SHA-256 senza sale possa entrare e che al login il suo hash
+     * venga sostituito da uno PBKDF2 della stessa password.
+     */
+    @Test
+    @DisplayName("Test aggiornamento degli hash vecchi")
+    void testAggiornamentoHash() throws Exception {
+        String vecchio = HexFormat.of().formatHex(
+                MessageDigest.getInstance("SHA-256").digest(PASSWORD.getBytes(StandardCharsets.UTF_8)));
+        UserDAO userDAO = new UserDAO();
+        userDAO.registerUser(new User("Carla", "Neri", vecchio, "vecchio@login.it", 40));
+
+        SessionContext sessione = service.login("vecchio@login.it", PASSWORD);
+        String nuovo = userDAO.getUserByEmail("vecchio@login.it").getPasswordHash();
+        assertNotEquals(vecchio, nuovo);
+        assertFalse(SecurityUtils.needsRehash(nuovo));
+        assertTrue(SecurityUtils.verifyPassword(PASSWORD, nuovo));
+        assertEquals(nuovo, sessione.getUser().getPasswordHash());
+
+        service.logout(sessione);
+        assertNotNull(service.login("vecchio@login.it", PASSWORD));
+        assertThrows(AuthenticationException.class, () -> service.login("vecchio@login.it", "Sbagliata1!"));
+    }
+}
@@ -0,0 +1,217 @@
+package it.moneygement.service;
+
+import it.moneygement.dao.AnomalyBaselineDAO;
+import it.moneygement.dao.BudgetDAO;
+import it.moneygement.dao.ExchangeRateDAO;
+import it.moneygement.dao.ExpenseDAO;
+import it.moneygement.dao.RecurringExpenseDAO;
+import it.moneygement.dao.TopExpenseDAO;
+import it.moneygement.dao.UserDAO;
+import it.moneygement.db.DbConnection;
+import it.moneygement.db.InitDatabase;
+import it.moneygement.model.Budget;
+import it.moneygement.model.BudgetPeriod;
+import it.moneygement.model.BudgetStatus;
+import it.moneygement.model.Categories;
+import it.moneygement.model.ExpenseAnomaly;
+import it.moneygement.model.RecurringExpense;
+import it.moneygement.utils.RecurrenceRule;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per lo scheduler delle spese ricorrenti, su un database in un file temporaneo
+ * (lo scheduler scrive su connessioni dedicate) e con un orologio controllato dal test.
+ *
+ * @author Stefano Bellan
+ */
+public class RecurringSchedulerTest {
+
+    @TempDir
+    static Path cartella;
+
+    private static final ExpenseDAO expenseDAO = new ExpenseDAO();
+    private static final RecurringExpenseDAO recurringDAO = new RecurringExpenseDAO();
+    private static int utenti;
+
+    private final Orologio orologio = new Orologio();
+
+    /**
+     * Orologio fermo su un istante scelto dal test.
+     */
+    private static final class Orologio extends Clock {
+        private Instant adesso = LocalDateTime.of(2025, 3, 10, 12, 0).toInstant(ZoneOffset.UTC);
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return adesso;
+        }
+    }
+
+    @BeforeAll
+    static void setUpDatabase() {
+        DbConnection.setTestDatabase("jdbc:sqlite:" + cartella.resolve("ricorrenti.db"));
+        new InitDatabase().initializeDb();
+    }
+
+    /**
+     * Verifica il recupero delle occorrenze perse, l'assenza di doppioni dopo un riavvio o con uno stato
+     * salvato rimasto indietro, e l'aggiornamento dei budget dopo la generazione.
+     */
+    @Test
+    @DisplayName("Test recupero senza doppioni")
+    void testRecuperoSenzaDoppioni() {
+        int userId = nuovoUtente();
+        BudgetEngine budget = budget();
+        List<BudgetStatus> avvisi = new ArrayList<>();
+        budget.addListener(avvisi::add);
+        budget.salva(userId, new Budget(Categories.BOLLETTE, BudgetPeriod.MENSILE, 95));
+
+        RecurringExpense giornaliera = salva(userId, "FREQ=DAILY", LocalDateTime.of(2025, 3, 1, 8, 0));
+        salva(userId, "FREQ=MONTHLY;BYMONTHDAY=1;COUNT=2", LocalDateTime.of(2025, 1, 1, 0, 0));
+
+        RecurringScheduler scheduler = scheduler(budget);
+        scheduler.carica();
+        // Dal 1 al 10 marzo, più le due occorrenze mensili (la regola è poi esaurita)
+        assertEquals(12, scheduler.esegui());
+        assertEquals(12, expenseDAO.countExpenses(userId, null));
+        assertNull(recurringDAO.getRecurringExpensesByUserId(userId).get(1).getProssima());
+        assertEquals(0, scheduler.esegui());
+
+        // 10 spese da 10 € nel mese: superato il budget mensile
+        assertEquals(100, budget.situazione(userId).get(0).getSpeso(), 1e-9);
+        assertEquals(BudgetEngine.SOGLIA_LIMITE, avvisi.get(avvisi.size() - 1).getSoglia());
+
+        // Riavvio due giorni dopo: si recuperano solo le occorrenze dell'11 e del 12
+        orologio.adesso = LocalDateTime.of(2025, 3, 12, 9, 0).toInstant(ZoneOffset.UTC);
+        RecurringScheduler riavviato = scheduler(budget);
+        riavviato.carica();
+        assertEquals(2, riavviato.esegui());
+
+        // Stato salvato rimasto indietro: le chiavi di idempotenza impediscono i doppioni
+        try (PreparedStatement pstmt = DbConnection.getInstance().getConnection(userId)
+                .prepareStatement("UPDATE recurring_expense SET prossima = '2025-03-01T08:00:00', generate = 0 WHERE id = ?;")) {
+            pstmt.setInt(1, giornaliera.getId());
+            pstmt.executeUpdate();
+        } catch (Exception e) {
+            fail(e);
+        }
+        RecurringScheduler indietro = scheduler(budget);
+        indietro.carica();
+        assertEquals(0, indietro.esegui());
+        assertEquals(14, expenseDAO.countExpenses(userId, null));
+        assertEquals(LocalDateTime.of(2025, 3, 13, 8, 0), recurringDAO.getRecurringExpensesByUserId(userId).get(0).getProssima());
+    }
+
+    /**
+     * Verifica una passata con più spese ricorrenti di quante ne entrino in una transazione,
+     * e che una spesa ricorrente eliminata non generi più occorrenze.
+     */
+    @Test
+    @DisplayName("Test passata a blocchi")
+    void testPassataABlocchi() {
+        int userId = nuovoUtente();
+        RecurringScheduler scheduler = scheduler(budget());
+        int regole = RecurringScheduler.REGOLE_PER_TRANSAZIONE * 2 + 10;
+        RecurringExpense eliminata = null;
+        for (int i = 0; i < regole; i++) {
+            // Ogni regola ha un orario diverso: la coda le ordina per prossima occorrenza
+            RecurringExpense r = salva(userId, "FREQ=WEEKLY", LocalDateTime.of(2025, 3, 3, 0, 0).plusSeconds(i));
+            scheduler.pianifica(r);
+            eliminata = r;
+        }
+        assertTrue(recurringDAO.deleteRecurringExpense(eliminata.getId(), userId));
+
+        // Lunedì 3 e lunedì 10 marzo
+        assertEquals(2 * (regole - 1), scheduler.esegui());
+        assertEquals(regole - 1, scheduler.getInCoda());
+        assertEquals(2 * (regole - 1), expenseDAO.countExpenses(userId, null));
+    }
+
+    /**
+     * Verifica che le occorrenze passino dai controlli del service: il doppione di una spesa già presente non
+     * viene inserito, le spese generate entrano nel filtro dei doppioni e vengono valutate dal riconoscimento
+     * delle anomalie.
+     */
+    @Test
+    @DisplayName("Test doppioni e anomalie delle spese generate")
+    void testControlli() {
+        int userId = nuovoUtente();
+        CurrencyConverter convertitore = new CurrencyConverter(new ExchangeRateDAO(), new UserDAO(), orologio);
+        AnomalyDetector anomalie = new AnomalyDetector(new AnomalyBaselineDAO(), expenseDAO, convertitore, orologio);
+        List<ExpenseAnomaly> segnalate = new ArrayList<>();
+        anomalie.addListener(segnalate::add);
+        DuplicateGuard doppioni = new DuplicateGuard(expenseDAO, 16);
+        RecurringScheduler scheduler = new RecurringScheduler(recurringDAO, expenseDAO,
+                new BudgetEngine(new BudgetDAO(), expenseDAO, convertitore, orologio), anomalie, doppioni,
+                new TopExpenseTracker(new TopExpenseDAO(), expenseDAO, convertitore), orologio);
+
+        // La spesa del 5 marzo è già stata inserita a mano
+        RecurringExpense giornaliera = salva(userId, "FREQ=DAILY", LocalDateTime.of(2025, 3, 1, 8, 0));
+        expenseDAO.addExpense(giornaliera.occorrenza(LocalDateTime.of(2025, 3, 5, 8, 0)));
+        scheduler.pianifica(giornaliera);
+        assertEquals(9, scheduler.esegui());
+        assertEquals(10, expenseDAO.countExpenses(userId, null));
+        assertTrue(doppioni.forseDuplicata(userId, giornaliera.occorrenza(LocalDateTime.of(2025, 3, 3, 8, 0))));
+        assertTrue(segnalate.isEmpty());
+
+        // Dieci spese da 10 € nella categoria: una da 500 € è anomala
+        RecurringExpense cara = new RecurringExpense("Caldaia", Categories.BOLLETTE, "Test", 500,
+                RecurrenceRule.parse("FREQ=MONTHLY"), LocalDateTime.of(2025, 3, 10, 10, 0));
+        cara.setIdUtente(userId);
+        assertTrue(recurringDAO.saveRecurringExpense(cara));
+        scheduler.pianifica(cara);
+        assertEquals(1, scheduler.esegui());
+        assertEquals(1, segnalate.size());
+        assertEquals(500, segnalate.get(0).getSpesa().getImporto(), 1e-9);
+        assertTrue(segnalate.get(0).getSpesa().getId() > 0);
+    }
+
+    private BudgetEngine budget() {
+        return new BudgetEngine(new BudgetDAO(), expenseDAO, new CurrencyConverter(new ExchangeRateDAO(), new UserDAO(), orologio), orologio);
+    }
+
+    private RecurringScheduler scheduler(BudgetEngine budget) {
+        CurrencyConverter convertitore = new CurrencyConverter(new ExchangeRateDAO(), new UserDAO(), orologio);
+        return new RecurringScheduler(recurringDAO, expenseDAO, budget,
+                new AnomalyDetector(new AnomalyBaselineDAO(), expenseDAO, convertitore, orologio), new DuplicateGuard(expenseDAO, 16),
+                new TopExpenseTracker(new TopExpenseDAO(), expenseDAO, convertitore), orologio);
+    }
+
+    private RecurringExpense salva(int userId, String regola, LocalDateTime inizio) {
+        RecurringExpense r = new RecurringExpense("Ricorrente", Categories.BOLLETTE, "Test", 10,
+                RecurrenceRule.parse(regola), inizio);
+        r.setIdUtente(userId);
+        assertTrue(recurringDAO.saveRecurringExpense(r));
+        return r;
+    }
+
+    private static int nuovoUtente() {
+        MoneygementService.getInstance().registerUser("Mario", "Rossi", "ricorrenti" + (++utenti) + "@test.it", "Password1!", 30);
+        return MoneygementService.getInstance().login("ricorrenti" + utenti + "@test.it", "Password1!").getUserId();
+    }
+}
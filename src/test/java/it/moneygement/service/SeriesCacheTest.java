@@ -0,0 +1,72 @@
+package it.moneygement.service;
+
+import it.moneygement.events.ChangeEvent;
+import it.moneygement.events.ExpenseChanged;
+import it.moneygement.events.UserChanged;
+import it.moneygement.model.SeriesPoint;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per la cache delle serie giornaliere e la sua invalidazione con gli eventi del bus.
+ *
+ * @author Stefano Bellan
+ */
+public class SeriesCacheTest {
+
+    private static final List<SeriesPoint> SERIE = List.of(new SeriesPoint(LocalDate.of(2025, 1, 1), 10));
+
+    /**
+     * Verifica che una serie calcolata durante una modifica del suo utente non venga salvata, mentre le modifiche
+     * di altri utenti non scartano né le serie in calcolo né quelle in cache.
+     */
+    @Test
+    @DisplayName("Test invalidazione per utente")
+    void testInvalidazionePerUtente() {
+        SeriesCache cache = new SeriesCache(8);
+        String chiave1 = SeriesCache.chiave(1, "a");
+        String chiave2 = SeriesCache.chiave(2, "a");
+
+        long letta1 = cache.generazione(1);
+        long letta2 = cache.generazione(2);
+        cache.suModifiche(List.of(new ExpenseChanged(5, ChangeEvent.Operazione.UPDATE, 1)));
+        cache.put(1, chiave1, SERIE, letta1);
+        cache.put(2, chiave2, SERIE, letta2);
+        assertNull(cache.get(chiave1));
+        assertEquals(SERIE, cache.get(chiave2));
+
+        cache.put(1, chiave1, SERIE, cache.generazione(1));
+        cache.suModifiche(List.of(new UserChanged(2, ChangeEvent.Operazione.UPDATE)));
+        assertEquals(SERIE, cache.get(chiave1));
+        assertNull(cache.get(chiave2));
+    }
+
+    /**
+     * Verifica che una modifica massiva svuoti la cache e scarti le serie in calcolo di tutti gli utenti, anche
+     * quando i contatori dei singoli utenti vengono azzerati per limitarne il numero.
+     */
+    @Test
+    @DisplayName("Test invalidazione globale")
+    void testInvalidazioneGlobale() {
+        SeriesCache cache = new SeriesCache(1);
+        for (int id = 1; id <= 10; id++) {
+            cache.suModifiche(List.of(new ExpenseChanged(id, ChangeEvent.Operazione.INSERT, id)));
+        }
+        long letta = cache.generazione(3);
+        cache.put(3, SeriesCache.chiave(3, "a"), SERIE, letta);
+        assertEquals(SERIE, cache.get(SeriesCache.chiave(3, "a")));
+
+        cache.suModifiche(List.of(new ExpenseChanged(0, ChangeEvent.Operazione.BULK, 0)));
+        assertNull(cache.get(SeriesCache.chiave(3, "a")));
+        cache.put(3, SeriesCache.chiave(3, "a"), SERIE, letta);
+        assertNull(cache.get(SeriesCache.chiave(3, "a")));
+        for (int id = 1; id <= 10; id++) {
+            assertNotEquals(letta, cache.generazione(id));
+        }
+    }
+}
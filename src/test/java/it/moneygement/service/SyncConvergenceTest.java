@@ -0,0 +1,201 @@
+package it.moneygement.service;
+
+import it.moneygement.db.DbConnection;
+import it.moneygement.db.InitDatabase;
+import it.moneygement.model.Categories;
+import it.moneygement.model.ChangeBatch;
+import it.moneygement.model.Expense;
+import it.moneygement.utils.SessionContext;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per la sincronizzazione incrementale tra dispositivi.
+ * Due repliche locali dello stesso utente modificano i dati sul database (un file temporaneo)
+ * e si sincronizzano con {@link MoneygementService#getChangesSince}: alla fine devono coincidere
+ * tra loro e con il database.
+ *
+ * @author Stefano Bellan
+ */
+public class SyncConvergenceTest {
+
+    private static final String PASSWORD = "Password1!";
+
+    @TempDir
+    static Path cartella;
+
+    private static MoneygementService service;
+
+    /**
+     * Replica locale dei dati di un utente, come la terrebbe un dispositivo.
+     */
+    private static class Replica {
+        private final Map<Integer, Expense> spese = new TreeMap<>();
+        private String epoca;
+        private long sequenza;
+        private int risincronizzazioni;
+
+        /**
+         * Chiede blocchi di modifiche finché il server non ne ha più.
+         */
+        void sincronizza(SessionContext sessione, int limite) {
+            ChangeBatch blocco;
+            do {
+                blocco = service.getChangesSince(sessione, epoca, sequenza, limite);
+                assertTrue(blocco.size() <= limite, "Blocco più grande del limite: " + blocco.size());
+                if (blocco.isRisincronizzazione()) {
+                    spese.clear();
+                    risincronizzazioni++;
+                }
+                for (Expense e : blocco.getModificate()) {
+                    spese.put(e.getId(), e);
+                }
+                for (int id : blocco.getEliminate()) {
+                    spese.remove(id);
+                }
+                epoca = blocco.getEpoca();
+                sequenza = blocco.getUltimaSequenza();
+            } while (blocco.isAltri());
+        }
+
+        List<Integer> ids() {
+            return new ArrayList<>(spese.keySet());
+        }
+    }
+
+    @BeforeAll
+    static void setUp() {
+        DbConnection.setTestDatabase("jdbc:sqlite:" + cartella.resolve("sync.db"));
+        new InitDatabase().initializeDb();
+        service = MoneygementService.getInstance();
+    }
+
+    /**
+     * Verifica che due dispositivi che modificano e cancellano spese in ordine casuale,
+     * sincronizzandosi a blocchi piccoli, convergano allo stato del database.
+     */
+    @Test
+    @DisplayName("Test convergenza di due repliche")
+    void testConvergenza() throws Exception {
+        SessionContext[] dispositivi = nuovoUtente("convergenza@sync.it");
+        Replica[] repliche = {new Replica(), new Replica()};
+        Random random = new Random(42);
+
+        for (int passo = 0; passo < 400; passo++) {
+            int d = random.nextInt(2);
+            SessionContext sessione = dispositivi[d];
+            Replica replica = repliche[d];
+            List<Integer> ids = replica.ids();
+            int operazione = ids.isEmpty() ? 0 : random.nextInt(10);
+
+            if (operazione < 5) {
+                service.addExpense(sessione, "Spesa " + passo, Categories.values()[random.nextInt(Categories.values().length)],
+                        "Creata dal dispositivo " + d, 1 + random.nextInt(100), LocalDateTime.of(2025, 1 + random.nextInt(12), 1, 12, 0));
+            } else if (operazione < 8) {
+                // La versione locale può essere superata: in quel caso l'aggiornamento va in conflitto
+                Expense e = replica.spese.get(ids.get(random.nextInt(ids.size())));
+                service.updateExpense(sessione, e.getId(), e.getVersion(), e.getNomeSpesa() + "*", e.getCategoria(),
+                        e.getDescrizione(), e.getImporto() + 1, e.getData());
+            } else {
+                service.deleteExpenseById(sessione, ids.get(random.nextInt(ids.size())));
+            }
+
+            if (random.nextInt(4) == 0) {
+                replica.sincronizza(sessione, 7);
+            }
+        }
+
+        repliche[0].sincronizza(dispositivi[0], 7);
+        repliche[1].sincronizza(dispositivi[1], 7);
+
+        Map<Integer, String> server = new TreeMap<>();
+        for (Expense e : service.getExpensesByUserId(dispositivi[0])) {
+            server.put(e.getId(), e.toString() + "@" + e.getVersion());
+        }
+        for (Replica replica : repliche) {
+            Map<Integer, String> locale = new TreeMap<>();
+            replica.spese.values().forEach(e -> locale.put(e.getId(), e.toString() + "@" + e.getVersion()));
+            assertEquals(server, locale);
+        }
+    }
+
+    /**
+     * Verifica che dopo la sincronizzazione completa un client riceva solo ciò che è cambiato.
+     */
+    @Test
+    @DisplayName("Test costo proporzionale alle modifiche")
+    void testSoloModifiche() {
+        SessionContext sessione = nuovoUtente("costo@sync.it")[0];
+        List<Expense> spese = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            spese.add(service.addExpense(sessione, "Spesa " + i, Categories.RISTORANTI, "Pranzo", 10 + i, LocalDateTime.of(2025, 3, 1, 12, 0)));
+        }
+        Replica replica = new Replica();
+        replica.sincronizza(sessione, 1000);
+        assertEquals(200, replica.spese.size());
+
+        Expense modificata = spese.get(10);
+        service.updateExpense(sessione, modificata.getId(), modificata.getVersion(), "Cena", Categories.RISTORANTI, "Cena", 30,
+                modificata.getData());
+        service.deleteExpenseById(sessione, spese.get(20).getId());
+
+        ChangeBatch blocco = service.getChangesSince(sessione, replica.epoca, replica.sequenza, 1000);
+        assertFalse(blocco.isRisincronizzazione());
+        assertFalse(blocco.isAltri());
+        assertEquals(1, blocco.getModificate().size());
+        assertEquals("Cena", blocco.getModificate().get(0).getNomeSpesa());
+        assertEquals(List.of(spese.get(20).getId()), blocco.getEliminate());
+
+        // Nessuna modifica: blocco vuoto
+        ChangeBatch vuoto = service.getChangesSince(sessione, blocco.getEpoca(), blocco.getUltimaSequenza(), 1000);
+        assertEquals(0, vuoto.size());
+        assertEquals(blocco.getUltimaSequenza(), vuoto.getUltimaSequenza());
+    }
+
+    /**
+     * Verifica che le modifiche ai dati dell'utente arrivino al dispositivo e che un'epoca
+     * sconosciuta provochi una risincronizzazione completa.
+     */
+    @Test
+    @DisplayName("Test modifiche utente ed epoca diversa")
+    void testUtenteEdEpoca() {
+        SessionContext sessione = nuovoUtente("utente@sync.it")[0];
+        service.addExpense(sessione, "Libro", Categories.SVAGO, "Romanzo", 15, LocalDateTime.of(2025, 5, 1, 18, 0));
+        Replica replica = new Replica();
+        replica.sincronizza(sessione, 10);
+        assertEquals(1, replica.risincronizzazioni);
+
+        service.updateUser(sessione, "Giulia", "Bianchi", PASSWORD, "utente@sync.it", 30);
+        ChangeBatch blocco = service.getChangesSince(sessione, replica.epoca, replica.sequenza, 10);
+        assertNotNull(blocco.getUtente());
+        assertEquals("Giulia", blocco.getUtente().getNome());
+        assertTrue(blocco.getModificate().isEmpty());
+
+        ChangeBatch altraEpoca = service.getChangesSince(sessione, "sconosciuta", blocco.getUltimaSequenza(), 10);
+        assertTrue(altraEpoca.isRisincronizzazione());
+        assertEquals(1, altraEpoca.getModificate().size());
+        assertNotNull(altraEpoca.getUtente());
+
+        assertThrows(IllegalArgumentException.class, () -> service.getChangesSince(sessione, null, 0, 0));
+    }
+
+    /**
+     * Registra un utente e apre due sessioni, una per dispositivo.
+     */
+    private static SessionContext[] nuovoUtente(String email) {
+        service.registerUser("Mario", "Rossi", email, PASSWORD, 30);
+        return new SessionContext[]{service.login(email, PASSWORD), service.login(email, PASSWORD)};
+    }
+}
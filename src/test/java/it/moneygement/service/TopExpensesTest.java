@@ -0,0 +1,194 @@
+package it.moneygement.service;
+
+import it.moneygement.dao.ExchangeRateDAO;
+import it.moneygement.dao.ExpenseDAO;
+import it.moneygement.dao.TopExpenseDAO;
+import it.moneygement.dao.UserDAO;
+import it.moneygement.db.DbConnection;
+import it.moneygement.db.InitDatabase;
+import it.moneygement.model.Categories;
+import it.moneygement.model.Expense;
+import it.moneygement.model.ExpenseUpdateResult;
+import it.moneygement.model.RankingMetric;
+import it.moneygement.model.TopExpense;
+import it.moneygement.model.TopExpenseRanking;
+import it.moneygement.utils.SessionContext;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per le classifiche dei nomi di spesa (database su file temporaneo): con molti più nomi
+ * della capienza le stime aggiornate a ogni spesa devono restare entro i limiti dichiarati.
+ *
+ * @author Stefano Bellan
+ */
+public class TopExpensesTest {
+
+    private static final String PASSWORD = "Password1!";
+
+    @TempDir
+    static Path cartella;
+
+    private static MoneygementService service;
+
+    @BeforeAll
+    static void setUp() {
+        DbConnection.setTestDatabase("jdbc:sqlite:" + cartella.resolve("top.db"));
+        new InitDatabase().initializeDb();
+        service = MoneygementService.getInstance();
+    }
+
+    /**
+     * Verifica che, con nomi distribuiti in modo molto diseguale (pochi frequenti e una lunga coda),
+     * ogni voce contenga il valore vero tra minimo e stima, che i nomi assenti non superino i limiti
+     * e che le cancellazioni riducano le stime. Le classifiche vengono costruite alla prima lettura, dopo
+     * poche spese, e da lì aggiornate a ogni scrittura; un nuovo tracker le rilegge dal database.
+     */
+    @Test
+    @DisplayName("Test limiti delle classifiche")
+    void testLimiti() {
+        service.registerUser("Mario", "Rossi", "classifiche@top.it", PASSWORD, 30);
+        SessionContext sessione = service.login("classifiche@top.it", PASSWORD);
+        Random random = new Random(3);
+        Map<String, Double> totali = new HashMap<>();
+        Map<String, Double> conteggi = new HashMap<>();
+        List<Expense> supermercato = new ArrayList<>();
+
+        for (int i = 0; i < 1_500; i++) {
+            if (i == 100) {
+                // Prima lettura: le classifiche vengono costruite, le spese successive le aggiornano
+                service.getTopExpenses(sessione, RankingMetric.TOTALE, 10);
+            }
+            // Nome k con probabilità circa proporzionale a 1/k, su 400 nomi
+            int k = (int) Math.floor(Math.pow(400, random.nextDouble()));
+            String nome = k == 1 ? "Supermercato" : "Negozio " + k;
+            double importo = 1 + random.nextInt(50);
+            Expense e = service.addExpense(sessione, nome, Categories.ALTRO, "Acquisto", importo, LocalDateTime.of(2025, 1 + i % 12, 1, 12, 0).plusSeconds(i));
+            if (k == 1) {
+                supermercato.add(e);
+            }
+            totali.merge(nome.toLowerCase(), importo, Double::sum);
+            conteggi.merge(nome.toLowerCase(), 1.0, Double::sum);
+        }
+
+        verificaLimiti(service.getTopExpenses(sessione, RankingMetric.TOTALE, 10), totali);
+        TopExpenseRanking perNumero = service.getTopExpenses(sessione, RankingMetric.NUMERO, 10);
+        verificaLimiti(perNumero, conteggi);
+        assertEquals("supermercato", perNumero.getVoci().get(0).getNome());
+        assertTrue(perNumero.getVoci().get(0).isGarantita());
+
+        for (Expense e : supermercato.subList(0, 10)) {
+            service.deleteExpenseById(sessione, e.getId());
+            conteggi.merge("supermercato", -1.0, Double::sum);
+            totali.merge("supermercato", -e.getImporto(), Double::sum);
+        }
+        TopExpenseRanking perTotale = service.getTopExpenses(sessione, RankingMetric.TOTALE, 10);
+        verificaLimiti(perTotale, totali);
+        verificaLimiti(service.getTopExpenses(sessione, RankingMetric.NUMERO, 10), conteggi);
+
+        // Le classifiche sono nel database: un tracker appena creato le legge senza ricostruirle
+        TopExpenseRanking riletta = rileggi(sessione, RankingMetric.TOTALE, 10);
+        assertEquals(perTotale.getVoci().toString(), riletta.getVoci().toString());
+        assertEquals(perTotale.getSoglia(), riletta.getSoglia(), 1e-9);
+
+        assertThrows(IllegalArgumentException.class, () -> service.getTopExpenses(sessione, RankingMetric.NUMERO, 0));
+    }
+
+    /**
+     * Verifica che i totali di spese in valute diverse siano nella valuta base dell'utente con i cambi attuali,
+     * anche dopo un cambio dei tassi, che con pochi nomi la classifica sia esatta e che una spesa aggiunta
+     * e poi cancellata con tassi diversi non lasci residui.
+     */
+    @Test
+    @DisplayName("Test classifica in valute diverse")
+    void testValute() throws SQLException {
+        ExchangeRateDAO.saveRates(DbConnection.getInstance().getConnection(), Map.of("USD", 2.0), LocalDate.of(2025, 3, 1));
+        service.registerUser("Anna", "Bianchi", "valute@top.it", PASSWORD, 30);
+        SessionContext sessione = service.login("valute@top.it", PASSWORD);
+        service.addExpense(sessione, "Libreria", Categories.ALTRO, "Libri", 30, LocalDateTime.of(2025, 3, 2, 9, 0));
+        service.addExpense(sessione, "Volo", Categories.VIAGGI, "Biglietto", 100, "USD", LocalDateTime.of(2025, 3, 3, 9, 0));
+
+        TopExpenseRanking classifica = service.getTopExpenses(sessione, RankingMetric.TOTALE, 2);
+        assertEquals(List.of("volo", "libreria"), classifica.getVoci().stream().map(TopExpense::getNome).toList());
+        assertEquals(50, classifica.getVoci().get(0).getStima(), 1e-9);
+        assertEquals(0, classifica.getSoglia(), 1e-9);
+
+        // Il service rilegge i tassi periodicamente: i nuovi tassi si vedono da un tracker con un convertitore nuovo
+        ExchangeRateDAO.saveRates(DbConnection.getInstance().getConnection(), Map.of("USD", 4.0), LocalDate.of(2025, 3, 10));
+        classifica = rileggi(sessione, RankingMetric.TOTALE, 2);
+        assertEquals(List.of("libreria", "volo"), classifica.getVoci().stream().map(TopExpense::getNome).toList());
+        assertEquals(25, classifica.getVoci().get(1).getStima(), 1e-9);
+        assertTrue(classifica.getVoci().get(1).isGarantita());
+
+        Expense secondo = service.addExpense(sessione, "Volo", Categories.VIAGGI, "Ritorno", 100, "USD", LocalDateTime.of(2025, 3, 11, 9, 0));
+        ExchangeRateDAO.saveRates(DbConnection.getInstance().getConnection(), Map.of("USD", 2.0), LocalDate.of(2025, 3, 12));
+        assertEquals(100, rileggi(sessione, RankingMetric.TOTALE, 1).getVoci().get(0).getStima(), 1e-9);
+        service.deleteExpenseById(sessione, secondo.getId());
+        classifica = rileggi(sessione, RankingMetric.TOTALE, 2);
+        assertEquals(50, classifica.getVoci().get(0).getStima(), 1e-9);
+        assertEquals(0, classifica.getVoci().get(0).getErrore(), 1e-9);
+    }
+
+    /**
+     * Verifica che la modifica del nome o dell'importo di una spesa sposti il suo peso nelle classifiche
+     * e che la cancellazione di un intervallo le faccia ricostruire.
+     */
+    @Test
+    @DisplayName("Test classifica dopo modifiche e cancellazioni")
+    void testModifiche() {
+        service.registerUser("Luca", "Verdi", "modifiche@top.it", PASSWORD, 30);
+        SessionContext sessione = service.login("modifiche@top.it", PASSWORD);
+        Expense pane = service.addExpense(sessione, "Forno", Categories.RISTORANTI, "Pane", 5, LocalDateTime.of(2025, 4, 1, 8, 0));
+        service.addExpense(sessione, "Bar", Categories.RISTORANTI, "Caffè", 8, LocalDateTime.of(2025, 4, 1, 9, 0));
+        assertEquals("bar", service.getTopExpenses(sessione, RankingMetric.TOTALE, 1).getVoci().get(0).getNome());
+
+        ExpenseUpdateResult esito = service.updateExpense(sessione, pane.getId(), pane.getVersion(), " FORNO ", Categories.RISTORANTI,
+                "Pane", 12, LocalDateTime.of(2025, 4, 1, 8, 0));
+        assertTrue(esito.isAggiornata());
+        TopExpenseRanking classifica = service.getTopExpenses(sessione, RankingMetric.TOTALE, 2);
+        assertEquals(List.of("forno=12.0", "bar=8.0"), classifica.getVoci().stream().map(TopExpense::toString).toList());
+
+        assertTrue(service.updateExpense(sessione, pane.getId(), esito.getNuovaVersione(), "Pasticceria", Categories.RISTORANTI,
+                "Torta", 12, LocalDateTime.of(2025, 4, 1, 8, 0)).isAggiornata());
+        classifica = service.getTopExpenses(sessione, RankingMetric.NUMERO, 2);
+        assertEquals(List.of("bar=1.0", "pasticceria=1.0"), classifica.getVoci().stream().map(TopExpense::toString).toList());
+
+        assertEquals(2, service.deleteExpensesInRange(sessione, LocalDate.of(2025, 4, 1), LocalDate.of(2025, 4, 1), null));
+        assertTrue(service.getTopExpenses(sessione, RankingMetric.TOTALE, 2).getVoci().isEmpty());
+    }
+
+    private static TopExpenseRanking rileggi(SessionContext sessione, RankingMetric metrica, int n) {
+        CurrencyConverter convertitore = new CurrencyConverter(new ExchangeRateDAO(), new UserDAO(), Clock.systemUTC());
+        return new TopExpenseTracker(new TopExpenseDAO(), new ExpenseDAO(), convertitore).classifica(sessione.getUserId(), metrica, n);
+    }
+
+    private static void verificaLimiti(TopExpenseRanking classifica, Map<String, Double> veri) {
+        List<TopExpense> voci = classifica.getVoci();
+        assertEquals(10, voci.size());
+        for (TopExpense voce : voci) {
+            double vero = veri.get(voce.getNome());
+            assertTrue(voce.getMinimo() <= vero + 1e-6 && vero <= voce.getStima() + 1e-6, voce + " vero " + vero);
+        }
+        double limite = Math.max(classifica.getSoglia(), voci.get(voci.size() - 1).getStima());
+        veri.forEach((nome, vero) -> {
+            if (voci.stream().noneMatch(v -> v.getNome().equals(nome))) {
+                assertTrue(vero <= limite + 1e-6, nome + " vero " + vero + " oltre " + limite);
+            }
+        });
+    }
+}
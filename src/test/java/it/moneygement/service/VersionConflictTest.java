@@ -0,0 +1,115 @@
+package it.moneygement.service;
+
+import it.moneygement.dao.ExpenseDAO;
+import it.moneygement.db.DbConnection;
+import it.moneygement.db.InitDatabase;
+import it.moneygement.exception.ConflittoVersioneException;
+import it.moneygement.model.Categories;
+import it.moneygement.model.Expense;
+import it.moneygement.model.ExpenseUpdateResult;
+import it.moneygement.utils.SessionContext;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per il controllo di concorrenza ottimistico sulle modifiche delle spese (database su file temporaneo).
+ *
+ * @author Stefano Bellan
+ */
+public class VersionConflictTest {
+
+    private static final String PASSWORD = "Password1!";
+    private static final LocalDateTime DATA = LocalDateTime.of(2025, 6, 10, 12, 0);
+
+    @TempDir
+    static Path cartella;
+
+    private static MoneygementService service;
+
+    @BeforeAll
+    static void setUp() {
+        DbConnection.setTestDatabase("jdbc:sqlite:" + cartella.resolve("versioni.db"));
+        new InitDatabase().initializeDb();
+        service = MoneygementService.getInstance();
+    }
+
+    /**
+     * Verifica che il DAO aggiorni la spesa solo con la versione attesa, restituisca la spesa salvata in caso
+     * di conflitto e non trovi le spese inesistenti o di un altro utente.
+     */
+    @Test
+    @DisplayName("Test conflitto di versione nel DAO")
+    void testConflittoDao() {
+        service.registerUser("Mario", "Rossi", "dao@versioni.it", PASSWORD, 30);
+        SessionContext sessione = service.login("dao@versioni.it", PASSWORD);
+        Expense salvata = service.addExpense(sessione, "Pranzo", Categories.RISTORANTI, "Pranzo", 12, DATA);
+        ExpenseDAO expenseDAO = new ExpenseDAO();
+
+        ExpenseUpdateResult prima = expenseDAO.updateExpense(copia(salvata, "Pranzo di lavoro", 1, sessione.getUserId()));
+        assertEquals(ExpenseUpdateResult.Esito.AGGIORNATA, prima.getEsito());
+        assertEquals(2, prima.getNuovaVersione());
+
+        // Stessa versione letta da un secondo dispositivo: la riga è già alla versione 2
+        ExpenseUpdateResult seconda = expenseDAO.updateExpense(copia(salvata, "Cena", 1, sessione.getUserId()));
+        assertEquals(ExpenseUpdateResult.Esito.CONFLITTO, seconda.getEsito());
+        assertEquals("Pranzo di lavoro", seconda.getSpesaCorrente().getNomeSpesa());
+        assertEquals(2, seconda.getSpesaCorrente().getVersion());
+
+        assertEquals(ExpenseUpdateResult.Esito.NON_TROVATA,
+                expenseDAO.updateExpense(copia(salvata, "Cena", 2, sessione.getUserId() + 1000)).getEsito());
+        Expense inesistente = copia(salvata, "Cena", 1, sessione.getUserId());
+        inesistente.setId(salvata.getId() + 1000);
+        assertEquals(ExpenseUpdateResult.Esito.NON_TROVATA, expenseDAO.updateExpense(inesistente).getEsito());
+    }
+
+    /**
+     * Verifica che il merge unisca le modifiche a quelle salvate nel frattempo, che fallisca quando il conflitto
+     * si ripete a ogni tentativo e che rifiuti un numero di tentativi non valido.
+     */
+    @Test
+    @DisplayName("Test merge dopo un conflitto")
+    void testMerge() throws Exception {
+        service.registerUser("Anna", "Bianchi", "merge@versioni.it", PASSWORD, 30);
+        SessionContext sessione = service.login("merge@versioni.it", PASSWORD);
+        Expense salvata = service.addExpense(sessione, "Spesa", Categories.ALTRO, "Supermercato", 40, DATA);
+        service.updateExpense(sessione, salvata.getId(), 1, "Spesa", Categories.ALTRO, "Supermercato e farmacia", 40, DATA);
+
+        // Il client modifica l'importo partendo dalla versione 1; il merge tiene la descrizione salvata
+        Expense modificata = copia(salvata, "Spesa", 1, sessione.getUserId());
+        modificata.setImporto(45);
+        Expense unita = service.updateExpenseWithMerge(sessione, modificata, (mia, corrente) -> {
+            corrente.setImporto(mia.getImporto());
+            return corrente;
+        }, 3);
+        assertEquals(3, unita.getVersion());
+        Expense riletta = service.findExpenseById(sessione, salvata.getId());
+        assertEquals(45, riletta.getImporto());
+        assertEquals("Supermercato e farmacia", riletta.getDescrizione());
+
+        // Un'altra modifica a ogni tentativo: il conflitto persiste
+        Expense ostinata = copia(salvata, "Spesa", 1, sessione.getUserId());
+        assertThrows(ConflittoVersioneException.class, () -> service.updateExpenseWithMerge(sessione, ostinata, (mia, corrente) -> {
+            service.updateExpense(sessione, corrente.getId(), corrente.getVersion(), "Spesa", Categories.ALTRO,
+                    corrente.getDescrizione() + "!", corrente.getImporto(), DATA);
+            return mia;
+        }, 2));
+        assertThrows(IllegalArgumentException.class,
+                () -> service.updateExpenseWithMerge(sessione, ostinata, (mia, corrente) -> mia, 0));
+    }
+
+    private static Expense copia(Expense e, String nome, int versione, int userId) {
+        Expense c = new Expense(nome, e.getCategoria(), e.getDescrizione(), e.getImporto(), e.getData());
+        c.setValuta(e.getValuta());
+        c.setId(e.getId());
+        c.setVersion(versione);
+        c.setIdUtente(userId);
+        return c;
+    }
+}
@@ -0,0 +1,60 @@
+package it.moneygement.tools;
+
+import it.moneygement.dao.ExchangeRateDAO;
+import it.moneygement.db.DbConnection;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per il caricamento dei tassi di cambio da file.
+ *
+ * @author Stefano Bellan
+ */
+public class ExchangeRateLoaderTest {
+
+    @TempDir
+    Path cartella;
+
+    /**
+     * Verifica che un file valido venga letto ignorando commenti e righe vuote e che ogni riga non valida
+     * venga rifiutata con il suo numero.
+     */
+    @Test
+    @DisplayName("Test lettura e validazione del file")
+    void testLettura() throws Exception {
+        Path file = cartella.resolve("cambi.csv");
+        Files.writeString(file, "# Tassi BCE\n\nusd, 1.08\nGBP,0.85\nEUR,1\n");
+        assertEquals(Map.of("USD", 1.08, "GBP", 0.85, "EUR", 1.0), ExchangeRateLoader.leggi(file));
+
+        for (String riga : new String[]{"USD,0", "USD,-1", "USD,abc", "USD", "DOLLARO,1.1", "USD,1.1,2", "EUR,2", "USD,Infinity"}) {
+            Files.writeString(file, "GBP,0.85\n" + riga + "\n");
+            IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> ExchangeRateLoader.leggi(file), riga);
+            assertTrue(e.getMessage().startsWith("Riga 2"), e.getMessage());
+        }
+    }
+
+    /**
+     * Verifica che i tassi vengano salvati sul database indicato, sostituendo quelli delle valute del file
+     * e lasciando invariati gli altri.
+     */
+    @Test
+    @DisplayName("Test caricamento sul database")
+    void testCaricamento() throws Exception {
+        Path db = cartella.resolve("cambi.db");
+        Path file = cartella.resolve("cambi.csv");
+        Files.writeString(file, "USD,1.08\nGBP,0.85\n");
+        new ExchangeRateLoader(new String[]{"--db", db.toString(), "--rates", file.toString()}).run();
+        Files.writeString(file, "USD,1.1\n");
+        new ExchangeRateLoader(new String[]{"--db", db.toString(), "--rates", file.toString()}).run();
+
+        DbConnection.setTestDatabase("jdbc:sqlite:" + db);
+        assertEquals(Map.of("EUR", 1.0, "USD", 1.1, "GBP", 0.85), new ExchangeRateDAO().getRates());
+    }
+}
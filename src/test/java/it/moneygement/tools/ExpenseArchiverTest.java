@@ -0,0 +1,136 @@
+package it.moneygement.tools;
+
+import it.moneygement.dao.ExpenseDAO;
+import it.moneygement.db.DbConnection;
+import it.moneygement.db.InitDatabase;
+import it.moneygement.exception.SpesaArchiviataException;
+import it.moneygement.model.Categories;
+import it.moneygement.model.Expense;
+import it.moneygement.model.ExpenseUpdateResult;
+import it.moneygement.service.MoneygementService;
+import it.moneygement.utils.SessionContext;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per l'archiviazione per anno delle spese (database e archivi su file temporanei).
+ *
+ * @author Stefano Bellan
+ */
+public class ExpenseArchiverTest {
+
+    private static final String PASSWORD = "Password1!";
+
+    @TempDir
+    Path cartella;
+
+    /**
+     * Verifica che le spese archiviate restino leggibili per intervallo e per id ma non modificabili, che i
+     * riepiloghi seguano i cambi attuali e che cancellando l'account spariscano anche dagli archivi e dai riepiloghi.
+     */
+    @Test
+    @DisplayName("Test archivio in sola lettura e cancellazione dell'account")
+    void testArchivioECancellazione() throws Exception {
+        Path database = cartella.resolve("archivio.db");
+        Path archivio = cartella.resolve("archivio-archive-2020.db");
+        DbConnection.setTestDatabase("jdbc:sqlite:" + database);
+        new InitDatabase().initializeDb();
+        try (Statement stmt = DbConnection.getInstance().getConnection().createStatement()) {
+            stmt.executeUpdate("INSERT INTO exchange_rate (valuta, per_euro, aggiornato_il) VALUES ('USD', 2, '2025-01-01');");
+        }
+        MoneygementService service = MoneygementService.getInstance();
+        service.registerUser("Mario", "Rossi", "archivio@test.it", PASSWORD, 30);
+        SessionContext sessione = service.login("archivio@test.it", PASSWORD);
+        int userId = sessione.getUserId();
+
+        ExpenseDAO expenseDAO = new ExpenseDAO();
+        Expense vecchia = spesa(userId, "Affitto", 100, "EUR", LocalDateTime.of(2020, 6, 1, 9, 0));
+        expenseDAO.addExpense(vecchia);
+        expenseDAO.addExpense(spesa(userId, "Volo", 50, "USD", LocalDateTime.of(2020, 7, 1, 9, 0)));
+        expenseDAO.addExpense(spesa(userId, "Pane", 2, "EUR", LocalDateTime.of(2025, 3, 5, 9, 0)));
+
+        new ExpenseArchiver(new String[]{"--db", database.toString(), "--before", "2021"}).run();
+        assertTrue(Files.isRegularFile(archivio));
+
+        // Lettura: per intervallo e per id sì, nelle liste delle spese recenti no
+        assertEquals(2, expenseDAO.getExpensesInRange(userId, LocalDate.of(2020, 1, 1), LocalDate.of(2020, 12, 31)).size());
+        assertEquals(List.of("Pane"), expenseDAO.getExpensesByUserId(userId).stream().map(Expense::getNomeSpesa).toList());
+        Expense archiviata = service.findExpenseById(sessione, vecchia.getId());
+        assertEquals("Affitto", archiviata.getNomeSpesa());
+
+        // Scrittura: rifiutata in modo esplicito
+        ExpenseUpdateResult esito = service.updateExpense(sessione, vecchia.getId(), archiviata.getVersion(), "Affitto",
+                Categories.ALTRO, "Mensile", 120, archiviata.getData());
+        assertEquals(ExpenseUpdateResult.Esito.ARCHIVIATA, esito.getEsito());
+        assertThrows(SpesaArchiviataException.class, () -> service.deleteExpenseById(sessione, vecchia.getId()));
+        assertNotNull(expenseDAO.getExpenseById(vecchia.getId(), userId));
+
+        // Riepiloghi convertiti con il cambio attuale
+        assertEquals(125, expenseDAO.getYearTotalsByCategory(userId, 2020).get(Categories.ALTRO), 1e-9);
+        try (Statement stmt = DbConnection.getInstance().getConnection().createStatement()) {
+            stmt.executeUpdate("UPDATE exchange_rate SET per_euro = 4 WHERE valuta = 'USD';");
+        }
+        assertEquals(112.5, expenseDAO.getYearTotalsByCategory(userId, 2020).get(Categories.ALTRO), 1e-9);
+
+        service.deleteUserById(sessione);
+        assertEquals(0, conta(archivio, "SELECT COUNT(*) FROM expense WHERE user_id = " + userId));
+        assertEquals(0, conta(database, "SELECT COUNT(*) FROM expense_summary WHERE user_id = " + userId));
+        assertEquals(0, conta(database, "SELECT COUNT(*) FROM expense WHERE user_id = " + userId));
+        assertEquals(0, conta(database, "SELECT righe FROM archive_year WHERE anno = 2020"));
+        assertTrue(expenseDAO.getYearTotalsByCategory(userId, 2020).isEmpty());
+    }
+
+    /**
+     * Verifica che l'archiviazione sia un'unica transazione: se fallisce, nessuna spesa lascia il database
+     * principale e l'archivio non riceve righe.
+     */
+    @Test
+    @DisplayName("Test archiviazione annullata per intero")
+    void testArchiviazioneAtomica() throws Exception {
+        Path database = cartella.resolve("atomica.db");
+        Path archivio = cartella.resolve("atomica-archive-2019.db");
+        DbConnection.setTestDatabase("jdbc:sqlite:" + database);
+        new InitDatabase().initializeDb();
+        ExpenseDAO expenseDAO = new ExpenseDAO();
+        expenseDAO.addExpense(spesa(1, "Affitto", 100, "EUR", LocalDateTime.of(2019, 6, 1, 9, 0)));
+        // Il catalogo non accetta la riga dell'anno: l'ultima istruzione della transazione fallisce
+        try (Statement stmt = DbConnection.getInstance().getConnection().createStatement()) {
+            stmt.executeUpdate("CREATE TRIGGER blocca_catalogo BEFORE INSERT ON archive_year BEGIN SELECT RAISE(ABORT, 'catalogo bloccato'); END;");
+        }
+
+        ExpenseArchiver archiver = new ExpenseArchiver(new String[]{"--db", database.toString(), "--before", "2020"});
+        assertThrows(SQLException.class, archiver::run);
+        assertEquals(1, conta(database, "SELECT COUNT(*) FROM expense"));
+        assertEquals(0, conta(database, "SELECT COUNT(*) FROM expense_summary"));
+        assertEquals(0, conta(archivio, "SELECT COUNT(*) FROM expense"));
+    }
+
+    private static Expense spesa(int userId, String nome, double importo, String valuta, LocalDateTime data) {
+        Expense e = new Expense(nome, Categories.ALTRO, "Spesa", importo, data);
+        e.setValuta(valuta);
+        e.setIdUtente(userId);
+        return e;
+    }
+
+    private static long conta(Path file, String sql) throws Exception {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + file);
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package it.moneygement.tools;
+
+import it.moneygement.dao.ExpenseDAO;
+import it.moneygement.dao.UserDAO;
+import it.moneygement.db.DbConnection;
+import it.moneygement.db.InitDatabase;
+import it.moneygement.db.ShardRouter;
+import it.moneygement.model.Categories;
+import it.moneygement.model.Expense;
+import it.moneygement.model.User;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per il ribilanciamento degli shard (directory, shard e archivi su file temporanei).
+ *
+ * @author Stefano Bellan
+ */
+public class ShardRebalancerTest {
+
+    private static final int UTENTI = 12;
+
+    @TempDir
+    Path cartella;
+
+    /**
+     * Verifica che passando da 1 a 3 shard ogni utente finisca sullo shard indicato dall'anello con spese,
+     * baseline, riepiloghi e spese archiviate, che la copia lasciata da un tentativo interrotto venga sostituita,
+     * che lo shard di origine non conservi i dati degli utenti spostati e che un secondo passaggio non sposti nulla.
+     */
+    @Test
+    @DisplayName("Test ribilanciamento con archivi e riepiloghi")
+    void testRibilanciamento() throws Exception {
+        String prefisso = cartella.resolve("app").toString();
+        DbConnection.setShardedDatabase(prefisso, 1);
+        new InitDatabase().initializeDb();
+
+        UserDAO userDAO = new UserDAO();
+        ExpenseDAO expenseDAO = new ExpenseDAO();
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < UTENTI; i++) {
+            userDAO.registerUser(new User("Utente", "N" + i, "x", "utente" + i + "@shard.it", 30));
+            int id = userDAO.getUserByEmail("utente" + i + "@shard.it").getId();
+            ids.add(id);
+            expenseDAO.addExpense(spesa(id, "Affitto", LocalDateTime.of(2020, 6, 1, 9, 0)));
+            expenseDAO.addExpense(spesa(id, "Pane", LocalDateTime.of(2025, 3, 5, 9, 0)));
+            esegui(DbConnection.percorsoShard(prefisso, 0), "INSERT INTO anomaly_baseline (user_id, categoria, stato, aggiornata_il) " +
+                    "VALUES (" + id + ", 'ALTRO', X'00', '2025-01-01T00:00:00');");
+        }
+        new ExpenseArchiver(new String[]{"--db", prefisso + "-shard-0.db", "--before", "2021"}).run();
+
+        // Copia parziale di un utente da spostare, come la lascerebbe un tentativo interrotto
+        ShardRouter router = new ShardRouter(3);
+        int interrotto = ids.stream().filter(id -> router.shardFor(id) != 0).findFirst().orElseThrow();
+        String destinazione = DbConnection.percorsoShard(prefisso, router.shardFor(interrotto));
+        try (Connection conn = DriverManager.getConnection(destinazione)) {
+            new InitDatabase().initializeDb(conn);
+        }
+        esegui(destinazione, "INSERT INTO user (id, nome, cognome, email, password_hash, eta) VALUES (" + interrotto + ", 'Utente', 'X', 'copia@shard.it', 'x', 30);");
+        esegui(destinazione, "INSERT INTO expense (nome_spesa, categoria, descrizione, importo, data, user_id) VALUES " +
+                "('Pane', 'ALTRO', 'Spesa', 2, '2025-03-05T09:00:00', " + interrotto + ");");
+
+        new ShardRebalancer(new String[]{"--prefix", prefisso, "--shards", "3"}).run();
+        DbConnection.setShardedDatabase(prefisso, 3);
+
+        int spostati = 0;
+        for (int id : ids) {
+            int shard = router.shardFor(id);
+            spostati += shard != 0 ? 1 : 0;
+            assertEquals(shard, conta(DbConnection.percorsoDirectory(prefisso), "SELECT shard FROM user_directory WHERE user_id = " + id));
+            assertEquals(List.of("Pane"), expenseDAO.getExpensesByUserId(id).stream().map(Expense::getNomeSpesa).toList());
+            assertEquals(List.of("Affitto", "Pane"), expenseDAO.getExpensesInRange(id, LocalDate.of(2020, 1, 1), LocalDate.of(2025, 12, 31))
+                    .stream().map(Expense::getNomeSpesa).toList());
+            assertEquals(10, expenseDAO.getYearTotalsByCategory(id, 2020).get(Categories.ALTRO), 1e-9);
+            assertEquals(1, conta(DbConnection.percorsoShard(prefisso, shard), "SELECT COUNT(*) FROM anomaly_baseline WHERE user_id = " + id));
+            if (shard != 0) {
+                String origine = DbConnection.percorsoShard(prefisso, 0);
+                assertEquals(0, conta(origine, "SELECT COUNT(*) FROM user WHERE id = " + id));
+                assertEquals(0, conta(origine, "SELECT COUNT(*) FROM expense_summary WHERE user_id = " + id));
+                assertEquals(0, conta(origine, "SELECT COUNT(*) FROM anomaly_baseline WHERE user_id = " + id));
+                assertEquals(0, conta("jdbc:sqlite:" + prefisso + "-shard-0-archive-2020.db", "SELECT COUNT(*) FROM expense WHERE user_id = " + id));
+            }
+        }
+        assertTrue(spostati > 0);
+        assertEquals(UTENTI - spostati, conta(DbConnection.percorsoShard(prefisso, 0), "SELECT righe FROM archive_year WHERE anno = 2020"));
+
+        // Secondo passaggio: la directory è già allineata all'anello
+        DbConnection.setShardedDatabase(prefisso, 1);
+        new ShardRebalancer(new String[]{"--prefix", prefisso, "--shards", "3"}).run();
+        DbConnection.setShardedDatabase(prefisso, 3);
+        assertEquals(1, expenseDAO.getExpensesByUserId(interrotto).size());
+    }
+
+    private static Expense spesa(int userId, String nome, LocalDateTime data) {
+        Expense e = new Expense(nome, Categories.ALTRO, "Spesa", 10, data);
+        e.setIdUtente(userId);
+        return e;
+    }
+
+    private static void esegui(String url, String sql) throws Exception {
+        try (Connection conn = DriverManager.getConnection(url);
+             Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate(sql);
+        }
+    }
+
+    private static long conta(String url, String sql) throws Exception {
+        try (Connection conn = DriverManager.getConnection(url);
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+}
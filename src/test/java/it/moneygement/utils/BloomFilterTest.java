@@ -0,0 +1,44 @@
+package it.moneygement.utils;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per il filtro di Bloom usato nel riconoscimento delle spese duplicate.
+ *
+ * @author Stefano Bellan
+ */
+public class BloomFilterTest {
+
+    /**
+     * Verifica che gli elementi aggiunti risultino sempre presenti e che, alla capienza, i falsi positivi
+     * sugli elementi mai aggiunti siano vicini alla probabilità richiesta.
+     */
+    @Test
+    @DisplayName("Test falsi positivi")
+    void testFalsiPositivi() {
+        BloomFilter filtro = new BloomFilter(10_000, 0.01);
+        for (int i = 0; i < 10_000; i++) {
+            filtro.aggiungi("supermercato\n" + i + ".5\nEUR\n2025-03-01T12:00:00");
+        }
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(filtro.forsePresente("supermercato\n" + i + ".5\nEUR\n2025-03-01T12:00:00"));
+        }
+        int falsiPositivi = 0;
+        for (int i = 0; i < 100_000; i++) {
+            if (filtro.forsePresente("supermercato\n" + i + ".5\nEUR\n2025-03-02T12:00:00")) {
+                falsiPositivi++;
+            }
+        }
+        assertTrue(falsiPositivi < 1_500, "falsi positivi: " + falsiPositivi);
+        assertFalse(filtro.isPieno());
+        assertTrue(filtro.getByte() < 10_000 * 2);
+
+        filtro.aggiungi("altro");
+        assertTrue(filtro.isPieno());
+        assertThrows(IllegalArgumentException.class, () -> new BloomFilter(0, 0.01));
+        assertThrows(IllegalArgumentException.class, () -> new BloomFilter(10, 1));
+    }
+}
@@ -0,0 +1,80 @@
+package it.moneygement.utils;
+
+import it.moneygement.model.SeriesPoint;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per la riduzione delle serie giornaliere usate dai grafici.
+ *
+ * @author Stefano Bellan
+ */
+public class DownsamplerTest {
+
+    private static final LocalDate INIZIO = LocalDate.of(2020, 1, 1);
+
+    /**
+     * Verifica che entrambi i metodi rispettino il numero di punti, tengano primo e ultimo punto
+     * e restituiscano punti della serie originale in ordine di data.
+     */
+    @Test
+    @DisplayName("Test limiti e ordine dei punti")
+    void testLimitiEOrdine() {
+        List<SeriesPoint> serie = serieCasuale(3_000, 1);
+        for (Downsampler.Metodo metodo : Downsampler.Metodo.values()) {
+            for (int punti : new int[]{4, 5, 10, 301, 2_999}) {
+                List<SeriesPoint> ridotta = Downsampler.riduci(serie, punti, metodo);
+                assertTrue(ridotta.size() <= punti, metodo + " con " + punti + " punti: " + ridotta.size());
+                assertSame(serie.get(0), ridotta.get(0));
+                assertSame(serie.get(serie.size() - 1), ridotta.get(ridotta.size() - 1));
+                for (int i = 1; i < ridotta.size(); i++) {
+                    assertTrue(ridotta.get(i).getGiorno().isAfter(ridotta.get(i - 1).getGiorno()));
+                    assertTrue(serie.contains(ridotta.get(i)));
+                }
+            }
+        }
+        // Una serie già abbastanza corta non viene toccata
+        assertEquals(serie, Downsampler.riduci(serie, 3_000, Downsampler.Metodo.LTTB));
+        assertThrows(IllegalArgumentException.class, () -> Downsampler.riduci(serie, 3, Downsampler.Metodo.MIN_MAX));
+    }
+
+    /**
+     * Verifica che un picco isolato sopravviva alla riduzione con entrambi i metodi,
+     * e che MIN_MAX conservi esattamente minimo e massimo della serie.
+     */
+    @Test
+    @DisplayName("Test conservazione dei picchi")
+    void testPicchi() {
+        List<SeriesPoint> serie = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            serie.add(new SeriesPoint(INIZIO.plusDays(i), i == 1_234 ? 5_000 : 10 + (i % 7)));
+        }
+        for (Downsampler.Metodo metodo : Downsampler.Metodo.values()) {
+            List<SeriesPoint> ridotta = Downsampler.riduci(serie, 100, metodo);
+            assertTrue(ridotta.contains(serie.get(1_234)), "Picco perso con " + metodo);
+        }
+
+        List<SeriesPoint> casuale = serieCasuale(5_000, 2);
+        List<SeriesPoint> ridotta = Downsampler.riduci(casuale, 200, Downsampler.Metodo.MIN_MAX);
+        Comparator<SeriesPoint> perTotale = Comparator.comparingDouble(SeriesPoint::getTotale);
+        assertEquals(casuale.stream().max(perTotale).get().getTotale(), ridotta.stream().max(perTotale).get().getTotale());
+        assertEquals(casuale.stream().min(perTotale).get().getTotale(), ridotta.stream().min(perTotale).get().getTotale());
+    }
+
+    private static List<SeriesPoint> serieCasuale(int giorni, long seme) {
+        Random random = new Random(seme);
+        List<SeriesPoint> serie = new ArrayList<>(giorni);
+        for (int i = 0; i < giorni; i++) {
+            serie.add(new SeriesPoint(INIZIO.plusDays(i), random.nextInt(4) == 0 ? 0 : random.nextDouble() * 200));
+        }
+        return serie;
+    }
+}
@@ -0,0 +1,73 @@
+package it.moneygement.utils;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per il modello di previsione delle spese giornaliere.
+ *
+ * @author Stefano Bellan
+ */
+public class HoltWintersTest {
+
+    /**
+     * Verifica che, dopo alcune settimane con la stessa spesa per ogni giorno della settimana, il modello preveda
+     * l'effetto del fine settimana e che la somma di un mese sia vicina a quella reale.
+     */
+    @Test
+    @DisplayName("Test stagionalità settimanale")
+    void testStagionalita() {
+        LocalDate inizio = LocalDate.of(2025, 1, 6);
+        HoltWinters modello = new HoltWinters(inizio);
+        LocalDate giorno = inizio;
+        for (int i = 0; i < 20 * 7; i++) {
+            modello.aggiungi(spesa(giorno));
+            giorno = giorno.plusDays(1);
+        }
+        assertEquals(giorno, modello.getProssimo());
+        assertEquals(140, modello.getOsservati());
+
+        LocalDate sabato = giorno.with(DayOfWeek.SATURDAY);
+        LocalDate lunedi = sabato.plusDays(2);
+        assertEquals(30, modello.previsione(sabato), 1);
+        assertEquals(10, modello.previsione(lunedi), 1);
+
+        LocalDate fine = giorno.plusDays(27);
+        double reale = 0;
+        for (LocalDate g = giorno; !g.isAfter(fine); g = g.plusDays(1)) {
+            reale += spesa(g);
+        }
+        assertEquals(reale, modello.somma(giorno, fine), reale * 0.02);
+        assertEquals(0, modello.somma(fine, giorno));
+    }
+
+    /**
+     * Verifica il comportamento con pochi valori e che una tendenza in discesa non porti a previsioni negative.
+     */
+    @Test
+    @DisplayName("Test casi limite")
+    void testCasiLimite() {
+        LocalDate inizio = LocalDate.of(2025, 3, 1);
+        HoltWinters modello = new HoltWinters(inizio);
+        assertEquals(0, modello.previsione(inizio));
+        modello.aggiungi(12);
+        modello.aggiungi(18);
+        assertEquals(15, modello.previsione(inizio.plusDays(10)));
+
+        HoltWinters inCalo = new HoltWinters(inizio, 0.5, 0.5, 0.1, 1);
+        for (int i = 0; i < 60; i++) {
+            inCalo.aggiungi(Math.max(0, 100 - 2 * i));
+        }
+        assertTrue(inCalo.previsione(inCalo.getProssimo().plusDays(100)) >= 0);
+    }
+
+    private static double spesa(LocalDate giorno) {
+        DayOfWeek d = giorno.getDayOfWeek();
+        return d == DayOfWeek.SATURDAY || d == DayOfWeek.SUNDAY ? 30 : 10;
+    }
+}
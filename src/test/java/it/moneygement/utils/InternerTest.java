@@ -0,0 +1,57 @@
+package it.moneygement.utils;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per la tabella di deduplicazione usata nelle letture delle spese.
+ *
+ * @author Stefano Bellan
+ */
+public class InternerTest {
+
+    /**
+     * Verifica che i valori ripetuti vengano sostituiti dalla prima istanza vista,
+     * e che la statistica conti le copie evitate.
+     */
+    @Test
+    @DisplayName("Test deduplicazione")
+    void testDeduplicazione() {
+        Interner<String> interner = new Interner<>(64, s -> 10);
+        String primo = new String("Supermercato");
+        assertSame(primo, interner.intern(primo));
+        for (int i = 0; i < 5; i++) {
+            String copia = new String("Supermercato");
+            assertSame(primo, interner.intern(copia));
+        }
+        assertNull(interner.intern(null));
+
+        Interner<LocalDateTime> date = new Interner<>(64, d -> 72);
+        LocalDateTime ora = LocalDateTime.of(2025, 3, 1, 8, 0);
+        date.intern(ora);
+        assertSame(ora, date.intern(LocalDateTime.parse("2025-03-01T08:00:00")));
+
+        assertEquals(6, interner.getRichieste());
+        assertEquals(5, interner.getRiusati());
+        assertEquals(50, interner.getByteRisparmiati());
+    }
+
+    /**
+     * Verifica che con molti più valori distinti della capienza la tabella resti corretta:
+     * restituisce sempre un valore uguale a quello passato.
+     */
+    @Test
+    @DisplayName("Test capienza limitata")
+    void testCapienzaLimitata() {
+        Interner<String> interner = new Interner<>(16, String::length);
+        for (int i = 0; i < 10_000; i++) {
+            String valore = "Spesa " + (i % 500);
+            assertEquals(valore, interner.intern(valore));
+        }
+        assertTrue(interner.getRiusati() < interner.getRichieste());
+    }
+}
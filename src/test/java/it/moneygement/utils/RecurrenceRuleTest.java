@@ -0,0 +1,80 @@
+package it.moneygement.utils;
+
+import it.moneygement.exception.DatiNonValidiException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per le regole di ricorrenza delle spese ricorrenti.
+ *
+ * @author Stefano Bellan
+ */
+public class RecurrenceRuleTest {
+
+    /**
+     * Verifica le occorrenze generate dalle parti supportate della regola,
+     * compresi i giorni che non esistono in alcuni mesi e i limiti COUNT e UNTIL.
+     */
+    @Test
+    @DisplayName("Test occorrenze")
+    void testOccorrenze() {
+        LocalDateTime inizio = LocalDateTime.of(2025, 1, 31, 9, 30);
+        // Il 31 viene saltato nei mesi che non lo hanno
+        assertEquals(List.of(inizio, LocalDateTime.of(2025, 3, 31, 9, 30), LocalDateTime.of(2025, 5, 31, 9, 30)),
+                occorrenze("FREQ=MONTHLY", inizio, 3));
+        // -1 è sempre l'ultimo giorno del mese; INTERVAL=2 salta un mese su due
+        assertEquals(List.of(inizio, LocalDateTime.of(2025, 3, 31, 9, 30), LocalDateTime.of(2025, 5, 31, 9, 30)),
+                occorrenze("FREQ=MONTHLY;INTERVAL=2;BYMONTHDAY=-1", inizio, 3));
+        assertEquals(List.of(inizio, LocalDateTime.of(2025, 2, 28, 9, 30), LocalDateTime.of(2025, 3, 31, 9, 30)),
+                occorrenze("RRULE:freq=monthly;bymonthday=-1", inizio, 3));
+
+        // Venerdì 31 gennaio 2025: la prima occorrenza è lunedì 3 febbraio, COUNT ne limita il numero
+        assertEquals(List.of(LocalDateTime.of(2025, 2, 3, 9, 30), LocalDateTime.of(2025, 2, 6, 9, 30),
+                        LocalDateTime.of(2025, 2, 10, 9, 30)),
+                occorrenze("FREQ=WEEKLY;BYDAY=MO,TH;COUNT=3", inizio, 10));
+
+        assertEquals(List.of(inizio, LocalDateTime.of(2025, 2, 3, 9, 30), LocalDateTime.of(2025, 2, 6, 9, 30)),
+                occorrenze("FREQ=DAILY;INTERVAL=3;UNTIL=20250206", inizio, 10));
+
+        // 29 febbraio: solo negli anni bisestili
+        LocalDateTime bisestile = LocalDateTime.of(2024, 2, 29, 0, 0);
+        assertEquals(List.of(bisestile, LocalDateTime.of(2028, 2, 29, 0, 0)), occorrenze("FREQ=YEARLY", bisestile, 2));
+
+        // Partendo da un'occorrenza qualsiasi si ottiene la stessa sequenza che partendo dall'inizio
+        RecurrenceRule settimanale = RecurrenceRule.parse("FREQ=WEEKLY;INTERVAL=2;BYDAY=TU,SA");
+        List<LocalDateTime> tutte = occorrenze(settimanale.toString(), inizio, 40);
+        for (int i = 0; i + 1 < tutte.size(); i++) {
+            assertEquals(tutte.get(i + 1), settimanale.successiva(inizio, tutte.get(i), i + 1));
+        }
+    }
+
+    /**
+     * Verifica che le regole non valide o non supportate vengano rifiutate.
+     */
+    @Test
+    @DisplayName("Test regole non valide")
+    void testRegoleNonValide() {
+        for (String regola : new String[]{"", "INTERVAL=2", "FREQ=HOURLY", "FREQ=DAILY;INTERVAL=0", "FREQ=DAILY;COUNT=x",
+                "FREQ=DAILY;BYDAY=MO", "FREQ=WEEKLY;BYDAY=XX", "FREQ=MONTHLY;BYMONTHDAY=32",
+                "FREQ=DAILY;COUNT=3;UNTIL=20250101", "FREQ=DAILY;BYHOUR=3", "FREQ"}) {
+            assertThrows(DatiNonValidiException.class, () -> RecurrenceRule.parse(regola), regola);
+        }
+    }
+
+    private static List<LocalDateTime> occorrenze(String testo, LocalDateTime inizio, int massimo) {
+        RecurrenceRule regola = RecurrenceRule.parse(testo);
+        List<LocalDateTime> occorrenze = new ArrayList<>();
+        LocalDateTime prossima = regola.successiva(inizio, null, 0);
+        while (prossima != null && occorrenze.size() < massimo) {
+            occorrenze.add(prossima);
+            prossima = regola.successiva(inizio, prossima, occorrenze.size());
+        }
+        return occorrenze;
+    }
+}
@@ -0,0 +1,77 @@
+package it.moneygement.utils;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per l'andamento recente degli importi usato nel riconoscimento delle spese anomale.
+ *
+ * @author Stefano Bellan
+ */
+public class RollingBaselineTest {
+
+    /**
+     * Verifica che un importo molto più alto delle spese abituali abbia punteggi alti con entrambe le stime,
+     * e che dopo alcune spese eccezionali la stima robusta resti legata alle spese abituali.
+     */
+    @Test
+    @DisplayName("Test punteggi")
+    void testPunteggi() {
+        Random random = new Random(11);
+        RollingBaseline baseline = new RollingBaseline(0.1, 31);
+        for (int i = 0; i < 100; i++) {
+            baseline.aggiungi(40 + random.nextGaussian() * 5);
+        }
+        assertEquals(40, baseline.getMedia(), 5);
+        assertEquals(40, baseline.getMediana(), 3);
+        assertTrue(baseline.punteggio(45) < 3);
+        assertTrue(baseline.punteggioRobusto(45) < 3.5);
+        assertTrue(baseline.punteggio(300) > 3);
+        assertTrue(baseline.punteggioRobusto(300) > 3.5);
+
+        // Tre spese eccezionali spostano media e varianza, non mediana e MAD
+        for (int i = 0; i < 3; i++) {
+            baseline.aggiungi(1_000);
+        }
+        assertEquals(40, baseline.getMediana(), 3);
+        assertTrue(baseline.punteggioRobusto(300) > 3.5);
+        assertTrue(baseline.punteggio(-100) < 0);
+
+        RollingBaseline costante = new RollingBaseline(0.1, 5);
+        for (int i = 0; i < 10; i++) {
+            costante.aggiungi(9.99);
+        }
+        assertEquals(0, costante.punteggioRobusto(9.99));
+        assertEquals(Double.POSITIVE_INFINITY, costante.punteggioRobusto(19.99));
+    }
+
+    /**
+     * Verifica che una baseline salvata e riletta dia gli stessi risultati, anche dopo aver riempito la finestra.
+     */
+    @Test
+    @DisplayName("Test serializzazione")
+    void testSerializzazione() {
+        RollingBaseline baseline = new RollingBaseline(0.2, 7);
+        for (int i = 1; i <= 12; i++) {
+            baseline.aggiungi(i * 3);
+        }
+        RollingBaseline riletta = RollingBaseline.fromBytes(baseline.toBytes());
+        assertEquals(baseline.getNumero(), riletta.getNumero());
+        assertEquals(baseline.getMedia(), riletta.getMedia());
+        assertEquals(baseline.getMediana(), riletta.getMediana());
+        assertEquals(baseline.getMad(), riletta.getMad());
+
+        baseline.aggiungi(100);
+        riletta.aggiungi(100);
+        assertEquals(baseline.getMediana(), riletta.getMediana());
+        assertEquals(baseline.punteggio(50), riletta.punteggio(50));
+
+        RollingBaseline vuota = RollingBaseline.fromBytes(new RollingBaseline(0.1, 31).toBytes());
+        assertTrue(Double.isNaN(vuota.getMediana()));
+        assertThrows(IllegalArgumentException.class, () -> RollingBaseline.fromBytes(new byte[3]));
+    }
+}
@@ -1,4 +1,66 @@
 package it.moneygement.utils;
 
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per l'hashing e la verifica delle password.
+ *
+ * @author Stefano Bellan
+ */
 public class SecurityUtilsTest {
+
+    private final int iterazioniIniziali = SecurityUtils.getHashIterations();
+
+    @AfterEach
+    public void tearDown() {
+        SecurityUtils.setHashIterations(iterazioniIniziali);
+    }
+
+    /**
+     * Verifica il formato degli hash, che due hash della stessa password siano diversi (sale casuale) e che
+     * un hash calcolato con un costo resti verificabile dopo il cambio di costo, ma vada ricalcolato.
+     */
+    @Test
+    @DisplayName("Test hash con sale e costo")
+    void testHashConSaleECosto() {
+        SecurityUtils.setHashIterations(2_000);
+        String hash = SecurityUtils.hashPassword("Pippo123!");
+        assertTrue(hash.startsWith("pbkdf2-sha256$2000$"), hash);
+        assertNotEquals(hash, SecurityUtils.hashPassword("Pippo123!"));
+        assertTrue(SecurityUtils.verifyPassword("Pippo123!", hash));
+        assertFalse(SecurityUtils.verifyPassword("Pippo124!", hash));
+        assertFalse(SecurityUtils.needsRehash(hash));
+
+        SecurityUtils.setHashIterations(3_000);
+        assertTrue(SecurityUtils.verifyPassword("Pippo123!", hash));
+        assertTrue(SecurityUtils.needsRehash(hash));
+        assertThrows(IllegalArgumentException.class, () -> SecurityUtils.setHashIterations(10));
+    }
+
+    /**
+     * Verifica che i vecchi hash SHA-256 senza sale vengano ancora accettati (e segnalati da ricalcolare)
+     * e che un hash mancante o non valido non corrisponda a nessuna password.
+     */
+    @Test
+    @DisplayName("Test hash vecchi e non validi")
+    void testHashVecchiENonValidi() throws Exception {
+        String vecchio = HexFormat.of().formatHex(
+                MessageDigest.getInstance("SHA-256").digest("Pippo123!".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(SecurityUtils.verifyPassword("Pippo123!", vecchio));
+        assertFalse(SecurityUtils.verifyPassword("Pippo124!", vecchio));
+        assertTrue(SecurityUtils.needsRehash(vecchio));
+
+        assertFalse(SecurityUtils.verifyPassword("Pippo123!", null));
+        assertFalse(SecurityUtils.verifyPassword("Pippo123!", "pbkdf2-sha256$1000$non-base64!$x"));
+        assertFalse(SecurityUtils.verifyPassword("Pippo123!", "pbkdf2-sha256$1000"));
+        assertFalse(SecurityUtils.verifyPassword("Pippo123!", "testo qualsiasi"));
+    }
 }
@@ -0,0 +1,174 @@
+package it.moneygement.utils;
+
+import it.moneygement.model.User;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per il registro concorrente delle sessioni.
+ * Usa un orologio manuale per simulare il passare del tempo senza attese reali.
+ *
+ * @author Stefano Bellan
+ */
+public class SessionRegistryTest {
+
+    /**
+     * Orologio controllabile dai test.
+     */
+    private static class OrologioManuale extends Clock {
+        private long millis;
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+
+        void avanza(Duration d) {
+            millis += d.toMillis();
+        }
+    }
+
+    private OrologioManuale orologio;
+    private SessionRegistry registry;
+    private User user;
+
+    @BeforeEach
+    public void setUp() {
+        orologio = new OrologioManuale();
+        registry = new SessionRegistry(Duration.ofMinutes(30), Duration.ofHours(12), orologio);
+        user = new User("Mario", "Rossi", SecurityUtils.hashPassword("Pippo123!"), "mario@example.com", 25);
+        user.setId(1);
+    }
+
+    /**
+     * Verifica che una sessione appena creata sia recuperabile tramite il suo token.
+     */
+    @Test
+    @DisplayName("Test creazione e recupero sessione")
+    void testCreaERecupera() {
+        SessionContext sessione = registry.create(user);
+
+        assertNotNull(sessione.getToken());
+        assertSame(sessione, registry.get(sessione.getToken()));
+        assertEquals(1, sessione.getUserId());
+        assertNull(registry.get("token-inesistente"));
+    }
+
+    /**
+     * Verifica che due login producano token diversi.
+     */
+    @Test
+    @DisplayName("Test unicità dei token")
+    void testTokenDiversi() {
+        assertNotEquals(registry.create(user).getToken(), registry.create(user).getToken());
+        assertEquals(2, registry.size());
+    }
+
+    /**
+     * Verifica la scadenza per inattività e la rimozione da parte della timing wheel.
+     */
+    @Test
+    @DisplayName("Test scadenza per inattività")
+    void testScadenzaInattivita() {
+        SessionContext sessione = registry.create(user);
+
+        orologio.avanza(Duration.ofMinutes(31));
+        assertEquals(1, registry.purgeExpired());
+        assertNull(registry.get(sessione.getToken()));
+        assertEquals(0, registry.size());
+    }
+
+    /**
+     * Verifica che l'uso della sessione ne rinnovi la scadenza (ripianificazione pigra).
+     */
+    @Test
+    @DisplayName("Test rinnovo della sessione attiva")
+    void testRinnovo() {
+        SessionContext sessione = registry.create(user);
+
+        orologio.avanza(Duration.ofMinutes(20));
+        assertNotNull(registry.get(sessione.getToken()));
+        orologio.avanza(Duration.ofMinutes(20));
+
+        assertEquals(0, registry.purgeExpired(), "La sessione usata 20 minuti fa è ancora valida");
+        assertNotNull(registry.get(sessione.getToken()));
+    }
+
+    /**
+     * Verifica che la scadenza assoluta valga anche per le sessioni sempre attive.
+     */
+    @Test
+    @DisplayName("Test scadenza assoluta")
+    void testScadenzaAssoluta() {
+        SessionContext sessione = registry.create(user);
+
+        for (int i = 0; i < 25; i++) {
+            orologio.avanza(Duration.ofMinutes(29));
+            registry.purgeExpired();
+            registry.get(sessione.getToken());
+        }
+        assertNull(registry.get(sessione.getToken()));
+    }
+
+    /**
+     * Verifica logout e invalidazione di tutte le sessioni di un utente.
+     */
+    @Test
+    @DisplayName("Test logout e invalidazione per utente")
+    void testInvalidazione() {
+        SessionContext prima = registry.create(user);
+        SessionContext seconda = registry.create(user);
+
+        registry.invalidate(prima.getToken());
+        assertNull(registry.get(prima.getToken()));
+        assertNotNull(registry.get(seconda.getToken()));
+
+        registry.invalidateUser(1);
+        assertNull(registry.get(seconda.getToken()));
+    }
+
+    /**
+     * Verifica che la sessione non condivida l'utente con chi l'ha creata o letta e che un aggiornamento
+     * sostituisca i dati in tutte le sessioni dell'utente, lasciando invariate quelle degli altri.
+     */
+    @Test
+    @DisplayName("Test utente della sessione non condiviso")
+    void testUtenteNonCondiviso() {
+        SessionContext prima = registry.create(user);
+        SessionContext seconda = registry.create(user);
+        User altro = new User("Anna", "Bianchi", user.getPasswordHash(), "anna@example.com", 30);
+        altro.setId(2);
+        SessionContext terza = registry.create(altro);
+
+        user.setEta(40);
+        prima.getUser().setEta(50);
+        assertEquals(25, prima.getUser().getEta());
+        assertNotSame(prima.getUser(), prima.getUser());
+
+        User aggiornato = new User("Mario", "Rossi", user.getPasswordHash(), "mario.rossi@example.com", 26);
+        aggiornato.setId(1);
+        registry.updateUser(aggiornato);
+        assertEquals("mario.rossi@example.com", prima.getUser().getEmail());
+        assertEquals(26, seconda.getUser().getEta());
+        assertEquals("anna@example.com", terza.getUser().getEmail());
+    }
+}
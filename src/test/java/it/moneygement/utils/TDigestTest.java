@@ -0,0 +1,98 @@
+package it.moneygement.utils;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per le statistiche in una passata usate dalle statistiche mensili delle spese.
+ *
+ * @author Stefano Bellan
+ */
+public class TDigestTest {
+
+    /**
+     * Verifica che su 100.000 importi con coda lunga (log-normale) i quantili stimati restino vicini
+     * a quelli esatti, con un digest di dimensione limitata.
+     */
+    @Test
+    @DisplayName("Test precisione dei quantili")
+    void testPrecisione() {
+        Random random = new Random(42);
+        double[] valori = new double[100_000];
+        TDigest digest = new TDigest();
+        for (int i = 0; i < valori.length; i++) {
+            valori[i] = Math.exp(3 + random.nextGaussian());
+            digest.aggiungi(valori[i]);
+        }
+        Arrays.sort(valori);
+
+        for (double q : new double[]{0.01, 0.1, 0.5, 0.9, 0.99}) {
+            double esatto = valori[(int) (q * valori.length)];
+            assertEquals(esatto, digest.quantile(q), esatto * 0.02, "quantile " + q);
+        }
+        assertEquals(valori[0], digest.quantile(0));
+        assertEquals(valori[valori.length - 1], digest.quantile(1));
+        assertEquals(100_000, digest.getNumero());
+        assertTrue(digest.getCentroidi() <= 100, "centroidi: " + digest.getCentroidi());
+    }
+
+    /**
+     * Verifica che l'unione di digest e di statistiche calcolate su parti diverse (come i mesi)
+     * dia gli stessi risultati di una passata unica, anche dopo la serializzazione.
+     */
+    @Test
+    @DisplayName("Test unione e serializzazione")
+    void testUnione() {
+        Random random = new Random(7);
+        TDigest unico = new TDigest();
+        RunningStats tutte = new RunningStats();
+        TDigest unito = new TDigest();
+        RunningStats unite = new RunningStats();
+        for (int mese = 0; mese < 12; mese++) {
+            TDigest parte = new TDigest();
+            RunningStats statistiche = new RunningStats();
+            for (int i = 0; i < 2_000; i++) {
+                double valore = 10 + mese + random.nextDouble() * 50;
+                unico.aggiungi(valore);
+                tutte.aggiungi(valore);
+                parte.aggiungi(valore);
+                statistiche.aggiungi(valore);
+            }
+            unito.unisci(TDigest.fromBytes(parte.toBytes()));
+            unite.unisci(statistiche);
+        }
+
+        assertEquals(tutte.getNumero(), unite.getNumero());
+        assertEquals(tutte.getMedia(), unite.getMedia(), 1e-9);
+        assertEquals(tutte.getVarianza(), unite.getVarianza(), 1e-6);
+        assertEquals(tutte.getMinimo(), unite.getMinimo());
+        assertEquals(tutte.getMassimo(), unite.getMassimo());
+        assertEquals(unico.getNumero(), unito.getNumero());
+        for (double q : new double[]{0.1, 0.5, 0.9}) {
+            assertEquals(unico.quantile(q), unito.quantile(q), 0.5, "quantile " + q);
+        }
+    }
+
+    /**
+     * Verifica i casi limite: digest vuoto, un solo valore e byte non validi.
+     */
+    @Test
+    @DisplayName("Test casi limite")
+    void testCasiLimite() {
+        TDigest digest = new TDigest();
+        assertTrue(Double.isNaN(digest.quantile(0.5)));
+        assertTrue(Double.isNaN(TDigest.fromBytes(digest.toBytes()).quantile(0.5)));
+
+        digest.aggiungi(12.5);
+        assertEquals(12.5, digest.quantile(0.5));
+        assertEquals(12.5, digest.quantile(0.99));
+
+        assertThrows(IllegalArgumentException.class, () -> digest.quantile(1.5));
+        assertThrows(IllegalArgumentException.class, () -> TDigest.fromBytes(new byte[5]));
+    }
+}
@@ -0,0 +1,104 @@
+package it.moneygement.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per la timing wheel gerarchica usata dal registro delle sessioni.
+ *
+ * @author Stefano Bellan
+ */
+public class TimingWheelTest {
+
+    // Ruota con tick di 1 ms e 3 livelli (orizzonte di 64^3 = 262144 tick)
+    private TimingWheel<String> ruota;
+
+    @BeforeEach
+    public void setUp() {
+        ruota = new TimingWheel<>(1, 3, 0);
+    }
+
+    /**
+     * Verifica che una scadenza vicina venga restituita solo quando il tempo la raggiunge.
+     */
+    @Test
+    @DisplayName("Test scadenza sul livello 0")
+    void testScadenzaLivelloZero() {
+        ruota.schedule("a", 10);
+
+        assertTrue(ruota.advance(9).isEmpty(), "Non deve scadere prima del tempo");
+        assertEquals(List.of("a"), ruota.advance(10));
+        assertEquals(0, ruota.size());
+    }
+
+    /**
+     * Verifica che le scadenze lontane vengano ridistribuite (cascade) e restituite al momento giusto.
+     */
+    @Test
+    @DisplayName("Test scadenza sui livelli superiori")
+    void testScadenzaLivelliSuperiori() {
+        ruota.schedule("medio", 5_000);
+        ruota.schedule("lontano", 200_000);
+
+        assertTrue(ruota.advance(4_999).isEmpty());
+        assertEquals(List.of("medio"), ruota.advance(5_000));
+        assertTrue(ruota.advance(199_999).isEmpty());
+        assertEquals(List.of("lontano"), ruota.advance(200_000));
+    }
+
+    /**
+     * Verifica che una scadenza già passata venga restituita al primo avanzamento.
+     */
+    @Test
+    @DisplayName("Test scadenza nel passato")
+    void testScadenzaPassata() {
+        ruota.advance(100);
+        ruota.schedule("vecchia", 50);
+
+        assertEquals(List.of("vecchia"), ruota.advance(101));
+    }
+
+    /**
+     * Verifica che le scadenze oltre l'orizzonte massimo non vengano perse.
+     */
+    @Test
+    @DisplayName("Test scadenza oltre l'orizzonte")
+    void testScadenzaOltreOrizzonte() {
+        ruota.schedule("remota", 1_000_000);
+
+        assertTrue(ruota.advance(999_999).isEmpty());
+        assertEquals(List.of("remota"), ruota.advance(1_000_000));
+    }
+
+    /**
+     * Confronta la ruota con scadenze casuali: ogni chiave deve scadere esattamente al suo tick.
+     */
+    @Test
+    @DisplayName("Test scadenze casuali avanzando un tick alla volta")
+    void testScadenzeCasuali() {
+        Random random = new Random(42);
+        long[] scadenze = new long[2_000];
+        for (int i = 0; i < scadenze.length; i++) {
+            scadenze[i] = 1 + random.nextInt(300_000);
+            ruota.schedule(String.valueOf(i), scadenze[i]);
+        }
+
+        List<String> scadute = new ArrayList<>();
+        for (long t = 0; t <= 300_000; t += 997) {
+            for (String chiave : ruota.advance(t)) {
+                long attesa = scadenze[Integer.parseInt(chiave)];
+                assertTrue(attesa <= t && attesa > t - 997, "Chiave " + chiave + " scaduta fuori tempo");
+                scadute.add(chiave);
+            }
+        }
+        scadute.addAll(ruota.advance(300_000));
+        assertEquals(scadenze.length, scadute.size());
+    }
+}
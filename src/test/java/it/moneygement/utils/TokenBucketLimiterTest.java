@@ -0,0 +1,109 @@
+package it.moneygement.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per il limitatore a secchielli di gettoni.
+ * Usa un orologio manuale per simulare il passare del tempo senza attese reali.
+ *
+ * @author Stefano Bellan
+ */
+public class TokenBucketLimiterTest {
+
+    /**
+     * Orologio controllabile dai test.
+     */
+    private static class OrologioManuale extends Clock {
+        private long millis;
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+
+        void avanza(Duration d) {
+            millis += d.toMillis();
+        }
+    }
+
+    private OrologioManuale orologio;
+    private TokenBucketLimiter limitatore;
+
+    @BeforeEach
+    public void setUp() {
+        orologio = new OrologioManuale();
+        limitatore = new TokenBucketLimiter(3, Duration.ofSeconds(10), 2, orologio);
+    }
+
+    /**
+     * Verifica che la raffica sia limitata alla capienza, che i gettoni tornino col tempo e che
+     * ogni chiave abbia il suo secchiello.
+     */
+    @Test
+    @DisplayName("Test raffica e ricarica")
+    void testRafficaERicarica() {
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limitatore.consuma("a"));
+        }
+        assertFalse(limitatore.consuma("a"));
+        assertEquals(Duration.ofSeconds(10), limitatore.attesa("a"));
+        assertTrue(limitatore.consuma("b"));
+
+        orologio.avanza(Duration.ofSeconds(4));
+        assertFalse(limitatore.consuma("a"));
+        assertEquals(Duration.ofSeconds(6), limitatore.attesa("a"));
+
+        orologio.avanza(Duration.ofSeconds(6));
+        assertTrue(limitatore.consuma("a"));
+        assertFalse(limitatore.consuma("a"));
+
+        // Dopo molto tempo il secchiello torna pieno, non oltre la capienza
+        orologio.avanza(Duration.ofHours(1));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limitatore.consuma("a"));
+        }
+        assertFalse(limitatore.consuma("a"));
+    }
+
+    /**
+     * Verifica che i gettoni restituiti non contino, che un secchiello tornato pieno venga dimenticato e che
+     * i secchielli ricordati non superino il massimo.
+     */
+    @Test
+    @DisplayName("Test restituzione e limite delle chiavi")
+    void testRestituzioneELimite() {
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limitatore.consuma("a"));
+            limitatore.restituisci("a");
+        }
+        assertEquals(0, limitatore.size());
+        assertEquals(Duration.ZERO, limitatore.attesa("a"));
+
+        limitatore.consuma("a");
+        limitatore.consuma("b");
+        limitatore.consuma("c");
+        assertEquals(2, limitatore.size());
+        limitatore.restituisci("a");
+        assertEquals(2, limitatore.size());
+    }
+}
@@ -0,0 +1,138 @@
+package it.moneygement.viewmodel;
+
+import it.moneygement.model.Categories;
+import it.moneygement.model.Expense;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per l'applicazione delle differenze nel modello della dashboard.
+ * Le differenze vengono accodate direttamente, senza database né thread JavaFX.
+ *
+ * @author Stefano Bellan
+ */
+public class DashboardViewModelTest {
+
+    private DashboardViewModel modello;
+
+    @BeforeEach
+    public void setUp() {
+        modello = new DashboardViewModel(null, null);
+    }
+
+    /**
+     * Verifica caricamento completo, modifica e cancellazione con lo spostamento dell'ultima riga.
+     */
+    @Test
+    @DisplayName("Test differenze e totali")
+    void testDifferenze() {
+        modello.accoda(new DashboardViewModel.Modifiche(true,
+                List.of(riga(1, Categories.AUTO, 10.10), riga(2, Categories.SVAGO, 5), riga(3, Categories.AUTO, 0.20)), List.of()));
+        modello.applicaPronte();
+        assertEquals(3, modello.getSpese().size());
+        assertEquals(10.30, modello.totaleProperty(Categories.AUTO).get(), 1e-9);
+        assertEquals(15.30, modello.totaleProperty().get(), 1e-9);
+
+        // La spesa 1 cambia categoria, la 4 è nuova, la 2 viene cancellata (la 99 non esiste)
+        modello.accoda(new DashboardViewModel.Modifiche(false,
+                List.of(riga(1, Categories.VIAGGI, 12), riga(4, Categories.SVAGO, 1)), List.of(2, 99)));
+        modello.applicaPronte();
+
+        assertEquals(3, modello.getSpese().size());
+        assertEquals(0.20, modello.totaleProperty(Categories.AUTO).get(), 1e-9);
+        assertEquals(12, modello.totaleProperty(Categories.VIAGGI).get(), 1e-9);
+        assertEquals(1, modello.totaleProperty(Categories.SVAGO).get(), 1e-9);
+        // La riga 4 (ultima) ha preso il posto della 2
+        assertEquals(4, modello.getSpese().get(1).getId());
+    }
+
+    /**
+     * Verifica su una sequenza casuale di differenze che lista e totali coincidano
+     * con un ricalcolo da zero.
+     */
+    @Test
+    @DisplayName("Test coerenza con ricalcolo completo")
+    void testCoerenza() {
+        Random random = new Random(7);
+        Map<Integer, Expense> attese = new HashMap<>();
+        for (int passo = 0; passo < 200; passo++) {
+            List<DashboardViewModel.Riga> aggiornate = new ArrayList<>();
+            List<Integer> eliminate = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                int id = 1 + random.nextInt(300);
+                // Come nel caricamento reale, un id compare una sola volta per blocco
+                eliminate.removeIf(x -> x == id);
+                aggiornate.removeIf(x -> x.spesa().getId() == id);
+                if (random.nextInt(3) == 0) {
+                    eliminate.add(id);
+                    attese.remove(id);
+                } else {
+                    Expense e = spesa(id, Categories.values()[random.nextInt(Categories.values().length)], 0.01 * (1 + random.nextInt(100_000)));
+                    aggiornate.add(new DashboardViewModel.Riga(e, Math.round(e.getImporto() * 100)));
+                    attese.put(id, e);
+                }
+            }
+            modello.accoda(new DashboardViewModel.Modifiche(false, aggiornate, eliminate));
+        }
+        // Al massimo 10.000 differenze: bastano pochi frame
+        for (int frame = 0; frame < 10; frame++) {
+            modello.applicaPronte();
+        }
+
+        assertEquals(attese.size(), modello.getSpese().size());
+        for (Expense e : modello.getSpese()) {
+            assertSame(attese.get(e.getId()), e);
+        }
+        for (Categories c : Categories.values()) {
+            double atteso = attese.values().stream().filter(e -> e.getCategoria() == c).mapToDouble(Expense::getImporto).sum();
+            assertEquals(atteso, modello.totaleProperty(c).get(), 1e-6);
+        }
+    }
+
+    /**
+     * Verifica che modifiche e cancellazioni tolgano dai totali l'importo convertito con cui la riga era stata
+     * sommata, anche quando la stessa spesa viene riletta con un tasso diverso.
+     */
+    @Test
+    @DisplayName("Test totali con tassi cambiati")
+    void testTassiCambiati() {
+        Expense dollari = spesa(1, Categories.VIAGGI, 10);
+        dollari.setValuta("USD");
+        // Caricata a 2 EUR per dollaro
+        modello.accoda(new DashboardViewModel.Modifiche(true,
+                List.of(new DashboardViewModel.Riga(dollari, 2_000), riga(2, Categories.VIAGGI, 5)), List.of()));
+        modello.applicaPronte();
+        assertEquals(25, modello.totaleProperty(Categories.VIAGGI).get(), 1e-9);
+
+        // Riletta dopo il cambio dei tassi (4 EUR per dollaro): si toglie quanto sommato, non l'importo al nuovo tasso
+        modello.accoda(new DashboardViewModel.Modifiche(false, List.of(new DashboardViewModel.Riga(dollari, 4_000)), List.of()));
+        modello.applicaPronte();
+        assertEquals(45, modello.totaleProperty(Categories.VIAGGI).get(), 1e-9);
+
+        modello.accoda(new DashboardViewModel.Modifiche(false, List.of(), List.of(1)));
+        modello.applicaPronte();
+        assertEquals(5, modello.totaleProperty(Categories.VIAGGI).get(), 1e-9);
+        assertEquals(5, modello.totaleProperty().get(), 1e-9);
+    }
+
+    private static DashboardViewModel.Riga riga(int id, Categories categoria, double importo) {
+        return new DashboardViewModel.Riga(spesa(id, categoria, importo), Math.round(importo * 100));
+    }
+
+    private static Expense spesa(int id, Categories categoria, double importo) {
+        Expense e = new Expense("Spesa " + id, categoria, "Descrizione", importo, LocalDateTime.of(2025, 1, 1, 12, 0));
+        e.setId(id);
+        e.setIdUtente(1);
+        return e;
+    }
+}
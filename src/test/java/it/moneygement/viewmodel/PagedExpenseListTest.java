@@ -0,0 +1,165 @@
+package it.moneygement.viewmodel;
+
+import it.moneygement.dao.ExchangeRateDAO;
+import it.moneygement.db.DbConnection;
+import it.moneygement.db.InitDatabase;
+import it.moneygement.model.Categories;
+import it.moneygement.model.Expense;
+import it.moneygement.model.ExpenseOrder;
+import it.moneygement.service.MoneygementService;
+import it.moneygement.utils.SessionContext;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Suite di test per la lista delle spese letta a pagine.
+ * Caricamento e notifiche vengono eseguiti sul thread del test, su un database in un file temporaneo:
+ * ogni riga chiesta è quindi già disponibile al ritorno di {@code get}.
+ *
+ * @author Stefano Bellan
+ */
+public class PagedExpenseListTest {
+
+    private static final int SPESE = 1_000;
+
+    @TempDir
+    static Path cartella;
+
+    private static MoneygementService service;
+    private static SessionContext sessione;
+    private static List<Expense> tutte;
+
+    @BeforeAll
+    static void setUp() throws Exception {
+        DbConnection.setTestDatabase("jdbc:sqlite:" + cartella.resolve("paged.db"));
+        new InitDatabase().initializeDb();
+        service = MoneygementService.getInstance();
+        service.registerUser("Mario", "Rossi", "pagine@test.it", "Password1!", 30);
+        sessione = service.login("pagine@test.it", "Password1!");
+
+        // Poche date e pochi importi diversi: molte righe a pari merito nell'ordinamento
+        Random random = new Random(11);
+        for (int i = 0; i < SPESE; i++) {
+            service.addExpense(sessione, "Spesa " + i, Categories.values()[random.nextInt(Categories.values().length)], "Test",
+                    1 + random.nextInt(50), LocalDateTime.of(2024, 1 + random.nextInt(12), 1 + random.nextInt(28), 12, 0));
+        }
+        tutte = service.getExpensesByUserId(sessione);
+    }
+
+    /**
+     * Verifica che scorrendo tutta la lista le righe arrivino nell'ordine di data decrescente
+     * (a parità di data per id) e che in memoria restino al massimo le pagine consentite.
+     */
+    @Test
+    @DisplayName("Test scorrimento con memoria limitata")
+    void testScorrimento() {
+        PagedExpenseList lista = new PagedExpenseList(service, sessione, Runnable::run, Runnable::run, 50, 4);
+        lista.start();
+        try {
+            assertEquals(SPESE, lista.size());
+            List<Expense> attese = new ArrayList<>(tutte);
+            attese.sort(Comparator.comparing(Expense::getData).thenComparing(Expense::getId).reversed());
+
+            for (int i = 0; i < lista.size(); i++) {
+                assertEquals(attese.get(i).getId(), lista.get(i).getId(), "Riga " + i);
+                assertTrue(lista.getPagineCaricate() <= 4);
+            }
+            // Salto all'inizio e ritorno a metà lista
+            assertEquals(attese.get(0).getId(), lista.get(0).getId());
+            assertEquals(attese.get(SPESE / 2).getId(), lista.get(SPESE / 2).getId());
+        } finally {
+            lista.stop();
+        }
+    }
+
+    /**
+     * Verifica ordinamento per importo e filtro per categoria eseguiti nel database.
+     */
+    @Test
+    @DisplayName("Test ordinamento e filtro")
+    void testOrdinamentoEFiltro() {
+        PagedExpenseList lista = new PagedExpenseList(service, sessione, Runnable::run, Runnable::run, 30, 3);
+        lista.start();
+        try {
+            lista.setOrdinamento(ExpenseOrder.IMPORTO_CRESCENTE);
+            lista.setCategoria(Categories.AUTO);
+
+            List<Expense> attese = new ArrayList<>();
+            for (Expense e : tutte) {
+                if (e.getCategoria() == Categories.AUTO) {
+                    attese.add(e);
+                }
+            }
+            attese.sort(Comparator.comparing(Expense::getImporto).thenComparing(Expense::getId));
+
+            assertEquals(attese.size(), lista.size());
+            // Prima l'ultima riga (lettura per posizione), poi tutta la lista in ordine
+            assertEquals(attese.get(attese.size() - 1).getId(), lista.get(lista.size() - 1).getId());
+            for (int i = 0; i < lista.size(); i++) {
+                assertEquals(attese.get(i).getId(), lista.get(i).getId(), "Riga " + i);
+            }
+
+            lista.setCategoria(null);
+            assertEquals(SPESE, lista.size());
+        } finally {
+            lista.stop();
+        }
+    }
+
+    /**
+     * Verifica che l'ordinamento per importo segua gli importi convertiti nella valuta base e che lo scorrimento
+     * per data non ripeta righe quando una data è salvata in un formato diverso da quello a larghezza fissa.
+     */
+    @Test
+    @DisplayName("Test ordinamento per importo convertito e date non normalizzate")
+    void testValuteEDate() throws Exception {
+        ExchangeRateDAO.saveRates(DbConnection.getInstance().getConnection(), Map.of("USD", 2.0), LocalDate.of(2025, 3, 1));
+        service.registerUser("Anna", "Bianchi", "valute@pagine.it", "Password1!", 30);
+        SessionContext anna = service.login("valute@pagine.it", "Password1!");
+        int trenta = service.addExpense(anna, "Libri", Categories.ALTRO, "Test", 30, LocalDateTime.of(2024, 5, 1, 12, 0)).getId();
+        int cento = service.addExpense(anna, "Volo", Categories.VIAGGI, "Test", 100, "USD", LocalDateTime.of(2024, 4, 1, 12, 0)).getId();
+        int quaranta = service.addExpense(anna, "Cena", Categories.RISTORANTI, "Test", 40, LocalDateTime.of(2024, 3, 1, 12, 0)).getId();
+        int quarantacinque = service.addExpense(anna, "Taxi", Categories.VIAGGI, "Test", 45, "USD", LocalDateTime.of(2024, 2, 1, 12, 0)).getId();
+        // Stessa data della prima spesa ma senza secondi, scritta da fuori dall'applicazione
+        try (Statement stmt = DbConnection.getInstance().getConnection(anna.getUserId()).createStatement()) {
+            stmt.executeUpdate("INSERT INTO expense (nome_spesa, categoria, descrizione, importo, valuta, data, user_id) " +
+                    "VALUES ('Pane', 'ALTRO', 'Test', 2, 'EUR', '2024-05-01T12:00', " + anna.getUserId() + ");");
+        }
+        int pane = service.getExpensesByUserId(anna).stream().filter(e -> e.getNomeSpesa().equals("Pane")).findFirst().orElseThrow().getId();
+
+        PagedExpenseList lista = new PagedExpenseList(service, anna, Runnable::run, Runnable::run, 1, 3);
+        lista.start();
+        try {
+            // Per data decrescente il testo senza secondi viene dopo quello completo
+            List<Integer> perData = new ArrayList<>();
+            for (int i = 0; i < lista.size(); i++) {
+                perData.add(lista.get(i).getId());
+            }
+            assertEquals(List.of(trenta, pane, cento, quaranta, quarantacinque), perData);
+
+            // 45 USD = 22,50 EUR e 100 USD = 50 EUR
+            lista.setOrdinamento(ExpenseOrder.IMPORTO_CRESCENTE);
+            List<Integer> perImporto = new ArrayList<>();
+            for (int i = 0; i < lista.size(); i++) {
+                perImporto.add(lista.get(i).getId());
+            }
+            assertEquals(List.of(pane, quarantacinque, trenta, quaranta, cento), perImporto);
+        } finally {
+            lista.stop();
+        }
+    }
+}